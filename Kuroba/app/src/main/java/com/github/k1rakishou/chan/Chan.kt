@@ -25,6 +25,7 @@ import android.os.Build
 import android.os.Bundle
 import android.os.StrictMode
 import android.os.SystemClock
+import android.util.Log
 import com.github.k1rakishou.BookmarkGridViewInfo
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.ChanSettingsInfo
@@ -62,6 +63,7 @@ import com.github.k1rakishou.chan.utils.TimeUtils
 import com.github.k1rakishou.common.AndroidUtils
 import com.github.k1rakishou.common.AndroidUtils.getApplicationLabel
 import com.github.k1rakishou.common.AppConstants
+import com.github.k1rakishou.common.dns.DnsCache
 import com.github.k1rakishou.common.dns.DnsOverHttpsSelector
 import com.github.k1rakishou.common.dns.DnsOverHttpsSelectorFactory
 import com.github.k1rakishou.common.dns.NormalDnsSelector
@@ -90,6 +92,7 @@ import okhttp3.HttpUrl.Companion.toHttpUrl
 import okhttp3.OkHttpClient
 import okhttp3.Protocol
 import okhttp3.dnsoverhttps.DnsOverHttps
+import java.io.File
 import java.io.IOException
 import java.net.InetAddress
 import java.util.*
@@ -224,6 +227,16 @@ class Chan : Application(), ActivityLifecycleCallbacks {
 
   private fun onCreateInternal() {
     registerActivityLifecycleCallbacks(this)
+
+    // Debug/verbose messages are dropped without being formatted unless verbose logs are enabled
+    // (they are by default on dev/beta builds)
+    Logger.setMinLogLevel(if (ChanSettings.verboseLogs.get()) Log.VERBOSE else Log.INFO)
+
+    if (ChanSettings.writeLogsToFile.get()) {
+      // Logs are persisted so that they can be attached to bug/crash reports
+      Logger.enableFileSink(File(filesDir, LOGS_DIR_NAME))
+    }
+
     applicationScope = CoroutineScope(job + Dispatchers.Main + CoroutineName("Chan") + coroutineExceptionHandler)
 
     val isDev = isDevBuild()
@@ -264,6 +277,7 @@ class Chan : Application(), ActivityLifecycleCallbacks {
     applicationMigrationManager.performMigration(this)
 
     val okHttpProtocols = okHttpProtocols
+    val dnsCache = DnsCache(File(cacheDir, DnsCache.CACHE_FILE_NAME))
     val fileManager = provideApplicationFileManager()
     val imageSaverFileManagerWrapper =  provideImageSaverFileManagerWrapper()
     val threadDownloaderFileManagerWrapper =  provideThreadDownloaderFileManagerWrapper()
@@ -288,6 +302,8 @@ class Chan : Application(), ActivityLifecycleCallbacks {
       isDevFlavor = isDev,
       isLowRamDevice = ChanSettings.isLowRamDevice(),
       okHttpUseDnsOverHttps = ChanSettings.okHttpUseDnsOverHttps.get(),
+      okHttpRaceDnsResolvers = ChanSettings.okHttpRaceDnsResolvers.get(),
+      dnsCache = dnsCache,
       appConstants = appConstants
     )
 
@@ -306,6 +322,7 @@ class Chan : Application(), ActivityLifecycleCallbacks {
       .applicationCoroutineScope(applicationScope)
       .normalDnsSelectorFactory(normalDnsCreatorFactory)
       .dnsOverHttpsSelectorFactory(dnsOverHttpsCreatorFactory)
+      .dnsCache(dnsCache)
       .okHttpProtocols(okHttpProtocols)
       .appConstants(appConstants)
       .modelMainComponent(modelComponent)
@@ -392,6 +409,9 @@ class Chan : Application(), ActivityLifecycleCallbacks {
   }
 
   private fun onUnhandledException(exception: Throwable) {
+    // The process is about to die, make sure everything is written into logcat/log file
+    Logger.flush()
+
     val message = extractExceptionMessage(exception)
     val stacktrace = exception.stackTraceToString()
 
@@ -570,6 +590,7 @@ class Chan : Application(), ActivityLifecycleCallbacks {
   companion object {
     private const val TAG = "Chan"
     private const val ENABLE_STRICT_MODE = false
+    private const val LOGS_DIR_NAME = "logs"
 
     private lateinit var applicationComponent: ApplicationComponent
 
@@ -0,0 +1,218 @@
+package com.github.k1rakishou.chan.core.backup
+
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.KurobaDatabase
+import com.google.gson.Gson
+import java.io.File
+import java.io.IOException
+
+/**
+ * Installs a backup that was already staged (and verified) by [BackupReader]. The database is closed
+ * right before the first file is replaced, once that happened the app can't keep running no matter
+ * whether the installation succeeded or not, so every failure after that point is reported as
+ * [DatabaseClosedException].
+ * */
+class BackupInstaller(
+  private val gson: Gson,
+  private val databaseSnapshotter: DatabaseSnapshotter,
+  private val lastBackupManifestFile: File,
+  private val getDatabasePath: (String) -> File,
+  private val resolveOutputFile: (String) -> File?,
+  private val closeDatabase: suspend () -> Unit
+) {
+
+  suspend fun install(stagedBackup: BackupReader.StagedBackup) {
+    val backupManifest = stagedBackup.manifest
+    if (backupManifest == null) {
+      installLegacyBackup(stagedBackup.stagedFiles)
+    } else {
+      installVerifiedBackup(backupManifest, stagedBackup.stagedFiles)
+    }
+  }
+
+  private suspend fun installVerifiedBackup(backupManifest: BackupManifest, stagedFiles: Map<String, File>) {
+    val lastBackupManifest = BackupManifest.load(gson, lastBackupManifestFile)
+
+    Logger.d(TAG, "installVerifiedBackup() backupId=${backupManifest.backupId}, " +
+      "parentBackupId=${backupManifest.parentBackupId}, lastBackupId=${lastBackupManifest?.backupId}")
+
+    if (backupManifest.isIncremental) {
+      val lastBackupId = lastBackupManifest?.backupId
+      if (lastBackupId != backupManifest.parentBackupId && lastBackupId != backupManifest.backupId) {
+        throw IOException("This is an incremental backup, the backup it's based on " +
+          "(${backupManifest.parentBackupId}) must be imported first")
+      }
+
+      verifyIncrementalBase(backupManifest)
+    }
+
+    withDatabaseClosed {
+      backupManifest.databases.forEach { databaseEntry ->
+        val entryName = databaseEntry.entryName
+          ?: return@forEach
+        val stagedFile = stagedFiles[entryName]
+          ?: return@forEach
+
+        val databaseFile = getDatabasePath(databaseEntry.name)
+
+        if (databaseEntry.isFullSnapshot) {
+          installDatabase(stagedFile, databaseFile)
+        } else {
+          Logger.d(TAG, "Applying tables ${databaseEntry.includedTables} to '${databaseFile.absolutePath}'")
+          databaseSnapshotter.applyTables(databaseFile, stagedFile, databaseEntry.includedTables)
+        }
+      }
+
+      backupManifest.files.forEach { fileEntry ->
+        if (!fileEntry.included) {
+          return@forEach
+        }
+
+        val stagedFile = stagedFiles[fileEntry.name]
+          ?: return@forEach
+        val outputFile = resolveOutputFile(fileEntry.name)
+          ?: return@forEach
+
+        installFile(stagedFile, outputFile)
+        // So that the next incremental backup doesn't consider the restored files changed
+        outputFile.setLastModified(fileEntry.lastModified)
+      }
+
+      if (backupManifest.isIncremental && lastBackupManifest?.backupId == backupManifest.parentBackupId) {
+        val currentFileNames = backupManifest.files.mapTo(hashSetOf()) { fileEntry -> fileEntry.name }
+
+        lastBackupManifest.files.forEach { fileEntry ->
+          if (fileEntry.name in currentFileNames) {
+            return@forEach
+          }
+
+          Logger.d(TAG, "Deleting '${fileEntry.name}' which was deleted since the previous backup")
+          resolveOutputFile(fileEntry.name)?.delete()
+        }
+      }
+
+      BackupManifest.save(gson, lastBackupManifestFile, backupManifest)
+    }
+  }
+
+  private suspend fun installLegacyBackup(stagedFiles: Map<String, File>) {
+    // Old backups contain the WAL of the database as a separate file
+    val containsDatabaseSidecarFiles = stagedFiles.keys.any { entryName ->
+      entryName != KurobaDatabase.DATABASE_NAME && entryName.startsWith(KurobaDatabase.DATABASE_NAME)
+    }
+
+    withDatabaseClosed {
+      stagedFiles.forEach { (entryName, stagedFile) ->
+        val outputFile = resolveOutputFile(entryName)
+          ?: return@forEach
+
+        if (entryName == KurobaDatabase.DATABASE_NAME && !containsDatabaseSidecarFiles) {
+          installDatabase(stagedFile, outputFile)
+          return@forEach
+        }
+
+        installFile(stagedFile, outputFile)
+      }
+    }
+  }
+
+  private suspend fun withDatabaseClosed(install: () -> Unit) {
+    // Room must not have the database open while its files are replaced or merged into
+    closeDatabase()
+
+    try {
+      install()
+    } catch (error: Throwable) {
+      throw DatabaseClosedException(error)
+    }
+  }
+
+  /**
+   * An incremental backup only contains what changed since its parent backup so it can only be
+   * applied on top of the exact state the parent backup described. Every table and file that is not
+   * in the archive must still be the same as it was during the export, otherwise the result would
+   * be a mix of two different states.
+   * */
+  private fun verifyIncrementalBase(backupManifest: BackupManifest) {
+    backupManifest.databases.forEach { databaseEntry ->
+      if (databaseEntry.isFullSnapshot) {
+        return@forEach
+      }
+
+      val databaseFile = getDatabasePath(databaseEntry.name)
+
+      val userVersion = databaseSnapshotter.readUserVersion(databaseFile)
+      if (userVersion != databaseEntry.userVersion) {
+        throw IOException("Database version mismatch (backup: ${databaseEntry.userVersion}, " +
+          "current: $userVersion), import a full backup instead")
+      }
+
+      val includedTables = databaseEntry.includedTables.toSet()
+      val currentTableHashes = databaseSnapshotter.readTableHashes(databaseFile)
+
+      val modifiedTables = (databaseEntry.tableHashes.keys + currentTableHashes.keys).filter { tableName ->
+        tableName !in includedTables && databaseEntry.tableHashes[tableName] != currentTableHashes[tableName]
+      }
+
+      if (modifiedTables.isNotEmpty()) {
+        throw IOException("Tables ${modifiedTables} of '${databaseEntry.name}' were modified since the " +
+          "backup ${backupManifest.parentBackupId} was created, import a full backup instead")
+      }
+    }
+
+    val modifiedFiles = backupManifest.files.filter { fileEntry ->
+      if (fileEntry.included) {
+        return@filter false
+      }
+
+      // Files we don't know where to restore are never installed by any backup
+      val currentFile = resolveOutputFile(fileEntry.name)
+        ?: return@filter false
+
+      return@filter !currentFile.exists()
+        || currentFile.length() != fileEntry.size
+        || currentFile.lastModified() != fileEntry.lastModified
+    }
+
+    if (modifiedFiles.isNotEmpty()) {
+      throw IOException("Files ${modifiedFiles.map { fileEntry -> fileEntry.name }} were modified since the " +
+        "backup ${backupManifest.parentBackupId} was created, import a full backup instead")
+    }
+  }
+
+  private fun installDatabase(stagedFile: File, databaseFile: File) {
+    // A WAL left from the current database must not be applied on top of the restored one. The
+    // database was closed before so nothing is using these files anymore.
+    DatabaseSnapshotter.deleteSidecarFiles(databaseFile)
+    installFile(stagedFile, databaseFile)
+  }
+
+  private fun installFile(stagedFile: File, outputFile: File) {
+    val parentDir = outputFile.parentFile
+    if (parentDir != null && !parentDir.exists()) {
+      check(parentDir.mkdirs()) { "Failed to create ${parentDir.absolutePath}" }
+    }
+
+    // The staging directory is on the same partition so this is usually just a rename
+    if (!stagedFile.renameTo(outputFile)) {
+      stagedFile.copyTo(outputFile, overwrite = true, bufferSize = BUFFER_SIZE)
+    }
+
+    Logger.d(TAG, "Installed '${outputFile.absolutePath}'")
+  }
+
+  /**
+   * The installation failed after the database had already been closed (and some of the files may
+   * have already been replaced), the app has to be restarted.
+   * */
+  class DatabaseClosedException(cause: Throwable) : IOException(
+    "Failed to install the backup: ${cause.message ?: cause.javaClass.simpleName}",
+    cause
+  )
+
+  companion object {
+    private const val TAG = "BackupInstaller"
+    private const val BUFFER_SIZE = 64 * 1024
+  }
+
+}
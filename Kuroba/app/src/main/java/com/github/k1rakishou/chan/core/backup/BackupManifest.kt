@@ -0,0 +1,107 @@
+package com.github.k1rakishou.chan.core.backup
+
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.core_logger.Logger
+import com.google.gson.Gson
+import com.google.gson.annotations.SerializedName
+import java.io.File
+
+/**
+ * Describes the full state of the backed up data at the moment of the export, not only what is
+ * inside of the archive. An incremental backup only contains the entries that changed since the
+ * backup with [parentBackupId] but still lists every other entry (with [FileEntry.included] set to
+ * false) so that the next incremental backup can be compared against it.
+ * */
+data class BackupManifest(
+  @SerializedName("format_version")
+  val formatVersion: Int,
+  @SerializedName("backup_id")
+  val backupId: String,
+  @SerializedName("parent_backup_id")
+  val parentBackupId: String?,
+  @SerializedName("created_at")
+  val createdAt: Long,
+  @SerializedName("app_version_code")
+  val appVersionCode: Int,
+  @SerializedName("files")
+  val files: List<FileEntry>,
+  @SerializedName("databases")
+  val databases: List<DatabaseEntry>
+) {
+
+  val isIncremental: Boolean
+    get() = parentBackupId != null
+
+  data class FileEntry(
+    @SerializedName("name")
+    val name: String,
+    @SerializedName("size")
+    val size: Long,
+    @SerializedName("last_modified")
+    val lastModified: Long,
+    @SerializedName("sha256")
+    val sha256: String,
+    @SerializedName("included")
+    val included: Boolean
+  )
+
+  data class DatabaseEntry(
+    @SerializedName("name")
+    val name: String,
+    // Null when none of the tables changed since the parent backup
+    @SerializedName("entry_name")
+    val entryName: String?,
+    @SerializedName("size")
+    val size: Long,
+    @SerializedName("sha256")
+    val sha256: String?,
+    @SerializedName("user_version")
+    val userVersion: Int,
+    @SerializedName("table_hashes")
+    val tableHashes: Map<String, String>,
+    @SerializedName("included_tables")
+    val includedTables: List<String>
+  ) {
+    /**
+     * The archive contains the whole database which replaces the current one. Otherwise it only
+     * contains [includedTables] whose rows replace the rows of the same tables of the current
+     * database.
+     * */
+    val isFullSnapshot: Boolean
+      get() = entryName == name
+  }
+
+  companion object {
+    private const val TAG = "BackupManifest"
+
+    const val FORMAT_VERSION = 1
+    const val ENTRY_NAME = "backup_manifest.json"
+    const val INCREMENTAL_DATABASE_SUFFIX = ".incremental"
+
+    fun load(gson: Gson, file: File): BackupManifest? {
+      if (!file.exists()) {
+        return null
+      }
+
+      return try {
+        file.reader().use { reader -> gson.fromJson(reader, BackupManifest::class.java) }
+      } catch (error: Throwable) {
+        Logger.e(TAG, "Failed to read '${file.absolutePath}', error: ${error.errorMessageOrClassName()}")
+        null
+      }
+    }
+
+    fun save(gson: Gson, file: File, backupManifest: BackupManifest) {
+      file.parentFile?.mkdirs()
+
+      val tmpFile = File(file.parentFile, "${file.name}.tmp")
+      tmpFile.writeText(gson.toJson(backupManifest))
+
+      if (!tmpFile.renameTo(file)) {
+        tmpFile.delete()
+        Logger.e(TAG, "Failed to save '${file.absolutePath}'")
+      }
+    }
+  }
+
+}
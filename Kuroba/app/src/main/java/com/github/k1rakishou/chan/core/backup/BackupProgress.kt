@@ -0,0 +1,42 @@
+package com.github.k1rakishou.chan.core.backup
+
+data class BackupProgress(
+  val processedBytes: Long,
+  val totalBytes: Long
+) {
+  val percent: Int
+    get() {
+      if (totalBytes <= 0) {
+        return 0
+      }
+
+      return ((processedBytes * 100) / totalBytes).toInt().coerceIn(0, 100)
+    }
+}
+
+/**
+ * Only reports when the percentage changes so that the listener (which usually posts to the main
+ * thread) is not called for every written buffer.
+ * */
+internal class ProgressTracker(
+  private val totalBytes: Long,
+  private val onProgress: (BackupProgress) -> Unit
+) {
+  private var processedBytes = 0L
+  private var lastReportedPercent = -1
+
+  fun onBytesProcessed(bytes: Long) {
+    processedBytes += bytes
+    report()
+  }
+
+  fun report() {
+    val backupProgress = BackupProgress(processedBytes, totalBytes)
+    if (backupProgress.percent == lastReportedPercent) {
+      return
+    }
+
+    lastReportedPercent = backupProgress.percent
+    onProgress(backupProgress)
+  }
+}
@@ -0,0 +1,195 @@
+package com.github.k1rakishou.chan.core.backup
+
+import com.github.k1rakishou.core_logger.Logger
+import com.google.gson.Gson
+import okio.ByteString.Companion.toByteString
+import java.io.File
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.security.MessageDigest
+import java.util.zip.ZipInputStream
+
+/**
+ * Streams a backup archive into a staging directory. Nothing is installed from here, the caller only
+ * gets the staged files once every entry listed in the manifest was found and its checksum verified,
+ * so a truncated or corrupted backup can't leave the app half-restored. Backups created before the
+ * manifest existed are staged without verification.
+ * */
+class BackupReader(
+  private val gson: Gson
+) {
+
+  fun stage(
+    inputStream: InputStream,
+    stagingDir: File,
+    totalBytes: Long,
+    onProgress: (BackupProgress) -> Unit
+  ): StagedBackup {
+    val progressTracker = ProgressTracker(totalBytes, onProgress)
+    val countingInputStream = CountingInputStream(inputStream) { bytes -> progressTracker.onBytesProcessed(bytes) }
+
+    val stagedEntries = mutableMapOf<String, StagedEntry>()
+    var backupManifest: BackupManifest? = null
+
+    ZipInputStream(countingInputStream).use { zipInputStream ->
+      while (true) {
+        val zipEntry = zipInputStream.nextEntry
+          ?: break
+
+        val entryName = zipEntry.name
+
+        if (zipEntry.isDirectory) {
+          zipInputStream.closeEntry()
+          continue
+        }
+
+        if (entryName == BackupManifest.ENTRY_NAME) {
+          val json = zipInputStream.readBytes().toString(Charsets.UTF_8)
+          backupManifest = gson.fromJson(json, BackupManifest::class.java)
+
+          zipInputStream.closeEntry()
+          continue
+        }
+
+        if (!isSafeEntryName(entryName)) {
+          throw IOException("Malformed entry name: '$entryName'")
+        }
+
+        val stagedFile = File(stagingDir, entryName)
+        stagedFile.parentFile?.mkdirs()
+
+        stagedEntries[entryName] = stageEntry(zipInputStream, stagedFile)
+        zipInputStream.closeEntry()
+      }
+    }
+
+    val manifest = backupManifest
+    if (manifest != null) {
+      verify(manifest, stagedEntries)
+    } else {
+      Logger.d(TAG, "stage() no manifest found, legacy backup with ${stagedEntries.size} entries")
+    }
+
+    return StagedBackup(
+      manifest = manifest,
+      stagedFiles = stagedEntries.mapValues { (_, stagedEntry) -> stagedEntry.file }
+    )
+  }
+
+  private fun stageEntry(zipInputStream: ZipInputStream, stagedFile: File): StagedEntry {
+    val digest = MessageDigest.getInstance("SHA-256")
+    val buffer = ByteArray(BackupWriter.BUFFER_SIZE)
+    var size = 0L
+
+    stagedFile.outputStream().use { outputStream ->
+      while (true) {
+        val read = zipInputStream.read(buffer)
+        if (read < 0) {
+          break
+        }
+
+        digest.update(buffer, 0, read)
+        outputStream.write(buffer, 0, read)
+        size += read
+      }
+    }
+
+    return StagedEntry(stagedFile, size, digest.digest().toByteString().hex())
+  }
+
+  private fun verify(backupManifest: BackupManifest, stagedEntries: Map<String, StagedEntry>) {
+    // Gson doesn't respect Kotlin's nullability
+    @Suppress("SENSELESS_COMPARISON")
+    if (backupManifest.backupId == null || backupManifest.files == null || backupManifest.databases == null) {
+      throw IOException("Malformed backup manifest")
+    }
+
+    if (backupManifest.formatVersion > BackupManifest.FORMAT_VERSION) {
+      throw IOException("The backup was created by a newer version of the app " +
+        "(format version: ${backupManifest.formatVersion}), update the app first")
+    }
+
+    backupManifest.databases.forEach { databaseEntry ->
+      val entryName = databaseEntry.entryName
+        ?: return@forEach
+
+      verifyEntry(entryName, databaseEntry.size, databaseEntry.sha256, stagedEntries)
+    }
+
+    backupManifest.files.forEach { fileEntry ->
+      if (!fileEntry.included) {
+        return@forEach
+      }
+
+      verifyEntry(fileEntry.name, fileEntry.size, fileEntry.sha256, stagedEntries)
+    }
+
+    Logger.d(TAG, "verify() backupId=${backupManifest.backupId} all ${stagedEntries.size} entries verified")
+  }
+
+  private fun verifyEntry(
+    entryName: String,
+    expectedSize: Long,
+    expectedSha256: String?,
+    stagedEntries: Map<String, StagedEntry>
+  ) {
+    val stagedEntry = stagedEntries[entryName]
+      ?: throw IOException("Backup is missing entry '$entryName'")
+
+    if (stagedEntry.size != expectedSize || stagedEntry.sha256 != expectedSha256) {
+      throw IOException("Checksum mismatch for entry '$entryName', the backup is corrupted")
+    }
+  }
+
+  private fun isSafeEntryName(entryName: String): Boolean {
+    if (entryName.isEmpty() || entryName.startsWith("/") || entryName.contains('\\')) {
+      return false
+    }
+
+    return entryName.split('/').none { segment -> segment == ".." }
+  }
+
+  private class StagedEntry(
+    val file: File,
+    val size: Long,
+    val sha256: String
+  )
+
+  class StagedBackup(
+    // Null for the backups created before the manifest was introduced
+    val manifest: BackupManifest?,
+    // Entry name -> staged file
+    val stagedFiles: Map<String, File>
+  )
+
+  private class CountingInputStream(
+    inputStream: InputStream,
+    private val onBytesRead: (Long) -> Unit
+  ) : FilterInputStream(inputStream) {
+
+    override fun read(): Int {
+      val result = super.read()
+      if (result >= 0) {
+        onBytesRead(1)
+      }
+
+      return result
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+      val read = super.read(b, off, len)
+      if (read > 0) {
+        onBytesRead(read.toLong())
+      }
+
+      return read
+    }
+
+  }
+
+  companion object {
+    private const val TAG = "BackupReader"
+  }
+
+}
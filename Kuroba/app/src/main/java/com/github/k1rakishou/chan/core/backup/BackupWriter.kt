@@ -0,0 +1,250 @@
+package com.github.k1rakishou.chan.core.backup
+
+import com.github.k1rakishou.core_logger.Logger
+import com.google.gson.Gson
+import okio.ByteString.Companion.toByteString
+import java.io.File
+import java.io.OutputStream
+import java.security.MessageDigest
+import java.util.*
+import java.util.zip.Deflater
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+/**
+ * Streams a backup archive into an output stream. Databases are snapshotted first so the app may
+ * keep writing into them while the backup is being exported. When the manifest of the previous
+ * backup is passed to [write] only the files and the database tables that changed since then are
+ * written. The manifest (with the checksums of every written entry) is always the last entry of the archive.
+ * */
+class BackupWriter(
+  private val databaseSnapshotter: DatabaseSnapshotter,
+  private val gson: Gson
+) {
+
+  fun write(
+    outputStream: OutputStream,
+    sources: List<BackupSource>,
+    previousManifest: BackupManifest?,
+    workDir: File,
+    appVersionCode: Int,
+    onProgress: (BackupProgress) -> Unit
+  ): BackupManifest {
+    val snapshots = mutableListOf<File>()
+
+    try {
+      val databaseSources = sources.filterIsInstance<BackupSource.Database>()
+      val databasePlans = databaseSources.map { databaseSource ->
+        val snapshotFile = File(workDir, "snapshot_${databaseSource.name}")
+        snapshots += snapshotFile
+
+        planDatabase(databaseSource, snapshotFile, previousManifest)
+      }
+
+      val filePlans = sources
+        .filterIsInstance<BackupSource.RegularFile>()
+        .map { fileSource -> planFile(fileSource, previousManifest) }
+
+      val totalBytes = databasePlans.sumOf { plan -> if (plan.entryName != null) plan.snapshotFile.length() else 0L } +
+        filePlans.sumOf { plan -> if (plan.previousEntry == null) plan.source.file.length() else 0L }
+
+      val progressTracker = ProgressTracker(totalBytes, onProgress)
+      progressTracker.report()
+
+      val zipOutputStream = ZipOutputStream(outputStream)
+
+      val databaseEntries = databasePlans.map { plan ->
+        val writtenEntry = plan.entryName?.let { entryName ->
+          writeEntry(zipOutputStream, entryName, plan.snapshotFile, compress = true, progressTracker)
+        }
+
+        BackupManifest.DatabaseEntry(
+          name = plan.source.name,
+          entryName = plan.entryName,
+          size = writtenEntry?.size ?: 0L,
+          sha256 = writtenEntry?.sha256,
+          userVersion = plan.userVersion,
+          tableHashes = plan.tableHashes,
+          includedTables = plan.includedTables
+        )
+      }
+
+      val fileEntries = filePlans.map { plan ->
+        val source = plan.source
+
+        if (plan.previousEntry != null) {
+          return@map plan.previousEntry.copy(included = false)
+        }
+
+        // The modification time is read before writing so that a concurrent modification makes the
+        // next incremental backup include the file again
+        val lastModified = source.file.lastModified()
+        val writtenEntry = writeEntry(zipOutputStream, source.name, source.file, source.compress, progressTracker)
+
+        BackupManifest.FileEntry(
+          name = source.name,
+          size = writtenEntry.size,
+          lastModified = lastModified,
+          sha256 = writtenEntry.sha256,
+          included = true
+        )
+      }
+
+      val backupManifest = BackupManifest(
+        formatVersion = BackupManifest.FORMAT_VERSION,
+        backupId = UUID.randomUUID().toString(),
+        parentBackupId = previousManifest?.backupId,
+        createdAt = System.currentTimeMillis(),
+        appVersionCode = appVersionCode,
+        files = fileEntries,
+        databases = databaseEntries
+      )
+
+      zipOutputStream.setLevel(Deflater.DEFAULT_COMPRESSION)
+      zipOutputStream.putNextEntry(ZipEntry(BackupManifest.ENTRY_NAME))
+      zipOutputStream.write(gson.toJson(backupManifest).toByteArray())
+      zipOutputStream.closeEntry()
+      zipOutputStream.finish()
+
+      val includedFiles = fileEntries.count { fileEntry -> fileEntry.included }
+      Logger.d(TAG, "write() done, backupId=${backupManifest.backupId}, " +
+        "parentBackupId=${backupManifest.parentBackupId}, files=$includedFiles/${fileEntries.size}, " +
+        "totalBytes=$totalBytes")
+
+      return backupManifest
+    } finally {
+      snapshots.forEach { snapshotFile -> DatabaseSnapshotter.deleteDatabaseFiles(snapshotFile) }
+    }
+  }
+
+  private fun planDatabase(
+    databaseSource: BackupSource.Database,
+    snapshotFile: File,
+    previousManifest: BackupManifest?
+  ): DatabasePlan {
+    databaseSnapshotter.createSnapshot(databaseSource.file, snapshotFile)
+
+    val userVersion = databaseSnapshotter.readUserVersion(snapshotFile)
+    val tableHashes = databaseSnapshotter.readTableHashes(snapshotFile)
+
+    val previousEntry = previousManifest?.databases
+      ?.firstOrNull { databaseEntry -> databaseEntry.name == databaseSource.name }
+
+    // Tables can't be merged into a database with a different schema
+    if (previousEntry == null || previousEntry.userVersion != userVersion) {
+      return DatabasePlan(
+        source = databaseSource,
+        snapshotFile = snapshotFile,
+        entryName = databaseSource.name,
+        userVersion = userVersion,
+        tableHashes = tableHashes,
+        includedTables = tableHashes.keys.toList()
+      )
+    }
+
+    val changedTables = tableHashes
+      .filter { (tableName, hash) -> previousEntry.tableHashes[tableName] != hash }
+      .keys
+
+    if (changedTables.isNotEmpty()) {
+      databaseSnapshotter.retainTables(snapshotFile, changedTables)
+    }
+
+    Logger.d(TAG, "planDatabase(${databaseSource.name}) changedTables=$changedTables")
+
+    return DatabasePlan(
+      source = databaseSource,
+      snapshotFile = snapshotFile,
+      entryName = if (changedTables.isEmpty()) null else databaseSource.name + BackupManifest.INCREMENTAL_DATABASE_SUFFIX,
+      userVersion = userVersion,
+      tableHashes = tableHashes,
+      includedTables = changedTables.toList()
+    )
+  }
+
+  private fun planFile(fileSource: BackupSource.RegularFile, previousManifest: BackupManifest?): FilePlan {
+    val previousEntry = previousManifest?.files
+      ?.firstOrNull { fileEntry -> fileEntry.name == fileSource.name }
+      ?.takeIf { fileEntry ->
+        fileEntry.size == fileSource.file.length() && fileEntry.lastModified == fileSource.file.lastModified()
+      }
+
+    return FilePlan(fileSource, previousEntry)
+  }
+
+  private fun writeEntry(
+    zipOutputStream: ZipOutputStream,
+    entryName: String,
+    file: File,
+    compress: Boolean,
+    progressTracker: ProgressTracker
+  ): WrittenEntry {
+    val digest = MessageDigest.getInstance("SHA-256")
+    val buffer = ByteArray(BUFFER_SIZE)
+    var size = 0L
+
+    // Most of the time is spent compressing the databases, the fastest level still shrinks them
+    // several times. Deflating already compressed media only wastes time.
+    zipOutputStream.setLevel(if (compress) Deflater.BEST_SPEED else Deflater.NO_COMPRESSION)
+    zipOutputStream.putNextEntry(ZipEntry(entryName))
+
+    file.inputStream().use { inputStream ->
+      while (true) {
+        val read = inputStream.read(buffer)
+        if (read < 0) {
+          break
+        }
+
+        digest.update(buffer, 0, read)
+        zipOutputStream.write(buffer, 0, read)
+        size += read
+        progressTracker.onBytesProcessed(read.toLong())
+      }
+    }
+
+    zipOutputStream.closeEntry()
+    return WrittenEntry(size, digest.digest().toByteString().hex())
+  }
+
+  private class WrittenEntry(
+    val size: Long,
+    val sha256: String
+  )
+
+  private class DatabasePlan(
+    val source: BackupSource.Database,
+    val snapshotFile: File,
+    val entryName: String?,
+    val userVersion: Int,
+    val tableHashes: Map<String, String>,
+    val includedTables: List<String>
+  )
+
+  private class FilePlan(
+    val source: BackupSource.RegularFile,
+    // Not null when the file didn't change since the previous backup
+    val previousEntry: BackupManifest.FileEntry?
+  )
+
+  sealed class BackupSource {
+    abstract val name: String
+    abstract val file: File
+
+    data class Database(
+      override val name: String,
+      override val file: File
+    ) : BackupSource()
+
+    data class RegularFile(
+      override val name: String,
+      override val file: File,
+      val compress: Boolean = true
+    ) : BackupSource()
+  }
+
+  companion object {
+    private const val TAG = "BackupWriter"
+    const val BUFFER_SIZE = 64 * 1024
+  }
+
+}
@@ -0,0 +1,369 @@
+package com.github.k1rakishou.chan.core.backup
+
+import android.database.Cursor
+import android.database.DatabaseUtils
+import android.database.sqlite.SQLiteDatabase
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.core_logger.Logger
+import okio.ByteString.Companion.toByteString
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+
+/**
+ * Creates consistent copies of SQLite databases that are being written to and compares/merges them
+ * table by table. Works on its own connections so it never blocks the app's database.
+ * */
+class DatabaseSnapshotter {
+
+  /**
+   * Uses `VACUUM INTO` (SQLite 3.27+, Android 11+) which writes a transactionally consistent and
+   * already compacted copy. On older versions the database file is copied together with its WAL,
+   * the copy is checked and the whole thing is retried if the database was modified during the copy.
+   * Checkpointing the WAL before calling this makes the fallback faster.
+   * */
+  fun createSnapshot(databaseFile: File, snapshotFile: File) {
+    deleteDatabaseFiles(snapshotFile)
+    snapshotFile.parentFile?.mkdirs()
+
+    val vacuumed = openReadOnly(databaseFile).use { database ->
+      if (!supportsVacuumInto(database)) {
+        return@use false
+      }
+
+      try {
+        database.execSQL("VACUUM INTO ?", arrayOf(snapshotFile.absolutePath))
+        return@use true
+      } catch (error: Throwable) {
+        Logger.e(TAG, "createSnapshot() VACUUM INTO error: ${error.errorMessageOrClassName()}")
+        deleteDatabaseFiles(snapshotFile)
+        return@use false
+      }
+    }
+
+    if (vacuumed) {
+      Logger.d(TAG, "createSnapshot() '${databaseFile.name}' vacuumed into '${snapshotFile.absolutePath}'")
+      return
+    }
+
+    copySnapshot(databaseFile, snapshotFile)
+  }
+
+  fun readUserVersion(databaseFile: File): Int {
+    return openReadOnly(databaseFile).use { database -> database.version }
+  }
+
+  /**
+   * Hashes the schema and the contents of every table. Tables are read in rowid order in pages so
+   * that huge tables are not re-scanned for every cursor window.
+   * */
+  fun readTableHashes(databaseFile: File): Map<String, String> {
+    return openReadOnly(databaseFile).use { database ->
+      readTables(database).associate { table -> table.name to hashTable(database, table) }
+    }
+  }
+
+  /**
+   * Removes every table except [tablesToKeep] from a snapshot (and compacts it) so that only the
+   * changed tables end up in an incremental backup.
+   * */
+  fun retainTables(snapshotFile: File, tablesToKeep: Set<String>) {
+    openReadWrite(snapshotFile).use { database ->
+      readTables(database).forEach { table ->
+        if (table.name in tablesToKeep) {
+          return@forEach
+        }
+
+        if (table.name == SQLITE_SEQUENCE_TABLE) {
+          // Can't be dropped
+          database.execSQL("DELETE FROM $SQLITE_SEQUENCE_TABLE")
+          return@forEach
+        }
+
+        database.execSQL("DROP TABLE ${quote(table.name)}")
+      }
+
+      database.execSQL("VACUUM")
+    }
+  }
+
+  /**
+   * Replaces the rows of [tables] of [targetDatabaseFile] with the rows of the same tables of
+   * [sourceDatabaseFile] in one transaction. Both databases must have the same schema. Foreign keys
+   * are not enforced on this connection and triggers are dropped for the duration of the copy so
+   * the rows of the other tables are left untouched.
+   * */
+  fun applyTables(targetDatabaseFile: File, sourceDatabaseFile: File, tables: Collection<String>) {
+    if (tables.isEmpty()) {
+      return
+    }
+
+    // The app is restarted after an import so it doesn't matter that attaching a database makes
+    // Android switch the journal mode away from WAL
+    openReadWrite(targetDatabaseFile).use { database ->
+      database.execSQL("ATTACH DATABASE ? AS $SOURCE_ALIAS", arrayOf(sourceDatabaseFile.absolutePath))
+
+      try {
+        val sourceTables = readTables(database, SOURCE_ALIAS).associateBy { table -> table.name }
+        val triggers = readTriggers(database)
+
+        database.beginTransaction()
+        try {
+          triggers.forEach { trigger -> database.execSQL("DROP TRIGGER main.${quote(trigger.name)}") }
+
+          tables.forEach { tableName ->
+            val table = sourceTables[tableName]
+              ?: throw IOException("Table '$tableName' not found in '${sourceDatabaseFile.name}'")
+
+            val columns = readColumns(database, SOURCE_ALIAS, table).joinToString(separator = ", ")
+            val quotedName = quote(table.name)
+
+            database.execSQL("DELETE FROM main.$quotedName")
+            database.execSQL(
+              "INSERT INTO main.$quotedName ($columns) SELECT $columns FROM $SOURCE_ALIAS.$quotedName"
+            )
+          }
+
+          triggers.forEach { trigger -> database.execSQL(trigger.sql) }
+          database.setTransactionSuccessful()
+        } finally {
+          database.endTransaction()
+        }
+      } finally {
+        database.execSQL("DETACH DATABASE $SOURCE_ALIAS")
+      }
+    }
+  }
+
+  private fun copySnapshot(databaseFile: File, snapshotFile: File) {
+    val walFile = File(databaseFile.path + WAL_SUFFIX)
+    val snapshotWalFile = File(snapshotFile.path + WAL_SUFFIX)
+
+    repeat(MAX_COPY_ATTEMPTS) { attempt ->
+      val lastModifiedBefore = databaseFile.lastModified()
+      val lengthBefore = databaseFile.length()
+
+      // The WAL is copied after the database file so that pages which a concurrent checkpoint
+      // writes into the database file during the copy are still in the copied WAL
+      databaseFile.copyTo(snapshotFile, overwrite = true, bufferSize = BUFFER_SIZE)
+      if (walFile.exists() && walFile.length() > 0) {
+        walFile.copyTo(snapshotWalFile, overwrite = true, bufferSize = BUFFER_SIZE)
+      }
+
+      val unchanged = databaseFile.lastModified() == lastModifiedBefore
+        && databaseFile.length() == lengthBefore
+
+      // Opening the copy in the rollback journal mode also moves the copied WAL into it
+      if (unchanged && isIntact(snapshotFile)) {
+        deleteSidecarFiles(snapshotFile)
+        Logger.d(TAG, "createSnapshot() '${databaseFile.name}' copied into '${snapshotFile.absolutePath}'")
+        return
+      }
+
+      Logger.d(TAG, "createSnapshot() '${databaseFile.name}' was modified during copying, attempt: $attempt")
+      deleteDatabaseFiles(snapshotFile)
+    }
+
+    throw IOException("Failed to create a consistent snapshot of '${databaseFile.name}'")
+  }
+
+  private fun isIntact(databaseFile: File): Boolean {
+    return try {
+      openReadWrite(databaseFile).use { database ->
+        DatabaseUtils.stringForQuery(database, "PRAGMA quick_check", null).equals("ok", ignoreCase = true)
+      }
+    } catch (error: Throwable) {
+      Logger.e(TAG, "isIntact() error: ${error.errorMessageOrClassName()}")
+      false
+    }
+  }
+
+  private fun supportsVacuumInto(database: SQLiteDatabase): Boolean {
+    val version = DatabaseUtils.stringForQuery(database, "SELECT sqlite_version()", null)
+    val parts = version.split('.').map { part -> part.toIntOrNull() ?: 0 }
+
+    val major = parts.getOrElse(0) { 0 }
+    val minor = parts.getOrElse(1) { 0 }
+
+    return major > 3 || (major == 3 && minor >= VACUUM_INTO_MIN_MINOR_VERSION)
+  }
+
+  private fun readTables(database: SQLiteDatabase, schema: String = "main"): List<Table> {
+    val tables = mutableListOf<Table>()
+
+    database.rawQuery("SELECT name, sql FROM $schema.sqlite_master WHERE type = 'table'", null).use { cursor ->
+      while (cursor.moveToNext()) {
+        val name = cursor.getString(0)
+        val sql = cursor.getString(1) ?: ""
+
+        tables += Table(name, sql.startsWith("CREATE VIRTUAL TABLE", ignoreCase = true))
+      }
+    }
+
+    val virtualTableNames = tables.filter { table -> table.isVirtual }.map { table -> table.name }
+
+    return tables
+      .filter { table ->
+        // Managed by Android (contains the locale)
+        if (table.name == ANDROID_METADATA_TABLE) {
+          return@filter false
+        }
+
+        // sqlite_stat1 etc. are rebuilt by SQLite itself
+        if (table.name.startsWith("sqlite_") && table.name != SQLITE_SEQUENCE_TABLE) {
+          return@filter false
+        }
+
+        // Shadow tables of virtual (FTS) tables are maintained by the virtual tables themselves
+        return@filter virtualTableNames.none { virtualTableName -> table.name.startsWith("${virtualTableName}_") }
+      }
+      .sortedBy { table -> table.name }
+  }
+
+  private fun readTriggers(database: SQLiteDatabase): List<Trigger> {
+    val triggers = mutableListOf<Trigger>()
+
+    database.rawQuery("SELECT name, sql FROM main.sqlite_master WHERE type = 'trigger'", null).use { cursor ->
+      while (cursor.moveToNext()) {
+        triggers += Trigger(cursor.getString(0), cursor.getString(1))
+      }
+    }
+
+    return triggers
+  }
+
+  private fun readColumns(database: SQLiteDatabase, schema: String, table: Table): List<String> {
+    val columns = mutableListOf<String>()
+
+    if (table.isVirtual) {
+      // The rowid of FTS tables is not a declared column but it's referenced by other tables
+      columns += ROW_ID
+    }
+
+    database.rawQuery("PRAGMA $schema.table_info(${quote(table.name)})", null).use { cursor ->
+      val nameIndex = cursor.getColumnIndexOrThrow("name")
+
+      while (cursor.moveToNext()) {
+        columns += quote(cursor.getString(nameIndex))
+      }
+    }
+
+    return columns
+  }
+
+  private fun hashTable(database: SQLiteDatabase, table: Table): String {
+    val digest = MessageDigest.getInstance("SHA-256")
+    val columns = readColumns(database, "main", table)
+      .filter { column -> column != ROW_ID }
+
+    // A schema change must change the hash even when the table is empty
+    digest.update(table.name.toByteArray())
+    digest.update(columns.joinToString(separator = ",").toByteArray())
+
+    val quotedName = quote(table.name)
+    val selection = (listOf(ROW_ID) + columns).joinToString(separator = ", ")
+    var lastRowId: Long? = null
+
+    while (true) {
+      val where = if (lastRowId == null) "" else "WHERE $ROW_ID > $lastRowId"
+      var rowsRead = 0
+
+      database.rawQuery("SELECT $selection FROM $quotedName $where ORDER BY $ROW_ID LIMIT $ROWS_PER_PAGE", null).use { cursor ->
+        while (cursor.moveToNext()) {
+          lastRowId = cursor.getLong(0)
+
+          for (columnIndex in 0 until cursor.columnCount) {
+            updateDigest(digest, cursor, columnIndex)
+          }
+
+          ++rowsRead
+        }
+      }
+
+      if (rowsRead < ROWS_PER_PAGE) {
+        break
+      }
+    }
+
+    return digest.digest().toByteString().hex()
+  }
+
+  private fun updateDigest(digest: MessageDigest, cursor: Cursor, columnIndex: Int) {
+    val type = cursor.getType(columnIndex)
+    digest.update(type.toByte())
+
+    when (type) {
+      Cursor.FIELD_TYPE_NULL -> {
+        // Nothing to add
+      }
+      Cursor.FIELD_TYPE_INTEGER -> {
+        digest.update(ByteBuffer.allocate(8).putLong(cursor.getLong(columnIndex)).array())
+      }
+      Cursor.FIELD_TYPE_FLOAT -> {
+        val bits = java.lang.Double.doubleToRawLongBits(cursor.getDouble(columnIndex))
+        digest.update(ByteBuffer.allocate(8).putLong(bits).array())
+      }
+      Cursor.FIELD_TYPE_STRING -> {
+        updateDigestWithBytes(digest, cursor.getString(columnIndex).toByteArray())
+      }
+      Cursor.FIELD_TYPE_BLOB -> {
+        updateDigestWithBytes(digest, cursor.getBlob(columnIndex))
+      }
+    }
+  }
+
+  private fun updateDigestWithBytes(digest: MessageDigest, bytes: ByteArray) {
+    // The length makes sure that the values of neighbouring columns can't be shifted into each other
+    digest.update(ByteBuffer.allocate(4).putInt(bytes.size).array())
+    digest.update(bytes)
+  }
+
+  private fun openReadOnly(databaseFile: File): SQLiteDatabase {
+    // Read-only connections don't touch the journal mode of the database
+    return SQLiteDatabase.openDatabase(databaseFile.absolutePath, null, SQLiteDatabase.OPEN_READONLY)
+  }
+
+  private fun openReadWrite(databaseFile: File): SQLiteDatabase {
+    return SQLiteDatabase.openDatabase(databaseFile.absolutePath, null, SQLiteDatabase.OPEN_READWRITE)
+  }
+
+  private class Table(
+    val name: String,
+    val isVirtual: Boolean
+  )
+
+  private class Trigger(
+    val name: String,
+    val sql: String
+  )
+
+  companion object {
+    private const val TAG = "DatabaseSnapshotter"
+
+    private const val BUFFER_SIZE = 64 * 1024
+    private const val MAX_COPY_ATTEMPTS = 3
+    private const val VACUUM_INTO_MIN_MINOR_VERSION = 27
+    private const val ROWS_PER_PAGE = 1000
+
+    private const val SOURCE_ALIAS = "backup_source"
+    private const val ROW_ID = "rowid"
+    private const val ANDROID_METADATA_TABLE = "android_metadata"
+    private const val SQLITE_SEQUENCE_TABLE = "sqlite_sequence"
+
+    private const val WAL_SUFFIX = "-wal"
+    private val SIDECAR_SUFFIXES = arrayOf(WAL_SUFFIX, "-shm", "-journal")
+
+    fun deleteSidecarFiles(databaseFile: File) {
+      SIDECAR_SUFFIXES.forEach { suffix -> File(databaseFile.path + suffix).delete() }
+    }
+
+    fun deleteDatabaseFiles(databaseFile: File) {
+      databaseFile.delete()
+      deleteSidecarFiles(databaseFile)
+    }
+
+    private fun quote(name: String): String = "\"" + name.replace("\"", "\"\"") + "\""
+  }
+
+}
@@ -0,0 +1,95 @@
+package com.github.k1rakishou.chan.core.base.okhttp
+
+import androidx.annotation.VisibleForTesting
+import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.chan.Chan
+import com.github.k1rakishou.common.dns.CompositeDnsSelector
+import com.github.k1rakishou.common.dns.DnsCache
+import com.github.k1rakishou.common.dns.DnsCacheEventListener
+import com.github.k1rakishou.common.dns.DnsOverHttpsSelectorFactory
+import com.github.k1rakishou.common.dns.NormalDnsSelectorFactory
+import okhttp3.ConnectionPool
+import okhttp3.Dispatcher
+import okhttp3.Dns
+import okhttp3.EventListener
+import okhttp3.Interceptor
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import java.util.concurrent.TimeUnit
+
+/**
+ * The client all of the other clients ([ProxiedOkHttpClient], [DownloaderOkHttpClient],
+ * [CoilOkHttpClient]) are derived from (via [OkHttpClient.newBuilder]) so that they share the same
+ * connection pool, dispatcher and DNS. This way a host that is used by multiple clients (e.g. a CDN
+ * that serves both thumbnails and full images) needs only one set of connections.
+ *
+ * Per host request limits are enforced by [requestPriorityGate] (see [createRequestPriorityInterceptor])
+ * instead of the OkHttp [Dispatcher] because the latter has no notion of request priorities.
+ * */
+class BaseOkHttpClient(
+  private val normalDnsSelectorFactory: NormalDnsSelectorFactory,
+  private val dnsOverHttpsSelectorFactory: DnsOverHttpsSelectorFactory,
+  private val dnsCache: DnsCache,
+  private val okHttpProtocols: Chan.OkHttpProtocols
+) : CustomOkHttpClient {
+  val requestPriorityGate = RequestPriorityGate()
+
+  private val baseClient by lazy {
+    createBaseClient(okHttpProtocols.protocols, DnsCacheEventListener(dnsCache)) { okHttpClient ->
+      CompositeDnsSelector(
+        okHttpClient,
+        ChanSettings.okHttpUseDnsOverHttps.get(),
+        ChanSettings.okHttpRaceDnsResolvers.get(),
+        normalDnsSelectorFactory,
+        dnsOverHttpsSelectorFactory,
+        dnsCache
+      )
+    }
+  }
+
+  override fun okHttpClient(): OkHttpClient = baseClient
+
+  fun createRequestPriorityInterceptor(defaultPriority: RequestPriority): Interceptor {
+    return RequestPriorityInterceptor(requestPriorityGate, defaultPriority)
+  }
+
+  companion object {
+    private const val MAX_IDLE_CONNECTIONS = 16
+    private const val KEEP_ALIVE_DURATION_MINUTES = 5L
+
+    // The actual per host limits are enforced by RequestPriorityGate. These are only here so that
+    // the Dispatcher does not queue the requests before they get to the gate.
+    private const val MAX_REQUESTS = 256
+    private const val MAX_REQUESTS_PER_HOST = 64
+
+    /**
+     * [dnsFactory] receives the client without the custom DNS (which is what DNS over HTTPS should
+     * use to avoid resolving its own host with itself).
+     * */
+    @VisibleForTesting
+    fun createBaseClient(
+      protocols: List<Protocol>,
+      eventListener: EventListener = EventListener.NONE,
+      dnsFactory: (OkHttpClient) -> Dns
+    ): OkHttpClient {
+      val connectionPool = ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MINUTES, TimeUnit.MINUTES)
+
+      val dispatcher = Dispatcher().apply {
+        maxRequests = MAX_REQUESTS
+        maxRequestsPerHost = MAX_REQUESTS_PER_HOST
+      }
+
+      val okHttpClient = OkHttpClient.Builder()
+        .connectionPool(connectionPool)
+        .dispatcher(dispatcher)
+        .protocols(protocols)
+        .build()
+
+      return okHttpClient.newBuilder()
+        .dns(dnsFactory(okHttpClient))
+        .eventListener(eventListener)
+        .build()
+    }
+  }
+
+}
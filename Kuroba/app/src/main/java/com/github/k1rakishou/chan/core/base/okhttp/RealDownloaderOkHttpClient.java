@@ -3,14 +3,10 @@ package com.github.k1rakishou.chan.core.base.okhttp;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import com.github.k1rakishou.ChanSettings;
-import com.github.k1rakishou.chan.Chan;
 import com.github.k1rakishou.chan.core.helper.ProxyStorage;
 import com.github.k1rakishou.chan.core.manager.FirewallBypassManager;
 import com.github.k1rakishou.chan.core.net.KurobaProxySelector;
 import com.github.k1rakishou.chan.core.site.SiteResolver;
-import com.github.k1rakishou.common.dns.CompositeDnsSelector;
-import com.github.k1rakishou.common.dns.DnsOverHttpsSelectorFactory;
-import com.github.k1rakishou.common.dns.NormalDnsSelectorFactory;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -20,9 +16,7 @@ import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 
 public class RealDownloaderOkHttpClient implements DownloaderOkHttpClient {
-    private final NormalDnsSelectorFactory normalDnsSelectorFactory;
-    private final DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory;
-    private final Chan.OkHttpProtocols okHttpProtocols;
+    private final BaseOkHttpClient baseOkHttpClient;
     private final HttpLoggingInterceptorLazy httpLoggingInterceptorLazy;
     private final ProxyStorage proxyStorage;
     private final SiteResolver siteResolver;
@@ -32,17 +26,13 @@ public class RealDownloaderOkHttpClient implements DownloaderOkHttpClient {
 
     @Inject
     public RealDownloaderOkHttpClient(
-            NormalDnsSelectorFactory normalDnsSelectorFactory,
-            DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
-            Chan.OkHttpProtocols okHttpProtocols,
+            BaseOkHttpClient baseOkHttpClient,
             ProxyStorage proxyStorage,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
             FirewallBypassManager firewallBypassManager
     ) {
-        this.normalDnsSelectorFactory = normalDnsSelectorFactory;
-        this.dnsOverHttpsSelectorFactory = dnsOverHttpsSelectorFactory;
-        this.okHttpProtocols = okHttpProtocols;
+        this.baseOkHttpClient = baseOkHttpClient;
         this.proxyStorage = proxyStorage;
         this.httpLoggingInterceptorLazy = httpLoggingInterceptorLazy;
         this.siteResolver = siteResolver;
@@ -67,25 +57,15 @@ public class RealDownloaderOkHttpClient implements DownloaderOkHttpClient {
                             "Downloader"
                     );
 
-                    OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                    OkHttpClient.Builder builder = baseOkHttpClient.okHttpClient().newBuilder()
                             .readTimeout(5, SECONDS)
                             .writeTimeout(5, SECONDS)
                             .proxySelector(kurobaProxySelector)
-                            .protocols(okHttpProtocols.getProtocols())
+                            .addInterceptor(baseOkHttpClient.createRequestPriorityInterceptor(RequestPriority.FullMedia))
                             .addNetworkInterceptor(interceptor);
 
                     HttpLoggingInterceptorInstaller.install(builder, httpLoggingInterceptorLazy);
-                    OkHttpClient okHttpClient = builder.build();
-
-                    CompositeDnsSelector compositeDnsSelector = new CompositeDnsSelector(
-                            okHttpClient,
-                            ChanSettings.okHttpUseDnsOverHttps.get(),
-                            normalDnsSelectorFactory,
-                            dnsOverHttpsSelectorFactory
-                    );
-
-                    downloaderClient = okHttpClient.newBuilder()
-                            .dns(compositeDnsSelector)
+                    downloaderClient = builder
                             .addNetworkInterceptor(new GzipInterceptor())
                             .build();
                 }
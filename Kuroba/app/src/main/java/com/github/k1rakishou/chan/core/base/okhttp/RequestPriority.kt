@@ -0,0 +1,44 @@
+package com.github.k1rakishou.chan.core.base.okhttp
+
+import okhttp3.Request
+
+/**
+ * Priority of a request, from the most important to the least important. Requests of higher
+ * priority are started first when the requests to the same host are limited by [RequestPriorityGate].
+ * */
+enum class RequestPriority {
+  /**
+   * Catalogs/threads the user has just opened, posting, captchas, etc.
+   * */
+  Interactive,
+  VisibleThumbnail,
+  FullMedia,
+  Prefetch,
+  /**
+   * Bookmark watcher, filter watcher, thread downloader, etc.
+   * */
+  Background;
+
+  val isLowPriority: Boolean
+    get() = this == Prefetch || this == Background
+}
+
+fun Request.Builder.priority(requestPriority: RequestPriority): Request.Builder {
+  return tag(RequestPriority::class.java, requestPriority)
+}
+
+fun Request.priority(): RequestPriority? = tag(RequestPriority::class.java)
+
+/**
+ * Priority of a request that may change while the request is waiting for its turn, e.g. a prefetch
+ * download of the media the user has just opened. Takes precedence over the [RequestPriority] tag.
+ * */
+fun interface RequestPriorityProvider {
+  fun requestPriority(): RequestPriority
+}
+
+fun Request.Builder.priority(requestPriorityProvider: RequestPriorityProvider): Request.Builder {
+  return tag(RequestPriorityProvider::class.java, requestPriorityProvider)
+}
+
+fun Request.priorityProvider(): RequestPriorityProvider? = tag(RequestPriorityProvider::class.java)
@@ -0,0 +1,237 @@
+package com.github.k1rakishou.chan.core.base.okhttp
+
+import androidx.annotation.GuardedBy
+import java.io.InterruptedIOException
+import java.util.PriorityQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Limits the amount of concurrent requests per host and decides which of the waiting requests
+ * goes next based on their [RequestPriority]:
+ *  - Waiting requests of a host are started in the priority order (FIFO within the same priority).
+ *  - A couple of slots of every host are reserved for [RequestPriority.Interactive] and
+ *  [RequestPriority.VisibleThumbnail] requests so that a queue of media downloads can't delay them.
+ *  - Low priority requests (prefetch, background jobs) are not started while there are interactive
+ *  requests that are waiting for a slot or for the response headers, no matter the host.
+ *  - The priority of a waiting request may change (e.g. a prefetch of the media the user has just
+ *  opened), it keeps its place among the requests that were queued with the same priority.
+ *  - Hosts that were seen using a multiplexed protocol (HTTP/2) get a bigger limit since their
+ *  requests share one connection.
+ *  - Waiting stops when the call gets canceled or after [maxWaitMs] so that a permit that was never
+ *  released (a response that nobody closed) can't block the requests of a host forever.
+ * */
+class RequestPriorityGate(
+  private val maxRequestsPerHost: Int = MAX_REQUESTS_PER_HOST,
+  private val maxRequestsPerMultiplexedHost: Int = MAX_REQUESTS_PER_MULTIPLEXED_HOST,
+  private val reservedForHighPriority: Int = RESERVED_FOR_HIGH_PRIORITY,
+  private val maxWaitMs: Long = MAX_WAIT_MS
+) {
+  private val lock = Object()
+
+  @GuardedBy("lock")
+  private val hosts = mutableMapOf<String, HostState>()
+  @GuardedBy("lock")
+  private var pendingInteractiveRequests = 0
+  @GuardedBy("lock")
+  private var sequence = 0L
+
+  init {
+    require(maxRequestsPerHost > 0) { "Bad maxRequestsPerHost: $maxRequestsPerHost" }
+    require(maxRequestsPerMultiplexedHost > 0) { "Bad maxRequestsPerMultiplexedHost: $maxRequestsPerMultiplexedHost" }
+    require(reservedForHighPriority >= 0) { "Bad reservedForHighPriority: $reservedForHighPriority" }
+    require(maxWaitMs > 0) { "Bad maxWaitMs: $maxWaitMs" }
+  }
+
+  /**
+   * Blocks the current thread until the request is allowed to start. The returned [Permit] must be
+   * released once the request (including its body) is done. Throws [InterruptedIOException] when
+   * [isCanceled] starts returning true or the request has been waiting for longer than [maxWaitMs].
+   * [currentPriority] is re-checked while the request is waiting.
+   * */
+  @Throws(InterruptedIOException::class)
+  fun acquire(
+    host: String,
+    requestPriority: RequestPriority,
+    currentPriority: () -> RequestPriority = { requestPriority },
+    isCanceled: () -> Boolean = { false }
+  ): Permit {
+    synchronized(lock) {
+      val hostState = hosts.getOrPut(host) { HostState() }
+      var waiter = Waiter(requestPriority, sequence++)
+
+      hostState.waiting.add(waiter)
+      if (requestPriority == RequestPriority.Interactive) {
+        ++pendingInteractiveRequests
+      }
+
+      val waitStartedAt = System.nanoTime()
+
+      try {
+        while (!canStart(hostState, waiter)) {
+          if (isCanceled()) {
+            giveUp(hostState, waiter)
+            throw InterruptedIOException("Canceled while waiting for a request slot")
+          }
+
+          val newPriority = currentPriority()
+          if (newPriority != waiter.requestPriority) {
+            waiter = changePriority(hostState, waiter, newPriority)
+            continue
+          }
+
+          val waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStartedAt)
+          if (waitedMs >= maxWaitMs) {
+            giveUp(hostState, waiter)
+            throw InterruptedIOException("Timed out waiting for a request slot of $host")
+          }
+
+          // Cancellation and priority changes don't notify the lock so they are checked periodically
+          lock.wait(Math.min(CANCELLATION_CHECK_INTERVAL_MS, maxWaitMs - waitedMs))
+        }
+      } catch (error: InterruptedException) {
+        giveUp(hostState, waiter)
+        throw InterruptedIOException("Interrupted while waiting for a request slot")
+      }
+
+      hostState.waiting.remove(waiter)
+      hostState.running++
+
+      // The next waiter may be allowed to start too
+      lock.notifyAll()
+      return Permit(host, waiter.requestPriority)
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun changePriority(hostState: HostState, waiter: Waiter, newPriority: RequestPriority): Waiter {
+    hostState.waiting.remove(waiter)
+    if (waiter.requestPriority == RequestPriority.Interactive) {
+      --pendingInteractiveRequests
+    }
+
+    // Same sequence so that the request doesn't lose its place in the queue
+    val newWaiter = Waiter(newPriority, waiter.sequence)
+    hostState.waiting.add(newWaiter)
+    if (newPriority == RequestPriority.Interactive) {
+      ++pendingInteractiveRequests
+    }
+
+    lock.notifyAll()
+    return newWaiter
+  }
+
+  @GuardedBy("lock")
+  private fun giveUp(hostState: HostState, waiter: Waiter) {
+    hostState.waiting.remove(waiter)
+    if (waiter.requestPriority == RequestPriority.Interactive) {
+      --pendingInteractiveRequests
+    }
+
+    lock.notifyAll()
+  }
+
+  fun onProtocolKnown(host: String, isMultiplexed: Boolean) {
+    synchronized(lock) {
+      val hostState = hosts[host]
+        ?: return
+
+      if (hostState.isMultiplexed != isMultiplexed) {
+        hostState.isMultiplexed = isMultiplexed
+        lock.notifyAll()
+      }
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun canStart(hostState: HostState, waiter: Waiter): Boolean {
+    if (hostState.waiting.peek() !== waiter) {
+      return false
+    }
+
+    if (waiter.requestPriority.isLowPriority && pendingInteractiveRequests > 0) {
+      return false
+    }
+
+    val hostLimit = if (hostState.isMultiplexed) maxRequestsPerMultiplexedHost else maxRequestsPerHost
+    val limit = if (waiter.requestPriority <= RequestPriority.VisibleThumbnail) {
+      hostLimit
+    } else {
+      Math.max(1, hostLimit - reservedForHighPriority)
+    }
+
+    return hostState.running < limit
+  }
+
+  inner class Permit(
+    private val host: String,
+    val requestPriority: RequestPriority
+  ) {
+    @GuardedBy("lock")
+    private var responseStarted = false
+    @GuardedBy("lock")
+    private var released = false
+
+    /**
+     * Called once the response headers are received. Low priority requests don't have to wait for
+     * this request anymore.
+     * */
+    fun onResponseStarted() {
+      synchronized(lock) {
+        if (responseStarted) {
+          return
+        }
+
+        responseStarted = true
+
+        if (requestPriority == RequestPriority.Interactive) {
+          --pendingInteractiveRequests
+          lock.notifyAll()
+        }
+      }
+    }
+
+    fun release() {
+      synchronized(lock) {
+        if (released) {
+          return
+        }
+
+        onResponseStarted()
+        released = true
+        hosts[host]?.let { hostState -> hostState.running-- }
+
+        lock.notifyAll()
+      }
+    }
+  }
+
+  private class HostState {
+    val waiting = PriorityQueue<Waiter>()
+    var running = 0
+    var isMultiplexed = false
+  }
+
+  private class Waiter(
+    val requestPriority: RequestPriority,
+    val sequence: Long
+  ) : Comparable<Waiter> {
+    override fun compareTo(other: Waiter): Int {
+      val result = requestPriority.compareTo(other.requestPriority)
+      if (result != 0) {
+        return result
+      }
+
+      return sequence.compareTo(other.sequence)
+    }
+  }
+
+  companion object {
+    // Same as most of the browsers
+    private const val MAX_REQUESTS_PER_HOST = 6
+    private const val MAX_REQUESTS_PER_MULTIPLEXED_HOST = 24
+    private const val RESERVED_FOR_HIGH_PRIORITY = 2
+    private const val MAX_WAIT_MS = 60_000L
+    private const val CANCELLATION_CHECK_INTERVAL_MS = 250L
+  }
+
+}
@@ -0,0 +1,96 @@
+package com.github.k1rakishou.chan.core.base.okhttp
+
+import okhttp3.Interceptor
+import okhttp3.MediaType
+import okhttp3.Protocol
+import okhttp3.Response
+import okhttp3.ResponseBody
+import okio.BufferedSource
+import okio.ForwardingSource
+import okio.buffer
+
+/**
+ * Makes every request wait for its turn in [requestPriorityGate]. Requests without a [RequestPriority]
+ * or a [RequestPriorityProvider] tag get [defaultPriority]. Interactive requests (which have small bodies) give up their slot once
+ * the response headers are received, other requests hold it until the response body is closed.
+ * Responses that have nothing worth downloading (HEAD requests, error responses, empty bodies) give
+ * it up right away too, callers often don't bother closing them.
+ * */
+class RequestPriorityInterceptor(
+  private val requestPriorityGate: RequestPriorityGate,
+  private val defaultPriority: RequestPriority
+) : Interceptor {
+
+  override fun intercept(chain: Interceptor.Chain): Response {
+    val request = chain.request()
+    val host = "${request.url.host}:${request.url.port}"
+    val requestPriorityProvider = request.priorityProvider()
+    val requestPriority = requestPriorityProvider?.requestPriority() ?: request.priority() ?: defaultPriority
+
+    val permit = requestPriorityGate.acquire(
+      host = host,
+      requestPriority = requestPriority,
+      currentPriority = { requestPriorityProvider?.requestPriority() ?: requestPriority },
+      isCanceled = { chain.call().isCanceled() }
+    )
+
+    val response = try {
+      chain.proceed(request)
+    } catch (error: Throwable) {
+      permit.release()
+      throw error
+    }
+
+    val isMultiplexed = response.protocol == Protocol.HTTP_2 || response.protocol == Protocol.H2_PRIOR_KNOWLEDGE
+    requestPriorityGate.onProtocolKnown(host, isMultiplexed)
+    permit.onResponseStarted()
+
+    val responseBody = response.body
+    if (
+      responseBody == null
+      || permit.requestPriority == RequestPriority.Interactive
+      || hasNothingToDownload(response, responseBody)
+    ) {
+      permit.release()
+      return response
+    }
+
+    return response.newBuilder()
+      .body(PermitReleasingResponseBody(responseBody, permit))
+      .build()
+  }
+
+  private fun hasNothingToDownload(response: Response, responseBody: ResponseBody): Boolean {
+    return response.request.method == "HEAD" || !response.isSuccessful || responseBody.contentLength() == 0L
+  }
+
+  private class PermitReleasingResponseBody(
+    private val delegate: ResponseBody,
+    private val permit: RequestPriorityGate.Permit
+  ) : ResponseBody() {
+    private val source by lazy {
+      object : ForwardingSource(delegate.source()) {
+        override fun close() {
+          try {
+            super.close()
+          } finally {
+            permit.release()
+          }
+        }
+      }.buffer()
+    }
+
+    override fun contentType(): MediaType? = delegate.contentType()
+    override fun contentLength(): Long = delegate.contentLength()
+    override fun source(): BufferedSource = source
+
+    override fun close() {
+      try {
+        delegate.close()
+      } finally {
+        permit.release()
+      }
+    }
+  }
+
+}
@@ -168,15 +168,31 @@ class FileCacheV2(
       throw IllegalAccessException("Cannot prefetch inlined files! url = $imageUrl")
     }
 
-    val url = imageUrl.toString()
+    // Prefetch downloads always have default extra info (no file size, no file hash)
+    return enqueueMediaPrefetchRequest(
+      url = imageUrl,
+      cacheFileType = cacheFileType,
+      extraInfo = DownloadRequestExtraInfo()
+    )
+  }
+
+  /**
+   * Same as the other [enqueueMediaPrefetchRequest] but for media that is not a [ChanPostImage]
+   * (e.g. the media viewer pages). Returns null when the file is already being downloaded.
+   * */
+  fun enqueueMediaPrefetchRequest(
+    url: HttpUrl,
+    cacheFileType: CacheFileType,
+    extraInfo: DownloadRequestExtraInfo
+  ): CancelableDownload? {
+    val urlString = url.toString()
 
     val (alreadyActive, cancelableDownload) = getOrCreateCancelableDownload(
-      url = url,
+      url = urlString,
       callback = null,
       isGalleryBatchDownload = true,
       isPrefetchDownload = true,
-      // Prefetch downloads always have default extra info (no file size, no file hash)
-      extraInfo = DownloadRequestExtraInfo(),
+      extraInfo = extraInfo,
       cacheFileType = cacheFileType
     )
 
@@ -184,7 +200,7 @@ class FileCacheV2(
       return null
     }
 
-    normalRequestQueue.onNext(url)
+    normalRequestQueue.onNext(urlString)
     return cancelableDownload
   }
 
@@ -222,7 +238,7 @@ class FileCacheV2(
       return cancelableDownload
     }
 
-    log(TAG, "Downloading a file, url=$url")
+    log(TAG) { "Downloading a file, url=$url" }
     normalRequestQueue.onNext(url)
 
     return cancelableDownload
@@ -239,14 +255,21 @@ class FileCacheV2(
     return synchronized(activeDownloads) {
       val prevRequest = activeDownloads.get(url)
       if (prevRequest != null) {
-        log(TAG, "Request $url is already active, re-subscribing to it, " +
-          "state=${prevRequest.cancelableDownload.getState()}")
+        log(TAG) {
+          "Request $url is already active, re-subscribing to it, " +
+            "state=${prevRequest.cancelableDownload.getState()}"
+        }
 
         val prevCancelableDownload = prevRequest.cancelableDownload
         if (callback != null) {
           prevCancelableDownload.addCallback(callback)
         }
 
+        if (!isGalleryBatchDownload && !isPrefetchDownload) {
+          // Somebody is waiting for this file right now, it's not a prefetch anymore
+          prevCancelableDownload.upgradeToRegularDownload()
+        }
+
         // true means that this request has already been started before and hasn't yet
         // completed so we can just resubscribe to it instead of creating a new one
         return@synchronized true to prevCancelableDownload
@@ -300,10 +323,12 @@ class FileCacheV2(
 
       when (result) {
         is FileDownloadResult.Start -> {
-          log(TAG, "Download (${request}) has started. " +
-            "Chunks count = ${result.chunksCount}. " +
-            "Network class = $networkClass. " +
-            "Downloads = $activeDownloadsCount")
+          log(TAG) {
+            "Download (${request}) has started. " +
+              "Chunks count = ${result.chunksCount}. " +
+              "Network class = $networkClass. " +
+              "Downloads = $activeDownloadsCount"
+          }
 
           // Start is not a terminal event so we don't want to remove request from the
           // activeDownloads
@@ -331,15 +356,16 @@ class FileCacheV2(
           val downloadedString = ChanPostUtils.getReadableFileSize(downloaded)
           val totalString = ChanPostUtils.getReadableFileSize(total)
 
-          log(TAG, "Success (" +
-            "cacheFileType = cacheFileType, " +
-            "downloaded = ${downloadedString} ($downloaded B), " +
-            "total = ${totalString} ($total B), " +
-            "took ${result.requestTime}ms, " +
-            "network class = $networkClass, " +
-            "downloads = $activeDownloadsCount" +
-            ") for request ${request}"
-          )
+          log(TAG) {
+            "Success (" +
+              "cacheFileType = cacheFileType, " +
+              "downloaded = ${downloadedString} ($downloaded B), " +
+              "total = ${totalString} ($total B), " +
+              "took ${result.requestTime}ms, " +
+              "network class = $networkClass, " +
+              "downloads = $activeDownloadsCount" +
+              ") for request ${request}"
+          }
 
           // Trigger cache trimmer after a file has been successfully downloaded
           cacheHandler.get().fileWasAdded(
@@ -365,12 +391,12 @@ class FileCacheV2(
             val downloadedString = ChanPostUtils.getReadableFileSize(result.downloaded)
             val totalString = ChanPostUtils.getReadableFileSize(chunkSize)
 
-            log(TAG,
+            log(TAG) {
               "Progress " +
                 "chunkIndex = ${result.chunkIndex}, downloaded: (${downloadedString}) " +
                 "(${result.downloaded} B) / ${totalString} (${chunkSize} B), " +
                 "${percents}%) for request ${request}"
-            )
+            }
           }
 
           // Progress is not a terminal event so we don't want to remove request from the
@@ -407,11 +433,13 @@ class FileCacheV2(
             "stopped"
           }
 
-          log(TAG, "Request ${request} $causeText, " +
-            "downloaded = $downloaded, " +
-            "total = $total, " +
-            "network class = $networkClass, " +
-            "downloads = $activeDownloadsCount")
+          log(TAG) {
+            "Request ${request} $causeText, " +
+              "downloaded = $downloaded, " +
+              "total = $total, " +
+              "network class = $networkClass, " +
+              "downloads = $activeDownloadsCount"
+          }
 
           resultHandler(url, request, true) {
             if (isCanceled) {
@@ -579,7 +607,7 @@ class FileCacheV2(
       return
     }
 
-    log(TAG, "Purging url=${url}, file=${output.absolutePath}")
+    log(TAG) { "Purging url=${url}, file=${output.absolutePath}" }
 
     if (!cacheHandler.get().deleteCacheFile(request.cacheFileType, output)) {
       logError(TAG, "Could not delete the file in purgeOutput, output = ${output.absolutePath}")
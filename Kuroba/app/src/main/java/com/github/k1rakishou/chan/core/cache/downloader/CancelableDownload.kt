@@ -1,5 +1,6 @@
 package com.github.k1rakishou.chan.core.cache.downloader
 
+import com.github.k1rakishou.chan.core.base.okhttp.RequestPriority
 import com.github.k1rakishou.chan.core.cache.FileCacheListener
 import com.github.k1rakishou.core_logger.Logger
 import java.util.concurrent.ExecutorService
@@ -12,9 +13,13 @@ import java.util.concurrent.atomic.AtomicReference
  * */
 class CancelableDownload(
   val url: String,
-  val downloadType: DownloadType,
+  downloadType: DownloadType,
   private val requestCancellationThread: ExecutorService
 ) {
+  @Volatile
+  var downloadType: DownloadType = downloadType
+    private set
+
   private val state: AtomicReference<DownloadState> = AtomicReference(DownloadState.Running)
   private val callbacks: MutableMap<Class<*>, FileCacheListener> = mutableMapOf()
 
@@ -27,6 +32,28 @@ class CancelableDownload(
   fun isRunning(): Boolean = state.get() == DownloadState.Running
   fun getState(): DownloadState = state.get()
 
+  fun requestPriority(): RequestPriority {
+    if (downloadType.isAnyKindOfMultiFileDownload()) {
+      // Prefetch and gallery batch downloads must not slow down the media the user is looking at
+      return RequestPriority.Prefetch
+    }
+
+    return RequestPriority.FullMedia
+  }
+
+  /**
+   * Called when a regular download (e.g. the media view of the page the user has just opened)
+   * attaches to a prefetch download. The download gets the regular priority and can be canceled
+   * with the regular [cancel] from now on.
+   * */
+  fun upgradeToRegularDownload() {
+    if (!downloadType.isAnyKindOfMultiFileDownload()) {
+      return
+    }
+
+    downloadType = DownloadType(isPrefetchDownload = false, isGalleryBatchDownload = false)
+  }
+
   @Synchronized
   fun addCallback(callback: FileCacheListener) {
     if (state.get() != DownloadState.Running) {
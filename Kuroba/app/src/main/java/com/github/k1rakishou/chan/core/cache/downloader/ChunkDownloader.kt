@@ -1,6 +1,8 @@
 package com.github.k1rakishou.chan.core.cache.downloader
 
 import com.github.k1rakishou.chan.core.base.okhttp.RealDownloaderOkHttpClient
+import com.github.k1rakishou.chan.core.base.okhttp.RequestPriorityProvider
+import com.github.k1rakishou.chan.core.base.okhttp.priority
 import com.github.k1rakishou.chan.core.cache.downloader.DownloaderUtils.isCancellationError
 import com.github.k1rakishou.chan.core.site.SiteResolver
 import com.github.k1rakishou.chan.utils.BackgroundUtils
@@ -36,11 +38,14 @@ internal class ChunkDownloader(
     }
 
     if (verboseLogs) {
-      log(TAG, "Start downloading url=$url, chunk ${chunk.start}..${chunk.end}")
+      log(TAG) { "Start downloading url=$url, chunk ${chunk.start}..${chunk.end}" }
     }
 
+    // Re-checked while the request is waiting for its turn since a prefetch download may be
+    // upgraded to a regular one
     val requestBuilder = Request.Builder()
       .url(url)
+      .priority(RequestPriorityProvider { request.cancelableDownload.requestPriority() })
 
     siteResolver.findSiteForUrl(url)?.let { site ->
       site.requestModifier().modifyFullImageGetRequest(site, requestBuilder)
@@ -71,8 +76,10 @@ internal class ChunkDownloader(
         BackgroundUtils.ensureBackgroundThread()
 
         if (!call.isCanceled()) {
-          log(TAG, "Disposing OkHttp Call for CHUNKED request ${request} via " +
-              "manual canceling (${chunk.start}..${chunk.end})")
+          log(TAG) {
+            "Disposing OkHttp Call for CHUNKED request ${request} via " +
+              "manual canceling (${chunk.start}..${chunk.end})"
+          }
 
           call.cancel()
         }
@@ -104,8 +111,10 @@ internal class ChunkDownloader(
           val diff = System.currentTimeMillis() - startTime
           val exceptionMessage = e.message ?: "No message"
 
-          log(TAG, "Couldn't get chunk response, reason = ${e.javaClass.simpleName} ($exceptionMessage) " +
-              "($url) ${chunk.start}..${chunk.end}, time = ${diff}ms")
+          log(TAG) {
+            "Couldn't get chunk response, reason = ${e.javaClass.simpleName} ($exceptionMessage) " +
+              "($url) ${chunk.start}..${chunk.end}, time = ${diff}ms"
+          }
 
           if (!isCancellationError(e)) {
             serializedEmitter.tryOnError(e)
@@ -122,7 +131,7 @@ internal class ChunkDownloader(
         override fun onResponse(call: Call, response: Response) {
           if (verboseLogs) {
             val diff = System.currentTimeMillis() - startTime
-            log(TAG, "Got chunk response in ($url) ${chunk.start}..${chunk.end} in ${diff}ms")
+            log(TAG) { "Got chunk response in ($url) ${chunk.start}..${chunk.end} in ${diff}ms" }
           }
 
           serializedEmitter.onNext(response)
@@ -25,8 +25,10 @@ internal class ChunkMerger(
 
     return Flowable.fromCallable {
       if (verboseLogs) {
-        log(TAG, "mergeChunksIntoCacheFile called ($url), " +
-          "chunks count = ${chunkSuccessEvents.size}")
+        log(TAG) {
+          "mergeChunksIntoCacheFile called ($url), " +
+            "chunks count = ${chunkSuccessEvents.size}"
+        }
       }
 
       val isRunning = activeDownloads.get(url)?.cancelableDownload?.isRunning() ?: false
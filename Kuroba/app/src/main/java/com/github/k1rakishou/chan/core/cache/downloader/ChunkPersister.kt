@@ -43,7 +43,7 @@ internal class ChunkPersister(
 
       try {
         if (verboseLogs) {
-          log(TAG, "storeChunkInFile($chunkIndex) ($url) called for chunk ${chunk.start}..${chunk.end}")
+          log(TAG) { "storeChunkInFile($chunkIndex) ($url) called for chunk ${chunk.start}..${chunk.end}" }
         }
 
         if (chunk.isWholeFile() && totalChunksCount > 1) {
@@ -102,7 +102,7 @@ internal class ChunkPersister(
             }
           }
 
-          log(TAG, "storeChunkInFile(${chunkIndex}) success, url=$url, chunk ${chunk.start}..${chunk.end}")
+          log(TAG) { "storeChunkInFile(${chunkIndex}) success, url=$url, chunk ${chunk.start}..${chunk.end}" }
         } catch (error: Throwable) {
           deleteChunkFile(chunkCacheFile)
           throw error
@@ -137,7 +137,7 @@ internal class ChunkPersister(
     // If totalChunksCount == 1 then there is nothing else to stop so we can just emit
     // one error
     if (isStoppedOrCanceled || totalChunksCount > 1 && error !is IOException) {
-      log(TAG, "handleErrors($chunkIndex) ($url) cancel for chunk ${chunk.start}..${chunk.end}")
+      log(TAG) { "handleErrors($chunkIndex) ($url) cancel for chunk ${chunk.start}..${chunk.end}" }
 
       // First emit an error
       if (isStoppedOrCanceled) {
@@ -159,7 +159,7 @@ internal class ChunkPersister(
         DownloadState.Stopped -> activeDownloads.get(url)?.cancelableDownload?.stop()
       }.exhaustive
     } else {
-      log(TAG, "handleErrors($chunkIndex) ($url) fail for chunk ${chunk.start}..${chunk.end}")
+      log(TAG) { "handleErrors($chunkIndex) ($url) fail for chunk ${chunk.start}..${chunk.end}" }
       serializedEmitter.tryOnError(error)
     }
   }
@@ -250,7 +250,7 @@ internal class ChunkPersister(
       }
 
       if (verboseLogs) {
-        log(TAG, "pipeChunk($chunkIndex) ($url) SUCCESS for chunk ${chunk.start}..${chunk.end}")
+        log(TAG) { "pipeChunk($chunkIndex) ($url) SUCCESS for chunk ${chunk.start}..${chunk.end}" }
       }
 
       serializedEmitter.onNext(
@@ -61,9 +61,9 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
     return Flowable.concat(
       Flowable.just(FileDownloadResult.Start(chunksCount)),
       Flowable.defer { downloadInternal(url, chunks, partialContentCheckResult, output) }
-        .doOnSubscribe { log(TAG, "Starting downloading ($url)") }
+        .doOnSubscribe { log(TAG) { "Starting downloading ($url)" } }
         .doOnComplete {
-          log(TAG, "Completed downloading ($url)")
+          log(TAG) { "Completed downloading ($url)" }
           removeChunksFromDisk(url)
         }
         .doOnError { error ->
@@ -129,7 +129,7 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
       ) ?: continue
 
       if (chunkFile.delete()) {
-        log(TAG, "Deleted chunk file ${chunkFile.absolutePath}")
+        log(TAG) { "Deleted chunk file ${chunkFile.absolutePath}" }
       } else {
         logError(TAG, "Couldn't delete chunk file ${chunkFile.absolutePath}")
       }
@@ -147,7 +147,7 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
     BackgroundUtils.ensureBackgroundThread()
 
     if (verboseLogs) {
-      log(TAG, "File ($url) was split into chunks: ${chunks}")
+      log(TAG) { "File ($url) was split into chunks: ${chunks}" }
     }
 
     if (!partialContentCheckResult.couldDetermineFileSize() && chunks.size != 1) {
@@ -321,8 +321,10 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
 
         // Only use retry-on-IO-error with batch gallery downloads
         if (isGalleryBatchDownload && retry) {
-          log(TAG, "Retrying chunk ($chunk) for url $url, " +
-            "error = ${error.javaClass.simpleName}, msg = ${error.message}")
+          log(TAG) {
+            "Retrying chunk ($chunk) for url $url, " +
+              "error = ${error.javaClass.simpleName}, msg = ${error.message}"
+          }
         }
 
         retry
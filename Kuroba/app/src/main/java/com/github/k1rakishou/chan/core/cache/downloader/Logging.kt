@@ -1,10 +1,17 @@
 package com.github.k1rakishou.chan.core.cache.downloader
 
+import android.util.Log
 import com.github.k1rakishou.common.errorMessageOrClassName
 import com.github.k1rakishou.core_logger.Logger
 
-internal fun log(tag: String, message: String) {
-  Logger.d(tag, String.format("[%s]: %s", Thread.currentThread().name, message))
+/**
+ * [message] is only invoked when debug logs are enabled so that hot paths don't build log
+ * strings for nothing.
+ * */
+internal inline fun log(tag: String, message: () -> String) {
+  if (Logger.isLoggable(Log.DEBUG)) {
+    Logger.d(tag, "[${Thread.currentThread().name}]: ${message()}")
+  }
 }
 
 internal fun logError(tag: String, message: String, error: Throwable? = null) {
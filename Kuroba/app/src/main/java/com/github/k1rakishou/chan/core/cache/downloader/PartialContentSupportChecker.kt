@@ -136,7 +136,7 @@ internal class PartialContentSupportChecker(
 
       val disposeFunc = {
         if (!call.isCanceled()) {
-          log(TAG, "Disposing of HEAD request for url ($url)")
+          log(TAG) { "Disposing of HEAD request for url ($url)" }
           call.cancel()
         }
       }
@@ -211,8 +211,10 @@ internal class PartialContentSupportChecker(
         }
 
         val diff = System.currentTimeMillis() - startTime
-        log(TAG, "HEAD request took for url ($url) too much time, " +
-            "canceled by timeout() operator, took = ${diff}ms")
+        log(TAG) {
+          "HEAD request took for url ($url) too much time, " +
+            "canceled by timeout() operator, took = ${diff}ms"
+        }
 
         // Do not cache this result because after this request the file should be cached by the
         // cloudflare, so the next time we open it, it should load way faster
@@ -248,14 +250,16 @@ internal class PartialContentSupportChecker(
 
     val acceptsRangesValue = response.header(ACCEPT_RANGES_HEADER)
     if (acceptsRangesValue == null) {
-      log(TAG, "($url) does not support partial content (ACCEPT_RANGES_HEADER is null)")
+      log(TAG) { "($url) does not support partial content (ACCEPT_RANGES_HEADER is null)" }
       emitter.onSuccess(cache(url, PartialContentCheckResult(false)))
       return
     }
 
     if (!acceptsRangesValue.equals(ACCEPT_RANGES_HEADER_VALUE, true)) {
-      log(TAG, "($url) does not support partial content " +
-          "(bad ACCEPT_RANGES_HEADER = ${acceptsRangesValue})")
+      log(TAG) {
+        "($url) does not support partial content " +
+          "(bad ACCEPT_RANGES_HEADER = ${acceptsRangesValue})"
+      }
       emitter.onSuccess(cache(url, PartialContentCheckResult(false)))
       return
     }
@@ -266,7 +270,7 @@ internal class PartialContentSupportChecker(
       // in thread.json. So we can try using that.
 
       if (!canWeUseFileSizeFromJson(url)) {
-        log(TAG, "($url) does not support partial content (CONTENT_LENGTH_HEADER is null)")
+        log(TAG) { "($url) does not support partial content (CONTENT_LENGTH_HEADER is null)" }
         emitter.onSuccess(cache(url, PartialContentCheckResult(false)))
         return
       }
@@ -279,14 +283,16 @@ internal class PartialContentSupportChecker(
     }
 
     if (length == null || length <= 0) {
-      log(TAG, "($url) does not support partial content " +
-          "(bad CONTENT_LENGTH_HEADER = ${contentLengthValue})")
+      log(TAG) {
+        "($url) does not support partial content " +
+          "(bad CONTENT_LENGTH_HEADER = ${contentLengthValue})"
+      }
       emitter.onSuccess(cache(url, PartialContentCheckResult(false)))
       return
     }
 
     if (length < FileCacheV2.MIN_CHUNK_SIZE) {
-      log(TAG, "($url) download file normally (file length < MIN_CHUNK_SIZE, length = $length)")
+      log(TAG) { "($url) download file normally (file length < MIN_CHUNK_SIZE, length = $length)" }
       // Download tiny files normally, no need to chunk them
       emitter.onSuccess(cache(url, PartialContentCheckResult(false, length = length)))
       return
@@ -295,8 +301,10 @@ internal class PartialContentSupportChecker(
     val cfCacheStatusHeader = response.header(CF_CACHE_STATUS_HEADER)
     val diff = System.currentTimeMillis() - startTime
 
-    log(TAG, "url = $url, fileSize = $length, " +
-        "cfCacheStatusHeader = $cfCacheStatusHeader, took = ${diff}ms")
+    log(TAG) {
+      "url = $url, fileSize = $length, " +
+        "cfCacheStatusHeader = $cfCacheStatusHeader, took = ${diff}ms"
+    }
 
     val host = url.toHttpUrlOrNull()?.host
     if (host != null) {
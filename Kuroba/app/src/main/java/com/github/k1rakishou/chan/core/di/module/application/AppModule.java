@@ -26,6 +26,7 @@ import com.github.k1rakishou.chan.core.cache.CacheHandler;
 import com.github.k1rakishou.chan.core.cache.FileCacheV2;
 import com.github.k1rakishou.chan.core.helper.ImageLoaderFileManagerWrapper;
 import com.github.k1rakishou.chan.core.image.ImageLoaderV2;
+import com.github.k1rakishou.chan.core.image.TransformedBitmapDiskCache;
 import com.github.k1rakishou.chan.core.manager.ArchivesManager;
 import com.github.k1rakishou.chan.core.manager.BoardManager;
 import com.github.k1rakishou.chan.core.manager.BookmarksManager;
@@ -49,6 +50,8 @@ import com.github.k1rakishou.fsaf.FileManager;
 import com.github.k1rakishou.model.repository.ImageDownloadRequestRepository;
 import com.google.gson.Gson;
 
+import java.io.File;
+
 import javax.inject.Singleton;
 
 import coil.ImageLoader;
@@ -155,7 +158,8 @@ public class AppModule {
             Lazy<ImageLoaderFileManagerWrapper> imageLoaderFileManagerWrapper,
             Lazy<SiteResolver> siteResolver,
             Lazy<CoilOkHttpClient> coilOkHttpClient,
-            Lazy<ThreadDownloadManager> threadDownloadManager
+            Lazy<ThreadDownloadManager> threadDownloadManager,
+            Lazy<TransformedBitmapDiskCache> transformedBitmapDiskCache
     ) {
         Logger.deps("ImageLoaderV2");
 
@@ -170,7 +174,18 @@ public class AppModule {
                 imageLoaderFileManagerWrapper,
                 siteResolver,
                 coilOkHttpClient,
-                threadDownloadManager
+                threadDownloadManager,
+                transformedBitmapDiskCache
+        );
+    }
+
+    @Provides
+    @Singleton
+    public TransformedBitmapDiskCache provideTransformedBitmapDiskCache(Context appContext) {
+        Logger.deps("TransformedBitmapDiskCache");
+
+        return new TransformedBitmapDiskCache(
+                new File(appContext.getCacheDir(), TransformedBitmapDiskCache.CACHE_DIR_NAME)
         );
     }
 
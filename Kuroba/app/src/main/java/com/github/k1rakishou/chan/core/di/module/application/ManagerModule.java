@@ -28,6 +28,7 @@ import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient;
 import com.github.k1rakishou.chan.core.base.okhttp.RealDownloaderOkHttpClient;
 import com.github.k1rakishou.chan.core.base.okhttp.RealProxiedOkHttpClient;
 import com.github.k1rakishou.chan.core.cache.CacheHandler;
+import com.github.k1rakishou.chan.core.cache.FileCacheV2;
 import com.github.k1rakishou.chan.core.helper.FilterEngine;
 import com.github.k1rakishou.chan.core.helper.FilterWatcherNotificationHelper;
 import com.github.k1rakishou.chan.core.helper.ImageSaverFileManagerWrapper;
@@ -94,8 +95,10 @@ import com.github.k1rakishou.chan.features.posting.LastReplyRepository;
 import com.github.k1rakishou.chan.features.posting.PostingServiceDelegate;
 import com.github.k1rakishou.chan.features.posting.solvers.two_captcha.TwoCaptchaSolver;
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadProgressNotifier;
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadStateStore;
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadingCoordinator;
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadingDelegate;
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadMediaBlobStore;
 import com.github.k1rakishou.chan.ui.captcha.CaptchaHolder;
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils;
 import com.github.k1rakishou.common.AppConstants;
@@ -123,6 +126,7 @@ import com.github.k1rakishou.model.source.cache.thread.ChanThreadsCache;
 import com.google.gson.Gson;
 import com.squareup.moshi.Moshi;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -272,9 +276,8 @@ public class ManagerModule {
                 () -> {
                     List<OnDemandContentLoader> loaders = new ArrayList<>();
 
-                    // Order matters! Loaders at the beginning of the list will be executed first.
-                    // If a loader depends on the results of another loader then add it before
-                    // the other loader.
+                    // Loaders are executed concurrently. If a loader depends on the results of
+                    // another loader then declare it via OnDemandContentLoader.dependsOn.
                     loaders.add(chan4CloudFlareImagePreloader.get());
                     loaders.add(prefetchLoader.get());
                     loaders.add(postExtraContentLoader.get());
@@ -299,6 +302,7 @@ public class ManagerModule {
             CoroutineScope appScope,
             ChanThreadsCache chanThreadsCache,
             ChanCatalogSnapshotCache chanCatalogSnapshotCache,
+            ApplicationVisibilityManager applicationVisibilityManager,
             SeenPostRepository seenPostRepository
     ) {
         Logger.deps("SeenPostsManager");
@@ -307,6 +311,7 @@ public class ManagerModule {
                 ChanSettings.verboseLogs.get(),
                 chanThreadsCache,
                 chanCatalogSnapshotCache,
+                applicationVisibilityManager,
                 seenPostRepository
         );
     }
@@ -738,6 +743,7 @@ public class ManagerModule {
             CoroutineScope appScope,
             AppConstants appConstants,
             Lazy<CacheHandler> cacheHandler,
+            Lazy<FileCacheV2> fileCacheV2,
             Lazy<RealDownloaderOkHttpClient> downloaderOkHttpClient,
             ImageSaverFileManagerWrapper imageSaverFileManagerWrapper,
             SiteResolver siteResolver,
@@ -752,6 +758,7 @@ public class ManagerModule {
                 appScope,
                 appConstants,
                 cacheHandler,
+                fileCacheV2,
                 downloaderOkHttpClient,
                 NotificationManagerCompat.from(appContext),
                 imageSaverFileManagerWrapper,
@@ -819,7 +826,8 @@ public class ManagerModule {
             CoroutineScope appScope,
             Lazy<ThreadDownloaderFileManagerWrapper> threadDownloaderFileManagerWrapper,
             Lazy<ThreadDownloadRepository> threadDownloadRepository,
-            Lazy<ChanPostRepository> chanPostRepository
+            Lazy<ChanPostRepository> chanPostRepository,
+            Lazy<ThreadMediaBlobStore> threadMediaBlobStore
     ) {
         Logger.deps("ThreadDownloadManager");
         return new ThreadDownloadManager(
@@ -827,7 +835,31 @@ public class ManagerModule {
                 appScope,
                 threadDownloaderFileManagerWrapper,
                 threadDownloadRepository,
-                chanPostRepository
+                chanPostRepository,
+                threadMediaBlobStore
+        );
+    }
+
+    @Singleton
+    @Provides
+    public ThreadMediaBlobStore provideThreadMediaBlobStore(AppConstants appConstants) {
+        Logger.deps("ThreadMediaBlobStore");
+        return new ThreadMediaBlobStore(
+                new File(appConstants.getThreadDownloaderCacheDir(), ThreadMediaBlobStore.BLOBS_DIR_NAME),
+                ThreadMediaBlobStore.AndroidFileLinker.INSTANCE
+        );
+    }
+
+    @Singleton
+    @Provides
+    public ThreadDownloadStateStore provideThreadDownloadStateStore(
+            AppConstants appConstants,
+            Gson gson
+    ) {
+        Logger.deps("ThreadDownloadStateStore");
+        return new ThreadDownloadStateStore(
+                new File(appConstants.getThreadDownloaderCacheDir(), ThreadDownloadStateStore.STATE_FILE_NAME),
+                gson
         );
     }
 
@@ -858,9 +890,11 @@ public class ManagerModule {
             ThreadDownloadManager threadDownloadManager,
             ChanPostRepository chanPostRepository,
             ChanPostImageRepository chanPostImageRepository,
-            ThreadDownloaderFileManagerWrapper threadDownloaderFileManagerWrapper,
             ThreadDownloadProgressNotifier threadDownloadProgressNotifier,
-            ThreadDownloaderPersistPostsInDatabaseUseCase threadDownloaderPersistPostsInDatabaseUseCase
+            ThreadDownloaderPersistPostsInDatabaseUseCase threadDownloaderPersistPostsInDatabaseUseCase,
+            ThreadMediaBlobStore threadMediaBlobStore,
+            ThreadDownloadStateStore threadDownloadStateStore,
+            Lazy<CacheHandler> cacheHandler
     ) {
         Logger.deps("ThreadDownloadingDelegate");
         return new ThreadDownloadingDelegate(
@@ -871,9 +905,11 @@ public class ManagerModule {
                 threadDownloadManager,
                 chanPostRepository,
                 chanPostImageRepository,
-                threadDownloaderFileManagerWrapper,
                 threadDownloadProgressNotifier,
-                threadDownloaderPersistPostsInDatabaseUseCase
+                threadDownloaderPersistPostsInDatabaseUseCase,
+                threadMediaBlobStore,
+                threadDownloadStateStore,
+                cacheHandler
         );
     }
 
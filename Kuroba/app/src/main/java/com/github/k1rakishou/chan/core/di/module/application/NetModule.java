@@ -21,6 +21,7 @@ import android.net.ConnectivityManager;
 
 import com.github.k1rakishou.ChanSettings;
 import com.github.k1rakishou.chan.Chan;
+import com.github.k1rakishou.chan.core.base.okhttp.BaseOkHttpClient;
 import com.github.k1rakishou.chan.core.base.okhttp.CoilOkHttpClient;
 import com.github.k1rakishou.chan.core.base.okhttp.HttpLoggingInterceptorLazy;
 import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient;
@@ -33,6 +34,7 @@ import com.github.k1rakishou.chan.core.manager.FirewallBypassManager;
 import com.github.k1rakishou.chan.core.site.SiteResolver;
 import com.github.k1rakishou.chan.core.site.http.HttpCallManager;
 import com.github.k1rakishou.common.AppConstants;
+import com.github.k1rakishou.common.dns.DnsCache;
 import com.github.k1rakishou.common.dns.DnsOverHttpsSelectorFactory;
 import com.github.k1rakishou.common.dns.NormalDnsSelectorFactory;
 import com.github.k1rakishou.core_logger.Logger;
@@ -120,14 +122,33 @@ public class NetModule {
     }
 
     /**
-     * This okHttpClient is for posting.
+     * All the other okHttpClients are derived from this one so that they share connections and DNS.
      */
     @Provides
     @Singleton
-    public ProxiedOkHttpClient provideProxiedOkHttpClient(
+    public BaseOkHttpClient provideBaseOkHttpClient(
             NormalDnsSelectorFactory normalDnsSelectorFactory,
             DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
-            Chan.OkHttpProtocols okHttpProtocols,
+            DnsCache dnsCache,
+            Chan.OkHttpProtocols okHttpProtocols
+    ) {
+        Logger.deps("BaseOkHttpClient");
+
+        return new BaseOkHttpClient(
+                normalDnsSelectorFactory,
+                dnsOverHttpsSelectorFactory,
+                dnsCache,
+                okHttpProtocols
+        );
+    }
+
+    /**
+     * This okHttpClient is for posting.
+     */
+    @Provides
+    @Singleton
+    public ProxiedOkHttpClient provideProxiedOkHttpClient(
+            BaseOkHttpClient baseOkHttpClient,
             ProxyStorage proxyStorage,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
@@ -136,9 +157,7 @@ public class NetModule {
         Logger.deps("RealProxiedOkHttpClient");
 
         return new RealProxiedOkHttpClient(
-                normalDnsSelectorFactory,
-                dnsOverHttpsSelectorFactory,
-                okHttpProtocols,
+                baseOkHttpClient,
                 proxyStorage,
                 httpLoggingInterceptorLazy,
                 siteResolver,
@@ -153,9 +172,7 @@ public class NetModule {
     @Singleton
     public CoilOkHttpClient provideCoilOkHttpClient(
             Context applicationContext,
-            NormalDnsSelectorFactory normalDnsSelectorFactory,
-            DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
-            Chan.OkHttpProtocols okHttpProtocols,
+            BaseOkHttpClient baseOkHttpClient,
             ProxyStorage proxyStorage,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
@@ -165,9 +182,7 @@ public class NetModule {
 
         return new CoilOkHttpClient(
                 applicationContext,
-                normalDnsSelectorFactory,
-                dnsOverHttpsSelectorFactory,
-                okHttpProtocols,
+                baseOkHttpClient,
                 proxyStorage,
                 httpLoggingInterceptorLazy,
                 siteResolver,
@@ -181,9 +196,7 @@ public class NetModule {
     @Provides
     @Singleton
     public RealDownloaderOkHttpClient provideDownloaderOkHttpClient(
-            NormalDnsSelectorFactory normalDnsSelectorFactory,
-            DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
-            Chan.OkHttpProtocols okHttpProtocols,
+            BaseOkHttpClient baseOkHttpClient,
             ProxyStorage proxyStorage,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
@@ -192,9 +205,7 @@ public class NetModule {
         Logger.deps("RealDownloaderOkHttpClient");
 
         return new RealDownloaderOkHttpClient(
-                normalDnsSelectorFactory,
-                dnsOverHttpsSelectorFactory,
-                okHttpProtocols,
+                baseOkHttpClient,
                 proxyStorage,
                 httpLoggingInterceptorLazy,
                 siteResolver,
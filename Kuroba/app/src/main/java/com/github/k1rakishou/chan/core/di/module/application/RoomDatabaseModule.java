@@ -9,6 +9,7 @@ import com.github.k1rakishou.model.repository.ChanFilterRepository;
 import com.github.k1rakishou.model.repository.ChanFilterWatchRepository;
 import com.github.k1rakishou.model.repository.ChanPostHideRepository;
 import com.github.k1rakishou.model.repository.ChanPostImageRepository;
+import com.github.k1rakishou.model.repository.ChanPostSearchRepository;
 import com.github.k1rakishou.model.repository.ChanPostRepository;
 import com.github.k1rakishou.model.repository.ChanSavedReplyRepository;
 import com.github.k1rakishou.model.repository.ChanThreadViewableInfoRepository;
@@ -185,6 +186,15 @@ public class RoomDatabaseModule {
         return modelComponent.getChanPostImageRepository();
     }
 
+    @Provides
+    @Singleton
+    public ChanPostSearchRepository provideChanPostSearchRepository(
+            ModelComponent modelComponent
+    ) {
+        Logger.deps("ChanPostSearchRepository");
+        return modelComponent.getChanPostSearchRepository();
+    }
+
     @Provides
     @Singleton
     public ImageDownloadRequestRepository provideImageDownloadRequestRepository(
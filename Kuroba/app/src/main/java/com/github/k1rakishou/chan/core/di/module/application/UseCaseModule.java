@@ -225,14 +225,16 @@ public class UseCaseModule {
             Context appContext,
             AppConstants appConstants,
             DatabaseMetaRepository databaseMetaRepository,
-            FileManager fileManager
+            FileManager fileManager,
+            Gson gson
     ) {
         Logger.deps("ExportBackupFileUseCase");
         return new ExportBackupFileUseCase(
                 appContext,
                 appConstants,
                 databaseMetaRepository,
-                fileManager
+                fileManager,
+                gson
         );
     }
 
@@ -241,13 +243,17 @@ public class UseCaseModule {
     public ImportBackupFileUseCase provideImportBackupFileUseCase(
             Context appContext,
             AppConstants appConstants,
-            FileManager fileManager
+            DatabaseMetaRepository databaseMetaRepository,
+            FileManager fileManager,
+            Gson gson
     ) {
         Logger.deps("ImportBackupFileUseCase");
         return new ImportBackupFileUseCase(
                 appContext,
                 appConstants,
-                fileManager
+                databaseMetaRepository,
+                fileManager,
+                gson
         );
     }
 
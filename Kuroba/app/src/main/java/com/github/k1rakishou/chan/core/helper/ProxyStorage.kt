@@ -73,6 +73,14 @@ class ProxyStorage(
     return synchronized(this) { allProxiesMap.values.toList() }
   }
 
+  fun hasEnabledProxies(proxyActionType: ProxyActionType): Boolean {
+    loadProxies()
+
+    return synchronized(this) {
+      allProxiesMap.values.any { kurobaProxy -> kurobaProxy.enabled && proxyActionType in kurobaProxy.supportedActions }
+    }
+  }
+
   fun getProxyByUri(uri: URI, proxyActionType: ProxyActionType): List<Proxy> {
     loadProxies()
     awaitBlockingUntilDependenciesAreInitialized()
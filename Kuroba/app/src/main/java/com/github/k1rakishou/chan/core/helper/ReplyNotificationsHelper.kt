@@ -36,7 +36,7 @@ import com.github.k1rakishou.common.AndroidUtils
 import com.github.k1rakishou.common.AndroidUtils.getApplicationLabel
 import com.github.k1rakishou.common.ellipsizeEnd
 import com.github.k1rakishou.common.errorMessageOrClassName
-import com.github.k1rakishou.common.processDataCollectionConcurrently
+import com.github.k1rakishou.common.processDataCollectionInParallel
 import com.github.k1rakishou.common.putIfNotContains
 import com.github.k1rakishou.common.resumeValueSafe
 import com.github.k1rakishou.core_logger.Logger
@@ -517,17 +517,17 @@ class ReplyNotificationsHelper(
   ): Map<ChanDescriptor.ThreadDescriptor, BitmapDrawable> {
     val resultMap = ConcurrentHashMap<ChanDescriptor.ThreadDescriptor, BitmapDrawable>()
 
-    processDataCollectionConcurrently(originalPosts.entries, MAX_THUMBNAIL_REQUESTS_PER_BATCH) { entry ->
+    processDataCollectionInParallel(originalPosts.entries, MAX_THUMBNAIL_REQUESTS_PER_BATCH) { _, entry ->
       val (threadDescriptor, originalPost) = entry
 
       val thumbnailUrl = originalPost.postImages.firstOrNull()?.actualThumbnailUrl
-        ?: return@processDataCollectionConcurrently null
+        ?: return@processDataCollectionInParallel
 
       val bitmapDrawable = downloadThumbnailForNotification(thumbnailUrl)
-        ?: return@processDataCollectionConcurrently null
+        ?: return@processDataCollectionInParallel
 
       resultMap[threadDescriptor] = bitmapDrawable
-    }
+    }.logFailures(TAG, "getThreadThumbnails()")
 
     return resultMap
   }
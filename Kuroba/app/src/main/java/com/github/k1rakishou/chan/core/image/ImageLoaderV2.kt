@@ -43,6 +43,7 @@ import com.github.k1rakishou.chan.ui.widget.FixedViewSizeResolver
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.chan.utils.MediaUtils
 import com.github.k1rakishou.chan.utils.getLifecycleFromContext
+import com.github.k1rakishou.common.AndroidUtils
 import com.github.k1rakishou.common.BadContentTypeException
 import com.github.k1rakishou.common.DoNotStrip
 import com.github.k1rakishou.common.ModularResult
@@ -100,7 +101,8 @@ class ImageLoaderV2(
   private val _imageLoaderFileManagerWrapper: Lazy<ImageLoaderFileManagerWrapper>,
   private val _siteResolver: Lazy<SiteResolver>,
   private val _coilOkHttpClient: Lazy<CoilOkHttpClient>,
-  private val _threadDownloadManager: Lazy<ThreadDownloadManager>
+  private val _threadDownloadManager: Lazy<ThreadDownloadManager>,
+  private val _transformedBitmapDiskCache: Lazy<TransformedBitmapDiskCache>
 ) {
   private val mutex = Mutex()
 
@@ -125,6 +127,8 @@ class ImageLoaderV2(
     get() = _coilOkHttpClient.get()
   val threadDownloadManager: ThreadDownloadManager
     get() = _threadDownloadManager.get()
+  val transformedBitmapDiskCache: TransformedBitmapDiskCache
+    get() = _transformedBitmapDiskCache.get()
 
   private val fileManager: FileManager
     get() = imageLoaderFileManagerWrapper.fileManager
@@ -282,7 +286,8 @@ class ImageLoaderV2(
     imageSize: ImageSize,
     transformations: List<Transformation>,
     listener: FailureAwareImageListener,
-    postDescriptor: PostDescriptor? = null
+    postDescriptor: PostDescriptor? = null,
+    allowHardwareBitmap: Boolean = false
   ): Disposable {
     return loadFromNetwork(
       context = context,
@@ -291,7 +296,8 @@ class ImageLoaderV2(
       imageSize = imageSize,
       inputTransformations = transformations,
       imageListenerParam = ImageListenerParam.FailureAwareImageListener(listener),
-      postDescriptor = postDescriptor
+      postDescriptor = postDescriptor,
+      allowHardwareBitmap = allowHardwareBitmap
     )
   }
 
@@ -304,7 +310,10 @@ class ImageLoaderV2(
     imageListenerParam: ImageListenerParam,
     // If postDescriptor is not null we will attempt to search for this file among downloaded
     // threads files' first and if not found then attempt to load it from the network.
-    postDescriptor: PostDescriptor? = null
+    postDescriptor: PostDescriptor? = null,
+    // HARDWARE bitmaps can only be drawn, they can't be read back (e.g. put into a notification),
+    // so only the callers that just display the image may allow them.
+    allowHardwareBitmap: Boolean = false
   ): Disposable {
     val completableDeferred = CompletableDeferred<Unit>()
 
@@ -328,7 +337,8 @@ class ImageLoaderV2(
           return@withLockNonCancellable activeRequest.addImageListener(
             imageListenerParam = imageListenerParam,
             imageSize = imageSize,
-            transformations = inputTransformations
+            transformations = inputTransformations,
+            allowHardwareBitmap = allowHardwareBitmap
           )
         }
 
@@ -474,6 +484,32 @@ class ImageLoaderV2(
       activeListener.transformations
     }
 
+    // The transformed bitmaps are cached on disk so that next time we only need to decode a small
+    // ready-made image (which can also be a HARDWARE bitmap) instead of transforming the original
+    // file again.
+    val transformedBitmapCacheKey = createTransformedBitmapCacheKey(
+      imageFile = imageFile,
+      url = url,
+      transformations = transformations,
+      imageSize = activeListener.imageSize
+    )
+
+    if (transformedBitmapCacheKey != null) {
+      // Unlike the transformed bitmaps, the decoded ones can be HARDWARE bitmaps but only when the
+      // caller has explicitly allowed them (it only draws the bitmap and never reads it back).
+      val preferredConfig = when {
+        ChanSettings.isLowRamDevice() -> Bitmap.Config.RGB_565
+        activeListener.allowHardwareBitmap && AndroidUtils.isAndroidO() -> Bitmap.Config.HARDWARE
+        else -> Bitmap.Config.ARGB_8888
+      }
+
+      val cachedBitmap = transformedBitmapDiskCache.get(transformedBitmapCacheKey, preferredConfig)
+
+      if (cachedBitmap != null) {
+        return BitmapDrawable(context.resources, cachedBitmap)
+      }
+    }
+
     val request = with(ImageRequest.Builder(context)) {
       lifecycle(lifecycle)
       data(fileLocation)
@@ -487,6 +523,11 @@ class ImageLoaderV2(
     when (val result = imageLoader.execute(request)) {
       is SuccessResult -> {
         val bitmap = result.drawable.toBitmap()
+
+        if (transformedBitmapCacheKey != null) {
+          transformedBitmapDiskCache.put(transformedBitmapCacheKey, bitmap)
+        }
+
         return BitmapDrawable(context.resources, bitmap)
       }
       is ErrorResult -> {
@@ -495,6 +536,7 @@ class ImageLoaderV2(
 
         if (!fileCacheV2.isRunning(url)) {
           cacheHandler.deleteCacheFileByUrl(cacheFileType, url)
+          transformedBitmapDiskCache.invalidate(url)
         }
 
         return null
@@ -502,6 +544,42 @@ class ImageLoaderV2(
     }
   }
 
+  private suspend fun createTransformedBitmapCacheKey(
+    imageFile: AbstractFile,
+    url: String,
+    transformations: List<Transformation>,
+    imageSize: ImageSize
+  ): TransformedBitmapDiskCache.Key? {
+    if (transformations.isEmpty()) {
+      // Coil handles images without transformations just fine by itself
+      return null
+    }
+
+    // We need to know when the source file changes, which is only cheap for the files in the
+    // internal cache
+    val sourceFile = (imageFile as? RawFile)
+      ?.let { rawFile -> File(rawFile.getFullPath()) }
+      ?: return null
+
+    val pixelSize = when (imageSize) {
+      is ImageSize.FixedImageSize -> PixelSize(imageSize.width, imageSize.height)
+      is ImageSize.MeasurableImageSize -> imageSize.sizeResolver.size() as? PixelSize
+      is ImageSize.Unspecified -> null
+    }
+
+    if (pixelSize == null || pixelSize.width <= 0 || pixelSize.height <= 0) {
+      return null
+    }
+
+    return TransformedBitmapDiskCache.Key.create(
+      url = url,
+      transformationKeys = transformations.map { transformation -> transformation.key() },
+      width = pixelSize.width,
+      height = pixelSize.height,
+      sourceVersion = "${sourceFile.length()}_${sourceFile.lastModified()}"
+    )
+  }
+
   private suspend fun notifyListenersFailure(
     context: Context,
     url: String,
@@ -1444,7 +1522,8 @@ class ImageLoaderV2(
   class ActiveListener(
     val imageListenerParam: ImageListenerParam,
     val imageSize: ImageSize,
-    val transformations: List<Transformation>
+    val transformations: List<Transformation>,
+    val allowHardwareBitmap: Boolean
   )
 
   private data class ActiveRequest(val url: String) {
@@ -1454,10 +1533,11 @@ class ImageLoaderV2(
     fun addImageListener(
       imageListenerParam: ImageListenerParam,
       imageSize: ImageSize,
-      transformations: List<Transformation>
+      transformations: List<Transformation>,
+      allowHardwareBitmap: Boolean
     ): Boolean {
       val alreadyHasActiveRequest = listeners.isNotEmpty()
-      listeners += ActiveListener(imageListenerParam, imageSize, transformations)
+      listeners += ActiveListener(imageListenerParam, imageSize, transformations, allowHardwareBitmap)
 
       return alreadyHasActiveRequest
     }
@@ -0,0 +1,246 @@
+package com.github.k1rakishou.chan.core.image
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.chan.utils.HashingUtil
+import com.github.k1rakishou.common.AndroidUtils
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.core_logger.Logger
+import java.io.File
+
+/**
+ * Second level (after Coil's memory cache) cache for the images that [ImageLoaderV2] has already
+ * decoded, downsampled and transformed. The final bitmaps are stored as small webp files so that the
+ * next time the same image is requested with the same transformations and size it's only decoded
+ * instead of decoded from the original (much bigger) file and transformed again.
+ *
+ * Entries are keyed by the url, the transformation keys, the target size and the version of the
+ * source file (its size and modification time) so that an entry becomes unreachable once the source
+ * file is re-downloaded. Unreachable entries are eventually removed by the LRU trimming.
+ * */
+class TransformedBitmapDiskCache @JvmOverloads constructor(
+  private val cacheDir: File,
+  private val maxSizeBytes: Long = DEFAULT_MAX_SIZE_BYTES
+) {
+  @GuardedBy("this")
+  private var entries: LinkedHashMap<String, Long>? = null
+  @GuardedBy("this")
+  private var totalSize = 0L
+
+  fun get(key: Key, preferredConfig: Bitmap.Config): Bitmap? {
+    val file = synchronized(this) {
+      val entries = ensureLoaded()
+      if (entries[key.fileName] == null) {
+        return null
+      }
+
+      File(cacheDir, key.fileName)
+    }
+
+    val options = BitmapFactory.Options().apply { inPreferredConfig = preferredConfig }
+
+    val bitmap = try {
+      BitmapFactory.decodeFile(file.absolutePath, options)
+    } catch (error: Throwable) {
+      Logger.e(TAG, "get(${key.fileName}) error: ${error.errorMessageOrClassName()}")
+      null
+    }
+
+    if (bitmap == null) {
+      remove(key.fileName)
+      return null
+    }
+
+    // Persist the LRU order between app restarts
+    file.setLastModified(System.currentTimeMillis())
+    return bitmap
+  }
+
+  fun put(key: Key, bitmap: Bitmap): Boolean {
+    if (bitmap.isRecycled) {
+      return false
+    }
+
+    if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+      Logger.e(TAG, "put() failed to create ${cacheDir.absolutePath}")
+      return false
+    }
+
+    val file = File(cacheDir, key.fileName)
+    val tmpFile = File(cacheDir, "${key.fileName}.tmp")
+
+    try {
+      val compressed = tmpFile.outputStream().use { outputStream ->
+        bitmap.compress(compressFormat(), QUALITY, outputStream)
+      }
+
+      if (!compressed || !tmpFile.renameTo(file)) {
+        tmpFile.delete()
+        return false
+      }
+    } catch (error: Throwable) {
+      Logger.e(TAG, "put(${key.fileName}) error: ${error.errorMessageOrClassName()}")
+      tmpFile.delete()
+      return false
+    }
+
+    synchronized(this) {
+      val entries = ensureLoaded()
+
+      val fileSize = file.length()
+
+      entries.remove(key.fileName)?.let { prevSize -> totalSize -= prevSize }
+      entries[key.fileName] = fileSize
+      totalSize += fileSize
+
+      trim(entries)
+    }
+
+    return true
+  }
+
+  /**
+   * Removes all of the entries of [url] no matter the transformations and sizes.
+   * */
+  fun invalidate(url: String) {
+    val prefix = "${urlHash(url)}$SEPARATOR"
+
+    synchronized(this) {
+      val entries = ensureLoaded()
+
+      entries.keys
+        .filter { fileName -> fileName.startsWith(prefix) }
+        .forEach { fileName -> remove(fileName) }
+    }
+  }
+
+  @Synchronized
+  fun clear() {
+    ensureLoaded().keys.toList().forEach { fileName -> remove(fileName) }
+  }
+
+  @Synchronized
+  private fun remove(fileName: String) {
+    val size = ensureLoaded().remove(fileName)
+      ?: return
+
+    totalSize -= size
+    File(cacheDir, fileName).delete()
+  }
+
+  @GuardedBy("this")
+  private fun ensureLoaded(): LinkedHashMap<String, Long> {
+    entries?.let { loadedEntries -> return loadedEntries }
+
+    val loadedEntries = LinkedHashMap<String, Long>(16, 0.75f, true)
+    totalSize = 0L
+
+    val files = cacheDir.listFiles() ?: emptyArray()
+    files
+      .filter { file ->
+        if (file.name.endsWith(".tmp")) {
+          // Left after a crash
+          file.delete()
+          return@filter false
+        }
+
+        return@filter file.name.endsWith(EXTENSION)
+      }
+      .sortedBy { file -> file.lastModified() }
+      .forEach { file ->
+        loadedEntries[file.name] = file.length()
+        totalSize += file.length()
+      }
+
+    entries = loadedEntries
+    trim(loadedEntries)
+
+    return loadedEntries
+  }
+
+  @GuardedBy("this")
+  private fun trim(entries: LinkedHashMap<String, Long>) {
+    if (totalSize <= maxSizeBytes) {
+      return
+    }
+
+    val iterator = entries.entries.iterator()
+
+    // Iterates in the access order so the least recently used entries are removed first
+    while (totalSize > maxSizeBytes && iterator.hasNext()) {
+      val (fileName, size) = iterator.next()
+      iterator.remove()
+
+      totalSize -= size
+      File(cacheDir, fileName).delete()
+    }
+  }
+
+  @Suppress("DEPRECATION")
+  private fun compressFormat(): Bitmap.CompressFormat {
+    if (AndroidUtils.isAndroid11()) {
+      return Bitmap.CompressFormat.WEBP_LOSSY
+    }
+
+    return Bitmap.CompressFormat.WEBP
+  }
+
+  class Key private constructor(val fileName: String) {
+
+    override fun equals(other: Any?): Boolean {
+      if (this === other) return true
+      if (other !is Key) return false
+
+      return fileName == other.fileName
+    }
+
+    override fun hashCode(): Int = fileName.hashCode()
+    override fun toString(): String = "Key(fileName='$fileName')"
+
+    companion object {
+      /**
+       * The order of [transformationKeys] matters since the transformations are applied one after
+       * another. [sourceVersion] must change every time the source file changes.
+       * */
+      fun create(
+        url: String,
+        transformationKeys: List<String>,
+        width: Int,
+        height: Int,
+        sourceVersion: String
+      ): Key {
+        val variant = buildString {
+          append(CACHE_VERSION)
+          append('\n')
+          transformationKeys.forEach { transformationKey ->
+            append(transformationKey)
+            append('\n')
+          }
+          append(width)
+          append('x')
+          append(height)
+          append('\n')
+          append(sourceVersion)
+        }
+
+        return Key("${urlHash(url)}$SEPARATOR${HashingUtil.stringHash(variant)}$EXTENSION")
+      }
+    }
+  }
+
+  companion object {
+    private const val TAG = "TransformedBitmapDiskCache"
+    const val CACHE_DIR_NAME = "transformed_bitmaps"
+
+    // Must be bumped every time the key format or the file format changes
+    private const val CACHE_VERSION = 1
+    private const val SEPARATOR = '_'
+    private const val EXTENSION = ".webp"
+    private const val QUALITY = 85
+    private const val DEFAULT_MAX_SIZE_BYTES = 64L * 1024 * 1024
+
+    private fun urlHash(url: String): String = HashingUtil.stringHash(url)
+  }
+
+}
@@ -0,0 +1,172 @@
+package com.github.k1rakishou.chan.core.loader
+
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.withTimeoutOrNull
+
+/**
+ * Decides when content of a bound post should start loading depending on how fast the list is
+ * being scrolled and whether the post is actually visible or was only bound in advance (preload
+ * margin), and runs the loaders of a post.
+ *
+ * - List is idle: visible posts start loading right away, the rest after a short delay so that
+ * they don't compete with the visible posts.
+ * - List is being scrolled slowly: posts start loading after a delay (a longer one if the loaders
+ * will have to hit the network).
+ * - List is being flung (or dragged via the fast scroller): nothing starts loading until the
+ * scrolling slows down.
+ * */
+class OnDemandContentLoadScheduler {
+  private val scrollState = MutableStateFlow<ListScrollState>(ListScrollState.Idle)
+  private val visibleWindow = MutableStateFlow<VisibleWindow?>(null)
+
+  fun updateScrollState(listScrollState: ListScrollState) {
+    scrollState.value = listScrollState
+  }
+
+  /**
+   * [visiblePosts] are the posts that are currently visible on the screen in the list that
+   * displays [chanDescriptor].
+   * */
+  fun updateVisiblePosts(chanDescriptor: ChanDescriptor, visiblePosts: Set<PostDescriptor>) {
+    visibleWindow.value = VisibleWindow(chanDescriptor, visiblePosts)
+  }
+
+  fun isVisible(postDescriptor: PostDescriptor): Boolean {
+    val window = visibleWindow.value
+
+    if (window == null || postDescriptor.descriptor !in window.listDescriptors) {
+      // We know nothing about the list this post is displayed in (e.g. it's bound by the album)
+      return true
+    }
+
+    return postDescriptor in window.visiblePosts
+  }
+
+  /**
+   * Suspends until [postDescriptor] is allowed to start loading. Every time either the scroll
+   * state or the visibility of the post changes the waiting time is recalculated.
+   * */
+  suspend fun awaitLoadAllowed(postDescriptor: PostDescriptor, allLoadersCached: Boolean) {
+    while (true) {
+      val currentState = LoadState(scrollState.value, isVisible(postDescriptor))
+
+      val waitTime = calculateWaitTimeMs(currentState, allLoadersCached)
+      if (waitTime <= 0L) {
+        return
+      }
+
+      val changedState = withTimeoutOrNull(waitTime) {
+        loadStateFlow(postDescriptor).first { loadState -> loadState != currentState }
+      }
+
+      if (changedState == null) {
+        // Nothing has changed while we were waiting
+        return
+      }
+    }
+  }
+
+  private fun calculateWaitTimeMs(loadState: LoadState, allLoadersCached: Boolean): Long {
+    return when (loadState.scrollState) {
+      ListScrollState.Idle -> {
+        if (loadState.visible) {
+          0L
+        } else {
+          PRELOAD_MARGIN_DELAY_MS
+        }
+      }
+      ListScrollState.Scrolling -> {
+        if (allLoadersCached) {
+          SHORT_LOADING_DELAY_TIME_MS
+        } else {
+          LONG_LOADING_DELAY_TIME_MS
+        }
+      }
+      ListScrollState.Flinging -> Long.MAX_VALUE
+    }
+  }
+
+  private fun loadStateFlow(postDescriptor: PostDescriptor) =
+    combine(scrollState, visibleWindow) { listScrollState, _ ->
+      LoadState(listScrollState, isVisible(postDescriptor))
+    }.distinctUntilChanged()
+
+  private data class LoadState(
+    val scrollState: ListScrollState,
+    val visible: Boolean
+  )
+
+  private class VisibleWindow(
+    chanDescriptor: ChanDescriptor,
+    val visiblePosts: Set<PostDescriptor>
+  ) {
+    // Composite catalogs display posts of multiple catalogs
+    val listDescriptors: Set<ChanDescriptor> = visiblePosts
+      .mapTo(hashSetOf(chanDescriptor)) { postDescriptor -> postDescriptor.descriptor }
+  }
+
+  enum class ListScrollState {
+    Idle,
+    Scrolling,
+    Flinging
+  }
+
+  companion object {
+    private const val TAG = "OnDemandContentLoadScheduler"
+
+    const val PRELOAD_MARGIN_DELAY_MS = 250L
+    const val SHORT_LOADING_DELAY_TIME_MS = 250L
+    const val LONG_LOADING_DELAY_TIME_MS = 750L
+
+    /**
+     * Runs [loaders] concurrently, each one with its own [timeoutMs]. A loader that declares
+     * [OnDemandContentLoader.dependsOn] is started only after the loaders it depends on are done.
+     * Results are returned in the same order as [loaders], a loader that timed out or
+     * crashed is reported as [LoaderResult.Failed].
+     * */
+    suspend fun runLoaders(
+      loaders: List<OnDemandContentLoader>,
+      postLoaderData: PostLoaderData,
+      timeoutMs: Long
+    ): List<LoaderResult> {
+      return coroutineScope {
+        val completions = loaders.associate { loader ->
+          loader.loaderType to CompletableDeferred<Unit>()
+        }
+
+        val deferredResults = loaders.map { loader ->
+          async {
+            try {
+              loader.dependsOn.forEach { loaderType -> completions[loaderType]?.await() }
+
+              return@async withTimeoutOrNull(timeoutMs) { loader.startLoading(postLoaderData) }
+                ?: LoaderResult.Failed(loader.loaderType)
+            } catch (error: Throwable) {
+              if (error is CancellationException) {
+                throw error
+              }
+
+              Logger.e(TAG, "${loader.loaderType} failed for ${postLoaderData.postDescriptor}", error)
+              return@async LoaderResult.Failed(loader.loaderType)
+            } finally {
+              completions[loader.loaderType]?.complete(Unit)
+            }
+          }
+        }
+
+        return@coroutineScope deferredResults.awaitAll()
+      }
+    }
+  }
+}
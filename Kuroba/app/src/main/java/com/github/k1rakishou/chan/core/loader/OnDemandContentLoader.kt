@@ -5,6 +5,12 @@ import com.github.k1rakishou.model.data.post.LoaderType
 abstract class OnDemandContentLoader(
   val loaderType: LoaderType
 ) {
+  /**
+   * Loaders that must be done before this loader is started (all other loaders of a post run
+   * concurrently).
+   * */
+  open val dependsOn: Set<LoaderType> = emptySet()
+
   abstract suspend fun isCached(postLoaderData: PostLoaderData): Boolean
   abstract suspend fun startLoading(postLoaderData: PostLoaderData): LoaderResult
   abstract fun cancelLoading(postLoaderData: PostLoaderData)
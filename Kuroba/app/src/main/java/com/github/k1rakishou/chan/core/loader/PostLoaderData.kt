@@ -10,6 +10,8 @@ import java.util.concurrent.atomic.AtomicReference
 class PostLoaderData(
   val catalogMode: Boolean,
   val postDescriptor: PostDescriptor,
+  // Index of the post in the list it's displayed in or -1 if unknown
+  val postIndex: Int = -1,
   private val disposeFuncList: MutableList<() -> Unit> = mutableListOf()
 ) {
   private val disposed = AtomicBoolean(false)
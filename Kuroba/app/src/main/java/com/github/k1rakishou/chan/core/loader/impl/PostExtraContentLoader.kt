@@ -12,7 +12,7 @@ import com.github.k1rakishou.chan.core.loader.impl.post_comment.SpanUpdateBatch
 import com.github.k1rakishou.chan.core.manager.ChanThreadManager
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.common.ModularResult
-import com.github.k1rakishou.common.processDataCollectionConcurrently
+import com.github.k1rakishou.common.processDataCollectionInParallel
 import com.github.k1rakishou.common.putIfNotContainsLazy
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.core_spannable.PostLinkable
@@ -35,8 +35,8 @@ internal class PostExtraContentLoader(
       return true
     }
 
-    val results = processDataCollectionConcurrently(linkExtraInfoFetchers) { fetcher ->
-      return@processDataCollectionConcurrently videoIds.all { videoId ->
+    val processingResult = processDataCollectionInParallel(linkExtraInfoFetchers) { _, fetcher ->
+      return@processDataCollectionInParallel videoIds.all { videoId ->
         try {
           return@all fetcher.isCached(videoId)
         } catch (error: Throwable) {
@@ -45,7 +45,9 @@ internal class PostExtraContentLoader(
       }
     }
 
-    return results.all { success -> success }
+    return processingResult
+      .values()
+      .all { success -> success }
   }
 
   override suspend fun startLoading(postLoaderData: PostLoaderData): LoaderResult {
@@ -75,11 +77,23 @@ internal class PostExtraContentLoader(
       return rejected()
     }
 
-    val spanUpdateBatchResultList = processDataCollectionConcurrently(newSpans.entries) { (requestUrl, linkInfoRequest) ->
-      fetchExtraLinkInfo(requestUrl, linkInfoRequest)
+    // All links of the same media service are resolved as one batch
+    val newSpansGrouped = newSpans.entries
+      .groupBy(
+        keySelector = { (_, linkInfoRequest) -> linkInfoRequest.mediaServiceType },
+        valueTransform = { (requestUrl, linkInfoRequest) -> requestUrl to linkInfoRequest }
+      )
+      .values
+
+    val spanUpdateBatchResultList = processDataCollectionInParallel(newSpansGrouped) { _, linkInfoRequests ->
+      fetchExtraLinkInfo(linkInfoRequests.toMap())
     }
 
-    val spanUpdateBatchList = spanUpdateBatchResultList.mapNotNull { it.valueOrNull() }
+    val spanUpdateBatchList = spanUpdateBatchResultList
+      .logFailures(TAG, "startLoading()")
+      .values()
+      .flatten()
+      .mapNotNull { it.valueOrNull() }
     if (spanUpdateBatchList.isEmpty()) {
       // All results are errors
       return failed()
@@ -138,26 +152,31 @@ internal class PostExtraContentLoader(
   }
 
   private suspend fun fetchExtraLinkInfo(
-    requestUrl: String,
-    linkInfoRequest: LinkInfoRequest
-  ): ModularResult<SpanUpdateBatch> {
+    linkInfoRequests: Map<String, LinkInfoRequest>
+  ): List<ModularResult<SpanUpdateBatch>> {
     BackgroundUtils.ensureBackgroundThread()
 
+    val mediaServiceType = linkInfoRequests.values.first().mediaServiceType
     val fetcher = linkExtraInfoFetchers.firstOrNull { fetcher ->
-      fetcher.mediaServiceType == linkInfoRequest.mediaServiceType
+      fetcher.mediaServiceType == mediaServiceType
     }
 
     if (fetcher == null) {
-      val error = IllegalStateException("Couldn't find fetcher for mediaServiceType ${linkInfoRequest.mediaServiceType}")
-      return ModularResult.error(error)
+      val error = IllegalStateException("Couldn't find fetcher for mediaServiceType ${mediaServiceType}")
+      return listOf(ModularResult.error(error))
     }
 
-    return ModularResult.Try {
+    val results = ModularResult.Try {
       withTimeout(TimeUnit.MINUTES.toMillis(MAX_LINK_INFO_FETCH_TIMEOUT_SECONDS)) {
-        Logger.d(TAG, "fetchExtraLinkInfo('$requestUrl') fetcher=${fetcher.javaClass.simpleName}")
-        fetcher.fetch(requestUrl, linkInfoRequest).unwrap()
+        Logger.d(TAG, "fetchExtraLinkInfo(${linkInfoRequests.keys}) fetcher=${fetcher.javaClass.simpleName}")
+        fetcher.fetch(linkInfoRequests)
       }
     }
+
+    return when (results) {
+      is ModularResult.Error -> listOf(ModularResult.error(results.error))
+      is ModularResult.Value -> results.value.values.toList()
+    }
   }
 
   private fun createNewRequests(
@@ -22,6 +22,9 @@ class PostHighlightFilterLoader(
   private val postFilterHighlightManager: PostFilterHighlightManager
 ) : OnDemandContentLoader(LoaderType.PostHighlightFilterLoader) {
 
+  // Highlights are calculated over the post comment which PostExtraContentLoader may update
+  override val dependsOn: Set<LoaderType> = setOf(LoaderType.PostExtraContentLoader)
+
   override suspend fun isCached(postLoaderData: PostLoaderData): Boolean {
     return true
   }
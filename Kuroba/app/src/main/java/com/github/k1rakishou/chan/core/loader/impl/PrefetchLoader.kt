@@ -32,6 +32,9 @@ class PrefetchLoader(
 ) : OnDemandContentLoader(LoaderType.PrefetchLoader) {
   private val cacheFileType = CacheFileType.PostMediaFull
 
+  // Images may be hidden behind 4chan's CloudFlare check which the preloader passes for us
+  override val dependsOn: Set<LoaderType> = setOf(LoaderType.Chan4CloudFlareImagePreLoader)
+
   override suspend fun isCached(postLoaderData: PostLoaderData): Boolean {
     BackgroundUtils.ensureBackgroundThread()
 
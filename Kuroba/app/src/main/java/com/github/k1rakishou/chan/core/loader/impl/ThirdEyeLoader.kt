@@ -17,7 +17,7 @@ import com.github.k1rakishou.common.errorMessageOrClassName
 import com.github.k1rakishou.common.isJson
 import com.github.k1rakishou.common.isNotNullNorBlank
 import com.github.k1rakishou.common.mutableListWithCap
-import com.github.k1rakishou.common.processDataCollectionConcurrently
+import com.github.k1rakishou.common.processDataCollectionInParallel
 import com.github.k1rakishou.common.suspendCall
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
@@ -179,19 +179,19 @@ class ThirdEyeLoader(
     boorusSettings: List<BooruSetting>,
     matchedHashes: List<Pair<String, ChanPostImage>>
   ): Boolean {
-    val results = processDataCollectionConcurrently(
+    val processingResult = processDataCollectionInParallel(
       dataList = matchedHashes,
-      batchCount = 4,
+      parallelism = 4,
       dispatcher = Dispatchers.IO
-    ) { (imageHash, postImage) ->
+    ) { _, (imageHash, postImage) ->
       val cachedThirdEyeImage = thirdEyeManager.imageForPost(postDescriptor)
       if (cachedThirdEyeImage != null) {
         val chanPostImage = cachedThirdEyeImage.chanPostImage
         if (chanPostImage == null) {
-          return@processDataCollectionConcurrently false
+          return@processDataCollectionInParallel false
         }
 
-        return@processDataCollectionConcurrently chanThreadManager.addImage(chanPostImage)
+        return@processDataCollectionInParallel chanThreadManager.addImage(chanPostImage)
       }
 
       for (booruSettings in boorusSettings) {
@@ -224,7 +224,7 @@ class ThirdEyeLoader(
               ?: continue
 
             if (!chanThreadManager.addImage(thirdEyeImage)) {
-              return@processDataCollectionConcurrently false
+              return@processDataCollectionInParallel false
             }
 
             thirdEyeManager.addImage(
@@ -237,7 +237,7 @@ class ThirdEyeLoader(
             // Image found
             Logger.d(TAG, "Found third eye image: ${thirdEyeImage}")
 
-            return@processDataCollectionConcurrently true
+            return@processDataCollectionInParallel true
           }
         }
       }
@@ -252,10 +252,13 @@ class ThirdEyeLoader(
       )
 
       Logger.d(TAG, "Nothing found imageHash='$imageHash'")
-      return@processDataCollectionConcurrently false
+      return@processDataCollectionInParallel false
     }
 
-    return results.any { success -> success }
+    return processingResult
+      .logFailures(TAG, "processImages()")
+      .values()
+      .any { success -> success }
   }
 
   private suspend fun processSingleBooru(
@@ -24,7 +24,10 @@ internal abstract class ExternalMediaServiceExtraInfoFetcher {
 
   abstract suspend fun isCached(videoId: GenericVideoId): Boolean
 
-  abstract suspend fun fetch(requestUrl: String, linkInfoRequest: LinkInfoRequest): ModularResult<SpanUpdateBatch>
+  /**
+   * Fetches extra info for all [linkInfoRequests] (requestUrl -> request) of a post at once
+   * */
+  abstract suspend fun fetch(linkInfoRequests: Map<String, LinkInfoRequest>): Map<String, ModularResult<SpanUpdateBatch>>
 
   /**
    * Whether this fetcher can parse the link
@@ -45,42 +48,55 @@ internal abstract class ExternalMediaServiceExtraInfoFetcher {
   protected open suspend fun genericFetch(
     tag: String,
     icon: Bitmap,
-    requestUrl: String,
-    linkInfoRequest: LinkInfoRequest,
+    linkInfoRequests: Map<String, LinkInfoRequest>,
     mediaServiceLinkExtraContentRepository: MediaServiceLinkExtraContentRepository
-  ): ModularResult<SpanUpdateBatch> {
+  ): Map<String, ModularResult<SpanUpdateBatch>> {
     BackgroundUtils.ensureBackgroundThread()
 
-    val getLinkExtraContentResult = mediaServiceLinkExtraContentRepository.getLinkExtraContent(
-      mediaServiceType,
-      requestUrl,
-      linkInfoRequest.videoId
+    val linkExtraContentRequests = linkInfoRequests.map { (requestUrl, linkInfoRequest) ->
+      MediaServiceLinkExtraContentRepository.LinkExtraContentRequest(
+        mediaServiceType,
+        requestUrl,
+        linkInfoRequest.videoId
+      )
+    }
+
+    val getLinkExtraContentResults = mediaServiceLinkExtraContentRepository.getLinkExtraContentBatch(
+      linkExtraContentRequests
     )
 
-    return ModularResult.Try {
-      val extraLinkInfo = when (getLinkExtraContentResult) {
-        is ModularResult.Error -> ExtraLinkInfo.Error
-        is ModularResult.Value -> {
-          if (getLinkExtraContentResult.value.isValid()) {
-            ExtraLinkInfo.Success(
-              mediaServiceType,
-              getLinkExtraContentResult.value.videoTitle,
-              getLinkExtraContentResult.value.videoDuration
-            )
-          } else {
-            ExtraLinkInfo.NotAvailable
+    return linkInfoRequests.mapValues { (requestUrl, linkInfoRequest) ->
+      val mediaServiceKey = MediaServiceLinkExtraContentRepository.MediaServiceKey(
+        linkInfoRequest.videoId,
+        mediaServiceType
+      )
+
+      return@mapValues ModularResult.Try {
+        val extraLinkInfo = when (val getLinkExtraContentResult = getLinkExtraContentResults[mediaServiceKey]) {
+          null,
+          is ModularResult.Error -> ExtraLinkInfo.Error
+          is ModularResult.Value -> {
+            if (getLinkExtraContentResult.value.isValid()) {
+              ExtraLinkInfo.Success(
+                mediaServiceType,
+                getLinkExtraContentResult.value.videoTitle,
+                getLinkExtraContentResult.value.videoDuration
+              )
+            } else {
+              ExtraLinkInfo.NotAvailable
+            }
           }
         }
-      }
 
-      return@Try SpanUpdateBatch(
-        requestUrl,
-        extraLinkInfo,
-        linkInfoRequest.oldPostLinkableSpans,
-        icon
-      )
-    }.peekError { error ->
-      Logger.e(tag, "Error while processing response", error)
+        return@Try SpanUpdateBatch(
+          requestUrl,
+          extraLinkInfo,
+          linkInfoRequest.oldPostLinkableSpans,
+          icon
+        )
+      }.peekError { error ->
+        Logger.e(tag, "Error while processing response", error)
+      }
     }
   }
 }
\ No newline at end of file
@@ -37,27 +37,27 @@ internal class StreamableMediaServiceExtraInfoFetcher(
   }
 
   override suspend fun fetch(
-    requestUrl: String,
-    linkInfoRequest: LinkInfoRequest
-  ): ModularResult<SpanUpdateBatch> {
+    linkInfoRequests: Map<String, LinkInfoRequest>
+  ): Map<String, ModularResult<SpanUpdateBatch>> {
     BackgroundUtils.ensureBackgroundThread()
 
     if (!isEnabled()) {
-      return ModularResult.value(
-        SpanUpdateBatch(
-          requestUrl,
-          ExtraLinkInfo.Success(mediaServiceType, null, null),
-          linkInfoRequest.oldPostLinkableSpans,
-          streamableIcon
+      return linkInfoRequests.mapValues { (requestUrl, linkInfoRequest) ->
+        ModularResult.value(
+          SpanUpdateBatch(
+            requestUrl,
+            ExtraLinkInfo.Success(mediaServiceType, null, null),
+            linkInfoRequest.oldPostLinkableSpans,
+            streamableIcon
+          )
         )
-      )
+      }
     }
 
     return genericFetch(
       TAG,
       streamableIcon,
-      requestUrl,
-      linkInfoRequest,
+      linkInfoRequests,
       mediaServiceLinkExtraContentRepository
     )
   }
@@ -54,6 +54,8 @@ class BookmarksManager(
 
   @GuardedBy("lock")
   private val bookmarks = mutableMapWithCap<ChanDescriptor.ThreadDescriptor, ThreadBookmark>(256)
+  @GuardedBy("lock")
+  private val dirtyBookmarks = DirtyBookmarks()
 
   private val applicationVisibilityManager: ApplicationVisibilityManager
     get() = _applicationVisibilityManager.get()
@@ -95,6 +97,7 @@ class BookmarksManager(
       is ModularResult.Value -> {
         lock.write {
           bookmarks.clear()
+          dirtyBookmarks.clear()
 
           bookmarksResult.value.forEach { threadBookmark ->
             bookmarks[threadBookmark.threadDescriptor] = threadBookmark
@@ -267,6 +270,7 @@ class BookmarksManager(
 
         actuallyCreated += threadDescriptor
         bookmarks[threadDescriptor] = threadBookmark
+        dirtyBookmarks.markChanged(threadDescriptor)
       }
     }
 
@@ -293,6 +297,7 @@ class BookmarksManager(
         }
 
         bookmarks.remove(threadDescriptor)
+        dirtyBookmarks.markDeleted(threadDescriptor)
         actuallyDeleted += threadDescriptor
       }
 
@@ -355,6 +360,7 @@ class BookmarksManager(
 
         if (oldThreadBookmark != mutatedBookmark) {
           bookmarks[threadDescriptor] = mutatedBookmark
+          dirtyBookmarks.markChanged(threadDescriptor)
           updatedBookmarks += threadDescriptor
         }
       }
@@ -384,6 +390,7 @@ class BookmarksManager(
       if (toDelete.size > 0) {
         toDelete.forEach { threadDescriptor ->
           bookmarks.remove(threadDescriptor)
+          dirtyBookmarks.markDeleted(threadDescriptor)
         }
       }
     }
@@ -401,6 +408,7 @@ class BookmarksManager(
     lock.write {
       allBookmarksDescriptors.addAll(bookmarks.keys.toList())
       bookmarks.clear()
+      dirtyBookmarks.clear()
     }
 
     persistBookmarksExecutor.post {
@@ -429,6 +437,8 @@ class BookmarksManager(
         threadBookmark.updateLastViewedPostNo(lastPostInThreadNo)
       }
 
+      dirtyBookmarks.markChanged(threadDescriptor)
+
       bookmarksChanged(BookmarkChange.BookmarksUpdated(listOf(threadDescriptor)))
     }
   }
@@ -445,6 +455,8 @@ class BookmarksManager(
         threadBookmark.readAllPostsAndNotifications()
       }
 
+      bookmarks.keys.forEach { threadDescriptor -> dirtyBookmarks.markChanged(threadDescriptor) }
+
       bookmarksChanged(BookmarkChange.BookmarksUpdated(bookmarks.keys))
     }
   }
@@ -633,6 +645,14 @@ class BookmarksManager(
       return
     }
 
+    lock.write {
+      threadDescriptors.forEach { threadDescriptor ->
+        if (bookmarks.containsKey(threadDescriptor)) {
+          dirtyBookmarks.markChanged(threadDescriptor)
+        }
+      }
+    }
+
     Logger.d(TAG, "persistBookmarksManually() persistBookmarksInternal called")
     persistBookmarksInternal()
     Logger.d(TAG, "persistBookmarksManually() persistBookmarksInternal finished")
@@ -702,17 +722,32 @@ class BookmarksManager(
   }
 
   private suspend fun persistBookmarksInternal() {
-    bookmarksRepository.persist(getAllBookmarks())
+    val (changes, changedBookmarks) = lock.write {
+      if (dirtyBookmarks.isEmpty()) {
+        return
+      }
+
+      val changes = dirtyBookmarks.takeChanges()
+      val changedBookmarks = changes.changed.mapNotNull { threadDescriptor ->
+        bookmarks[threadDescriptor]?.deepCopy()
+      }
+
+      return@write changes to changedBookmarks
+    }
+
+    bookmarksRepository.persistChanged(changedBookmarks, changes.deleted)
       .safeUnwrap { error ->
         Logger.e(TAG, "Failed to persist bookmarks", error)
+
+        // Put everything back so that we can retry on the next flush
+        lock.write {
+          dirtyBookmarks.restore(changes) { threadDescriptor -> bookmarks.containsKey(threadDescriptor) }
+        }
+
         return
       }
   }
 
-  private fun getAllBookmarks(): List<ThreadBookmark> {
-    return lock.read { bookmarks.values.map { bookmark -> bookmark.deepCopy() } }
-  }
-
   private fun activeBookmarkPredicate(threadBookmark: ThreadBookmark): Boolean {
     val siteDescriptor = threadBookmark.threadDescriptor.siteDescriptor()
     val isArchiveBookmark = archivesManager.isSiteArchive(siteDescriptor)
@@ -3,6 +3,8 @@ package com.github.k1rakishou.chan.core.manager
 import androidx.annotation.GuardedBy
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.okhttp.RealProxiedOkHttpClient
+import com.github.k1rakishou.chan.core.base.okhttp.RequestPriority
+import com.github.k1rakishou.chan.core.base.okhttp.priority
 import com.github.k1rakishou.common.awaitSilently
 import com.github.k1rakishou.common.bidirectionalMap
 import com.github.k1rakishou.common.errorMessageOrClassName
@@ -364,23 +366,27 @@ class Chan4CloudFlareImagePreloaderManager(
     val request = Request.Builder()
       .url(imageUrl)
       .head()
+      .priority(RequestPriority.Prefetch)
       .build()
 
     val response = realProxiedOkHttpClient.okHttpClient().suspendCall(request)
     lock.write { preloading[postImage.ownerPostDescriptor]?.completed() }
 
-    if (!response.isSuccessful) {
-      Logger.e(TAG, "preloadImage() (imageUrl=$imageUrl, filename=${filename}) FAILURE, " +
-        "statusCode: ${response.code}")
-      return
-    }
+    // HEAD responses have no body to read but they still hold a request slot until closed
+    response.use {
+      if (!response.isSuccessful) {
+        Logger.e(TAG, "preloadImage() (imageUrl=$imageUrl, filename=${filename}) FAILURE, " +
+          "statusCode: ${response.code}")
+        return
+      }
 
-    if (ENABLE_LOGS) {
-      val cfCacheStatusHeaderValue = response.header("CF-Cache-Status")
-        ?: "<null>"
+      if (ENABLE_LOGS) {
+        val cfCacheStatusHeaderValue = response.header("CF-Cache-Status")
+          ?: "<null>"
 
-      Logger.d(TAG, "preloadImage() (imageUrl=$imageUrl, filename=${filename}) SUCCESS, " +
-        "cfCacheStatusHeaderValue=$cfCacheStatusHeaderValue")
+        Logger.d(TAG, "preloadImage() (imageUrl=$imageUrl, filename=${filename}) SUCCESS, " +
+          "cfCacheStatusHeaderValue=$cfCacheStatusHeaderValue")
+      }
     }
   }
 
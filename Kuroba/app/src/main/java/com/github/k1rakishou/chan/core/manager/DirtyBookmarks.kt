@@ -0,0 +1,69 @@
+package com.github.k1rakishou.chan.core.manager
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+
+/**
+ * Keeps track of the bookmarks that were created/updated or deleted since the last flush of
+ * [BookmarksManager] so that only these bookmarks are written into the database. Not thread safe,
+ * [BookmarksManager] only accesses it while holding its lock.
+ * */
+class DirtyBookmarks {
+  private val changed = mutableSetOf<ChanDescriptor.ThreadDescriptor>()
+  private val deleted = mutableSetOf<ChanDescriptor.ThreadDescriptor>()
+
+  fun isEmpty(): Boolean {
+    return changed.isEmpty() && deleted.isEmpty()
+  }
+
+  fun markChanged(threadDescriptor: ChanDescriptor.ThreadDescriptor) {
+    // A bookmark that was deleted and then created again before the flush stays in [deleted] so
+    // that the old rows (and replies) are removed before the new bookmark is inserted.
+    changed += threadDescriptor
+  }
+
+  fun markDeleted(threadDescriptor: ChanDescriptor.ThreadDescriptor) {
+    changed.remove(threadDescriptor)
+    deleted += threadDescriptor
+  }
+
+  fun clear() {
+    changed.clear()
+    deleted.clear()
+  }
+
+  /**
+   * Returns everything that was marked since the previous call and starts tracking from scratch.
+   * */
+  fun takeChanges(): Changes {
+    val changes = Changes(changed.toSet(), deleted.toSet())
+    clear()
+
+    return changes
+  }
+
+  /**
+   * Puts [changes] back after they failed to be persisted so that they are retried on the next
+   * flush. Changes that became obsolete in the meantime (a changed bookmark that has since been
+   * deleted or a deleted bookmark that has since been created again) are not restored, the newer
+   * marks already cover them.
+   * */
+  fun restore(changes: Changes, bookmarkExists: (ChanDescriptor.ThreadDescriptor) -> Boolean) {
+    changes.deleted.forEach { threadDescriptor ->
+      if (!bookmarkExists(threadDescriptor)) {
+        deleted += threadDescriptor
+      }
+    }
+
+    changes.changed.forEach { threadDescriptor ->
+      if (bookmarkExists(threadDescriptor)) {
+        changed += threadDescriptor
+      }
+    }
+  }
+
+  data class Changes(
+    val changed: Set<ChanDescriptor.ThreadDescriptor>,
+    val deleted: Set<ChanDescriptor.ThreadDescriptor>
+  )
+
+}
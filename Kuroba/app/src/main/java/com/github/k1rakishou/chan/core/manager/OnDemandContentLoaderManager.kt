@@ -4,24 +4,21 @@ import androidx.annotation.GuardedBy
 import com.github.k1rakishou.chan.core.base.QueueableConcurrentCoroutineExecutor
 import com.github.k1rakishou.chan.core.loader.LoaderBatchResult
 import com.github.k1rakishou.chan.core.loader.LoaderResult
+import com.github.k1rakishou.chan.core.loader.OnDemandContentLoadScheduler
 import com.github.k1rakishou.chan.core.loader.OnDemandContentLoader
 import com.github.k1rakishou.chan.core.loader.PostLoaderData
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.isExceptionImportant
-import com.github.k1rakishou.common.mutableListWithCap
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharedFlow
-import kotlinx.coroutines.isActive
 import kotlinx.coroutines.withContext
-import kotlinx.coroutines.withTimeoutOrNull
 import java.util.*
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.collections.HashMap
@@ -47,13 +44,68 @@ class OnDemandContentLoaderManager(
   val postUpdateFlow: SharedFlow<LoaderBatchResult>
     get() = _postUpdateFlow
 
+  private val loadScheduler = OnDemandContentLoadScheduler()
+
   private val executor = QueueableConcurrentCoroutineExecutor(
     maxConcurrency = 64,
     dispatcher = dispatcher,
     scope = scope
   )
 
-  fun onPostBind(postDescriptor: PostDescriptor, catalogMode: Boolean) {
+  fun onListScrollStateChanged(listScrollState: OnDemandContentLoadScheduler.ListScrollState) {
+    loadScheduler.updateScrollState(listScrollState)
+  }
+
+  /**
+   * Called with the posts that are currently visible on the screen. Visible posts are loaded
+   * before the posts that were bound in advance and loading of the posts that are now too far
+   * away from the visible ones is canceled.
+   * */
+  fun onVisiblePostsChanged(chanDescriptor: ChanDescriptor, visiblePosts: Set<PostDescriptor>) {
+    loadScheduler.updateVisiblePosts(chanDescriptor, visiblePosts)
+
+    if (visiblePosts.isEmpty()) {
+      return
+    }
+
+    val farAwayPosts = lock.read {
+      val postLoaderDataMap = activeLoaders[chanDescriptor]
+        ?: return@read emptyList<PostDescriptor>()
+
+      var minVisibleIndex = Int.MAX_VALUE
+      var maxVisibleIndex = Int.MIN_VALUE
+
+      for (visiblePost in visiblePosts) {
+        val postIndex = postLoaderDataMap[visiblePost]?.postIndex ?: -1
+        if (postIndex < 0) {
+          continue
+        }
+
+        minVisibleIndex = Math.min(minVisibleIndex, postIndex)
+        maxVisibleIndex = Math.max(maxVisibleIndex, postIndex)
+      }
+
+      if (minVisibleIndex > maxVisibleIndex) {
+        return@read emptyList<PostDescriptor>()
+      }
+
+      return@read postLoaderDataMap.values
+        .filter { postLoaderData ->
+          val postIndex = postLoaderData.postIndex
+          if (postIndex < 0) {
+            return@filter false
+          }
+
+          return@filter postIndex < minVisibleIndex - FAR_AWAY_POSTS_DISTANCE
+            || postIndex > maxVisibleIndex + FAR_AWAY_POSTS_DISTANCE
+        }
+        .map { postLoaderData -> postLoaderData.postDescriptor }
+    }
+
+    farAwayPosts.forEach { postDescriptor -> removeFromActiveLoaders(postDescriptor) }
+  }
+
+  fun onPostBind(postDescriptor: PostDescriptor, catalogMode: Boolean, postIndex: Int = -1) {
     check(loaders.isNotEmpty()) { "No loaders!" }
 
     val chanDescriptor = postDescriptor.descriptor
@@ -67,7 +119,7 @@ class OnDemandContentLoaderManager(
         return@write null
       }
 
-      val postLoaderData = PostLoaderData(catalogMode, postDescriptor)
+      val postLoaderData = PostLoaderData(catalogMode, postDescriptor, postIndex)
       activeLoaders[chanDescriptor]!![postDescriptor] = postLoaderData
       return@write postLoaderData
     }
@@ -129,7 +181,7 @@ class OnDemandContentLoaderManager(
     }
   }
 
-  private suspend fun CoroutineScope.onPostBindInternal(postLoaderData: PostLoaderData): LoaderBatchResult? {
+  private suspend fun onPostBindInternal(postLoaderData: PostLoaderData): LoaderBatchResult? {
     BackgroundUtils.ensureBackgroundThread()
     val postDescriptor = postLoaderData.postDescriptor
 
@@ -141,15 +193,10 @@ class OnDemandContentLoaderManager(
 
     val allLoadersCached = loaders.all { loader -> loader.isCached(postLoaderData) }
 
-    // Add some delay here to avoid visual glitches when quickly scrolling through posts
-    // (Especially when using the fast scroller). In case when the post loader results are not
-    // cached by the loaders we use the long delay, otherwise if everything is already cached,
-    // we use the short delay.
-    if (!allLoadersCached) {
-      delay(LONG_LOADING_DELAY_TIME_MS)
-    } else {
-      delay(SHORT_LOADING_DELAY_TIME_MS)
-    }
+    // Do not start loading while the user is quickly scrolling through posts (Especially when
+    // using the fast scroller) to avoid visual glitches and wasting traffic on posts that will be
+    // scrolled away in a moment.
+    loadScheduler.awaitLoadAllowed(postDescriptor, allLoadersCached)
 
     if (!isStillActive(postLoaderData)) {
       removeFromActiveLoaders(postDescriptor)
@@ -162,26 +209,12 @@ class OnDemandContentLoaderManager(
       MAX_LOADER_LOADING_TIME_NORMAL_MS
     }
 
-    // We want to process loaders in the same order they are in the list
     val loaderResults = withContext(Dispatchers.Default) {
-      withTimeoutOrNull(maxLoadingTime) {
-        loaders.fold(mutableListWithCap<LoaderResult>(loaders.size)) { acc, loader ->
-          if (!isActive) {
-            acc += LoaderResult.Failed(loader.loaderType)
-          } else {
-            acc += loader.startLoading(postLoaderData)
-          }
-
-          return@fold acc
-        }
-      }
+      OnDemandContentLoadScheduler.runLoaders(loaders, postLoaderData, maxLoadingTime)
     }
 
-    if (loaderResults == null) {
-      val allFailed = loaders.map { loader -> LoaderResult.Failed(loader.loaderType) }
-
+    if (loaderResults.all { loaderResult -> loaderResult is LoaderResult.Failed }) {
       removeFromActiveLoaders(postDescriptor)
-      return LoaderBatchResult(postDescriptor, allFailed)
     }
 
     return LoaderBatchResult(postLoaderData.postDescriptor, loaderResults)
@@ -210,8 +243,8 @@ class OnDemandContentLoaderManager(
 
   companion object {
     private const val TAG = "OnDemandContentLoaderManager"
-    const val LONG_LOADING_DELAY_TIME_MS = 1500L
-    const val SHORT_LOADING_DELAY_TIME_MS = 500L
+    // Posts that are this many posts away from the visible ones are not going to be visible soon
+    private const val FAR_AWAY_POSTS_DISTANCE = 20
     const val MAX_LOADER_LOADING_TIME_NORMAL_MS = 15_000L
     const val MAX_LOADER_LOADING_TIME_DEBUGGING_MS = 600_000L
   }
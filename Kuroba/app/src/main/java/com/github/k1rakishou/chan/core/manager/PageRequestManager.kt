@@ -162,15 +162,7 @@ class PageRequestManager(
     val pages = getPages(boardDescriptor, requestPagesIfNotCached)
       ?: return null
 
-    for (page in pages.boardPages) {
-      for ((threadDescriptor, _) in page.threads) {
-        if (opNo == threadDescriptor.threadNo) {
-          return page
-        }
-      }
-    }
-
-    return null
+    return pages.findPage(opNo)
   }
 
   private fun getPages(boardDescriptor: BoardDescriptor, requestPagesIfNotCached: Boolean): BoardPages? {
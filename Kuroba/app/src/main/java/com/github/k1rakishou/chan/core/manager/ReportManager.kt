@@ -161,6 +161,8 @@ class ReportManager(
       appendLine("ImageSaver root directory: ${PersistableChanState.imageSaverV2PersistedOptions.get().rootDirectoryUri}")
       appendLine("OkHttp IPv6 support enabled: ${ChanSettings.okHttpAllowIpv6.get()}")
       appendLine("OkHttp HTTP/2 support enabled: ${ChanSettings.okHttpAllowHttp2.get()}")
+      appendLine("OkHttp DNS over HTTPS enabled: ${ChanSettings.okHttpUseDnsOverHttps.get()}, " +
+        "race DNS resolvers: ${ChanSettings.okHttpRaceDnsResolvers.get()}")
 
       appendLine("Foreground watcher enabled: ${ChanSettings.watchEnabled.get()}")
       if (ChanSettings.watchEnabled.get()) {
@@ -180,6 +182,7 @@ class ReportManager(
 
       appendLine("Thread downloader interval: ${ChanSettings.threadDownloaderUpdateInterval.get()}")
       appendLine("Thread downloader download media on metered network: ${ChanSettings.threadDownloaderDownloadMediaOnMeteredNetwork.get()}")
+      appendLine("Thread downloader max bytes per second: ${ChanSettings.threadDownloaderMaxBytesPerSecond.get()}")
 
       appendLine("------------------------------")
     }
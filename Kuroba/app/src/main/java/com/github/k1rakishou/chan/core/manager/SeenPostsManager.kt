@@ -2,14 +2,12 @@ package com.github.k1rakishou.chan.core.manager
 
 import androidx.annotation.GuardedBy
 import com.github.k1rakishou.ChanSettings
-import com.github.k1rakishou.chan.core.base.DebouncingCoroutineExecutor
 import com.github.k1rakishou.common.errorMessageOrClassName
 import com.github.k1rakishou.common.hashSetWithCap
 import com.github.k1rakishou.common.linkedMapWithCap
 import com.github.k1rakishou.common.mutableIteration
 import com.github.k1rakishou.common.mutableMapWithCap
 import com.github.k1rakishou.common.putIfNotContains
-import com.github.k1rakishou.common.toHashSetBy
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
@@ -35,14 +33,13 @@ class SeenPostsManager(
   private val verboseLogsEnabled: Boolean,
   private val chanThreadsCache: ChanThreadsCache,
   private val catalogSnapshotCache: ChanCatalogSnapshotCache,
+  private val applicationVisibilityManager: ApplicationVisibilityManager,
   private val seenPostsRepository: SeenPostRepository
 ) {
   private val lock = ReentrantReadWriteLock()
   @GuardedBy("lock")
   private val seenPostsMap = linkedMapWithCap<ChanDescriptor.ThreadDescriptor, MutableMap<PostDescriptor, SeenPost>>(256)
   @GuardedBy("lock")
-  private val seenPostsToPersist = mutableMapOf<ChanDescriptor.ThreadDescriptor, MutableMap<PostDescriptor, SeenPost>>()
-  @GuardedBy("lock")
   private var lastLoadedCatalogDescriptor: ChanDescriptor.ICatalogDescriptor? = null
   @GuardedBy("lock")
   private val alreadyLoadedDescriptorsForUnlimitedCatalog = hashSetWithCap<ChanDescriptor.ThreadDescriptor>(32)
@@ -51,9 +48,20 @@ class SeenPostsManager(
   val seenThreadUpdatesFlow: SharedFlow<ChanDescriptor.ThreadDescriptor>
     get() = _seenThreadUpdatesFlow.asSharedFlow()
 
-  private val debouncingCoroutineExecutor = DebouncingCoroutineExecutor(appScope)
+  private val seenPostsPersistBuffer = SeenPostsPersistBuffer(
+    scope = appScope,
+    flushWindowMs = FLUSH_WINDOW_MS,
+    persister = { threadDescriptor, seenPosts -> persistSeenPosts(threadDescriptor, seenPosts) }
+  )
 
   init {
+    applicationVisibilityManager.addListener { applicationVisibility ->
+      if (applicationVisibility.isInBackground()) {
+        // The process may get killed at any moment after this point.
+        seenPostsPersistBuffer.flushAllAsync()
+      }
+    }
+
     chanThreadsCache.addChanThreadDeleteEventListener { threadDeleteEvent ->
       if (verboseLogsEnabled) {
         Logger.d(TAG, "chanThreadsCache.chanThreadDeleteEventFlow() " +
@@ -153,12 +161,17 @@ class SeenPostsManager(
       return
     }
 
-    val seenPost = SeenPost(
-      postDescriptor = postDescriptor,
-      insertedAt = DateTime.now()
-    )
+    val alreadySeen = lock.read {
+      seenPostsMap[postDescriptor.threadDescriptor()]?.containsKey(postDescriptor) == true
+    }
 
-    createNewSeenPosts(listOf(seenPost))
+    if (alreadySeen) {
+      return
+    }
+
+    seenPostsPersistBuffer.add(postDescriptor) {
+      SeenPost(postDescriptor = postDescriptor, insertedAt = DateTime.now())
+    }
   }
 
   fun onPostUnbind(threadMode: Boolean, postDescriptor: PostDescriptor) {
@@ -173,85 +186,35 @@ class SeenPostsManager(
     return lock.read { (seenPostsMap[threadDescriptor]?.size ?: 0) > 0 }
   }
 
-  private fun createNewSeenPosts(seenPosts: Collection<SeenPost>) {
-    if (seenPosts.isEmpty()) {
-      return
+  /**
+   * Called by [SeenPostsPersistBuffer] once per thread per flush window with all the marks that
+   * were accumulated for that thread. Marks become visible in [seenPostsMap] only after they were
+   * stored in the database.
+   * */
+  private suspend fun persistSeenPosts(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    seenPosts: Collection<SeenPost>
+  ): Boolean {
+    if (verboseLogsEnabled) {
+      Logger.d(TAG, "persistSeenPosts() persisting ${seenPosts.size} posts")
     }
 
-    val needPersist = lock.write {
-      var needPersist = false
-
-      for (seenPost in seenPosts) {
-        val postDescriptor = seenPost.postDescriptor
-        val threadDescriptor = postDescriptor.threadDescriptor()
-
-        seenPostsToPersist.putIfNotContains(threadDescriptor, mutableMapWithCap(32))
-
-        if (seenPostsMap[threadDescriptor]?.contains(postDescriptor) == true) {
-          continue
-        }
-
-        if (seenPostsToPersist[threadDescriptor]?.contains(postDescriptor) == true) {
-          continue
-        }
-
-        seenPostsToPersist[threadDescriptor]!!.put(postDescriptor, seenPost)
-        needPersist = true
+    seenPostsRepository.insertMany(threadDescriptor, seenPosts)
+      .safeUnwrap { error ->
+        Logger.e(TAG, "Error while trying to store new seen post with threadDescriptor " +
+          "($threadDescriptor), error = ${error.errorMessageOrClassName()}")
+        return false
       }
 
-      return@write needPersist
-    }
+    lock.write {
+      seenPostsMap.putIfNotContains(threadDescriptor, mutableMapWithCap(32))
 
-    if (!needPersist) {
-      return
+      val innerMap = seenPostsMap[threadDescriptor]!!
+      seenPosts.forEach { seenPost -> innerMap[seenPost.postDescriptor] = seenPost }
     }
 
-    debouncingCoroutineExecutor.post(DEBOUNCE_TIMEOUT_MS) {
-      val threadDescriptors = seenPosts.toHashSetBy { seenPost -> seenPost.postDescriptor.threadDescriptor() }
-
-      val toPersistMap = lock.write {
-        val toPersistMap = mutableMapOf<ChanDescriptor.ThreadDescriptor, Set<SeenPost>>()
-
-        for (threadDescriptor in threadDescriptors) {
-          val seenPostsMap = seenPostsToPersist.remove(threadDescriptor)
-            ?.toMutableMap()
-
-          if (seenPostsMap == null || seenPostsMap.values.isEmpty()) {
-            continue
-          }
-
-          toPersistMap[threadDescriptor] = seenPostsMap.values.toSet()
-        }
-
-        return@write toPersistMap
-      }
-
-      if (toPersistMap.isEmpty()) {
-        return@post
-      }
-
-      toPersistMap.forEach { (threadDescriptor, seenPostSet) ->
-        if (verboseLogsEnabled) {
-          Logger.d(TAG, "onPostBind() persisting ${seenPostSet.size} posts")
-        }
-
-        seenPostsRepository.insertMany(threadDescriptor, seenPostSet)
-          .safeUnwrap { error ->
-            Logger.e(TAG, "Error while trying to store new seen post with threadDescriptor " +
-                "($threadDescriptor), error = ${error.errorMessageOrClassName()}")
-            return@post
-          }
-
-        lock.write {
-          seenPostsMap.putIfNotContains(threadDescriptor, mutableMapWithCap(32))
-
-          val innerMap = seenPostsMap[threadDescriptor]!!
-          seenPostSet.forEach { seenPost -> innerMap[seenPost.postDescriptor] = seenPost }
-        }
-
-        _seenThreadUpdatesFlow.emit(threadDescriptor)
-      }
-    }
+    _seenThreadUpdatesFlow.emit(threadDescriptor)
+    return true
   }
 
   private fun isEnabled() = ChanSettings.markUnseenPosts.get()
@@ -324,6 +287,6 @@ class SeenPostsManager(
 
   companion object {
     private const val TAG = "SeenPostsManager"
-    private const val DEBOUNCE_TIMEOUT_MS = 250L
+    private const val FLUSH_WINDOW_MS = 500L
   }
 }
\ No newline at end of file
@@ -0,0 +1,222 @@
+package com.github.k1rakishou.chan.core.manager
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.common.mutableMapWithCap
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.SeenPost
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+
+/**
+ * Accumulates seen post marks in memory and persists them in batches (one [persister] call per
+ * thread) at most once per [flushWindowMs]. Unlike debouncing, the window is not prolonged by new
+ * marks so fast scrolling through a huge thread still persists marks every [flushWindowMs].
+ * Marks of the previous thread are flushed right away when marks of another thread start to
+ * arrive (the user switched threads).
+ *
+ * Marks are only removed from the buffer after [persister] has reported that they were
+ * successfully stored, if it fails they are put back and retried with an exponential backoff
+ * (starting at [flushWindowMs], at most [MAX_RETRY_DELAY_MS]). The thread is skipped by other
+ * flushes while it's backing off. After [maxAttempts] failed attempts in a row the marks of the
+ * thread are dropped.
+ * */
+class SeenPostsPersistBuffer(
+  private val scope: CoroutineScope,
+  private val flushWindowMs: Long,
+  private val maxAttempts: Int = MAX_ATTEMPTS,
+  private val persister: suspend (ChanDescriptor.ThreadDescriptor, Collection<SeenPost>) -> Boolean
+) {
+  private val lock = Any()
+  // Flushes must not run concurrently, otherwise a retried batch may overtake a newer one.
+  private val flushMutex = Mutex()
+
+  @GuardedBy("lock")
+  private val pending = linkedMapOf<ChanDescriptor.ThreadDescriptor, MutableMap<PostDescriptor, SeenPost>>()
+  @GuardedBy("lock")
+  private val inFlight = mutableMapOf<ChanDescriptor.ThreadDescriptor, Map<PostDescriptor, SeenPost>>()
+  @GuardedBy("lock")
+  private var lastThreadDescriptor: ChanDescriptor.ThreadDescriptor? = null
+  @GuardedBy("lock")
+  private var scheduledFlushJob: Job? = null
+  @GuardedBy("lock")
+  private val failedAttempts = mutableMapOf<ChanDescriptor.ThreadDescriptor, Int>()
+  @GuardedBy("lock")
+  private val backingOff = mutableSetOf<ChanDescriptor.ThreadDescriptor>()
+
+  fun contains(postDescriptor: PostDescriptor): Boolean {
+    val threadDescriptor = postDescriptor.threadDescriptor()
+
+    return synchronized(lock) {
+      pending[threadDescriptor]?.containsKey(postDescriptor) == true
+        || inFlight[threadDescriptor]?.containsKey(postDescriptor) == true
+    }
+  }
+
+  /**
+   * Adds a mark for [postDescriptor] (created lazily with [seenPostFactory] so that already
+   * buffered posts don't allocate anything). Returns false if the post is already buffered.
+   * */
+  fun add(postDescriptor: PostDescriptor, seenPostFactory: () -> SeenPost): Boolean {
+    val threadDescriptor = postDescriptor.threadDescriptor()
+    var previousThreadDescriptor: ChanDescriptor.ThreadDescriptor? = null
+
+    synchronized(lock) {
+      if (pending[threadDescriptor]?.containsKey(postDescriptor) == true
+        || inFlight[threadDescriptor]?.containsKey(postDescriptor) == true) {
+        return false
+      }
+
+      pending.getOrPut(threadDescriptor) { mutableMapWithCap(32) }[postDescriptor] = seenPostFactory()
+
+      if (lastThreadDescriptor != threadDescriptor) {
+        previousThreadDescriptor = lastThreadDescriptor
+        lastThreadDescriptor = threadDescriptor
+      }
+
+      scheduleFlushLocked()
+    }
+
+    previousThreadDescriptor?.let { prevThreadDescriptor ->
+      if (hasPending(prevThreadDescriptor)) {
+        scope.launch { flush(prevThreadDescriptor) }
+      }
+    }
+
+    return true
+  }
+
+  fun flushAllAsync() {
+    scope.launch { flush(null) }
+  }
+
+  /**
+   * Persists buffered marks of [threadDescriptor] (or of all threads when null) right away.
+   * */
+  suspend fun flush(threadDescriptor: ChanDescriptor.ThreadDescriptor?) {
+    flushMutex.withLock {
+      val toPersist = synchronized(lock) {
+        val threadDescriptors = if (threadDescriptor != null) {
+          listOf(threadDescriptor)
+        } else {
+          pending.keys.toList()
+        }
+
+        val toPersist = mutableMapWithCap<ChanDescriptor.ThreadDescriptor, Map<PostDescriptor, SeenPost>>(
+          threadDescriptors.size
+        )
+
+        for (descriptor in threadDescriptors) {
+          if (descriptor in backingOff) {
+            continue
+          }
+
+          val seenPosts = pending.remove(descriptor)
+          if (seenPosts.isNullOrEmpty()) {
+            continue
+          }
+
+          inFlight[descriptor] = seenPosts
+          toPersist[descriptor] = seenPosts
+        }
+
+        return@synchronized toPersist
+      }
+
+      toPersist.forEach { (descriptor, seenPosts) ->
+        val success = try {
+          persister(descriptor, seenPosts.values)
+        } catch (error: Throwable) {
+          synchronized(lock) { requeueLocked(descriptor, seenPosts) }
+          throw error
+        }
+
+        synchronized(lock) {
+          if (success) {
+            inFlight.remove(descriptor)
+            failedAttempts.remove(descriptor)
+          } else {
+            onPersistFailedLocked(descriptor, seenPosts)
+          }
+        }
+      }
+    }
+  }
+
+  private fun hasPending(threadDescriptor: ChanDescriptor.ThreadDescriptor): Boolean {
+    return synchronized(lock) { pending[threadDescriptor]?.isNotEmpty() == true }
+  }
+
+  @GuardedBy("lock")
+  private fun onPersistFailedLocked(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    seenPosts: Map<PostDescriptor, SeenPost>
+  ) {
+    val attempts = (failedAttempts[threadDescriptor] ?: 0) + 1
+    if (attempts >= maxAttempts) {
+      Logger.e(TAG, "Dropping ${seenPosts.size} seen posts of $threadDescriptor after $attempts failed attempts")
+
+      inFlight.remove(threadDescriptor)
+      failedAttempts.remove(threadDescriptor)
+      return
+    }
+
+    failedAttempts[threadDescriptor] = attempts
+    requeueLocked(threadDescriptor, seenPosts)
+
+    val retryDelayMs = Math.min(flushWindowMs shl (attempts - 1), MAX_RETRY_DELAY_MS)
+    backingOff += threadDescriptor
+
+    scope.launch {
+      try {
+        delay(retryDelayMs)
+      } finally {
+        synchronized(lock) { backingOff.remove(threadDescriptor) }
+      }
+
+      flush(threadDescriptor)
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun requeueLocked(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    seenPosts: Map<PostDescriptor, SeenPost>
+  ) {
+    inFlight.remove(threadDescriptor)
+
+    val pendingSeenPosts = pending.getOrPut(threadDescriptor) { mutableMapWithCap(seenPosts.size) }
+    seenPosts.forEach { (postDescriptor, seenPost) ->
+      pendingSeenPosts.putIfAbsent(postDescriptor, seenPost)
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun scheduleFlushLocked() {
+    if (scheduledFlushJob != null) {
+      return
+    }
+
+    scheduledFlushJob = scope.launch {
+      try {
+        delay(flushWindowMs)
+      } finally {
+        synchronized(lock) { scheduledFlushJob = null }
+      }
+
+      flush(null)
+    }
+  }
+
+  companion object {
+    private const val TAG = "SeenPostsPersistBuffer"
+    private const val MAX_ATTEMPTS = 8
+    private const val MAX_RETRY_DELAY_MS = 60_000L
+  }
+
+}
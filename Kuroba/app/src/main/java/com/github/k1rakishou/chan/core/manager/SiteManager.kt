@@ -21,6 +21,7 @@ import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
+import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.concurrent.read
 import kotlin.concurrent.write
@@ -39,6 +40,9 @@ open class SiteManager(
   private val debouncer = DebouncingCoroutineExecutor(appScope)
 
   private val sitesChangedSubject = PublishProcessor.create<Unit>()
+  // Incremented every time the set of active sites or their order changes. Used to invalidate
+  // things that depend on them (e.g. SiteResolver's host index).
+  private val sitesVersion = AtomicLong(0L)
 
   private val lock = ReentrantReadWriteLock()
   @GuardedBy("lock")
@@ -93,6 +97,7 @@ open class SiteManager(
       }
 
       ensureSitesAndOrdersConsistency()
+      sitesVersion.incrementAndGet()
       suspendableInitializer.initWithValue(Unit)
 
       Logger.d(TAG, "siteRepository.initializeSites() done. Loaded ${result.value.size} sites")
@@ -351,6 +356,7 @@ open class SiteManager(
       }
 
       orders.add(toIndex, orders.removeAt(fromIndex))
+      sitesVersion.incrementAndGet()
     }
 
     ensureSitesAndOrdersConsistency()
@@ -376,7 +382,11 @@ open class SiteManager(
     Logger.d(TAG, "SiteManager initialization completed, took $duration")
   }
 
+  fun sitesVersion(): Long = sitesVersion.get()
+
   private fun sitesChanged() {
+    sitesVersion.incrementAndGet()
+
     if (isDevFlavor) {
       ensureSitesAndOrdersConsistency()
     }
@@ -4,6 +4,7 @@ import androidx.annotation.GuardedBy
 import com.github.k1rakishou.chan.core.helper.OneShotRunnable
 import com.github.k1rakishou.chan.core.helper.ThreadDownloaderFileManagerWrapper
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadingDelegate
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadMediaBlobStore
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.extractFileName
@@ -35,7 +36,8 @@ class ThreadDownloadManager(
   private val appScope: CoroutineScope,
   private val _threadDownloaderFileManagerWrapper: Lazy<ThreadDownloaderFileManagerWrapper>,
   private val _threadDownloadRepository: Lazy<ThreadDownloadRepository>,
-  private val _chanPostRepository: Lazy<ChanPostRepository>
+  private val _chanPostRepository: Lazy<ChanPostRepository>,
+  private val _threadMediaBlobStore: Lazy<ThreadMediaBlobStore>
 ) {
   private val mutex = Mutex()
 
@@ -45,6 +47,8 @@ class ThreadDownloadManager(
     get() = _threadDownloadRepository.get()
   private val chanPostRepository: ChanPostRepository
     get() = _chanPostRepository.get()
+  private val threadMediaBlobStore: ThreadMediaBlobStore
+    get() = _threadMediaBlobStore.get()
   private val fileManager: FileManager
     get() = threadDownloaderFileManagerWrapper.fileManager
 
@@ -275,6 +279,9 @@ class ThreadDownloadManager(
       fileManager.delete(resultDirectory)
     }
 
+    // Media files that were only referenced by the deleted threads are not needed anymore
+    withContext(Dispatchers.IO) { threadMediaBlobStore.collectGarbage() }
+
     threadDescriptors.forEach { threadDescriptor ->
       _threadDownloadUpdateFlow.emit(Event.CancelDownload(threadDescriptor))
       Logger.d(TAG, "cancelDownloading() success, threadDescriptor=$threadDescriptor")
@@ -27,6 +27,25 @@ class KurobaProxySelector(
     Logger.e(TAG, "connectFailed($uri, $sa, ${ioe.errorMessageOrClassName()})")
   }
 
+  /**
+   * OkHttp only reuses pooled connections between clients with equal proxy selectors. Selectors of
+   * different action types are equal when neither of them currently uses a proxy (which is the case
+   * for most of the users) so that all of the clients can share the connections.
+   * */
+  override fun equals(other: Any?): Boolean {
+    if (this === other) return true
+    if (other !is KurobaProxySelector) return false
+    if (proxyStorage !== other.proxyStorage) return false
+    if (proxyActionType == other.proxyActionType) return true
+
+    return !proxyStorage.hasEnabledProxies(proxyActionType)
+      && !proxyStorage.hasEnabledProxies(other.proxyActionType)
+  }
+
+  override fun hashCode(): Int {
+    return proxyStorage.hashCode()
+  }
+
   companion object {
     private const val TAG = "KurobaProxySelector"
   }
@@ -1009,7 +1009,7 @@ class ThreadPresenter @Inject constructor(
       BackgroundUtils.ensureBackgroundThread()
 
       val postDescriptor = postCellData.postDescriptor
-      onDemandContentLoaderManager.onPostBind(postDescriptor, catalogMode)
+      onDemandContentLoaderManager.onPostBind(postDescriptor, catalogMode, postCellData.postIndex)
       seenPostsManager.onPostBind(postCellData.isViewingThread, postDescriptor)
       threadBookmarkViewPost(postCellData)
     }
@@ -16,6 +16,7 @@
  */
 package com.github.k1rakishou.chan.core.repository
 
+import com.github.k1rakishou.chan.core.backup.BackupProgress
 import com.github.k1rakishou.chan.core.usecase.ExportBackupFileUseCase
 import com.github.k1rakishou.chan.core.usecase.ImportBackupFileUseCase
 import com.github.k1rakishou.chan.core.usecase.KurobaSettingsImportUseCase
@@ -40,15 +41,21 @@ class ImportExportRepository @Inject constructor(
 
   suspend fun exportTo(
     backupFile: ExternalFile,
-    exportBackupOptions: ExportBackupOptions
+    exportBackupOptions: ExportBackupOptions,
+    onProgress: (BackupProgress) -> Unit
   ): ModularResult<Unit> {
-    val params = ExportBackupFileUseCase.Params(backupFile, exportBackupOptions)
+    val params = ExportBackupFileUseCase.Params(backupFile, exportBackupOptions, onProgress)
 
     return exportBackupFileUseCase.execute(params)
   }
 
-  suspend fun importFrom(backupFile: ExternalFile): ModularResult<Unit> {
-    return importBackupFileUseCase.execute(backupFile)
+  suspend fun importFrom(
+    backupFile: ExternalFile,
+    onProgress: (BackupProgress) -> Unit
+  ): ModularResult<Unit> {
+    val params = ImportBackupFileUseCase.Params(backupFile, onProgress)
+
+    return importBackupFileUseCase.execute(params)
   }
 
   suspend fun importFromKuroba(settingsFile: ExternalFile): ModularResult<Boolean> {
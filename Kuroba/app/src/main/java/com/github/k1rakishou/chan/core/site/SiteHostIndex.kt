@@ -0,0 +1,172 @@
+/*
+ * KurobaEx - *chan browser https://github.com/K1rakishou/Kuroba-Experimental/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.k1rakishou.chan.core.site
+
+import okhttp3.HttpUrl
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Remembers which site (if any) handles a host. Whether a site responds to a url (or whether it's
+ * one of the site's media hosts) only depends on the url's host so once we have resolved a host we
+ * don't need to go through all the sites again for any other url with the same host.
+ *
+ * Entries are tagged with the [sitesVersion] they were resolved with so that everything gets
+ * re-resolved once sites are activated/deactivated or reordered.
+ * */
+class SiteHostIndex(
+  private val maxSize: Int = DEFAULT_MAX_SIZE
+) {
+  private val hostToSiteMap = ConcurrentHashMap<String, ResolvedHost>(64)
+
+  fun findSiteForHost(
+    host: String,
+    sitesVersion: Long,
+    resolver: (HttpUrl) -> Site?
+  ): Site? {
+    val resolvedHost = hostToSiteMap[host]
+    if (resolvedHost != null && resolvedHost.sitesVersion == sitesVersion) {
+      return resolvedHost.site
+    }
+
+    val httpUrl = HttpUrl.Builder()
+      .scheme("https")
+      .host(host)
+      .build()
+
+    val site = resolver(httpUrl)
+
+    if (hostToSiteMap.size >= maxSize) {
+      // Hosts that don't belong to any site (random links in posts) may end up here as well so
+      // we don't want this map to grow indefinitely.
+      hostToSiteMap.clear()
+    }
+
+    hostToSiteMap[host] = ResolvedHost(sitesVersion, site)
+    return site
+  }
+
+  fun clear() {
+    hostToSiteMap.clear()
+  }
+
+  private class ResolvedHost(
+    val sitesVersion: Long,
+    val site: Site?
+  )
+
+  companion object {
+    private const val DEFAULT_MAX_SIZE = 512
+
+    /**
+     * Extracts a host (lower-cased) out of a http/https url (or out of a url without a scheme)
+     * without parsing the whole url. Returns null for everything that is not a simple ascii host
+     * with at least one dot (IDN hosts, user info, IPv6 etc.), those urls should go through the
+     * regular HttpUrl parsing.
+     * */
+    @JvmStatic
+    fun extractHostOrNull(url: String): String? {
+      val hostStart = when {
+        url.startsWith(HTTPS_SCHEME, ignoreCase = true) -> HTTPS_SCHEME.length
+        url.startsWith(HTTP_SCHEME, ignoreCase = true) -> HTTP_SCHEME.length
+        url.contains(SCHEME_SEPARATOR) -> return null
+        else -> 0
+      }
+
+      var hostEnd = url.length
+      var hasUpperCase = false
+      var hasDot = false
+      var labelLength = 0
+
+      for (index in hostStart until url.length) {
+        val ch = url[index]
+
+        when (ch) {
+          in 'a'..'z', in '0'..'9', '-' -> ++labelLength
+          in 'A'..'Z' -> {
+            hasUpperCase = true
+            ++labelLength
+          }
+          '.' -> {
+            if (labelLength == 0) {
+              return null
+            }
+
+            hasDot = true
+            labelLength = 0
+          }
+          '/', '?', '#' -> {
+            hostEnd = index
+            break
+          }
+          ':' -> {
+            if (!isValidPort(url, index + 1)) {
+              return null
+            }
+
+            hostEnd = index
+            break
+          }
+          else -> return null
+        }
+
+        if (labelLength > MAX_LABEL_LENGTH) {
+          return null
+        }
+      }
+
+      if (!hasDot || labelLength == 0) {
+        return null
+      }
+
+      val host = url.substring(hostStart, hostEnd)
+      if (hasUpperCase) {
+        return host.lowercase()
+      }
+
+      return host
+    }
+
+    private fun isValidPort(url: String, portStart: Int): Boolean {
+      var index = portStart
+
+      while (index < url.length) {
+        val ch = url[index]
+        if (ch == '/' || ch == '?' || ch == '#') {
+          break
+        }
+
+        if (ch !in '0'..'9') {
+          return false
+        }
+
+        ++index
+      }
+
+      val portLength = index - portStart
+      if (portLength !in 1..5) {
+        return false
+      }
+
+      return url.substring(portStart, index).toInt() in 1..65535
+    }
+
+    private const val MAX_LABEL_LENGTH = 63
+    private const val SCHEME_SEPARATOR = "://"
+    private const val HTTPS_SCHEME = "https://"
+    private const val HTTP_SCHEME = "http://"
+  }
+}
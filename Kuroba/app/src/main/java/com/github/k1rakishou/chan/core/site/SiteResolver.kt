@@ -25,6 +25,7 @@ import javax.inject.Inject
 open class SiteResolver @Inject constructor(
   private val siteManager: SiteManager
 ) {
+  private val siteHostIndex = SiteHostIndex()
 
   fun runWhenInitialized(func: (Throwable?) -> Unit) {
     siteManager.runWhenInitialized(func)
@@ -33,6 +34,17 @@ open class SiteResolver @Inject constructor(
   fun isInitialized(): Boolean = siteManager.isReady()
 
   open fun findSiteForUrl(url: String): Site? {
+    // Fast path: the result only depends on the url's host so we don't need to parse the whole
+    // url into HttpUrl for the most of the urls and the result of resolution is memoized.
+    val host = SiteHostIndex.extractHostOrNull(url)
+    if (host != null) {
+      return siteHostIndex.findSiteForHost(
+        host = host,
+        sitesVersion = siteManager.sitesVersion(),
+        resolver = { hostUrl -> findSiteForHttpUrl(hostUrl) }
+      )
+    }
+
     var httpUrl = sanitizeUrl(url)
 
     if (httpUrl == null) {
@@ -50,6 +62,10 @@ open class SiteResolver @Inject constructor(
       httpUrl = httpUrl.newBuilder().scheme("https").build()
     }
 
+    return findSiteForHttpUrl(httpUrl)
+  }
+
+  private fun findSiteForHttpUrl(httpUrl: HttpUrl): Site? {
     return siteManager.firstActiveSiteOrNull { _, site ->
       val siteUrlHandler = site.resolvable()
       if (siteUrlHandler.respondsTo(httpUrl)) {
@@ -8,7 +8,7 @@ import com.github.k1rakishou.chan.core.manager.PostHideManager
 import com.github.k1rakishou.chan.core.manager.SavedReplyManager
 import com.github.k1rakishou.chan.core.site.parser.PostParser
 import com.github.k1rakishou.chan.utils.BackgroundUtils
-import com.github.k1rakishou.common.processDataCollectionConcurrently
+import com.github.k1rakishou.common.processDataCollectionInParallel
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.filter.ChanFilter
@@ -44,10 +44,10 @@ abstract class AbstractParsePostsUseCase(
       return
     }
 
-    processDataCollectionConcurrently(postBuildersToParse, THREAD_COUNT * 2, Dispatchers.IO) { postToParse ->
+    processDataCollectionInParallel(postBuildersToParse, THREAD_COUNT * 2, Dispatchers.IO) { _, postToParse ->
       // needed for "Apply to own posts" to work correctly
       postToParse.isSavedReply(savedReplyManager.isSaved(postToParse.postDescriptor))
-    }
+    }.logFailures(TAG, "processSavedReplies()")
   }
 
   protected suspend fun processFilters(
@@ -58,17 +58,19 @@ abstract class AbstractParsePostsUseCase(
       return
     }
 
-    processDataCollectionConcurrently(postBuildersToParse, THREAD_COUNT * 2, Dispatchers.IO) { postToParse ->
+    processDataCollectionInParallel(postBuildersToParse, THREAD_COUNT * 2, Dispatchers.IO) { _, postToParse ->
       if (filters.isNotEmpty()) {
         processFilters(postToParse, filters)
       }
 
-      return@processDataCollectionConcurrently
-    }
+      return@processDataCollectionInParallel
+    }.logFailures(TAG, "processFilters()")
 
-    Logger.d(TAG, "postParsingProcessFiltersStage() " +
-      "cacheHits=${filterEngine.currentCacheHits()}, " +
-      "cacheMisses=${filterEngine.currentCacheMisses()}")
+    Logger.d(TAG) {
+      "postParsingProcessFiltersStage() " +
+        "cacheHits=${filterEngine.currentCacheHits()}, " +
+        "cacheMisses=${filterEngine.currentCacheMisses()}"
+    }
   }
 
   private fun processFilters(postToParse: ChanPostBuilder, filters: List<ChanFilter>) {
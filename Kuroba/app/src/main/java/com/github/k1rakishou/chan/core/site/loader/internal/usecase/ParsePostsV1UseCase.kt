@@ -10,7 +10,8 @@ import com.github.k1rakishou.chan.core.manager.SavedReplyManager
 import com.github.k1rakishou.chan.core.site.parser.PostParseWorker
 import com.github.k1rakishou.chan.core.site.parser.PostParser
 import com.github.k1rakishou.chan.utils.BackgroundUtils
-import com.github.k1rakishou.common.processDataCollectionConcurrently
+import com.github.k1rakishou.common.processDataCollectionInParallel
+import com.github.k1rakishou.common.valuesNotNull
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
@@ -100,12 +101,12 @@ class ParsePostsV1UseCase(
     }
 
     val (parsedPosts, parsingDuration) = measureTimedValue {
-      return@measureTimedValue processDataCollectionConcurrently(
+      return@measureTimedValue processDataCollectionInParallel(
         dataList = postBuildersToParse,
-        batchCount = THREAD_COUNT * 2,
+        parallelism = THREAD_COUNT * 2,
         dispatcher = Dispatchers.IO
-      ) { postToParse ->
-        return@processDataCollectionConcurrently PostParseWorker(
+      ) { _, postToParse ->
+        return@processDataCollectionInParallel PostParseWorker(
           postBuilder = postToParse,
           postParser = postParser,
           internalIds = internalIds,
@@ -114,9 +115,11 @@ class ParsePostsV1UseCase(
           isParsingCatalog = chanDescriptor is ChanDescriptor.ICatalogDescriptor
         ).parse()
       }
+        .logFailures(TAG, "parseNewPostsPosts(chanDescriptor=$chanDescriptor)")
+        .valuesNotNull()
     }
 
-    Logger.d(TAG, "parseNewPostsPosts(chanDescriptor=$chanDescriptor) -> parsedPosts=${parsedPosts.size}")
+    Logger.d(TAG) { "parseNewPostsPosts(chanDescriptor=$chanDescriptor) -> parsedPosts=${parsedPosts.size}" }
 
     val filters = loadFilters(chanDescriptor)
 
@@ -128,10 +131,12 @@ class ParsePostsV1UseCase(
       processFilters(postBuildersToParse, filters)
     }
 
-    Logger.d(TAG, "parseNewPostsPosts(chanDescriptor=$chanDescriptor, " +
-      "postsToParseSize=${postBuildersToParse.size}), " +
-      "internalIds=${internalIds.size}, " +
-      "filters=${filters.size}")
+    Logger.d(TAG) {
+      "parseNewPostsPosts(chanDescriptor=$chanDescriptor, " +
+        "postsToParseSize=${postBuildersToParse.size}), " +
+        "internalIds=${internalIds.size}, " +
+        "filters=${filters.size}"
+    }
 
     return ParsingResult(
       parsedPosts = parsedPosts,
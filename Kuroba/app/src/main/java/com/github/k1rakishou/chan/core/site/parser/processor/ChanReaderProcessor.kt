@@ -100,8 +100,10 @@ class ChanReaderProcessor(
       val postRanges = chanReadOptions.getRetainPostRanges(postOrderedList.size)
       val postDescriptorsToDelete = mutableSetOf<PostDescriptor>()
 
-      Logger.d(TAG, "applyChanReadOptions(chanReadOptions=$chanReadOptions) " +
-        "postsCount=${postOrderedList.size}, postRanges=$postRanges")
+      Logger.d(TAG) {
+        "applyChanReadOptions(chanReadOptions=$chanReadOptions) " +
+          "postsCount=${postOrderedList.size}, postRanges=$postRanges"
+      }
 
       for ((index, postDescriptor) in postOrderedList.withIndex()) {
         val anyRangeContainsThisPost = postRanges.any { postRange -> postRange.contains(index) }
@@ -117,7 +119,7 @@ class ChanReaderProcessor(
         return@withLock
       }
 
-      Logger.d(TAG, "applyChanReadOptions() postDescriptorsToDelete=${postDescriptorsToDelete.size}")
+      Logger.d(TAG) { "applyChanReadOptions() postDescriptorsToDelete=${postDescriptorsToDelete.size}" }
 
       postOrderedList.removeAll(postDescriptorsToDelete)
       toParse.removeIfKt { postToParse -> postToParse.postDescriptor in postDescriptorsToDelete }
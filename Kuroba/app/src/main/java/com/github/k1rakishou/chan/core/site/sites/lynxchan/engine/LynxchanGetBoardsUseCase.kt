@@ -4,7 +4,7 @@ import com.github.k1rakishou.chan.core.base.okhttp.RealProxiedOkHttpClient
 import com.github.k1rakishou.chan.core.usecase.ISuspendUseCase
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.ModularResult
-import com.github.k1rakishou.common.processDataCollectionConcurrently
+import com.github.k1rakishou.common.processDataCollectionInParallel
 import com.github.k1rakishou.common.suspendConvertIntoJsonObjectWithAdapter
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.board.ChanBoard
@@ -120,11 +120,11 @@ class LynxchanGetBoardsUseCase(
     val pages = (2..pageCount).toList()
     val lynxchanBoardsPageAdapter = moshi.adapter<LynxchanBoardsPage>(LynxchanBoardsPage::class.java)
 
-    return processDataCollectionConcurrently(
+    return processDataCollectionInParallel(
       dataList = pages,
-      batchCount = appConstants.processorsCount.coerceAtLeast(4),
+      parallelism = appConstants.processorsCount.coerceAtLeast(4),
       dispatcher = Dispatchers.IO
-    ) { page ->
+    ) { _, page ->
       Logger.d(TAG, "loadRestOfBoards() Loading page ${page}...")
 
       val request = Request.Builder()
@@ -145,8 +145,11 @@ class LynxchanGetBoardsUseCase(
 
       Logger.d(TAG, "loadRestOfBoards() Loading page ${page}...done")
 
-      return@processDataCollectionConcurrently boards
-    }.flatten()
+      return@processDataCollectionInParallel boards
+    }
+      .logFailures(TAG, "loadRestOfBoards()")
+      .values()
+      .flatten()
   }
 
   private fun boardsPageEndpoint(boardsEndpoint: HttpUrl, page: Int): HttpUrl {
@@ -2,6 +2,8 @@ package com.github.k1rakishou.chan.core.usecase
 
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient
+import com.github.k1rakishou.chan.core.base.okhttp.RequestPriority
+import com.github.k1rakishou.chan.core.base.okhttp.priority
 import com.github.k1rakishou.chan.core.helper.FilterEngine
 import com.github.k1rakishou.chan.core.manager.BoardManager
 import com.github.k1rakishou.chan.core.manager.BookmarksManager
@@ -15,8 +17,9 @@ import com.github.k1rakishou.common.EmptyBodyResponseException
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.errorMessageOrClassName
 import com.github.k1rakishou.common.isNotNullNorEmpty
-import com.github.k1rakishou.common.processDataCollectionConcurrently
+import com.github.k1rakishou.common.processDataCollectionInParallel
 import com.github.k1rakishou.common.suspendCall
+import com.github.k1rakishou.common.valuesNotNull
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.bookmark.BookmarkGroupMatchFlag
 import com.github.k1rakishou.model.data.bookmark.SimpleThreadBookmarkGroupToCreate
@@ -412,17 +415,19 @@ class BookmarkFilterWatchableThreadsUseCase(
     val filterWatchCatalogThreadInfoObjectList = filterWatchCatalogInfoObjects
       .flatMap { filterWatchCatalogInfoObject -> filterWatchCatalogInfoObject.catalogThreads }
 
-    return processDataCollectionConcurrently(
+    return processDataCollectionInParallel(
       dataList = filterWatchCatalogThreadInfoObjectList,
-      batchCount = batchSize,
+      parallelism = batchSize,
       dispatcher = Dispatchers.IO
-    ) { catalogThread ->
+    ) { _, catalogThread ->
       if (predicate(catalogThread)) {
-        return@processDataCollectionConcurrently catalogThread
+        return@processDataCollectionInParallel catalogThread
       }
 
-      return@processDataCollectionConcurrently null
+      return@processDataCollectionInParallel null
     }
+      .logFailures(TAG, "filterOutThreadsThatDoNotMatchWatchFilters()")
+      .valuesNotNull()
   }
 
   private fun filterOutNonSuccessResults(
@@ -453,22 +458,24 @@ class BookmarkFilterWatchableThreadsUseCase(
     val batchSize = (appConstants.processorsCount * BATCH_PER_CORE)
       .coerceAtLeast(MIN_BATCHES_COUNT)
 
-    return processDataCollectionConcurrently(boardDescriptorsToCheck, batchSize, Dispatchers.IO) { boardDescriptor ->
+    return processDataCollectionInParallel(boardDescriptorsToCheck, batchSize, Dispatchers.IO) { _, boardDescriptor ->
       val site = siteManager.bySiteDescriptor(boardDescriptor.siteDescriptor)
       if (site == null) {
         Logger.e(TAG, "Site with descriptor ${boardDescriptor.siteDescriptor} " +
           "not found in siteRepository!")
-        return@processDataCollectionConcurrently null
+        return@processDataCollectionInParallel null
       }
 
       val catalogJsonEndpoint = site.endpoints().catalog(boardDescriptor)
 
-      return@processDataCollectionConcurrently fetchBoardCatalog(
+      return@processDataCollectionInParallel fetchBoardCatalog(
         boardDescriptor,
         catalogJsonEndpoint,
         site.chanReader()
       )
     }
+      .logFailures(TAG, "fetchFilterWatcherCatalogs()")
+      .valuesNotNull()
   }
 
   private suspend fun fetchBoardCatalog(
@@ -483,6 +490,7 @@ class BookmarkFilterWatchableThreadsUseCase(
     val requestBilder = Request.Builder()
       .url(catalogJsonEndpoint)
       .get()
+      .priority(RequestPriority.Background)
 
     siteManager.bySiteDescriptor(boardDescriptor.siteDescriptor)?.let { site ->
       site.requestModifier().modifyCatalogOrThreadGetRequest(
@@ -503,24 +511,27 @@ class BookmarkFilterWatchableThreadsUseCase(
       return CatalogFetchResult.Error(error)
     }
 
-    if (!response.isSuccessful) {
-      val error = IOException("Bad status code: code=${response.code}, " +
-        "catalogJsonEndpoint=$catalogJsonEndpoint")
+    // Error responses must be closed too, otherwise their request slot is never given back
+    val filterWatchCatalogInfoObjectResult = response.use {
+      if (!response.isSuccessful) {
+        val error = IOException("Bad status code: code=${response.code}, " +
+          "catalogJsonEndpoint=$catalogJsonEndpoint")
 
-      return CatalogFetchResult.Error(error)
-    }
+        return CatalogFetchResult.Error(error)
+      }
 
-    val responseBody = response.body
-    if (responseBody == null) {
-      return CatalogFetchResult.Error(EmptyBodyResponseException())
-    }
+      val responseBody = response.body
+      if (responseBody == null) {
+        return CatalogFetchResult.Error(EmptyBodyResponseException())
+      }
 
-    val filterWatchCatalogInfoObjectResult = responseBody.byteStream().use { inputStream ->
-      return@use chanReader.readFilterWatchCatalogInfoObject(
-        boardDescriptor,
-        request.url.toString(),
-        inputStream
-      )
+      return@use responseBody.byteStream().use { inputStream ->
+        chanReader.readFilterWatchCatalogInfoObject(
+          boardDescriptor,
+          request.url.toString(),
+          inputStream
+        )
+      }
     }
 
     if (filterWatchCatalogInfoObjectResult is ModularResult.Error) {
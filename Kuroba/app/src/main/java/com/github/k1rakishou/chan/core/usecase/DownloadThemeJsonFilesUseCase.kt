@@ -3,9 +3,10 @@ package com.github.k1rakishou.chan.core.usecase
 import com.github.k1rakishou.chan.core.base.okhttp.RealProxiedOkHttpClient
 import com.github.k1rakishou.common.JsonConversionResult
 import com.github.k1rakishou.common.ModularResult
-import com.github.k1rakishou.common.processDataCollectionConcurrentlyIndexed
+import com.github.k1rakishou.common.processDataCollectionInParallel
 import com.github.k1rakishou.common.suspendCall
 import com.github.k1rakishou.common.suspendConvertIntoJsonObjectWithType
+import com.github.k1rakishou.common.valuesNotNull
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.core_themes.ChanTheme
 import com.github.k1rakishou.core_themes.ThemeEngine
@@ -53,14 +54,15 @@ class DownloadThemeJsonFilesUseCase(
       }
     }
 
-    return processDataCollectionConcurrentlyIndexed<RepoThemeFile, ChanTheme?>(repoFileTree) { _, repoFile ->
-      return@processDataCollectionConcurrentlyIndexed ModularResult
-        .Try { downloadThemeFileAndConvertToChanTheme(repoFile) }
-        .mapErrorToValue { error ->
-          Logger.e(TAG, "downloadThemeFileAndConvertToChanTheme($repoFile) error", error)
-          return@mapErrorToValue null
-        }
-    }.filterNotNull()
+    val processingResult = processDataCollectionInParallel(repoFileTree) { _, repoFile ->
+      return@processDataCollectionInParallel downloadThemeFileAndConvertToChanTheme(repoFile)
+    }
+
+    processingResult.failures.forEach { failedItem ->
+      Logger.e(TAG, "downloadThemeFileAndConvertToChanTheme(${failedItem.data}) error", failedItem.result.unwrapError())
+    }
+
+    return processingResult.valuesNotNull()
   }
 
   @Suppress("MoveVariableDeclarationIntoWhen", "BlockingMethodInNonBlockingContext")
@@ -2,7 +2,14 @@ package com.github.k1rakishou.chan.core.usecase
 
 import android.content.Context
 import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.chan.BuildConfig
+import com.github.k1rakishou.chan.core.backup.BackupManifest
+import com.github.k1rakishou.chan.core.backup.BackupProgress
+import com.github.k1rakishou.chan.core.backup.BackupWriter
+import com.github.k1rakishou.chan.core.backup.DatabaseSnapshotter
 import com.github.k1rakishou.chan.features.settings.screens.delegate.ExportBackupOptions
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadStateStore
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadMediaBlobStore
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.common.AndroidUtils
@@ -14,13 +21,12 @@ import com.github.k1rakishou.fsaf.FileManager
 import com.github.k1rakishou.fsaf.file.ExternalFile
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.repository.DatabaseMetaRepository
+import com.google.gson.Gson
 import okhttp3.internal.closeQuietly
-import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
 import java.io.File
-import java.io.FileInputStream
 import java.io.IOException
-import java.util.zip.ZipEntry
-import java.util.zip.ZipOutputStream
+import java.util.*
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTime
 
@@ -28,8 +34,10 @@ class ExportBackupFileUseCase(
   private val appContext: Context,
   private val appConstants: AppConstants,
   private val databaseMetaRepository: DatabaseMetaRepository,
-  private val fileManager: FileManager
+  private val fileManager: FileManager,
+  private val gson: Gson
 ) : ISuspendUseCase<ExportBackupFileUseCase.Params, ModularResult<Unit>> {
+  private val backupWriter = BackupWriter(DatabaseSnapshotter(), gson)
 
   override suspend fun execute(parameter: Params): ModularResult<Unit> {
     BackgroundUtils.ensureBackgroundThread()
@@ -37,33 +45,34 @@ class ExportBackupFileUseCase(
     val outputFile = parameter.externalFile
     val exportBackupOptions = parameter.exportBackupOptions
 
-    return ModularResult.Try { doExportInternal(outputFile, exportBackupOptions) }
+    return ModularResult.Try { doExportInternal(outputFile, exportBackupOptions, parameter.onProgress) }
   }
 
   @OptIn(ExperimentalTime::class)
-  private suspend fun doExportInternal(outputFile: ExternalFile, exportBackupOptions: ExportBackupOptions) {
-    Logger.d(TAG, "Export start")
+  private suspend fun doExportInternal(
+    outputFile: ExternalFile,
+    exportBackupOptions: ExportBackupOptions,
+    onProgress: (BackupProgress) -> Unit
+  ) {
+    Logger.d(TAG, "Export start, options=${exportBackupOptions}")
 
-    val databases = appContext.databaseList()
-    val filesToExport = mutableListOf<File>()
+    val sources = mutableListOf<BackupWriter.BackupSource>()
 
     val lightThemeFile = File(appContext.filesDir, ThemeParser.LIGHT_THEME_FILE_NAME)
     if (lightThemeFile.exists() && lightThemeFile.length() > 0) {
-      filesToExport += lightThemeFile
+      sources += BackupWriter.BackupSource.RegularFile(lightThemeFile.name, lightThemeFile)
     }
 
     val darkThemeFile = File(appContext.filesDir, ThemeParser.DARK_THEME_FILE_NAME)
     if (darkThemeFile.exists() && darkThemeFile.length() > 0) {
-      filesToExport += darkThemeFile
+      sources += BackupWriter.BackupSource.RegularFile(darkThemeFile.name, darkThemeFile)
     }
 
-    filesToExport += databases.mapNotNull { databaseName ->
-      if (!databaseName.contains(KurobaDatabase.DATABASE_NAME, ignoreCase = true)) {
-        return@mapNotNull null
-      }
-
-      return@mapNotNull appContext.getDatabasePath(databaseName)
-    }
+    // Only the database itself, its WAL is merged into the snapshot
+    sources += BackupWriter.BackupSource.Database(
+      name = KurobaDatabase.DATABASE_NAME,
+      file = appContext.getDatabasePath(KurobaDatabase.DATABASE_NAME)
+    )
 
     val sharedFilesDir = File(appContext.applicationInfo.dataDir, ChanSettings.SHARED_PREFS_DIR_NAME)
     val mainSharedPrefsFileName = ChanSettings.chanSettingsInfo.applicationId + "_preferences.xml"
@@ -73,31 +82,32 @@ class ExportBackupFileUseCase(
       val fileName = file.name
 
       if (fileName == mainSharedPrefsFileName) {
-        filesToExport += file
+        sources += BackupWriter.BackupSource.RegularFile(MAIN_PREFS_FILE_NAME, file)
         return@forEach
       }
 
       if (fileName.startsWith(AppModuleAndroidUtils.SITE_PREFS_FILE_PREFIX) && fileName.endsWith(".xml")) {
-        filesToExport += file
+        sources += BackupWriter.BackupSource.RegularFile(fileName, file)
         return@forEach
       }
 
       if (fileName == chanStatePrefsFileName) {
-        filesToExport += file
+        sources += BackupWriter.BackupSource.RegularFile(fileName, file)
         return@forEach
       }
     }
 
     if (exportBackupOptions.exportDownloadedThreadsMedia) {
-      filesToExport += appConstants.threadDownloaderCacheDir
+      collectThreadDownloadFiles(appConstants.threadDownloaderCacheDir, "${THREAD_DOWNLOADS_CACHE_DIR}/", sources)
     }
 
-    filesToExport.forEach { fileToExport ->
-      Logger.d(TAG, "File to export: '${fileToExport.absolutePath}'")
+    sources.forEach { source ->
+      Logger.d(TAG, "File to export: '${source.file.absolutePath}' as '${source.name}'")
     }
 
     Logger.d(TAG, "Executing checkpoint command...")
 
+    // Not needed for consistency (the database is snapshotted) but makes the snapshot faster
     val time = measureTime {
       databaseMetaRepository.checkpoint()
         .unwrap()
@@ -105,86 +115,112 @@ class ExportBackupFileUseCase(
 
     Logger.d(TAG, "Executing checkpoint command... done! took ${time}")
 
+    val lastBackupManifestFile = lastBackupManifestFile(appContext)
+    val previousManifest = if (exportBackupOptions.incremental) {
+      BackupManifest.load(gson, lastBackupManifestFile)
+    } else {
+      null
+    }
+
+    if (exportBackupOptions.incremental && previousManifest == null) {
+      Logger.d(TAG, "No previous backup found, exporting a full backup")
+    }
+
+    val workDir = File(appContext.cacheDir, WORK_DIR_NAME)
+    workDir.deleteRecursively()
+    workDir.mkdirs()
+
     val outputStream = fileManager.getOutputStream(outputFile)
       ?: throw IOException("Failed to open output stream for file '${outputFile.getFullPath()}'")
-    val zipOutputStream = ZipOutputStream(outputStream)
 
     Logger.d(TAG, "Output zip file='${outputFile.getFullPath()}'")
 
     try {
-      zipFiles(null, filesToExport, zipOutputStream) { directory, fileToExport ->
-        val fileName = when {
-          fileToExport.name == mainSharedPrefsFileName -> MAIN_PREFS_FILE_NAME
-          fileToExport == appConstants.threadDownloaderCacheDir -> THREAD_DOWNLOADS_CACHE_DIR
-          else -> fileToExport.name
-        }
-
-        if (directory == null) {
-          return@zipFiles fileName
-        }
-
-        return@zipFiles directory + fileName
+      val backupManifest = BufferedOutputStream(outputStream, BackupWriter.BUFFER_SIZE).use { bufferedOutputStream ->
+        backupWriter.write(
+          outputStream = bufferedOutputStream,
+          sources = sources,
+          previousManifest = previousManifest,
+          workDir = workDir,
+          appVersionCode = BuildConfig.VERSION_CODE,
+          onProgress = onProgress
+        )
       }
 
+      // Only once the backup is fully written, otherwise the next incremental backup would be
+      // based on a backup that doesn't exist
+      BackupManifest.save(gson, lastBackupManifestFile, backupManifest)
+
       Logger.d(TAG, "Export success!")
     } catch (error: Throwable) {
       Logger.e(TAG, "Export error", error)
       throw error
     } finally {
       outputStream.closeQuietly()
-      zipOutputStream.closeQuietly()
+      workDir.deleteRecursively()
     }
   }
 
-  private fun zipFiles(
-    directory: String?,
-    filesToExport: List<File>,
-    zipOutputStream: ZipOutputStream,
-    selectFileName: (String?, File) -> String
+  private fun collectThreadDownloadFiles(
+    directory: File,
+    namePrefix: String,
+    sources: MutableList<BackupWriter.BackupSource>
   ) {
-    for (fileToExport in filesToExport) {
-      if (fileToExport.isDirectory) {
-        val innerFiles = fileToExport.listFiles()?.toList() ?: emptyList()
-        val newDirectory = if (directory == null) {
-          selectFileName(null, fileToExport) + "/"
-        } else {
-          selectFileName(directory, fileToExport) + "/"
-        }
+    val innerFiles = directory.listFiles()
+      ?: return
 
-        zipFiles(newDirectory, innerFiles, zipOutputStream, selectFileName)
+    for (innerFile in innerFiles) {
+      // Thread directories already contain all the media (as hard links), exporting the blobs
+      // would store every file twice
+      if (innerFile.name == ThreadMediaBlobStore.BLOBS_DIR_NAME) {
+        continue
+      }
 
+      // Progress of the downloader's current pass (and AtomicFile's backup of it). It describes the
+      // files of this device at the time of the export, restoring it would make the downloader skip
+      // threads that were never restored (or restored partially)
+      if (innerFile.name.startsWith(ThreadDownloadStateStore.STATE_FILE_NAME)) {
         continue
       }
 
-      val fileInputStream = FileInputStream(fileToExport)
-      val bufferedInputStream = BufferedInputStream(fileInputStream, BUFFER_SIZE)
-
-      try {
-        val zipEntryName = selectFileName(directory, fileToExport)
-        zipOutputStream.putNextEntry(ZipEntry(zipEntryName))
-        bufferedInputStream.copyTo(zipOutputStream, BUFFER_SIZE)
-
-        Logger.d(TAG, "Writing file (zipEntryName='${zipEntryName}') '${fileToExport.absolutePath}' success!")
-        zipOutputStream.closeEntry()
-      } catch (error: Throwable) {
-        Logger.e(TAG, "Writing file '${fileToExport.absolutePath}' error", error)
-        throw error
-      } finally {
-        fileInputStream.closeQuietly()
-        bufferedInputStream.closeQuietly()
+      if (innerFile.isDirectory) {
+        collectThreadDownloadFiles(innerFile, "${namePrefix}${innerFile.name}/", sources)
+        continue
       }
+
+      sources += BackupWriter.BackupSource.RegularFile(
+        name = namePrefix + innerFile.name,
+        file = innerFile,
+        compress = !isCompressedMedia(innerFile)
+      )
     }
   }
 
+  private fun isCompressedMedia(file: File): Boolean {
+    return file.extension.lowercase(Locale.ENGLISH) in COMPRESSED_MEDIA_EXTENSIONS
+  }
+
   data class Params(
     val externalFile: ExternalFile,
-    val exportBackupOptions: ExportBackupOptions
+    val exportBackupOptions: ExportBackupOptions,
+    val onProgress: (BackupProgress) -> Unit = {}
   )
 
   companion object {
     private const val TAG = "ExportBackupFileUseCase"
     const val MAIN_PREFS_FILE_NAME = "main_prefs.xml"
     const val THREAD_DOWNLOADS_CACHE_DIR = "thread_downloads_cache_dir"
-    const val BUFFER_SIZE = 8192
+
+    private const val WORK_DIR_NAME = "backup_export"
+    private const val LAST_BACKUP_MANIFEST_FILE_NAME = "last_backup_manifest.json"
+
+    private val COMPRESSED_MEDIA_EXTENSIONS = setOf("jpg", "jpeg", "png", "gif", "webp", "webm", "mp4", "mp3")
+
+    /**
+     * The manifest of the last exported or imported backup, incremental backups are based on it.
+     * */
+    fun lastBackupManifestFile(appContext: Context): File {
+      return File(appContext.filesDir, LAST_BACKUP_MANIFEST_FILE_NAME)
+    }
   }
 }
\ No newline at end of file
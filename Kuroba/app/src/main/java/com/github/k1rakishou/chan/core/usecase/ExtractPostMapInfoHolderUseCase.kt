@@ -1,5 +1,6 @@
 package com.github.k1rakishou.chan.core.usecase
 
+import androidx.annotation.GuardedBy
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.manager.ChanFilterManager
 import com.github.k1rakishou.chan.core.manager.ChanThreadManager
@@ -8,13 +9,11 @@ import com.github.k1rakishou.chan.core.manager.SavedReplyManager
 import com.github.k1rakishou.chan.core.manager.SiteManager
 import com.github.k1rakishou.chan.core.manager.ThirdEyeManager
 import com.github.k1rakishou.chan.utils.BackgroundUtils
-import com.github.k1rakishou.core_spannable.PostLinkable
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.filter.FilterAction
-import com.github.k1rakishou.model.data.post.ChanPost
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
-import java.util.*
 
 class ExtractPostMapInfoHolderUseCase(
   private val savedReplyManager: SavedReplyManager,
@@ -25,386 +24,116 @@ class ExtractPostMapInfoHolderUseCase(
   private val thirdEyeManager: ThirdEyeManager
 ) : ISuspendUseCase<ExtractPostMapInfoHolderUseCase.Params, PostMapInfoHolder> {
 
-  override suspend fun execute(parameter: Params): PostMapInfoHolder {
-    return withContext(Dispatchers.IO) {
-      val postDescriptors = parameter.postDescriptors
-
-      val postsMap = chanThreadManager.getPosts(postDescriptors)
-        .associateBy { it.postDescriptor }
-
-      return@withContext PostMapInfoHolder(
-        myPostsPositionRanges = extractMyPostsPositionsFromPostList(parameter),
-        replyPositionRanges = extractReplyPositionsFromPostList(parameter, postsMap),
-        crossThreadQuotePositionRanges = extractCrossThreadReplyPositionsFromPostList(parameter, postsMap),
-        postFilterHighlightRanges = extractPostFilterHighlightsFromPostList(parameter),
-        deletedPostsPositionRanges = extractDeletedPostsPositionsFromPostList(parameter, postsMap),
-        hotPostsPositionRanges = extractHotPostsPositionsFromPostList(parameter, postsMap),
-        thirdEyePostsPositionRanges = extractThirdEyePostsPositionsFromPostList(parameter, postsMap)
-      )
-    }
-  }
-
-  private suspend fun extractThirdEyePostsPositionsFromPostList(
-    params: Params,
-    postsMap: Map<PostDescriptor, ChanPost>
-  ): List<PostMapInfoEntry> {
-    BackgroundUtils.ensureBackgroundThread()
-
-    if (!thirdEyeManager.isEnabled()) {
-      return emptyList()
-    }
-
-    val postDescriptors = params.postDescriptors
-    if (postDescriptors.isEmpty()) {
-      return emptyList()
-    }
-
-    val replyRanges: MutableList<PostMapInfoEntry> = ArrayList()
-    val duplicateChecker: MutableSet<Int> = HashSet()
-    var prevIndex = 0
-
-    for ((index, postDescriptor) in postDescriptors.withIndex()) {
-      if (!duplicateChecker.add(index)) {
-        continue
-      }
+  private val postMapInfoExtractor = PostMapInfoExtractor()
 
-      val post = postsMap[postDescriptor]
-        ?: continue
-
-      val postImages = post.postImages
-
-      val hasThirdEyeImageHash = postImages.any { chanPostImage ->
-        if (chanPostImage.isInlined) {
-          return@any false
-        }
-
-        return@any thirdEyeManager.extractThirdEyeHashOrNull(chanPostImage) != null
-      }
-
-      if (!hasThirdEyeImageHash) {
-        continue
-      }
-
-      connectRangesIfContiguous(prevIndex, index, replyRanges)
-      prevIndex = index
+  @GuardedBy("itself")
+  private val prevStates = object : LinkedHashMap<ChanDescriptor, PostMapInfoExtractor.State>(MAX_CACHED_STATES, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<ChanDescriptor, PostMapInfoExtractor.State>?): Boolean {
+      return size > MAX_CACHED_STATES
     }
-
-    return replyRanges
   }
 
-  private fun extractHotPostsPositionsFromPostList(
-    params: Params,
-    postsMap: Map<PostDescriptor, ChanPost>
-  ): List<PostMapInfoEntry> {
-    BackgroundUtils.ensureBackgroundThread()
-
-    if (!ChanSettings.markHotPostsOnScrollbar.get()) {
-      return emptyList()
-    }
-
-    val postDescriptors = params.postDescriptors
-    if (postDescriptors.isEmpty()) {
-      return emptyList()
-    }
-
-    var totalPostsWithRepliesCount = 0
-    var totalReplyCount = 0
-
-    postsMap.values.forEach { chanPost ->
-      if (chanPost.isOP()) {
-        // Ignore the OP here
-        return@forEach
-      }
+  override suspend fun execute(parameter: Params): PostMapInfoHolder {
+    return withContext(Dispatchers.IO) {
+      BackgroundUtils.ensureBackgroundThread()
 
-      val repliesFromCount = chanPost.repliesFromCount
-      if (repliesFromCount <= 0) {
-        // Do not include posts with 0 replies
-        return@forEach
+      val postDescriptors = parameter.postDescriptors
+      if (postDescriptors.isEmpty()) {
+        return@withContext PostMapInfoHolder()
       }
 
-      totalReplyCount += repliesFromCount
-      ++totalPostsWithRepliesCount
-    }
-
-    if (totalReplyCount <= 0 || totalPostsWithRepliesCount <= 0) {
-      return emptyList()
-    }
-
-    val medianRepliesCount = totalReplyCount.toFloat() / totalPostsWithRepliesCount.toFloat()
-    if (medianRepliesCount <= 1f) {
-      return emptyList()
-    }
-
-    // We consider posts HOT if their reply count is 3x higher than the median reply count in the thread
-    val targetRepliesCount = medianRepliesCount * 3f
-
-    val replyRanges: MutableList<PostMapInfoEntry> = ArrayList()
-    val duplicateChecker: MutableSet<Int> = HashSet()
-    var prevIndex = 0
+      val postsMap = chanThreadManager.getPosts(postDescriptors)
+        .associateBy { it.postDescriptor }
 
-    for ((index, postDescriptor) in postDescriptors.withIndex()) {
-      val post = postsMap[postDescriptor]
-        ?: continue
+      val prevState = synchronized(prevStates) { prevStates[parameter.chanDescriptor] }
 
-      if (post.isOP() || post.repliesFromCount <= targetRepliesCount || !duplicateChecker.add(index)) {
-        continue
-      }
+      val newState = postMapInfoExtractor.extract(
+        postDescriptors = postDescriptors,
+        postsMap = postsMap,
+        inputs = createInputs(parameter),
+        prevState = prevState
+      )
 
-      connectRangesIfContiguous(prevIndex, index, replyRanges)
-      prevIndex = index
+      synchronized(prevStates) { prevStates[parameter.chanDescriptor] = newState }
+      return@withContext newState.holder
     }
-
-    return replyRanges
   }
 
-  private fun extractDeletedPostsPositionsFromPostList(
-    params: Params,
-    postsMap: Map<PostDescriptor, ChanPost>
-  ): List<PostMapInfoEntry> {
-    BackgroundUtils.ensureBackgroundThread()
-
-    if (!ChanSettings.markDeletedPostsOnScrollbar.get()) {
-      return emptyList()
-    }
-
+  private suspend fun createInputs(params: Params): PostMapInfoExtractor.Inputs {
     val postDescriptors = params.postDescriptors
-    if (postDescriptors.isEmpty()) {
-      return emptyList()
-    }
-
-    val replyRanges: MutableList<PostMapInfoEntry> = ArrayList()
-    val duplicateChecker: MutableSet<Int> = HashSet()
-    var prevIndex = 0
+    val isViewingThread = params.isViewingThread
 
-    for ((index, postDescriptor) in postDescriptors.withIndex()) {
-      val post = postsMap[postDescriptor]
-        ?: continue
+    val siteDescriptor = postDescriptors.first().siteDescriptor()
+    val canMarkMyPosts = isViewingThread && siteManager.bySiteDescriptor(siteDescriptor) != null
+    val markMyPosts = canMarkMyPosts && ChanSettings.markYourPostsOnScrollbar.get()
+    val markReplies = canMarkMyPosts && ChanSettings.markRepliesToYourPostOnScrollbar.get()
 
-      if (!post.isDeleted || !duplicateChecker.add(index)) {
-        continue
+    val savedPostDescriptors: Set<PostDescriptor> = if (markMyPosts || markReplies) {
+      val threadDescriptor = postDescriptors.first().threadDescriptor()
+      HashSet(savedReplyManager.retainSavedPostNoMap(postDescriptors, threadDescriptor))
+    } else {
+      emptySet()
+    }
+
+    val thirdEyeEnabled = thirdEyeManager.isEnabled()
+
+    return PostMapInfoExtractor.Inputs(
+      markMyPosts = markMyPosts,
+      markReplies = markReplies,
+      markCrossThreadQuotes = isViewingThread && ChanSettings.markCrossThreadQuotesOnScrollbar.get(),
+      markDeletedPosts = ChanSettings.markDeletedPostsOnScrollbar.get(),
+      markHotPosts = ChanSettings.markHotPostsOnScrollbar.get(),
+      thirdEyeEnabled = thirdEyeEnabled,
+      savedPostDescriptors = savedPostDescriptors,
+      highlightColor = createHighlightColorFunc(postDescriptors),
+      hasThirdEyeImage = { post ->
+        post.postImages.any { chanPostImage ->
+          !chanPostImage.isInlined && thirdEyeManager.extractThirdEyeHashOrNull(chanPostImage) != null
+        }
       }
-
-      connectRangesIfContiguous(prevIndex, index, replyRanges)
-      prevIndex = index
-    }
-
-    return replyRanges
+    )
   }
 
-  private fun extractPostFilterHighlightsFromPostList(params: Params): List<PostMapInfoEntry> {
-    BackgroundUtils.ensureBackgroundThread()
-
-    val postDescriptors = params.postDescriptors
-    if (postDescriptors.isEmpty()) {
-      return emptyList()
-    }
-
+  private fun createHighlightColorFunc(postDescriptors: List<PostDescriptor>): (PostDescriptor) -> Int {
     val filtersMap = chanFilterManager.getEnabledHighlightFilters()
       .associateBy { chanFilter -> chanFilter.getDatabaseId() }
     if (filtersMap.isEmpty()) {
-      return emptyList()
+      return { 0 }
     }
 
     val filterHighlightsMap = postFilterManager.getManyFilterHighlights(postDescriptors)
     if (filterHighlightsMap.isEmpty()) {
-      return emptyList()
+      return { 0 }
     }
 
-    val replyRanges: MutableList<PostMapInfoEntry> = ArrayList()
-    val duplicateChecker: MutableSet<Int> = HashSet()
-    var prevIndex = 0
-
-    for ((index, post) in postDescriptors.withIndex()) {
-      val filterHighlight = filterHighlightsMap[post]
-        ?: continue
+    return func@ { postDescriptor ->
+      val filterHighlight = filterHighlightsMap[postDescriptor]
+        ?: return@func 0
 
-      if (filterHighlight.ownerFilterId == null
-        || filterHighlight.highlightedColor == 0
-        || !duplicateChecker.add(index)
-      ) {
-        continue
+      if (filterHighlight.ownerFilterId == null || filterHighlight.highlightedColor == 0) {
+        return@func 0
       }
 
       val chanFilter = filtersMap[filterHighlight.ownerFilterId]
       if (chanFilter?.action != FilterAction.COLOR.id) {
-        continue
-      }
-
-      connectRangesIfContiguousWithColor(prevIndex, index, chanFilter.color, replyRanges)
-      prevIndex = index
-    }
-
-    return replyRanges
-  }
-
-  private fun extractMyPostsPositionsFromPostList(params: Params): List<PostMapInfoEntry> {
-    BackgroundUtils.ensureBackgroundThread()
-
-    if (!ChanSettings.markYourPostsOnScrollbar.get()) {
-      return emptyList()
-    }
-
-    val postDescriptors = params.postDescriptors
-    val isViewingThread = params.isViewingThread
-
-    if (postDescriptors.isEmpty() || !isViewingThread) {
-      return emptyList()
-    }
-
-    val siteDescriptor = postDescriptors.first().siteDescriptor()
-    if (siteManager.bySiteDescriptor(siteDescriptor) == null) {
-      return emptyList()
-    }
-
-    val threadDescriptor = postDescriptors.first().threadDescriptor()
-    val savedPostDescriptorSet = HashSet(
-      savedReplyManager.retainSavedPostNoMap(postDescriptors, threadDescriptor)
-    )
-
-    if (savedPostDescriptorSet.isEmpty()) {
-      return emptyList()
-    }
-
-    val replyRanges: MutableList<PostMapInfoEntry> = ArrayList(savedPostDescriptorSet.size)
-    val duplicateChecker: MutableSet<Int> = HashSet(savedPostDescriptorSet.size)
-    var prevIndex = 0
-
-    for ((index, postDescriptor) in postDescriptors.withIndex()) {
-      if (!savedPostDescriptorSet.contains(postDescriptor) || !duplicateChecker.add(index)) {
-        continue
-      }
-
-      connectRangesIfContiguous(prevIndex, index, replyRanges)
-      prevIndex = index
-    }
-
-    return replyRanges
-  }
-
-  private fun extractReplyPositionsFromPostList(
-    params: Params,
-    postsMap: Map<PostDescriptor, ChanPost>
-  ): List<PostMapInfoEntry> {
-    BackgroundUtils.ensureBackgroundThread()
-
-    if (!ChanSettings.markRepliesToYourPostOnScrollbar.get()) {
-      return emptyList()
-    }
-
-    val postDescriptors = params.postDescriptors
-    val isViewingThread = params.isViewingThread
-
-    if (postDescriptors.isEmpty() || !isViewingThread) {
-      return emptyList()
-    }
-
-    val siteDescriptor = postDescriptors.first().siteDescriptor()
-    if (siteManager.bySiteDescriptor(siteDescriptor) == null) {
-      return emptyList()
-    }
-
-    val threadDescriptor = postDescriptors.first().threadDescriptor()
-    val savedPostNoSet = HashSet(
-      savedReplyManager.retainSavedPostNoMap(postDescriptors, threadDescriptor)
-    )
-
-    if (savedPostNoSet.isEmpty()) {
-      return emptyList()
-    }
-
-    val replyRanges: MutableList<PostMapInfoEntry> = ArrayList(savedPostNoSet.size)
-    val duplicateChecker: MutableSet<Int> = HashSet(savedPostNoSet.size)
-    var prevIndex = 0
-
-    for ((index, postDescriptor) in postDescriptors.withIndex()) {
-      val post = postsMap[postDescriptor]
-        ?: continue
-
-      for (replyTo in post.repliesTo) {
-        if (!savedPostNoSet.contains(replyTo) || !duplicateChecker.add(index)) {
-          continue
-        }
-
-        connectRangesIfContiguous(prevIndex, index, replyRanges)
-        prevIndex = index
-        break
-      }
-    }
-
-    return replyRanges
-  }
-
-  private fun extractCrossThreadReplyPositionsFromPostList(params: Params, postsMap: Map<PostDescriptor, ChanPost>): List<PostMapInfoEntry> {
-    BackgroundUtils.ensureBackgroundThread()
-
-    if (!ChanSettings.markCrossThreadQuotesOnScrollbar.get()) {
-      return emptyList()
-    }
-
-    val postDescriptors = params.postDescriptors
-    val isViewingThread = params.isViewingThread
-
-    if (postDescriptors.isEmpty() || !isViewingThread) {
-      return emptyList()
-    }
-
-    val crossThreadReplyRanges: MutableList<PostMapInfoEntry> = ArrayList(16)
-    val duplicateChecker: MutableSet<Int> = HashSet(16)
-    var prevIndex = 0
-
-    for ((index, postDescriptor) in postDescriptors.withIndex()) {
-      val post = postsMap[postDescriptor]
-        ?: continue
-
-      for (postLinkable in post.postComment.linkables) {
-        if (postLinkable.type != PostLinkable.Type.THREAD || !duplicateChecker.add(index)) {
-          continue
-        }
-
-        connectRangesIfContiguous(prevIndex, index, crossThreadReplyRanges)
-        prevIndex = index
-        break
+        return@func 0
       }
-    }
-
-    return crossThreadReplyRanges
-  }
 
-  private fun connectRangesIfContiguous(prevIndex: Int, index: Int, ranges: MutableList<PostMapInfoEntry>) {
-    if (prevIndex == index - 1 && ranges.size > 0) {
-      val prevRange = ranges[ranges.lastIndex].range
-
-      ranges[ranges.lastIndex] = PostMapInfoEntry(IntRange(prevRange.first, index), 0)
-    } else {
-      ranges.add(PostMapInfoEntry(IntRange(index, index), 0))
+      return@func chanFilter.color
     }
   }
 
-  private fun connectRangesIfContiguousWithColor(
-    prevIndex: Int,
-    index: Int,
-    newColor: Int,
-    ranges: MutableList<PostMapInfoEntry>
-  ) {
-    if (prevIndex == index - 1 && ranges.size > 0) {
-      val prevColor = ranges[ranges.lastIndex].color
-      if (prevColor == newColor) {
-        val prevRange = ranges[ranges.lastIndex].range
-        ranges[ranges.lastIndex] = PostMapInfoEntry(IntRange(prevRange.first, index), newColor)
-        return
-      }
-
-      // fallthrough
-    }
-
-    ranges.add(PostMapInfoEntry(IntRange(index, index), newColor))
-  }
-
   data class Params(
+    val chanDescriptor: ChanDescriptor,
     val postDescriptors: List<PostDescriptor>,
     val isViewingThread: Boolean
   )
 
+  companion object {
+    // The catalog and the thread that are currently opened plus some room for switching between threads
+    private const val MAX_CACHED_STATES = 4
+  }
+
 }
 
 data class PostMapInfoHolder(
@@ -428,6 +157,10 @@ data class PostMapInfoHolder(
   }
 
   fun isTheSame(otherPostMapInfoHolder: PostMapInfoHolder): Boolean {
+    if (this === otherPostMapInfoHolder) {
+      return true
+    }
+
     if (!rangesTheSame(myPostsPositionRanges, otherPostMapInfoHolder.myPostsPositionRanges)) {
       return false
     }
@@ -460,6 +193,11 @@ data class PostMapInfoHolder(
   }
 
   private fun rangesTheSame(ranges1: List<PostMapInfoEntry>, ranges2: List<PostMapInfoEntry>): Boolean {
+    if (ranges1 === ranges2) {
+      // Ranges of unchanged categories are reused by the incremental extraction
+      return true
+    }
+
     if (ranges1.size != ranges2.size) {
       return false
     }
@@ -1,6 +1,8 @@
 package com.github.k1rakishou.chan.core.usecase
 
 import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient
+import com.github.k1rakishou.chan.core.base.okhttp.RequestPriority
+import com.github.k1rakishou.chan.core.base.okhttp.priority
 import com.github.k1rakishou.chan.core.manager.BookmarksManager
 import com.github.k1rakishou.chan.core.manager.SiteManager
 import com.github.k1rakishou.chan.core.site.parser.ChanReader
@@ -8,8 +10,9 @@ import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.EmptyBodyResponseException
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.ModularResult.Companion.Try
-import com.github.k1rakishou.common.processDataCollectionConcurrently
+import com.github.k1rakishou.common.processDataCollectionInParallel
 import com.github.k1rakishou.common.suspendCall
+import com.github.k1rakishou.common.valuesNotNull
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.bookmark.ThreadBookmarkInfoObject
 import com.github.k1rakishou.model.data.bookmark.ThreadBookmarkInfoPostObject
@@ -20,6 +23,7 @@ import kotlinx.coroutines.Dispatchers
 import okhttp3.HttpUrl
 import okhttp3.Request
 import java.io.IOException
+import java.io.InputStream
 import kotlin.math.max
 
 @Suppress("FoldInitializerAndIfToElvis")
@@ -44,22 +48,24 @@ class FetchThreadBookmarkInfoUseCase(
     val batchSize = (appConstants.processorsCount * BATCH_PER_CORE)
       .coerceAtLeast(MIN_BATCHES_COUNT)
 
-    return processDataCollectionConcurrently(watchingBookmarkDescriptors, batchSize, Dispatchers.IO) { threadDescriptor ->
+    return processDataCollectionInParallel(watchingBookmarkDescriptors, batchSize, Dispatchers.IO) { _, threadDescriptor ->
       val site = siteManager.bySiteDescriptor(threadDescriptor.siteDescriptor())
       if (site == null) {
         Logger.e(TAG, "Site with descriptor ${threadDescriptor.siteDescriptor()} " +
           "not found in siteRepository!")
-        return@processDataCollectionConcurrently null
+        return@processDataCollectionInParallel null
       }
 
       val threadJsonEndpoint = site.endpoints().thread(threadDescriptor)
 
-      return@processDataCollectionConcurrently fetchThreadBookmarkInfo(
+      return@processDataCollectionInParallel fetchThreadBookmarkInfo(
         threadDescriptor,
         threadJsonEndpoint,
         site.chanReader()
       )
     }
+      .logFailures(TAG, "fetchThreadBookmarkInfoBatched()")
+      .valuesNotNull()
   }
 
   private suspend fun fetchThreadBookmarkInfo(
@@ -70,6 +76,7 @@ class FetchThreadBookmarkInfoUseCase(
     val requestBuilder = Request.Builder()
       .url(threadJsonEndpoint)
       .get()
+      .priority(RequestPriority.Background)
 
     siteManager.bySiteDescriptor(threadDescriptor.siteDescriptor())?.let { site ->
       site.requestModifier().modifyCatalogOrThreadGetRequest(
@@ -87,18 +94,30 @@ class FetchThreadBookmarkInfoUseCase(
       return ThreadBookmarkFetchResult.Error(error, threadDescriptor)
     }
 
-    if (!response.isSuccessful) {
-      if (response.code == NOT_FOUND_STATUS) {
-        return ThreadBookmarkFetchResult.NotFoundOnServer(threadDescriptor)
+    // Error responses must be closed too, otherwise their request slot is never given back
+    return response.use {
+      if (!response.isSuccessful) {
+        if (response.code == NOT_FOUND_STATUS) {
+          return@use ThreadBookmarkFetchResult.NotFoundOnServer(threadDescriptor)
+        }
+
+        return@use ThreadBookmarkFetchResult.BadStatusCode(response.code, threadDescriptor)
       }
 
-      return ThreadBookmarkFetchResult.BadStatusCode(response.code, threadDescriptor)
-    }
+      val body = response.body
+        ?: return@use ThreadBookmarkFetchResult.Error(EmptyBodyResponseException(), threadDescriptor)
 
-    val body = response.body
-      ?: return ThreadBookmarkFetchResult.Error(EmptyBodyResponseException(), threadDescriptor)
+      return@use readThreadBookmarkInfo(threadDescriptor, request.url.toString(), chanReader, body.byteStream())
+    }
+  }
 
-    return body.byteStream().use { inputStream ->
+  private suspend fun readThreadBookmarkInfo(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    requestUrl: String,
+    chanReader: ChanReader,
+    responseInputStream: InputStream
+  ): ThreadBookmarkFetchResult {
+    return responseInputStream.use { inputStream ->
       val postsCount = bookmarksManager.mapBookmark(threadDescriptor) { threadBookmarkView ->
         threadBookmarkView.postsCount()
       }
@@ -110,7 +129,7 @@ class FetchThreadBookmarkInfoUseCase(
       val threadBookmarkInfoObject = chanReader.readThreadBookmarkInfoObject(
         threadDescriptor,
         max(postsCount, ChanReader.DEFAULT_POST_LIST_CAPACITY),
-        request.url.toString(),
+        requestUrl,
         inputStream
       ).safeUnwrap { error -> return@use ThreadBookmarkFetchResult.Error(error, threadDescriptor) }
 
@@ -3,6 +3,10 @@ package com.github.k1rakishou.chan.core.usecase
 import android.content.Context
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.BuildConfig
+import com.github.k1rakishou.chan.core.backup.BackupInstaller
+import com.github.k1rakishou.chan.core.backup.BackupProgress
+import com.github.k1rakishou.chan.core.backup.BackupReader
+import com.github.k1rakishou.chan.core.backup.DatabaseSnapshotter
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.common.AndroidUtils
 import com.github.k1rakishou.common.AppConstants
@@ -12,145 +16,106 @@ import com.github.k1rakishou.core_themes.ThemeParser
 import com.github.k1rakishou.fsaf.FileManager
 import com.github.k1rakishou.fsaf.file.ExternalFile
 import com.github.k1rakishou.model.KurobaDatabase
-import okhttp3.internal.closeQuietly
+import com.github.k1rakishou.model.repository.DatabaseMetaRepository
+import com.google.gson.Gson
+import java.io.BufferedInputStream
 import java.io.File
 import java.io.IOException
-import java.util.zip.ZipEntry
-import java.util.zip.ZipInputStream
 
 class ImportBackupFileUseCase(
   private val appContext: Context,
   private val appConstants: AppConstants,
-  private val fileManager: FileManager
-) : ISuspendUseCase<ExternalFile, ModularResult<Unit>> {
-
-  override suspend fun execute(parameter: ExternalFile): ModularResult<Unit> {
+  private val databaseMetaRepository: DatabaseMetaRepository,
+  private val fileManager: FileManager,
+  private val gson: Gson
+) : ISuspendUseCase<ImportBackupFileUseCase.Params, ModularResult<Unit>> {
+  private val backupReader = BackupReader(gson)
+  private val backupInstaller = BackupInstaller(
+    gson = gson,
+    databaseSnapshotter = DatabaseSnapshotter(),
+    lastBackupManifestFile = ExportBackupFileUseCase.lastBackupManifestFile(appContext),
+    getDatabasePath = { databaseName -> appContext.getDatabasePath(databaseName) },
+    resolveOutputFile = { entryName -> resolveOutputFile(entryName) },
+    closeDatabase = { databaseMetaRepository.close() }
+  )
+
+  override suspend fun execute(parameter: Params): ModularResult<Unit> {
     BackgroundUtils.ensureBackgroundThread()
 
-    return ModularResult.Try { importInternal(parameter) }
+    return ModularResult.Try { importInternal(parameter.backupFile, parameter.onProgress) }
   }
 
-  private fun importInternal(backupFile: ExternalFile) {
+  private suspend fun importInternal(backupFile: ExternalFile, onProgress: (BackupProgress) -> Unit) {
     Logger.d(TAG, "Import start")
 
     val inputStream = fileManager.getInputStream(backupFile)
       ?: throw IOException("Failed to open input stream for file '${backupFile.getFullPath()}'")
 
-    val zipInputStream = ZipInputStream(inputStream)
-    var zipEntry: ZipEntry? = null
-    var zipMalformed = true
+    val stagingDir = File(appContext.cacheDir, STAGING_DIR_NAME)
+    stagingDir.deleteRecursively()
+    stagingDir.mkdirs()
 
     try {
-      while (true) {
-        zipEntry = zipInputStream.nextEntry
-          ?: break
-
-        val fileName = zipEntry.name
-        Logger.d(TAG, "zipEntry.name = ${fileName}")
-
-        if (fileName.contains(KurobaDatabase.DATABASE_NAME, ignoreCase = true)) {
-          handleDatabaseFile(fileName, zipInputStream)
-        } else if (fileName.endsWith(".xml")) {
-          handleSharedPrefsFile(fileName, zipInputStream)
-        } else if (
-          fileName.contains(ThemeParser.LIGHT_THEME_FILE_NAME) ||
-          fileName.contains(ThemeParser.DARK_THEME_FILE_NAME)
-        ) {
-          handleThemeFile(fileName, zipInputStream)
-        } else if (fileName.startsWith("${ExportBackupFileUseCase.THREAD_DOWNLOADS_CACHE_DIR}/")) {
-          handleThreadDownloadFile(zipEntry, zipInputStream)
-        } else {
-          Logger.e(TAG, "Unknown file: $fileName")
-          zipInputStream.closeEntry()
-          continue
-        }
-
-        zipInputStream.closeEntry()
-        zipMalformed = false
+      // Everything is staged and verified first so that a broken backup doesn't overwrite anything
+      val stagedBackup = BufferedInputStream(inputStream, BUFFER_SIZE).use { bufferedInputStream ->
+        backupReader.stage(
+          inputStream = bufferedInputStream,
+          stagingDir = stagingDir,
+          totalBytes = fileManager.getLength(backupFile),
+          onProgress = onProgress
+        )
       }
-    } finally {
-      inputStream.closeQuietly()
-      zipInputStream.closeQuietly()
-    }
-
-    if (zipMalformed) {
-      throw IOException("Failed to open file '${backupFile.getFullPath()}'. Make sure the file is not malformed.")
-    }
-
-    Logger.d(TAG, "Import success!")
-  }
 
-  private fun handleThreadDownloadFile(zipEntry: ZipEntry, zipInputStream: ZipInputStream) {
-    val threadDownloaderCacheDir = appConstants.threadDownloaderCacheDir
-    if (!threadDownloaderCacheDir.exists()) {
-      threadDownloaderCacheDir.mkdirs()
-    }
-
-    val threadDownloadCacheName = zipEntry.name.removePrefix("${ExportBackupFileUseCase.THREAD_DOWNLOADS_CACHE_DIR}/")
-    val outputFile = File(threadDownloaderCacheDir, threadDownloadCacheName)
-
-    if (zipEntry.isDirectory) {
-      return
-    }
-
-    if (outputFile.parentFile?.exists() == false) {
-      outputFile.parentFile?.mkdir()
-    }
+      if (stagedBackup.stagedFiles.isEmpty() && stagedBackup.manifest == null) {
+        throw IOException("Failed to open file '${backupFile.getFullPath()}'. Make sure the file is not malformed.")
+      }
 
-    if (!outputFile.exists()) {
-      outputFile.createNewFile()
+      backupInstaller.install(stagedBackup)
+    } finally {
+      stagingDir.deleteRecursively()
     }
 
-    outputFile.outputStream().use { outputStream ->
-      zipInputStream.copyTo(outputStream, ExportBackupFileUseCase.BUFFER_SIZE)
-    }
+    Logger.d(TAG, "Import success!")
   }
 
-  private fun handleThemeFile(fileName: String, zipInputStream: ZipInputStream) {
-    val themeFile = File(AndroidUtils.getFilesDir(), fileName)
-    if (!themeFile.exists()) {
-      check(themeFile.createNewFile()) { "Failed to create ${themeFile.absolutePath}" }
+  private fun resolveOutputFile(entryName: String): File? {
+    if (entryName.startsWith("${ExportBackupFileUseCase.THREAD_DOWNLOADS_CACHE_DIR}/")) {
+      val threadDownloadCacheName = entryName.removePrefix("${ExportBackupFileUseCase.THREAD_DOWNLOADS_CACHE_DIR}/")
+      return File(appConstants.threadDownloaderCacheDir, threadDownloadCacheName)
     }
 
-    themeFile.outputStream().use { outputStream ->
-      zipInputStream.copyTo(outputStream, ExportBackupFileUseCase.BUFFER_SIZE)
+    if (entryName.contains(KurobaDatabase.DATABASE_NAME, ignoreCase = true)) {
+      return appContext.getDatabasePath(entryName)
     }
-  }
 
-  private fun handleSharedPrefsFile(fileName: String, zipInputStream: ZipInputStream) {
-    val outputFileStream = if (fileName == ExportBackupFileUseCase.MAIN_PREFS_FILE_NAME) {
-      val mainSharedPrefsFile = ChanSettings.getMainSharedPrefsFileForThisFlavor()
-      Logger.d(TAG, "Creating ${mainSharedPrefsFile.absolutePath} for flavor ${BuildConfig.FLAVOR}")
+    if (entryName.endsWith(".xml")) {
+      if (entryName == ExportBackupFileUseCase.MAIN_PREFS_FILE_NAME) {
+        val mainSharedPrefsFile = ChanSettings.getMainSharedPrefsFileForThisFlavor()
+        Logger.d(TAG, "Creating ${mainSharedPrefsFile.absolutePath} for flavor ${BuildConfig.FLAVOR}")
 
-      mainSharedPrefsFile.outputStream()
-    } else {
-      val sharedPrefsDir = File(AndroidUtils.getAppDir(), ChanSettings.SHARED_PREFS_DIR_NAME)
-      if (!sharedPrefsDir.exists()) {
-        check(sharedPrefsDir.mkdirs()) { "Failed to create ${sharedPrefsDir.absolutePath}" }
+        return mainSharedPrefsFile
       }
 
-      val sharedPrefsFile = File(sharedPrefsDir, fileName)
-      sharedPrefsFile.outputStream()
+      val sharedPrefsDir = File(AndroidUtils.getAppDir(), ChanSettings.SHARED_PREFS_DIR_NAME)
+      return File(sharedPrefsDir, entryName)
     }
 
-    try {
-      zipInputStream.copyTo(outputFileStream, ExportBackupFileUseCase.BUFFER_SIZE)
-    } finally {
-      outputFileStream.closeQuietly()
+    if (entryName.contains(ThemeParser.LIGHT_THEME_FILE_NAME) || entryName.contains(ThemeParser.DARK_THEME_FILE_NAME)) {
+      return File(AndroidUtils.getFilesDir(), entryName)
     }
-  }
 
-  private fun handleDatabaseFile(fileName: String?, zipInputStream: ZipInputStream) {
-    val outputFileStream = appContext.getDatabasePath(fileName).outputStream()
-
-    try {
-      zipInputStream.copyTo(outputFileStream, ExportBackupFileUseCase.BUFFER_SIZE)
-    } finally {
-      outputFileStream.closeQuietly()
-    }
+    Logger.e(TAG, "Unknown file: $entryName")
+    return null
   }
 
+  data class Params(
+    val backupFile: ExternalFile,
+    val onProgress: (BackupProgress) -> Unit = {}
+  )
+
   companion object {
     private const val TAG = "ImportBackupFileUseCase"
+    private const val STAGING_DIR_NAME = "backup_import"
+    private const val BUFFER_SIZE = 64 * 1024
   }
-}
\ No newline at end of file
+}
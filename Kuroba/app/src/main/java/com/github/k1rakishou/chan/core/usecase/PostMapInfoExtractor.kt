@@ -0,0 +1,385 @@
+package com.github.k1rakishou.chan.core.usecase
+
+import com.github.k1rakishou.core_spannable.PostLinkable
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanPost
+
+/**
+ * Extracts all of the [PostMapInfoHolder] ranges in a single pass over the posts. When the
+ * [PostMapInfoExtractor.State] of the previous extraction is passed in and the new post list starts
+ * with the previous one (the usual case when a thread update only appended new posts) then the
+ * results of the expensive per-post checks are reused for the old posts (unless the content they
+ * depend on has changed, e.g. a post was edited or its images were updated) and the previous
+ * ranges of every category which marks didn't change for the old posts are extended with the new
+ * posts instead of being rebuilt.
+ * */
+class PostMapInfoExtractor {
+
+  suspend fun extract(
+    postDescriptors: List<PostDescriptor>,
+    postsMap: Map<PostDescriptor, ChanPost>,
+    inputs: Inputs,
+    prevState: State?
+  ): State {
+    val postsCount = postDescriptors.size
+    val flags = IntArray(postsCount)
+    val highlightColors = IntArray(postsCount)
+    val contentHashes = IntArray(postsCount)
+    // -1 for posts that must not be considered hot (OP, missing posts)
+    val repliesFromCounts = IntArray(postsCount)
+
+    val prefixLength = commonPrefixLength(prevState, postDescriptors)
+    val reusableFlagsMask = reusableStaticFlagsMask(prevState, inputs)
+
+    var totalPostsWithRepliesCount = 0
+    var totalReplyCount = 0
+
+    for ((index, postDescriptor) in postDescriptors.withIndex()) {
+      val post = postsMap[postDescriptor]
+
+      val contentHash = if (post != null) staticContentHash(post) else 0
+      contentHashes[index] = contentHash
+
+      val prevFlags = if (index < prefixLength && prevState!!.contentHashes[index] == contentHash) {
+        prevState.flags[index]
+      } else {
+        -1
+      }
+
+      var postFlags = if (prevFlags >= 0 && (prevFlags and FLAG_HAS_POST != 0) == (post != null)) {
+        val reusedFlags = prevFlags and reusableFlagsMask
+        reusedFlags or computeStaticFlags(postDescriptor, post, inputs, STATIC_FLAGS_MASK and reusableFlagsMask.inv())
+      } else {
+        computeStaticFlags(postDescriptor, post, inputs, STATIC_FLAGS_MASK)
+      }
+
+      highlightColors[index] = inputs.highlightColor(postDescriptor)
+
+      if (post == null) {
+        repliesFromCounts[index] = -1
+        flags[index] = postFlags
+        continue
+      }
+
+      if (inputs.markDeletedPosts && post.isDeleted) {
+        postFlags = postFlags or FLAG_DELETED
+      }
+
+      val repliesFromCount = post.repliesFromCount
+      if (post.isOP()) {
+        repliesFromCounts[index] = -1
+      } else {
+        repliesFromCounts[index] = repliesFromCount
+
+        // Do not include posts with 0 replies
+        if (repliesFromCount > 0) {
+          totalReplyCount += repliesFromCount
+          ++totalPostsWithRepliesCount
+        }
+      }
+
+      flags[index] = postFlags
+    }
+
+    if (inputs.markHotPosts) {
+      markHotPosts(flags, repliesFromCounts, totalReplyCount, totalPostsWithRepliesCount)
+    }
+
+    var changedFlagsMask = 0
+    var highlightColorsChanged = false
+
+    if (prevState != null && prefixLength == prevState.postsCount) {
+      for (index in 0 until prefixLength) {
+        changedFlagsMask = changedFlagsMask or (prevState.flags[index] xor flags[index])
+
+        if (prevState.highlightColors[index] != highlightColors[index]) {
+          highlightColorsChanged = true
+        }
+      }
+    }
+
+    val extendable = if (prevState != null && prefixLength == prevState.postsCount) prevState else null
+
+    fun ranges(flag: Int, prevRanges: (PostMapInfoHolder) -> List<PostMapInfoEntry>): List<PostMapInfoEntry> {
+      if (extendable != null && (changedFlagsMask and flag) == 0) {
+        return extendRanges(prevRanges(extendable.holder), flags, flag, extendable.postsCount)
+      }
+
+      return extendRanges(emptyList(), flags, flag, 0)
+    }
+
+    val postFilterHighlightRanges = if (extendable != null && !highlightColorsChanged) {
+      extendColoredRanges(extendable.holder.postFilterHighlightRanges, highlightColors, extendable.postsCount)
+    } else {
+      extendColoredRanges(emptyList(), highlightColors, 0)
+    }
+
+    val holder = PostMapInfoHolder(
+      myPostsPositionRanges = ranges(FLAG_MY_POST) { it.myPostsPositionRanges },
+      replyPositionRanges = ranges(FLAG_REPLY_TO_MY_POST) { it.replyPositionRanges },
+      crossThreadQuotePositionRanges = ranges(FLAG_CROSS_THREAD_QUOTE) { it.crossThreadQuotePositionRanges },
+      postFilterHighlightRanges = postFilterHighlightRanges,
+      deletedPostsPositionRanges = ranges(FLAG_DELETED) { it.deletedPostsPositionRanges },
+      hotPostsPositionRanges = ranges(FLAG_HOT) { it.hotPostsPositionRanges },
+      thirdEyePostsPositionRanges = ranges(FLAG_THIRD_EYE) { it.thirdEyePostsPositionRanges }
+    )
+
+    val newHolder = if (extendable != null && extendable.holder.isTheSame(holder)) {
+      extendable.holder
+    } else {
+      holder
+    }
+
+    return State(
+      postDescriptors = postDescriptors.toList(),
+      flags = flags,
+      highlightColors = highlightColors,
+      contentHashes = contentHashes,
+      inputs = inputs,
+      holder = newHolder
+    )
+  }
+
+  /**
+   * Returns the mask of static flags of the previous extraction that are still valid for the
+   * posts that were already there.
+   * */
+  private fun reusableStaticFlagsMask(prevState: State?, inputs: Inputs): Int {
+    if (prevState == null) {
+      return 0
+    }
+
+    val prevInputs = prevState.inputs
+    var mask = FLAG_HAS_POST
+
+    if (prevInputs.markMyPosts == inputs.markMyPosts
+      && prevInputs.markReplies == inputs.markReplies
+      && prevInputs.savedPostDescriptors == inputs.savedPostDescriptors
+    ) {
+      mask = mask or FLAG_MY_POST or FLAG_REPLY_TO_MY_POST
+    }
+
+    if (prevInputs.markCrossThreadQuotes == inputs.markCrossThreadQuotes) {
+      mask = mask or FLAG_CROSS_THREAD_QUOTE
+    }
+
+    if (prevInputs.thirdEyeEnabled == inputs.thirdEyeEnabled) {
+      mask = mask or FLAG_THIRD_EYE
+    }
+
+    return mask
+  }
+
+  /**
+   * Hash of everything of the post the static flags are computed from. ChanPost objects are mutable
+   * and may be updated in place so the hash is snapshotted during every extraction.
+   * */
+  private fun staticContentHash(post: ChanPost): Int {
+    val postComment = post.postComment
+
+    var result = postComment.originalCommentHash.hashCode()
+    result = 31 * result + postComment.linkables.size
+    result = 31 * result + post.repliesTo.hashCode()
+
+    for (postImage in post.postImages) {
+      result = 31 * result + postImage.hashCode()
+      result = 31 * result + (postImage.filename?.hashCode() ?: 0)
+    }
+
+    return result
+  }
+
+  private suspend fun computeStaticFlags(
+    postDescriptor: PostDescriptor,
+    post: ChanPost?,
+    inputs: Inputs,
+    flagsToCompute: Int
+  ): Int {
+    var postFlags = 0
+
+    if (flagsToCompute and FLAG_MY_POST != 0
+      && inputs.markMyPosts
+      && inputs.savedPostDescriptors.contains(postDescriptor)
+    ) {
+      postFlags = postFlags or FLAG_MY_POST
+    }
+
+    if (post == null) {
+      return postFlags
+    }
+
+    postFlags = postFlags or FLAG_HAS_POST
+
+    if (flagsToCompute and FLAG_REPLY_TO_MY_POST != 0
+      && inputs.markReplies
+      && inputs.savedPostDescriptors.isNotEmpty()
+    ) {
+      val isReplyToMyPost = post.repliesTo.any { replyTo -> inputs.savedPostDescriptors.contains(replyTo) }
+      if (isReplyToMyPost) {
+        postFlags = postFlags or FLAG_REPLY_TO_MY_POST
+      }
+    }
+
+    if (flagsToCompute and FLAG_CROSS_THREAD_QUOTE != 0 && inputs.markCrossThreadQuotes) {
+      val hasCrossThreadQuote = post.postComment.linkables
+        .any { postLinkable -> postLinkable.type == PostLinkable.Type.THREAD }
+
+      if (hasCrossThreadQuote) {
+        postFlags = postFlags or FLAG_CROSS_THREAD_QUOTE
+      }
+    }
+
+    if (flagsToCompute and FLAG_THIRD_EYE != 0 && inputs.thirdEyeEnabled && inputs.hasThirdEyeImage(post)) {
+      postFlags = postFlags or FLAG_THIRD_EYE
+    }
+
+    return postFlags
+  }
+
+  private fun markHotPosts(
+    flags: IntArray,
+    repliesFromCounts: IntArray,
+    totalReplyCount: Int,
+    totalPostsWithRepliesCount: Int
+  ) {
+    if (totalReplyCount <= 0 || totalPostsWithRepliesCount <= 0) {
+      return
+    }
+
+    val medianRepliesCount = totalReplyCount.toFloat() / totalPostsWithRepliesCount.toFloat()
+    if (medianRepliesCount <= 1f) {
+      return
+    }
+
+    // We consider posts HOT if their reply count is 3x higher than the median reply count in the thread
+    val targetRepliesCount = medianRepliesCount * 3f
+
+    for (index in flags.indices) {
+      val repliesFromCount = repliesFromCounts[index]
+      if (repliesFromCount >= 0 && repliesFromCount > targetRepliesCount) {
+        flags[index] = flags[index] or FLAG_HOT
+      }
+    }
+  }
+
+  private fun commonPrefixLength(prevState: State?, postDescriptors: List<PostDescriptor>): Int {
+    if (prevState == null) {
+      return 0
+    }
+
+    val maxLength = Math.min(prevState.postsCount, postDescriptors.size)
+    for (index in 0 until maxLength) {
+      if (prevState.postDescriptors[index] != postDescriptors[index]) {
+        return index
+      }
+    }
+
+    return maxLength
+  }
+
+  private fun extendRanges(
+    prevRanges: List<PostMapInfoEntry>,
+    flags: IntArray,
+    flag: Int,
+    fromIndex: Int
+  ): List<PostMapInfoEntry> {
+    if (fromIndex >= flags.size) {
+      return prevRanges
+    }
+
+    var ranges: MutableList<PostMapInfoEntry>? = null
+
+    for (index in fromIndex until flags.size) {
+      if (flags[index] and flag == 0) {
+        continue
+      }
+
+      if (ranges == null) {
+        ranges = ArrayList(prevRanges)
+      }
+
+      appendIndex(ranges, index, 0)
+    }
+
+    return ranges ?: prevRanges
+  }
+
+  private fun extendColoredRanges(
+    prevRanges: List<PostMapInfoEntry>,
+    highlightColors: IntArray,
+    fromIndex: Int
+  ): List<PostMapInfoEntry> {
+    if (fromIndex >= highlightColors.size) {
+      return prevRanges
+    }
+
+    var ranges: MutableList<PostMapInfoEntry>? = null
+
+    for (index in fromIndex until highlightColors.size) {
+      val color = highlightColors[index]
+      if (color == 0) {
+        continue
+      }
+
+      if (ranges == null) {
+        ranges = ArrayList(prevRanges)
+      }
+
+      appendIndex(ranges, index, color)
+    }
+
+    return ranges ?: prevRanges
+  }
+
+  private fun appendIndex(ranges: MutableList<PostMapInfoEntry>, index: Int, color: Int) {
+    if (ranges.isNotEmpty()) {
+      val lastEntry = ranges[ranges.lastIndex]
+
+      if (lastEntry.range.last == index - 1 && lastEntry.color == color) {
+        ranges[ranges.lastIndex] = PostMapInfoEntry(IntRange(lastEntry.range.first, index), color)
+        return
+      }
+    }
+
+    ranges.add(PostMapInfoEntry(IntRange(index, index), color))
+  }
+
+  class Inputs(
+    val markMyPosts: Boolean,
+    val markReplies: Boolean,
+    val markCrossThreadQuotes: Boolean,
+    val markDeletedPosts: Boolean,
+    val markHotPosts: Boolean,
+    val thirdEyeEnabled: Boolean,
+    val savedPostDescriptors: Set<PostDescriptor>,
+    // Returns the color of the filter that highlights the post or 0
+    val highlightColor: (PostDescriptor) -> Int,
+    val hasThirdEyeImage: suspend (ChanPost) -> Boolean
+  )
+
+  class State(
+    internal val postDescriptors: List<PostDescriptor>,
+    internal val flags: IntArray,
+    internal val highlightColors: IntArray,
+    internal val contentHashes: IntArray,
+    internal val inputs: Inputs,
+    val holder: PostMapInfoHolder
+  ) {
+    val postsCount: Int
+      get() = postDescriptors.size
+  }
+
+  companion object {
+    private const val FLAG_HAS_POST = 1 shl 0
+    private const val FLAG_MY_POST = 1 shl 1
+    private const val FLAG_REPLY_TO_MY_POST = 1 shl 2
+    private const val FLAG_CROSS_THREAD_QUOTE = 1 shl 3
+    private const val FLAG_THIRD_EYE = 1 shl 4
+    private const val FLAG_DELETED = 1 shl 5
+    private const val FLAG_HOT = 1 shl 6
+
+    private const val STATIC_FLAGS_MASK =
+      FLAG_HAS_POST or FLAG_MY_POST or FLAG_REPLY_TO_MY_POST or FLAG_CROSS_THREAD_QUOTE or FLAG_THIRD_EYE
+  }
+
+}
@@ -1,6 +1,8 @@
 package com.github.k1rakishou.chan.core.usecase
 
 import com.github.k1rakishou.chan.core.base.okhttp.RealProxiedOkHttpClient
+import com.github.k1rakishou.chan.core.base.okhttp.RequestPriority
+import com.github.k1rakishou.chan.core.base.okhttp.priority
 import com.github.k1rakishou.chan.core.manager.SiteManager
 import com.github.k1rakishou.chan.core.site.loader.ChanThreadLoaderCoordinator
 import com.github.k1rakishou.chan.core.site.loader.internal.usecase.ParsePostsV1UseCase
@@ -15,7 +17,10 @@ import com.github.k1rakishou.model.data.options.ChanReadOptions
 import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.repository.ChanPostRepository
 import dagger.Lazy
+import okhttp3.OkHttpClient
 import okhttp3.Request
+import okhttp3.Response
+import okhttp3.internal.closeQuietly
 import kotlin.time.ExperimentalTime
 
 class ThreadDownloaderPersistPostsInDatabaseUseCase(
@@ -34,6 +39,7 @@ class ThreadDownloaderPersistPostsInDatabaseUseCase(
       downloadThreadPosts(
         ownerThreadDatabaseId = ownerThreadDatabaseId,
         threadDescriptor = threadDescriptor,
+        lastModified = parameter.lastModified,
         isReloadingAfter404 = false
       )
     }
@@ -43,9 +49,10 @@ class ThreadDownloaderPersistPostsInDatabaseUseCase(
   private suspend fun downloadThreadPosts(
     ownerThreadDatabaseId: Long,
     threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    lastModified: String?,
     isReloadingAfter404: Boolean
   ): DownloadResult {
-    Logger.d(TAG, "downloadThreadPosts($ownerThreadDatabaseId, $threadDescriptor, $isReloadingAfter404)")
+    Logger.d(TAG, "downloadThreadPosts($ownerThreadDatabaseId, $threadDescriptor, $lastModified, $isReloadingAfter404)")
 
     val site = siteManager.bySiteDescriptor(threadDescriptor.siteDescriptor())
       ?: throw ThreadDownloadException("No site found by siteDescriptor ${threadDescriptor.siteDescriptor()}")
@@ -63,6 +70,7 @@ class ThreadDownloaderPersistPostsInDatabaseUseCase(
     val requestBuilder = Request.Builder()
       .url(chanLoadUrl.url)
       .get()
+      .priority(RequestPriority.Background)
 
     site.requestModifier().modifyCatalogOrThreadGetRequest(
       site = site,
@@ -70,8 +78,28 @@ class ThreadDownloaderPersistPostsInDatabaseUseCase(
       requestBuilder = requestBuilder
     )
 
-    val response = proxiedOkHttpClient.okHttpClient().suspendCall(requestBuilder.build())
+    val response = executeConditionalRequest(
+      okHttpClient = proxiedOkHttpClient.okHttpClient(),
+      requestBuilder = requestBuilder,
+      lastModified = lastModified.takeIf { !isReloadingAfter404 }
+    )
+
+    if (response == null) {
+      Logger.d(TAG, "downloadThreadPosts($threadDescriptor) not modified since $lastModified")
+
+      return DownloadResult(
+        deleted = false,
+        closed = false,
+        archived = false,
+        posts = emptyList(),
+        notModified = true,
+        lastModified = lastModified
+      )
+    }
+
     if (!response.isSuccessful) {
+      response.closeQuietly()
+
       if (response.code == 404) {
         chanPostRepository.updateThreadState(
           threadDescriptor = threadDescriptor,
@@ -83,6 +111,7 @@ class ThreadDownloaderPersistPostsInDatabaseUseCase(
           return downloadThreadPosts(
             ownerThreadDatabaseId = ownerThreadDatabaseId,
             threadDescriptor = threadDescriptor,
+            lastModified = null,
             isReloadingAfter404 = true
           )
         }
@@ -139,7 +168,8 @@ class ThreadDownloaderPersistPostsInDatabaseUseCase(
       deleted = chanReaderProcessor.deleted,
       closed = chanReaderProcessor.closed,
       archived = chanReaderProcessor.archived,
-      posts = parsingResult.parsedPosts
+      posts = parsingResult.parsedPosts,
+      lastModified = response.header(LAST_MODIFIED_HEADER)
     )
   }
 
@@ -147,17 +177,47 @@ class ThreadDownloaderPersistPostsInDatabaseUseCase(
 
   companion object {
     private const val TAG = "ThreadDownloaderPersistPostsInDatabaseUseCase"
+    private const val IF_MODIFIED_SINCE_HEADER = "If-Modified-Since"
+    private const val LAST_MODIFIED_HEADER = "Last-Modified"
+
+    /**
+     * Executes the request, conditionally when [lastModified] is known. Returns null when the server
+     * responded with 304 meaning that the thread did not change since [lastModified].
+     * */
+    suspend fun executeConditionalRequest(
+      okHttpClient: OkHttpClient,
+      requestBuilder: Request.Builder,
+      lastModified: String?
+    ): Response? {
+      if (lastModified != null) {
+        // Sites that support conditional requests will respond with 304 when nothing has changed
+        requestBuilder.header(IF_MODIFIED_SINCE_HEADER, lastModified)
+      }
+
+      val response = okHttpClient.suspendCall(requestBuilder.build())
+      if (response.code == 304) {
+        response.closeQuietly()
+        return null
+      }
+
+      return response
+    }
   }
 }
 
 data class DownloadParams(
   val ownerThreadDatabaseId: Long,
-  val threadDescriptor: ChanDescriptor.ThreadDescriptor
+  val threadDescriptor: ChanDescriptor.ThreadDescriptor,
+  // Last-Modified header value of the previous successful download
+  val lastModified: String? = null
 )
 
 data class DownloadResult(
   val deleted: Boolean,
   val closed: Boolean,
   val archived: Boolean,
-  val posts: List<ChanPost>
+  val posts: List<ChanPost>,
+  // The thread did not change since DownloadParams.lastModified, nothing was downloaded
+  val notModified: Boolean = false,
+  val lastModified: String? = null
 )
\ No newline at end of file
@@ -0,0 +1,103 @@
+package com.github.k1rakishou.chan.features.image_saver
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.chan.core.cache.CacheFileType
+import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.cache.FileCacheV2
+import com.github.k1rakishou.core_logger.Logger
+import dagger.Lazy
+import okhttp3.HttpUrl
+import java.io.File
+import java.io.IOException
+
+/**
+ * [ImageSaverMediaDownloader.MediaCache] backed by the full media disk cache (the one the media
+ * viewer uses). Temp files are stored in [tempFilesDir] which must be on the same partition as the
+ * disk cache so that committing a file is just a rename.
+ * */
+class ImageSaverMediaCache(
+  private val cacheHandler: Lazy<CacheHandler>,
+  private val fileCacheV2: Lazy<FileCacheV2>,
+  private val tempFilesDir: File
+) : ImageSaverMediaDownloader.MediaCache {
+  private val lock = Any()
+
+  @GuardedBy("lock")
+  private var tempFilesDirCleared = false
+
+  override fun findCachedFile(imageUrl: HttpUrl): File? {
+    val cacheFile = cacheHandler.get().getCacheFileOrNull(CACHE_FILE_TYPE, imageUrl.toString())
+      ?: return null
+
+    if (!cacheFile.canRead() || cacheFile.length() <= 0L) {
+      return null
+    }
+
+    return cacheFile
+  }
+
+  override fun createTempFile(imageUrl: HttpUrl): File? {
+    // The media viewer is downloading this file into the cache right now
+    if (fileCacheV2.get().isRunning(imageUrl.toString())) {
+      return null
+    }
+
+    synchronized(lock) {
+      if (!tempFilesDirCleared) {
+        // Leftovers of the saves that were interrupted by the app getting killed
+        tempFilesDir.deleteRecursively()
+        tempFilesDirCleared = true
+      }
+
+      if (!tempFilesDir.exists() && !tempFilesDir.mkdirs()) {
+        Logger.e(TAG, "Failed to create ${tempFilesDir.absolutePath}")
+        return null
+      }
+
+      try {
+        return File.createTempFile(TEMP_FILE_PREFIX, null, tempFilesDir)
+      } catch (error: IOException) {
+        Logger.e(TAG, "Failed to create a temp file in ${tempFilesDir.absolutePath}", error)
+        return null
+      }
+    }
+  }
+
+  override fun commit(imageUrl: HttpUrl, tempFile: File) {
+    val url = imageUrl.toString()
+
+    synchronized(lock) {
+      // The media viewer or another save could have cached this file while we were downloading it
+      if (fileCacheV2.get().isRunning(url) || cacheHandler.get().isAlreadyDownloaded(CACHE_FILE_TYPE, url)) {
+        return
+      }
+
+      val cacheFile = cacheHandler.get().getOrCreateCacheFile(CACHE_FILE_TYPE, url)
+        ?: return
+
+      try {
+        if (!tempFile.renameTo(cacheFile)) {
+          tempFile.copyTo(cacheFile, overwrite = true)
+        }
+
+        if (!cacheHandler.get().markFileDownloaded(CACHE_FILE_TYPE, cacheFile)) {
+          return
+        }
+      } catch (error: Throwable) {
+        cacheHandler.get().deleteCacheFile(CACHE_FILE_TYPE, cacheFile)
+        throw error
+      }
+
+      cacheHandler.get().fileWasAdded(CACHE_FILE_TYPE, cacheFile.length())
+    }
+  }
+
+  companion object {
+    private const val TAG = "ImageSaverMediaCache"
+    private const val TEMP_FILE_PREFIX = "image_saver_"
+    private val CACHE_FILE_TYPE = CacheFileType.PostMediaFull
+
+    const val TEMP_FILES_DIR_NAME = "image_saver_tmp"
+  }
+
+}
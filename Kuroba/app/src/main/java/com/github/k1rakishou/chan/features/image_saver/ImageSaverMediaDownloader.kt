@@ -0,0 +1,202 @@
+package com.github.k1rakishou.chan.features.image_saver
+
+import com.github.k1rakishou.chan.core.base.okhttp.RequestPriority
+import com.github.k1rakishou.chan.core.base.okhttp.priority
+import com.github.k1rakishou.common.BadStatusResponseException
+import com.github.k1rakishou.common.EmptyBodyResponseException
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.common.suspendCall
+import com.github.k1rakishou.core_logger.Logger
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.runInterruptible
+import okhttp3.HttpUrl
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.internal.closeQuietly
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * Copies media into the files chosen by the image saver. The media disk cache is checked first,
+ * then the local file passed by the caller (e.g. the thread downloader file). Media that has to be
+ * downloaded is written into a [MediaCache] temp file at the same time as into the output file and
+ * then committed into the cache so that the media viewer doesn't download it again right after
+ * it was saved.
+ * */
+class ImageSaverMediaDownloader(
+  private val okHttpClientProvider: () -> OkHttpClient,
+  private val mediaCache: MediaCache,
+  private val requestModifier: (imageUrl: HttpUrl, requestBuilder: Request.Builder) -> Unit
+) {
+
+  @Throws(
+    ImageSaverV2ServiceDelegate.ResultFileAccessError::class,
+    ImageSaverV2ServiceDelegate.NotFoundException::class,
+    IOException::class
+  )
+  suspend fun download(
+    imageUrl: HttpUrl,
+    openOutputStream: () -> OutputStream,
+    openLocalInputStream: suspend () -> InputStream? = { null }
+  ): Source {
+    val cachedFile = mediaCache.findCachedFile(imageUrl)
+    if (cachedFile != null) {
+      runInterruptible { copy(cachedFile.inputStream(), openOutputStream) }
+      return Source.MediaCache
+    }
+
+    val localInputStream = openLocalInputStream()
+    if (localInputStream != null) {
+      runInterruptible { copy(localInputStream, openOutputStream) }
+      return Source.LocalFile
+    }
+
+    val requestBuilder = Request.Builder()
+      .url(imageUrl)
+      .get()
+      .priority(RequestPriority.FullMedia)
+
+    requestModifier(imageUrl, requestBuilder)
+
+    val response = okHttpClientProvider().suspendCall(requestBuilder.build())
+    if (!response.isSuccessful) {
+      response.closeQuietly()
+
+      if (response.code == 404) {
+        throw ImageSaverV2ServiceDelegate.NotFoundException()
+      }
+
+      throw BadStatusResponseException(response.code)
+    }
+
+    val responseBody = response.body
+      ?: throw EmptyBodyResponseException()
+
+    // Null when the file must not be cached right now
+    val tempFile = mediaCache.createTempFile(imageUrl)
+
+    try {
+      val fullyCached = runInterruptible {
+        copyWithCacheCopy(responseBody.byteStream(), openOutputStream, tempFile)
+      }
+
+      if (tempFile != null && fullyCached) {
+        commitIntoCache(imageUrl, tempFile)
+      }
+    } finally {
+      responseBody.closeQuietly()
+      tempFile?.delete()
+    }
+
+    return Source.Network
+  }
+
+  private fun copy(inputStream: InputStream, openOutputStream: () -> OutputStream) {
+    inputStream.use {
+      openOutputStream().use { outputStream -> inputStream.copyTo(outputStream, BUFFER_SIZE) }
+    }
+  }
+
+  /**
+   * Returns true when the whole file was written into [tempFile]. Errors while writing the cache
+   * copy only disable caching, the output file is what the user asked for.
+   * */
+  private fun copyWithCacheCopy(
+    inputStream: InputStream,
+    openOutputStream: () -> OutputStream,
+    tempFile: File?
+  ): Boolean {
+    var cacheOutputStream = tempFile?.let { file -> openCacheOutputStream(file) }
+
+    try {
+      inputStream.use {
+        openOutputStream().use { outputStream ->
+          val buffer = ByteArray(BUFFER_SIZE)
+
+          while (true) {
+            val read = inputStream.read(buffer)
+            if (read < 0) {
+              break
+            }
+
+            outputStream.write(buffer, 0, read)
+
+            try {
+              cacheOutputStream?.write(buffer, 0, read)
+            } catch (error: IOException) {
+              Logger.e(TAG, "Failed to write cache copy of '${tempFile?.name}', " +
+                "error: ${error.errorMessageOrClassName()}")
+
+              cacheOutputStream?.closeQuietly()
+              cacheOutputStream = null
+            }
+          }
+        }
+      }
+
+      try {
+        cacheOutputStream?.close()
+      } catch (error: IOException) {
+        cacheOutputStream = null
+      }
+
+      return cacheOutputStream != null
+    } finally {
+      cacheOutputStream?.closeQuietly()
+    }
+  }
+
+  private fun openCacheOutputStream(tempFile: File): OutputStream? {
+    try {
+      return tempFile.outputStream()
+    } catch (error: IOException) {
+      Logger.e(TAG, "Failed to open '${tempFile.absolutePath}', error: ${error.errorMessageOrClassName()}")
+      return null
+    }
+  }
+
+  private fun commitIntoCache(imageUrl: HttpUrl, tempFile: File) {
+    try {
+      mediaCache.commit(imageUrl, tempFile)
+    } catch (error: Throwable) {
+      if (error is CancellationException) {
+        throw error
+      }
+
+      Logger.e(TAG, "Failed to put '$imageUrl' into the media cache, error: ${error.errorMessageOrClassName()}")
+    }
+  }
+
+  interface MediaCache {
+    /**
+     * Returns a fully downloaded file from the media disk cache or null.
+     * */
+    fun findCachedFile(imageUrl: HttpUrl): File?
+
+    /**
+     * Returns a new file the downloaded media will be written into or null if the media must not be
+     * cached (e.g. it's being downloaded into the cache by somebody else right now).
+     * */
+    fun createTempFile(imageUrl: HttpUrl): File?
+
+    /**
+     * Moves the fully downloaded [tempFile] into the media disk cache. [tempFile] is deleted
+     * afterwards if it's still there.
+     * */
+    fun commit(imageUrl: HttpUrl, tempFile: File)
+  }
+
+  enum class Source {
+    MediaCache,
+    LocalFile,
+    Network
+  }
+
+  companion object {
+    private const val TAG = "ImageSaverMediaDownloader"
+    private const val BUFFER_SIZE = 32 * 1024
+  }
+
+}
@@ -91,7 +91,8 @@ class ImageSaverV2(
         status = ImageDownloadRequest.Status.Queued,
         duplicateFileUri = null,
         duplicatesResolution = duplicatesResolution,
-        createdOn = DateTime.now()
+        createdOn = DateTime.now(),
+        imageSaverOptionsJson = gson.toJson(imageSaverV2Options)
       )
 
       val actualImageDownloadRequest = imageDownloadRequestRepository.create(imageDownloadRequest)
@@ -123,6 +124,8 @@ class ImageSaverV2(
       val duplicatesResolution =
         ImageSaverV2Options.DuplicatesResolution.fromRawValue(imageSaverV2Options.duplicatesResolution)
 
+      val imageSaverOptionsJson = gson.toJson(imageSaverV2Options)
+
       val imageDownloadRequests = simpleSaveableMediaInfoList.mapNotNull { postImage ->
         return@mapNotNull ImageDownloadRequest(
           uniqueId = uniqueId,
@@ -132,7 +135,8 @@ class ImageSaverV2(
           status = ImageDownloadRequest.Status.Queued,
           duplicateFileUri = null,
           duplicatesResolution = duplicatesResolution,
-          createdOn = DateTime.now()
+          createdOn = DateTime.now(),
+          imageSaverOptionsJson = imageSaverOptionsJson
         )
       }
 
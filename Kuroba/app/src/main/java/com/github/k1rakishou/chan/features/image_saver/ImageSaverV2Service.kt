@@ -26,6 +26,7 @@ import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.download.ImageDownloadRequest
 import com.github.k1rakishou.model.repository.ImageDownloadRequestRepository
 import com.github.k1rakishou.persist_state.ImageSaverV2Options
+import com.github.k1rakishou.persist_state.PersistableChanState
 import com.google.gson.Gson
 import dagger.Lazy
 import kotlinx.coroutines.Job
@@ -104,15 +105,18 @@ class ImageSaverV2Service : Service() {
   }
 
   override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
-    if (intent == null) {
-      return START_NOT_STICKY
-    }
-
     startForeground(
       NotificationConstants.IMAGE_SAVER_WORKER_NOTIFICATION_ID,
       createServiceNotification()
     )
 
+    if (intent == null) {
+      // The service was restarted by the system after the app process had been killed while
+      // something was being downloaded
+      kurobaScope.launch { resumeQueuedDownloads() }
+      return START_STICKY
+    }
+
     kurobaScope.launch {
       val imageSaverInputData = convertInputData(intent)
       if (imageSaverInputData == null) {
@@ -120,18 +124,90 @@ class ImageSaverV2Service : Service() {
         return@launch
       }
 
-      val activeDownloadsCountBefore = imageSaverV2ServiceDelegate.get().createDownloadContext(
-        imageSaverInputData.uniqueId
-      )
+      startDownload(imageSaverInputData)
+    }
 
-      if (verboseLogs) {
-        Logger.d(TAG, "onStartCommand() start, activeDownloadsCount=$activeDownloadsCountBefore")
-      }
+    return START_STICKY
+  }
 
-      imageSaverV2ServiceDelegate.get().downloadImages(imageSaverInputData)
+  private suspend fun startDownload(imageSaverInputData: ImageDownloadInputData) {
+    val activeDownloadsCountBefore = imageSaverV2ServiceDelegate.get().createDownloadContext(
+      imageSaverInputData.uniqueId
+    )
+
+    if (verboseLogs) {
+      Logger.d(TAG, "startDownload() start, activeDownloadsCount=$activeDownloadsCountBefore")
     }
 
-    return START_STICKY
+    imageSaverV2ServiceDelegate.get().downloadImages(imageSaverInputData)
+  }
+
+  private suspend fun resumeQueuedDownloads() {
+    // Processed requests are updated in the database one by one so only the requests that were
+    // not processed yet are still queued
+    val queuedRequests = imageDownloadRequestRepository.selectAllWithStatus(
+      listOf(ImageDownloadRequest.Status.Queued)
+    )
+      .peekError { error -> Logger.e(TAG, "imageDownloadRequestRepository.selectAllWithStatus() error", error) }
+      .valueOrNull()
+      ?: emptyList()
+
+    if (queuedRequests.isEmpty()) {
+      Logger.d(TAG, "resumeQueuedDownloads() nothing to resume")
+
+      stopForeground(true)
+      stopSelf()
+      return
+    }
+
+    var resumedCount = 0
+
+    queuedRequests
+      .groupBy { imageDownloadRequest -> imageDownloadRequest.uniqueId }
+      .forEach { (uniqueId, imageDownloadRequests) ->
+        // Every request of the same download is created with the same options. Requests created
+        // before the options were persisted use the current ones.
+        val imageSaverOptionsJson = imageDownloadRequests.first().imageSaverOptionsJson
+          ?: gson.toJson(PersistableChanState.imageSaverV2PersistedOptions.get())
+
+        val imageSaverV2Options = try {
+          gson.fromJson(imageSaverOptionsJson, ImageSaverV2Options::class.java)
+        } catch (error: Throwable) {
+          Logger.e(TAG, "resumeQueuedDownloads() uniqueId='$uniqueId' failed to parse options", error)
+          null
+        }
+
+        if (imageSaverV2Options == null || imageSaverV2Options.rootDirectoryUri.isNullOrBlank()) {
+          Logger.d(TAG, "resumeQueuedDownloads() uniqueId='$uniqueId' has no output directory, skipping")
+          return@forEach
+        }
+
+        Logger.d(TAG, "resumeQueuedDownloads() uniqueId='$uniqueId', count=${imageDownloadRequests.size}")
+
+        val imageSaverInputData = if (imageDownloadRequests.size == 1) {
+          SingleImageDownloadInputData(
+            uniqueId = uniqueId,
+            imageSaverOptionsJson = imageSaverOptionsJson,
+            imageSaverV2Options = imageSaverV2Options,
+            imageDownloadRequest = imageDownloadRequests.first()
+          )
+        } else {
+          BatchImageDownloadInputData(
+            uniqueId = uniqueId,
+            imageSaverOptionsJson = imageSaverOptionsJson,
+            imageSaverV2Options = imageSaverV2Options,
+            imageDownloadRequests = imageDownloadRequests
+          )
+        }
+
+        ++resumedCount
+        startDownload(imageSaverInputData)
+      }
+
+    if (resumedCount == 0) {
+      stopForeground(true)
+      stopSelf()
+    }
   }
 
   private suspend fun convertInputData(intent: Intent): ImageDownloadInputData? {
@@ -5,24 +5,22 @@ import androidx.annotation.GuardedBy
 import androidx.core.app.NotificationManagerCompat
 import com.github.k1rakishou.chan.core.base.SerializedCoroutineExecutor
 import com.github.k1rakishou.chan.core.base.okhttp.RealDownloaderOkHttpClient
-import com.github.k1rakishou.chan.core.cache.CacheFileType
 import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.cache.FileCacheV2
 import com.github.k1rakishou.chan.core.helper.ImageSaverFileManagerWrapper
 import com.github.k1rakishou.chan.core.manager.ChanThreadManager
 import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
 import com.github.k1rakishou.chan.core.site.SiteResolver
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadScheduler
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.common.AppConstants
-import com.github.k1rakishou.common.BadStatusResponseException
-import com.github.k1rakishou.common.EmptyBodyResponseException
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.StringUtils
 import com.github.k1rakishou.common.doIoTaskWithAttempts
 import com.github.k1rakishou.common.extractFileName
 import com.github.k1rakishou.common.isNotNullNorBlank
 import com.github.k1rakishou.common.isOutOfDiskSpaceError
-import com.github.k1rakishou.common.suspendCall
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.fsaf.FileManager
 import com.github.k1rakishou.fsaf.file.AbstractFile
@@ -41,8 +39,6 @@ import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.ObsoleteCoroutinesApi
-import kotlinx.coroutines.async
-import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.MutableSharedFlow
@@ -50,17 +46,13 @@ import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.coroutines.flow.asSharedFlow
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.runInterruptible
-import kotlinx.coroutines.supervisorScope
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
 import okhttp3.HttpUrl
 import okhttp3.Request
-import okhttp3.ResponseBody
-import okhttp3.internal.closeQuietly
+import java.io.File
 import java.io.IOException
-import java.io.InputStream
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicBoolean
@@ -75,6 +67,7 @@ class ImageSaverV2ServiceDelegate(
   private val appScope: CoroutineScope,
   private val appConstants: AppConstants,
   private val cacheHandler: Lazy<CacheHandler>,
+  private val fileCacheV2: Lazy<FileCacheV2>,
   private val downloaderOkHttpClient: Lazy<RealDownloaderOkHttpClient>,
   private val notificationManagerCompat: NotificationManagerCompat,
   private val imageSaverFileManager: ImageSaverFileManagerWrapper,
@@ -94,6 +87,28 @@ class ImageSaverV2ServiceDelegate(
 
   private val serializedCoroutineExecutor = SerializedCoroutineExecutor(appScope)
 
+  private val mediaDownloader by lazy {
+    ImageSaverMediaDownloader(
+      okHttpClientProvider = { downloaderOkHttpClient.get().okHttpClient() },
+      mediaCache = ImageSaverMediaCache(
+        cacheHandler = cacheHandler,
+        fileCacheV2 = fileCacheV2,
+        tempFilesDir = File(appConstants.diskCacheDir, ImageSaverMediaCache.TEMP_FILES_DIR_NAME)
+      ),
+      requestModifier = { imageUrl, requestBuilder -> modifyRequest(imageUrl, requestBuilder) }
+    )
+  }
+
+  private val batchDownloadScheduler by lazy {
+    ThreadDownloadScheduler(
+      maxConcurrentThreads = maxConcurrentDownloads,
+      maxConcurrentThreadsPerSite = MAX_CONCURRENT_DOWNLOADS_PER_HOST
+    )
+  }
+
+  private val maxConcurrentDownloads: Int
+    get() = appConstants.processorsCount * 2
+
   private val fileManager: FileManager
     get() = imageSaverFileManager.fileManager
 
@@ -251,72 +266,80 @@ class ImageSaverV2ServiceDelegate(
         hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried.get()
       )
 
-      supervisorScope {
-        imageDownloadRequests
-          .chunked(appConstants.processorsCount * 2)
-          .forEach { imageDownloadRequestBatch ->
-            val updatedImageDownloadRequestBatch = imageDownloadRequestBatch.map { imageDownloadRequest ->
-              return@map appScope.async(Dispatchers.IO) {
-                val (outImageDownloadRequest, duration) = measureTimedValue {
-                  return@measureTimedValue downloadSingleImage(
-                    imageDownloadInputData = imageDownloadInputData,
-                    imageDownloadRequest = imageDownloadRequest,
-                    hasResultDirAccessErrors = hasResultDirAccessErrors,
-                    hasOutOfDiskSpaceErrors = hasOutOfDiskSpaceErrors,
-                    hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried,
-                    currentChanPostImage = currentChanPostImage,
-                    canceledRequests = canceledRequests,
-                    duplicates = duplicates,
-                    failedRequests = failedRequests,
-                    outputDirUri = outputDirUri,
-                    completedRequests = completedRequests
-                  )
-                }
-
-                if (verboseLogs) {
-                  Logger.d(TAG, "downloadSingleImage(${imageDownloadRequest.imageFullUrl}) took $duration")
-                }
-
-                return@async outImageDownloadRequest
-              }
-            }.awaitAll()
-
-            imageDownloadRequestRepository.completeMany(updatedImageDownloadRequestBatch)
-              .peekError { error -> Logger.e(TAG, "imageDownloadRequestRepository.updateMany() error", error) }
+      val progressMutex = Mutex()
+      var processedRequests = 0
+
+      // Requests of different hosts are downloaded concurrently, requests of the same host are
+      // limited so that a batch save doesn't occupy every connection to the site
+      batchDownloadScheduler.schedule(
+        items = imageDownloadRequests,
+        siteKeySelector = { imageDownloadRequest -> imageDownloadRequest.imageFullUrl.host },
+        processFunc = { _, imageDownloadRequest ->
+          val (outImageDownloadRequest, duration) = measureTimedValue {
+            return@measureTimedValue downloadSingleImage(
+              imageDownloadInputData = imageDownloadInputData,
+              imageDownloadRequest = imageDownloadRequest,
+              hasResultDirAccessErrors = hasResultDirAccessErrors,
+              hasOutOfDiskSpaceErrors = hasOutOfDiskSpaceErrors,
+              hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried,
+              currentChanPostImage = currentChanPostImage,
+              canceledRequests = canceledRequests,
+              duplicates = duplicates,
+              failedRequests = failedRequests,
+              outputDirUri = outputDirUri,
+              completedRequests = completedRequests
+            )
+          }
+
+          if (verboseLogs) {
+            Logger.d(TAG, "downloadSingleImage(${imageDownloadRequest.imageFullUrl}) took $duration")
+          }
+
+          // Every request is persisted as soon as it's processed so that a restarted service only
+          // downloads the ones that are still queued. Progress events are emitted under the same
+          // lock so that the counters shown in the notification never go backwards.
+          progressMutex.withLock {
+            imageDownloadRequestRepository.completeMany(listOf(outImageDownloadRequest))
+              .peekError { error -> Logger.e(TAG, "imageDownloadRequestRepository.completeMany() error", error) }
               .ignore()
 
+            ++processedRequests
+
             val canceledNow = (getDownloadContext(imageDownloadInputData)?.isCanceled() ?: true)
               || hasResultDirAccessErrors.get() || hasOutOfDiskSpaceErrors.get()
 
-            if (!canceledNow) {
-              val notificationSummary = extractNotificationSummaryText(
-                imageDownloadInputData = imageDownloadInputData,
-                currentChanPostImage = currentChanPostImage,
-                imageDownloadRequests = imageDownloadRequests,
-                isCompleted = false
-              )
-
-              // Progress event
-              emitNotificationUpdate(
-                uniqueId = imageDownloadInputData.uniqueId,
-                imageSaverOptionsJson = imageDownloadInputData.imageSaverOptionsJson,
-                completed = false,
-                notificationSummary = notificationSummary,
-                totalImagesCount = imageDownloadInputData.requestsCount(),
-                canceledRequests = canceledRequests.get(),
-                completedRequests = completedRequestsToDownloadedImagesResult(
-                  completedRequests = completedRequests,
-                  outputDirUri = outputDirUri
-                ),
-                duplicates = duplicates.get(),
-                failedRequests = failedRequests.get(),
-                hasResultDirAccessErrors = hasResultDirAccessErrors.get(),
-                hasOutOfDiskSpaceErrors = hasOutOfDiskSpaceErrors.get(),
-                hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried.get()
-              )
+            if (canceledNow || processedRequests % maxConcurrentDownloads != 0) {
+              return@withLock
             }
+
+            val notificationSummary = extractNotificationSummaryText(
+              imageDownloadInputData = imageDownloadInputData,
+              currentChanPostImage = currentChanPostImage,
+              imageDownloadRequests = imageDownloadRequests,
+              isCompleted = false
+            )
+
+            // Progress event
+            emitNotificationUpdate(
+              uniqueId = imageDownloadInputData.uniqueId,
+              imageSaverOptionsJson = imageDownloadInputData.imageSaverOptionsJson,
+              completed = false,
+              notificationSummary = notificationSummary,
+              totalImagesCount = imageDownloadInputData.requestsCount(),
+              canceledRequests = canceledRequests.get(),
+              completedRequests = completedRequestsToDownloadedImagesResult(
+                completedRequests = completedRequests,
+                outputDirUri = outputDirUri
+              ),
+              duplicates = duplicates.get(),
+              failedRequests = failedRequests.get(),
+              hasResultDirAccessErrors = hasResultDirAccessErrors.get(),
+              hasOutOfDiskSpaceErrors = hasOutOfDiskSpaceErrors.get(),
+              hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried.get()
+            )
           }
-      }
+        }
+      )
     } finally {
       val notificationSummary = extractNotificationSummaryText(
         imageDownloadInputData = imageDownloadInputData,
@@ -474,7 +497,8 @@ class ImageSaverV2ServiceDelegate(
       downloadImageResultToStatus(downloadImageResult),
       getDuplicateUriOrNull(downloadImageResult),
       imageDownloadRequest.duplicatesResolution,
-      imageDownloadRequest.createdOn
+      imageDownloadRequest.createdOn,
+      imageDownloadRequest.imageSaverOptionsJson
     )
   }
 
@@ -893,66 +917,31 @@ class ImageSaverV2ServiceDelegate(
   ) {
     BackgroundUtils.ensureBackgroundThread()
 
-    val fileUrl = imageUrl.toString()
-    val cacheFileType = CacheFileType.PostMediaFull
-    var localInputStream: InputStream? = null
-
-    try {
-      if (cacheHandler.get().cacheFileExists(cacheFileType, fileUrl)) {
-        val cachedFile = cacheHandler.get().getCacheFileOrNull(cacheFileType, fileUrl)
-        if (cachedFile != null && cachedFile.canRead() && cachedFile.length() > 0) {
-          localInputStream = cachedFile.inputStream()
+    val source = mediaDownloader.download(
+      imageUrl = imageUrl,
+      openOutputStream = {
+        fileManager.getOutputStream(outputFile)
+          ?: throw ResultFileAccessError(outputFile.getFullPath())
+      },
+      openLocalInputStream = {
+        if (threadDescriptor != null && threadDownloadManager.canUseThreadDownloaderCache(threadDescriptor)) {
+          threadDownloadManager.findDownloadedFile(imageUrl, threadDescriptor)
+            ?.let { file -> fileManager.getInputStream(file) }
+        } else {
+          null
         }
       }
+    )
 
-      if (localInputStream == null
-        && threadDescriptor != null
-        && threadDownloadManager.canUseThreadDownloaderCache(threadDescriptor)
-      ) {
-        localInputStream = threadDownloadManager.findDownloadedFile(imageUrl, threadDescriptor)
-          ?.let { file -> fileManager.getInputStream(file) }
-      }
-
-      if (localInputStream == null) {
-        localInputStream = downloadAndGetResponseBody(imageUrl).source().inputStream()
-      }
-
-      val outputFileStream = fileManager.getOutputStream(outputFile)
-        ?: throw ResultFileAccessError(outputFile.getFullPath())
-
-      runInterruptible {
-        localInputStream!!.use { inputStream ->
-          outputFileStream.use { outputStream ->
-            inputStream.copyTo(outputStream)
-          }
-        }
-      }
-    } finally {
-      localInputStream?.closeQuietly()
-      localInputStream = null
+    if (verboseLogs) {
+      Logger.d(TAG, "downloadFileIntoFile('$imageUrl') source=$source")
     }
   }
 
-  private suspend fun downloadAndGetResponseBody(imageUrl: HttpUrl): ResponseBody {
-    val requestBuilder = Request.Builder()
-      .url(imageUrl)
-
+  private fun modifyRequest(imageUrl: HttpUrl, requestBuilder: Request.Builder) {
     siteResolver.findSiteForUrl(imageUrl.toString())?.let { site ->
       site.requestModifier().modifyMediaDownloadRequest(site, requestBuilder)
     }
-
-    val response = downloaderOkHttpClient.get().okHttpClient().suspendCall(requestBuilder.build())
-
-    if (!response.isSuccessful) {
-      if (response.code == 404) {
-        throw NotFoundException()
-      }
-
-      throw BadStatusResponseException(response.code)
-    }
-
-    return response.body
-      ?: throw EmptyBodyResponseException()
   }
 
   private suspend fun getDownloadContext(
@@ -1086,6 +1075,8 @@ class ImageSaverV2ServiceDelegate(
     private const val MAX_VISIBLE_NOTIFICATIONS_PROD = 12
     private const val MAX_VISIBLE_NOTIFICATIONS_TEST = 3
 
+    private const val MAX_CONCURRENT_DOWNLOADS_PER_HOST = 4
+
     const val MAX_IO_ERROR_RETRIES_COUNT = 3
   }
 }
\ No newline at end of file
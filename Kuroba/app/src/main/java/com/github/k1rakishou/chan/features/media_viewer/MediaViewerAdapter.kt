@@ -1,10 +1,16 @@
 package com.github.k1rakishou.chan.features.media_viewer
 
 import android.content.Context
+import android.net.ConnectivityManager
 import android.view.View
 import android.view.ViewGroup
 import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.chan.core.cache.CacheFileType
+import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.cache.FileCacheV2
+import com.github.k1rakishou.chan.core.cache.downloader.DownloadRequestExtraInfo
 import com.github.k1rakishou.chan.core.manager.Chan4CloudFlareImagePreloaderManager
+import com.github.k1rakishou.chan.features.media_viewer.helper.MediaViewerPrefetchPlanner
 import com.github.k1rakishou.chan.features.media_viewer.helper.MediaViewerScrollerHelper
 import com.github.k1rakishou.chan.features.media_viewer.media_view.AudioMediaView
 import com.github.k1rakishou.chan.features.media_viewer.media_view.ExoPlayerVideoMediaView
@@ -22,6 +28,7 @@ import com.github.k1rakishou.common.mutableIteration
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.post.ChanPostImage
 import com.google.android.exoplayer2.upstream.DataSource
+import dagger.Lazy
 import kotlinx.coroutines.CompletableDeferred
 
 class MediaViewerAdapter(
@@ -38,6 +45,9 @@ class MediaViewerAdapter(
   private val fileDataSourceFactory: DataSource.Factory,
   private val contentDataSourceFactory: DataSource.Factory,
   private val chan4CloudFlareImagePreloaderManager: Chan4CloudFlareImagePreloaderManager,
+  private val fileCacheV2: FileCacheV2,
+  private val cacheHandler: Lazy<CacheHandler>,
+  private val connectivityManager: ConnectivityManager,
   private val isSystemUiHidden: () -> Boolean,
   private val swipeDirection: () -> OptionalSwipeViewPager.SwipeDirection,
   private val getAndConsumeLifecycleChangeFlag: () -> Boolean
@@ -46,6 +56,17 @@ class MediaViewerAdapter(
   private val loadedViews = mutableListOf<LoadedView>()
   private val previewThumbnailLocationLoaded = CompletableDeferred<Unit>()
 
+  private val prefetchPlanner = MediaViewerPrefetchPlanner(
+    prefetcher = { prefetchItem -> prefetchFullMedia(prefetchItem) },
+    itemsCount = { viewableMediaList.size },
+    itemAt = { position -> viewableMediaList.getOrNull(position)?.let { viewableMedia -> toPrefetchItemOrNull(viewableMedia) } },
+    networkType = { MediaViewerPrefetchPlanner.NetworkType.fromConnectivityManager(connectivityManager) },
+    cacheBudgetBytes = {
+      val maxCacheSize = cacheHandler.get().getMaxSize(CacheFileType.PostMediaFull)
+      (maxCacheSize * MediaViewerPrefetchPlanner.CACHE_BUDGET_FRACTION).toLong()
+    }
+  )
+
   private var firstUpdateHappened = false
   private var initialImageBindHappened = false
 
@@ -69,6 +90,8 @@ class MediaViewerAdapter(
       previewThumbnailLocationLoaded.cancel()
     }
 
+    prefetchPlanner.cancelAll()
+
     loadedViews.forEach { loadedView ->
       if (loadedView.mediaView.shown) {
         loadedView.mediaView.onHide(isLifecycleChange = true, isPausing = false, isBecomingInactive = false)
@@ -319,6 +342,8 @@ class MediaViewerAdapter(
     } else {
       _lastViewedMediaPosition = position
     }
+
+    prefetchPlanner.onPageSelected(position)
   }
 
   override fun finishUpdate(container: ViewGroup) {
@@ -440,6 +465,63 @@ class MediaViewerAdapter(
     return indexToScroll
   }
 
+  private fun toPrefetchItemOrNull(viewableMedia: ViewableMedia): MediaViewerPrefetchPlanner.PrefetchItem? {
+    // Only images and gifs are loaded from the CacheHandler, videos are streamed via ExoPlayer's own cache
+    if (viewableMedia !is ViewableMedia.Image && viewableMedia !is ViewableMedia.Gif) {
+      return null
+    }
+
+    val mediaLocation = viewableMedia.mediaLocation as? MediaLocation.Remote
+      ?: return null
+
+    if (cacheHandler.get().cacheFileExists(CacheFileType.PostMediaFull, mediaLocation.url.toString())) {
+      return null
+    }
+
+    val canAutoLoad = MediaViewerControllerViewModel.canAutoLoad(
+      cacheHandler = cacheHandler.get(),
+      viewableMedia = viewableMedia,
+      cacheFileType = CacheFileType.PostMediaFull
+    )
+
+    if (!canAutoLoad) {
+      return null
+    }
+
+    return MediaViewerPrefetchPlanner.PrefetchItem(
+      url = mediaLocation.url,
+      sizeBytes = viewableMedia.viewableMediaMeta.mediaSize,
+      hash = viewableMedia.viewableMediaMeta.mediaHash
+    )
+  }
+
+  private fun prefetchFullMedia(
+    prefetchItem: MediaViewerPrefetchPlanner.PrefetchItem
+  ): MediaViewerPrefetchPlanner.PrefetchHandle? {
+    // Same extra info as the one the media views use so that they can simply attach to the
+    // prefetch download once their page is shown
+    val extraInfo = DownloadRequestExtraInfo(
+      fileSize = prefetchItem.sizeBytes ?: -1,
+      fileHash = prefetchItem.hash
+    )
+
+    val cancelableDownload = fileCacheV2.enqueueMediaPrefetchRequest(
+      url = prefetchItem.url,
+      cacheFileType = CacheFileType.PostMediaFull,
+      extraInfo = extraInfo
+    ) ?: return null
+
+    return object : MediaViewerPrefetchPlanner.PrefetchHandle {
+      override fun isRunning(): Boolean = cancelableDownload.isRunning()
+      override fun cancel() {
+        // A media view has attached to this download, it's not ours to cancel anymore
+        if (cancelableDownload.downloadType.isPrefetchDownload) {
+          cancelableDownload.cancelPrefetch()
+        }
+      }
+    }
+  }
+
   data class LoadedView(val viewIndex: Int, val mediaView: MediaView<ViewableMedia, MediaViewState>)
 
   companion object {
@@ -4,6 +4,7 @@ import android.content.Context
 import android.content.res.Configuration
 import android.graphics.Color
 import android.graphics.drawable.Drawable
+import android.net.ConnectivityManager
 import android.net.Uri
 import android.view.View
 import androidx.activity.ComponentActivity
@@ -13,6 +14,8 @@ import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.R
 import com.github.k1rakishou.chan.controller.Controller
 import com.github.k1rakishou.chan.core.cache.CacheFileType
+import com.github.k1rakishou.chan.core.cache.CacheHandler
+import com.github.k1rakishou.chan.core.cache.FileCacheV2
 import com.github.k1rakishou.chan.core.di.component.activity.ActivityComponent
 import com.github.k1rakishou.chan.core.image.ImageLoaderV2
 import com.github.k1rakishou.chan.core.manager.ArchivesManager
@@ -125,6 +128,12 @@ class MediaViewerController(
   lateinit var mediaViewerGoToPostHelper: MediaViewerGoToPostHelper
   @Inject
   lateinit var mediaViewerOpenThreadHelper: MediaViewerOpenThreadHelper
+  @Inject
+  lateinit var fileCacheV2: FileCacheV2
+  @Inject
+  lateinit var cacheHandler: Lazy<CacheHandler>
+  @Inject
+  lateinit var connectivityManager: ConnectivityManager
 
   private var chanDescriptor: ChanDescriptor? = null
   private var autoSwipeJob: Job? = null
@@ -799,6 +808,9 @@ class MediaViewerController(
       fileDataSourceFactory = FileDataSource.Factory(),
       contentDataSourceFactory = DataSource.Factory { ContentDataSource(context) },
       chan4CloudFlareImagePreloaderManager = chan4CloudFlareImagePreloaderManager,
+      fileCacheV2 = fileCacheV2,
+      cacheHandler = cacheHandler,
+      connectivityManager = connectivityManager,
       isSystemUiHidden = { mediaViewerCallbacks.isSystemUiHidden() },
       swipeDirection = { pager.swipeDirection },
       getAndConsumeLifecycleChangeFlag = {
@@ -0,0 +1,226 @@
+package com.github.k1rakishou.chan.features.media_viewer.helper
+
+import android.net.ConnectivityManager
+import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
+import com.github.k1rakishou.core_logger.Logger
+import okhttp3.HttpUrl
+
+/**
+ * Prefetches the full media of the next pages of the media viewer in the direction the user swipes
+ * so that the media is already in the disk cache when its page is shown.
+ *  - The amount of pages to prefetch depends on the [NetworkType] and grows when the user swipes fast.
+ *  - The total (known or estimated) size of the prefetched media can't be bigger than
+ *  [cacheBudgetBytes] so that prefetching doesn't evict the files that were already viewed.
+ *  - Prefetches of the pages the user has skipped past (or that are not in the prefetch window
+ *  anymore) are canceled.
+ * */
+class MediaViewerPrefetchPlanner(
+  private val prefetcher: Prefetcher,
+  private val itemsCount: () -> Int,
+  private val itemAt: (Int) -> PrefetchItem?,
+  private val networkType: () -> NetworkType,
+  private val cacheBudgetBytes: () -> Long,
+  private val currentTimeMillis: () -> Long = { System.currentTimeMillis() }
+) {
+  private val activePrefetches = mutableMapOf<Int, PrefetchHandle>()
+
+  private var lastPosition: Int? = null
+  private var lastPositionChangeTime = 0L
+  private var direction = 1
+  private var averageSwipeIntervalMs: Long? = null
+
+  val activePrefetchPositions: Set<Int>
+    get() = activePrefetches.keys.toSet()
+
+  fun onPageSelected(position: Int) {
+    val now = currentTimeMillis()
+    val prevPosition = lastPosition
+
+    if (prevPosition != null && prevPosition == position) {
+      return
+    }
+
+    if (prevPosition != null) {
+      direction = if (position > prevPosition) 1 else -1
+
+      val swipeIntervalMs = now - lastPositionChangeTime
+      val prevAverage = averageSwipeIntervalMs
+
+      averageSwipeIntervalMs = if (prevAverage == null) {
+        swipeIntervalMs
+      } else {
+        (prevAverage + swipeIntervalMs) / 2
+      }
+    }
+
+    lastPosition = position
+    lastPositionChangeTime = now
+
+    val toPrefetch = planPrefetch(position)
+    cancelUnneededPrefetches(position, toPrefetch)
+
+    toPrefetch.forEach { (itemPosition, prefetchItem) ->
+      if (activePrefetches.containsKey(itemPosition)) {
+        return@forEach
+      }
+
+      val prefetchHandle = prefetcher.prefetch(prefetchItem)
+        ?: return@forEach
+
+      activePrefetches[itemPosition] = prefetchHandle
+    }
+  }
+
+  fun cancelAll() {
+    activePrefetches.values.forEach { prefetchHandle -> prefetchHandle.cancel() }
+    activePrefetches.clear()
+
+    lastPosition = null
+    averageSwipeIntervalMs = null
+  }
+
+  private fun planPrefetch(position: Int): List<Pair<Int, PrefetchItem>> {
+    val lookahead = calculateLookahead()
+    if (lookahead <= 0) {
+      return emptyList()
+    }
+
+    val count = itemsCount()
+    val budget = cacheBudgetBytes()
+    val toPrefetch = mutableListOf<Pair<Int, PrefetchItem>>()
+    var totalBytes = 0L
+
+    for (offset in 1..lookahead) {
+      val itemPosition = position + (offset * direction)
+      if (itemPosition < 0 || itemPosition >= count) {
+        break
+      }
+
+      // Not prefetchable (already cached, not remote, not allowed to be auto loaded, etc.)
+      val prefetchItem = itemAt(itemPosition)
+        ?: continue
+
+      totalBytes += prefetchItem.sizeBytes?.takeIf { size -> size > 0 } ?: ESTIMATED_MEDIA_SIZE_BYTES
+      if (totalBytes > budget) {
+        break
+      }
+
+      toPrefetch += Pair(itemPosition, prefetchItem)
+    }
+
+    return toPrefetch
+  }
+
+  private fun calculateLookahead(): Int {
+    val baseLookahead = when (networkType()) {
+      NetworkType.None -> return 0
+      NetworkType.Slow -> 1
+      NetworkType.Metered -> 2
+      NetworkType.Unmetered -> 4
+    }
+
+    val swipeIntervalMs = averageSwipeIntervalMs
+      ?: return baseLookahead
+
+    val lookahead = when {
+      swipeIntervalMs < FAST_SWIPE_INTERVAL_MS -> baseLookahead * 2
+      swipeIntervalMs > SLOW_SWIPE_INTERVAL_MS -> baseLookahead / 2
+      else -> baseLookahead
+    }
+
+    return lookahead.coerceIn(1, MAX_LOOKAHEAD)
+  }
+
+  private fun cancelUnneededPrefetches(position: Int, toPrefetch: List<Pair<Int, PrefetchItem>>) {
+    val toPrefetchPositions = toPrefetch.mapTo(hashSetOf()) { (itemPosition, _) -> itemPosition }
+
+    val iterator = activePrefetches.entries.iterator()
+    while (iterator.hasNext()) {
+      val (itemPosition, prefetchHandle) = iterator.next()
+
+      if (!prefetchHandle.isRunning()) {
+        iterator.remove()
+        continue
+      }
+
+      if (itemPosition in toPrefetchPositions) {
+        continue
+      }
+
+      // The current page and its neighbors are already (or about to be) loaded by the pager
+      // itself which attaches to the prefetch download so it must not be canceled
+      if (Math.abs(itemPosition - position) <= PAGER_NEIGHBOR_DISTANCE) {
+        iterator.remove()
+        continue
+      }
+
+      Logger.d(TAG, "Canceling prefetch of position $itemPosition (current position: $position)")
+      prefetchHandle.cancel()
+      iterator.remove()
+    }
+  }
+
+  class PrefetchItem(
+    val url: HttpUrl,
+    val sizeBytes: Long?,
+    val hash: String?
+  )
+
+  fun interface Prefetcher {
+    /**
+     * Returns null when the prefetch was not started (e.g. the file is already being downloaded).
+     * */
+    fun prefetch(prefetchItem: PrefetchItem): PrefetchHandle?
+  }
+
+  interface PrefetchHandle {
+    fun isRunning(): Boolean
+    fun cancel()
+  }
+
+  enum class NetworkType {
+    None,
+    Slow,
+    Metered,
+    Unmetered;
+
+    companion object {
+      @Suppress("DEPRECATION")
+      fun fromConnectivityManager(connectivityManager: ConnectivityManager): NetworkType {
+        val networkInfo = connectivityManager.activeNetworkInfo
+        if (networkInfo == null || !networkInfo.isConnected) {
+          return None
+        }
+
+        if (!connectivityManager.isActiveNetworkMetered) {
+          return Unmetered
+        }
+
+        if (networkInfo.type == ConnectivityManager.TYPE_MOBILE) {
+          val networkClass = AppModuleAndroidUtils.getNetworkClass(connectivityManager)
+          if (networkClass == "2G" || networkClass == "3G") {
+            return Slow
+          }
+        }
+
+        return Metered
+      }
+    }
+  }
+
+  companion object {
+    private const val TAG = "MediaViewerPrefetchPlanner"
+
+    private const val MAX_LOOKAHEAD = 8
+    private const val PAGER_NEIGHBOR_DISTANCE = 1
+    private const val FAST_SWIPE_INTERVAL_MS = 1500L
+    private const val SLOW_SWIPE_INTERVAL_MS = 10_000L
+
+    // Used for media with unknown size
+    private const val ESTIMATED_MEDIA_SIZE_BYTES = 2L * 1024 * 1024
+
+    // Prefetched media may take at most this part of the PostMediaFull cache
+    const val CACHE_BUDGET_FRACTION = 0.1f
+  }
+
+}
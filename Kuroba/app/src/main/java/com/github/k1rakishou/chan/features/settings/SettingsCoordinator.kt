@@ -10,6 +10,7 @@ import com.github.k1rakishou.chan.core.cache.FileCacheV2
 import com.github.k1rakishou.chan.core.helper.AppRestarter
 import com.github.k1rakishou.chan.core.helper.DialogFactory
 import com.github.k1rakishou.chan.core.helper.ProxyStorage
+import com.github.k1rakishou.chan.core.image.TransformedBitmapDiskCache
 import com.github.k1rakishou.chan.core.manager.ApplicationVisibilityManager
 import com.github.k1rakishou.chan.core.manager.BoardManager
 import com.github.k1rakishou.chan.core.manager.ChanFilterManager
@@ -85,6 +86,8 @@ class SettingsCoordinator(
   @Inject
   lateinit var cacheHandler: Lazy<CacheHandler>
   @Inject
+  lateinit var transformedBitmapDiskCache: Lazy<TransformedBitmapDiskCache>
+  @Inject
   lateinit var seenPostRepository: SeenPostRepository
   @Inject
   lateinit var mediaServiceLinkExtraContentRepository: MediaServiceLinkExtraContentRepository
@@ -242,6 +245,7 @@ class SettingsCoordinator(
       context,
       cacheHandler,
       fileCacheV2,
+      transformedBitmapDiskCache,
       appConstants,
       dialogFactory
     )
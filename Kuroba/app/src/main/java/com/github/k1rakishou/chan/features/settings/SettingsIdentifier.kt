@@ -163,6 +163,7 @@ sealed class DeveloperScreen(
     object ForceLowRamDevice : MainGroup("force_low_ram_device")
     object CheckUpateApkVersionCode : MainGroup("check_update_apk_version_code")
     object ShowMpvInternalLogs : MainGroup("show_mpv_internal_logs")
+    object WriteLogsToFile : MainGroup("write_logs_to_file")
     object ViewLogs : MainGroup("view_logs")
     object EnableDisableVerboseLogs : MainGroup("enable_disable_verbose_logs")
     object CrashApp : MainGroup("crash_the_app")
@@ -282,6 +283,7 @@ sealed class WatcherScreen(
 
     object ThreadDownloaderUpdateInterval : ThreadDownloaderGroup("thread_downloader_update_interval")
     object ThreadDownloaderDownloadMediaOnMeteredNetwork : ThreadDownloaderGroup("thread_downloader_download_media_on_metered_network")
+    object ThreadDownloaderMaxBytesPerSecond : ThreadDownloaderGroup("thread_downloader_max_bytes_per_second")
 
     companion object : IGroupIdentifier() {
       override fun screenIdentifier(): ScreenIdentifier = WatcherScreen.screenIdentifier()
@@ -787,6 +789,7 @@ sealed class ExperimentalScreen(
     object OkHttpAllowHttp2 : MainSettingsGroup("ok_http_allow_http_2")
     object OkHttpAllowIpv6 : MainSettingsGroup("ok_http_allow_ipv6")
     object OkHttpUseDnsOverHttps : MainSettingsGroup("ok_http_use_dns_over_https")
+    object OkHttpRaceDnsResolvers : MainSettingsGroup("ok_http_race_dns_resolvers")
     object CloudflareForcePreload : MainSettingsGroup("cloudflare_force_preload")
     object AutoLoadThreadImages : MainSettingsGroup("auto_load_thread_images")
     object ShowPrefetchLoadingIndicator : MainSettingsGroup("show_prefetch_loading_indicator")
@@ -7,6 +7,7 @@ import com.github.k1rakishou.chan.core.cache.CacheFileType
 import com.github.k1rakishou.chan.core.cache.CacheHandler
 import com.github.k1rakishou.chan.core.cache.FileCacheV2
 import com.github.k1rakishou.chan.core.helper.DialogFactory
+import com.github.k1rakishou.chan.core.image.TransformedBitmapDiskCache
 import com.github.k1rakishou.chan.features.settings.CachingScreen
 import com.github.k1rakishou.chan.features.settings.SettingsGroup
 import com.github.k1rakishou.chan.features.settings.setting.LinkSettingV2
@@ -25,6 +26,7 @@ class CachingSettingsScreen(
   context: Context,
   private val cacheHandler: Lazy<CacheHandler>,
   private val fileCacheV2: FileCacheV2,
+  private val transformedBitmapDiskCache: Lazy<TransformedBitmapDiskCache>,
   private val appConstants: AppConstants,
   private val dialogFactory: DialogFactory
 ) : BaseSettingsScreen(
@@ -69,6 +71,9 @@ class CachingSettingsScreen(
             },
             callback = {
               fileCacheV2.clearCache(cacheFileType)
+              // Transformed bitmaps are not tracked per cache file type so they all go away together
+              // with any of the caches they were created from.
+              transformedBitmapDiskCache.get().clear()
               AppModuleAndroidUtils.showToast(context, "Cleared ${cacheFileType.name} disk cache")
             }
           )
@@ -70,6 +70,15 @@ class DeveloperSettingsScreen(
           setting = ChanSettings.showMpvInternalLogs,
         )
 
+        group += BooleanSettingV2.createBuilder(
+          context = context,
+          identifier = DeveloperScreen.MainGroup.WriteLogsToFile,
+          topDescriptionIdFunc = { R.string.settings_write_logs_to_file },
+          bottomDescriptionIdFunc = { R.string.settings_write_logs_to_file_description },
+          setting = ChanSettings.writeLogsToFile,
+          requiresRestart = true
+        )
+
         group += LinkSettingV2.createBuilder(
           context = context,
           identifier = DeveloperScreen.MainGroup.ViewLogs,
@@ -57,6 +57,16 @@ class ExperimentalSettingsScreen(
           requiresRestart = true
         )
 
+        group += BooleanSettingV2.createBuilder(
+          context = context,
+          identifier = ExperimentalScreen.MainSettingsGroup.OkHttpRaceDnsResolvers,
+          topDescriptionIdFunc = { R.string.setting_okhttp_race_dns_resolvers },
+          bottomDescriptionIdFunc = { R.string.setting_okhttp_race_dns_resolvers_description },
+          setting = ChanSettings.okHttpRaceDnsResolvers,
+          dependsOnSetting = ChanSettings.okHttpUseDnsOverHttps,
+          requiresRestart = true
+        )
+
         group += BooleanSettingV2.createBuilder(
           context = context,
           identifier = ExperimentalScreen.MainSettingsGroup.CloudflareForcePreload,
@@ -17,6 +17,7 @@ import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.getString
 import com.github.k1rakishou.chan.utils.PhoneWithBackgroundLimitationsHelper
 import com.github.k1rakishou.core_themes.ThemeEngine
+import com.github.k1rakishou.model.util.ChanPostUtils
 import com.github.k1rakishou.persist_state.PersistableChanState
 import java.util.concurrent.TimeUnit
 
@@ -93,6 +94,28 @@ class WatcherSettingsScreen(
           setting = ChanSettings.threadDownloaderDownloadMediaOnMeteredNetwork
         )
 
+        group += ListSettingV2.createBuilder<Int>(
+          context = context,
+          identifier = WatcherScreen.ThreadDownloaderGroup.ThreadDownloaderMaxBytesPerSecond,
+          topDescriptionIdFunc = { R.string.setting_thread_downloader_max_bandwidth },
+          bottomDescriptionStringFunc = { itemName ->
+            getString(R.string.setting_thread_downloader_max_bandwidth_description).toString() + "\n\n" + itemName
+          },
+          items = THREAD_DOWNLOADER_MAX_BYTES_PER_SECOND,
+          groupId = "thread_downloader_max_bytes_per_second",
+          itemNameMapper = { maxBytesPerSecond ->
+            if (maxBytesPerSecond <= 0) {
+              return@createBuilder getString(R.string.setting_thread_downloader_max_bandwidth_unlimited)
+            }
+
+            return@createBuilder getString(
+              R.string.setting_thread_downloader_max_bandwidth_per_second,
+              ChanPostUtils.getReadableFileSize(maxBytesPerSecond.toLong())
+            )
+          },
+          setting = ChanSettings.threadDownloaderMaxBytesPerSecond
+        )
+
         group
       }
     )
@@ -404,5 +427,14 @@ class WatcherSettingsScreen(
       TimeUnit.HOURS.toMillis(3).toInt(),
       TimeUnit.HOURS.toMillis(4).toInt(),
     )
+
+    private val THREAD_DOWNLOADER_MAX_BYTES_PER_SECOND = listOf(
+      0,
+      256 * 1024,
+      512 * 1024,
+      1024 * 1024,
+      2 * 1024 * 1024,
+      5 * 1024 * 1024,
+    )
   }
 }
\ No newline at end of file
@@ -2,4 +2,6 @@ package com.github.k1rakishou.chan.features.settings.screens.delegate
 
 data class ExportBackupOptions(
   val exportDownloadedThreadsMedia: Boolean = false,
+  // Only export what changed since the previous backup (falls back to a full backup when there is none)
+  val incremental: Boolean = false,
 )
\ No newline at end of file
@@ -50,6 +50,7 @@ class ExportBackupOptionsController(
         verticalArrangement = Arrangement.Center,
         content = {
           BuildExportDownloadedThreadMediaOption()
+          BuildIncrementalBackupOption()
 
           BuildCancelOkButtons()
         })
@@ -74,6 +75,24 @@ class ExportBackupOptionsController(
     }
   }
 
+  private fun LazyListScope.BuildIncrementalBackupOption() {
+    item("incremental_backup") {
+      var exportBackupOptions by exportBackupOptionsState
+
+      KurobaComposeCheckbox(
+        modifier = Modifier
+          .fillMaxWidth()
+          .wrapContentHeight()
+          .padding(all = 8.dp),
+        currentlyChecked = exportBackupOptions.incremental,
+        onCheckChanged = { isChecked ->
+          exportBackupOptions = exportBackupOptions.copy(incremental = isChecked)
+        },
+        text = stringResource(id = R.string.export_backup_options_incremental_option)
+      )
+    }
+  }
+
   private fun LazyListScope.BuildCancelOkButtons() {
     item("cancel_ok_buttons") {
       Row(
@@ -5,6 +5,8 @@ import android.net.Uri
 import android.widget.Toast
 import com.github.k1rakishou.chan.BuildConfig
 import com.github.k1rakishou.chan.R
+import com.github.k1rakishou.chan.core.backup.BackupInstaller
+import com.github.k1rakishou.chan.core.backup.BackupProgress
 import com.github.k1rakishou.chan.core.helper.AppRestarter
 import com.github.k1rakishou.chan.core.helper.DialogFactory
 import com.github.k1rakishou.chan.core.repository.ImportExportRepository
@@ -13,6 +15,7 @@ import com.github.k1rakishou.chan.ui.controller.LoadingViewController
 import com.github.k1rakishou.chan.ui.controller.navigation.NavigationController
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.getString
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.showToast
+import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.errorMessageOrClassName
 import com.github.k1rakishou.core_logger.Logger
@@ -107,13 +110,16 @@ class ImportExportSettingsDelegate(
       context = context,
       onOptionsSelected = { exportBackupOptions ->
         coroutineScope.launch {
-          navigationController.presentController(loadingViewController)
+          val progressViewController = LoadingViewController(context, false)
+          navigationController.presentController(progressViewController)
 
           val result = withContext(Dispatchers.Default) {
-            importExportRepository.exportTo(externalFile, exportBackupOptions)
+            importExportRepository.exportTo(externalFile, exportBackupOptions) { backupProgress ->
+              showProgress(progressViewController, backupProgress)
+            }
           }
 
-          loadingViewController.stopPresenting()
+          progressViewController.stopPresenting()
 
           when (result) {
             is ModularResult.Error -> {
@@ -149,18 +155,32 @@ class ImportExportSettingsDelegate(
     }
 
     coroutineScope.launch {
-      navigationController.presentController(loadingViewController)
+      val progressViewController = LoadingViewController(context, false)
+      navigationController.presentController(progressViewController)
 
       val result = withContext(Dispatchers.Default) {
-        importExportRepository.importFrom(externalFile)
+        importExportRepository.importFrom(externalFile) { backupProgress ->
+          showProgress(progressViewController, backupProgress)
+        }
       }
 
-      loadingViewController.stopPresenting()
+      progressViewController.stopPresenting()
 
       when (result) {
         is ModularResult.Error -> {
           Logger.e(TAG, "Import error", result.error)
-          showToast(context, getString(R.string.import_export_backup_import_error, result.error))
+
+          if (result.error is BackupInstaller.DatabaseClosedException) {
+            // The database is already closed so the app can't continue working
+            dialogFactory.createSimpleInformationDialog(
+              context = context,
+              titleText = getString(R.string.import_export_backup_import_error, result.error.errorMessageOrClassName()),
+              descriptionText = getString(R.string.import_export_backup_import_error_restart_description),
+              onDismissListener = { appRestarter.restart() }
+            )
+          } else {
+            showToast(context, getString(R.string.import_export_backup_import_error, result.error))
+          }
         }
         is ModularResult.Value -> {
           dialogFactory.createSimpleInformationDialog(
@@ -217,6 +237,14 @@ class ImportExportSettingsDelegate(
     }
   }
 
+  private fun showProgress(progressViewController: LoadingViewController, backupProgress: BackupProgress) {
+    BackgroundUtils.runOnMainThread {
+      if (progressViewController.alive) {
+        progressViewController.updateProgress(backupProgress.percent)
+      }
+    }
+  }
+
   companion object {
     private const val TAG = "ImportExportSettingsDelegate"
 
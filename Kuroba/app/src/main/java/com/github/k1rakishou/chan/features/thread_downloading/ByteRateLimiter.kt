@@ -0,0 +1,86 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import androidx.annotation.GuardedBy
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.TimeUnit
+
+/**
+ * Global byte rate budget shared by all of the downloads. Every download reserves the bytes it has
+ * just read and sleeps until the budget allows it to continue so all of the downloads combined never
+ * go faster than [maxBytesPerSecond] (with a burst of up to one second worth of bytes after an idle
+ * period). A budget of 0 or less means no limit.
+ * */
+class ByteRateLimiter(
+  private val maxBytesPerSecond: () -> Long,
+  private val nanoTime: () -> Long = { System.nanoTime() },
+  private val sleepNanos: (Long) -> Unit = { nanos -> TimeUnit.NANOSECONDS.sleep(nanos) }
+) {
+  @GuardedBy("this")
+  private var nextFreeNanos = 0L
+  @GuardedBy("this")
+  private var initialized = false
+
+  /**
+   * Reserves [bytes] and returns how long (in nanoseconds) the caller has to wait before using them.
+   * */
+  @Synchronized
+  fun reserve(bytes: Long): Long {
+    val bytesPerSecond = maxBytesPerSecond()
+    if (bytesPerSecond <= 0L || bytes <= 0L) {
+      return 0L
+    }
+
+    val now = nanoTime()
+    val burstNanos = ONE_SECOND_NANOS
+
+    if (!initialized || nextFreeNanos < now - burstNanos) {
+      // Unused budget does not accumulate for longer than the burst
+      nextFreeNanos = now - burstNanos
+      initialized = true
+    }
+
+    nextFreeNanos += bytes * ONE_SECOND_NANOS / bytesPerSecond
+    return Math.max(0L, nextFreeNanos - now)
+  }
+
+  /**
+   * Blocks the current thread until [bytes] fit into the budget. Must be called from an interruptible
+   * context (e.g. runInterruptible) so that the sleep is canceled together with the download.
+   * */
+  fun acquireBlocking(bytes: Long) {
+    val waitNanos = reserve(bytes)
+    if (waitNanos > 0L) {
+      sleepNanos(waitNanos)
+    }
+  }
+
+  /**
+   * Same as [InputStream.copyTo] but every chunk is accounted for in the budget. Sleeps for as long
+   * as the budget requires so it must not be called while holding a lock that other downloads may
+   * need (e.g. [ThreadMediaBlobStore.withBlobLock]).
+   * */
+  fun copyThrottled(inputStream: InputStream, outputStream: OutputStream): Long {
+    val buffer = ByteArray(BUFFER_SIZE)
+    var totalCopied = 0L
+
+    while (true) {
+      val read = inputStream.read(buffer)
+      if (read < 0) {
+        break
+      }
+
+      acquireBlocking(read.toLong())
+      outputStream.write(buffer, 0, read)
+      totalCopied += read
+    }
+
+    return totalCopied
+  }
+
+  companion object {
+    private const val BUFFER_SIZE = 8192
+    private val ONE_SECOND_NANOS = TimeUnit.SECONDS.toNanos(1)
+  }
+
+}
@@ -0,0 +1,64 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.thread.ThreadDownload
+import kotlinx.coroutines.CancellationException
+
+/**
+ * One pass of the thread downloader over all of the active thread downloads. The state of every
+ * processed thread is persisted right away so when a pass is interrupted (the worker was stopped or
+ * the process was killed) the next run resumes it and skips the threads that were already processed.
+ * */
+class ThreadDownloadPass(
+  private val threadDownloadStateStore: ThreadDownloadStateStore,
+  private val threadDownloadScheduler: ThreadDownloadScheduler
+) {
+
+  /**
+   * [processThread] is called with the index of the thread among the threads that are processed
+   * during this run and the amount of such threads.
+   * */
+  suspend fun run(
+    threadDownloads: List<ThreadDownload>,
+    processThread: suspend (Int, Int, ThreadDownload) -> ThreadResult
+  ) {
+    val alreadyProcessed = threadDownloadStateStore.beginPass()
+    val threadDownloadsToProcess = threadDownloads
+      .filter { threadDownload -> threadDownload.threadDescriptor !in alreadyProcessed }
+
+    Logger.d(TAG, "run() threadDownloads=${threadDownloads.size}, alreadyProcessed=${alreadyProcessed.size}")
+    threadDownloadsToProcess.forEach { threadDownload ->
+      Logger.d(TAG, "run() threadDownload=$threadDownload")
+    }
+
+    try {
+      threadDownloadScheduler.schedule(
+        items = threadDownloadsToProcess,
+        siteKeySelector = { threadDownload -> threadDownload.threadDescriptor.siteDescriptor() }
+      ) { index, threadDownload ->
+        val threadResult = processThread(index + 1, threadDownloadsToProcess.size, threadDownload)
+        if (threadResult is ThreadResult.Processed) {
+          threadDownloadStateStore.onThreadProcessed(threadDownload.threadDescriptor, threadResult.threadState)
+        }
+      }
+    } catch (error: CancellationException) {
+      // The pass is not finished so the threads that were not processed yet will be processed first
+      // during the next run
+      Logger.e(TAG, "run() canceled")
+      throw error
+    }
+
+    threadDownloadStateStore.finishPass(threadDownloads.map { threadDownload -> threadDownload.threadDescriptor })
+  }
+
+  sealed class ThreadResult {
+    // The thread was not processed (e.g. we are out of disk space), nothing is persisted for it
+    object Skipped : ThreadResult()
+    data class Processed(val threadState: ThreadDownloadStateStore.ThreadState?) : ThreadResult()
+  }
+
+  companion object {
+    private const val TAG = "ThreadDownloadPass"
+  }
+
+}
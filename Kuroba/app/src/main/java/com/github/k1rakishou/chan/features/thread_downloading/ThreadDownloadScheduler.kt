@@ -0,0 +1,62 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+
+/**
+ * Processes thread downloads concurrently. At most [maxConcurrentThreads] threads are processed at
+ * the same time and at most [maxConcurrentThreadsPerSite] of them may belong to the same site so one
+ * slow site can't occupy all of the slots and stall the downloads of the other sites.
+ * */
+class ThreadDownloadScheduler(
+  private val maxConcurrentThreads: Int,
+  private val maxConcurrentThreadsPerSite: Int,
+  private val dispatcher: CoroutineDispatcher = Dispatchers.IO
+) {
+
+  init {
+    require(maxConcurrentThreads > 0) { "Bad maxConcurrentThreads: $maxConcurrentThreads" }
+    require(maxConcurrentThreadsPerSite > 0) { "Bad maxConcurrentThreadsPerSite: $maxConcurrentThreadsPerSite" }
+  }
+
+  /**
+   * Processes every item of [items] with [processFunc] and returns once all of them are processed.
+   * An exception thrown by [processFunc] cancels the rest of the items, so [processFunc] is supposed
+   * to handle its errors.
+   * */
+  suspend fun <T, K : Any> schedule(
+    items: List<T>,
+    siteKeySelector: (T) -> K,
+    processFunc: suspend (Int, T) -> Unit
+  ) {
+    if (items.isEmpty()) {
+      return
+    }
+
+    val globalSemaphore = Semaphore(maxConcurrentThreads)
+    val siteSemaphores = mutableMapOf<K, Semaphore>()
+
+    coroutineScope {
+      items.forEachIndexed { index, item ->
+        val siteSemaphore = siteSemaphores.getOrPut(siteKeySelector(item)) {
+          Semaphore(maxConcurrentThreadsPerSite)
+        }
+
+        launch(dispatcher) {
+          // The site permit is acquired first so that threads waiting for their site do not hold
+          // the global slots that threads of other sites could use
+          siteSemaphore.withPermit {
+            globalSemaphore.withPermit {
+              processFunc(index, item)
+            }
+          }
+        }
+      }
+    }
+  }
+
+}
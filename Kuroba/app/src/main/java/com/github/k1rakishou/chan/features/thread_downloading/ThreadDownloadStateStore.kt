@@ -0,0 +1,188 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import androidx.annotation.GuardedBy
+import androidx.core.util.AtomicFile
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.google.gson.Gson
+import com.google.gson.annotations.SerializedName
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import java.io.File
+
+/**
+ * Persists the progress of the thread downloader between WorkManager runs:
+ *  - Which threads were already processed during the current pass so that an interrupted pass
+ *  (e.g. the worker was stopped by the system) is resumed instead of started over.
+ *  - The Last-Modified value of every thread so that threads that did not change since the last pass
+ *  can be skipped with a conditional request.
+ *  - Whether all media of a thread was downloaded so that unchanged threads with failed media
+ *  downloads are retried.
+ * */
+class ThreadDownloadStateStore(
+  stateFile: File,
+  private val gson: Gson
+) {
+  private val atomicFile = AtomicFile(stateFile)
+  private val mutex = Mutex()
+
+  @GuardedBy("mutex")
+  private var state: State? = null
+
+  /**
+   * Starts a new pass or resumes the unfinished one. Returns the threads that were already processed
+   * during the resumed pass.
+   * */
+  suspend fun beginPass(): Set<ChanDescriptor.ThreadDescriptor> {
+    return mutex.withLock {
+      val currentState = loadState()
+
+      if (currentState.passInProgress) {
+        val processed = currentState.processedInPass.mapNotNullTo(hashSetOf()) { key -> keyToDescriptor(key) }
+        Logger.d(TAG, "beginPass() resuming unfinished pass, already processed: ${processed.size}")
+
+        return@withLock processed
+      }
+
+      state = currentState.copy(passInProgress = true, processedInPass = emptyList())
+      persistState()
+
+      return@withLock emptySet()
+    }
+  }
+
+  suspend fun getThreadState(threadDescriptor: ChanDescriptor.ThreadDescriptor): ThreadState? {
+    return mutex.withLock { loadState().threads[descriptorToKey(threadDescriptor)] }
+  }
+
+  suspend fun onThreadProcessed(threadDescriptor: ChanDescriptor.ThreadDescriptor, threadState: ThreadState?) {
+    mutex.withLock {
+      val currentState = loadState()
+      val key = descriptorToKey(threadDescriptor)
+
+      val threads = currentState.threads.toMutableMap()
+      if (threadState != null) {
+        threads[key] = threadState
+      } else {
+        threads.remove(key)
+      }
+
+      state = currentState.copy(
+        processedInPass = (currentState.processedInPass + key).distinct(),
+        threads = threads
+      )
+
+      persistState()
+    }
+  }
+
+  /**
+   * Marks the current pass as finished and forgets the threads that are not downloaded anymore.
+   * */
+  suspend fun finishPass(activeThreads: Collection<ChanDescriptor.ThreadDescriptor>) {
+    mutex.withLock {
+      val currentState = loadState()
+      val activeKeys = activeThreads.mapTo(hashSetOf()) { threadDescriptor -> descriptorToKey(threadDescriptor) }
+
+      state = currentState.copy(
+        passInProgress = false,
+        processedInPass = emptyList(),
+        threads = currentState.threads.filterKeys { key -> key in activeKeys }
+      )
+
+      persistState()
+    }
+  }
+
+  private suspend fun loadState(): State {
+    state?.let { currentState -> return currentState }
+
+    val loadedState = withContext(Dispatchers.IO) {
+      try {
+        if (!atomicFile.baseFile.exists()) {
+          return@withContext null
+        }
+
+        val json = atomicFile.readFully().toString(Charsets.UTF_8)
+        return@withContext gson.fromJson(json, State::class.java)
+      } catch (error: Throwable) {
+        Logger.e(TAG, "loadState() error: ${error.errorMessageOrClassName()}")
+        return@withContext null
+      }
+    }
+
+    // Gson ignores Kotlin nullability so the fields may be null if the file is broken
+    @Suppress("SENSELESS_COMPARISON")
+    val validState = if (loadedState?.processedInPass == null || loadedState.threads == null) {
+      State()
+    } else {
+      loadedState
+    }
+
+    state = validState
+    return validState
+  }
+
+  private suspend fun persistState() {
+    val currentState = state
+      ?: return
+
+    withContext(Dispatchers.IO) {
+      val outputStream = try {
+        atomicFile.startWrite()
+      } catch (error: Throwable) {
+        Logger.e(TAG, "persistState() startWrite error: ${error.errorMessageOrClassName()}")
+        return@withContext
+      }
+
+      try {
+        outputStream.write(gson.toJson(currentState).toByteArray(Charsets.UTF_8))
+        atomicFile.finishWrite(outputStream)
+      } catch (error: Throwable) {
+        Logger.e(TAG, "persistState() write error: ${error.errorMessageOrClassName()}")
+        atomicFile.failWrite(outputStream)
+      }
+    }
+  }
+
+  data class State(
+    @SerializedName("pass_in_progress")
+    val passInProgress: Boolean = false,
+    @SerializedName("processed_in_pass")
+    val processedInPass: List<String> = emptyList(),
+    @SerializedName("threads")
+    val threads: Map<String, ThreadState> = emptyMap()
+  )
+
+  data class ThreadState(
+    @SerializedName("last_modified")
+    val lastModified: String?,
+    @SerializedName("media_complete")
+    val mediaComplete: Boolean
+  )
+
+  companion object {
+    private const val TAG = "ThreadDownloadStateStore"
+    const val STATE_FILE_NAME = ".thread_downloader_state.json"
+
+    private fun descriptorToKey(threadDescriptor: ChanDescriptor.ThreadDescriptor): String {
+      return "${threadDescriptor.siteName()}/${threadDescriptor.boardCode()}/${threadDescriptor.threadNo}"
+    }
+
+    private fun keyToDescriptor(key: String): ChanDescriptor.ThreadDescriptor? {
+      val parts = key.split('/')
+      if (parts.size != 3) {
+        return null
+      }
+
+      val threadNo = parts[2].toLongOrNull()
+        ?: return null
+
+      return ChanDescriptor.ThreadDescriptor.create(parts[0], parts[1], threadNo)
+    }
+  }
+
+}
@@ -3,7 +3,8 @@ package com.github.k1rakishou.chan.features.thread_downloading
 import android.net.ConnectivityManager
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.okhttp.RealDownloaderOkHttpClient
-import com.github.k1rakishou.chan.core.helper.ThreadDownloaderFileManagerWrapper
+import com.github.k1rakishou.chan.core.cache.CacheFileType
+import com.github.k1rakishou.chan.core.cache.CacheHandler
 import com.github.k1rakishou.chan.core.manager.SiteManager
 import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
 import com.github.k1rakishou.chan.core.site.SiteResolver
@@ -15,14 +16,8 @@ import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.errorMessageOrClassName
 import com.github.k1rakishou.common.extractFileName
 import com.github.k1rakishou.common.isNotNullNorEmpty
-import com.github.k1rakishou.common.isOutOfDiskSpaceError
-import com.github.k1rakishou.common.processDataCollectionConcurrently
-import com.github.k1rakishou.common.suspendCall
+import com.github.k1rakishou.common.processDataCollectionInParallel
 import com.github.k1rakishou.core_logger.Logger
-import com.github.k1rakishou.fsaf.FileManager
-import com.github.k1rakishou.fsaf.file.AbstractFile
-import com.github.k1rakishou.fsaf.file.DirectorySegment
-import com.github.k1rakishou.fsaf.file.FileSegment
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.post.ChanPostImage
 import com.github.k1rakishou.model.data.thread.ThreadDownload
@@ -32,13 +27,13 @@ import dagger.Lazy
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
-import kotlinx.coroutines.runInterruptible
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
 import okhttp3.HttpUrl
 import okhttp3.OkHttpClient
 import okhttp3.Request
-import okhttp3.internal.closeQuietly
+import java.io.File
 import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.coroutines.coroutineContext
 import kotlin.time.ExperimentalTime
@@ -52,15 +47,39 @@ class ThreadDownloadingDelegate(
   private val threadDownloadManager: ThreadDownloadManager,
   private val chanPostRepository: ChanPostRepository,
   private val chanPostImageRepository: ChanPostImageRepository,
-  private val threadDownloaderFileManagerWrapper: ThreadDownloaderFileManagerWrapper,
   private val threadDownloadProgressNotifier: ThreadDownloadProgressNotifier,
-  private val threadDownloaderPersistPostsInDatabaseUseCase: ThreadDownloaderPersistPostsInDatabaseUseCase
+  private val threadDownloaderPersistPostsInDatabaseUseCase: ThreadDownloaderPersistPostsInDatabaseUseCase,
+  private val threadMediaBlobStore: ThreadMediaBlobStore,
+  private val threadDownloadStateStore: ThreadDownloadStateStore,
+  private val cacheHandler: Lazy<CacheHandler>
 ) {
-  private val fileManager: FileManager
-    get() = threadDownloaderFileManagerWrapper.fileManager
   private val okHttpClient: OkHttpClient
     get() = downloaderOkHttpClient.get().okHttpClient()
   private val batchCount = appConstants.processorsCount
+  // Multiple threads are processed at the same time so every one of them gets a part of the workers
+  private val mediaBatchCount = (batchCount / MAX_CONCURRENT_THREADS_PER_SITE).coerceAtLeast(2)
+
+  private val threadDownloadPass = ThreadDownloadPass(
+    threadDownloadStateStore = threadDownloadStateStore,
+    threadDownloadScheduler = ThreadDownloadScheduler(
+      maxConcurrentThreads = MAX_CONCURRENT_THREADS,
+      maxConcurrentThreadsPerSite = MAX_CONCURRENT_THREADS_PER_SITE
+    )
+  )
+
+  private val byteRateLimiter = ByteRateLimiter(
+    maxBytesPerSecond = { ChanSettings.threadDownloaderMaxBytesPerSecond.get().toLong() }
+  )
+
+  private val threadMediaDownloader by lazy {
+    ThreadMediaDownloader(
+      okHttpClientProvider = { okHttpClient },
+      blobStore = threadMediaBlobStore,
+      mediaCacheLookup = { isThumbnail, imageUrl -> findMediaCacheFile(isThumbnail, imageUrl) },
+      requestModifier = { isThumbnail, imageUrl, requestBuilder -> modifyRequest(isThumbnail, imageUrl, requestBuilder) },
+      byteRateLimiter = byteRateLimiter
+    )
+  }
 
   private val _running = AtomicBoolean(false)
   val running: Boolean
@@ -98,49 +117,11 @@ class ThreadDownloadingDelegate(
     }
 
     val threadDownloads = threadDownloadManager.getAllActiveThreadDownloads()
-
-    Logger.d(TAG, "doWorkInternal() start, batchCount=$batchCount")
-    threadDownloads.forEach { threadDownload ->
-      Logger.d(TAG, "doWorkInternal() threadDownload=$threadDownload")
-    }
+    Logger.d(TAG, "doWorkInternal() start, batchCount=$batchCount, mediaBatchCount=$mediaBatchCount, " +
+      "threadDownloads=${threadDownloads.size}")
 
     val outOfDiskSpaceError = AtomicBoolean(false)
     val outputDirError = AtomicBoolean(false)
-    val canceled = AtomicBoolean(false)
-
-    threadDownloads.forEachIndexed { index, threadDownload ->
-      try {
-        if (outOfDiskSpaceError.get() || canceled.get()) {
-          return@forEachIndexed
-        }
-
-        threadDownloadProgressNotifier.notifyProgressEvent(
-          threadDownload.threadDescriptor,
-          ThreadDownloadProgressNotifier.Event.Progress(0.1f)
-        )
-
-        processThread(
-          threadDownload = threadDownload,
-          index = index + 1,
-          total = threadDownloads.size,
-          outOfDiskSpaceError = outOfDiskSpaceError,
-          outputDirError = outputDirError
-        )
-
-        threadDownloadProgressNotifier.notifyProgressEvent(
-          threadDownload.threadDescriptor,
-          ThreadDownloadProgressNotifier.Event.Progress(1f)
-        )
-
-        threadDownloadProgressNotifier.notifyProgressEvent(
-          threadDownload.threadDescriptor,
-          ThreadDownloadProgressNotifier.Event.Empty
-        )
-      } catch (error: CancellationException) {
-        Logger.e(TAG, "doWorkInternal() ${threadDownload.threadDescriptor} canceled")
-        canceled.set(true)
-      }
-    }
 
     coroutineContext[Job.Key]?.invokeOnCompletion { cause ->
       if (cause is CancellationException) {
@@ -153,6 +134,39 @@ class ThreadDownloadingDelegate(
       }
     }
 
+    threadDownloadPass.run(threadDownloads) { index, total, threadDownload ->
+      if (outOfDiskSpaceError.get()) {
+        return@run ThreadDownloadPass.ThreadResult.Skipped
+      }
+
+      threadDownloadProgressNotifier.notifyProgressEvent(
+        threadDownload.threadDescriptor,
+        ThreadDownloadProgressNotifier.Event.Progress(0.1f)
+      )
+
+      val threadState = processThread(
+        threadDownload = threadDownload,
+        index = index,
+        total = total,
+        outOfDiskSpaceError = outOfDiskSpaceError,
+        outputDirError = outputDirError
+      )
+
+      threadDownloadProgressNotifier.notifyProgressEvent(
+        threadDownload.threadDescriptor,
+        ThreadDownloadProgressNotifier.Event.Progress(1f)
+      )
+
+      threadDownloadProgressNotifier.notifyProgressEvent(
+        threadDownload.threadDescriptor,
+        ThreadDownloadProgressNotifier.Event.Empty
+      )
+
+      return@run ThreadDownloadPass.ThreadResult.Processed(threadState)
+    }
+
+    withContext(Dispatchers.IO) { threadMediaBlobStore.collectGarbage() }
+
     threadDownloadManager.onThreadsProcessed()
     Logger.d(TAG, "doWorkInternal() success")
   }
@@ -163,11 +177,17 @@ class ThreadDownloadingDelegate(
     total: Int,
     outOfDiskSpaceError: AtomicBoolean,
     outputDirError: AtomicBoolean,
-  ) {
+  ): ThreadDownloadStateStore.ThreadState? {
     val threadDescriptor = threadDownload.threadDescriptor
     Logger.d(TAG, "processThread($index/$total) loadThreadOrCatalog($threadDescriptor) start")
 
-    val params = DownloadParams(threadDownload.ownerThreadDatabaseId, threadDescriptor)
+    val previousThreadState = threadDownloadStateStore.getThreadState(threadDescriptor)
+
+    val params = DownloadParams(
+      ownerThreadDatabaseId = threadDownload.ownerThreadDatabaseId,
+      threadDescriptor = threadDescriptor,
+      lastModified = previousThreadState?.lastModified
+    )
     val executionResult = threadDownloaderPersistPostsInDatabaseUseCase.execute(params)
 
     threadDownloadProgressNotifier.notifyProgressEvent(
@@ -184,12 +204,24 @@ class ThreadDownloadingDelegate(
           ?: executionResult.error.errorMessageOrClassName()
       )
 
-      return
+      return previousThreadState
     } else {
       executionResult as ModularResult.Value
       executionResult.value
     }
 
+    val mediaAlreadyComplete = !threadDownload.downloadMedia || previousThreadState?.mediaComplete == true
+    if (downloadResult.notModified && mediaAlreadyComplete) {
+      Logger.d(TAG, "processThread($index/$total) loadThreadOrCatalog($threadDescriptor) not modified, skipping")
+
+      threadDownloadManager.onDownloadProcessed(
+        threadDescriptor = threadDescriptor,
+        resultMessage = null
+      )
+
+      return previousThreadState
+    }
+
     val ownerThreadDatabaseId = threadDownload.ownerThreadDatabaseId
 
     val isNetworkGoodForMediaDownload = if (ChanSettings.threadDownloaderDownloadMediaOnMeteredNetwork.get()) {
@@ -202,7 +234,9 @@ class ThreadDownloadingDelegate(
       && !outOfDiskSpaceError.get()
       && isNetworkGoodForMediaDownload
 
-    if (canProcessThreadMedia) {
+    val mediaComplete = if (!threadDownload.downloadMedia) {
+      true
+    } else if (canProcessThreadMedia) {
       val chanPostImages = chanPostImageRepository.selectPostImagesByOwnerThreadDatabaseId(ownerThreadDatabaseId)
         .peekError { error -> Logger.e(TAG, "Failed to select images by threadId: ${ownerThreadDatabaseId}", error) }
         .mapErrorToValue { emptyList<ChanPostImage>() }
@@ -220,6 +254,8 @@ class ThreadDownloadingDelegate(
         "isNetworkGoodForMediaDownload=$isNetworkGoodForMediaDownload, " +
         "downloadMedia=${threadDownload.downloadMedia}, " +
         "outOfDiskSpaceError=${outOfDiskSpaceError.get()}")
+
+      false
     }
 
     val resultMessage = when {
@@ -241,9 +277,15 @@ class ThreadDownloadingDelegate(
       "closed: ${downloadResult.closed}, " +
       "deleted: ${downloadResult.deleted}, " +
       "outOfDiskSpace: ${outOfDiskSpaceError.get()}, " +
-      "outputDirError: ${outputDirError.get()}, "
+      "outputDirError: ${outputDirError.get()}, " +
+      "mediaComplete: ${mediaComplete}"
 
     Logger.d(TAG, "processThread($index/$total) loadThreadOrCatalog($threadDescriptor) end, status: $status")
+
+    return ThreadDownloadStateStore.ThreadState(
+      lastModified = downloadResult.lastModified,
+      mediaComplete = mediaComplete
+    )
   }
 
   private suspend fun processThreadMedia(
@@ -253,35 +295,28 @@ class ThreadDownloadingDelegate(
     threadDescriptor: ChanDescriptor.ThreadDescriptor,
     outOfDiskSpaceError: AtomicBoolean,
     outputDirError: AtomicBoolean,
-  ) {
+  ): Boolean {
     if (chanPostImages.isEmpty()) {
       Logger.d(TAG, "processThreadMedia($index/$total) threadDescriptor=${threadDescriptor}, " +
         "chanPostImages=${chanPostImages.size}, nothing to process")
-      return
+      return true
     }
 
-    val rootDir = fileManager.fromRawFile(appConstants.threadDownloaderCacheDir)
     Logger.d(TAG, "processThreadMedia($index/$total) threadDescriptor=${threadDescriptor}, " +
       "chanPostImages=${chanPostImages.size}")
 
-    val directoryName = formatDirectoryName(threadDescriptor)
-
-    var outputDirectory = fileManager.findFile(rootDir, directoryName)
-    if (outputDirectory == null) {
-      outputDirectory = fileManager.create(rootDir, listOf(DirectorySegment(directoryName)))
-    }
-
-    if (outputDirectory == null) {
+    val outputDirectory = File(appConstants.threadDownloaderCacheDir, formatDirectoryName(threadDescriptor))
+    if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
       Logger.d(TAG, "processThreadMedia($index/$total) " +
-        "chanThread=${threadDescriptor} failure! outputDirectory is null")
+        "chanThread=${threadDescriptor} failure! failed to create outputDirectory")
       outputDirError.set(true)
-      return
+      return false
     }
 
-    val noMediaFile = outputDirectory.clone(FileSegment(NO_MEDIA_FILE_NAME))
-    if (!fileManager.exists(noMediaFile)) {
+    val noMediaFile = File(outputDirectory, NO_MEDIA_FILE_NAME)
+    if (!noMediaFile.exists()) {
       // Disable media scanner
-      fileManager.create(noMediaFile)
+      noMediaFile.createNewFile()
     }
 
     // "* 2" because thumbnails and full images
@@ -289,11 +324,12 @@ class ThreadDownloadingDelegate(
     val mutex = Mutex()
     var totalProgress = POSTS_PROCESSED_PROGRESS
 
-    processDataCollectionConcurrently(
+    val processingResult = processDataCollectionInParallel(
       dataList = chanPostImages,
-      batchCount = batchCount,
-      dispatcher = Dispatchers.IO
-    ) { postImage ->
+      parallelism = mediaBatchCount,
+      dispatcher = Dispatchers.IO,
+      preserveOrder = false
+    ) { _, postImage ->
       val isNetworkGoodForMediaDownload = if (ChanSettings.threadDownloaderDownloadMediaOnMeteredNetwork.get()) {
         true
       } else {
@@ -301,29 +337,33 @@ class ThreadDownloadingDelegate(
       }
 
       if (!isNetworkGoodForMediaDownload) {
-        return@processDataCollectionConcurrently
+        return@processDataCollectionInParallel false
       }
 
       if (outOfDiskSpaceError.get()) {
-        return@processDataCollectionConcurrently
+        return@processDataCollectionInParallel false
       }
 
       if (outputDirError.get()) {
-        return@processDataCollectionConcurrently
+        return@processDataCollectionInParallel false
       }
 
       val thumbnailUrl = postImage.actualThumbnailUrl
       val thumbnailName = postImage.actualThumbnailUrl?.extractFileName()
 
-      if (thumbnailUrl != null && thumbnailName.isNotNullNorEmpty()) {
+      val thumbnailDownloaded = if (thumbnailUrl != null && thumbnailName.isNotNullNorEmpty()) {
         downloadImage(
           outputDirectory = outputDirectory,
+          threadDescriptor = threadDescriptor,
+          postImage = postImage,
           isThumbnail = true,
           name = thumbnailName,
           imageUrl = thumbnailUrl,
           outOfDiskSpaceError = outOfDiskSpaceError,
           outputDirError = outputDirError
         )
+      } else {
+        true
       }
 
       val newProgress1 = mutex.withLock {
@@ -338,15 +378,19 @@ class ThreadDownloadingDelegate(
       val fullImageUrl = postImage.imageUrl
       val fullImageName = postImage.imageUrl?.extractFileName()
 
-      if (fullImageUrl != null && fullImageName.isNotNullNorEmpty()) {
+      val fullImageDownloaded = if (fullImageUrl != null && fullImageName.isNotNullNorEmpty()) {
         downloadImage(
           outputDirectory = outputDirectory,
+          threadDescriptor = threadDescriptor,
+          postImage = postImage,
           isThumbnail = false,
           name = fullImageName,
           imageUrl = fullImageUrl,
           outOfDiskSpaceError = outOfDiskSpaceError,
           outputDirError = outputDirError
         )
+      } else {
+        true
       }
 
       val newProgress2 = mutex.withLock {
@@ -357,41 +401,62 @@ class ThreadDownloadingDelegate(
         threadDescriptor,
         ThreadDownloadProgressNotifier.Event.Progress(newProgress2)
       )
+
+      return@processDataCollectionInParallel thumbnailDownloaded && fullImageDownloaded
     }
 
-    Logger.d(TAG, "processThreadMedia($index/$total) chanThread=${threadDescriptor} success")
+    processingResult.logFailures(TAG, "processThreadMedia($index/$total) chanThread=${threadDescriptor}")
+
+    val mediaComplete = !processingResult.hasFailures() && processingResult.values().all { downloaded -> downloaded }
+    Logger.d(TAG, "processThreadMedia($index/$total) chanThread=${threadDescriptor} success, mediaComplete=$mediaComplete")
+
+    return mediaComplete
   }
 
   private suspend fun downloadImage(
-    outputDirectory: AbstractFile,
+    outputDirectory: File,
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    postImage: ChanPostImage,
     isThumbnail: Boolean,
     name: String,
     imageUrl: HttpUrl,
     outOfDiskSpaceError: AtomicBoolean,
     outputDirError: AtomicBoolean,
-  ) {
-    var outputFile = fileManager.findFile(outputDirectory, name)
-    if (outputFile == null) {
-      outputFile = fileManager.create(outputDirectory, listOf(FileSegment(name)))
-    }
+  ): Boolean {
+    val result = threadMediaDownloader.download(
+      outputDirectory = outputDirectory,
+      siteName = threadDescriptor.siteName(),
+      postImage = postImage,
+      isThumbnail = isThumbnail,
+      name = name,
+      imageUrl = imageUrl
+    )
 
-    if (outputFile == null) {
-      outputDirError.set(true)
-      return
-    }
+    when (result) {
+      ThreadMediaDownloader.Result.OutOfDiskSpace -> {
+        outOfDiskSpaceError.set(true)
+        return false
+      }
+      ThreadMediaDownloader.Result.Failed -> {
+        if (!outputDirectory.exists()) {
+          outputDirError.set(true)
+        }
 
-    if (fileManager.exists(outputFile) && fileManager.getLength(outputFile) > 0L) {
-      // Already downloaded, nothing to do
-      return
+        return false
+      }
+      ThreadMediaDownloader.Result.AlreadyExists,
+      ThreadMediaDownloader.Result.FromBlobStore,
+      ThreadMediaDownloader.Result.FromMediaCache,
+      ThreadMediaDownloader.Result.Downloaded -> {
+        return true
+      }
     }
+  }
 
+  private fun modifyRequest(isThumbnail: Boolean, imageUrl: HttpUrl, requestBuilder: Request.Builder) {
     val site = siteResolver.findSiteForUrl(imageUrl.toString())
     val requestModifier = site?.requestModifier()
 
-    val requestBuilder = Request.Builder()
-      .url(imageUrl)
-      .get()
-
     if (site != null && requestModifier != null) {
       if (isThumbnail) {
         requestModifier.modifyThumbnailGetRequest(site, requestBuilder)
@@ -399,54 +464,32 @@ class ThreadDownloadingDelegate(
         requestModifier.modifyFullImageGetRequest(site, requestBuilder)
       }
     }
+  }
 
-    val response = okHttpClient.suspendCall(requestBuilder.build())
-    if (!response.isSuccessful) {
-      Logger.e(TAG, "downloadImage(isThumbnail=$isThumbnail, name=$name, imageUrl=$imageUrl) " +
-        "bad response code: ${response.code}")
-      return
-    }
-
-    val responseBody = if (response.body == null) {
-      Logger.e(TAG, "downloadImage(isThumbnail=$isThumbnail, name=$name, imageUrl=$imageUrl) " +
-        "response body is null")
-      return
+  private fun findMediaCacheFile(isThumbnail: Boolean, imageUrl: HttpUrl): File? {
+    val cacheFileType = if (isThumbnail) {
+      CacheFileType.PostMediaThumbnail
     } else {
-      response.body!!
+      CacheFileType.PostMediaFull
     }
 
-    try {
-      val outputStream = fileManager.getOutputStream(outputFile)
-      if (outputStream == null) {
-        Logger.e(TAG, "downloadImage(isThumbnail=$isThumbnail, name=$name, imageUrl=$imageUrl) " +
-          "failed to get output stream for file '${outputFile.getFullPath()}'")
-        return
-      }
+    val url = imageUrl.toString()
+    val cacheFile = cacheHandler.get().getCacheFileOrNull(cacheFileType, url)
+      ?: return null
 
-      runInterruptible {
-        responseBody.byteStream().use { inputStream ->
-          outputStream.use { os ->
-            inputStream.copyTo(os)
-          }
-        }
-      }
-    } catch (error: Throwable) {
-      if (error.isOutOfDiskSpaceError()) {
-        outOfDiskSpaceError.set(true)
-      }
-
-      Logger.e(TAG, "Failed to store image into file '$outputFile', deleting it. " +
-        "Error: ${error.errorMessageOrClassName()}")
-      fileManager.delete(outputFile)
-    } finally {
-      responseBody.closeQuietly()
+    if (!cacheHandler.get().isAlreadyDownloaded(cacheFileType, cacheFile)) {
+      return null
     }
+
+    return cacheFile
   }
 
   companion object {
     private const val TAG = "ThreadDownloadingDelegate"
     private const val NO_MEDIA_FILE_NAME = ".nomedia"
     private const val POSTS_PROCESSED_PROGRESS = 0.2f
+    private const val MAX_CONCURRENT_THREADS = 4
+    private const val MAX_CONCURRENT_THREADS_PER_SITE = 2
 
     fun formatDirectoryName(threadDescriptor: ChanDescriptor.ThreadDescriptor): String {
       return buildString {
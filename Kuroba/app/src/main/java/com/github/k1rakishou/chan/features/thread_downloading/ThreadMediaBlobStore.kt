@@ -0,0 +1,279 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import android.util.Base64
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.post.ChanPostImage
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.io.File
+import java.io.IOException
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Content addressed storage of the downloaded thread media. Every file is stored only once (by it's
+ * hash) in [blobsDir] and the per-thread directories only contain hard links to the blobs so the
+ * same file posted in multiple downloaded threads takes the disk space only once. The number of
+ * links of a blob is it's reference count, once all the threads that reference a blob are deleted the
+ * blob is removed by [collectGarbage].
+ *
+ * When hard links are not supported the blob is copied into the thread directory instead (so there
+ * is no deduplication but the thread media is still downloaded only once).
+ * */
+class ThreadMediaBlobStore(
+  val blobsDir: File,
+  private val fileLinker: FileLinker = AndroidFileLinker
+) {
+  private val mutexes = Array(MUTEXES_COUNT) { Mutex() }
+  private val activeTempFileNames = ConcurrentHashMap.newKeySet<String>()
+
+  suspend fun <T> withBlobLock(blobName: String, func: suspend () -> T): T {
+    val mutex = mutexes[Math.floorMod(blobName.hashCode(), MUTEXES_COUNT)]
+    return mutex.withLock { func() }
+  }
+
+  fun findBlob(blobName: String): File? {
+    val blobFile = File(blobsDir, blobName)
+    if (!blobFile.exists() || blobFile.length() <= 0L) {
+      return null
+    }
+
+    return blobFile
+  }
+
+  /**
+   * Creates a new temporary file the blob is downloaded into. Temporary files are not deleted by
+   * [collectGarbage] until they are passed into [deleteTempFile]. Must not be called under the blob
+   * lock, the download itself is not supposed to block other users of the same blob.
+   * */
+  @Throws(IOException::class)
+  fun createTempFile(blobName: String): File {
+    if (!blobsDir.exists() && !blobsDir.mkdirs()) {
+      throw IOException("Failed to create blobs directory '${blobsDir.absolutePath}'")
+    }
+
+    val tempFile = File(blobsDir, "${blobName}_${UUID.randomUUID()}${TMP_FILE_SUFFIX}")
+    activeTempFileNames.add(tempFile.name)
+
+    try {
+      if (!tempFile.createNewFile()) {
+        throw IOException("Failed to create '${tempFile.absolutePath}'")
+      }
+    } catch (error: Throwable) {
+      activeTempFileNames.remove(tempFile.name)
+      throw error
+    }
+
+    return tempFile
+  }
+
+  fun deleteTempFile(tempFile: File) {
+    if (tempFile.exists()) {
+      tempFile.delete()
+    }
+
+    activeTempFileNames.remove(tempFile.name)
+  }
+
+  /**
+   * Moves a fully written [tempFile] into the store (renames it so there are never any partially
+   * written blobs). If the same blob was stored by somebody else in the meantime then that blob is
+   * returned instead. Must be called under the blob lock.
+   * */
+  @Throws(IOException::class)
+  fun commitTempFile(blobName: String, tempFile: File): File {
+    val existingBlob = findBlob(blobName)
+    if (existingBlob != null) {
+      return existingBlob
+    }
+
+    if (tempFile.length() <= 0L) {
+      throw IOException("Blob '${blobName}' is empty")
+    }
+
+    val blobFile = File(blobsDir, blobName)
+    if (!tempFile.renameTo(blobFile)) {
+      throw IOException("Failed to rename '${tempFile.absolutePath}' into '${blobFile.absolutePath}'")
+    }
+
+    return blobFile
+  }
+
+  /**
+   * Makes [outputFile] point to the [blobFile]. Falls back to copying when the hard link could not be
+   * created.
+   * */
+  @Throws(IOException::class)
+  fun linkBlob(blobFile: File, outputFile: File) {
+    if (outputFile.exists() && !outputFile.delete()) {
+      throw IOException("Failed to delete old file '${outputFile.absolutePath}'")
+    }
+
+    if (fileLinker.link(blobFile, outputFile)) {
+      return
+    }
+
+    try {
+      blobFile.copyTo(outputFile, overwrite = true)
+    } catch (error: Throwable) {
+      outputFile.delete()
+      throw error
+    }
+  }
+
+  /**
+   * The number of thread directories that reference this blob or -1 if it's unknown.
+   * */
+  fun referenceCount(blobFile: File): Int {
+    val linkCount = fileLinker.linkCount(blobFile)
+    if (linkCount <= 0) {
+      return -1
+    }
+
+    // Minus the blob itself
+    return linkCount - 1
+  }
+
+  /**
+   * Deletes blobs that are not referenced by any thread anymore as well as leftover temporary files.
+   * Returns the amount of deleted files.
+   * */
+  suspend fun collectGarbage(): Int {
+    val files = blobsDir.listFiles()
+      ?: return 0
+
+    var deletedCount = 0
+
+    for (file in files) {
+      val deleted = if (file.name.endsWith(TMP_FILE_SUFFIX)) {
+        // Leftovers of the downloads that were interrupted by the app getting killed
+        file.name !in activeTempFileNames && file.delete()
+      } else {
+        withBlobLock(file.name) {
+          // Blobs with unknown reference count are never deleted
+          return@withBlobLock referenceCount(file) == 0 && file.delete()
+        }
+      }
+
+      if (deleted) {
+        ++deletedCount
+      }
+    }
+
+    if (deletedCount > 0) {
+      Logger.d(TAG, "collectGarbage() deleted ${deletedCount} out of ${files.size} files")
+    }
+
+    return deletedCount
+  }
+
+  interface FileLinker {
+    fun link(source: File, target: File): Boolean
+    fun linkCount(file: File): Int
+  }
+
+  object AndroidFileLinker : FileLinker {
+    override fun link(source: File, target: File): Boolean {
+      return try {
+        Os.link(source.absolutePath, target.absolutePath)
+        true
+      } catch (error: ErrnoException) {
+        if (error.errno == OsConstants.ENOSPC) {
+          throw IOException(error)
+        }
+
+        Logger.e(TAG, "link(${source.absolutePath}, ${target.absolutePath}) error: ${error.errorMessageOrClassName()}")
+        false
+      }
+    }
+
+    override fun linkCount(file: File): Int {
+      return try {
+        Os.stat(file.absolutePath).st_nlink.toInt()
+      } catch (error: ErrnoException) {
+        -1
+      }
+    }
+  }
+
+  companion object {
+    private const val TAG = "ThreadMediaBlobStore"
+    private const val MUTEXES_COUNT = 32
+    private const val TMP_FILE_SUFFIX = ".tmp"
+    private const val MIN_HASH_BYTES = 16
+
+    const val BLOBS_DIR_NAME = ".media_blobs"
+
+    private val HEX_HASH_REGEX = "^[0-9a-fA-F]{32,128}$".toRegex()
+    private val SAFE_NAME_REGEX = "^[0-9a-zA-Z_]{1,64}$".toRegex()
+
+    /**
+     * Name of the blob of [postImage] or null if the [postImage] has no usable hash in which case it
+     * can't be deduplicated. Thumbnails are stored separately per site because different sites may
+     * generate different thumbnails for the same file.
+     * */
+    fun blobName(
+      postImage: ChanPostImage,
+      isThumbnail: Boolean,
+      fileName: String,
+      siteName: String
+    ): String? {
+      val hash = normalizeFileHash(postImage.fileHash)
+        ?: return null
+
+      val extension = fileName.substringAfterLast('.', missingDelimiterValue = "")
+        .takeIf { extension -> extension.isNotEmpty() && SAFE_NAME_REGEX.matches(extension) }
+
+      return buildString {
+        if (isThumbnail) {
+          append("thumb_")
+          append(siteName.filter { ch -> ch.isLetterOrDigit() })
+          append("_")
+        }
+
+        append(hash)
+
+        if (!isThumbnail && postImage.size > 0L) {
+          append("_")
+          append(postImage.size)
+        }
+
+        if (extension != null) {
+          append(".")
+          append(extension)
+        }
+      }
+    }
+
+    /**
+     * Sites provide file hashes either as hex or as base64 strings, converts both into lowercase hex.
+     * */
+    fun normalizeFileHash(fileHash: String?): String? {
+      val hash = fileHash?.trim()
+      if (hash.isNullOrEmpty()) {
+        return null
+      }
+
+      if (HEX_HASH_REGEX.matches(hash)) {
+        return hash.lowercase()
+      }
+
+      val decoded = try {
+        Base64.decode(hash, Base64.DEFAULT)
+      } catch (error: IllegalArgumentException) {
+        return null
+      }
+
+      if (decoded.size < MIN_HASH_BYTES) {
+        return null
+      }
+
+      return decoded.joinToString(separator = "") { byte -> "%02x".format(byte) }
+    }
+  }
+
+}
@@ -0,0 +1,206 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import com.github.k1rakishou.chan.core.base.okhttp.RequestPriority
+import com.github.k1rakishou.chan.core.base.okhttp.priority
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.common.isOutOfDiskSpaceError
+import com.github.k1rakishou.common.suspendCall
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.post.ChanPostImage
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.runInterruptible
+import okhttp3.HttpUrl
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.internal.closeQuietly
+import java.io.File
+import java.io.OutputStream
+
+/**
+ * Downloads thread media into the thread directories. Media that has a hash is stored in the
+ * [ThreadMediaBlobStore] so that it's downloaded and stored only once no matter how many threads it
+ * was posted in. Before anything is downloaded the media disk cache (the files that were already
+ * loaded when viewing the thread) is checked via [mediaCacheLookup]. Network downloads are throttled
+ * by [byteRateLimiter] when it's set.
+ * */
+class ThreadMediaDownloader(
+  private val okHttpClientProvider: () -> OkHttpClient,
+  private val blobStore: ThreadMediaBlobStore,
+  private val mediaCacheLookup: MediaCacheLookup,
+  private val requestModifier: (isThumbnail: Boolean, imageUrl: HttpUrl, requestBuilder: Request.Builder) -> Unit,
+  private val byteRateLimiter: ByteRateLimiter? = null
+) {
+
+  suspend fun download(
+    outputDirectory: File,
+    siteName: String,
+    postImage: ChanPostImage,
+    isThumbnail: Boolean,
+    name: String,
+    imageUrl: HttpUrl
+  ): Result {
+    val outputFile = File(outputDirectory, name)
+
+    if (outputFile.exists() && outputFile.length() > 0L) {
+      // Already downloaded, nothing to do
+      return Result.AlreadyExists
+    }
+
+    val blobName = ThreadMediaBlobStore.blobName(postImage, isThumbnail, name, siteName)
+    if (blobName == null) {
+      // No hash, can't deduplicate
+      return downloadInto(isThumbnail, name, imageUrl) { writeFunc ->
+        try {
+          outputFile.outputStream().use { outputStream -> writeFunc(outputStream) }
+        } catch (error: Throwable) {
+          outputFile.delete()
+          throw error
+        }
+      }
+    }
+
+    try {
+      val linkedExistingBlob = blobStore.withBlobLock(blobName) {
+        val existingBlob = blobStore.findBlob(blobName)
+          ?: return@withBlobLock false
+
+        blobStore.linkBlob(existingBlob, outputFile)
+        return@withBlobLock true
+      }
+
+      if (linkedExistingBlob) {
+        return Result.FromBlobStore
+      }
+    } catch (error: Throwable) {
+      return handleError(error, isThumbnail, name, imageUrl)
+    }
+
+    // The file is downloaded (or copied from the media cache) without holding the blob lock so that
+    // a slow (or throttled) download doesn't block other downloads and the garbage collection of
+    // blobs that happen to share the lock. The blob is only locked to be stored and linked.
+    val tempFile = try {
+      blobStore.createTempFile(blobName)
+    } catch (error: Throwable) {
+      return handleError(error, isThumbnail, name, imageUrl)
+    }
+
+    try {
+      val cachedFile = mediaCacheLookup.findCachedFile(isThumbnail, imageUrl)
+
+      val result = if (cachedFile != null && cachedFile.length() > 0L) {
+        runInterruptible {
+          tempFile.outputStream().use { outputStream ->
+            cachedFile.inputStream().use { inputStream -> inputStream.copyTo(outputStream) }
+          }
+        }
+
+        Result.FromMediaCache
+      } else {
+        downloadInto(isThumbnail, name, imageUrl) { writeFunc ->
+          tempFile.outputStream().use { outputStream -> writeFunc(outputStream) }
+        }
+      }
+
+      if (result != Result.FromMediaCache && result != Result.Downloaded) {
+        return result
+      }
+
+      blobStore.withBlobLock(blobName) {
+        val blobFile = blobStore.commitTempFile(blobName, tempFile)
+        blobStore.linkBlob(blobFile, outputFile)
+      }
+
+      return result
+    } catch (error: Throwable) {
+      return handleError(error, isThumbnail, name, imageUrl)
+    } finally {
+      blobStore.deleteTempFile(tempFile)
+    }
+  }
+
+  private suspend fun downloadInto(
+    isThumbnail: Boolean,
+    name: String,
+    imageUrl: HttpUrl,
+    storeFunc: ((OutputStream) -> Unit) -> Unit
+  ): Result {
+    val requestBuilder = Request.Builder()
+      .url(imageUrl)
+      .get()
+      .priority(RequestPriority.Background)
+
+    requestModifier(isThumbnail, imageUrl, requestBuilder)
+
+    val response = okHttpClientProvider().suspendCall(requestBuilder.build())
+    if (!response.isSuccessful) {
+      Logger.e(TAG, "downloadImage(isThumbnail=$isThumbnail, name=$name, imageUrl=$imageUrl) " +
+        "bad response code: ${response.code}")
+      response.closeQuietly()
+      return Result.Failed
+    }
+
+    val responseBody = if (response.body == null) {
+      Logger.e(TAG, "downloadImage(isThumbnail=$isThumbnail, name=$name, imageUrl=$imageUrl) " +
+        "response body is null")
+      return Result.Failed
+    } else {
+      response.body!!
+    }
+
+    try {
+      runInterruptible {
+        responseBody.byteStream().use { inputStream ->
+          storeFunc { outputStream ->
+            if (byteRateLimiter != null) {
+              byteRateLimiter.copyThrottled(inputStream, outputStream)
+            } else {
+              inputStream.copyTo(outputStream)
+            }
+          }
+        }
+      }
+    } catch (error: Throwable) {
+      return handleError(error, isThumbnail, name, imageUrl)
+    } finally {
+      responseBody.closeQuietly()
+    }
+
+    return Result.Downloaded
+  }
+
+  private fun handleError(error: Throwable, isThumbnail: Boolean, name: String, imageUrl: HttpUrl): Result {
+    if (error is CancellationException) {
+      throw error
+    }
+
+    Logger.e(TAG, "Failed to store image (isThumbnail=$isThumbnail, name=$name, imageUrl=$imageUrl). " +
+      "Error: ${error.errorMessageOrClassName()}")
+
+    if (error.isOutOfDiskSpaceError()) {
+      return Result.OutOfDiskSpace
+    }
+
+    return Result.Failed
+  }
+
+  fun interface MediaCacheLookup {
+    /**
+     * Returns a fully downloaded file from the media disk cache or null.
+     * */
+    fun findCachedFile(isThumbnail: Boolean, imageUrl: HttpUrl): File?
+  }
+
+  enum class Result {
+    AlreadyExists,
+    FromBlobStore,
+    FromMediaCache,
+    Downloaded,
+    Failed,
+    OutOfDiskSpace
+  }
+
+  companion object {
+    private const val TAG = "ThreadMediaDownloader"
+  }
+
+}
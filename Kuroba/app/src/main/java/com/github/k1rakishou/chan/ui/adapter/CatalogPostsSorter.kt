@@ -0,0 +1,194 @@
+package com.github.k1rakishou.chan.ui.adapter
+
+import androidx.annotation.VisibleForTesting
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+
+/**
+ * Sorts catalog threads by [PostsFilter.Order]. The sort key of every thread is calculated only once
+ * (into a primitive array) instead of on every comparison and the [PostsFilter.Order.ACTIVITY] keys
+ * are all calculated against the same "now" so that the ordering is consistent for the whole sort.
+ * The sort is stable so threads with the same keys keep their bump order.
+ *
+ * The last resulting order of every catalog is cached so re-sorting a catalog that did not change
+ * (e.g. when a filter is toggled) only costs one pass over the threads. When the activity order is
+ * re-sorted the keys are recalculated against the previously captured "now" first so that an
+ * unchanged catalog does not shuffle around just because time has passed.
+ * */
+class CatalogPostsSorter(
+  private val maxCachedCatalogs: Int = DEFAULT_MAX_CACHED_CATALOGS,
+  private val currentTimeMillis: () -> Long = { System.currentTimeMillis() }
+) {
+  private val cache = object : LinkedHashMap<ChanDescriptor, SortResult>(16, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<ChanDescriptor, SortResult>?): Boolean {
+      return size > maxCachedCatalogs
+    }
+  }
+
+  @get:VisibleForTesting
+  @get:Synchronized
+  var sortsPerformed = 0
+    private set
+
+  /**
+   * Sorts [posts] in place. When [chanDescriptor] is null the result is not cached.
+   * */
+  fun sort(chanDescriptor: ChanDescriptor?, order: PostsFilter.Order, posts: MutableList<ChanOriginalPost>) {
+    if (order == PostsFilter.Order.BUMP || posts.size < 2) {
+      return
+    }
+
+    val cached = chanDescriptor?.let { descriptor -> synchronized(this) { cache[descriptor] } }
+    if (cached != null && cached.order == order && cached.sameInput(posts)) {
+      val keys = calculateKeys(order, posts, cached.nowSeconds)
+      if (keys.contentEquals(cached.keys)) {
+        applyPermutation(posts, cached.sortedIndexes)
+        return
+      }
+    }
+
+    val nowSeconds = currentTimeMillis() / 1000L
+    val keys = calculateKeys(order, posts, nowSeconds)
+    val sortedIndexes = sortIndexes(keys)
+    val postDescriptors = Array(posts.size) { index -> posts[index].postDescriptor }
+
+    applyPermutation(posts, sortedIndexes)
+
+    synchronized(this) {
+      ++sortsPerformed
+
+      if (chanDescriptor != null) {
+        cache[chanDescriptor] = SortResult(order, nowSeconds, postDescriptors, keys, sortedIndexes)
+      }
+    }
+  }
+
+  @Synchronized
+  fun clear() {
+    cache.clear()
+  }
+
+  private fun applyPermutation(posts: MutableList<ChanOriginalPost>, sortedIndexes: IntArray) {
+    val original = ArrayList(posts)
+
+    for (index in sortedIndexes.indices) {
+      posts[index] = original[sortedIndexes[index]]
+    }
+  }
+
+  private class SortResult(
+    val order: PostsFilter.Order,
+    val nowSeconds: Long,
+    val postDescriptors: Array<PostDescriptor>,
+    val keys: LongArray,
+    val sortedIndexes: IntArray
+  ) {
+
+    fun sameInput(posts: List<ChanOriginalPost>): Boolean {
+      if (posts.size != postDescriptors.size) {
+        return false
+      }
+
+      for (index in posts.indices) {
+        if (posts[index].postDescriptor != postDescriptors[index]) {
+          return false
+        }
+      }
+
+      return true
+    }
+
+  }
+
+  companion object {
+    private const val DEFAULT_MAX_CACHED_CATALOGS = 8
+    // we can't divide by zero, but we can divide by the smallest thing that's closest to 0 instead
+    private const val ACTIVITY_EPS = 0.0001
+
+    /**
+     * Threads with smaller keys go first.
+     * */
+    @VisibleForTesting
+    fun calculateKeys(order: PostsFilter.Order, posts: List<ChanOriginalPost>, nowSeconds: Long): LongArray {
+      val keys = LongArray(posts.size)
+
+      for (index in posts.indices) {
+        val post = posts[index]
+
+        keys[index] = when (order) {
+          PostsFilter.Order.BUMP -> index.toLong()
+          PostsFilter.Order.IMAGE -> -post.catalogImagesCount.toLong()
+          PostsFilter.Order.REPLY -> -post.catalogRepliesCount.toLong()
+          PostsFilter.Order.NEWEST -> -post.timestamp
+          PostsFilter.Order.OLDEST -> post.timestamp
+          PostsFilter.Order.MODIFIED -> -post.lastModified
+          PostsFilter.Order.ACTIVITY -> activityScore(post, nowSeconds)
+        }
+      }
+
+      return keys
+    }
+
+    private fun activityScore(post: ChanOriginalPost, nowSeconds: Long): Long {
+      val divider = if (post.catalogRepliesCount > 0) {
+        post.catalogRepliesCount.toDouble()
+      } else {
+        ACTIVITY_EPS
+      }
+
+      return ((nowSeconds - post.timestamp).toDouble() / divider).toLong()
+    }
+
+    /**
+     * Stable merge sort of the indexes of [keys] by the keys.
+     * */
+    @VisibleForTesting
+    fun sortIndexes(keys: LongArray): IntArray {
+      var indexes = IntArray(keys.size) { index -> index }
+      var buffer = IntArray(keys.size)
+      var width = 1
+
+      while (width < keys.size) {
+        var left = 0
+
+        while (left < keys.size) {
+          val middle = Math.min(left + width, keys.size)
+          val right = Math.min(left + width * 2, keys.size)
+
+          var leftIndex = left
+          var rightIndex = middle
+          var outIndex = left
+
+          while (leftIndex < middle && rightIndex < right) {
+            // "<=" keeps the sort stable
+            if (keys[indexes[leftIndex]] <= keys[indexes[rightIndex]]) {
+              buffer[outIndex++] = indexes[leftIndex++]
+            } else {
+              buffer[outIndex++] = indexes[rightIndex++]
+            }
+          }
+
+          while (leftIndex < middle) {
+            buffer[outIndex++] = indexes[leftIndex++]
+          }
+
+          while (rightIndex < right) {
+            buffer[outIndex++] = indexes[rightIndex++]
+          }
+
+          left = right
+        }
+
+        val temp = indexes
+        indexes = buffer
+        buffer = temp
+
+        width *= 2
+      }
+
+      return indexes
+    }
+  }
+
+}
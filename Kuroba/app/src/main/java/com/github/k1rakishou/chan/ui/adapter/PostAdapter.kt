@@ -31,6 +31,7 @@ import com.github.k1rakishou.chan.core.manager.PostFilterManager
 import com.github.k1rakishou.chan.core.manager.PostHideManager
 import com.github.k1rakishou.chan.core.manager.PostHighlightManager
 import com.github.k1rakishou.chan.core.manager.SavedReplyManager
+import com.github.k1rakishou.chan.core.manager.SeenPostsManager
 import com.github.k1rakishou.chan.core.repository.CurrentlyDisplayedCatalogPostsRepository
 import com.github.k1rakishou.chan.ui.cell.CatalogStatusCell
 import com.github.k1rakishou.chan.ui.cell.GenericPostCell
@@ -70,6 +71,8 @@ class PostAdapter(
   @Inject
   lateinit var postHideManager: Lazy<PostHideManager>
   @Inject
+  lateinit var seenPostsManager: Lazy<SeenPostsManager>
+  @Inject
   lateinit var chanThreadManager: Lazy<ChanThreadManager>
   @Inject
   lateinit var themeEngine: ThemeEngine
@@ -84,10 +87,7 @@ class PostAdapter(
   private val statusCellCallback: ThreadStatusCell.Callback
   val threadCellData: ThreadCellData
 
-  /**
-   * A hack for OnDemandContentLoader see comments in [onViewRecycled]
-   */
-  private val updatingPosts: MutableSet<PostDescriptor> = HashSet(64)
+  private val updatingPosts = UpdatingPosts()
 
   val isErrorShown: Boolean
     get() = threadCellData.error != null
@@ -132,6 +132,7 @@ class PostAdapter(
       _postFilterHighlightManager = postFilterHighlightManager,
       _savedReplyManager = savedReplyManager,
       _postHideManager = postHideManager,
+      _seenPostsManager = seenPostsManager,
       initialTheme = themeEngine.chanTheme
     )
 
@@ -252,23 +253,18 @@ class PostAdapter(
   override fun getItemId(position: Int): Long {
     when (getItemViewType(position)) {
       PostCellData.TYPE_STATUS -> {
-        return -1
+        return PostAdapterDiff.FOOTER_ITEM_ID
       }
       PostCellData.TYPE_LAST_SEEN -> {
-        return -2
+        return PostAdapterDiff.LAST_SEEN_ITEM_ID
       }
       PostCellData.TYPE_LOADING_MORE -> {
-        return -3
+        return PostAdapterDiff.LOADING_MORE_ITEM_ID
       }
       else -> {
-        val postCellData = threadCellData.getPostCellData(position)
-        val repliesFromCount = postCellData.repliesFromCount
-        val compactValue = if (postCellData.compact) 1L else 0L
-
-        return ((repliesFromCount.toLong() shl 32)
-          + postCellData.postNo
-          + postCellData.postSubNo
-          + compactValue)
+        // Post content changes (like new replies) are handled by PostAdapterDiff so the id must
+        // only depend on the post's descriptor.
+        return PostAdapterDiff.postItemId(threadCellData.getPostDescriptor(position))
       }
     }
   }
@@ -304,7 +300,7 @@ class PostAdapter(
       val post = (holder.itemView as GenericPostCell).getPost()
         ?: return
 
-      val isActuallyRecycling = !updatingPosts.remove(post.postDescriptor)
+      val isActuallyRecycling = !updatingPosts.onPostRecycled(post.postDescriptor)
 
       /**
        * Hack! (kinda)
@@ -333,13 +329,14 @@ class PostAdapter(
   ) {
     BackgroundUtils.ensureMainThread()
 
-    threadCellData.updateThreadData(
+    val diffResult = threadCellData.updateThreadData(
       postCellCallback = postCellCallback,
       chanDescriptor = chanDescriptor,
       postIndexedList = postIndexedList,
       postCellDataWidthNoPaddings = postCellDataWidthNoPaddings,
       theme = chanTheme,
-      prevScrollPositionData = prevScrollPositionData
+      prevScrollPositionData = prevScrollPositionData,
+      calculateDiff = true
     )
 
     if (threadCellData.chanDescriptor is ChanDescriptor.ICatalogDescriptor) {
@@ -348,9 +345,19 @@ class PostAdapter(
       )
     }
 
-    notifyDataSetChanged()
+    if (diffResult == null) {
+      notifyDataSetChanged()
+
+      Logger.d(TAG, "setThread() notifyDataSetChanged called, postIndexedList.size=" + postIndexedList.size)
+      return
+    }
+
+    // See comments in onViewRecycled
+    updatingPosts.onPostsUpdating(diffResult.changedPosts, attachedPostDescriptors())
+    diffResult.diffResult.dispatchUpdatesTo(this)
 
-    Logger.d(TAG, "setThread() notifyDataSetChanged called, postIndexedList.size=" + postIndexedList.size)
+    Logger.d(TAG, "setThread() diff dispatched, postIndexedList.size=${postIndexedList.size}, " +
+      "changedPosts=${diffResult.changedPosts.size}")
   }
 
   fun cleanup() {
@@ -441,7 +448,7 @@ class PostAdapter(
       return
     }
 
-    updatingPosts.addAll(updatePostDescriptors)
+    updatingPosts.onPostsUpdating(updatePostDescriptors.toSet(), attachedPostDescriptors())
 
     if (postIndexRange.last == postIndexRange.first) {
       notifyItemChanged(postIndexRange.first)
@@ -450,6 +457,20 @@ class PostAdapter(
     }
   }
 
+  private fun attachedPostDescriptors(): List<PostDescriptor> {
+    val childCount = recyclerView.childCount
+    val postDescriptors = ArrayList<PostDescriptor>(childCount)
+
+    for (i in 0 until childCount) {
+      val child = recyclerView.getChildAt(i)
+      if (child is GenericPostCell) {
+        child.getPost()?.let { post -> postDescriptors += post.postDescriptor }
+      }
+    }
+
+    return postDescriptors
+  }
+
   fun getPostNo(itemPosition: Int): Long {
     if (itemPosition < 0) {
       return -1L
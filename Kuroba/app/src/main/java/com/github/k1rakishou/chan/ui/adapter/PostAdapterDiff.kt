@@ -0,0 +1,59 @@
+package com.github.k1rakishou.chan.ui.adapter
+
+import androidx.recyclerview.widget.DiffUtil
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+
+/**
+ * Calculates fine-grained adapter updates between two snapshots of [PostAdapter] items so that
+ * thread reloads (where usually only a couple of posts were added or changed) don't have to
+ * rebind every visible cell via notifyDataSetChanged(). Supposed to be called on a background
+ * thread, the result must be dispatched on the main thread right after the new data is set.
+ * */
+object PostAdapterDiff {
+  const val FOOTER_ITEM_ID = -1L
+  const val LAST_SEEN_ITEM_ID = -2L
+  const val LOADING_MORE_ITEM_ID = -3L
+
+  @JvmStatic
+  fun postItemId(postDescriptor: PostDescriptor): Long {
+    return (postDescriptor.postNo shl 16) or (postDescriptor.postSubNo and 0xFFFFL)
+  }
+
+  fun calculate(oldItems: List<Item>, newItems: List<Item>, detectMoves: Boolean): Result {
+    val changedPosts = hashSetOf<PostDescriptor>()
+
+    val diffResult = DiffUtil.calculateDiff(object : DiffUtil.Callback() {
+      override fun getOldListSize(): Int = oldItems.size
+      override fun getNewListSize(): Int = newItems.size
+
+      override fun areItemsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
+        return oldItems[oldItemPosition].itemId == newItems[newItemPosition].itemId
+      }
+
+      override fun areContentsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
+        val newItem = newItems[newItemPosition]
+        val same = oldItems[oldItemPosition].contentHash == newItem.contentHash
+
+        if (!same && newItem.postDescriptor != null) {
+          changedPosts += newItem.postDescriptor
+        }
+
+        return same
+      }
+    }, detectMoves)
+
+    return Result(diffResult, changedPosts)
+  }
+
+  class Item(
+    val itemId: Long,
+    val contentHash: Int,
+    val postDescriptor: PostDescriptor?
+  )
+
+  class Result(
+    val diffResult: DiffUtil.DiffResult,
+    val changedPosts: Set<PostDescriptor>
+  )
+
+}
@@ -9,6 +9,7 @@ import com.github.k1rakishou.chan.core.manager.PostFilterHighlightManager
 import com.github.k1rakishou.chan.core.manager.PostFilterManager
 import com.github.k1rakishou.chan.core.manager.PostHideManager
 import com.github.k1rakishou.chan.core.manager.SavedReplyManager
+import com.github.k1rakishou.chan.core.manager.SeenPostsManager
 import com.github.k1rakishou.chan.ui.cell.GenericPostCell
 import com.github.k1rakishou.chan.ui.cell.PostCellData
 import com.github.k1rakishou.chan.ui.cell.PostCellInterface
@@ -31,6 +32,7 @@ class PostRepliesAdapter(
   _savedReplyManager: Lazy<SavedReplyManager>,
   _postFilterHighlightManager: Lazy<PostFilterHighlightManager>,
   _postHideManager: Lazy<PostHideManager>,
+  _seenPostsManager: Lazy<SeenPostsManager>,
   initialTheme: ChanTheme
 ) : RecyclerView.Adapter<PostRepliesAdapter.ReplyViewHolder>() {
 
@@ -41,6 +43,7 @@ class PostRepliesAdapter(
     _savedReplyManager = _savedReplyManager,
     _postFilterHighlightManager = _postFilterHighlightManager,
     _postHideManager = _postHideManager,
+    _seenPostsManager = _seenPostsManager,
     initialTheme = initialTheme
   )
 
@@ -26,7 +26,6 @@ import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.post.ChanOriginalPost
 import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.data.post.PostIndexed
-import java.util.*
 
 class PostsFilter(
   private val chanLoadProgressNotifier: ChanLoadProgressNotifier,
@@ -48,7 +47,7 @@ class PostsFilter(
     )
 
     if (order != Order.BUMP && chanDescriptor is ChanDescriptor.ICatalogDescriptor) {
-      processOrder(order, posts as MutableList<ChanOriginalPost>)
+      processOrder(chanDescriptor, order, posts as MutableList<ChanOriginalPost>)
     }
 
     // Process hidden by filter and post/thread hiding
@@ -93,61 +92,10 @@ class PostsFilter(
   companion object {
     private const val TAG = "PostsFilter"
 
-    fun processOrder(order: Order, posts: List<ChanOriginalPost>) {
-      when (order) {
-        Order.IMAGE -> Collections.sort(posts, IMAGE_COMPARATOR)
-        Order.REPLY -> Collections.sort(posts, REPLY_COMPARATOR)
-        Order.NEWEST -> Collections.sort(posts, NEWEST_COMPARATOR)
-        Order.OLDEST -> Collections.sort(posts, OLDEST_COMPARATOR)
-        Order.MODIFIED -> Collections.sort(posts, MODIFIED_COMPARATOR)
-        Order.ACTIVITY -> Collections.sort(posts, THREAD_ACTIVITY_COMPARATOR)
-        Order.BUMP -> {
-          // no-op
-        }
-      }
-    }
-
-    private val IMAGE_COMPARATOR = Comparator<ChanOriginalPost> { lhs, rhs ->
-      rhs.catalogImagesCount - lhs.catalogImagesCount
-    }
-
-    private val REPLY_COMPARATOR = Comparator<ChanOriginalPost> { lhs, rhs ->
-      rhs.catalogRepliesCount - lhs.catalogRepliesCount
-    }
-
-    private val NEWEST_COMPARATOR = Comparator<ChanOriginalPost> { lhs, rhs ->
-      (rhs.timestamp - lhs.timestamp).toInt()
-    }
-
-    private val OLDEST_COMPARATOR = Comparator<ChanOriginalPost> { lhs, rhs ->
-      (lhs.timestamp - rhs.timestamp).toInt()
-    }
-
-    private val MODIFIED_COMPARATOR = Comparator<ChanOriginalPost> { lhs, rhs ->
-      (rhs.lastModified - lhs.lastModified).toInt()
-    }
-
-    private val THREAD_ACTIVITY_COMPARATOR = Comparator<ChanOriginalPost> { lhs, rhs ->
-      val currentTimeSeconds = System.currentTimeMillis() / 1000
-      // we can't divide by zero, but we can divide by the smallest thing that's closest to 0 instead
-      val eps = 0.0001f
-
-      val lhsDivider = if (lhs.catalogRepliesCount > 0) {
-        lhs.catalogRepliesCount.toFloat()
-      } else {
-        eps
-      }
-
-      val rhsDivider = if (rhs.catalogRepliesCount > 0) {
-        rhs.catalogRepliesCount.toFloat()
-      } else {
-        eps
-      }
-
-      val score1 = ((currentTimeSeconds - lhs.timestamp).toFloat() / lhsDivider).toLong()
-      val score2 = ((currentTimeSeconds - rhs.timestamp).toFloat() / rhsDivider).toLong()
+    private val catalogPostsSorter = CatalogPostsSorter()
 
-      return@Comparator score1.compareTo(score2)
+    fun processOrder(chanDescriptor: ChanDescriptor?, order: Order, posts: MutableList<ChanOriginalPost>) {
+      catalogPostsSorter.sort(chanDescriptor, order, posts)
     }
   }
 
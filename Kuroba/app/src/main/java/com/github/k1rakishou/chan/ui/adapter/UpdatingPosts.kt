@@ -0,0 +1,46 @@
+package com.github.k1rakishou.chan.ui.adapter
+
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+
+/**
+ * A hack for OnDemandContentLoader see comments in [PostAdapter.onViewRecycled].
+ *
+ * Only the posts bound to the currently attached views are remembered because only their views get
+ * recycled after notifyItemChanged. A changed post that is off-screen would otherwise stay here
+ * forever and once its view is actually recycled later its loaders wouldn't be cancelled.
+ * */
+class UpdatingPosts {
+  private val updatingPosts: MutableSet<PostDescriptor> = HashSet(64)
+
+  val size: Int
+    get() = updatingPosts.size
+
+  fun onPostsUpdating(changedPosts: Set<PostDescriptor>, attachedPosts: Collection<PostDescriptor>) {
+    if (changedPosts.isEmpty()) {
+      return
+    }
+
+    attachedPosts.forEach { postDescriptor ->
+      if (postDescriptor in changedPosts) {
+        updatingPosts += postDescriptor
+      }
+    }
+  }
+
+  /**
+   * Returns true when the view of [postDescriptor] is being recycled because we notified the adapter
+   * that the post has changed and false when the RecyclerView actually recycles it.
+   * */
+  fun onPostRecycled(postDescriptor: PostDescriptor): Boolean {
+    return updatingPosts.remove(postDescriptor)
+  }
+
+  operator fun contains(postDescriptor: PostDescriptor): Boolean {
+    return postDescriptor in updatingPosts
+  }
+
+  fun clear() {
+    updatingPosts.clear()
+  }
+
+}
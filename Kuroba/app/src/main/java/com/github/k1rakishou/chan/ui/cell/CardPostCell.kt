@@ -351,7 +351,8 @@ class CardPostCell : ConstraintLayout,
       thumbnailViewOptions = ThumbnailView.ThumbnailViewOptions(
         postThumbnailScaling = ChanSettings.PostThumbnailScaling.CenterCrop,
         drawThumbnailBackground = false,
-        drawRipple = true
+        drawRipple = true,
+        allowHardwareBitmap = true
       )
     )
 
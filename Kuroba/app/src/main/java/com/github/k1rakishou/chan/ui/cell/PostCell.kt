@@ -45,6 +45,7 @@ import android.view.ViewGroup
 import android.widget.TextView
 import androidx.appcompat.widget.AppCompatImageView
 import androidx.appcompat.widget.AppCompatTextView
+import androidx.core.text.PrecomputedTextCompat
 import androidx.core.view.GravityCompat
 import androidx.core.widget.TextViewCompat
 import com.github.k1rakishou.ChanSettings
@@ -921,7 +922,7 @@ class PostCell @JvmOverloads constructor(
   @SuppressLint("ClickableViewAccessibility")
   private fun bindPostContent(postCellData: PostCellData) {
     val theme = postCellData.theme
-    comment.setText(postCellData.commentText, TextView.BufferType.SPANNABLE)
+    setCommentText(postCellData)
 
     if (postCellData.isSelectionMode) {
       comment.customSelectionActionModeCallback = null
@@ -967,6 +968,25 @@ class PostCell @JvmOverloads constructor(
     comment.setEditTextCursorColor(theme)
   }
 
+  private fun setCommentText(postCellData: PostCellData) {
+    val commentLayoutCache = postCellData.commentLayoutCache
+    if (commentLayoutCache == null) {
+      comment.setText(postCellData.commentText, TextView.BufferType.SPANNABLE)
+      return
+    }
+
+    val textMetricsParams = TextViewCompat.getTextMetricsParams(comment)
+    commentLayoutCache.updateTextMetricsParams(postCellData.textSizeSp, textMetricsParams)
+
+    val precomputedCommentText = postCellData.getPrecomputedCommentText(textMetricsParams)
+    if (precomputedCommentText is PrecomputedTextCompat) {
+      TextViewCompat.setPrecomputedText(comment, precomputedCommentText)
+      return
+    }
+
+    comment.setText(postCellData.commentText, TextView.BufferType.SPANNABLE)
+  }
+
   private fun setPostLinkableListener(postCellData: PostCellData, bind: Boolean) {
     val postComment = postCellData.fullPostComment
     if (postComment !is Spanned) {
@@ -2,9 +2,11 @@ package com.github.k1rakishou.chan.ui.cell
 
 import android.text.SpannableString
 import android.text.SpannableStringBuilder
+import android.text.Spanned
 import android.text.TextUtils
 import android.text.format.DateUtils
 import android.text.style.UnderlineSpan
+import androidx.core.text.PrecomputedTextCompat
 import androidx.core.text.buildSpannedString
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.R
@@ -17,6 +19,7 @@ import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.sp
 import com.github.k1rakishou.chan.utils.SpannableHelper
 import com.github.k1rakishou.common.MurmurHashUtils
 import com.github.k1rakishou.common.StringUtils
+import com.github.k1rakishou.common.TextBounds
 import com.github.k1rakishou.common.buildSpannableString
 import com.github.k1rakishou.common.ellipsizeEnd
 import com.github.k1rakishou.common.isNotNullNorBlank
@@ -80,6 +83,7 @@ data class PostCellData(
   val isSplitLayout: Boolean
 ) {
   var postCellCallback: PostCellInterface.PostCellCallback? = null
+  var commentLayoutCache: PostCommentLayoutCache? = null
 
   private var postTitleStubPrecalculated: CharSequence? = null
   private var postTitlePrecalculated: CharSequence? = null
@@ -165,8 +169,8 @@ data class PostCellData(
       return postHide.onlyHide
     }
 
-  private val _detailsSizePx = RecalculatableLazy { sp(ChanSettings.detailsSizeSp()) }
-  private val _fontSizePx = RecalculatableLazy { sp(ChanSettings.fontSize.get().toInt()) }
+  private val _detailsSizePx = RecalculatableLazy { sp(detailsSizeSp) }
+  private val _fontSizePx = RecalculatableLazy { sp(textSizeSp) }
   private val _postTitleStub = RecalculatableLazy { postTitleStubPrecalculated ?: calculatePostTitleStub() }
   private val _postTitle = RecalculatableLazy { postTitlePrecalculated ?: calculatePostTitle() }
   private val _postFileInfoMap = RecalculatableLazy { postFileInfoPrecalculated ?: calculatePostFileInfo() }
@@ -176,6 +180,7 @@ data class PostCellData(
   private val _postFileInfoMapHash = RecalculatableLazy { postFileInfoHashPrecalculated ?: calculatePostFileInfoHash(_postFileInfoMap) }
   private val _commentText = RecalculatableLazy { commentTextPrecalculated ?: calculateCommentText() }
   private val _repliesToThisPostText = RecalculatableLazy { repliesToThisPostTextPrecalculated ?: calculateRepliesToThisPostText() }
+  private val _commentLayoutKey = RecalculatableLazy { calculateCommentLayoutKey() }
 
   val detailsSizePx: Int
     get() = _detailsSizePx.value()
@@ -195,6 +200,8 @@ data class PostCellData(
     get() = _commentText.value()
   val repliesToThisPostText
     get() = _repliesToThisPostText.value()
+  val commentLayoutKey: PostCommentLayoutCache.Key
+    get() = _commentLayoutKey.value()
 
   fun hashForAdapter(): Long {
     val repliesFromCount = post.repliesFromCount
@@ -227,11 +234,13 @@ data class PostCellData(
     _postFileInfoMapHash.resetValue()
     _commentText.resetValue()
     _repliesToThisPostText.resetValue()
+    _commentLayoutKey.resetValue()
   }
 
   fun resetCommentTextCache() {
     commentTextPrecalculated = null
     _commentText.resetValue()
+    _commentLayoutKey.resetValue()
   }
 
   fun resetPostTitleCache() {
@@ -266,6 +275,27 @@ data class PostCellData(
     _postFileInfoMapHash.value()
     _commentText.value()
     _repliesToThisPostText.value()
+    _commentLayoutKey.value()
+  }
+
+  /**
+   * Must not be called on the main thread.
+   * */
+  fun precomputeCommentLayout() {
+    commentLayoutCache?.precompute(commentLayoutKey, commentText)
+  }
+
+  fun getPrecomputedCommentText(params: PrecomputedTextCompat.Params): Spanned? {
+    return commentLayoutCache?.getPrecomputedText(commentLayoutKey, params)
+  }
+
+  fun getCommentTextBounds(availableWidth: Int, calculate: (CharSequence) -> TextBounds): TextBounds {
+    val cache = commentLayoutCache
+      ?: return calculate(commentText)
+
+    return cache.getOrPutTextBounds(commentLayoutKey, availableWidth) { precomputedText ->
+      calculate(precomputedText ?: commentText)
+    }
   }
 
   fun fullCopy(): PostCellData {
@@ -307,6 +337,7 @@ data class PostCellData(
       isSplitLayout = isSplitLayout
     ).also { newPostCellData ->
       newPostCellData.postCellCallback = postCellCallback
+      newPostCellData.commentLayoutCache = commentLayoutCache
       newPostCellData.postTitlePrecalculated = postTitlePrecalculated
       newPostCellData.postTitleStubPrecalculated = postTitleStubPrecalculated
       newPostCellData.commentTextPrecalculated = commentTextPrecalculated
@@ -316,6 +347,7 @@ data class PostCellData(
 
   fun cleanup() {
     postCellCallback = null
+    commentLayoutCache = null
     resetEverything()
   }
 
@@ -634,6 +666,16 @@ data class PostCellData(
     return commentText
   }
 
+  private fun calculateCommentLayoutKey(): PostCommentLayoutCache.Key {
+    return PostCommentLayoutCache.Key(
+      postDescriptor = postDescriptor,
+      commentHash = PostCommentLayoutCache.commentHash(commentText),
+      widthPx = postCellDataWidthNoPaddings,
+      textSizeSp = textSizeSp,
+      themeHash = PostCommentLayoutCache.themeHash(theme)
+    )
+  }
+
   private fun calculatePostFileInfoMapForThumbnailWrapper(): Map<ChanPostImage, SpannableString> {
     val resultMap = mutableMapOf<ChanPostImage, SpannableString>()
 
@@ -623,7 +623,9 @@ open class PostCellLayout @JvmOverloads constructor(
     }
 
     val resultTitleTextBounds = titleTextBounds.mergeWith(imageFileNameTextBounds)
-    val commentTextBounds = comment.getTextBounds(postCellData.commentText, (availableWidthIncludingThumbnail))
+    val commentTextBounds = postCellData.getCommentTextBounds(availableWidthIncludingThumbnail) { commentText ->
+      comment.getTextBounds(commentText, availableWidthIncludingThumbnail)
+    }
     val commentHeight = commentTextBounds.textHeight
 
     val multiplier = when (postCellData.postAlignmentMode) {
@@ -0,0 +1,65 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.chan.ui.adapter.PostsFilter
+import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.isTablet
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+
+/**
+ * Immutable snapshot of all the settings that affect how posts are displayed. Captured once per
+ * [ThreadCellData] rebuild and shared by all of the posts so that the settings are not read over and
+ * over again for every post.
+ * */
+data class PostCellSettingsSnapshot(
+  val textSizeSp: Int,
+  val detailsSizeSp: Int,
+  val boardPostsSortOrder: PostsFilter.Order,
+  val neverShowPages: Boolean,
+  val tapNoReply: Boolean,
+  val postFullDate: Boolean,
+  val postFullDateLocalLocale: Boolean,
+  val shiftPostComment: Boolean,
+  val forceShiftPostComment: Boolean,
+  val textOnly: Boolean,
+  val showPostFileInfo: Boolean,
+  val markUnseenPosts: Boolean,
+  val markSeenThreads: Boolean,
+  val postCellThumbnailSizePercents: Int,
+  val postMultipleImagesCompactMode: Boolean,
+  val postAlignmentMode: ChanSettings.PostAlignmentMode,
+  val isTablet: Boolean,
+  val isSplitLayout: Boolean
+) {
+
+  companion object {
+    fun capture(chanDescriptor: ChanDescriptor): PostCellSettingsSnapshot {
+      val postAlignmentMode = when (chanDescriptor) {
+        is ChanDescriptor.CatalogDescriptor,
+        is ChanDescriptor.CompositeCatalogDescriptor -> ChanSettings.catalogPostAlignmentMode.get()
+        is ChanDescriptor.ThreadDescriptor -> ChanSettings.threadPostAlignmentMode.get()
+      }
+
+      return PostCellSettingsSnapshot(
+        textSizeSp = ChanSettings.fontSize.get().toInt(),
+        detailsSizeSp = ChanSettings.detailsSizeSp(),
+        boardPostsSortOrder = PostsFilter.Order.find(ChanSettings.boardOrder.get()),
+        neverShowPages = ChanSettings.neverShowPages.get(),
+        tapNoReply = ChanSettings.tapNoReply.get(),
+        postFullDate = ChanSettings.postFullDate.get(),
+        postFullDateLocalLocale = ChanSettings.postFullDateUseLocalLocale.get(),
+        shiftPostComment = ChanSettings.shiftPostComment.get(),
+        forceShiftPostComment = ChanSettings.forceShiftPostComment.get(),
+        textOnly = ChanSettings.textOnly.get(),
+        showPostFileInfo = ChanSettings.postFileInfo.get(),
+        markUnseenPosts = ChanSettings.markUnseenPosts.get() && chanDescriptor.isThreadDescriptor(),
+        markSeenThreads = ChanSettings.markSeenThreads.get() && chanDescriptor.isCatalogDescriptor(),
+        postCellThumbnailSizePercents = ChanSettings.postCellThumbnailSizePercents.get(),
+        postMultipleImagesCompactMode = ChanSettings.postMultipleImagesCompactMode.get(),
+        postAlignmentMode = postAlignmentMode,
+        isTablet = isTablet(),
+        isSplitLayout = ChanSettings.isSplitLayoutMode()
+      )
+    }
+  }
+
+}
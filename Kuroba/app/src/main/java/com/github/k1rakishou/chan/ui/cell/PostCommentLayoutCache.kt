@@ -0,0 +1,160 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import android.text.Spanned
+import android.util.LruCache
+import androidx.core.text.PrecomputedTextCompat
+import com.github.k1rakishou.common.TextBounds
+import com.github.k1rakishou.core_themes.ChanTheme
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Caches post comments precomputed with [PrecomputedTextCompat] (the text measuring part of the
+ * layout, the most expensive part of it) and the comment text bounds that are used to figure out
+ * whether a comment can be shifted to the side of the thumbnail. Comments are precomputed on a
+ * background thread while the posts are being preloaded (see [ThreadCellData]) so binding and
+ * measuring post cells doesn't have to measure the comments on the main thread.
+ *
+ * Entries are keyed by the post, the hash of its comment, the width, the text size and the theme,
+ * so changing any of them results in a cache miss. The text metrics params can only be taken from a
+ * TextView so they are reported by the post cells once they are bound. Until then (or when the
+ * params of the view change) nothing is precomputed and the post cells fall back to the regular text.
+ * */
+class PostCommentLayoutCache(
+  maxEntries: Int = DEFAULT_MAX_ENTRIES,
+  private val precomputeText: (CharSequence, PrecomputedTextCompat.Params) -> Spanned = { text, params ->
+    PrecomputedTextCompat.create(text, params)
+  }
+) {
+  private val entries = LruCache<Key, Entry>(maxEntries)
+
+  @Volatile
+  var onTextMetricsParamsUpdated: (() -> Unit)? = null
+
+  fun getTextMetricsParams(textSizeSp: Int): PrecomputedTextCompat.Params? {
+    return textMetricsParamsMap[textSizeSp]
+  }
+
+  fun updateTextMetricsParams(textSizeSp: Int, params: PrecomputedTextCompat.Params) {
+    val prevParams = textMetricsParamsMap.put(textSizeSp, params)
+    if (prevParams == params) {
+      return
+    }
+
+    onTextMetricsParamsUpdated?.invoke()
+  }
+
+  /**
+   * Precomputes the [commentText] unless it's already cached. Must not be called on the main thread.
+   * */
+  fun precompute(key: Key, commentText: CharSequence) {
+    if (commentText.isEmpty()) {
+      return
+    }
+
+    val params = getTextMetricsParams(key.textSizeSp)
+      ?: return
+
+    val prevEntry = entries.get(key)
+    if (prevEntry?.precomputedText != null && prevEntry.params == params) {
+      return
+    }
+
+    val precomputedText = precomputeText(commentText, params)
+    entries.put(key, Entry(precomputedText, params, prevEntry?.textBounds ?: ConcurrentHashMap()))
+  }
+
+  /**
+   * Returns the precomputed comment only if it was precomputed with the same [params] the comment
+   * TextView currently has, otherwise the TextView would refuse to use it.
+   * */
+  fun getPrecomputedText(key: Key, params: PrecomputedTextCompat.Params): Spanned? {
+    val entry = entries.get(key)
+      ?: return null
+
+    if (entry.params != params) {
+      return null
+    }
+
+    return entry.precomputedText
+  }
+
+  fun getOrPutTextBounds(key: Key, availableWidth: Int, calculate: (Spanned?) -> TextBounds): TextBounds {
+    var entry = entries.get(key)
+    if (entry == null) {
+      entry = Entry(null, null, ConcurrentHashMap())
+      entries.put(key, entry)
+    }
+
+    val cachedTextBounds = entry.textBounds[availableWidth]
+    if (cachedTextBounds != null) {
+      return cachedTextBounds
+    }
+
+    val textBounds = calculate(entry.precomputedText)
+    entry.textBounds[availableWidth] = textBounds
+    return textBounds
+  }
+
+  fun size(): Int = entries.size()
+
+  fun clear() {
+    entries.evictAll()
+  }
+
+  data class Key(
+    val postDescriptor: PostDescriptor,
+    val commentHash: Int,
+    val widthPx: Int,
+    val textSizeSp: Int,
+    val themeHash: Int
+  )
+
+  private class Entry(
+    val precomputedText: Spanned?,
+    val params: PrecomputedTextCompat.Params?,
+    // availableWidth -> bounds, there is usually only one width per post
+    val textBounds: MutableMap<Int, TextBounds>
+  )
+
+  companion object {
+    private const val DEFAULT_MAX_ENTRIES = 256
+
+    // Shared by all the caches since every post comment TextView is configured the same way
+    private val textMetricsParamsMap = ConcurrentHashMap<Int, PrecomputedTextCompat.Params>()
+
+    /**
+     * Spans of the comment (colors, search highlights etc.) are a part of the precomputed text so
+     * they need to be a part of the hash as well as the text itself.
+     * */
+    fun commentHash(commentText: CharSequence): Int {
+      var result = commentText.toString().hashCode()
+
+      if (commentText is Spanned) {
+        commentText.getSpans(0, commentText.length, Any::class.java).forEach { span ->
+          result = 31 * result + span.javaClass.hashCode()
+          result = 31 * result + commentText.getSpanStart(span)
+          result = 31 * result + commentText.getSpanEnd(span)
+        }
+      }
+
+      return result
+    }
+
+    fun themeHash(theme: ChanTheme): Int {
+      var result = theme.name.hashCode()
+      result = 31 * result + theme.isLightTheme.hashCode()
+      result = 31 * result + theme.accentColor
+      result = 31 * result + theme.textColorPrimary
+      result = 31 * result + theme.textColorSecondary
+      result = 31 * result + theme.postQuoteColor
+      result = 31 * result + theme.postInlineQuoteColor
+      result = 31 * result + theme.postHighlightQuoteColor
+      result = 31 * result + theme.postLinkColor
+      result = 31 * result + theme.postSpoilerColor
+      result = 31 * result + theme.postSpoilerRevealTextColor
+      return result
+    }
+  }
+
+}
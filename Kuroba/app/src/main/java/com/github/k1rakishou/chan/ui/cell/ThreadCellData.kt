@@ -8,9 +8,9 @@ import com.github.k1rakishou.chan.core.manager.PostFilterHighlightManager
 import com.github.k1rakishou.chan.core.manager.PostFilterManager
 import com.github.k1rakishou.chan.core.manager.PostHideManager
 import com.github.k1rakishou.chan.core.manager.SavedReplyManager
-import com.github.k1rakishou.chan.ui.adapter.PostsFilter
+import com.github.k1rakishou.chan.core.manager.SeenPostsManager
+import com.github.k1rakishou.chan.ui.adapter.PostAdapterDiff
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.isDevBuild
-import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.isTablet
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.common.bidirectionalSequenceIndexed
 import com.github.k1rakishou.common.mutableListWithCap
@@ -20,6 +20,7 @@ import com.github.k1rakishou.core_themes.ChanTheme
 import com.github.k1rakishou.model.data.board.pages.BoardPages
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.filter.HighlightFilterKeyword
 import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.data.post.PostIndexed
 import dagger.Lazy
@@ -39,10 +40,12 @@ class ThreadCellData(
   private val _postFilterHighlightManager: Lazy<PostFilterHighlightManager>,
   private val _savedReplyManager: Lazy<SavedReplyManager>,
   private val _postHideManager: Lazy<PostHideManager>,
+  private val _seenPostsManager: Lazy<SeenPostsManager>,
   initialTheme: ChanTheme
 ): Iterable<ThreadCellData.PostCellDataLazy> {
   private val postCellDataLazyList: MutableList<PostCellDataLazy> = mutableListWithCap(64)
   private val coroutineScope = KurobaCoroutineScope()
+  private val commentLayoutCache = PostCommentLayoutCache()
 
   private val chanThreadViewableInfoManager: ChanThreadViewableInfoManager
     get() = _chanThreadViewableInfoManager.get()
@@ -56,11 +59,17 @@ class ThreadCellData(
     get() = _savedReplyManager.get()
   private val postHideManager: PostHideManager
     get() = _postHideManager.get()
+  private val seenPostsManager: SeenPostsManager
+    get() = _seenPostsManager.get()
 
   @Volatile private var _chanDescriptor: ChanDescriptor? = null
   @Volatile private var postCellCallback: PostCellInterface.PostCellCallback? = null
   private var currentTheme: ChanTheme = initialTheme
   private var lazyCalculationJob: Job? = null
+  private var commentLayoutPrecomputationJob: Job? = null
+  // Incremented every time postCellDataLazyList is modified, used to detect that the list was
+  // changed while we were calculating a diff on a background thread.
+  private var dataVersion = 0L
 
   var postViewMode: PostCellData.PostViewMode = PostCellData.PostViewMode.Normal
   var defaultIsCompact: Boolean = false
@@ -74,6 +83,12 @@ class ThreadCellData(
   val chanDescriptor: ChanDescriptor?
     get() = _chanDescriptor
 
+  init {
+    // The posts that were preloaded before the first post cell reported the text metrics params
+    // couldn't have their comments precomputed.
+    commentLayoutCache.onTextMetricsParamsUpdated = { precomputeCommentLayouts() }
+  }
+
   override fun iterator(): Iterator<PostCellDataLazy> {
     return postCellDataLazyList.iterator()
   }
@@ -120,7 +135,9 @@ class ThreadCellData(
         )
 
         // precalculate right away
-        updatedPostCellData.forEach { postCellDataLazy -> postCellDataLazy.getOrCalculate(isPrecalculating = true) }
+        updatedPostCellData.forEach { postCellDataLazy ->
+          postCellDataLazy.getOrCalculate(isPrecalculating = true).precomputeCommentLayout()
+        }
 
         return@withContext updatedPostCellData
       }
@@ -139,12 +156,19 @@ class ThreadCellData(
       }
 
       postCellDataLazyList[postCellDataIndex] = updatedPostCellData.first()
+      ++dataVersion
       updatedAtLeastOne = true
     }
 
     return updatedAtLeastOne
   }
 
+  /**
+   * When [calculateDiff] is true and the new data belongs to the same [chanDescriptor] as the
+   * current one then the difference between the old and the new adapter items is calculated on a
+   * background thread and returned. The result must be dispatched to the adapter right away.
+   * Null means that the adapter needs to be fully reloaded.
+   * */
   @OptIn(ExperimentalTime::class)
   suspend fun updateThreadData(
     postCellCallback: PostCellInterface.PostCellCallback,
@@ -152,11 +176,14 @@ class ThreadCellData(
     postIndexedList: List<PostIndexed>,
     postCellDataWidthNoPaddings: Int,
     theme: ChanTheme,
-    prevScrollPositionData: PreviousThreadScrollPositionData? = null
-  ) {
+    prevScrollPositionData: PreviousThreadScrollPositionData? = null,
+    calculateDiff: Boolean = false
+  ): PostAdapterDiff.Result? {
     require(postCellDataWidthNoPaddings > 0) { "Bad postCellDataWidthNoPaddings: ${postCellDataWidthNoPaddings}" }
     BackgroundUtils.ensureMainThread()
 
+    val prevChanDescriptor = this._chanDescriptor
+
     this._chanDescriptor = chanDescriptor
     this.postCellCallback = postCellCallback
     this.currentTheme = theme
@@ -188,12 +215,73 @@ class ThreadCellData(
 
     BackgroundUtils.ensureMainThread()
 
+    val newLastSeenIndicatorPosition = if (postViewMode.canShowLastSeenIndicator()) {
+      getLastSeenIndicatorPosition(chanDescriptor, newPostCellDataLazyList) ?: -1
+    } else {
+      lastSeenIndicatorPosition
+    }
+
+    var diffResult: PostAdapterDiff.Result? = null
+
+    val canCalculateDiff = calculateDiff
+      && prevChanDescriptor == chanDescriptor
+      && postCellDataLazyList.isNotEmpty()
+      && newPostCellDataLazyList.isNotEmpty()
+
+    if (canCalculateDiff) {
+      val showStatusView = showStatusView()
+      val oldItems = toDiffItems(postCellDataLazyList, lastSeenIndicatorPosition, showStatusView)
+      val newItems = toDiffItems(newPostCellDataLazyList, newLastSeenIndicatorPosition, showStatusView)
+      val dataVersionBefore = dataVersion
+
+      val result = withContext(Dispatchers.Default) {
+        return@withContext PostAdapterDiff.calculate(
+          oldItems = oldItems,
+          newItems = newItems,
+          detectMoves = chanDescriptor is ChanDescriptor.ICatalogDescriptor
+        )
+      }
+
+      BackgroundUtils.ensureMainThread()
+
+      // The old items are not what the adapter currently displays anymore, the diff is useless.
+      if (dataVersion == dataVersionBefore && this._chanDescriptor == chanDescriptor) {
+        diffResult = result
+      }
+    }
+
     this.postCellDataLazyList.clear()
     this.postCellDataLazyList.addAll(newPostCellDataLazyList)
+    this.lastSeenIndicatorPosition = newLastSeenIndicatorPosition
+    ++dataVersion
+
+    return diffResult
+  }
+
+  private fun toDiffItems(
+    postCellDataLazyList: List<PostCellDataLazy>,
+    lastSeenIndicatorPosition: Int,
+    showStatusView: Boolean
+  ): List<PostAdapterDiff.Item> {
+    val resultList = mutableListWithCap<PostAdapterDiff.Item>(postCellDataLazyList.size + 2)
+
+    postCellDataLazyList.forEach { postCellDataLazy ->
+      if (resultList.size == lastSeenIndicatorPosition) {
+        resultList += PostAdapterDiff.Item(PostAdapterDiff.LAST_SEEN_ITEM_ID, 0, null)
+      }
 
-    if (postViewMode.canShowLastSeenIndicator()) {
-      this.lastSeenIndicatorPosition = getLastSeenIndicatorPosition(chanDescriptor) ?: -1
+      resultList += PostAdapterDiff.Item(
+        itemId = PostAdapterDiff.postItemId(postCellDataLazy.postDescriptor),
+        contentHash = postCellDataLazy.contentHash,
+        postDescriptor = postCellDataLazy.postDescriptor
+      )
     }
+
+    if (showStatusView) {
+      resultList += PostAdapterDiff.Item(PostAdapterDiff.FOOTER_ITEM_ID, 0, null)
+    }
+
+    return resultList
   }
 
   private fun CoroutineScope.runPreloadingTask(
@@ -229,10 +317,30 @@ class ThreadCellData(
       .bidirectionalSequenceIndexed(startingPosition.coerceIn(0, newPostCellDataLazyList.lastIndex))
       .forEach { (_, newPostCellDataLazy) ->
         ensureActive()
-        newPostCellDataLazy.getOrCalculate(isPrecalculating = true)
+        newPostCellDataLazy.getOrCalculate(isPrecalculating = true).precomputeCommentLayout()
       }
   }
 
+  private fun precomputeCommentLayouts() {
+    BackgroundUtils.ensureMainThread()
+
+    val postCellDataList = postCellDataLazyList
+      .filter { postCellDataLazy -> postCellDataLazy.isInitialized }
+      .map { postCellDataLazy -> postCellDataLazy.postCellDataCalculated }
+
+    if (postCellDataList.isEmpty()) {
+      return
+    }
+
+    commentLayoutPrecomputationJob?.cancel()
+    commentLayoutPrecomputationJob = coroutineScope.launch(Dispatchers.Default) {
+      postCellDataList.forEach { postCellData ->
+        ensureActive()
+        postCellData.precomputeCommentLayout()
+      }
+    }
+  }
+
   private suspend fun postIndexedListToLazyPostCellDataList(
     postCellCallback: PostCellInterface.PostCellCallback,
     chanDescriptor: ChanDescriptor,
@@ -247,24 +355,9 @@ class ThreadCellData(
     val totalPostsCount = postIndexedList.size
     val resultList = mutableListWithCap<PostCellDataLazy>(totalPostsCount)
 
-    val textSizeSp = ChanSettings.fontSize.get().toInt()
-    val detailsSizeSp = ChanSettings.detailsSizeSp()
-    val boardPostsSortOrder = PostsFilter.Order.find(ChanSettings.boardOrder.get())
-    val neverShowPages = ChanSettings.neverShowPages.get()
-    val tapNoReply = ChanSettings.tapNoReply.get()
-    val postFullDate = ChanSettings.postFullDate.get()
-    val postFullDateLocalLocale = ChanSettings.postFullDateUseLocalLocale.get()
-    val shiftPostComment = ChanSettings.shiftPostComment.get()
-    val forceShiftPostComment = ChanSettings.forceShiftPostComment.get()
-    val textOnly = ChanSettings.textOnly.get()
-    val showPostFileInfo = ChanSettings.postFileInfo.get()
-    val markUnseenPosts = ChanSettings.markUnseenPosts.get() && chanDescriptor.isThreadDescriptor()
-    val markSeenThreads = ChanSettings.markSeenThreads.get() && chanDescriptor.isCatalogDescriptor()
+    val settings = PostCellSettingsSnapshot.capture(chanDescriptor)
     val chanTheme = theme.fullCopy()
-    val postCellThumbnailSizePercents = ChanSettings.postCellThumbnailSizePercents.get()
-    val boardPages = getBoardPages(chanDescriptor, neverShowPages, postCellCallback)
-    val isTablet = isTablet()
-    val isSplitLayout = ChanSettings.isSplitLayoutMode()
+    val boardPages = getBoardPages(chanDescriptor, settings.neverShowPages, postCellCallback)
 
     val postHideMap = when (chanDescriptor) {
       is ChanDescriptor.ICatalogDescriptor -> {
@@ -279,12 +372,6 @@ class ThreadCellData(
       }
     }
 
-    val postAlignmentMode = when (chanDescriptor) {
-      is ChanDescriptor.CatalogDescriptor,
-      is ChanDescriptor.CompositeCatalogDescriptor -> ChanSettings.catalogPostAlignmentMode.get()
-      is ChanDescriptor.ThreadDescriptor -> ChanSettings.threadPostAlignmentMode.get()
-    }
-
     val threadPostReplyMap = mutableMapWithCap<PostDescriptor, Boolean>(postIndexedList.size)
 
     if (chanDescriptor is ChanDescriptor.ThreadDescriptor) {
@@ -297,17 +384,34 @@ class ThreadCellData(
 
     val highlightFilterKeywordMap = postFilterHighlightManager.getHighlightFilterKeywordForDescriptor(postDescriptors)
 
+    // Everything that affects how every post is displayed. Folded into every post's content hash
+    // so that when any of it changes all the posts are considered changed when diffing.
+    val renderParamsHash = listOf(
+      System.identityHashCode(theme),
+      postCellDataWidthNoPaddings,
+      settings,
+      postViewMode,
+      defaultMarkedNo,
+      defaultIsCompact,
+      defaultBoardPostViewMode,
+      defaultSearchQuery
+    ).hashCode()
+
     postIndexedList.forEachIndexed { orderInList, postIndexed ->
+      val showDivider = oldPostCellData?.showDivider ?: defaultShowDividerFunc.invoke(orderInList, totalPostsCount)
+      val keywordsToHighlight = highlightFilterKeywordMap[postIndexed.chanPost.postDescriptor] ?: emptySet()
+      val isReplyToSavedReply = postIndexed.chanPost.repliesTo
+        .any { replyTo -> threadPostReplyMap[replyTo] == true }
+
       val lazyFunc = lazy {
         val chanPost = postIndexed.chanPost
         val postDescriptor = chanPost.postDescriptor
 
-        val postMultipleImagesCompactMode = ChanSettings.postMultipleImagesCompactMode.get()
+        val postMultipleImagesCompactMode = settings.postMultipleImagesCompactMode
           && postViewMode != PostCellData.PostViewMode.Search
           && chanPost.postImages.size > 1
 
-        val boardPage = boardPages?.boardPages
-          ?.firstOrNull { boardPage -> boardPage.threads[postDescriptor.threadDescriptor()] != null }
+        val boardPage = boardPages?.findPage(postDescriptor.threadDescriptor())
 
         val postCellData = PostCellData(
           chanDescriptor = chanDescriptor,
@@ -315,40 +419,40 @@ class ThreadCellData(
           postImages = chanPost.postImages,
           postIndex = postIndexed.postIndex,
           postCellDataWidthNoPaddings = postCellDataWidthNoPaddings,
-          textSizeSp = textSizeSp,
-          detailsSizeSp = detailsSizeSp,
+          textSizeSp = settings.textSizeSp,
+          detailsSizeSp = settings.detailsSizeSp,
           theme = chanTheme,
           postViewMode = postViewMode,
           markedPostNo = defaultMarkedNo,
-          showDivider = oldPostCellData?.showDivider ?: defaultShowDividerFunc.invoke(orderInList, totalPostsCount),
+          showDivider = showDivider,
           compact = defaultIsCompact,
           boardPostViewMode = defaultBoardPostViewMode,
-          boardPostsSortOrder = boardPostsSortOrder,
+          boardPostsSortOrder = settings.boardPostsSortOrder,
           boardPage = boardPage,
-          neverShowPages = neverShowPages,
-          tapNoReply = tapNoReply,
-          postFullDate = postFullDate,
-          postFullDateLocalLocale = postFullDateLocalLocale,
-          shiftPostComment = shiftPostComment,
-          forceShiftPostComment = forceShiftPostComment,
+          neverShowPages = settings.neverShowPages,
+          tapNoReply = settings.tapNoReply,
+          postFullDate = settings.postFullDate,
+          postFullDateLocalLocale = settings.postFullDateLocalLocale,
+          shiftPostComment = settings.shiftPostComment,
+          forceShiftPostComment = settings.forceShiftPostComment,
           postMultipleImagesCompactMode = postMultipleImagesCompactMode,
-          textOnly = textOnly,
-          showPostFileInfo = showPostFileInfo,
-          markUnseenPosts = markUnseenPosts,
-          markSeenThreads = markSeenThreads,
+          textOnly = settings.textOnly,
+          showPostFileInfo = settings.showPostFileInfo,
+          markUnseenPosts = settings.markUnseenPosts,
+          markSeenThreads = settings.markSeenThreads,
           postHideMap = postHideMap,
           searchQuery = defaultSearchQuery,
-          keywordsToHighlight = highlightFilterKeywordMap[postDescriptor] ?: emptySet(),
-          postAlignmentMode = postAlignmentMode,
-          postCellThumbnailSizePercents = postCellThumbnailSizePercents,
+          keywordsToHighlight = keywordsToHighlight,
+          postAlignmentMode = settings.postAlignmentMode,
+          postCellThumbnailSizePercents = settings.postCellThumbnailSizePercents,
           isSavedReply = chanPost.isSavedReply,
-          isReplyToSavedReply = chanPost.repliesTo
-            .any { replyTo -> threadPostReplyMap[replyTo] == true },
-          isTablet = isTablet,
-          isSplitLayout = isSplitLayout,
+          isReplyToSavedReply = isReplyToSavedReply,
+          isTablet = settings.isTablet,
+          isSplitLayout = settings.isSplitLayout,
         )
 
         postCellData.postCellCallback = postCellCallback
+        postCellData.commentLayoutCache = commentLayoutCache
         postCellData.preload()
 
         return@lazy postCellData
@@ -356,6 +460,17 @@ class ThreadCellData(
 
       val postCellDataLazy = PostCellDataLazy(
         post = postIndexed.chanPost,
+        contentHash = calculatePostContentHash(
+          postIndexed = postIndexed,
+          showDivider = showDivider,
+          isPostHidden = postHideMap.containsKey(postIndexed.chanPost.postDescriptor),
+          boardPage = boardPages?.findPageIndex(postIndexed.chanPost.postDescriptor.threadDescriptor()),
+          keywordsToHighlight = keywordsToHighlight,
+          isReplyToSavedReply = isReplyToSavedReply,
+          isSeen = settings.markUnseenPosts
+            && seenPostsManager.getSeenPostOrNull(postIndexed.chanPost.postDescriptor) != null,
+          renderParamsHash = renderParamsHash
+        ),
         lazyDataCalcFunc = lazyFunc
       )
 
@@ -365,6 +480,39 @@ class ThreadCellData(
     return resultList
   }
 
+  private fun calculatePostContentHash(
+    postIndexed: PostIndexed,
+    showDivider: Boolean,
+    isPostHidden: Boolean,
+    boardPage: Int?,
+    keywordsToHighlight: Set<HighlightFilterKeyword>,
+    isReplyToSavedReply: Boolean,
+    isSeen: Boolean,
+    renderParamsHash: Int
+  ): Int {
+    val chanPost = postIndexed.chanPost
+    val postComment = chanPost.postComment
+
+    // ChanPost objects are mutable and shared between the old and the new data so we need to
+    // snapshot their hashes at the moment PostCellDataLazy is created. ChanPost.hashCode() doesn't
+    // include everything that is displayed (e.g. isDeleted of non-OP posts or the comment spans
+    // added after the post was parsed) so those are added separately.
+    var result = chanPost.hashCode()
+    result = 31 * result + postComment.originalCommentHash.hashCode()
+    result = 31 * result + (postComment.updatedCommentHash?.hashCode() ?: 0)
+    result = 31 * result + chanPost.isDeleted.hashCode()
+    result = 31 * result + chanPost.repliesFromCount
+    result = 31 * result + keywordsToHighlight.hashCode()
+    result = 31 * result + isReplyToSavedReply.hashCode()
+    result = 31 * result + isSeen.hashCode()
+    result = 31 * result + postIndexed.postIndex
+    result = 31 * result + showDivider.hashCode()
+    result = 31 * result + isPostHidden.hashCode()
+    result = 31 * result + (boardPage ?: -1)
+    result = 31 * result + renderParamsHash
+    return result
+  }
+
   private fun getBoardPages(
     chanDescriptor: ChanDescriptor,
     neverShowPages: Boolean,
@@ -390,8 +538,11 @@ class ThreadCellData(
   fun cleanup() {
     lazyCalculationJob?.cancel()
     lazyCalculationJob = null
+    commentLayoutPrecomputationJob?.cancel()
+    commentLayoutPrecomputationJob = null
 
     coroutineScope.cancelChildren()
+    commentLayoutCache.clear()
 
     postCellDataLazyList.forEach { postCellDataLazy ->
       if (postCellDataLazy.isInitialized) {
@@ -400,6 +551,7 @@ class ThreadCellData(
     }
 
     postCellDataLazyList.clear()
+    ++dataVersion
 
     lastSeenIndicatorPosition = -1
     defaultMarkedNo = null
@@ -475,6 +627,10 @@ class ThreadCellData(
     return postCellDataLazyList.get(getPostPosition(index)).getOrCalculate()
   }
 
+  fun getPostDescriptor(index: Int): PostDescriptor {
+    return postCellDataLazyList.get(getPostPosition(index)).postDescriptor
+  }
+
   fun getPostCellDataIndexes(postDescriptors: List<PostDescriptor>): IntRange? {
     if (postDescriptors.isEmpty()) {
       return null
@@ -576,7 +732,10 @@ class ThreadCellData(
     return postPosition
   }
 
-  private fun getLastSeenIndicatorPosition(chanDescriptor: ChanDescriptor?): Int? {
+  private fun getLastSeenIndicatorPosition(
+    chanDescriptor: ChanDescriptor?,
+    postCellDataLazyList: List<PostCellDataLazy>
+  ): Int? {
     if (chanDescriptor == null) {
       return null
     }
@@ -607,6 +766,7 @@ class ThreadCellData(
 
   class PostCellDataLazy(
     val post: ChanPost,
+    val contentHash: Int,
     private val lazyDataCalcFunc: kotlin.Lazy<PostCellData>
   ) {
     val postDescriptor: PostDescriptor
@@ -132,7 +132,7 @@ class PostImageThumbnailViewsContainer @JvmOverloads constructor(
       thumbnailView.setViewId(View.generateViewId())
       thumbnailView.bindActualThumbnailSizes(cellPostThumbnailSize, cellPostThumbnailSize)
 
-      thumbnailView.bindPostImage(postImage, true, ThumbnailView.ThumbnailViewOptions(drawRipple = false))
+      thumbnailView.bindPostImage(postImage, true, ThumbnailView.ThumbnailViewOptions(drawRipple = false, allowHardwareBitmap = true))
       thumbnailView.bindPostInfo(postCellData, postImage)
 
       if (postCellData.isSelectionMode) {
@@ -222,7 +222,7 @@ class PostImageThumbnailViewsContainer @JvmOverloads constructor(
 
     thumbnailView.bindActualThumbnailSizes(cellPostThumbnailSize, cellPostThumbnailSize)
     thumbnailView.setViewId(View.generateViewId())
-    thumbnailView.bindPostImage(postImage, true, ThumbnailView.ThumbnailViewOptions())
+    thumbnailView.bindPostImage(postImage, true, ThumbnailView.ThumbnailViewOptions(allowHardwareBitmap = true))
     thumbnailView.bindPostInfo(postCellData, postImage)
 
     if (postCellData.isSelectionMode) {
@@ -119,6 +119,20 @@ class LogsController(context: Context) : Controller(context) {
     fun loadLogs(): String? {
       val logMpv = ChanSettings.showMpvInternalLogs.get()
 
+      if (!logMpv) {
+        // mpv logs are only available in logcat
+        val logFileContent = try {
+          Logger.readLogFile(DEFAULT_LINES_COUNT)
+        } catch (e: IOException) {
+          Logger.e(TAG, "Error reading log file", e)
+          null
+        }
+
+        if (logFileContent != null) {
+          return logFileContent
+        }
+      }
+
       val process = try {
         ProcessBuilder().command(
           "logcat",
@@ -31,6 +31,7 @@ import com.github.k1rakishou.chan.core.manager.PostFilterManager
 import com.github.k1rakishou.chan.core.manager.PostHideManager
 import com.github.k1rakishou.chan.core.manager.PostHighlightManager
 import com.github.k1rakishou.chan.core.manager.SavedReplyManager
+import com.github.k1rakishou.chan.core.manager.SeenPostsManager
 import com.github.k1rakishou.chan.ui.adapter.PostAdapter
 import com.github.k1rakishou.chan.ui.adapter.PostRepliesAdapter
 import com.github.k1rakishou.chan.ui.cell.GenericPostCell
@@ -69,6 +70,8 @@ abstract class BasePostPopupController<T : PostPopupHelper.PostPopupData>(
   @Inject
   lateinit var postHideManager: Lazy<PostHideManager>
   @Inject
+  lateinit var seenPostsManager: Lazy<SeenPostsManager>
+  @Inject
   lateinit var postHideHelper: Lazy<PostHideHelper>
   @Inject
   lateinit var chanThreadManager: Lazy<ChanThreadManager>
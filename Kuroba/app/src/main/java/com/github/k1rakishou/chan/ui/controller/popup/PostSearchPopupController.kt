@@ -30,9 +30,13 @@ import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.data.post.ChanPostImage
+import com.github.k1rakishou.model.data.post.ChanPostSearchResult
 import com.github.k1rakishou.model.data.post.PostIndexed
+import com.github.k1rakishou.model.repository.ChanPostSearchRepository
+import com.github.k1rakishou.model.util.ChanPostSearchUtils
 import com.github.k1rakishou.model.util.ChanPostUtils
 import com.github.k1rakishou.persist_state.IndexAndTop
+import dagger.Lazy
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
@@ -40,6 +44,7 @@ import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import java.util.*
+import javax.inject.Inject
 
 class PostSearchPopupController(
   context: Context,
@@ -47,6 +52,10 @@ class PostSearchPopupController(
   postCellCallback: PostCellInterface.PostCellCallback,
   private var initialQuery: String? = null
 ) : BasePostPopupController<PostSearchPopupController.PostSearchPopupData>(context, postPopupHelper, postCellCallback) {
+
+  @Inject
+  lateinit var chanPostSearchRepository: Lazy<ChanPostSearchRepository>
+
   private val indexedPosts = mutableListOf<PostIndexed>()
   private var skipDebouncer = true
   private var scrollPositionRestored = false
@@ -183,6 +192,7 @@ class PostSearchPopupController(
       _savedReplyManager = savedReplyManager,
       _postFilterHighlightManager = postFilterHighlightManager,
       _postHideManager = postHideManager,
+      _seenPostsManager = seenPostsManager,
       initialTheme = themeEngine.chanTheme
     )
 
@@ -215,9 +225,20 @@ class PostSearchPopupController(
 
     val (width, _) = postsView.awaitUntilGloballyLaidOutAndGetSize(waitForWidth = true)
 
+    val searchResult = if (query.length >= MIN_QUERY_LENGTH) {
+      searchInDatabase(data.descriptor, query)
+    } else {
+      null
+    }
+
+    if (!isActive) {
+      return
+    }
+
     val resultPosts = withContext(Dispatchers.Default) {
       val searchQuery = query.toLowerCase(Locale.ENGLISH)
       val resultPosts = mutableListWithCap<ChanPost>(128)
+      val queryTokens = ChanPostSearchUtils.queryTokens(query)
 
       chanThreadManager.get().iteratePostsWhile(data.descriptor) { chanPost ->
         if (!isActive) {
@@ -229,7 +250,19 @@ class PostSearchPopupController(
           return@iteratePostsWhile true
         }
 
-        if (matchesQuery(chanPost, searchQuery)) {
+        val matches = when {
+          searchResult == null -> matchesQuery(chanPost, searchQuery)
+          // Post number is not indexed
+          chanPost.postDescriptor.postNo.toString().contains(searchQuery) -> true
+          searchResult.indexedPosts.contains(chanPost.postDescriptor) -> {
+            searchResult.matches.contains(chanPost.postDescriptor)
+          }
+          // Not persisted yet, match it with the same rule the full-text index uses so that the
+          // results don't depend on whether a post was already persisted or not.
+          else -> ChanPostSearchUtils.matchesQuery(chanPost, queryTokens)
+        }
+
+        if (matches) {
           resultPosts += chanPost.deepCopy()
           return@iteratePostsWhile true
         }
@@ -276,6 +309,29 @@ class PostSearchPopupController(
     }
   }
 
+  /**
+   * Searches posts that are already persisted in the database via the full-text index. Returns
+   * null if the index can't be used for this query, in this case all posts are searched linearly.
+   * */
+  private suspend fun searchInDatabase(chanDescriptor: ChanDescriptor, query: String): ChanPostSearchResult? {
+    val searchResult = when (chanDescriptor) {
+      is ChanDescriptor.ThreadDescriptor -> {
+        chanPostSearchRepository.get().searchThread(chanDescriptor, query)
+      }
+      is ChanDescriptor.CatalogDescriptor -> {
+        chanPostSearchRepository.get().searchCatalog(chanDescriptor, query)
+      }
+      is ChanDescriptor.CompositeCatalogDescriptor -> {
+        chanPostSearchRepository.get().searchCatalog(chanDescriptor, query)
+      }
+    }
+
+    return searchResult.safeUnwrap { error ->
+      Logger.e(TAG, "searchInDatabase(${chanDescriptor}) error", error)
+      return null
+    }
+  }
+
   private fun matchesQuery(chanPost: ChanPost, query: String): Boolean {
     if (chanPost.postComment.originalComment().contains(query, ignoreCase = true)) {
       return true
@@ -23,6 +23,7 @@ import android.graphics.BitmapFactory
 import android.graphics.Canvas
 import android.graphics.Paint
 import android.graphics.Rect
+import android.os.SystemClock
 import android.util.AttributeSet
 import android.view.Gravity
 import android.view.KeyEvent
@@ -42,10 +43,12 @@ import com.github.k1rakishou.chan.core.base.SerializedCoroutineExecutor
 import com.github.k1rakishou.chan.core.helper.ChanLoadProgressEvent
 import com.github.k1rakishou.chan.core.helper.ChanLoadProgressNotifier
 import com.github.k1rakishou.chan.core.helper.LastViewedPostNoInfoHolder
+import com.github.k1rakishou.chan.core.loader.OnDemandContentLoadScheduler.ListScrollState
 import com.github.k1rakishou.chan.core.manager.BottomNavBarVisibilityStateManager
 import com.github.k1rakishou.chan.core.manager.ChanThreadManager
 import com.github.k1rakishou.chan.core.manager.ChanThreadViewableInfoManager
 import com.github.k1rakishou.chan.core.manager.GlobalWindowInsetsManager
+import com.github.k1rakishou.chan.core.manager.OnDemandContentLoaderManager
 import com.github.k1rakishou.chan.core.manager.PostHighlightManager
 import com.github.k1rakishou.chan.core.presenter.ThreadPresenter
 import com.github.k1rakishou.chan.core.usecase.ExtractPostMapInfoHolderUseCase
@@ -78,6 +81,7 @@ import com.github.k1rakishou.chan.utils.TimeUtils
 import com.github.k1rakishou.chan.utils.ViewUtils.hackMaxFlingVelocity
 import com.github.k1rakishou.chan.utils.setBackgroundColorFast
 import com.github.k1rakishou.common.AndroidUtils
+import com.github.k1rakishou.common.hashSetWithCap
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.core_themes.ThemeEngine
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
@@ -100,6 +104,7 @@ import kotlinx.coroutines.runBlocking
 import java.util.*
 import javax.inject.Inject
 import kotlin.coroutines.CoroutineContext
+import kotlin.math.abs
 import kotlin.math.max
 import kotlin.math.roundToInt
 import kotlin.time.Duration
@@ -139,6 +144,8 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
   lateinit var _chanLoadProgressNotifier: Lazy<ChanLoadProgressNotifier>
   @Inject
   lateinit var _postHighlightManager: Lazy<PostHighlightManager>
+  @Inject
+  lateinit var _onDemandContentLoaderManager: Lazy<OnDemandContentLoaderManager>
 
   private val themeEngine: ThemeEngine
     get() = _themeEngine.get()
@@ -160,6 +167,8 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
     get() = _chanLoadProgressNotifier.get()
   private val postHighlightManager: PostHighlightManager
     get() = _postHighlightManager.get()
+  private val onDemandContentLoaderManager: OnDemandContentLoaderManager
+    get() = _onDemandContentLoaderManager.get()
 
   private val chan4BirthdayDecoration = object : ItemDecoration() {
     private val paint by lazy {
@@ -232,9 +241,17 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
   private val scrollListener: RecyclerView.OnScrollListener = object : RecyclerView.OnScrollListener() {
     override fun onScrollStateChanged(recyclerView: RecyclerView, newState: Int) {
       if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+        lastScrolledAt = 0L
+        onDemandContentLoaderManager.onListScrollStateChanged(ListScrollState.Idle)
+        updateVisiblePostsForContentLoading()
+
         onRecyclerViewScrolled()
       }
     }
+
+    override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
+      onRecyclerViewScrolledForContentLoading(recyclerView, dy)
+    }
   }
 
   val replyPresenter: ReplyPresenter
@@ -363,6 +380,8 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
   private var boardPostViewMode: BoardPostViewMode? = null
   private var spanCount = 2
   private var prevLastPostNo = 0L
+  private var lastScrolledAt = 0L
+  private var lastVisiblePosts: Set<PostDescriptor> = emptySet()
 
   var replyOpen = false
     private set
@@ -997,9 +1016,56 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
     openReply(false)
 
     prevLastPostNo = 0
+    lastScrolledAt = 0L
+    lastVisiblePosts = emptySet()
+    // The list may be destroyed mid-fling, the loaders would stay paused until the next scroll
+    onDemandContentLoaderManager.onListScrollStateChanged(ListScrollState.Idle)
     noParty()
   }
 
+  private fun onRecyclerViewScrolledForContentLoading(recyclerView: RecyclerView, dy: Int) {
+    val now = SystemClock.uptimeMillis()
+    val elapsed = now - lastScrolledAt
+    lastScrolledAt = now
+
+    if (recyclerView.scrollState != RecyclerView.SCROLL_STATE_IDLE && elapsed in 1..MAX_SCROLL_EVENTS_INTERVAL_MS) {
+      val velocityPxPerSecond = abs(dy) * 1000f / elapsed
+
+      val listScrollState = if (velocityPxPerSecond > dp(FLING_VELOCITY_DP_PER_SECOND)) {
+        ListScrollState.Flinging
+      } else {
+        ListScrollState.Scrolling
+      }
+
+      onDemandContentLoaderManager.onListScrollStateChanged(listScrollState)
+    }
+
+    updateVisiblePostsForContentLoading()
+  }
+
+  private fun updateVisiblePostsForContentLoading() {
+    val chanDescriptor = currentChanDescriptorOrNull()
+      ?: return
+    val layoutManager = recyclerView.layoutManager
+      ?: return
+
+    val visiblePosts = hashSetWithCap<PostDescriptor>(layoutManager.childCount)
+
+    for (i in 0 until layoutManager.childCount) {
+      val view = layoutManager.getChildAt(i) as? GenericPostCell
+        ?: continue
+
+      view.getPost()?.postDescriptor?.let { postDescriptor -> visiblePosts += postDescriptor }
+    }
+
+    if (visiblePosts == lastVisiblePosts) {
+      return
+    }
+
+    lastVisiblePosts = visiblePosts
+    onDemandContentLoaderManager.onVisiblePostsChanged(chanDescriptor, visiblePosts)
+  }
+
   fun getThumbnail(postImage: ChanPostImage?): ThumbnailView? {
     val layoutManager = recyclerView.layoutManager
       ?: return null
@@ -1152,6 +1218,7 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
           }
 
           val params = ExtractPostMapInfoHolderUseCase.Params(
+            chanDescriptor = chanDescriptor,
             postDescriptors = postDescriptors,
             isViewingThread = false
           )
@@ -1170,6 +1237,7 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
           }
 
           val params = ExtractPostMapInfoHolderUseCase.Params(
+            chanDescriptor = chanDescriptor,
             postDescriptors = chanThread.getPostDescriptors(),
             isViewingThread = true
           )
@@ -1202,6 +1270,9 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
   }
 
   override fun onDragStarted() {
+    // Fast scroller moves the list way too fast to load anything
+    onDemandContentLoaderManager.onListScrollStateChanged(ListScrollState.Flinging)
+
     if (!canToolbarCollapse() || replyOpen) {
       return
     }
@@ -1216,6 +1287,8 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
   override fun onDragEnded() {
     // Fast scroller does not trigger RecyclerView's onScrollStateChanged() so we need to call it
     //  manually after we are down scrolling via Fast scroller.
+    onDemandContentLoaderManager.onListScrollStateChanged(ListScrollState.Idle)
+    updateVisiblePostsForContentLoading()
     onRecyclerViewScrolled()
 
     if (!canToolbarCollapse() || replyOpen) {
@@ -1409,5 +1482,9 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
   companion object {
     private const val TAG = "ThreadListLayout"
     private val SCROLL_OFFSET = dp(128f)
+
+    // Scroll events that are further apart than this are not used to calculate the scroll speed
+    private const val MAX_SCROLL_EVENTS_INTERVAL_MS = 100L
+    private const val FLING_VELOCITY_DP_PER_SECOND = 3000f
   }
 }
\ No newline at end of file
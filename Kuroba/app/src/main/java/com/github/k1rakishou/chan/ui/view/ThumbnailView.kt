@@ -400,7 +400,8 @@ open class ThumbnailView : AppCompatImageView, ThemeEngine.ThemeChangesListener
         imageSize = imageSize,
         transformations = emptyList(),
         listener = listener,
-        postDescriptor = postDescriptor
+        postDescriptor = postDescriptor,
+        allowHardwareBitmap = thumbnailViewOptions.allowHardwareBitmap
       )
     }
 
@@ -446,7 +447,11 @@ open class ThumbnailView : AppCompatImageView, ThemeEngine.ThemeChangesListener
   class ThumbnailViewOptions(
     val postThumbnailScaling: ChanSettings.PostThumbnailScaling = ChanSettings.postThumbnailScaling.get(),
     val drawThumbnailBackground: Boolean = ChanSettings.drawPostThumbnailBackground.get(),
-    val drawRipple: Boolean = true
+    val drawRipple: Boolean = true,
+    /**
+     * Only for the views that never read the bitmap back (post cells).
+     * */
+    val allowHardwareBitmap: Boolean = false
   )
 
   companion object {
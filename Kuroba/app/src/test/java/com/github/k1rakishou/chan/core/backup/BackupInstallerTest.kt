@@ -0,0 +1,103 @@
+package com.github.k1rakishou.chan.core.backup
+
+import android.app.Application
+import com.google.gson.Gson
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import junit.framework.Assert.fail
+import kotlinx.coroutines.runBlocking
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+import java.io.IOException
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = Application::class)
+class BackupInstallerTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val gson = Gson()
+  private var closeDatabaseCalls = 0
+
+  @Test
+  fun `files are installed after the database is closed`() = runBlocking {
+    val outputDir = temporaryFolder.newFolder("output")
+    val stagedBackup = stagedBackup(mapOf("main_prefs.xml" to "<map />", "theme.json" to "{}"))
+
+    backupInstaller(outputDir).install(stagedBackup)
+
+    assertEquals(1, closeDatabaseCalls)
+    assertEquals("<map />", File(outputDir, "main_prefs.xml").readText())
+    assertEquals("{}", File(outputDir, "theme.json").readText())
+  }
+
+  @Test
+  fun `failing to install a file after the database was closed requires a restart`() = runBlocking {
+    val outputDir = temporaryFolder.newFolder("output")
+    // The parent directory of the second file can't be created since there is a file with that name
+    File(outputDir, "thread_downloads").writeText("not a directory")
+
+    val stagedBackup = stagedBackup(mapOf("main_prefs.xml" to "<map />", "thread_downloads/1.json" to "{}"))
+
+    try {
+      backupInstaller(outputDir).install(stagedBackup)
+      fail("Install must fail")
+    } catch (error: BackupInstaller.DatabaseClosedException) {
+      assertTrue(error.cause is IllegalStateException)
+    }
+
+    assertEquals(1, closeDatabaseCalls)
+  }
+
+  @Test
+  fun `failing before the database is closed does not require a restart`() = runBlocking {
+    val outputDir = temporaryFolder.newFolder("output")
+    val backupManifest = BackupManifest(
+      formatVersion = BackupManifest.FORMAT_VERSION,
+      backupId = "incremental",
+      parentBackupId = "never_imported",
+      createdAt = 0L,
+      appVersionCode = 1,
+      files = emptyList(),
+      databases = emptyList()
+    )
+
+    try {
+      backupInstaller(outputDir).install(BackupReader.StagedBackup(backupManifest, emptyMap()))
+      fail("Install must fail")
+    } catch (error: IOException) {
+      assertFalse(error is BackupInstaller.DatabaseClosedException)
+    }
+
+    assertEquals(0, closeDatabaseCalls)
+  }
+
+  private fun backupInstaller(outputDir: File): BackupInstaller {
+    return BackupInstaller(
+      gson = gson,
+      databaseSnapshotter = DatabaseSnapshotter(),
+      lastBackupManifestFile = File(temporaryFolder.root, "last_backup_manifest.json"),
+      getDatabasePath = { databaseName -> File(outputDir, databaseName) },
+      resolveOutputFile = { entryName -> File(outputDir, entryName) },
+      closeDatabase = { ++closeDatabaseCalls }
+    )
+  }
+
+  private fun stagedBackup(entries: Map<String, String>): BackupReader.StagedBackup {
+    val stagingDir = temporaryFolder.newFolder("staging")
+
+    val stagedFiles = entries.mapValues { (entryName, content) ->
+      File(stagingDir, entryName.replace('/', '_')).apply { writeText(content) }
+    }
+
+    return BackupReader.StagedBackup(manifest = null, stagedFiles = stagedFiles)
+  }
+
+}
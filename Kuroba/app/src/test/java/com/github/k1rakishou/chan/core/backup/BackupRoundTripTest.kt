@@ -0,0 +1,372 @@
+package com.github.k1rakishou.chan.core.backup
+
+import android.app.Application
+import android.database.DatabaseUtils
+import android.database.sqlite.SQLiteDatabase
+import com.google.gson.Gson
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNotNull
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import junit.framework.Assert.fail
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.util.zip.ZipEntry
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = Application::class)
+class BackupRoundTripTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val gson = Gson()
+  private val databaseSnapshotter = DatabaseSnapshotter()
+  private val backupWriter = BackupWriter(databaseSnapshotter, gson)
+  private val backupReader = BackupReader(gson)
+
+  @Test
+  fun `full backup round trip`() {
+    val databaseFile = createDatabase("source", postsCount = 5000)
+    val prefsFile = createFile("source", "main_prefs.xml", "<map><boolean name=\"a\" value=\"true\" /></map>")
+
+    val progress = mutableListOf<BackupProgress>()
+    val (archive, manifest) = export(databaseFile, prefsFile, previousManifest = null) { backupProgress ->
+      progress += backupProgress
+    }
+
+    assertFalse(manifest.isIncremental)
+    assertEquals(100, progress.last().percent)
+
+    val databaseEntry = manifest.databases.single()
+    assertTrue(databaseEntry.isFullSnapshot)
+    assertEquals(DATABASE_VERSION, databaseEntry.userVersion)
+    assertEquals(setOf(POSTS, THREADS, SQLITE_SEQUENCE), databaseEntry.includedTables.toSet())
+    assertTrue(manifest.files.single().included)
+
+    // The manifest is the last entry
+    assertEquals(BackupManifest.ENTRY_NAME, entryNames(archive).last())
+
+    val stagedBackup = stage(archive, "staging")
+    assertEquals(manifest.backupId, stagedBackup.manifest!!.backupId)
+
+    val restoredDatabaseFile = stagedBackup.stagedFiles.getValue(DATABASE_NAME)
+    assertEquals(databaseSnapshotter.readTableHashes(databaseFile), databaseSnapshotter.readTableHashes(restoredDatabaseFile))
+    assertEquals(5000L, countRows(restoredDatabaseFile, POSTS))
+    assertEquals(prefsFile.readText(), stagedBackup.stagedFiles.getValue(prefsFile.name).readText())
+  }
+
+  @Test
+  fun `incremental backup only contains changed tables and files`() {
+    val databaseFile = createDatabase("source", postsCount = 2000)
+    val prefsFile = createFile("source", "main_prefs.xml", "<map />")
+
+    val (fullArchive, fullManifest) = export(databaseFile, prefsFile, previousManifest = null)
+
+    // Restore the full backup somewhere else
+    val restoredDatabaseFile = File(temporaryFolder.newFolder("restored"), DATABASE_NAME)
+    stage(fullArchive, "staging_full").stagedFiles.getValue(DATABASE_NAME).copyTo(restoredDatabaseFile)
+
+    // Only the posts change
+    openDatabase(databaseFile).use { database ->
+      insertPosts(database, threadId = 1, fromPostNo = 100_000, count = 10)
+      database.execSQL("UPDATE $POSTS SET comment = 'edited' WHERE post_no = 5")
+    }
+
+    val (incrementalArchive, incrementalManifest) = export(databaseFile, prefsFile, previousManifest = fullManifest)
+
+    assertTrue(incrementalManifest.isIncremental)
+    assertEquals(fullManifest.backupId, incrementalManifest.parentBackupId)
+
+    val databaseEntry = incrementalManifest.databases.single()
+    assertFalse(databaseEntry.isFullSnapshot)
+    assertEquals(listOf(POSTS), databaseEntry.includedTables)
+
+    // The unchanged file is still listed but not archived
+    assertFalse(incrementalManifest.files.single().included)
+    assertEquals(
+      listOf(DATABASE_NAME + BackupManifest.INCREMENTAL_DATABASE_SUFFIX, BackupManifest.ENTRY_NAME),
+      entryNames(incrementalArchive)
+    )
+
+    val stagedBackup = stage(incrementalArchive, "staging_incremental")
+    val stagedDatabaseFile = stagedBackup.stagedFiles.getValue(databaseEntry.entryName!!)
+
+    databaseSnapshotter.applyTables(restoredDatabaseFile, stagedDatabaseFile, databaseEntry.includedTables)
+
+    assertEquals(databaseSnapshotter.readTableHashes(databaseFile), databaseSnapshotter.readTableHashes(restoredDatabaseFile))
+    assertEquals(2010L, countRows(restoredDatabaseFile, POSTS))
+  }
+
+  @Test
+  fun `nothing changed since the previous backup`() {
+    val databaseFile = createDatabase("source", postsCount = 100)
+    val prefsFile = createFile("source", "main_prefs.xml", "<map />")
+
+    val (_, fullManifest) = export(databaseFile, prefsFile, previousManifest = null)
+    val (archive, manifest) = export(databaseFile, prefsFile, previousManifest = fullManifest)
+
+    assertNull(manifest.databases.single().entryName)
+    assertTrue(manifest.databases.single().includedTables.isEmpty())
+    assertEquals(listOf(BackupManifest.ENTRY_NAME), entryNames(archive))
+
+    val stagedBackup = stage(archive, "staging")
+    assertTrue(stagedBackup.stagedFiles.isEmpty())
+  }
+
+  @Test
+  fun `schema change makes an incremental backup include the whole database`() {
+    val databaseFile = createDatabase("source", postsCount = 100)
+    val prefsFile = createFile("source", "main_prefs.xml", "<map />")
+
+    val (_, fullManifest) = export(databaseFile, prefsFile, previousManifest = null)
+
+    openDatabase(databaseFile).use { database ->
+      database.execSQL("ALTER TABLE $THREADS ADD COLUMN archived INTEGER NOT NULL DEFAULT 0")
+      database.version = DATABASE_VERSION + 1
+    }
+
+    val (_, manifest) = export(databaseFile, prefsFile, previousManifest = fullManifest)
+
+    val databaseEntry = manifest.databases.single()
+    assertTrue(databaseEntry.isFullSnapshot)
+    assertEquals(DATABASE_VERSION + 1, databaseEntry.userVersion)
+  }
+
+  @Test
+  fun `corrupted entry is detected`() {
+    val databaseFile = createDatabase("source", postsCount = 100)
+    val prefsFile = createFile("source", "main_prefs.xml", "<map />")
+
+    val (archive, _) = export(databaseFile, prefsFile, previousManifest = null)
+
+    // Re-pack the archive with a modified file but the original manifest
+    val tamperedArchive = repack(archive) { entryName, bytes ->
+      if (entryName == prefsFile.name) "<map><int name=\"b\" value=\"1\" /></map>".toByteArray() else bytes
+    }
+
+    assertStagingFails(tamperedArchive)
+  }
+
+  @Test
+  fun `missing entry is detected`() {
+    val databaseFile = createDatabase("source", postsCount = 100)
+    val prefsFile = createFile("source", "main_prefs.xml", "<map />")
+
+    val (archive, _) = export(databaseFile, prefsFile, previousManifest = null)
+    val truncatedArchive = repack(archive) { entryName, bytes -> if (entryName == DATABASE_NAME) null else bytes }
+
+    assertStagingFails(truncatedArchive)
+  }
+
+  @Test
+  fun `legacy backups without manifest are staged as is`() {
+    val archive = zip(mapOf(DATABASE_NAME to "db".toByteArray(), "main_prefs.xml" to "<map />".toByteArray()))
+    val stagedBackup = stage(archive, "staging")
+
+    assertNull(stagedBackup.manifest)
+    assertEquals(setOf(DATABASE_NAME, "main_prefs.xml"), stagedBackup.stagedFiles.keys)
+  }
+
+  @Test
+  fun `entries escaping the staging directory are rejected`() {
+    val archive = zip(mapOf("../../evil.xml" to "<map />".toByteArray()))
+    assertStagingFails(archive)
+
+    assertFalse(File(temporaryFolder.root, "evil.xml").exists())
+  }
+
+  @Test
+  fun `snapshot is independent of the source database`() {
+    val databaseFile = createDatabase("source", postsCount = 100)
+    val snapshotFile = File(temporaryFolder.newFolder("snapshot"), DATABASE_NAME)
+
+    databaseSnapshotter.createSnapshot(databaseFile, snapshotFile)
+
+    openDatabase(databaseFile).use { database -> insertPosts(database, threadId = 1, fromPostNo = 1000, count = 10) }
+
+    assertEquals(100L, countRows(snapshotFile, POSTS))
+    assertEquals(110L, countRows(databaseFile, POSTS))
+    assertFalse(File(snapshotFile.path + "-wal").exists())
+    assertFalse(File(snapshotFile.path + "-journal").exists())
+  }
+
+  private fun export(
+    databaseFile: File,
+    prefsFile: File,
+    previousManifest: BackupManifest?,
+    onProgress: (BackupProgress) -> Unit = {}
+  ): Pair<ByteArray, BackupManifest> {
+    val outputStream = ByteArrayOutputStream()
+    val workDir = File(temporaryFolder.root, "work").apply { mkdirs() }
+
+    val backupManifest = backupWriter.write(
+      outputStream = outputStream,
+      sources = listOf(
+        BackupWriter.BackupSource.Database(DATABASE_NAME, databaseFile),
+        BackupWriter.BackupSource.RegularFile(prefsFile.name, prefsFile)
+      ),
+      previousManifest = previousManifest,
+      workDir = workDir,
+      appVersionCode = 1,
+      onProgress = onProgress
+    )
+
+    // Snapshots are removed
+    assertTrue(workDir.listFiles()!!.isEmpty())
+
+    return Pair(outputStream.toByteArray(), backupManifest)
+  }
+
+  private fun stage(archive: ByteArray, stagingDirName: String): BackupReader.StagedBackup {
+    return backupReader.stage(
+      inputStream = ByteArrayInputStream(archive),
+      stagingDir = temporaryFolder.newFolder(stagingDirName),
+      totalBytes = archive.size.toLong(),
+      onProgress = {}
+    )
+  }
+
+  private fun assertStagingFails(archive: ByteArray) {
+    try {
+      stage(archive, "staging_failing")
+      fail("Staging must fail")
+    } catch (error: IOException) {
+      assertNotNull(error.message)
+    }
+  }
+
+  private fun createDatabase(dirName: String, postsCount: Int): File {
+    val databaseFile = File(temporaryFolder.newFolder(dirName), DATABASE_NAME)
+
+    openDatabase(databaseFile).use { database ->
+      database.version = DATABASE_VERSION
+      database.execSQL("CREATE TABLE $THREADS (id INTEGER PRIMARY KEY AUTOINCREMENT, board TEXT NOT NULL, thread_no INTEGER NOT NULL)")
+      database.execSQL(
+        "CREATE TABLE $POSTS (post_no INTEGER PRIMARY KEY, thread_id INTEGER NOT NULL, " +
+          "comment TEXT, score REAL, thumbnail BLOB)"
+      )
+      database.execSQL("CREATE INDEX posts_thread_id_idx ON $POSTS (thread_id)")
+
+      database.execSQL("INSERT INTO $THREADS (board, thread_no) VALUES ('g', 1)")
+      database.execSQL("INSERT INTO $THREADS (board, thread_no) VALUES ('a', 2)")
+
+      insertPosts(database, threadId = 1, fromPostNo = 1, count = postsCount)
+    }
+
+    return databaseFile
+  }
+
+  private fun insertPosts(database: SQLiteDatabase, threadId: Long, fromPostNo: Long, count: Int) {
+    database.beginTransaction()
+
+    try {
+      val statement = database.compileStatement(
+        "INSERT INTO $POSTS (post_no, thread_id, comment, score, thumbnail) VALUES (?, ?, ?, ?, ?)"
+      )
+
+      for (index in 0 until count) {
+        val postNo = fromPostNo + index
+
+        statement.clearBindings()
+        statement.bindLong(1, postNo)
+        statement.bindLong(2, threadId)
+        statement.bindString(3, "Post comment number $postNo ".repeat(5))
+        statement.bindDouble(4, postNo / 3.0)
+
+        if (postNo % 10 == 0L) {
+          statement.bindNull(5)
+        } else {
+          statement.bindBlob(5, ByteArray(16) { byteIndex -> (postNo + byteIndex).toByte() })
+        }
+
+        statement.executeInsert()
+      }
+
+      database.setTransactionSuccessful()
+    } finally {
+      database.endTransaction()
+    }
+  }
+
+  private fun countRows(databaseFile: File, table: String): Long {
+    return openDatabase(databaseFile).use { database -> DatabaseUtils.queryNumEntries(database, table) }
+  }
+
+  private fun openDatabase(databaseFile: File): SQLiteDatabase {
+    return SQLiteDatabase.openOrCreateDatabase(databaseFile, null)
+  }
+
+  private fun createFile(dirName: String, fileName: String, content: String): File {
+    val dir = File(temporaryFolder.root, dirName).apply { mkdirs() }
+    return File(dir, fileName).apply { writeText(content) }
+  }
+
+  private fun entryNames(archive: ByteArray): List<String> {
+    val entryNames = mutableListOf<String>()
+
+    ZipInputStream(ByteArrayInputStream(archive)).use { zipInputStream ->
+      while (true) {
+        val zipEntry = zipInputStream.nextEntry
+          ?: break
+
+        entryNames += zipEntry.name
+      }
+    }
+
+    return entryNames
+  }
+
+  private fun repack(archive: ByteArray, transform: (String, ByteArray) -> ByteArray?): ByteArray {
+    val entries = linkedMapOf<String, ByteArray>()
+
+    ZipInputStream(ByteArrayInputStream(archive)).use { zipInputStream ->
+      while (true) {
+        val zipEntry = zipInputStream.nextEntry
+          ?: break
+
+        val bytes = transform(zipEntry.name, zipInputStream.readBytes())
+          ?: continue
+
+        entries[zipEntry.name] = bytes
+      }
+    }
+
+    return zip(entries)
+  }
+
+  private fun zip(entries: Map<String, ByteArray>): ByteArray {
+    val outputStream = ByteArrayOutputStream()
+
+    ZipOutputStream(outputStream).use { zipOutputStream ->
+      entries.forEach { (entryName, bytes) ->
+        zipOutputStream.putNextEntry(ZipEntry(entryName))
+        zipOutputStream.write(bytes)
+        zipOutputStream.closeEntry()
+      }
+    }
+
+    return outputStream.toByteArray()
+  }
+
+  companion object {
+    private const val DATABASE_NAME = "Kuroba.db"
+    private const val DATABASE_VERSION = 7
+
+    private const val THREADS = "threads"
+    private const val POSTS = "posts"
+    private const val SQLITE_SEQUENCE = "sqlite_sequence"
+  }
+
+}
@@ -0,0 +1,186 @@
+package com.github.k1rakishou.chan.core.base.okhttp
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.Dns
+import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class BaseOkHttpClientTest {
+  private val server = MockWebServer()
+
+  @Before
+  fun setUp() {
+    server.dispatcher = object : Dispatcher() {
+      override fun dispatch(request: RecordedRequest): MockResponse {
+        if (request.path!!.startsWith("/missing")) {
+          return MockResponse().setResponseCode(404).setBody("not found")
+        }
+
+        val response = MockResponse().setBody("ok")
+
+        if (request.path!!.startsWith("/background")) {
+          response.setHeadersDelay(BACKGROUND_RESPONSE_DELAY_MS, TimeUnit.MILLISECONDS)
+        }
+
+        return response
+      }
+    }
+
+    server.start()
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+  }
+
+  @Test
+  fun `clients derived from the base client reuse each other's connections`() {
+    val baseClient = BaseOkHttpClient.createBaseClient(listOf(Protocol.HTTP_1_1)) { Dns.SYSTEM }
+    val gate = RequestPriorityGate()
+
+    val proxiedClient = baseClient.newBuilder()
+      .readTimeout(30, TimeUnit.SECONDS)
+      .addInterceptor(RequestPriorityInterceptor(gate, RequestPriority.Interactive))
+      .build()
+
+    val downloaderClient = baseClient.newBuilder()
+      .readTimeout(5, TimeUnit.SECONDS)
+      .addInterceptor(RequestPriorityInterceptor(gate, RequestPriority.FullMedia))
+      .build()
+
+    execute(proxiedClient, "/thread")
+    execute(downloaderClient, "/image")
+    execute(proxiedClient, "/catalog")
+
+    assertEquals(0, server.takeRequest().sequenceNumber)
+    assertEquals(1, server.takeRequest().sequenceNumber)
+    assertEquals(2, server.takeRequest().sequenceNumber)
+    assertEquals(1, baseClient.connectionPool.connectionCount())
+  }
+
+  @Test
+  fun `separately built clients do not share connections`() {
+    execute(OkHttpClient(), "/thread")
+    execute(OkHttpClient(), "/image")
+
+    assertEquals(0, server.takeRequest().sequenceNumber)
+    assertEquals(0, server.takeRequest().sequenceNumber)
+  }
+
+  @Test
+  fun `interactive request overtakes queued background downloads`() {
+    val gate = RequestPriorityGate(maxRequestsPerHost = 2, reservedForHighPriority = 1)
+
+    val client = BaseOkHttpClient.createBaseClient(listOf(Protocol.HTTP_1_1)) { Dns.SYSTEM }
+      .newBuilder()
+      .addInterceptor(RequestPriorityInterceptor(gate, RequestPriority.Background))
+      .build()
+
+    val completedBackgroundDownloads = AtomicInteger(0)
+    val allDownloadsCompleted = CountDownLatch(BACKGROUND_DOWNLOADS_COUNT)
+
+    repeat(BACKGROUND_DOWNLOADS_COUNT) { index ->
+      client.newCall(request("/background/$index")).enqueue(object : Callback {
+        override fun onFailure(call: Call, e: IOException) {
+          allDownloadsCompleted.countDown()
+        }
+
+        override fun onResponse(call: Call, response: Response) {
+          response.use { it.body!!.string() }
+          completedBackgroundDownloads.incrementAndGet()
+          allDownloadsCompleted.countDown()
+        }
+      })
+    }
+
+    // Let the background downloads occupy their slot and queue up
+    Thread.sleep(BACKGROUND_RESPONSE_DELAY_MS / 2)
+
+    val interactiveRequest = Request.Builder()
+      .url(server.url("/thread"))
+      .priority(RequestPriority.Interactive)
+      .build()
+
+    val start = System.currentTimeMillis()
+    client.newCall(interactiveRequest).execute().use { response -> assertEquals("ok", response.body!!.string()) }
+    val interactiveDuration = System.currentTimeMillis() - start
+
+    val completedBeforeInteractive = completedBackgroundDownloads.get()
+
+    // Without the gate the interactive request would have to wait for the whole queue
+    assertTrue(
+      "interactiveDuration=$interactiveDuration",
+      interactiveDuration < BACKGROUND_RESPONSE_DELAY_MS
+    )
+    assertTrue(
+      "completedBeforeInteractive=$completedBeforeInteractive",
+      completedBeforeInteractive <= 1
+    )
+
+    assertTrue(allDownloadsCompleted.await(30, TimeUnit.SECONDS))
+    assertEquals(BACKGROUND_DOWNLOADS_COUNT, completedBackgroundDownloads.get())
+  }
+
+  @Test
+  fun `error and HEAD responses that are never closed do not hold request slots`() {
+    val gate = RequestPriorityGate(maxRequestsPerHost = 2, reservedForHighPriority = 0, maxWaitMs = 5_000)
+
+    val client = BaseOkHttpClient.createBaseClient(listOf(Protocol.HTTP_1_1)) { Dns.SYSTEM }
+      .newBuilder()
+      .addInterceptor(RequestPriorityInterceptor(gate, RequestPriority.Background))
+      .build()
+
+    // Way more than the host limit, none of the responses are closed
+    repeat(10) { index ->
+      val response = client.newCall(request("/missing/$index")).execute()
+      assertEquals(404, response.code)
+    }
+
+    repeat(10) { index ->
+      val headRequest = Request.Builder()
+        .url(server.url("/head/$index"))
+        .head()
+        .build()
+
+      assertEquals(200, client.newCall(headRequest).execute().code)
+    }
+
+    execute(client, "/image")
+  }
+
+  private fun execute(okHttpClient: OkHttpClient, path: String) {
+    okHttpClient.newCall(request(path)).execute().use { response ->
+      assertEquals("ok", response.body!!.string())
+    }
+  }
+
+  private fun request(path: String): Request {
+    return Request.Builder()
+      .url(server.url(path))
+      .get()
+      .build()
+  }
+
+  companion object {
+    private const val BACKGROUND_RESPONSE_DELAY_MS = 500L
+    private const val BACKGROUND_DOWNLOADS_COUNT = 10
+  }
+
+}
@@ -0,0 +1,199 @@
+package com.github.k1rakishou.chan.core.base.okhttp
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import junit.framework.Assert.fail
+import org.junit.Test
+import java.io.InterruptedIOException
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.concurrent.thread
+
+class RequestPriorityGateTest {
+
+  @Test
+  fun `waiting requests are started in the priority order`() {
+    val gate = RequestPriorityGate(maxRequestsPerHost = 1, reservedForHighPriority = 0)
+    val blockingPermit = gate.acquire(HOST, RequestPriority.FullMedia)
+
+    val started = Collections.synchronizedList(mutableListOf<RequestPriority>())
+    val priorities = listOf(
+      RequestPriority.FullMedia,
+      RequestPriority.VisibleThumbnail,
+      RequestPriority.FullMedia,
+      RequestPriority.Interactive
+    )
+
+    val threads = priorities.map { requestPriority ->
+      val thread = thread(isDaemon = true) {
+        val permit = gate.acquire(HOST, requestPriority)
+        started += requestPriority
+        permit.release()
+      }
+
+      // Make sure the requests are queued in the order of the list
+      Thread.sleep(50)
+      thread
+    }
+
+    assertTrue(started.isEmpty())
+
+    blockingPermit.release()
+    threads.forEach { thread -> thread.join(TimeUnit.SECONDS.toMillis(5)) }
+
+    assertEquals(priorities.sorted(), started.toList())
+  }
+
+  @Test
+  fun `low priority requests can't take the reserved slots`() {
+    val gate = RequestPriorityGate(maxRequestsPerHost = 3, reservedForHighPriority = 2)
+    gate.acquire(HOST, RequestPriority.FullMedia)
+
+    val secondStarted = CountDownLatch(1)
+    val secondThread = thread(isDaemon = true) {
+      // Interrupted at the end of the test
+      runCatching { gate.acquire(HOST, RequestPriority.FullMedia) }
+        .onSuccess { secondStarted.countDown() }
+    }
+
+    assertFalse(secondStarted.await(200, TimeUnit.MILLISECONDS))
+
+    // The reserved slots are still available for the high priority requests
+    val interactiveStarted = CountDownLatch(1)
+    thread(isDaemon = true) {
+      gate.acquire(HOST, RequestPriority.Interactive)
+      interactiveStarted.countDown()
+    }
+
+    assertTrue(interactiveStarted.await(5, TimeUnit.SECONDS))
+    secondThread.interrupt()
+  }
+
+  @Test
+  fun `low priority requests wait for pending interactive requests of other hosts`() {
+    val gate = RequestPriorityGate(maxRequestsPerHost = 1, reservedForHighPriority = 0)
+    val interactivePermit = gate.acquire(HOST, RequestPriority.Interactive)
+
+    val backgroundStarted = CountDownLatch(1)
+    thread(isDaemon = true) {
+      gate.acquire(OTHER_HOST, RequestPriority.Background)
+      backgroundStarted.countDown()
+    }
+
+    assertFalse(backgroundStarted.await(200, TimeUnit.MILLISECONDS))
+
+    // Requests that are not low priority are not deferred
+    gate.acquire(THIRD_HOST, RequestPriority.FullMedia).release()
+    assertFalse(backgroundStarted.await(200, TimeUnit.MILLISECONDS))
+
+    interactivePermit.onResponseStarted()
+    assertTrue(backgroundStarted.await(5, TimeUnit.SECONDS))
+  }
+
+  @Test
+  fun `waiting request sees its priority change`() {
+    val gate = RequestPriorityGate(maxRequestsPerHost = 1, reservedForHighPriority = 0)
+    gate.acquire(HOST, RequestPriority.Interactive)
+
+    val requestPriority = AtomicReference(RequestPriority.Prefetch)
+    val startedLatch = CountDownLatch(1)
+    thread(isDaemon = true) {
+      gate.acquire(OTHER_HOST, requestPriority.get(), currentPriority = { requestPriority.get() })
+      startedLatch.countDown()
+    }
+
+    assertFalse(startedLatch.await(200, TimeUnit.MILLISECONDS))
+
+    // Upgraded prefetch doesn't have to wait for the pending interactive request anymore
+    requestPriority.set(RequestPriority.FullMedia)
+    assertTrue(startedLatch.await(5, TimeUnit.SECONDS))
+  }
+
+  @Test
+  fun `multiplexed hosts get a bigger limit`() {
+    val gate = RequestPriorityGate(maxRequestsPerHost = 1, maxRequestsPerMultiplexedHost = 4, reservedForHighPriority = 0)
+    gate.acquire(HOST, RequestPriority.FullMedia)
+
+    val startedLatch = CountDownLatch(3)
+    repeat(3) {
+      thread(isDaemon = true) {
+        gate.acquire(HOST, RequestPriority.FullMedia)
+        startedLatch.countDown()
+      }
+    }
+
+    assertFalse(startedLatch.await(200, TimeUnit.MILLISECONDS))
+
+    gate.onProtocolKnown(HOST, isMultiplexed = true)
+    assertTrue(startedLatch.await(5, TimeUnit.SECONDS))
+  }
+
+  @Test
+  fun `releasing a permit twice frees only one slot`() {
+    val gate = RequestPriorityGate(maxRequestsPerHost = 2, reservedForHighPriority = 0)
+
+    val permit = gate.acquire(HOST, RequestPriority.FullMedia)
+    gate.acquire(HOST, RequestPriority.FullMedia)
+
+    permit.release()
+    permit.release()
+
+    gate.acquire(HOST, RequestPriority.FullMedia)
+
+    val startedLatch = CountDownLatch(1)
+    val waitingThread = thread(isDaemon = true) {
+      runCatching { gate.acquire(HOST, RequestPriority.FullMedia) }
+        .onSuccess { startedLatch.countDown() }
+    }
+
+    assertFalse(startedLatch.await(200, TimeUnit.MILLISECONDS))
+    waitingThread.interrupt()
+  }
+
+  @Test
+  fun `canceled request stops waiting`() {
+    val gate = RequestPriorityGate(maxRequestsPerHost = 1, reservedForHighPriority = 0)
+    gate.acquire(HOST, RequestPriority.FullMedia)
+
+    val canceled = AtomicBoolean(false)
+    val failedLatch = CountDownLatch(1)
+    thread(isDaemon = true) {
+      runCatching { gate.acquire(HOST, RequestPriority.FullMedia) { canceled.get() } }
+        .onFailure { error -> if (error is InterruptedIOException) failedLatch.countDown() }
+    }
+
+    assertFalse(failedLatch.await(200, TimeUnit.MILLISECONDS))
+
+    canceled.set(true)
+    assertTrue(failedLatch.await(5, TimeUnit.SECONDS))
+  }
+
+  @Test
+  fun `leaked permit does not block the host forever`() {
+    val gate = RequestPriorityGate(maxRequestsPerHost = 1, reservedForHighPriority = 0, maxWaitMs = 300)
+
+    // Never released
+    gate.acquire(HOST, RequestPriority.FullMedia)
+
+    try {
+      gate.acquire(HOST, RequestPriority.FullMedia)
+      fail("Must time out")
+    } catch (error: InterruptedIOException) {
+      // expected
+    }
+
+    // The waiter that gave up must not stay in the queue and block the other hosts or priorities
+    gate.acquire(OTHER_HOST, RequestPriority.Background).release()
+  }
+
+  companion object {
+    private const val HOST = "a.com:443"
+    private const val OTHER_HOST = "b.com:443"
+    private const val THIRD_HOST = "c.com:443"
+  }
+
+}
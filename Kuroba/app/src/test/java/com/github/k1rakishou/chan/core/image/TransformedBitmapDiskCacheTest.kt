@@ -0,0 +1,166 @@
+package com.github.k1rakishou.chan.core.image
+
+import android.app.Application
+import android.graphics.Bitmap
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNotNull
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = Application::class)
+class TransformedBitmapDiskCacheTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  @Test
+  fun `keys are stable`() {
+    val key1 = createKey()
+    val key2 = createKey()
+
+    assertEquals(key1, key2)
+    assertEquals(key1.fileName, key2.fileName)
+
+    // Only hashes are used as file names
+    assertFalse(key1.fileName.contains("/"))
+    assertTrue(key1.fileName.endsWith(".webp"))
+  }
+
+  @Test
+  fun `keys depend on every part of the input`() {
+    val key = createKey()
+
+    assertFalse(key == createKey(url = "https://i.4cdn.org/g/2s.jpg"))
+    assertFalse(key == createKey(transformationKeys = listOf(CIRCLE_CROP)))
+    assertFalse(key == createKey(transformationKeys = listOf(RESIZE, CIRCLE_CROP)))
+    assertFalse(key == createKey(width = 201))
+    assertFalse(key == createKey(height = 201))
+    assertFalse(key == createKey(sourceVersion = "1001_100"))
+
+    // The separators make sure that the parts can't be shifted into each other
+    assertFalse(
+      createKey(transformationKeys = listOf("ab", "c")) == createKey(transformationKeys = listOf("a", "bc"))
+    )
+  }
+
+  @Test
+  fun `put then get returns the bitmap`() {
+    val cache = TransformedBitmapDiskCache(cacheDir())
+    val key = createKey()
+
+    assertNull(cache.get(key, Bitmap.Config.ARGB_8888))
+    assertTrue(cache.put(key, createBitmap()))
+    assertNotNull(cache.get(key, Bitmap.Config.ARGB_8888))
+  }
+
+  @Test
+  fun `entries survive cache re-creation`() {
+    val key = createKey()
+
+    TransformedBitmapDiskCache(cacheDir()).put(key, createBitmap())
+
+    val newCache = TransformedBitmapDiskCache(cacheDir())
+    assertNotNull(newCache.get(key, Bitmap.Config.ARGB_8888))
+  }
+
+  @Test
+  fun `changed source file invalidates the entry`() {
+    val cache = TransformedBitmapDiskCache(cacheDir())
+    cache.put(createKey(sourceVersion = "1000_100"), createBitmap())
+
+    assertNull(cache.get(createKey(sourceVersion = "1024_200"), Bitmap.Config.ARGB_8888))
+  }
+
+  @Test
+  fun `invalidate removes all entries of the url`() {
+    val cache = TransformedBitmapDiskCache(cacheDir())
+    val otherUrl = "https://i.4cdn.org/g/2s.jpg"
+
+    cache.put(createKey(width = 100), createBitmap())
+    cache.put(createKey(width = 200), createBitmap())
+    cache.put(createKey(transformationKeys = listOf(CIRCLE_CROP)), createBitmap())
+    cache.put(createKey(url = otherUrl), createBitmap())
+
+    cache.invalidate(URL)
+
+    assertNull(cache.get(createKey(width = 100), Bitmap.Config.ARGB_8888))
+    assertNull(cache.get(createKey(width = 200), Bitmap.Config.ARGB_8888))
+    assertNull(cache.get(createKey(transformationKeys = listOf(CIRCLE_CROP)), Bitmap.Config.ARGB_8888))
+    assertNotNull(cache.get(createKey(url = otherUrl), Bitmap.Config.ARGB_8888))
+
+    assertEquals(1, cacheDir().listFiles()!!.size)
+  }
+
+  @Test
+  fun `least recently used entries are removed when the cache is full`() {
+    val probeCache = TransformedBitmapDiskCache(temporaryFolder.newFolder("probe"))
+    val probeKey = createKey()
+    probeCache.put(probeKey, createBitmap())
+    val entrySize = File(temporaryFolder.root, "probe/${probeKey.fileName}").length()
+
+    val cache = TransformedBitmapDiskCache(cacheDir(), maxSizeBytes = entrySize * 2 + entrySize / 2)
+    val key1 = createKey(width = 1)
+    val key2 = createKey(width = 2)
+    val key3 = createKey(width = 3)
+
+    cache.put(key1, createBitmap())
+    cache.put(key2, createBitmap())
+
+    // key1 is now more recently used than key2
+    assertNotNull(cache.get(key1, Bitmap.Config.ARGB_8888))
+
+    cache.put(key3, createBitmap())
+
+    assertNotNull(cache.get(key1, Bitmap.Config.ARGB_8888))
+    assertNull(cache.get(key2, Bitmap.Config.ARGB_8888))
+    assertNotNull(cache.get(key3, Bitmap.Config.ARGB_8888))
+    assertFalse(File(cacheDir(), key2.fileName).exists())
+  }
+
+  @Test
+  fun `clear removes everything`() {
+    val cache = TransformedBitmapDiskCache(cacheDir())
+    cache.put(createKey(width = 1), createBitmap())
+    cache.put(createKey(width = 2), createBitmap())
+
+    cache.clear()
+
+    assertNull(cache.get(createKey(width = 1), Bitmap.Config.ARGB_8888))
+    assertEquals(0, cacheDir().listFiles()!!.size)
+  }
+
+  private fun cacheDir(): File {
+    return File(temporaryFolder.root, TransformedBitmapDiskCache.CACHE_DIR_NAME)
+      .apply { mkdirs() }
+  }
+
+  private fun createBitmap(): Bitmap {
+    return Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888)
+  }
+
+  private fun createKey(
+    url: String = URL,
+    transformationKeys: List<String> = listOf(CIRCLE_CROP, RESIZE),
+    width: Int = 200,
+    height: Int = 200,
+    sourceVersion: String = "1000_100"
+  ): TransformedBitmapDiskCache.Key {
+    return TransformedBitmapDiskCache.Key.create(url, transformationKeys, width, height, sourceVersion)
+  }
+
+  companion object {
+    private const val URL = "https://i.4cdn.org/g/1s.jpg"
+    private const val CIRCLE_CROP = "coil.transform.CircleCropTransformation"
+    private const val RESIZE = "ImageLoaderV2_ResizeTransformation"
+  }
+
+}
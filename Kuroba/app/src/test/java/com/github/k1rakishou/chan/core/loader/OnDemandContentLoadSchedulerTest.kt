@@ -0,0 +1,173 @@
+package com.github.k1rakishou.chan.core.loader
+
+import com.github.k1rakishou.chan.core.loader.OnDemandContentLoadScheduler.ListScrollState
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.LoaderType
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.runBlockingTest
+import org.junit.Test
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class OnDemandContentLoadSchedulerTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", 1L)
+  private val visiblePost = PostDescriptor.create(threadDescriptor, 1L)
+  private val marginPost = PostDescriptor.create(threadDescriptor, 2L)
+
+  @Test
+  fun `test visible post starts loading right away when the list is idle`() {
+    runBlockingTest {
+      val scheduler = scheduler()
+      var allowed = false
+
+      launch {
+        scheduler.awaitLoadAllowed(visiblePost, allLoadersCached = false)
+        allowed = true
+      }
+
+      testScheduler.runCurrent()
+      assertTrue(allowed)
+    }
+  }
+
+  @Test
+  fun `test post in the preload margin waits unless it becomes visible`() {
+    runBlockingTest {
+      val scheduler = scheduler()
+      var allowed = false
+
+      launch {
+        scheduler.awaitLoadAllowed(marginPost, allLoadersCached = false)
+        allowed = true
+      }
+
+      testScheduler.apply { advanceTimeBy(OnDemandContentLoadScheduler.PRELOAD_MARGIN_DELAY_MS / 2); runCurrent() }
+      assertFalse(allowed)
+
+      scheduler.updateVisiblePosts(threadDescriptor, setOf(visiblePost, marginPost))
+      testScheduler.runCurrent()
+      assertTrue(allowed)
+    }
+  }
+
+  @Test
+  fun `test nothing starts loading while the list is being flung`() {
+    runBlockingTest {
+      val scheduler = scheduler()
+      scheduler.updateScrollState(ListScrollState.Flinging)
+      var allowed = false
+
+      launch {
+        scheduler.awaitLoadAllowed(visiblePost, allLoadersCached = true)
+        allowed = true
+      }
+
+      testScheduler.apply { advanceTimeBy(60_000L); runCurrent() }
+      assertFalse(allowed)
+
+      scheduler.updateScrollState(ListScrollState.Idle)
+      testScheduler.runCurrent()
+      assertTrue(allowed)
+    }
+  }
+
+  @Test
+  fun `test scrolling delays loading depending on whether the content is cached`() {
+    runBlockingTest {
+      val scheduler = scheduler()
+      scheduler.updateScrollState(ListScrollState.Scrolling)
+      var cachedAllowedAt = -1L
+      var notCachedAllowedAt = -1L
+
+      launch {
+        scheduler.awaitLoadAllowed(visiblePost, allLoadersCached = true)
+        cachedAllowedAt = currentTime
+      }
+      launch {
+        scheduler.awaitLoadAllowed(visiblePost, allLoadersCached = false)
+        notCachedAllowedAt = currentTime
+      }
+
+      testScheduler.advanceUntilIdle()
+
+      assertEquals(OnDemandContentLoadScheduler.SHORT_LOADING_DELAY_TIME_MS, cachedAllowedAt)
+      assertEquals(OnDemandContentLoadScheduler.LONG_LOADING_DELAY_TIME_MS, notCachedAllowedAt)
+    }
+  }
+
+  @Test
+  fun `test loaders run concurrently and respect their dependencies`() {
+    runBlockingTest {
+      val events = mutableListOf<String>()
+
+      val loaders = listOf(
+        TestLoader(LoaderType.Chan4CloudFlareImagePreLoader, 300L, events),
+        TestLoader(LoaderType.PrefetchLoader, 100L, events, setOf(LoaderType.Chan4CloudFlareImagePreLoader)),
+        TestLoader(LoaderType.PostExtraContentLoader, 300L, events),
+        TestLoader(LoaderType.ThirdEyeLoader, 200L, events)
+      )
+
+      val results = OnDemandContentLoadScheduler.runLoaders(loaders, PostLoaderData(false, visiblePost), 1000L)
+
+      // Independent loaders don't wait for each other, the dependent one waits for its dependency
+      assertEquals(400L, currentTime)
+      assertEquals(loaders.map { loader -> loader.loaderType }, results.map { result -> result.loaderType })
+      assertTrue(results.all { result -> result is LoaderResult.Succeeded })
+      assertTrue(
+        events.toString(),
+        events.indexOf("end ${LoaderType.Chan4CloudFlareImagePreLoader}") < events.indexOf("start ${LoaderType.PrefetchLoader}")
+      )
+    }
+  }
+
+  @Test
+  fun `test timed out loader does not hold the other loaders`() {
+    runBlockingTest {
+      val events = mutableListOf<String>()
+
+      val loaders = listOf(
+        TestLoader(LoaderType.PostExtraContentLoader, 5000L, events),
+        TestLoader(LoaderType.ThirdEyeLoader, 100L, events)
+      )
+
+      val results = OnDemandContentLoadScheduler.runLoaders(loaders, PostLoaderData(false, visiblePost), 1000L)
+
+      assertEquals(1000L, currentTime)
+      assertTrue(results[0] is LoaderResult.Failed)
+      assertTrue(results[1] is LoaderResult.Succeeded)
+    }
+  }
+
+  private fun scheduler(): OnDemandContentLoadScheduler {
+    return OnDemandContentLoadScheduler().apply {
+      updateVisiblePosts(threadDescriptor, setOf(visiblePost))
+    }
+  }
+
+  private class TestLoader(
+    loaderType: LoaderType,
+    private val loadTimeMs: Long,
+    private val events: MutableList<String>,
+    override val dependsOn: Set<LoaderType> = emptySet()
+  ) : OnDemandContentLoader(loaderType) {
+
+    override suspend fun isCached(postLoaderData: PostLoaderData): Boolean = false
+
+    override suspend fun startLoading(postLoaderData: PostLoaderData): LoaderResult {
+      events += "start ${loaderType}"
+      delay(loadTimeMs)
+      events += "end ${loaderType}"
+
+      return succeeded(needUpdateView = false)
+    }
+
+    override fun cancelLoading(postLoaderData: PostLoaderData) {
+    }
+  }
+
+}
@@ -0,0 +1,94 @@
+package com.github.k1rakishou.chan.core.manager
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+
+class DirtyBookmarksTest {
+  private val threadDescriptor1 = ChanDescriptor.ThreadDescriptor.create("test", "g", 1L)
+  private val threadDescriptor2 = ChanDescriptor.ThreadDescriptor.create("test", "g", 2L)
+  private val threadDescriptor3 = ChanDescriptor.ThreadDescriptor.create("test", "g", 3L)
+
+  @Test
+  fun `test only marked bookmarks are taken once`() {
+    val dirtyBookmarks = DirtyBookmarks()
+    assertTrue(dirtyBookmarks.isEmpty())
+
+    dirtyBookmarks.markChanged(threadDescriptor1)
+    // Marking the same bookmark many times between flushes still writes it once
+    dirtyBookmarks.markChanged(threadDescriptor1)
+    dirtyBookmarks.markDeleted(threadDescriptor2)
+
+    assertFalse(dirtyBookmarks.isEmpty())
+    assertEquals(
+      DirtyBookmarks.Changes(changed = setOf(threadDescriptor1), deleted = setOf(threadDescriptor2)),
+      dirtyBookmarks.takeChanges()
+    )
+
+    // Nothing changed since the previous flush
+    assertTrue(dirtyBookmarks.isEmpty())
+    assertEquals(DirtyBookmarks.Changes(emptySet(), emptySet()), dirtyBookmarks.takeChanges())
+  }
+
+  @Test
+  fun `test deleted bookmark is not written as changed`() {
+    val dirtyBookmarks = DirtyBookmarks()
+
+    dirtyBookmarks.markChanged(threadDescriptor1)
+    dirtyBookmarks.markDeleted(threadDescriptor1)
+
+    assertEquals(
+      DirtyBookmarks.Changes(changed = emptySet(), deleted = setOf(threadDescriptor1)),
+      dirtyBookmarks.takeChanges()
+    )
+
+    // Deleted and then created again, the old rows are deleted before the new ones are inserted
+    dirtyBookmarks.markDeleted(threadDescriptor2)
+    dirtyBookmarks.markChanged(threadDescriptor2)
+
+    assertEquals(
+      DirtyBookmarks.Changes(changed = setOf(threadDescriptor2), deleted = setOf(threadDescriptor2)),
+      dirtyBookmarks.takeChanges()
+    )
+  }
+
+  @Test
+  fun `test failed changes are restored unless they became obsolete`() {
+    val dirtyBookmarks = DirtyBookmarks()
+    val existingBookmarks = mutableSetOf(threadDescriptor1, threadDescriptor2)
+
+    dirtyBookmarks.markChanged(threadDescriptor1)
+    dirtyBookmarks.markChanged(threadDescriptor2)
+    dirtyBookmarks.markDeleted(threadDescriptor3)
+
+    val failedChanges = dirtyBookmarks.takeChanges()
+
+    // While the failed flush was running the second bookmark was deleted
+    existingBookmarks.remove(threadDescriptor2)
+    dirtyBookmarks.markDeleted(threadDescriptor2)
+
+    dirtyBookmarks.restore(failedChanges) { threadDescriptor -> threadDescriptor in existingBookmarks }
+
+    assertEquals(
+      DirtyBookmarks.Changes(
+        changed = setOf(threadDescriptor1),
+        deleted = setOf(threadDescriptor2, threadDescriptor3)
+      ),
+      dirtyBookmarks.takeChanges()
+    )
+  }
+
+  @Test
+  fun `test clear drops all marks`() {
+    val dirtyBookmarks = DirtyBookmarks()
+
+    dirtyBookmarks.markChanged(threadDescriptor1)
+    dirtyBookmarks.markDeleted(threadDescriptor2)
+    dirtyBookmarks.clear()
+
+    assertTrue(dirtyBookmarks.isEmpty())
+  }
+
+}
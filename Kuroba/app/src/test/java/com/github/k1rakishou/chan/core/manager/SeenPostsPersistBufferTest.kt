@@ -0,0 +1,154 @@
+package com.github.k1rakishou.chan.core.manager
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.SeenPost
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.test.runBlockingTest
+import org.joda.time.DateTime
+import org.junit.Test
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class SeenPostsPersistBufferTest {
+  private val threadDescriptor1 = ChanDescriptor.ThreadDescriptor.create("test", "g", 1L)
+  private val threadDescriptor2 = ChanDescriptor.ThreadDescriptor.create("test", "g", 2L)
+
+  @Test
+  fun `test many binds within one flush window produce one write`() {
+    runBlockingTest {
+      val writes = mutableListOf<Pair<ChanDescriptor.ThreadDescriptor, Int>>()
+      val buffer = SeenPostsPersistBuffer(this, FLUSH_WINDOW_MS) { threadDescriptor, seenPosts ->
+        writes += threadDescriptor to seenPosts.size
+        true
+      }
+
+      (1L..1000L).forEach { postNo -> add(buffer, threadDescriptor1, postNo) }
+      // Binding the same posts again must not add anything
+      (1L..1000L).forEach { postNo -> assertFalse(add(buffer, threadDescriptor1, postNo)) }
+
+      assertTrue(writes.isEmpty())
+
+      testScheduler.apply { advanceTimeBy(FLUSH_WINDOW_MS + 1); runCurrent() }
+
+      assertEquals(listOf(threadDescriptor1 to 1000), writes)
+    }
+  }
+
+  @Test
+  fun `test continuous binds are flushed once per flush window`() {
+    runBlockingTest {
+      var writesCount = 0
+      var persistedPostsCount = 0
+
+      val buffer = SeenPostsPersistBuffer(this, FLUSH_WINDOW_MS) { _, seenPosts ->
+        ++writesCount
+        persistedPostsCount += seenPosts.size
+        true
+      }
+
+      // A bind every 10ms for 10 flush windows (e.g. fast scrolling)
+      val bindsCount = (FLUSH_WINDOW_MS * 10 / 10).toInt()
+      for (postNo in 1L..bindsCount.toLong()) {
+        add(buffer, threadDescriptor1, postNo)
+        testScheduler.apply { advanceTimeBy(10L); runCurrent() }
+      }
+
+      testScheduler.advanceUntilIdle()
+
+      assertTrue("writesCount=$writesCount", writesCount <= 11)
+      assertTrue("writesCount=$writesCount", writesCount >= 9)
+      assertEquals(bindsCount, persistedPostsCount)
+    }
+  }
+
+  @Test
+  fun `test switching threads flushes the previous thread right away`() {
+    runBlockingTest {
+      val writes = mutableListOf<Pair<ChanDescriptor.ThreadDescriptor, Int>>()
+      val buffer = SeenPostsPersistBuffer(this, FLUSH_WINDOW_MS) { threadDescriptor, seenPosts ->
+        writes += threadDescriptor to seenPosts.size
+        true
+      }
+
+      (1L..10L).forEach { postNo -> add(buffer, threadDescriptor1, postNo) }
+      add(buffer, threadDescriptor2, 2L)
+      testScheduler.runCurrent()
+
+      assertEquals(listOf(threadDescriptor1 to 10), writes)
+
+      testScheduler.apply { advanceTimeBy(FLUSH_WINDOW_MS + 1); runCurrent() }
+      assertEquals(listOf(threadDescriptor1 to 10, threadDescriptor2 to 1), writes)
+    }
+  }
+
+  @Test
+  fun `test failed writes are retried and nothing is lost`() {
+    runBlockingTest {
+      var fail = true
+      val persisted = mutableSetOf<PostDescriptor>()
+
+      val buffer = SeenPostsPersistBuffer(this, FLUSH_WINDOW_MS) { _, seenPosts ->
+        if (!fail) {
+          seenPosts.forEach { seenPost -> persisted += seenPost.postDescriptor }
+        }
+
+        !fail
+      }
+
+      (1L..10L).forEach { postNo -> add(buffer, threadDescriptor1, postNo) }
+      testScheduler.apply { advanceTimeBy(FLUSH_WINDOW_MS + 1); runCurrent() }
+
+      assertTrue(persisted.isEmpty())
+      // Marks that failed to persist are still buffered
+      assertTrue(buffer.contains(PostDescriptor.create(threadDescriptor1, 5L)))
+      assertFalse(add(buffer, threadDescriptor1, 5L))
+
+      fail = false
+      add(buffer, threadDescriptor1, 11L)
+      // The first retry happens one flush window after the failure
+      testScheduler.apply { advanceTimeBy(FLUSH_WINDOW_MS + 1); runCurrent() }
+
+      assertEquals((1L..11L).map { postNo -> PostDescriptor.create(threadDescriptor1, postNo) }.toSet(), persisted)
+      assertFalse(buffer.contains(PostDescriptor.create(threadDescriptor1, 5L)))
+
+      testScheduler.advanceUntilIdle()
+    }
+  }
+
+  @Test
+  fun `test failed writes back off and are dropped after max attempts`() {
+    runBlockingTest {
+      val attemptTimes = mutableListOf<Long>()
+      val buffer = SeenPostsPersistBuffer(this, FLUSH_WINDOW_MS, maxAttempts = 4) { _, _ ->
+        attemptTimes += currentTime
+        false
+      }
+
+      add(buffer, threadDescriptor1, 1L)
+      testScheduler.advanceUntilIdle()
+
+      val retryDelays = attemptTimes.zipWithNext { previous, next -> next - previous }
+      assertEquals(listOf(FLUSH_WINDOW_MS, FLUSH_WINDOW_MS * 2, FLUSH_WINDOW_MS * 4), retryDelays)
+
+      assertFalse(buffer.contains(PostDescriptor.create(threadDescriptor1, 1L)))
+      assertTrue(add(buffer, threadDescriptor1, 1L))
+    }
+  }
+
+  private fun add(
+    buffer: SeenPostsPersistBuffer,
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    postNo: Long
+  ): Boolean {
+    val postDescriptor = PostDescriptor.create(threadDescriptor, postNo)
+    return buffer.add(postDescriptor) { SeenPost(postDescriptor, DateTime(postNo)) }
+  }
+
+  companion object {
+    private const val FLUSH_WINDOW_MS = 500L
+  }
+
+}
@@ -0,0 +1,179 @@
+package com.github.k1rakishou.chan.core.site
+
+import com.github.k1rakishou.chan.core.site.sites.chan4.Chan4
+import com.github.k1rakishou.chan.core.site.sites.chan420.Chan420
+import com.github.k1rakishou.chan.core.site.sites.foolfuuka.sites.ArchivedMoe
+import com.github.k1rakishou.chan.core.site.sites.foolfuuka.sites.ForPlebs
+import com.github.k1rakishou.chan.core.site.sites.kun8.Kun8
+import com.github.k1rakishou.chan.core.site.sites.lainchan.Lainchan
+import com.github.k1rakishou.chan.core.site.sites.wired7.Wired7
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertSame
+import junit.framework.Assert.assertTrue
+import okhttp3.HttpUrl
+import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
+import org.junit.Test
+import org.mockito.Mockito
+import kotlin.random.Random
+
+class SiteHostIndexTest {
+  private val sites = listOf(
+    Chan4.URL_HANDLER,
+    Kun8.URL_HANDLER,
+    Lainchan.URL_HANDLER,
+    Chan420.URL_HANDLER,
+    Wired7.URL_HANDLER,
+    ArchivedMoe.URL_HANDLER,
+    ForPlebs.URL_HANDLER
+  ).map { siteUrlHandler -> mockSite(siteUrlHandler) }
+
+  @Test
+  fun `test extract host`() {
+    assertEquals("boards.4chan.org", SiteHostIndex.extractHostOrNull("https://boards.4chan.org/g/thread/1"))
+    assertEquals("boards.4chan.org", SiteHostIndex.extractHostOrNull("http://boards.4chan.org"))
+    assertEquals("boards.4chan.org", SiteHostIndex.extractHostOrNull("boards.4chan.org/g/"))
+    assertEquals("boards.4chan.org", SiteHostIndex.extractHostOrNull("HTTPS://Boards.4Chan.org/g/"))
+    assertEquals("i.4cdn.org", SiteHostIndex.extractHostOrNull("https://i.4cdn.org:443/g/1.png"))
+    assertEquals("i.4cdn.org", SiteHostIndex.extractHostOrNull("https://i.4cdn.org?a=b"))
+    assertEquals("i.4cdn.org", SiteHostIndex.extractHostOrNull("https://i.4cdn.org#top"))
+
+    assertNull(SiteHostIndex.extractHostOrNull(""))
+    assertNull(SiteHostIndex.extractHostOrNull("https://"))
+    assertNull(SiteHostIndex.extractHostOrNull("https://localhost/g/"))
+    assertNull(SiteHostIndex.extractHostOrNull("ftp://boards.4chan.org/g/"))
+    assertNull(SiteHostIndex.extractHostOrNull("https://boards..4chan.org/g/"))
+    assertNull(SiteHostIndex.extractHostOrNull("https://boards.4chan.org./g/"))
+    assertNull(SiteHostIndex.extractHostOrNull("https://user@boards.4chan.org/g/"))
+    assertNull(SiteHostIndex.extractHostOrNull("https://boards.4chan.org:/g/"))
+    assertNull(SiteHostIndex.extractHostOrNull("https://boards.4chan.org:99999/g/"))
+    assertNull(SiteHostIndex.extractHostOrNull("https://boards.4chan.org:80a/g/"))
+    assertNull(SiteHostIndex.extractHostOrNull("https://[::1]/g/"))
+    assertNull(SiteHostIndex.extractHostOrNull("https://двач.рф/b/"))
+    assertNull(SiteHostIndex.extractHostOrNull("https://${"a".repeat(64)}.org/"))
+  }
+
+  @Test
+  fun `test index resolves the same sites as the linear scan`() {
+    val siteHostIndex = SiteHostIndex()
+
+    generateUrls(count = 10_000, random = Random(1)).forEach { url ->
+      val expected = findSiteLinearScan(url)
+      val actual = findSiteIndexed(siteHostIndex, url, sitesVersion = 0L)
+
+      assertSame(url, expected, actual)
+    }
+  }
+
+  @Test
+  fun `test entries resolved with an older sites version are re-resolved`() {
+    val siteHostIndex = SiteHostIndex()
+    var resolverCalls = 0
+
+    val resolver = { httpUrl: HttpUrl ->
+      ++resolverCalls
+      sites.firstOrNull { site -> site.resolvable().respondsTo(httpUrl) }
+    }
+
+    assertSame(sites[0], siteHostIndex.findSiteForHost("boards.4chan.org", 0L, resolver))
+    assertSame(sites[0], siteHostIndex.findSiteForHost("boards.4chan.org", 0L, resolver))
+    assertEquals(1, resolverCalls)
+
+    assertSame(sites[0], siteHostIndex.findSiteForHost("boards.4chan.org", 1L, resolver))
+    assertEquals(2, resolverCalls)
+
+    assertNull(siteHostIndex.findSiteForHost("example.com", 1L, resolver))
+    assertNull(siteHostIndex.findSiteForHost("example.com", 1L, resolver))
+    assertEquals(3, resolverCalls)
+  }
+
+  @Test
+  fun `test resolving 100k urls matches the linear scan`() {
+    val urls = generateUrls(count = 100_000, random = Random(2))
+    val siteHostIndex = SiteHostIndex()
+    var resolved = 0
+
+    urls.forEach { url ->
+      val expected = findSiteLinearScan(url)
+      assertSame(url, expected, findSiteIndexed(siteHostIndex, url, sitesVersion = 0L))
+
+      if (expected != null) {
+        ++resolved
+      }
+    }
+
+    assertTrue(resolved > 0)
+  }
+
+  private fun findSiteIndexed(siteHostIndex: SiteHostIndex, url: String, sitesVersion: Long): Site? {
+    val host = SiteHostIndex.extractHostOrNull(url)
+      ?: return findSiteLinearScan(url)
+
+    return siteHostIndex.findSiteForHost(host, sitesVersion) { httpUrl -> findSiteForHttpUrl(httpUrl) }
+  }
+
+  /**
+   * The same thing SiteResolver used to do for every url.
+   * */
+  private fun findSiteLinearScan(url: String): Site? {
+    var httpUrl = url.toHttpUrlOrNull()
+    if (httpUrl == null) {
+      httpUrl = "https://$url".toHttpUrlOrNull()
+        ?: return null
+    }
+
+    if (httpUrl.scheme != "https") {
+      httpUrl = httpUrl.newBuilder().scheme("https").build()
+    }
+
+    return findSiteForHttpUrl(httpUrl)
+  }
+
+  private fun findSiteForHttpUrl(httpUrl: HttpUrl): Site? {
+    return sites.firstOrNull { site ->
+      val siteUrlHandler = site.resolvable()
+      siteUrlHandler.respondsTo(httpUrl) || siteUrlHandler.matchesMediaHost(httpUrl)
+    }
+  }
+
+  private fun generateUrls(count: Int, random: Random): List<String> {
+    val hosts = listOf(
+      "boards.4chan.org",
+      "i.4cdn.org",
+      "is2.4chan.org",
+      "8kun.top",
+      "media.8kun.top",
+      "lainchan.org",
+      "420chan.org",
+      "boards.420chan.org",
+      "wired-7.org",
+      "archived.moe",
+      "archive.4plebs.org",
+      "i.4pcdn.org",
+      "www.youtube.com",
+      "example.com",
+      "pbs.twimg.com"
+    )
+
+    val schemes = listOf("https://", "http://", "")
+
+    return (0 until count).map { index ->
+      val host = hosts[random.nextInt(hosts.size)]
+      val scheme = schemes[random.nextInt(schemes.size)]
+
+      when (random.nextInt(3)) {
+        0 -> "${scheme}${host}/g/thread/${index}"
+        1 -> "${scheme}${host}/g/${random.nextLong(1_000_000_000L, 9_999_999_999L)}.png"
+        else -> "${scheme}${host}/g/thread/${index}#p${index + 1}"
+      }
+    }
+  }
+
+  private fun mockSite(siteUrlHandler: SiteUrlHandler): Site {
+    val site = Mockito.mock(Site::class.java)
+    Mockito.`when`(site.resolvable()).thenReturn(siteUrlHandler)
+
+    return site
+  }
+
+}
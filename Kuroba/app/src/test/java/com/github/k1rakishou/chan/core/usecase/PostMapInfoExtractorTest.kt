@@ -0,0 +1,416 @@
+package com.github.k1rakishou.chan.core.usecase
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostHttpIcon
+import com.github.k1rakishou.model.data.post.PostComment
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertSame
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.runBlocking
+import org.junit.Test
+import kotlin.random.Random
+
+class PostMapInfoExtractorTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", 1L)
+  private val extractor = PostMapInfoExtractor()
+
+  @Test
+  fun `test single pass extraction matches the per category extraction on random threads`() {
+    runBlocking {
+      repeat(50) { seed ->
+        val thread = RandomThread(Random(seed), postsCount = 1 + seed * 7)
+        val inputs = thread.inputs()
+
+        val state = extractor.extract(thread.postDescriptors(), thread.postsMap(), inputs, null)
+
+        assertHoldersEqual(referenceExtract(thread, inputs), state.holder)
+      }
+    }
+  }
+
+  @Test
+  fun `test incremental extraction matches the full extraction when posts are appended and changed`() {
+    runBlocking {
+      repeat(20) { seed ->
+        val random = Random(seed)
+        val thread = RandomThread(random, postsCount = 50 + random.nextInt(200))
+        var state = extractor.extract(thread.postDescriptors(), thread.postsMap(), thread.inputs(), null)
+
+        repeat(10) {
+          thread.update(newPostsCount = random.nextInt(10))
+          val inputs = thread.inputs()
+
+          state = extractor.extract(thread.postDescriptors(), thread.postsMap(), inputs, state)
+          assertHoldersEqual(referenceExtract(thread, inputs), state.holder)
+        }
+      }
+    }
+  }
+
+  @Test
+  fun `test incremental extraction with a different post list falls back to the full extraction`() {
+    runBlocking {
+      val thread = RandomThread(Random(1), postsCount = 100)
+      val state = extractor.extract(thread.postDescriptors(), thread.postsMap(), thread.inputs(), null)
+
+      // Some posts were removed from the middle of the list (e.g. hidden)
+      val postDescriptors = thread.postDescriptors().filterIndexed { index, _ -> index % 3 != 0 }
+      val postsMap = thread.postsMap().filterKeys { postDescriptor -> postDescriptor in postDescriptors }
+      val inputs = thread.inputs()
+      val newState = extractor.extract(postDescriptors, postsMap, inputs, state)
+
+      val reference = referenceExtract(thread, inputs, postDescriptors)
+      assertHoldersEqual(reference, newState.holder)
+    }
+  }
+
+  @Test
+  fun `test unchanged thread returns the previous holder`() {
+    runBlocking {
+      val thread = RandomThread(Random(2), postsCount = 300)
+      val state = extractor.extract(thread.postDescriptors(), thread.postsMap(), thread.inputs(), null)
+      val newState = extractor.extract(thread.postDescriptors(), thread.postsMap(), thread.inputs(), state)
+
+      assertSame(state.holder, newState.holder)
+      assertTrue(state.holder.isTheSame(newState.holder))
+    }
+  }
+
+  @Test
+  fun `test incremental extraction of a big thread only checks appended posts`() {
+    runBlocking {
+      val thread = RandomThread(Random(3), postsCount = 5000)
+      var state = extractor.extract(thread.postDescriptors(), thread.postsMap(), thread.inputs(), null)
+
+      repeat(UPDATES_COUNT) {
+        thread.update(newPostsCount = 10, changeOldPosts = false)
+        val inputs = thread.inputs()
+        val fullState = extractor.extract(thread.postDescriptors(), thread.postsMap(), inputs, null)
+
+        thread.thirdEyeChecks = 0
+        state = extractor.extract(thread.postDescriptors(), thread.postsMap(), inputs, state)
+
+        assertEquals(10, thread.thirdEyeChecks)
+        assertHoldersEqual(fullState.holder, state.holder)
+      }
+    }
+  }
+
+  @Test
+  fun `test flags of an old post are recomputed when its content changes`() {
+    runBlocking {
+      val thread = RandomThread(Random(4), postsCount = 100)
+      thread.savePost(postNo = 1L)
+
+      var state = extractor.extract(thread.postDescriptors(), thread.postsMap(), thread.inputs(), null)
+      val editedPostIndex = 49
+
+      // The post was edited, now it replies to a saved post and has a third eye image
+      thread.editPost(postNo = editedPostIndex + 1L, replyTo = 1L, hasThirdEyeImage = true)
+      val inputs = thread.inputs()
+
+      thread.thirdEyeChecks = 0
+      state = extractor.extract(thread.postDescriptors(), thread.postsMap(), inputs, state)
+
+      assertEquals(1, thread.thirdEyeChecks)
+      assertTrue(state.holder.replyPositionRanges.any { entry -> editedPostIndex in entry.range })
+      assertTrue(state.holder.thirdEyePostsPositionRanges.any { entry -> editedPostIndex in entry.range })
+      assertHoldersEqual(referenceExtract(thread, inputs), state.holder)
+    }
+  }
+
+  private fun assertHoldersEqual(expected: PostMapInfoHolder, actual: PostMapInfoHolder) {
+    assertEquals(expected.myPostsPositionRanges, actual.myPostsPositionRanges)
+    assertEquals(expected.replyPositionRanges, actual.replyPositionRanges)
+    assertEquals(expected.crossThreadQuotePositionRanges, actual.crossThreadQuotePositionRanges)
+    assertEquals(expected.postFilterHighlightRanges, actual.postFilterHighlightRanges)
+    assertEquals(expected.deletedPostsPositionRanges, actual.deletedPostsPositionRanges)
+    assertEquals(expected.hotPostsPositionRanges, actual.hotPostsPositionRanges)
+    assertEquals(expected.thirdEyePostsPositionRanges, actual.thirdEyePostsPositionRanges)
+    assertTrue(expected.isTheSame(actual))
+  }
+
+  /**
+   * The extraction how it used to be done: every category is extracted with a separate pass over
+   * the posts.
+   * */
+  private suspend fun referenceExtract(
+    thread: RandomThread,
+    inputs: PostMapInfoExtractor.Inputs,
+    postDescriptors: List<PostDescriptor> = thread.postDescriptors()
+  ): PostMapInfoHolder {
+    val postDescriptorsSet = postDescriptors.toSet()
+    val postsMap = thread.postsMap().filterKeys { postDescriptor -> postDescriptor in postDescriptorsSet }
+
+    fun extract(predicate: (Int, PostDescriptor, ChanPost?) -> Boolean): List<PostMapInfoEntry> {
+      val ranges = mutableListOf<PostMapInfoEntry>()
+      var prevIndex = 0
+
+      for ((index, postDescriptor) in postDescriptors.withIndex()) {
+        if (!predicate(index, postDescriptor, postsMap[postDescriptor])) {
+          continue
+        }
+
+        if (prevIndex == index - 1 && ranges.size > 0) {
+          ranges[ranges.lastIndex] = PostMapInfoEntry(IntRange(ranges.last().range.first, index), 0)
+        } else {
+          ranges.add(PostMapInfoEntry(IntRange(index, index), 0))
+        }
+
+        prevIndex = index
+      }
+
+      return ranges
+    }
+
+    val thirdEyePosts = postDescriptors
+      .filter { postDescriptor ->
+        val post = postsMap[postDescriptor]
+        post != null && inputs.thirdEyeEnabled && inputs.hasThirdEyeImage(post)
+      }
+      .toSet()
+
+    var totalPostsWithRepliesCount = 0
+    var totalReplyCount = 0
+
+    postsMap.values
+      .filter { post -> !post.isOP() && post.repliesFromCount > 0 }
+      .forEach { post ->
+        totalReplyCount += post.repliesFromCount
+        ++totalPostsWithRepliesCount
+      }
+
+    val medianRepliesCount = totalReplyCount.toFloat() / totalPostsWithRepliesCount.coerceAtLeast(1).toFloat()
+    val targetRepliesCount = medianRepliesCount * 3f
+
+    val highlightRanges = mutableListOf<PostMapInfoEntry>()
+    var prevIndex = 0
+
+    for ((index, postDescriptor) in postDescriptors.withIndex()) {
+      val color = inputs.highlightColor(postDescriptor)
+      if (color == 0) {
+        continue
+      }
+
+      val last = highlightRanges.lastOrNull()
+      if (prevIndex == index - 1 && last != null && last.color == color) {
+        highlightRanges[highlightRanges.lastIndex] = PostMapInfoEntry(IntRange(last.range.first, index), color)
+      } else {
+        highlightRanges.add(PostMapInfoEntry(IntRange(index, index), color))
+      }
+
+      prevIndex = index
+    }
+
+    return PostMapInfoHolder(
+      myPostsPositionRanges = extract { _, postDescriptor, _ ->
+        inputs.markMyPosts && postDescriptor in inputs.savedPostDescriptors
+      },
+      replyPositionRanges = extract { _, _, post ->
+        inputs.markReplies && post != null && post.repliesTo.any { it in inputs.savedPostDescriptors }
+      },
+      crossThreadQuotePositionRanges = emptyList(),
+      postFilterHighlightRanges = highlightRanges,
+      deletedPostsPositionRanges = extract { _, _, post -> inputs.markDeletedPosts && post != null && post.isDeleted },
+      hotPostsPositionRanges = extract { _, _, post ->
+        inputs.markHotPosts
+          && medianRepliesCount > 1f
+          && post != null
+          && !post.isOP()
+          && post.repliesFromCount > targetRepliesCount
+      },
+      thirdEyePostsPositionRanges = extract { _, postDescriptor, _ -> postDescriptor in thirdEyePosts }
+    )
+  }
+
+  private inner class RandomThread(
+    private val random: Random,
+    postsCount: Int
+  ) {
+    private val posts = mutableListOf<ChanPost>()
+    private val savedPosts = mutableSetOf<PostDescriptor>()
+    private val highlightColors = mutableMapOf<PostDescriptor, Int>()
+    private val thirdEyePosts = mutableSetOf<PostDescriptor>()
+    private var markHotPosts = true
+
+    var thirdEyeChecks = 0
+
+    val postsCount: Int
+      get() = posts.size
+
+    init {
+      appendPosts(postsCount)
+    }
+
+    fun postDescriptors(): List<PostDescriptor> = posts.map { post -> post.postDescriptor }
+
+    fun postsMap(): Map<PostDescriptor, ChanPost> = posts.associateBy { post -> post.postDescriptor }
+
+    fun inputs(): PostMapInfoExtractor.Inputs {
+      return PostMapInfoExtractor.Inputs(
+        markMyPosts = true,
+        markReplies = true,
+        markCrossThreadQuotes = true,
+        markDeletedPosts = true,
+        markHotPosts = markHotPosts,
+        thirdEyeEnabled = true,
+        savedPostDescriptors = savedPosts.toSet(),
+        highlightColor = { postDescriptor -> highlightColors[postDescriptor] ?: 0 },
+        hasThirdEyeImage = { post ->
+          ++thirdEyeChecks
+          post.postDescriptor in thirdEyePosts
+        }
+      )
+    }
+
+    fun update(newPostsCount: Int, changeOldPosts: Boolean = true) {
+      if (changeOldPosts) {
+        if (random.nextInt(4) == 0) {
+          posts.random(random).isDeleted = true
+        }
+
+        if (random.nextInt(5) == 0) {
+          savedPosts += posts.random(random).postDescriptor
+        }
+
+        if (random.nextInt(5) == 0) {
+          highlightColors[posts.random(random).postDescriptor] = randomColor()
+        }
+
+        if (random.nextInt(10) == 0) {
+          markHotPosts = !markHotPosts
+        }
+      }
+
+      appendPosts(newPostsCount)
+    }
+
+    fun savePost(postNo: Long) {
+      savedPosts += posts[postNo.toInt() - 1].postDescriptor
+    }
+
+    /**
+     * Replaces the post with a new post object that has the same descriptor but different content,
+     * like it happens when a thread update brings an edited post.
+     * */
+    fun editPost(postNo: Long, replyTo: Long, hasThirdEyeImage: Boolean) {
+      val oldPost = posts[postNo.toInt() - 1]
+      val repliedPost = posts[replyTo.toInt() - 1]
+      val newPost = createPost(postNo, comment = "edited $postNo")
+
+      newPost.repliesTo += oldPost.repliesTo
+      newPost.repliesTo += repliedPost.postDescriptor
+      newPost.repliesFrom += oldPost.repliesFrom
+      newPost.isDeleted = oldPost.isDeleted
+      repliedPost.repliesFrom += newPost.postDescriptor
+
+      if (hasThirdEyeImage) {
+        thirdEyePosts += newPost.postDescriptor
+      } else {
+        thirdEyePosts -= newPost.postDescriptor
+      }
+
+      posts[postNo.toInt() - 1] = newPost
+    }
+
+    private fun appendPosts(count: Int) {
+      repeat(count) {
+        val postNo = posts.size + 1L
+        val post = createPost(postNo)
+
+        if (posts.isNotEmpty()) {
+          repeat(random.nextInt(3)) {
+            // Replies are mostly directed to a couple of popular posts
+            val repliedPost = if (random.nextInt(3) == 0) posts.first() else posts.random(random)
+            post.repliesTo += repliedPost.postDescriptor
+            repliedPost.repliesFrom += post.postDescriptor
+          }
+        }
+
+        if (postNo > 1 && random.nextInt(20) == 0) {
+          post.isDeleted = true
+        }
+
+        if (random.nextInt(30) == 0) {
+          savedPosts += post.postDescriptor
+        }
+
+        if (random.nextInt(8) == 0) {
+          highlightColors[post.postDescriptor] = randomColor()
+        }
+
+        if (random.nextInt(10) == 0) {
+          thirdEyePosts += post.postDescriptor
+        }
+
+        posts += post
+      }
+    }
+
+    private fun randomColor(): Int = if (random.nextBoolean()) 0xFF0000 else 0x00FF00
+
+    private fun createPost(postNo: Long, comment: String = "$postNo"): ChanPost {
+      val postDescriptor = PostDescriptor.create(threadDescriptor, postNo)
+      val postComment = PostComment(
+        originalComment = comment,
+        originalUnparsedComment = comment,
+        linkables = emptyList()
+      )
+
+      if (threadDescriptor.threadNo == postNo) {
+        return ChanOriginalPost(
+          chanPostId = 0L,
+          postDescriptor = postDescriptor,
+          postImages = mutableListOf(),
+          postIcons = mutableListOf<ChanPostHttpIcon>(),
+          repliesTo = mutableSetOf(),
+          timestamp = postNo,
+          postComment = postComment,
+          subject = null,
+          tripcode = null,
+          name = null,
+          posterId = null,
+          moderatorCapcode = null,
+          isSavedReply = false,
+          isSage = false,
+          repliesFrom = mutableSetOf(),
+          deleted = false,
+          posterIdColor = 0,
+          archived = false,
+          closed = false,
+          endless = false,
+          sticky = false,
+          lastModified = 0L
+        )
+      }
+
+      return ChanPost(
+        chanPostId = 0L,
+        postDescriptor = postDescriptor,
+        _postImages = mutableListOf(),
+        postIcons = mutableListOf<ChanPostHttpIcon>(),
+        repliesTo = mutableSetOf(),
+        timestamp = postNo,
+        postComment = postComment,
+        subject = null,
+        tripcode = null,
+        name = null,
+        posterId = null,
+        moderatorCapcode = null,
+        isSavedReply = false,
+        isSage = false,
+        repliesFrom = mutableSetOf(),
+        deleted = false,
+        posterIdColor = 0,
+      )
+    }
+  }
+
+  companion object {
+    private const val UPDATES_COUNT = 20
+  }
+
+}
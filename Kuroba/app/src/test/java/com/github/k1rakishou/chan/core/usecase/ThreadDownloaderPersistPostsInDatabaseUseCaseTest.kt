@@ -0,0 +1,83 @@
+package com.github.k1rakishou.chan.core.usecase
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertNotNull
+import junit.framework.Assert.assertNull
+import kotlinx.coroutines.runBlocking
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+class ThreadDownloaderPersistPostsInDatabaseUseCaseTest {
+  private val server = MockWebServer()
+  private val okHttpClient = OkHttpClient()
+
+  @Before
+  fun setUp() {
+    server.start()
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+  }
+
+  @Test
+  fun `test thread that was not modified is skipped`() = runBlocking {
+    server.enqueue(MockResponse().setResponseCode(304))
+
+    val response = executeConditionalRequest(lastModified = LAST_MODIFIED)
+
+    assertNull(response)
+    assertEquals(LAST_MODIFIED, server.takeRequest().getHeader("If-Modified-Since"))
+  }
+
+  @Test
+  fun `test modified thread is downloaded`() = runBlocking {
+    server.enqueue(
+      MockResponse()
+        .setHeader("Last-Modified", NEW_LAST_MODIFIED)
+        .setBody("{}")
+    )
+
+    val response = executeConditionalRequest(lastModified = LAST_MODIFIED)
+
+    assertNotNull(response)
+    response!!.use {
+      assertEquals(200, response.code)
+      assertEquals(NEW_LAST_MODIFIED, response.header("Last-Modified"))
+      assertEquals("{}", response.body!!.string())
+    }
+
+    assertEquals(LAST_MODIFIED, server.takeRequest().getHeader("If-Modified-Since"))
+  }
+
+  @Test
+  fun `test request is not conditional without last modified`() = runBlocking {
+    server.enqueue(MockResponse().setBody("{}"))
+
+    val response = executeConditionalRequest(lastModified = null)
+
+    assertNotNull(response)
+    response!!.close()
+
+    assertNull(server.takeRequest().getHeader("If-Modified-Since"))
+  }
+
+  private suspend fun executeConditionalRequest(lastModified: String?) =
+    ThreadDownloaderPersistPostsInDatabaseUseCase.executeConditionalRequest(
+      okHttpClient = okHttpClient,
+      requestBuilder = Request.Builder().url(server.url("/g/thread/1.json")).get(),
+      lastModified = lastModified
+    )
+
+  companion object {
+    private const val LAST_MODIFIED = "Mon, 19 Oct 2026 10:00:00 GMT"
+    private const val NEW_LAST_MODIFIED = "Mon, 19 Oct 2026 11:00:00 GMT"
+  }
+
+}
@@ -0,0 +1,238 @@
+package com.github.k1rakishou.chan.features.image_saver
+
+import android.app.Application
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadScheduler
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import junit.framework.Assert.fail
+import kotlinx.coroutines.runBlocking
+import okhttp3.HttpUrl
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okhttp3.mockwebserver.SocketPolicy
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = Application::class)
+class ImageSaverMediaDownloaderTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val server = MockWebServer()
+  private val okHttpClient = OkHttpClient()
+  private val inFlightRequests = AtomicInteger(0)
+  private val maxInFlightRequests = AtomicInteger(0)
+
+  private lateinit var mediaCache: FakeMediaCache
+  private lateinit var downloader: ImageSaverMediaDownloader
+  private lateinit var outputDir: File
+
+  @Before
+  fun setUp() {
+    server.dispatcher = object : Dispatcher() {
+      override fun dispatch(request: RecordedRequest): MockResponse {
+        val fileName = request.requestUrl!!.pathSegments.last()
+
+        maxInFlightRequests.accumulateAndGet(inFlightRequests.incrementAndGet()) { a, b -> Math.max(a, b) }
+
+        try {
+          Thread.sleep(RESPONSE_DELAY_MS)
+
+          return when {
+            fileName.startsWith("missing") -> MockResponse().setResponseCode(404)
+            fileName.startsWith("broken") -> MockResponse()
+              .setBody(fileContent(fileName))
+              .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY)
+            else -> MockResponse().setBody(fileContent(fileName))
+          }
+        } finally {
+          inFlightRequests.decrementAndGet()
+        }
+      }
+    }
+    server.start()
+
+    mediaCache = FakeMediaCache(temporaryFolder.newFolder("cache"), temporaryFolder.newFolder("tmp"))
+    outputDir = temporaryFolder.newFolder("output")
+
+    downloader = ImageSaverMediaDownloader(
+      okHttpClientProvider = { okHttpClient },
+      mediaCache = mediaCache,
+      requestModifier = { _, _ -> }
+    )
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+  }
+
+  @Test
+  fun `test downloaded file is put into the media cache and reused by the next save`() = runBlocking {
+    val imageUrl = server.url("/1.png")
+
+    assertEquals(ImageSaverMediaDownloader.Source.Network, save(imageUrl, "first.png"))
+    assertEquals(1, server.requestCount)
+    assertEquals(fileContent("1.png"), File(outputDir, "first.png").readText())
+    assertEquals(fileContent("1.png"), mediaCache.cachedFiles[imageUrl]!!.readText())
+
+    assertEquals(ImageSaverMediaDownloader.Source.MediaCache, save(imageUrl, "second.png"))
+    assertEquals(1, server.requestCount)
+    assertEquals(fileContent("1.png"), File(outputDir, "second.png").readText())
+
+    assertTrue(mediaCache.tempFilesDir.listFiles()!!.isEmpty())
+  }
+
+  @Test
+  fun `test local file is used instead of downloading`() = runBlocking {
+    val imageUrl = server.url("/1.png")
+    val localFile = temporaryFolder.newFile("local.png").apply { writeText("local content") }
+
+    val source = downloader.download(
+      imageUrl = imageUrl,
+      openOutputStream = { File(outputDir, "1.png").outputStream() },
+      openLocalInputStream = { localFile.inputStream() }
+    )
+
+    assertEquals(ImageSaverMediaDownloader.Source.LocalFile, source)
+    assertEquals(0, server.requestCount)
+    assertEquals("local content", File(outputDir, "1.png").readText())
+    assertTrue(mediaCache.cachedFiles.isEmpty())
+  }
+
+  @Test
+  fun `test file is not cached when caching is not allowed`() = runBlocking {
+    val imageUrl = server.url("/1.png")
+    mediaCache.cachingAllowed = false
+
+    assertEquals(ImageSaverMediaDownloader.Source.Network, save(imageUrl, "first.png"))
+    assertEquals(ImageSaverMediaDownloader.Source.Network, save(imageUrl, "second.png"))
+
+    assertEquals(2, server.requestCount)
+    assertEquals(fileContent("1.png"), File(outputDir, "first.png").readText())
+    assertEquals(fileContent("1.png"), File(outputDir, "second.png").readText())
+    assertTrue(mediaCache.cachedFiles.isEmpty())
+  }
+
+  @Test
+  fun `test not found file is not cached`() = runBlocking {
+    val imageUrl = server.url("/missing.png")
+
+    try {
+      save(imageUrl, "missing.png")
+      fail("Must throw NotFoundException")
+    } catch (error: ImageSaverV2ServiceDelegate.NotFoundException) {
+      // expected
+    }
+
+    assertEquals(1, server.requestCount)
+    assertTrue(mediaCache.cachedFiles.isEmpty())
+    assertTrue(mediaCache.tempFilesDir.listFiles()!!.isEmpty())
+  }
+
+  @Test
+  fun `test interrupted download is not cached`() = runBlocking {
+    val imageUrl = server.url("/broken.png")
+
+    try {
+      save(imageUrl, "broken.png")
+      fail("Must throw IOException")
+    } catch (error: IOException) {
+      // expected
+    }
+
+    assertTrue(mediaCache.cachedFiles.isEmpty())
+    assertTrue(mediaCache.tempFilesDir.listFiles()!!.isEmpty())
+  }
+
+  @Test
+  fun `test batch save respects per host limit and downloads every file once`() = runBlocking {
+    val scheduler = ThreadDownloadScheduler(maxConcurrentThreads = 8, maxConcurrentThreadsPerSite = 2)
+    val imageUrls = (0 until 20).map { index -> server.url("/$index.png") }
+
+    scheduler.schedule(imageUrls, { imageUrl -> imageUrl.host }) { index, imageUrl ->
+      assertEquals(ImageSaverMediaDownloader.Source.Network, save(imageUrl, "$index.png"))
+    }
+
+    assertEquals(imageUrls.size, server.requestCount)
+    assertTrue("maxInFlightRequests=${maxInFlightRequests.get()}", maxInFlightRequests.get() <= 2)
+
+    imageUrls.forEachIndexed { index, imageUrl ->
+      assertEquals(fileContent("$index.png"), File(outputDir, "$index.png").readText())
+      assertEquals(fileContent("$index.png"), mediaCache.cachedFiles[imageUrl]!!.readText())
+    }
+
+    // Saving the same media again (e.g. into another directory) must not hit the network
+    scheduler.schedule(imageUrls, { imageUrl -> imageUrl.host }) { index, imageUrl ->
+      assertEquals(ImageSaverMediaDownloader.Source.MediaCache, save(imageUrl, "copy_$index.png"))
+    }
+
+    assertEquals(imageUrls.size, server.requestCount)
+    imageUrls.indices.forEach { index ->
+      assertEquals(fileContent("$index.png"), File(outputDir, "copy_$index.png").readText())
+    }
+
+    assertFalse(mediaCache.tempFilesDir.listFiles()!!.any())
+  }
+
+  private suspend fun save(imageUrl: HttpUrl, fileName: String): ImageSaverMediaDownloader.Source {
+    return downloader.download(
+      imageUrl = imageUrl,
+      openOutputStream = { File(outputDir, fileName).outputStream() }
+    )
+  }
+
+  private fun fileContent(fileName: String): String {
+    return "content of $fileName ".repeat(1024)
+  }
+
+  private class FakeMediaCache(
+    private val cacheDir: File,
+    val tempFilesDir: File
+  ) : ImageSaverMediaDownloader.MediaCache {
+    val cachedFiles = ConcurrentHashMap<HttpUrl, File>()
+
+    @Volatile
+    var cachingAllowed = true
+
+    override fun findCachedFile(imageUrl: HttpUrl): File? {
+      return cachedFiles[imageUrl]
+    }
+
+    override fun createTempFile(imageUrl: HttpUrl): File? {
+      if (!cachingAllowed) {
+        return null
+      }
+
+      return File.createTempFile("image_saver_", null, tempFilesDir)
+    }
+
+    override fun commit(imageUrl: HttpUrl, tempFile: File) {
+      val cacheFile = File(cacheDir, imageUrl.pathSegments.last())
+      check(tempFile.renameTo(cacheFile)) { "Failed to rename ${tempFile.absolutePath}" }
+
+      cachedFiles[imageUrl] = cacheFile
+    }
+  }
+
+  companion object {
+    private const val RESPONSE_DELAY_MS = 20L
+  }
+
+}
@@ -0,0 +1,229 @@
+package com.github.k1rakishou.chan.features.media_viewer.helper
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+class MediaViewerPrefetchPlannerTest {
+  private val server = MockWebServer()
+  private val okHttpClient = OkHttpClient()
+  private val calls = mutableMapOf<Int, Call>()
+  private val cachedPositions = mutableSetOf<Int>()
+
+  private var currentTime = 0L
+  private var networkType = MediaViewerPrefetchPlanner.NetworkType.Unmetered
+  private var mediaSize: Long? = MEDIA_SIZE
+  private var cacheBudget = 100L * MEDIA_SIZE
+
+  private lateinit var planner: MediaViewerPrefetchPlanner
+
+  @Before
+  fun setUp() {
+    server.dispatcher = object : Dispatcher() {
+      override fun dispatch(request: RecordedRequest): MockResponse {
+        // Keep the prefetches running long enough for the test to cancel them
+        return MockResponse()
+          .setBody("media")
+          .setHeadersDelay(RESPONSE_DELAY_MS, TimeUnit.MILLISECONDS)
+      }
+    }
+    server.start()
+
+    planner = MediaViewerPrefetchPlanner(
+      prefetcher = { prefetchItem -> prefetch(prefetchItem) },
+      itemsCount = { MEDIA_COUNT },
+      itemAt = { position ->
+        if (position in cachedPositions) {
+          null
+        } else {
+          MediaViewerPrefetchPlanner.PrefetchItem(server.url("/media/$position"), mediaSize, null)
+        }
+      },
+      networkType = { networkType },
+      cacheBudgetBytes = { cacheBudget },
+      currentTimeMillis = { currentTime }
+    )
+  }
+
+  @After
+  fun tearDown() {
+    okHttpClient.dispatcher.cancelAll()
+    server.shutdown()
+  }
+
+  @Test
+  fun `prefetches the next pages in the swipe direction`() {
+    swipeTo(10)
+
+    assertEquals(setOf(11, 12, 13, 14), planner.activePrefetchPositions)
+    assertEquals(setOf(11, 12, 13, 14), takeRequestedPositions(4))
+
+    swipeTo(9)
+
+    assertEquals(setOf(5, 6, 7, 8), planner.activePrefetchPositions)
+    assertEquals(setOf(5, 6, 7, 8), takeRequestedPositions(4))
+  }
+
+  @Test
+  fun `prefetches of the skipped pages are canceled`() {
+    swipeTo(10)
+    assertEquals(setOf(11, 12, 13, 14), takeRequestedPositions(4))
+
+    swipeTo(11)
+
+    // 11 is the current page now, its prefetch is left to the pager
+    assertFalse(calls.getValue(11).isCanceled())
+    assertEquals(setOf(12, 13, 14, 15), planner.activePrefetchPositions)
+
+    // Reversing the direction
+    swipeTo(10)
+
+    (12..15).forEach { position -> assertTrue(calls.getValue(position).isCanceled()) }
+    assertEquals(setOf(6, 7, 8, 9), planner.activePrefetchPositions)
+
+    // Jumping far away (e.g. via the thumbnail strip)
+    swipeTo(30)
+
+    (6..9).forEach { position -> assertTrue(calls.getValue(position).isCanceled()) }
+    assertEquals(setOf(31, 32, 33, 34), planner.activePrefetchPositions)
+  }
+
+  @Test
+  fun `fast swiping increases the amount of prefetched pages`() {
+    swipeTo(0)
+    assertEquals(4, planner.activePrefetchPositions.size)
+
+    swipeTo(1, afterMs = 500)
+    swipeTo(2, afterMs = 500)
+
+    assertEquals((3..10).toSet(), planner.activePrefetchPositions)
+  }
+
+  @Test
+  fun `slow swiping decreases the amount of prefetched pages`() {
+    swipeTo(0)
+    swipeTo(1, afterMs = 30_000)
+
+    assertEquals(setOf(2, 3), planner.activePrefetchPositions)
+  }
+
+  @Test
+  fun `amount of prefetched pages depends on the network type`() {
+    networkType = MediaViewerPrefetchPlanner.NetworkType.Metered
+    swipeTo(0)
+    assertEquals(setOf(1, 2), planner.activePrefetchPositions)
+
+    networkType = MediaViewerPrefetchPlanner.NetworkType.Slow
+    swipeTo(1, afterMs = 5000)
+    assertEquals(setOf(2), planner.activePrefetchPositions)
+
+    networkType = MediaViewerPrefetchPlanner.NetworkType.None
+    swipeTo(2, afterMs = 5000)
+    assertTrue(planner.activePrefetchPositions.isEmpty())
+
+    assertEquals(setOf(1, 2), takeRequestedPositions(2))
+    assertNull(server.takeRequest(RESPONSE_DELAY_MS / 4, TimeUnit.MILLISECONDS))
+  }
+
+  @Test
+  fun `prefetched media does not exceed the cache budget`() {
+    cacheBudget = 2 * MEDIA_SIZE + 1
+    swipeTo(0)
+    assertEquals(setOf(1, 2), planner.activePrefetchPositions)
+
+    // Unknown sizes are estimated
+    planner.cancelAll()
+    mediaSize = null
+    cacheBudget = 3L * 1024 * 1024
+    swipeTo(20)
+    assertEquals(setOf(21), planner.activePrefetchPositions)
+  }
+
+  @Test
+  fun `cached pages are not prefetched`() {
+    cachedPositions += setOf(11, 13)
+    swipeTo(10)
+
+    assertEquals(setOf(12, 14), planner.activePrefetchPositions)
+    assertEquals(setOf(12, 14), takeRequestedPositions(2))
+  }
+
+  @Test
+  fun `prefetching stops at the end of the list`() {
+    swipeTo(MEDIA_COUNT - 2)
+    assertEquals(setOf(MEDIA_COUNT - 1), planner.activePrefetchPositions)
+
+    swipeTo(MEDIA_COUNT - 1, afterMs = 5000)
+    swipeTo(1, afterMs = 5000)
+    assertEquals(setOf(0), planner.activePrefetchPositions)
+  }
+
+  @Test
+  fun `cancelAll cancels all of the prefetches`() {
+    swipeTo(10)
+    takeRequestedPositions(4)
+
+    planner.cancelAll()
+
+    assertTrue(planner.activePrefetchPositions.isEmpty())
+    (11..14).forEach { position -> assertTrue(calls.getValue(position).isCanceled()) }
+  }
+
+  private fun swipeTo(position: Int, afterMs: Long = 5000) {
+    currentTime += afterMs
+    planner.onPageSelected(position)
+  }
+
+  private fun takeRequestedPositions(count: Int): Set<Int> {
+    return (0 until count)
+      .map { server.takeRequest(5, TimeUnit.SECONDS)!!.requestUrl!!.pathSegments.last().toInt() }
+      .toSet()
+  }
+
+  private fun prefetch(prefetchItem: MediaViewerPrefetchPlanner.PrefetchItem): MediaViewerPrefetchPlanner.PrefetchHandle {
+    val position = prefetchItem.url.pathSegments.last().toInt()
+    val completed = AtomicBoolean(false)
+
+    val call = okHttpClient.newCall(Request.Builder().url(prefetchItem.url).build())
+    call.enqueue(object : Callback {
+      override fun onFailure(call: Call, e: IOException) {
+        completed.set(true)
+      }
+
+      override fun onResponse(call: Call, response: Response) {
+        response.use { it.body!!.string() }
+        completed.set(true)
+      }
+    })
+
+    calls[position] = call
+
+    return object : MediaViewerPrefetchPlanner.PrefetchHandle {
+      override fun isRunning(): Boolean = !completed.get() && !call.isCanceled()
+      override fun cancel() = call.cancel()
+    }
+  }
+
+  companion object {
+    private const val MEDIA_COUNT = 50
+    private const val MEDIA_SIZE = 1024L * 1024
+    private const val RESPONSE_DELAY_MS = 2000L
+  }
+
+}
@@ -0,0 +1,68 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.concurrent.TimeUnit
+
+class ByteRateLimiterTest {
+  private var now = TimeUnit.SECONDS.toNanos(100)
+  private var maxBytesPerSecond = 1000L
+  private var slept = 0L
+
+  private val byteRateLimiter = ByteRateLimiter(
+    maxBytesPerSecond = { maxBytesPerSecond },
+    nanoTime = { now },
+    sleepNanos = { nanos ->
+      slept += nanos
+      now += nanos
+    }
+  )
+
+  @Test
+  fun `test burst of one second is allowed without waiting`() {
+    assertEquals(0L, byteRateLimiter.reserve(1000))
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(500), byteRateLimiter.reserve(500))
+  }
+
+  @Test
+  fun `test budget is shared by all callers`() {
+    byteRateLimiter.reserve(1000)
+
+    // Two downloads reserving after the burst is used up wait one after another
+    assertEquals(TimeUnit.SECONDS.toNanos(1), byteRateLimiter.reserve(1000))
+    assertEquals(TimeUnit.SECONDS.toNanos(2), byteRateLimiter.reserve(1000))
+  }
+
+  @Test
+  fun `test unused budget does not accumulate`() {
+    byteRateLimiter.reserve(1000)
+    now += TimeUnit.SECONDS.toNanos(60)
+
+    assertEquals(0L, byteRateLimiter.reserve(1000))
+    assertEquals(TimeUnit.SECONDS.toNanos(1), byteRateLimiter.reserve(1000))
+  }
+
+  @Test
+  fun `test no limit`() {
+    maxBytesPerSecond = 0L
+
+    repeat(100) { assertEquals(0L, byteRateLimiter.reserve(1_000_000)) }
+  }
+
+  @Test
+  fun `test copy throttled`() {
+    val data = ByteArray(10_000) { index -> index.toByte() }
+    val outputStream = ByteArrayOutputStream()
+
+    val copied = byteRateLimiter.copyThrottled(ByteArrayInputStream(data), outputStream)
+
+    assertEquals(data.size.toLong(), copied)
+    assertTrue(data.contentEquals(outputStream.toByteArray()))
+    // The first second worth of bytes is the burst, the other 9000 bytes take 9 seconds
+    assertEquals(TimeUnit.SECONDS.toNanos(9), slept)
+  }
+
+}
@@ -0,0 +1,133 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import android.app.Application
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.thread.ThreadDownload
+import com.google.gson.Gson
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.joda.time.DateTime
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = Application::class)
+class ThreadDownloadPassTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val gson = Gson()
+  private val thread1 = threadDownload(ChanDescriptor.ThreadDescriptor.create("4chan", "g", 1L))
+  private val thread2 = threadDownload(ChanDescriptor.ThreadDescriptor.create("4chan", "g", 2L))
+  private val thread3 = threadDownload(ChanDescriptor.ThreadDescriptor.create("2ch.hk", "b", 3L))
+  private val threadDownloads = listOf(thread1, thread2, thread3)
+
+  @Test
+  fun `test interrupted pass is resumed`() = runBlocking {
+    val stateFile = stateFile()
+    val processed = mutableListOf<ThreadDownload>()
+
+    lateinit var job: Job
+    job = launch {
+      pass(stateFile).run(threadDownloads) { _, _, threadDownload ->
+        if (threadDownload == thread2) {
+          // The worker is stopped while the second thread is being processed
+          job.cancel()
+          awaitCancellation()
+        }
+
+        processed += threadDownload
+        return@run processedThread()
+      }
+    }
+
+    job.join()
+
+    assertTrue(job.isCancelled)
+    assertEquals(listOf(thread1), processed)
+    processed.clear()
+
+    val progress = mutableListOf<Pair<Int, Int>>()
+
+    // The next run (possibly in a new process) only processes what was left
+    pass(stateFile).run(threadDownloads) { index, total, threadDownload ->
+      processed += threadDownload
+      progress += index to total
+      return@run processedThread()
+    }
+
+    assertEquals(listOf(thread2, thread3), processed)
+    assertEquals(listOf(1 to 2, 2 to 2), progress)
+    processed.clear()
+
+    // The pass was finished so the run after it starts a new one
+    pass(stateFile).run(threadDownloads) { _, _, threadDownload ->
+      processed += threadDownload
+      return@run processedThread()
+    }
+
+    assertEquals(threadDownloads, processed)
+  }
+
+  @Test
+  fun `test state of skipped thread is not persisted`() = runBlocking {
+    val stateFile = stateFile()
+
+    pass(stateFile).run(threadDownloads) { _, _, threadDownload ->
+      if (threadDownload == thread1) {
+        return@run processedThread()
+      }
+
+      return@run ThreadDownloadPass.ThreadResult.Skipped
+    }
+
+    val stateStore = ThreadDownloadStateStore(stateFile, gson)
+    assertEquals(ThreadDownloadStateStore.ThreadState(LAST_MODIFIED, true), stateStore.getThreadState(thread1.threadDescriptor))
+    assertNull(stateStore.getThreadState(thread2.threadDescriptor))
+    assertNull(stateStore.getThreadState(thread3.threadDescriptor))
+  }
+
+  private fun pass(stateFile: File): ThreadDownloadPass {
+    return ThreadDownloadPass(
+      threadDownloadStateStore = ThreadDownloadStateStore(stateFile, gson),
+      // One thread at a time so that the order of the threads is always the same
+      threadDownloadScheduler = ThreadDownloadScheduler(maxConcurrentThreads = 1, maxConcurrentThreadsPerSite = 1)
+    )
+  }
+
+  private fun processedThread(): ThreadDownloadPass.ThreadResult {
+    return ThreadDownloadPass.ThreadResult.Processed(ThreadDownloadStateStore.ThreadState(LAST_MODIFIED, true))
+  }
+
+  private fun stateFile(): File {
+    return File(temporaryFolder.root, ThreadDownloadStateStore.STATE_FILE_NAME)
+  }
+
+  private fun threadDownload(threadDescriptor: ChanDescriptor.ThreadDescriptor): ThreadDownload {
+    return ThreadDownload(
+      ownerThreadDatabaseId = threadDescriptor.threadNo,
+      threadDescriptor = threadDescriptor,
+      downloadMedia = true,
+      createdOn = DateTime.now(),
+      threadThumbnailUrl = null,
+      lastUpdateTime = null,
+      downloadResultMsg = null
+    )
+  }
+
+  companion object {
+    private const val LAST_MODIFIED = "Mon, 19 Oct 2026 10:00:00 GMT"
+  }
+
+}
@@ -0,0 +1,106 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import junit.framework.Assert.assertEquals
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.TestCoroutineScope
+import kotlinx.coroutines.test.runBlockingTest
+import org.junit.Test
+import kotlin.coroutines.ContinuationInterceptor
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class ThreadDownloadSchedulerTest {
+
+  @Test
+  fun `test all items are processed`() {
+    runBlockingTest {
+      val scheduler = scheduler(maxConcurrentThreads = 3, maxConcurrentThreadsPerSite = 2)
+      val items = (0 until 50).map { index -> Item(site = "site${index % 4}", durationMs = 1) }
+      val processed = mutableSetOf<Int>()
+
+      scheduler.schedule(items, { item -> item.site }) { index, item ->
+        delay(item.durationMs)
+        processed += index
+      }
+
+      assertEquals(items.indices.toSet(), processed)
+    }
+  }
+
+  @Test
+  fun `test global and per site limits are respected`() {
+    runBlockingTest {
+      val scheduler = scheduler(maxConcurrentThreads = 4, maxConcurrentThreadsPerSite = 2)
+      val items = (0 until 40).map { index -> Item(site = "site${index % 3}", durationMs = 5) }
+
+      var running = 0
+      var maxRunning = 0
+      val runningPerSite = mutableMapOf<String, Int>()
+      var maxRunningPerSite = 0
+
+      scheduler.schedule(items, { item -> item.site }) { _, item ->
+        ++running
+        maxRunning = Math.max(maxRunning, running)
+
+        val count = (runningPerSite[item.site] ?: 0) + 1
+        runningPerSite[item.site] = count
+        maxRunningPerSite = Math.max(maxRunningPerSite, count)
+
+        delay(item.durationMs)
+
+        runningPerSite[item.site] = runningPerSite[item.site]!! - 1
+        --running
+      }
+
+      // Three sites with two slots each could run six threads, the global limit allows four
+      assertEquals(4, maxRunning)
+      assertEquals(2, maxRunningPerSite)
+      assertEquals(0, running)
+    }
+  }
+
+  @Test
+  fun `test slow site does not stall other sites`() {
+    runBlockingTest {
+      val scheduler = scheduler(maxConcurrentThreads = 4, maxConcurrentThreadsPerSite = 2)
+
+      // The slow site threads go first, like they would with the old sequential loop
+      val slowItems = (0 until 6).map { Item(site = "slow", durationMs = 300) }
+      val fastItems = (0 until 20).map { Item(site = "fast", durationMs = 10) }
+      val items = slowItems + fastItems
+
+      val finished = mutableListOf<Item>()
+      val finishedAt = LongArray(items.size)
+
+      scheduler.schedule(items, { item -> item.site }) { index, item ->
+        delay(item.durationMs)
+
+        finished += item
+        finishedAt[index] = currentTime
+      }
+
+      // The slow site only gets two slots, the other two are used by the fast site
+      assertEquals(fastItems + slowItems, finished)
+      assertEquals(100L, fastItems.indices.maxOf { index -> finishedAt[slowItems.size + index] })
+      assertEquals(300L, slowItems.indices.minOf { index -> finishedAt[index] })
+      // Sequentially it would take 2000ms
+      assertEquals(900L, currentTime)
+    }
+  }
+
+  private fun TestCoroutineScope.scheduler(
+    maxConcurrentThreads: Int,
+    maxConcurrentThreadsPerSite: Int
+  ): ThreadDownloadScheduler {
+    // The test dispatcher uses virtual time so the delays finish instantly and in a defined order
+    return ThreadDownloadScheduler(
+      maxConcurrentThreads = maxConcurrentThreads,
+      maxConcurrentThreadsPerSite = maxConcurrentThreadsPerSite,
+      dispatcher = coroutineContext[ContinuationInterceptor] as CoroutineDispatcher
+    )
+  }
+
+  private class Item(val site: String, val durationMs: Long)
+
+}
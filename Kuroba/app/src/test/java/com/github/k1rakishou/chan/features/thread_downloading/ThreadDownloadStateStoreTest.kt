@@ -0,0 +1,90 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import android.app.Application
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.google.gson.Gson
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.runBlocking
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = Application::class)
+class ThreadDownloadStateStoreTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val gson = Gson()
+  private val thread1 = ChanDescriptor.ThreadDescriptor.create("4chan", "g", 1L)
+  private val thread2 = ChanDescriptor.ThreadDescriptor.create("4chan", "g", 2L)
+  private val thread3 = ChanDescriptor.ThreadDescriptor.create("2ch.hk", "b", 3L)
+
+  @Test
+  fun `test interrupted pass is resumed`() = runBlocking {
+    val stateFile = stateFile()
+
+    val store = ThreadDownloadStateStore(stateFile, gson)
+    assertTrue(store.beginPass().isEmpty())
+    store.onThreadProcessed(thread1, ThreadDownloadStateStore.ThreadState("date1", true))
+    store.onThreadProcessed(thread3, ThreadDownloadStateStore.ThreadState(null, false))
+    // The worker is killed here
+
+    val newStore = ThreadDownloadStateStore(stateFile, gson)
+    assertEquals(setOf(thread1, thread3), newStore.beginPass())
+    newStore.onThreadProcessed(thread2, null)
+    newStore.finishPass(listOf(thread1, thread2, thread3))
+
+    assertTrue(ThreadDownloadStateStore(stateFile, gson).beginPass().isEmpty())
+  }
+
+  @Test
+  fun `test thread state is persisted`() = runBlocking {
+    val stateFile = stateFile()
+
+    val store = ThreadDownloadStateStore(stateFile, gson)
+    store.beginPass()
+    store.onThreadProcessed(thread1, ThreadDownloadStateStore.ThreadState("date1", false))
+    store.onThreadProcessed(thread1, ThreadDownloadStateStore.ThreadState("date2", true))
+    store.finishPass(listOf(thread1))
+
+    val newStore = ThreadDownloadStateStore(stateFile, gson)
+    assertEquals(ThreadDownloadStateStore.ThreadState("date2", true), newStore.getThreadState(thread1))
+    assertNull(newStore.getThreadState(thread2))
+  }
+
+  @Test
+  fun `test threads that are not downloaded anymore are forgotten`() = runBlocking {
+    val stateFile = stateFile()
+
+    val store = ThreadDownloadStateStore(stateFile, gson)
+    store.beginPass()
+    store.onThreadProcessed(thread1, ThreadDownloadStateStore.ThreadState("date1", true))
+    store.onThreadProcessed(thread2, ThreadDownloadStateStore.ThreadState("date2", true))
+    store.finishPass(listOf(thread2))
+
+    val newStore = ThreadDownloadStateStore(stateFile, gson)
+    assertNull(newStore.getThreadState(thread1))
+    assertEquals("date2", newStore.getThreadState(thread2)?.lastModified)
+  }
+
+  @Test
+  fun `test broken state file is ignored`() = runBlocking {
+    val stateFile = stateFile()
+    stateFile.writeText("{ broken")
+
+    val store = ThreadDownloadStateStore(stateFile, gson)
+    assertTrue(store.beginPass().isEmpty())
+    assertNull(store.getThreadState(thread1))
+  }
+
+  private fun stateFile(): File = File(temporaryFolder.root, ThreadDownloadStateStore.STATE_FILE_NAME)
+
+}
@@ -0,0 +1,282 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import android.app.Application
+import com.github.k1rakishou.model.data.post.ChanPostImage
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import okhttp3.HttpUrl
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okio.Buffer
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = Application::class)
+class ThreadMediaDownloaderTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val server = MockWebServer()
+  private val okHttpClient = OkHttpClient()
+  private val cachedFiles = mutableMapOf<HttpUrl, File>()
+
+  private lateinit var blobStore: ThreadMediaBlobStore
+  private lateinit var downloader: ThreadMediaDownloader
+
+  @Before
+  fun setUp() {
+    server.dispatcher = object : Dispatcher() {
+      override fun dispatch(request: RecordedRequest): MockResponse {
+        val fileName = request.requestUrl!!.pathSegments.last()
+        return MockResponse().setBody(Buffer().writeUtf8(fileContent(fileName)))
+      }
+    }
+    server.start()
+
+    blobStore = ThreadMediaBlobStore(File(temporaryFolder.root, ThreadMediaBlobStore.BLOBS_DIR_NAME), NioFileLinker)
+    downloader = ThreadMediaDownloader(
+      okHttpClientProvider = { okHttpClient },
+      blobStore = blobStore,
+      mediaCacheLookup = { _, imageUrl -> cachedFiles[imageUrl] },
+      requestModifier = { _, _, _ -> }
+    )
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+  }
+
+  @Test
+  fun `test same file posted in multiple threads is downloaded once`() = runBlocking {
+    val thread1 = threadDir("thread1")
+    val thread2 = threadDir("thread2")
+    val thread3 = threadDir("thread3")
+
+    // Every site/thread may name the same file differently
+    assertEquals(ThreadMediaDownloader.Result.Downloaded, download(thread1, "1.png", HASH))
+    assertEquals(ThreadMediaDownloader.Result.FromBlobStore, download(thread2, "2.png", HASH))
+    assertEquals(ThreadMediaDownloader.Result.FromBlobStore, download(thread3, "3.png", HASH))
+
+    assertEquals(1, server.requestCount)
+    assertEquals(fileContent("1.png"), File(thread1, "1.png").readText())
+    assertEquals(fileContent("1.png"), File(thread2, "2.png").readText())
+    assertEquals(fileContent("1.png"), File(thread3, "3.png").readText())
+
+    assertEquals(3, blobStore.referenceCount(singleBlob()))
+  }
+
+  @Test
+  fun `test hex and base64 hashes of the same file are deduplicated`() = runBlocking {
+    assertEquals(ThreadMediaDownloader.Result.Downloaded, download(threadDir("thread1"), "1.png", HASH))
+    assertEquals(ThreadMediaDownloader.Result.FromBlobStore, download(threadDir("thread2"), "2.png", HASH_HEX))
+
+    assertEquals(1, server.requestCount)
+  }
+
+  @Test
+  fun `test files already present in the media cache are not downloaded`() = runBlocking {
+    val cachedFile = temporaryFolder.newFile("cached")
+    cachedFile.writeText("cached content")
+    cachedFiles[imageUrl("1.png")] = cachedFile
+
+    val thread1 = threadDir("thread1")
+    val thread2 = threadDir("thread2")
+
+    assertEquals(ThreadMediaDownloader.Result.FromMediaCache, download(thread1, "1.png", HASH))
+    assertEquals(ThreadMediaDownloader.Result.FromBlobStore, download(thread2, "1.png", HASH))
+
+    assertEquals(0, server.requestCount)
+    assertEquals("cached content", File(thread1, "1.png").readText())
+    assertEquals("cached content", File(thread2, "1.png").readText())
+  }
+
+  @Test
+  fun `test already downloaded thread files are skipped`() = runBlocking {
+    val thread1 = threadDir("thread1")
+
+    assertEquals(ThreadMediaDownloader.Result.Downloaded, download(thread1, "1.png", HASH))
+    assertEquals(ThreadMediaDownloader.Result.AlreadyExists, download(thread1, "1.png", HASH))
+
+    assertEquals(1, server.requestCount)
+  }
+
+  @Test
+  fun `test files without hash are downloaded per thread`() = runBlocking {
+    assertEquals(ThreadMediaDownloader.Result.Downloaded, download(threadDir("thread1"), "1.png", null))
+    assertEquals(ThreadMediaDownloader.Result.Downloaded, download(threadDir("thread2"), "1.png", null))
+
+    assertEquals(2, server.requestCount)
+    assertFalse(blobStore.blobsDir.exists() && blobStore.blobsDir.listFiles()!!.isNotEmpty())
+  }
+
+  @Test
+  fun `test thumbnails and full images do not share blobs`() = runBlocking {
+    val thread1 = threadDir("thread1")
+
+    assertEquals(ThreadMediaDownloader.Result.Downloaded, download(thread1, "1s.jpg", HASH, isThumbnail = true))
+    assertEquals(ThreadMediaDownloader.Result.Downloaded, download(thread1, "1.jpg", HASH))
+
+    assertEquals(2, server.requestCount)
+    assertEquals(fileContent("1s.jpg"), File(thread1, "1s.jpg").readText())
+    assertEquals(fileContent("1.jpg"), File(thread1, "1.jpg").readText())
+  }
+
+  @Test
+  fun `test blobs are deleted once no thread references them`() = runBlocking {
+    val thread1 = threadDir("thread1")
+    val thread2 = threadDir("thread2")
+
+    download(thread1, "1.png", HASH)
+    download(thread2, "1.png", HASH)
+    val blob = singleBlob()
+
+    thread1.deleteRecursively()
+    assertEquals(0, blobStore.collectGarbage())
+    assertEquals(1, blobStore.referenceCount(blob))
+
+    thread2.deleteRecursively()
+    assertEquals(1, blobStore.collectGarbage())
+    assertFalse(blob.exists())
+
+    // The file is downloaded again when needed
+    assertEquals(ThreadMediaDownloader.Result.Downloaded, download(threadDir("thread3"), "1.png", HASH))
+    assertEquals(2, server.requestCount)
+  }
+
+  @Test
+  fun `test failed download does not leave a blob behind`() = runBlocking {
+    server.dispatcher = object : Dispatcher() {
+      override fun dispatch(request: RecordedRequest): MockResponse = MockResponse().setResponseCode(404)
+    }
+
+    val thread1 = threadDir("thread1")
+
+    assertEquals(ThreadMediaDownloader.Result.Failed, download(thread1, "1.png", HASH))
+    assertFalse(File(thread1, "1.png").exists())
+    assertTrue(blobStore.blobsDir.listFiles().isNullOrEmpty())
+  }
+
+  @Test
+  fun `test blob is not locked while the file is being downloaded`() = runBlocking {
+    val responseLatch = CountDownLatch(1)
+    val requestReceived = CountDownLatch(1)
+
+    server.dispatcher = object : Dispatcher() {
+      override fun dispatch(request: RecordedRequest): MockResponse {
+        requestReceived.countDown()
+        responseLatch.await(10, TimeUnit.SECONDS)
+
+        return MockResponse().setBody(Buffer().writeUtf8(fileContent("1.png")))
+      }
+    }
+
+    val thread1 = threadDir("thread1")
+    val download = async(Dispatchers.IO) { download(thread1, "1.png", HASH) }
+
+    assertTrue(requestReceived.await(10, TimeUnit.SECONDS))
+
+    val blobName = ThreadMediaBlobStore.blobName(postImage("1.png", HASH), false, "1.png", "test")!!
+    withTimeout(5_000) { blobStore.withBlobLock(blobName) { } }
+
+    // The temp file of the running download must survive the garbage collection
+    assertEquals(0, blobStore.collectGarbage())
+
+    responseLatch.countDown()
+
+    assertEquals(ThreadMediaDownloader.Result.Downloaded, download.await())
+    assertEquals(fileContent("1.png"), File(thread1, "1.png").readText())
+    assertEquals(1, blobStore.referenceCount(singleBlob()))
+  }
+
+  @Test
+  fun `test bad hashes are not used`() {
+    assertNull(ThreadMediaBlobStore.normalizeFileHash(null))
+    assertNull(ThreadMediaBlobStore.normalizeFileHash(""))
+    assertNull(ThreadMediaBlobStore.normalizeFileHash("abc"))
+    assertNull(ThreadMediaBlobStore.normalizeFileHash("../../etc/passwd"))
+    assertEquals(HASH_HEX, ThreadMediaBlobStore.normalizeFileHash(HASH))
+    assertEquals(HASH_HEX, ThreadMediaBlobStore.normalizeFileHash(HASH_HEX.uppercase()))
+  }
+
+  private suspend fun download(
+    outputDirectory: File,
+    name: String,
+    fileHash: String?,
+    isThumbnail: Boolean = false
+  ): ThreadMediaDownloader.Result {
+    return downloader.download(
+      outputDirectory = outputDirectory,
+      siteName = "test",
+      postImage = postImage(name, fileHash),
+      isThumbnail = isThumbnail,
+      name = name,
+      imageUrl = imageUrl(name)
+    )
+  }
+
+  private fun postImage(name: String, fileHash: String?): ChanPostImage {
+    return ChanPostImage(
+      serverFilename = name,
+      imageUrl = imageUrl(name),
+      fileSize = 1024L,
+      fileHash = fileHash
+    )
+  }
+
+  private fun singleBlob(): File {
+    val blobs = blobStore.blobsDir.listFiles()!!
+    assertEquals(1, blobs.size)
+
+    return blobs.first()
+  }
+
+  private fun threadDir(name: String): File {
+    val directory = File(temporaryFolder.root, name)
+    directory.mkdirs()
+
+    return directory
+  }
+
+  private fun imageUrl(name: String): HttpUrl = server.url("/image/$name")
+
+  private fun fileContent(fileName: String): String = "content of $fileName"
+
+  private object NioFileLinker : ThreadMediaBlobStore.FileLinker {
+    override fun link(source: File, target: File): Boolean {
+      Files.createLink(target.toPath(), source.toPath())
+      return true
+    }
+
+    override fun linkCount(file: File): Int {
+      return Files.getAttribute(file.toPath(), "unix:nlink") as Int
+    }
+  }
+
+  companion object {
+    private const val HASH = "ZGVhZGJlZWZkZWFkYmVlZg=="
+    private const val HASH_HEX = "64656164626565666465616462656566"
+  }
+
+}
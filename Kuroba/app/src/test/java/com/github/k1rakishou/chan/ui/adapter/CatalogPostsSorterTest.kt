@@ -0,0 +1,255 @@
+package com.github.k1rakishou.chan.ui.adapter
+
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPostHttpIcon
+import com.github.k1rakishou.model.data.post.PostComment
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class CatalogPostsSorterTest {
+  private val boardDescriptor = BoardDescriptor.create("test", "g")
+  private val catalogDescriptor = ChanDescriptor.CatalogDescriptor.create(boardDescriptor)
+  private val sortableOrders = PostsFilter.Order.values().filter { order -> order != PostsFilter.Order.BUMP }
+
+  @Test
+  fun `test every order matches a stable comparator sort on random catalogs`() {
+    repeat(30) { seed ->
+      val random = Random(seed)
+      val catalog = randomCatalog(random, threadsCount = 1 + random.nextInt(300))
+
+      for (order in sortableOrders) {
+        val sorter = CatalogPostsSorter(currentTimeMillis = { NOW_SECONDS * 1000L })
+        val sorted = catalog.toMutableList()
+
+        sorter.sort(null, order, sorted)
+
+        assertEquals(
+          "seed=$seed, order=$order",
+          referenceSort(order, catalog).map { post -> post.postDescriptor },
+          sorted.map { post -> post.postDescriptor }
+        )
+      }
+    }
+  }
+
+  @Test
+  fun `test sorted catalog is a permutation ordered by the keys`() {
+    repeat(30) { seed ->
+      val random = Random(seed)
+      val catalog = randomCatalog(random, threadsCount = random.nextInt(500))
+
+      for (order in sortableOrders) {
+        val sorted = catalog.toMutableList()
+        CatalogPostsSorter(currentTimeMillis = { NOW_SECONDS * 1000L }).sort(null, order, sorted)
+
+        assertEquals(catalog.map { post -> post.postDescriptor }.toSet(), sorted.map { post -> post.postDescriptor }.toSet())
+        assertEquals(catalog.size, sorted.size)
+
+        val keys = CatalogPostsSorter.calculateKeys(order, sorted, NOW_SECONDS)
+        for (index in 1 until keys.size) {
+          assertTrue("seed=$seed, order=$order, index=$index", keys[index - 1] <= keys[index])
+        }
+      }
+    }
+  }
+
+  @Test
+  fun `test timestamps that differ by more than Int range are not truncated`() {
+    val catalog = listOf(
+      createThread(1L, timestamp = 0L, lastModified = 0L),
+      createThread(2L, timestamp = Int.MAX_VALUE.toLong() * 3, lastModified = Int.MAX_VALUE.toLong() * 3),
+      createThread(3L, timestamp = Int.MAX_VALUE.toLong() + 1, lastModified = Int.MAX_VALUE.toLong() + 1)
+    )
+
+    assertEquals(listOf(2L, 3L, 1L), sort(PostsFilter.Order.NEWEST, catalog))
+    assertEquals(listOf(1L, 3L, 2L), sort(PostsFilter.Order.OLDEST, catalog))
+    assertEquals(listOf(2L, 3L, 1L), sort(PostsFilter.Order.MODIFIED, catalog))
+  }
+
+  @Test
+  fun `test threads with equal keys keep their bump order`() {
+    val catalog = (1L..50L).map { threadNo -> createThread(threadNo, repliesCount = (threadNo % 3).toInt()) }
+
+    val sorted = sort(PostsFilter.Order.REPLY, catalog)
+
+    assertEquals(
+      (1L..50L).filter { it % 3 == 2L } + (1L..50L).filter { it % 3 == 1L } + (1L..50L).filter { it % 3 == 0L },
+      sorted
+    )
+  }
+
+  @Test
+  fun `test activity order uses one captured time for the whole sort`() {
+    var currentTimeMillis = NOW_SECONDS * 1000L
+    val sorter = CatalogPostsSorter(currentTimeMillis = {
+      // Every call moves the clock forward
+      val now = currentTimeMillis
+      currentTimeMillis += 60_000L
+      now
+    })
+
+    val catalog = randomCatalog(Random(1), threadsCount = 200)
+    val sorted = catalog.toMutableList()
+    sorter.sort(null, PostsFilter.Order.ACTIVITY, sorted)
+
+    assertEquals(
+      referenceSort(PostsFilter.Order.ACTIVITY, catalog).map { post -> post.postDescriptor },
+      sorted.map { post -> post.postDescriptor }
+    )
+  }
+
+  @Test
+  fun `test re-sorting an unchanged catalog reuses the cached order`() {
+    var currentTimeMillis = NOW_SECONDS * 1000L
+    val sorter = CatalogPostsSorter(currentTimeMillis = { currentTimeMillis })
+    val catalog = randomCatalog(Random(2), threadsCount = 300)
+
+    for (order in sortableOrders) {
+      val first = catalog.toMutableList()
+      sorter.sort(catalogDescriptor, order, first)
+      val sortsPerformed = sorter.sortsPerformed
+
+      // Time passes (e.g. a filter is toggled a minute later)
+      currentTimeMillis += 60_000L
+
+      val second = catalog.toMutableList()
+      sorter.sort(catalogDescriptor, order, second)
+
+      assertEquals("order=$order", sortsPerformed, sorter.sortsPerformed)
+      assertEquals("order=$order", first, second)
+    }
+  }
+
+  @Test
+  fun `test changed catalog is sorted again`() {
+    val sorter = CatalogPostsSorter(currentTimeMillis = { NOW_SECONDS * 1000L })
+    val catalog = randomCatalog(Random(3), threadsCount = 100)
+
+    sorter.sort(catalogDescriptor, PostsFilter.Order.REPLY, catalog.toMutableList())
+    assertEquals(1, sorter.sortsPerformed)
+
+    // Same threads, different replies count
+    val changedCatalog = catalog.toMutableList()
+    changedCatalog[10] = createThread(changedCatalog[10].postDescriptor.postNo, repliesCount = 10_000)
+    sorter.sort(catalogDescriptor, PostsFilter.Order.REPLY, changedCatalog)
+
+    assertEquals(2, sorter.sortsPerformed)
+    assertEquals(catalog[10].postDescriptor, changedCatalog[0].postDescriptor)
+
+    // New thread
+    val newCatalog = (listOf(createThread(100_000L)) + catalog).toMutableList()
+    sorter.sort(catalogDescriptor, PostsFilter.Order.REPLY, newCatalog)
+    assertEquals(3, sorter.sortsPerformed)
+
+    // Different order
+    sorter.sort(catalogDescriptor, PostsFilter.Order.IMAGE, catalog.toMutableList())
+    assertEquals(4, sorter.sortsPerformed)
+  }
+
+  @Test
+  fun `test large catalogs`() {
+    val catalog = randomCatalog(Random(4), threadsCount = 50_000)
+    val sorter = CatalogPostsSorter(currentTimeMillis = { NOW_SECONDS * 1000L })
+
+    for (order in sortableOrders) {
+      val reference = referenceSort(order, catalog)
+
+      val sorted = catalog.toMutableList()
+      sorter.sort(catalogDescriptor, order, sorted)
+
+      // Served from the cached sort
+      val resorted = catalog.toMutableList()
+      sorter.sort(catalogDescriptor, order, resorted)
+
+      assertEquals(reference, sorted)
+      assertEquals(reference, resorted)
+    }
+
+    assertEquals(sortableOrders.size, sorter.sortsPerformed)
+  }
+
+  private fun sort(order: PostsFilter.Order, catalog: List<ChanOriginalPost>): List<Long> {
+    val sorted = catalog.toMutableList()
+    CatalogPostsSorter(currentTimeMillis = { NOW_SECONDS * 1000L }).sort(null, order, sorted)
+
+    return sorted.map { post -> post.postDescriptor.postNo }
+  }
+
+  /**
+   * Comparator based sort with the comparisons done on Longs.
+   * */
+  private fun referenceSort(order: PostsFilter.Order, catalog: List<ChanOriginalPost>): List<ChanOriginalPost> {
+    val comparator = when (order) {
+      PostsFilter.Order.BUMP -> return catalog
+      PostsFilter.Order.IMAGE -> compareByDescending<ChanOriginalPost> { post -> post.catalogImagesCount }
+      PostsFilter.Order.REPLY -> compareByDescending { post -> post.catalogRepliesCount }
+      PostsFilter.Order.NEWEST -> compareByDescending { post -> post.timestamp }
+      PostsFilter.Order.OLDEST -> compareBy { post -> post.timestamp }
+      PostsFilter.Order.MODIFIED -> compareByDescending { post -> post.lastModified }
+      PostsFilter.Order.ACTIVITY -> compareBy { post ->
+        val divider = if (post.catalogRepliesCount > 0) post.catalogRepliesCount.toDouble() else 0.0001
+        ((NOW_SECONDS - post.timestamp).toDouble() / divider).toLong()
+      }
+    }
+
+    return catalog.sortedWith(comparator)
+  }
+
+  private fun randomCatalog(random: Random, threadsCount: Int): List<ChanOriginalPost> {
+    return (1..threadsCount).map { threadNo ->
+      createThread(
+        threadNo = threadNo.toLong(),
+        // Small ranges so that there are a lot of equal keys
+        repliesCount = random.nextInt(-1, 50),
+        imagesCount = random.nextInt(-1, 20),
+        timestamp = NOW_SECONDS - random.nextLong(0, 100_000),
+        lastModified = NOW_SECONDS - random.nextLong(0, 1000)
+      )
+    }
+  }
+
+  private fun createThread(
+    threadNo: Long,
+    repliesCount: Int = 0,
+    imagesCount: Int = 0,
+    timestamp: Long = NOW_SECONDS,
+    lastModified: Long = NOW_SECONDS
+  ): ChanOriginalPost {
+    val threadDescriptor = ChanDescriptor.ThreadDescriptor.create(boardDescriptor, threadNo)
+
+    return ChanOriginalPost(
+      chanPostId = 0L,
+      postDescriptor = PostDescriptor.create(threadDescriptor, threadNo),
+      postImages = mutableListOf(),
+      postIcons = mutableListOf<ChanPostHttpIcon>(),
+      repliesTo = mutableSetOf(),
+      timestamp = timestamp,
+      postComment = PostComment(
+        originalComment = "$threadNo",
+        originalUnparsedComment = "$threadNo",
+        linkables = emptyList()
+      ),
+      isSavedReply = false,
+      catalogRepliesCount = repliesCount,
+      catalogImagesCount = imagesCount,
+      lastModified = lastModified,
+      sticky = false,
+      closed = false,
+      archived = false,
+      endless = false,
+      isSage = false,
+      deleted = false,
+      posterIdColor = 0
+    )
+  }
+
+  companion object {
+    private const val NOW_SECONDS = 1_700_000_000L
+  }
+
+}
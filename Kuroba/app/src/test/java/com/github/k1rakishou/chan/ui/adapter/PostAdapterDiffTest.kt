@@ -0,0 +1,188 @@
+package com.github.k1rakishou.chan.ui.adapter
+
+import android.app.Application
+import android.view.View
+import android.view.ViewGroup
+import androidx.recyclerview.widget.RecyclerView
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = Application::class)
+class PostAdapterDiffTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", 1L)
+
+  @Test
+  fun `test same items do not notify anything`() {
+    val items = posts(1L..100L) + footer()
+
+    val events = dispatch(items, posts(1L..100L) + footer())
+
+    assertEquals(emptyList<String>(), events)
+  }
+
+  @Test
+  fun `test new posts are inserted before the footer`() {
+    val oldItems = posts(1L..100L) + footer()
+    val newItems = posts(1L..103L) + footer()
+
+    val events = dispatch(oldItems, newItems)
+
+    assertEquals(listOf("inserted(100, 3)"), events)
+  }
+
+  @Test
+  fun `test only changed posts are notified`() {
+    val oldItems = posts(1L..100L) + footer()
+    val newItems = posts(1L..100L, changedPostNos = setOf(10L, 50L)) + footer()
+
+    val result = PostAdapterDiff.calculate(oldItems, newItems, detectMoves = false)
+    val events = dispatch(result)
+
+    assertEquals(setOf("changed(9, 1)", "changed(49, 1)"), events.toSet())
+    assertEquals(2, events.size)
+    assertEquals(setOf(postDescriptor(10L), postDescriptor(50L)), result.changedPosts)
+  }
+
+  @Test
+  fun `test deleted post is removed and new post is inserted`() {
+    val oldItems = posts(1L..100L) + footer()
+    val newItems = posts((1L..100L).filter { postNo -> postNo != 42L } + 101L) + footer()
+
+    val events = dispatch(oldItems, newItems)
+
+    assertEquals(2, events.size)
+    assertTrue(events.toString(), "removed(41, 1)" in events)
+    assertEquals(newItems.map { it.itemId }, applyEvents(oldItems.map { it.itemId }, newItems, events))
+  }
+
+  @Test
+  fun `test moved last seen indicator does not touch the posts`() {
+    val oldItems = posts(1L..10L) + lastSeen() + footer()
+    val newItems = posts(1L..10L) + lastSeen() + posts(11L..15L) + footer()
+
+    val events = dispatch(oldItems, newItems)
+    assertEquals(listOf("inserted(11, 5)"), events)
+
+    val newItems2 = posts(1L..15L) + lastSeen() + posts(16L..16L) + footer()
+    val events2 = dispatch(newItems, newItems2)
+
+    assertTrue(events2.toString(), events2.none { event -> event.startsWith("changed") })
+    assertEquals(newItems2.map { it.itemId }, applyEvents(newItems.map { it.itemId }, newItems2, events2))
+  }
+
+  @Test
+  fun `test catalog bump is dispatched as a move`() {
+    val oldItems = posts(listOf(1L, 2L, 3L, 4L, 5L)) + footer()
+    val newItems = posts(listOf(4L, 1L, 2L, 3L, 5L), changedPostNos = setOf(4L)) + footer()
+
+    val result = PostAdapterDiff.calculate(oldItems, newItems, detectMoves = true)
+    val events = dispatch(result)
+
+    assertTrue(events.toString(), events.any { event -> event.startsWith("moved") })
+    assertEquals(setOf(postDescriptor(4L)), result.changedPosts)
+  }
+
+  private fun dispatch(oldItems: List<PostAdapterDiff.Item>, newItems: List<PostAdapterDiff.Item>): List<String> {
+    return dispatch(PostAdapterDiff.calculate(oldItems, newItems, detectMoves = false))
+  }
+
+  private fun dispatch(result: PostAdapterDiff.Result): List<String> {
+    val adapter = RecordingAdapter()
+    result.diffResult.dispatchUpdatesTo(adapter)
+
+    return adapter.events
+  }
+
+  /**
+   * Applies inserted/removed events to [oldIds] to check that they transform the old list into
+   * the new one.
+   * */
+  private fun applyEvents(
+    oldIds: List<Long>,
+    newItems: List<PostAdapterDiff.Item>,
+    events: List<String>
+  ): List<Long> {
+    val ids = oldIds.toMutableList()
+    val newIds = newItems.map { it.itemId }
+    val regex = Regex("(\\w+)\\((\\d+), (\\d+)\\)")
+
+    events.forEach { event ->
+      val (type, first, second) = regex.matchEntire(event)!!.destructured
+
+      when (type) {
+        "inserted" -> {
+          val position = first.toInt()
+          repeat(second.toInt()) { offset -> ids.add(position + offset, -100L) }
+        }
+        "removed" -> {
+          val position = first.toInt()
+          repeat(second.toInt()) { ids.removeAt(position) }
+        }
+        "moved" -> ids.add(second.toInt(), ids.removeAt(first.toInt()))
+      }
+    }
+
+    // Inserted items are placeholders, take their ids from the new list
+    return ids.mapIndexed { index, id -> if (id == -100L) newIds[index] else id }
+  }
+
+  private fun posts(postNos: LongRange, changedPostNos: Set<Long> = emptySet()): List<PostAdapterDiff.Item> {
+    return posts(postNos.toList(), changedPostNos)
+  }
+
+  private fun posts(postNos: List<Long>, changedPostNos: Set<Long> = emptySet()): List<PostAdapterDiff.Item> {
+    return postNos.map { postNo ->
+      val postDescriptor = postDescriptor(postNo)
+      val contentHash = if (postNo in changedPostNos) postNo.hashCode() + 1 else postNo.hashCode()
+
+      PostAdapterDiff.Item(PostAdapterDiff.postItemId(postDescriptor), contentHash, postDescriptor)
+    }
+  }
+
+  private fun footer() = listOf(PostAdapterDiff.Item(PostAdapterDiff.FOOTER_ITEM_ID, 0, null))
+
+  private fun lastSeen() = listOf(PostAdapterDiff.Item(PostAdapterDiff.LAST_SEEN_ITEM_ID, 0, null))
+
+  private fun postDescriptor(postNo: Long) = PostDescriptor.create(threadDescriptor, postNo)
+
+  private class RecordingAdapter : RecyclerView.Adapter<RecyclerView.ViewHolder>() {
+    val events = mutableListOf<String>()
+
+    init {
+      registerAdapterDataObserver(object : RecyclerView.AdapterDataObserver() {
+        override fun onItemRangeChanged(positionStart: Int, itemCount: Int, payload: Any?) {
+          events += "changed(${positionStart}, ${itemCount})"
+        }
+
+        override fun onItemRangeInserted(positionStart: Int, itemCount: Int) {
+          events += "inserted(${positionStart}, ${itemCount})"
+        }
+
+        override fun onItemRangeRemoved(positionStart: Int, itemCount: Int) {
+          events += "removed(${positionStart}, ${itemCount})"
+        }
+
+        override fun onItemRangeMoved(fromPosition: Int, toPosition: Int, itemCount: Int) {
+          events += "moved(${fromPosition}, ${toPosition})"
+        }
+      })
+    }
+
+    override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): RecyclerView.ViewHolder {
+      return object : RecyclerView.ViewHolder(View(parent.context)) {}
+    }
+
+    override fun onBindViewHolder(holder: RecyclerView.ViewHolder, position: Int) {
+    }
+
+    override fun getItemCount(): Int = 0
+  }
+
+}
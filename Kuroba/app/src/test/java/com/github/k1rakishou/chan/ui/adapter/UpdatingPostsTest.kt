@@ -0,0 +1,152 @@
+package com.github.k1rakishou.chan.ui.adapter
+
+import android.app.Application
+import android.view.View
+import android.view.ViewGroup
+import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.RecyclerView
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = Application::class)
+class UpdatingPostsTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", 1L)
+
+  @Test
+  fun `test changed off-screen post is not remembered`() {
+    val adapter = TestAdapter(posts(1L..100L, changedPostNos = emptySet()))
+    val recyclerView = createRecyclerView(adapter)
+
+    // Only the first ten posts are on the screen
+    assertEquals(VISIBLE_POSTS, recyclerView.childCount)
+
+    adapter.setPosts(posts(1L..100L, changedPostNos = setOf(2L, 50L)), recyclerView)
+
+    assertTrue(postDescriptor(2L) in adapter.updatingPosts)
+    assertFalse(postDescriptor(50L) in adapter.updatingPosts)
+
+    layout(recyclerView)
+    recyclerView.itemAnimator!!.endAnimations()
+
+    // The old view of the on-screen post was recycled because of the change, nothing is left
+    assertEquals(listOf(postDescriptor(2L)), adapter.recycledBecauseOfUpdate)
+    assertEquals(0, adapter.updatingPosts.size)
+  }
+
+  @Test
+  fun `test off-screen post recycled after a change is actually recycled`() {
+    val adapter = TestAdapter(posts(1L..100L, changedPostNos = emptySet()))
+    val recyclerView = createRecyclerView(adapter)
+
+    adapter.setPosts(posts(1L..100L, changedPostNos = setOf(50L)), recyclerView)
+    layout(recyclerView)
+    recyclerView.itemAnimator!!.endAnimations()
+
+    // Scroll the changed post onto the screen and then away from it again
+    val layoutManager = recyclerView.layoutManager as LinearLayoutManager
+    layoutManager.scrollToPositionWithOffset(49, 0)
+    layout(recyclerView)
+    layoutManager.scrollToPositionWithOffset(0, 0)
+    layout(recyclerView)
+    // Move the views cached by the RecyclerView into the pool
+    recyclerView.setItemViewCacheSize(0)
+
+    assertTrue(postDescriptor(50L) in adapter.actuallyRecycled)
+    assertTrue(adapter.recycledBecauseOfUpdate.isEmpty())
+  }
+
+  private fun createRecyclerView(adapter: TestAdapter): RecyclerView {
+    val recyclerView = RecyclerView(RuntimeEnvironment.application)
+    recyclerView.layoutManager = LinearLayoutManager(RuntimeEnvironment.application)
+    recyclerView.adapter = adapter
+
+    layout(recyclerView)
+    return recyclerView
+  }
+
+  private fun layout(recyclerView: RecyclerView) {
+    recyclerView.measure(
+      View.MeasureSpec.makeMeasureSpec(POST_HEIGHT, View.MeasureSpec.EXACTLY),
+      View.MeasureSpec.makeMeasureSpec(POST_HEIGHT * VISIBLE_POSTS, View.MeasureSpec.EXACTLY)
+    )
+    recyclerView.layout(0, 0, POST_HEIGHT, POST_HEIGHT * VISIBLE_POSTS)
+  }
+
+  private fun posts(postNos: LongRange, changedPostNos: Set<Long>): List<PostAdapterDiff.Item> {
+    return postNos.map { postNo ->
+      val postDescriptor = postDescriptor(postNo)
+      val contentHash = if (postNo in changedPostNos) postNo.hashCode() + 1 else postNo.hashCode()
+
+      PostAdapterDiff.Item(PostAdapterDiff.postItemId(postDescriptor), contentHash, postDescriptor)
+    }
+  }
+
+  private fun postDescriptor(postNo: Long) = PostDescriptor.create(threadDescriptor, postNo)
+
+  /**
+   * Does the same thing with [UpdatingPosts] as [PostAdapter] does.
+   * */
+  private class TestAdapter(
+    private var items: List<PostAdapterDiff.Item>
+  ) : RecyclerView.Adapter<RecyclerView.ViewHolder>() {
+    val updatingPosts = UpdatingPosts()
+    val recycledBecauseOfUpdate = mutableListOf<PostDescriptor>()
+    val actuallyRecycled = mutableListOf<PostDescriptor>()
+
+    init {
+      setHasStableIds(true)
+    }
+
+    fun setPosts(newItems: List<PostAdapterDiff.Item>, recyclerView: RecyclerView) {
+      val result = PostAdapterDiff.calculate(items, newItems, detectMoves = false)
+      items = newItems
+
+      val attachedPosts = (0 until recyclerView.childCount).map { index ->
+        recyclerView.getChildAt(index).tag as PostDescriptor
+      }
+
+      updatingPosts.onPostsUpdating(result.changedPosts, attachedPosts)
+      result.diffResult.dispatchUpdatesTo(this)
+    }
+
+    override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): RecyclerView.ViewHolder {
+      val view = View(parent.context)
+      view.layoutParams = RecyclerView.LayoutParams(POST_HEIGHT, POST_HEIGHT)
+
+      return object : RecyclerView.ViewHolder(view) {}
+    }
+
+    override fun onBindViewHolder(holder: RecyclerView.ViewHolder, position: Int) {
+      holder.itemView.tag = items[position].postDescriptor
+    }
+
+    override fun onViewRecycled(holder: RecyclerView.ViewHolder) {
+      val postDescriptor = holder.itemView.tag as PostDescriptor
+
+      if (updatingPosts.onPostRecycled(postDescriptor)) {
+        recycledBecauseOfUpdate += postDescriptor
+      } else {
+        actuallyRecycled += postDescriptor
+      }
+    }
+
+    override fun getItemId(position: Int): Long = items[position].itemId
+
+    override fun getItemCount(): Int = items.size
+  }
+
+  companion object {
+    private const val POST_HEIGHT = 10
+    private const val VISIBLE_POSTS = 10
+  }
+
+}
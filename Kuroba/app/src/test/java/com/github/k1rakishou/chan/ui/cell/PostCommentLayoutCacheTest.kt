@@ -0,0 +1,198 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import android.app.Application
+import android.graphics.Color
+import android.graphics.RectF
+import android.text.SpannableString
+import android.text.Spanned
+import android.text.TextPaint
+import android.text.style.ForegroundColorSpan
+import androidx.core.text.PrecomputedTextCompat
+import com.github.k1rakishou.common.TextBounds
+import com.github.k1rakishou.core_themes.ChanTheme
+import com.github.k1rakishou.core_themes.DefaultDarkTheme
+import com.github.k1rakishou.core_themes.DefaultLightTheme
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNotNull
+import junit.framework.Assert.assertNotSame
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertSame
+import junit.framework.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+
+@RunWith(RobolectricTestRunner::class)
+@Config(application = Application::class)
+class PostCommentLayoutCacheTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", 1L)
+  private val postDescriptor = PostDescriptor.create(threadDescriptor, 2L)
+  private val commentText = SpannableString("Test comment\nwith two lines")
+  private val params = textMetricsParams(TEXT_SIZE_SP)
+
+  private var precomputedCount = 0
+  private lateinit var cache: PostCommentLayoutCache
+
+  @Before
+  fun setUp() {
+    precomputedCount = 0
+    cache = PostCommentLayoutCache(
+      maxEntries = 16,
+      precomputeText = { text, _ ->
+        ++precomputedCount
+        SpannableString(text)
+      }
+    )
+
+    cache.updateTextMetricsParams(TEXT_SIZE_SP, params)
+  }
+
+  @Test
+  fun `test precomputed comment is reused for the same key`() {
+    val key = key(WIDTH, DefaultDarkTheme())
+
+    cache.precompute(key, commentText)
+    val precomputedText = cache.getPrecomputedText(key, params)
+
+    cache.precompute(key, commentText)
+
+    assertNotNull(precomputedText)
+    assertSame(precomputedText, cache.getPrecomputedText(key(WIDTH, DefaultDarkTheme()), params))
+    assertEquals(1, precomputedCount)
+  }
+
+  @Test
+  fun `test width change invalidates the cached layout`() {
+    val key = key(WIDTH, DefaultDarkTheme())
+    cache.precompute(key, commentText)
+    cache.getOrPutTextBounds(key, WIDTH) { textBounds(2) }
+
+    val newKey = key(WIDTH * 2, DefaultDarkTheme())
+
+    assertNull(cache.getPrecomputedText(newKey, params))
+
+    var boundsCalculated = false
+    val textBounds = cache.getOrPutTextBounds(newKey, WIDTH * 2) {
+      boundsCalculated = true
+      textBounds(1)
+    }
+
+    assertEquals(1, textBounds.lineBounds.size)
+    assertTrue(boundsCalculated)
+
+    cache.precompute(newKey, commentText)
+    assertEquals(2, precomputedCount)
+  }
+
+  @Test
+  fun `test theme change invalidates the cached layout`() {
+    val darkThemeKey = key(WIDTH, DefaultDarkTheme())
+    cache.precompute(darkThemeKey, commentText)
+
+    val lightThemeKey = key(WIDTH, DefaultLightTheme())
+    assertFalse(darkThemeKey == lightThemeKey)
+    assertNull(cache.getPrecomputedText(lightThemeKey, params))
+
+    // Edited colors of a theme with the same name
+    val editedThemeKey = key(WIDTH, DefaultDarkTheme(postQuoteColor = Color.RED))
+    assertFalse(darkThemeKey == editedThemeKey)
+    assertNull(cache.getPrecomputedText(editedThemeKey, params))
+
+    cache.precompute(lightThemeKey, commentText)
+    assertEquals(2, precomputedCount)
+    assertNotSame(cache.getPrecomputedText(darkThemeKey, params), cache.getPrecomputedText(lightThemeKey, params))
+  }
+
+  @Test
+  fun `test comment spans change invalidates the cached layout`() {
+    val key = key(WIDTH, DefaultDarkTheme())
+    cache.precompute(key, commentText)
+
+    val highlightedCommentText = SpannableString(commentText)
+    highlightedCommentText.setSpan(ForegroundColorSpan(Color.RED), 0, 4, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE)
+
+    val highlightedKey = key(WIDTH, DefaultDarkTheme(), highlightedCommentText)
+    assertFalse(key == highlightedKey)
+    assertNull(cache.getPrecomputedText(highlightedKey, params))
+  }
+
+  @Test
+  fun `test text metrics params mismatch is not used`() {
+    val key = key(WIDTH, DefaultDarkTheme())
+    cache.precompute(key, commentText)
+
+    assertNull(cache.getPrecomputedText(key, textMetricsParams(TEXT_SIZE_SP * 2)))
+  }
+
+  @Test
+  fun `test text bounds are cached per available width`() {
+    val key = key(WIDTH, DefaultDarkTheme())
+    var calculatedCount = 0
+
+    repeat(3) {
+      cache.getOrPutTextBounds(key, WIDTH) {
+        ++calculatedCount
+        textBounds(2)
+      }
+    }
+
+    cache.getOrPutTextBounds(key, WIDTH / 2) {
+      ++calculatedCount
+      textBounds(4)
+    }
+
+    assertEquals(2, calculatedCount)
+    assertEquals(4, cache.getOrPutTextBounds(key, WIDTH / 2) { textBounds(0) }.lineBounds.size)
+  }
+
+  @Test
+  fun `test nothing is precomputed until text metrics params are known`() {
+    val key = key(WIDTH, DefaultDarkTheme(), textSizeSp = UNKNOWN_TEXT_SIZE_SP)
+    cache.precompute(key, commentText)
+
+    assertEquals(0, precomputedCount)
+    assertNull(cache.getPrecomputedText(key, params))
+  }
+
+  private fun key(
+    width: Int,
+    theme: ChanTheme,
+    text: CharSequence = commentText,
+    textSizeSp: Int = TEXT_SIZE_SP
+  ): PostCommentLayoutCache.Key {
+    return PostCommentLayoutCache.Key(
+      postDescriptor = postDescriptor,
+      commentHash = PostCommentLayoutCache.commentHash(text),
+      widthPx = width,
+      textSizeSp = textSizeSp,
+      themeHash = PostCommentLayoutCache.themeHash(theme)
+    )
+  }
+
+  private fun textMetricsParams(textSizeSp: Int): PrecomputedTextCompat.Params {
+    val textPaint = TextPaint()
+    textPaint.textSize = textSizeSp.toFloat()
+
+    return PrecomputedTextCompat.Params.Builder(textPaint).build()
+  }
+
+  private fun textBounds(linesCount: Int): TextBounds {
+    return TextBounds(
+      textWidth = WIDTH,
+      textHeight = linesCount * 10,
+      lineBounds = (0 until linesCount).map { RectF() }
+    )
+  }
+
+  companion object {
+    private const val WIDTH = 1000
+    private const val TEXT_SIZE_SP = 14
+    private const val UNKNOWN_TEXT_SIZE_SP = 99
+  }
+
+}
@@ -30,15 +30,11 @@ import com.squareup.moshi.JsonAdapter
 import kotlinx.coroutines.CancellableContinuation
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CompletableDeferred
-import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.NonCancellable
-import kotlinx.coroutines.async
-import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.ensureActive
-import kotlinx.coroutines.supervisorScope
 import kotlinx.coroutines.suspendCancellableCoroutine
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
@@ -1194,76 +1190,6 @@ inline fun <T, reified R> List<T>.mapArray(mapper: (T) -> R): Array<R> {
   return array as Array<R>
 }
 
-suspend fun <T, R> processDataCollectionConcurrently(
-  dataList: Collection<T>,
-  batchCount: Int = Runtime.getRuntime().availableProcessors(),
-  dispatcher: CoroutineDispatcher = Dispatchers.Default,
-  processFunc: suspend (T) -> R?
-): List<R> {
-  if (dataList.isEmpty()) {
-    return emptyList()
-  }
-
-  return supervisorScope {
-    return@supervisorScope dataList
-      .chunked(batchCount)
-      .flatMap { dataChunk ->
-        return@flatMap dataChunk
-          .map { data ->
-            return@map async(dispatcher) {
-              try {
-                ensureActive()
-                return@async processFunc(data)
-              } catch (error: Throwable) {
-                return@async null
-              }
-            }
-          }
-          .awaitAll()
-          .filterNotNull()
-      }
-  }
-}
-
-/**
- * @note: indexed doesn't mean ordered!
- * */
-suspend fun <T, R> processDataCollectionConcurrentlyIndexed(
-  dataList: Collection<T>,
-  batchCount: Int = Runtime.getRuntime().availableProcessors(),
-  dispatcher: CoroutineDispatcher = Dispatchers.Default,
-  processFunc: suspend (Int, T) -> R?
-): List<R> {
-  if (dataList.isEmpty()) {
-    return emptyList()
-  }
-
-  val batchIndex = AtomicInteger(0)
-
-  return supervisorScope {
-    return@supervisorScope dataList
-      .chunked(batchCount)
-      .flatMap { dataChunk ->
-        val results = dataChunk
-          .mapIndexed { index, data ->
-            return@mapIndexed async(dispatcher) {
-              try {
-                ensureActive()
-                return@async processFunc(batchIndex.get() + index, data)
-              } catch (error: Throwable) {
-                return@async null
-              }
-            }
-          }
-          .awaitAll()
-          .filterNotNull()
-
-        batchIndex.addAndGet(results.size)
-        return@flatMap results
-      }
-  }
-}
-
 private const val COOKIE_HEADER_NAME = "Cookie"
 
 fun Request.Builder.appendCookieHeader(value: String): Request.Builder {
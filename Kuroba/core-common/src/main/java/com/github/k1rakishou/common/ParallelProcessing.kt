@@ -0,0 +1,167 @@
+package com.github.k1rakishou.common
+
+import com.github.k1rakishou.core_logger.Logger
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeout
+
+/**
+ * Processes [dataList] with at most [parallelism] items being processed at the same time. A fixed
+ * number of workers pull the items from a shared channel one by one so a slow item only occupies
+ * one worker while the rest of the workers keep processing the remaining items (unlike when the
+ * items are processed in waves where every wave waits for its slowest item).
+ *
+ * Exceptions thrown by [processFunc] do not cancel the rest of the items, they are reported as
+ * failed [ProcessedItem]s instead. The same goes for the items that took longer than [itemTimeoutMs]
+ * (they fail with [ItemProcessingTimeoutException]). Cancellation of the caller cancels all the
+ * workers and is rethrown, so is a [CancellationException] thrown by [processFunc] itself.
+ *
+ * When [preserveOrder] is true the results are returned in the same order as [dataList], otherwise
+ * in the order the items were processed in.
+ * */
+suspend fun <T, R> processDataCollectionInParallel(
+  dataList: Collection<T>,
+  parallelism: Int = Runtime.getRuntime().availableProcessors(),
+  dispatcher: CoroutineDispatcher = Dispatchers.Default,
+  preserveOrder: Boolean = true,
+  itemTimeoutMs: Long? = null,
+  processFunc: suspend (Int, T) -> R
+): ParallelProcessingResult<T, R> {
+  require(parallelism > 0) { "Bad parallelism: $parallelism" }
+  require(itemTimeoutMs == null || itemTimeoutMs > 0) { "Bad itemTimeoutMs: $itemTimeoutMs" }
+
+  if (dataList.isEmpty()) {
+    return ParallelProcessingResult(emptyList())
+  }
+
+  val itemsCount = dataList.size
+  val workersCount = Math.min(parallelism, itemsCount)
+  val processedItems = arrayOfNulls<ProcessedItem<T, R>>(itemsCount)
+  var processedCount = 0
+
+  coroutineScope {
+    // Every item is sent right away so the workers never have to wait for the producer
+    val channel = Channel<IndexedValue<T>>(capacity = itemsCount)
+    dataList.forEachIndexed { index, data -> channel.trySend(IndexedValue(index, data)) }
+    channel.close()
+
+    repeat(workersCount) {
+      launch(dispatcher) {
+        try {
+          for ((index, data) in channel) {
+            val result = processItem(index, data, itemTimeoutMs, processFunc)
+
+            if (preserveOrder) {
+              // Every index is only written once by one worker, reading happens after the workers are joined
+              processedItems[index] = ProcessedItem(index, data, result)
+            } else {
+              synchronized(processedItems) { processedItems[processedCount++] = ProcessedItem(index, data, result) }
+            }
+          }
+        } catch (error: CancellationException) {
+          // A CancellationException thrown by processFunc only completes this worker, it doesn't
+          // cancel the scope, so the items of this worker would be left without results. Cancel the
+          // whole scope so that it's rethrown to the caller instead of returning partial results.
+          this@coroutineScope.cancel(error)
+          throw error
+        }
+      }
+    }
+  }
+
+  @Suppress("UNCHECKED_CAST")
+  return ParallelProcessingResult(processedItems.asList() as List<ProcessedItem<T, R>>)
+}
+
+private suspend fun <T, R> processItem(
+  index: Int,
+  data: T,
+  itemTimeoutMs: Long?,
+  processFunc: suspend (Int, T) -> R
+): ModularResult<R> {
+  return try {
+    val value = if (itemTimeoutMs != null) {
+      withTimeout(itemTimeoutMs) { processFunc(index, data) }
+    } else {
+      processFunc(index, data)
+    }
+
+    ModularResult.value(value)
+  } catch (error: TimeoutCancellationException) {
+    if (itemTimeoutMs != null) {
+      ModularResult.error(ItemProcessingTimeoutException(index, itemTimeoutMs))
+    } else {
+      // Some timeout inside of processFunc
+      ModularResult.error(error)
+    }
+  } catch (error: CancellationException) {
+    throw error
+  } catch (error: Throwable) {
+    ModularResult.error(error)
+  }
+}
+
+class ProcessedItem<T, R>(
+  val index: Int,
+  val data: T,
+  val result: ModularResult<R>
+)
+
+class ParallelProcessingResult<T, R>(
+  val processedItems: List<ProcessedItem<T, R>>
+) {
+  val failures: List<ProcessedItem<T, R>>
+    get() = processedItems.filter { processedItem -> processedItem.result is ModularResult.Error }
+
+  fun hasFailures(): Boolean {
+    return processedItems.any { processedItem -> processedItem.result is ModularResult.Error }
+  }
+
+  /**
+   * Values of the successfully processed items.
+   * */
+  fun values(): List<R> {
+    val values = ArrayList<R>(processedItems.size)
+
+    processedItems.forEach { processedItem ->
+      val result = processedItem.result
+      if (result is ModularResult.Value) {
+        values += result.value
+      }
+    }
+
+    return values
+  }
+
+  fun firstErrorOrNull(): Throwable? {
+    return processedItems.firstNotNullOfOrNull { processedItem -> processedItem.result.errorOrNull() }
+  }
+
+  fun logFailures(tag: String, message: String): ParallelProcessingResult<T, R> {
+    val firstError = firstErrorOrNull()
+      ?: return this
+
+    Logger.e(tag, "$message: ${failures.size} out of ${processedItems.size} items failed, " +
+      "first error: ${firstError.errorMessageOrClassName()}")
+
+    return this
+  }
+}
+
+/**
+ * Values of the successfully processed items that are not null.
+ * */
+fun <T, R : Any> ParallelProcessingResult<T, R?>.valuesNotNull(): List<R> {
+  return values().filterNotNull()
+}
+
+class ItemProcessingTimeoutException(
+  val index: Int,
+  val timeoutMs: Long
+) : Exception("Processing of item at index $index took longer than ${timeoutMs}ms")
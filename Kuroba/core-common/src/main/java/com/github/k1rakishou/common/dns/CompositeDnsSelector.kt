@@ -9,24 +9,44 @@ import java.util.concurrent.atomic.AtomicBoolean
 class CompositeDnsSelector(
   private val okHttpClient: OkHttpClient,
   private val okHttpUseDnsOverHttps: Boolean,
+  private val okHttpRaceDnsResolvers: Boolean,
   private val normalDnsSelectorFactory: NormalDnsSelectorFactory,
-  private val dnsOverHttpsSelectorFactory: DnsOverHttpsSelectorFactory
+  private val dnsOverHttpsSelectorFactory: DnsOverHttpsSelectorFactory,
+  private val dnsCache: DnsCache
 ) : Dns {
   private val initialLog = AtomicBoolean(false)
 
   private var normalNormalDnsSelector: NormalDnsSelector? = null
   private var dnsOverHttpsSelector: Dns? = null
+  private var dnsResolver: Dns? = null
 
   override fun lookup(hostname: String): List<InetAddress> {
     if (initialLog.compareAndSet(false, true)) {
-      Logger.d(TAG, "lookup okHttpUseDnsOverHttps: $okHttpUseDnsOverHttps")
+      Logger.d(TAG, "lookup okHttpUseDnsOverHttps: $okHttpUseDnsOverHttps, " +
+        "okHttpRaceDnsResolvers: $okHttpRaceDnsResolvers")
     }
 
-    if (okHttpUseDnsOverHttps) {
-      return getOrCreateDnsOverHttpsSelector().lookup(hostname)
-    } else {
-      return getOrCreateNormalDnsSelector().lookup(hostname)
+    return dnsCache.lookup(hostname, getOrCreateDnsResolver())
+  }
+
+  @Synchronized
+  fun getOrCreateDnsResolver(): Dns {
+    if (dnsResolver == null) {
+      dnsResolver = if (okHttpUseDnsOverHttps && okHttpRaceDnsResolvers) {
+        RacingDnsResolver(
+          listOf(
+            getOrCreateDnsOverHttpsSelector(),
+            getOrCreateNormalDnsSelector()
+          )
+        )
+      } else if (okHttpUseDnsOverHttps) {
+        getOrCreateDnsOverHttpsSelector()
+      } else {
+        getOrCreateNormalDnsSelector()
+      }
     }
+
+    return dnsResolver!!
   }
 
   @Synchronized
@@ -50,4 +70,4 @@ class CompositeDnsSelector(
   companion object {
     private const val TAG = "CompositeDnsSelector"
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,299 @@
+package com.github.k1rakishou.common.dns
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.core_logger.Logger
+import com.google.gson.Gson
+import com.google.gson.annotations.SerializedName
+import okhttp3.Dns
+import java.io.File
+import java.net.InetAddress
+import java.net.UnknownHostException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.FutureTask
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * DNS cache shared by all of the OkHttp clients.
+ *  - Entries live for [ttlMs]. Neither the system resolver nor OkHttp's DnsOverHttps report record
+ *  TTLs so the same lifetime is used for every host.
+ *  - Expired entries are still returned for up to [maxStaleMs] while a fresh result is resolved in
+ *  the background so that DNS resolution is not on the path of the request.
+ *  - An entry is dropped as soon as one of its addresses can't be connected to (see
+ *  [DnsCacheEventListener]) so that a host that has moved is not tried at its old address again.
+ *  - Concurrent lookups of the same host share a single resolution.
+ *  - The cache is persisted into [cacheFile] so that the first requests after a cold start don't have
+ *  to wait for DNS either (the persisted entries are considered expired and are refreshed right away).
+ * */
+class DnsCache(
+  private val cacheFile: File?,
+  private val gson: Gson = Gson(),
+  private val ttlMs: Long = TTL_MS,
+  private val maxStaleMs: Long = MAX_STALE_MS,
+  private val maxEntries: Int = MAX_ENTRIES,
+  private val executor: Executor = defaultExecutor,
+  private val currentTimeMillis: () -> Long = { System.currentTimeMillis() }
+) {
+  @GuardedBy("entries")
+  private val entries = object : LinkedHashMap<String, Entry>(16, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Entry>?): Boolean {
+      return size > maxEntries
+    }
+  }
+
+  @GuardedBy("inFlight")
+  private val inFlight = HashMap<String, FutureTask<List<InetAddress>>>()
+  @GuardedBy("inFlight")
+  private val refreshing = HashSet<String>()
+
+  private val loaded = AtomicBoolean(false)
+  private val persistScheduled = AtomicBoolean(false)
+
+  @Throws(UnknownHostException::class)
+  fun lookup(hostname: String, resolver: Dns): List<InetAddress> {
+    ensureLoaded()
+
+    val now = currentTimeMillis()
+    val entry = synchronized(entries) { entries[hostname] }
+
+    if (entry != null) {
+      if (now < entry.expiresAt) {
+        return entry.addresses
+      }
+
+      if (now < entry.expiresAt + maxStaleMs) {
+        refreshInBackground(hostname, resolver)
+        return entry.addresses
+      }
+    }
+
+    return resolveAndCache(hostname, resolver)
+  }
+
+  /**
+   * Drops the entry of [hostname] if [failedAddress] is one of its addresses. The next lookup
+   * resolves the host again.
+   * */
+  fun onConnectFailed(hostname: String, failedAddress: InetAddress) {
+    synchronized(entries) {
+      val entry = entries[hostname]
+        ?: return
+
+      if (entry.addresses.none { address -> address == failedAddress }) {
+        return
+      }
+
+      entries.remove(hostname)
+    }
+
+    Logger.d(TAG, "onConnectFailed() dropped '$hostname'")
+    schedulePersist()
+  }
+
+  private fun refreshInBackground(hostname: String, resolver: Dns) {
+    val added = synchronized(inFlight) { refreshing.add(hostname) }
+    if (!added) {
+      return
+    }
+
+    executor.execute {
+      try {
+        resolveAndCache(hostname, resolver)
+      } catch (error: Throwable) {
+        // Keep serving the stale entry
+        Logger.e(TAG, "refreshInBackground('$hostname') error: ${error.errorMessageOrClassName()}")
+      } finally {
+        synchronized(inFlight) { refreshing.remove(hostname) }
+      }
+    }
+  }
+
+  private fun resolveAndCache(hostname: String, resolver: Dns): List<InetAddress> {
+    var isOwner = false
+
+    val task = synchronized(inFlight) {
+      inFlight[hostname]
+        ?: FutureTask { resolveInternal(hostname, resolver) }
+          .also { newTask ->
+            inFlight[hostname] = newTask
+            isOwner = true
+          }
+    }
+
+    if (isOwner) {
+      try {
+        task.run()
+      } finally {
+        synchronized(inFlight) { inFlight.remove(hostname) }
+      }
+    }
+
+    try {
+      return task.get()
+    } catch (error: ExecutionException) {
+      val cause = error.cause
+      if (cause is UnknownHostException) {
+        throw cause
+      }
+
+      throw UnknownHostException("Failed to resolve '$hostname'").apply { initCause(cause ?: error) }
+    }
+  }
+
+  private fun resolveInternal(hostname: String, resolver: Dns): List<InetAddress> {
+    val addresses = resolver.lookup(hostname)
+    if (addresses.isEmpty()) {
+      throw UnknownHostException("No addresses for '$hostname'")
+    }
+
+    val entry = Entry(addresses, currentTimeMillis() + ttlMs)
+    synchronized(entries) { entries[hostname] = entry }
+    schedulePersist()
+
+    return addresses
+  }
+
+  private fun ensureLoaded() {
+    if (cacheFile == null || loaded.get()) {
+      return
+    }
+
+    synchronized(loaded) {
+      if (loaded.get()) {
+        return
+      }
+
+      val now = currentTimeMillis()
+      val persistedEntries = readCacheFile(cacheFile)
+
+      synchronized(entries) {
+        persistedEntries.forEach { persistedEntry ->
+          val hostname = persistedEntry.hostname
+            ?: return@forEach
+          val entry = persistedEntry.toEntry(now)
+            ?: return@forEach
+
+          if (!entries.containsKey(hostname)) {
+            entries[hostname] = entry
+          }
+        }
+      }
+
+      loaded.set(true)
+    }
+  }
+
+  private fun readCacheFile(cacheFile: File): List<PersistedEntry> {
+    if (!cacheFile.exists()) {
+      return emptyList()
+    }
+
+    return try {
+      gson.fromJson(cacheFile.readText(), PersistedEntries::class.java)?.entries ?: emptyList()
+    } catch (error: Throwable) {
+      Logger.e(TAG, "readCacheFile() error: ${error.errorMessageOrClassName()}")
+      cacheFile.delete()
+      emptyList()
+    }
+  }
+
+  private fun schedulePersist() {
+    if (cacheFile == null || !persistScheduled.compareAndSet(false, true)) {
+      return
+    }
+
+    executor.execute {
+      // Reset the flag before taking the snapshot so that changes made during the write are not lost
+      persistScheduled.set(false)
+      persist(cacheFile)
+    }
+  }
+
+  @Synchronized
+  private fun persist(cacheFile: File) {
+    val snapshot = synchronized(entries) {
+      entries.map { (hostname, entry) ->
+        PersistedEntry(
+          hostname = hostname,
+          addresses = entry.addresses.map { address -> address.hostAddress },
+          expiresAt = entry.expiresAt
+        )
+      }
+    }
+
+    val tmpFile = File(cacheFile.parentFile, "${cacheFile.name}.tmp")
+
+    try {
+      tmpFile.writeText(gson.toJson(PersistedEntries(snapshot)))
+
+      if (!tmpFile.renameTo(cacheFile)) {
+        Logger.e(TAG, "persist() failed to rename ${tmpFile.absolutePath} into ${cacheFile.absolutePath}")
+        tmpFile.delete()
+      }
+    } catch (error: Throwable) {
+      Logger.e(TAG, "persist() error: ${error.errorMessageOrClassName()}")
+      tmpFile.delete()
+    }
+  }
+
+  private class Entry(
+    val addresses: List<InetAddress>,
+    val expiresAt: Long
+  )
+
+  private class PersistedEntries(
+    @SerializedName("entries")
+    val entries: List<PersistedEntry>?
+  )
+
+  private class PersistedEntry(
+    @SerializedName("hostname")
+    val hostname: String?,
+    @SerializedName("addresses")
+    val addresses: List<String>?,
+    @SerializedName("expires_at")
+    val expiresAt: Long
+  ) {
+
+    fun toEntry(now: Long): Entry? {
+      if (hostname.isNullOrEmpty() || addresses.isNullOrEmpty()) {
+        return null
+      }
+
+      val inetAddresses = addresses.mapNotNull { address ->
+        // Only IP literals are stored so no actual DNS resolution happens here
+        runCatching { InetAddress.getByAddress(hostname, InetAddress.getByName(address).address) }.getOrNull()
+      }
+
+      if (inetAddresses.isEmpty()) {
+        return null
+      }
+
+      // Never trust the persisted expiration time fully (the clock may have been changed), at best
+      // the entry is stale right after the cold start and gets refreshed in the background
+      return Entry(inetAddresses, Math.min(expiresAt, now))
+    }
+  }
+
+  companion object {
+    private const val TAG = "DnsCache"
+    const val CACHE_FILE_NAME = "dns_cache.json"
+
+    private val TTL_MS = TimeUnit.MINUTES.toMillis(5)
+    private val MAX_STALE_MS = TimeUnit.MINUTES.toMillis(10)
+    private const val MAX_ENTRIES = 256
+
+    private val threadIndex = AtomicInteger(0)
+
+    private val defaultExecutor by lazy {
+      Executors.newCachedThreadPool { runnable ->
+        Thread(runnable, "DnsCache-${threadIndex.incrementAndGet()}").apply { isDaemon = true }
+      }
+    }
+  }
+
+}
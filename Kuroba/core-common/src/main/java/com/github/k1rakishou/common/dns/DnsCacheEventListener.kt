@@ -0,0 +1,35 @@
+package com.github.k1rakishou.common.dns
+
+import okhttp3.Call
+import okhttp3.EventListener
+import okhttp3.Protocol
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.Proxy
+
+/**
+ * Tells [dnsCache] about the addresses that could not be connected to.
+ * */
+class DnsCacheEventListener(
+  private val dnsCache: DnsCache
+) : EventListener() {
+
+  override fun connectFailed(
+    call: Call,
+    inetSocketAddress: InetSocketAddress,
+    proxy: Proxy,
+    protocol: Protocol?,
+    ioe: IOException
+  ) {
+    if (call.isCanceled()) {
+      return
+    }
+
+    // Null when the address was never resolved (e.g. the host is resolved by a proxy)
+    val address = inetSocketAddress.address
+      ?: return
+
+    dnsCache.onConnectFailed(call.request().url.host, address)
+  }
+
+}
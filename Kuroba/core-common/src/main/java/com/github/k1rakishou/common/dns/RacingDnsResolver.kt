@@ -0,0 +1,70 @@
+package com.github.k1rakishou.common.dns
+
+import okhttp3.Dns
+import java.net.InetAddress
+import java.net.UnknownHostException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Runs all of the [resolvers] at the same time and returns the first successful non-empty result.
+ * Fails only when all of them fail.
+ * */
+class RacingDnsResolver(
+  private val resolvers: List<Dns>,
+  private val executor: Executor = defaultExecutor
+) : Dns {
+
+  init {
+    require(resolvers.isNotEmpty()) { "resolvers must not be empty" }
+  }
+
+  override fun lookup(hostname: String): List<InetAddress> {
+    if (resolvers.size == 1) {
+      return resolvers.first().lookup(hostname)
+    }
+
+    val completionService = ExecutorCompletionService<List<InetAddress>>(executor)
+    val futures = resolvers.map { resolver -> completionService.submit { resolver.lookup(hostname) } }
+    var firstError: Throwable? = null
+
+    try {
+      repeat(resolvers.size) {
+        try {
+          val addresses = completionService.take().get()
+          if (addresses.isNotEmpty()) {
+            return addresses
+          }
+        } catch (error: ExecutionException) {
+          if (firstError == null) {
+            firstError = error.cause ?: error
+          }
+        }
+      }
+    } finally {
+      // The losers are not needed anymore
+      futures.forEach { future -> future.cancel(true) }
+    }
+
+    val error = firstError
+    if (error is UnknownHostException) {
+      throw error
+    }
+
+    throw UnknownHostException("Failed to resolve '$hostname'").apply { initCause(error) }
+  }
+
+  companion object {
+    private val threadIndex = AtomicInteger(0)
+
+    private val defaultExecutor by lazy {
+      Executors.newCachedThreadPool { runnable ->
+        Thread(runnable, "RacingDnsResolver-${threadIndex.incrementAndGet()}").apply { isDaemon = true }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,217 @@
+package com.github.k1rakishou.common
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import junit.framework.Assert.fail
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.supervisorScope
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.currentTime
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Test
+import java.util.concurrent.atomic.AtomicInteger
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class ParallelProcessingTest {
+
+  @Test
+  fun `test skewed item durations do not idle the rest of the workers`() = runTest {
+    // Every 4th item is 10 times slower than the rest
+    val durations = (0 until 40).map { index -> if (index % 4 == 0) 1000L else 100L }
+    val dispatcher = StandardTestDispatcher(testScheduler)
+
+    val waveStart = currentTime
+    val waveResults = processInWaves(durations, 4, dispatcher) { duration ->
+      delay(duration)
+      duration
+    }
+    val waveTook = currentTime - waveStart
+
+    val parallelStart = currentTime
+    val parallelResult = processDataCollectionInParallel(durations, 4, dispatcher) { _, duration ->
+      delay(duration)
+      duration
+    }
+    val parallelTook = currentTime - parallelStart
+
+    assertEquals(durations, waveResults)
+    assertEquals(durations, parallelResult.values())
+
+    // Every wave waits for its slow item
+    assertEquals(10_000L, waveTook)
+    // 13000ms of work in total split between 4 workers
+    val idealTook = durations.sum() / 4
+    assertTrue("parallelTook=$parallelTook", parallelTook < idealTook + 1000L)
+    assertTrue("parallelTook=$parallelTook, waveTook=$waveTook", parallelTook * 2 < waveTook)
+  }
+
+  @Test
+  fun `test parallelism is never exceeded`() = runTest {
+    val dispatcher = StandardTestDispatcher(testScheduler)
+    val currentlyRunning = AtomicInteger(0)
+    val maxRunning = AtomicInteger(0)
+
+    val result = processDataCollectionInParallel((0 until 100).toList(), 3, dispatcher) { index, _ ->
+      val running = currentlyRunning.incrementAndGet()
+      maxRunning.set(Math.max(maxRunning.get(), running))
+
+      delay(10L + (index % 7) * 10L)
+      currentlyRunning.decrementAndGet()
+    }
+
+    assertEquals(100, result.processedItems.size)
+    assertEquals(3, maxRunning.get())
+  }
+
+  @Test
+  fun `test results are returned in the input order only when it is preserved`() = runTest {
+    val dispatcher = StandardTestDispatcher(testScheduler)
+    // Items that come first take longer
+    val durations = listOf(400L, 300L, 200L, 100L)
+
+    val ordered = processDataCollectionInParallel(durations, 4, dispatcher, preserveOrder = true) { index, duration ->
+      delay(duration)
+      index
+    }
+
+    val unordered = processDataCollectionInParallel(durations, 4, dispatcher, preserveOrder = false) { index, duration ->
+      delay(duration)
+      index
+    }
+
+    assertEquals(listOf(0, 1, 2, 3), ordered.values())
+    assertEquals(listOf(0, 1, 2, 3), ordered.processedItems.map { processedItem -> processedItem.index })
+    assertEquals(listOf(3, 2, 1, 0), unordered.values())
+    assertEquals(listOf(3, 2, 1, 0), unordered.processedItems.map { processedItem -> processedItem.index })
+  }
+
+  @Test
+  fun `test failures are reported and do not stop the rest of the items`() = runTest {
+    val dispatcher = StandardTestDispatcher(testScheduler)
+
+    val result = processDataCollectionInParallel((0 until 10).toList(), 2, dispatcher) { _, data ->
+      delay(10L)
+
+      if (data % 3 == 0) {
+        throw IllegalStateException("Failed $data")
+      }
+
+      data
+    }
+
+    assertTrue(result.hasFailures())
+    assertEquals(listOf(0, 3, 6, 9), result.failures.map { failedItem -> failedItem.data })
+    assertEquals("Failed 0", result.firstErrorOrNull()?.message)
+    assertEquals(listOf(1, 2, 4, 5, 7, 8), result.values())
+  }
+
+  @Test
+  fun `test items that take too long time out without blocking the workers`() = runTest {
+    val dispatcher = StandardTestDispatcher(testScheduler)
+    val durations = listOf(100L, 10_000L, 100L, 100L, 10_000L, 100L)
+
+    val start = currentTime
+    val result = processDataCollectionInParallel(durations, 2, dispatcher, itemTimeoutMs = 500L) { _, duration ->
+      delay(duration)
+      duration
+    }
+    val took = currentTime - start
+
+    val failures = result.failures
+    assertEquals(listOf(1, 4), failures.map { failedItem -> failedItem.index })
+    assertTrue(failures.all { failedItem -> failedItem.result.unwrapError() is ItemProcessingTimeoutException })
+    assertEquals(listOf(100L, 100L, 100L, 100L), result.values())
+    assertTrue("took=$took", took < 2000L)
+  }
+
+  @Test
+  fun `test cancellation of the caller cancels the workers`() = runTest {
+    val dispatcher = StandardTestDispatcher(testScheduler)
+    val startedCount = AtomicInteger(0)
+    val completedCount = AtomicInteger(0)
+    var cancelled = false
+
+    val job = launch {
+      try {
+        processDataCollectionInParallel((0 until 20).toList(), 2, dispatcher) { _, _ ->
+          startedCount.incrementAndGet()
+          delay(1000L)
+          completedCount.incrementAndGet()
+        }
+      } catch (error: CancellationException) {
+        cancelled = true
+        throw error
+      }
+    }
+
+    advanceTimeBy(2500L)
+    runCurrent()
+    job.cancel()
+    advanceUntilIdle()
+
+    assertTrue(cancelled)
+    assertEquals(4, completedCount.get())
+    assertEquals(6, startedCount.get())
+    assertFalse(job.isActive)
+  }
+
+  @Test
+  fun `test cancellation thrown by processFunc is rethrown`() = runTest {
+    val dispatcher = StandardTestDispatcher(testScheduler)
+
+    try {
+      processDataCollectionInParallel((0 until 20).toList(), 2, dispatcher) { index, data ->
+        if (index == 5) {
+          throw CancellationException("Canceled by processFunc")
+        }
+
+        delay(100L)
+        data
+      }
+
+      fail("Must throw CancellationException")
+    } catch (error: CancellationException) {
+      // expected
+    }
+  }
+
+  @Test
+  fun `test empty input`() = runTest {
+    val result = processDataCollectionInParallel(emptyList<Int>()) { _, data -> data }
+
+    assertTrue(result.processedItems.isEmpty())
+    assertFalse(result.hasFailures())
+  }
+
+  /**
+   * The way items used to be processed: in waves of [batchCount] items where every wave waits for
+   * all of its items before the next one is started.
+   * */
+  private suspend fun <T, R> processInWaves(
+    dataList: List<T>,
+    batchCount: Int,
+    dispatcher: CoroutineDispatcher,
+    processFunc: suspend (T) -> R
+  ): List<R> {
+    return supervisorScope {
+      dataList
+        .chunked(batchCount)
+        .flatMap { dataChunk ->
+          dataChunk
+            .map { data -> async(dispatcher) { processFunc(data) } }
+            .awaitAll()
+        }
+    }
+  }
+
+}
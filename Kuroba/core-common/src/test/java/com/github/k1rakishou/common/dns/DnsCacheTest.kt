@@ -0,0 +1,225 @@
+package com.github.k1rakishou.common.dns
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import junit.framework.Assert.fail
+import okhttp3.Dns
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.net.InetAddress
+import java.net.UnknownHostException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class DnsCacheTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private var now = TimeUnit.DAYS.toMillis(100)
+  private val queuedTasks = mutableListOf<Runnable>()
+  private val queueExecutor = Executor { runnable -> queuedTasks += runnable }
+
+  @Test
+  fun `test entry is served from the cache until it expires`() {
+    val resolver = FakeResolver()
+    val dnsCache = dnsCache(ttlMs = MINUTE, maxStaleMs = 0)
+
+    assertEquals(address(1), dnsCache.lookup(HOST, resolver).single())
+    now += TimeUnit.SECONDS.toMillis(59)
+    assertEquals(address(1), dnsCache.lookup(HOST, resolver).single())
+    assertEquals(1, resolver.calls.get())
+
+    now += TimeUnit.SECONDS.toMillis(1)
+    assertEquals(address(2), dnsCache.lookup(HOST, resolver).single())
+    assertEquals(2, resolver.calls.get())
+  }
+
+  @Test
+  fun `test stale entry is served while it's refreshed in the background`() {
+    val resolver = FakeResolver()
+    val dnsCache = dnsCache(ttlMs = MINUTE, maxStaleMs = 60 * MINUTE)
+
+    assertEquals(address(1), dnsCache.lookup(HOST, resolver).single())
+    now += 2 * MINUTE
+
+    // Stale, returned right away without waiting for the resolver
+    assertEquals(address(1), dnsCache.lookup(HOST, resolver).single())
+    assertEquals(address(1), dnsCache.lookup(HOST, resolver).single())
+    assertEquals(1, resolver.calls.get())
+
+    // Only one refresh is scheduled no matter how many lookups there were
+    runQueuedTasks()
+    assertEquals(2, resolver.calls.get())
+
+    assertEquals(address(2), dnsCache.lookup(HOST, resolver).single())
+    assertEquals(2, resolver.calls.get())
+  }
+
+  @Test
+  fun `test stale entry is kept when the refresh fails`() {
+    val resolver = FakeResolver()
+    val dnsCache = dnsCache(ttlMs = MINUTE, maxStaleMs = 60 * MINUTE)
+
+    dnsCache.lookup(HOST, resolver)
+    now += 2 * MINUTE
+    resolver.fail = true
+
+    assertEquals(address(1), dnsCache.lookup(HOST, resolver).single())
+    runQueuedTasks()
+    assertEquals(address(1), dnsCache.lookup(HOST, resolver).single())
+  }
+
+  @Test
+  fun `test entry that is too old is resolved synchronously`() {
+    val resolver = FakeResolver()
+    val dnsCache = dnsCache(ttlMs = MINUTE, maxStaleMs = 10 * MINUTE)
+
+    dnsCache.lookup(HOST, resolver)
+    now += 12 * MINUTE
+
+    assertEquals(address(2), dnsCache.lookup(HOST, resolver).single())
+    assertTrue(queuedTasks.isEmpty())
+  }
+
+  @Test
+  fun `test entry is dropped when one of its addresses can't be connected to`() {
+    val resolver = FakeResolver()
+    val dnsCache = dnsCache(ttlMs = MINUTE, maxStaleMs = 10 * MINUTE)
+
+    dnsCache.lookup(HOST, resolver)
+
+    // Not one of the cached addresses
+    dnsCache.onConnectFailed(HOST, address(5))
+    assertEquals(address(1), dnsCache.lookup(HOST, resolver).single())
+    assertEquals(1, resolver.calls.get())
+
+    dnsCache.onConnectFailed(HOST, address(1))
+    assertEquals(address(2), dnsCache.lookup(HOST, resolver).single())
+    assertEquals(2, resolver.calls.get())
+  }
+
+  @Test
+  fun `test failures are not cached`() {
+    val resolver = FakeResolver()
+    resolver.fail = true
+    val dnsCache = dnsCache(ttlMs = MINUTE, maxStaleMs = MINUTE)
+
+    repeat(2) {
+      try {
+        dnsCache.lookup(HOST, resolver)
+        fail("Must throw")
+      } catch (error: UnknownHostException) {
+        // expected
+      }
+    }
+
+    resolver.fail = false
+    assertEquals(address(3), dnsCache.lookup(HOST, resolver).single())
+  }
+
+  @Test
+  fun `test concurrent lookups of the same host share one resolution`() {
+    val startLatch = CountDownLatch(1)
+    val resolver = FakeResolver(beforeResolve = { startLatch.await() })
+    val dnsCache = dnsCache(ttlMs = MINUTE, maxStaleMs = MINUTE)
+    val executor = Executors.newFixedThreadPool(8)
+
+    try {
+      val futures = (0 until 8).map { executor.submit<List<InetAddress>> { dnsCache.lookup(HOST, resolver) } }
+      Thread.sleep(200)
+      startLatch.countDown()
+
+      futures.forEach { future -> assertEquals(address(1), future.get(5, TimeUnit.SECONDS).single()) }
+      assertEquals(1, resolver.calls.get())
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  @Test
+  fun `test cache survives restart`() {
+    val cacheFile = File(temporaryFolder.root, DnsCache.CACHE_FILE_NAME)
+    val resolver = FakeResolver()
+
+    dnsCache(ttlMs = MINUTE, maxStaleMs = 60 * MINUTE, cacheFile = cacheFile).lookup(HOST, resolver)
+    runQueuedTasks()
+    assertTrue(cacheFile.exists())
+
+    val newResolver = FakeResolver(firstAddress = 10)
+    val newDnsCache = dnsCache(ttlMs = MINUTE, maxStaleMs = 60 * MINUTE, cacheFile = cacheFile)
+
+    // The persisted entry is used right away and refreshed in the background
+    val addresses = newDnsCache.lookup(HOST, newResolver)
+    assertEquals(address(1), addresses.single())
+    assertEquals(HOST, addresses.single().hostName)
+    assertEquals(0, newResolver.calls.get())
+
+    runQueuedTasks()
+    assertEquals(1, newResolver.calls.get())
+    assertEquals(address(10), newDnsCache.lookup(HOST, newResolver).single())
+  }
+
+  @Test
+  fun `test broken cache file is ignored`() {
+    val cacheFile = File(temporaryFolder.root, DnsCache.CACHE_FILE_NAME)
+    cacheFile.writeText("{ broken")
+
+    val resolver = FakeResolver()
+    val dnsCache = dnsCache(ttlMs = MINUTE, maxStaleMs = MINUTE, cacheFile = cacheFile)
+
+    assertEquals(address(1), dnsCache.lookup(HOST, resolver).single())
+  }
+
+  private fun runQueuedTasks() {
+    while (queuedTasks.isNotEmpty()) {
+      queuedTasks.removeAt(0).run()
+    }
+  }
+
+  private fun dnsCache(ttlMs: Long, maxStaleMs: Long, cacheFile: File? = null): DnsCache {
+    return DnsCache(
+      cacheFile = cacheFile,
+      ttlMs = defaultTtlMs,
+      maxStaleMs = maxStaleMs,
+      executor = queueExecutor,
+      currentTimeMillis = { now }
+    )
+  }
+
+  private class FakeResolver(
+    private val firstAddress: Int = 1,
+    private val beforeResolve: () -> Unit = {}
+  ) : Dns {
+    val calls = AtomicInteger(0)
+
+    @Volatile
+    var fail = false
+
+    override fun lookup(hostname: String): List<InetAddress> {
+      beforeResolve()
+      val call = calls.incrementAndGet()
+
+      if (fail) {
+        throw UnknownHostException(hostname)
+      }
+
+      return listOf(address(firstAddress + call - 1))
+    }
+  }
+
+  companion object {
+    private const val HOST = "i.4cdn.org"
+    private val MINUTE = TimeUnit.MINUTES.toMillis(1)
+
+    private fun address(index: Int): InetAddress {
+      return InetAddress.getByAddress(HOST, byteArrayOf(10, 0, 0, index.toByte()))
+    }
+  }
+
+}
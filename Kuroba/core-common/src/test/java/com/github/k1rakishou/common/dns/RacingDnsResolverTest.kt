@@ -0,0 +1,79 @@
+package com.github.k1rakishou.common.dns
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import junit.framework.Assert.fail
+import okhttp3.Dns
+import org.junit.Test
+import java.net.InetAddress
+import java.net.UnknownHostException
+import kotlin.system.measureTimeMillis
+
+class RacingDnsResolverTest {
+
+  @Test
+  fun `test fastest resolver wins`() {
+    val resolver = RacingDnsResolver(
+      listOf(
+        resolver(delayMs = 2000, address = SLOW_ADDRESS),
+        resolver(delayMs = 10, address = FAST_ADDRESS)
+      )
+    )
+
+    var result: List<InetAddress>? = null
+    val time = measureTimeMillis { result = resolver.lookup(HOST) }
+
+    assertEquals(FAST_ADDRESS, result!!.single())
+    assertTrue("time=$time", time < 1000)
+  }
+
+  @Test
+  fun `test failed resolver does not fail the race`() {
+    val resolver = RacingDnsResolver(
+      listOf(
+        dns { hostname -> throw UnknownHostException(hostname) },
+        dns { emptyList() },
+        resolver(delayMs = 100, address = SLOW_ADDRESS)
+      )
+    )
+
+    assertEquals(SLOW_ADDRESS, resolver.lookup(HOST).single())
+  }
+
+  @Test
+  fun `test race fails when every resolver fails`() {
+    val resolver = RacingDnsResolver(
+      listOf(
+        dns { hostname -> throw UnknownHostException(hostname) },
+        dns { throw IllegalStateException("broken") }
+      )
+    )
+
+    try {
+      resolver.lookup(HOST)
+      fail("Must throw")
+    } catch (error: UnknownHostException) {
+      // expected
+    }
+  }
+
+  private fun resolver(delayMs: Long, address: InetAddress): Dns {
+    return dns {
+      Thread.sleep(delayMs)
+      listOf(address)
+    }
+  }
+
+  private fun dns(resolve: (String) -> List<InetAddress>): Dns {
+    return object : Dns {
+      override fun lookup(hostname: String): List<InetAddress> = resolve(hostname)
+    }
+  }
+
+  companion object {
+    private const val HOST = "i.4cdn.org"
+    private val FAST_ADDRESS = InetAddress.getByAddress(HOST, byteArrayOf(10, 0, 0, 1))
+    private val SLOW_ADDRESS = InetAddress.getByAddress(HOST, byteArrayOf(10, 0, 0, 2))
+  }
+
+}
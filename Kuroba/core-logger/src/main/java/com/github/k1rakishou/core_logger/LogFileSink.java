@@ -0,0 +1,151 @@
+/*
+ * KurobaEx - *chan browser https://github.com/K1rakishou/Kuroba-Experimental/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.k1rakishou.core_logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+
+/**
+ * Appends log lines to a file that is rotated once it grows bigger than {@code maxFileSize}
+ * (only one previous file is kept) so that the logs can be attached to bug reports even when
+ * logcat was already cleared. Not thread-safe, only accessed by the log writer.
+ */
+final class LogFileSink {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String LOG_FILE_NAME = "logs.txt";
+    private static final String PREV_LOG_FILE_NAME = "logs.1.txt";
+
+    private final File logFile;
+    private final File prevLogFile;
+    private final long maxFileSize;
+
+    private Writer writer;
+    private long currentFileSize;
+
+    LogFileSink(File logsDir, long maxFileSize) {
+        this.logFile = new File(logsDir, LOG_FILE_NAME);
+        this.prevLogFile = new File(logsDir, PREV_LOG_FILE_NAME);
+        this.maxFileSize = maxFileSize;
+    }
+
+    void write(String line) throws IOException {
+        if (writer == null) {
+            open();
+        }
+
+        writer.write(line);
+        writer.write('\n');
+        // Approximation, most of the log lines are ASCII
+        currentFileSize += line.length() + 1;
+
+        if (currentFileSize > maxFileSize) {
+            rotate();
+        }
+    }
+
+    void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    void close() {
+        if (writer == null) {
+            return;
+        }
+
+        try {
+            writer.close();
+        } catch (IOException ignored) {
+        }
+
+        writer = null;
+    }
+
+    /**
+     * Returns up to {@code maxLines} of the most recent log lines from both the current and the
+     * previous log files.
+     */
+    String readLastLines(int maxLines) throws IOException {
+        flush();
+
+        ArrayDeque<String> lines = new ArrayDeque<>(maxLines);
+        readLastLines(prevLogFile, maxLines, lines);
+        readLastLines(logFile, maxLines, lines);
+
+        StringBuilder result = new StringBuilder(lines.size() * 64);
+        for (String line : lines) {
+            result.append(line).append('\n');
+        }
+
+        return result.toString();
+    }
+
+    private void open() throws IOException {
+        File logsDir = logFile.getParentFile();
+        if (logsDir != null && !logsDir.exists() && !logsDir.mkdirs()) {
+            throw new IOException("Failed to create logs directory " + logsDir.getAbsolutePath());
+        }
+
+        currentFileSize = logFile.length();
+        writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(logFile, true), UTF_8),
+                8192
+        );
+    }
+
+    private void rotate() throws IOException {
+        close();
+
+        if (prevLogFile.exists() && !prevLogFile.delete()) {
+            throw new IOException("Failed to delete " + prevLogFile.getAbsolutePath());
+        }
+
+        if (!logFile.renameTo(prevLogFile)) {
+            throw new IOException("Failed to rename " + logFile.getAbsolutePath());
+        }
+
+        open();
+    }
+
+    private static void readLastLines(File file, int maxLines, ArrayDeque<String> lines) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (lines.size() >= maxLines) {
+                    lines.removeFirst();
+                }
+
+                lines.addLast(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * KurobaEx - *chan browser https://github.com/K1rakishou/Kuroba-Experimental/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.k1rakishou.core_logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free bounded multi-producer single-consumer ring of log records. Records are preallocated
+ * and reused so logging does not allocate anything besides the message itself. When the ring is
+ * full new records are rejected (the consumer is supposed to report how many were dropped).
+ * <p>
+ * Every slot has a sequence number that tells whether the slot is free for the producer that
+ * claimed position N (sequence == N) or contains a record ready to be consumed at position N
+ * (sequence == N + 1).
+ */
+final class LogRingBuffer {
+    private final int mask;
+    private final LogRecord[] records;
+    private final AtomicLongArray sequences;
+    private final AtomicLong enqueuePosition = new AtomicLong(0);
+    // Only accessed by the consumer
+    private long dequeuePosition = 0;
+
+    LogRingBuffer(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two, capacity=" + capacity);
+        }
+
+        this.mask = capacity - 1;
+        this.records = new LogRecord[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+
+        for (int i = 0; i < capacity; i++) {
+            records[i] = new LogRecord();
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Returns false if the ring is full.
+     */
+    boolean offer(int priority, String tag, String message, Throwable throwable, long timeMs) {
+        long position = enqueuePosition.get();
+
+        while (true) {
+            int index = (int) (position & mask);
+            long diff = sequences.get(index) - position;
+
+            if (diff == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    records[index].set(priority, tag, message, throwable, timeMs);
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+
+                position = enqueuePosition.get();
+            } else if (diff < 0) {
+                // The consumer hasn't freed this slot yet
+                return false;
+            } else {
+                // Another producer has claimed this position
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    /**
+     * Moves the oldest record into {@code out}. Returns false if the ring is empty. Must only be
+     * called by one thread at a time.
+     */
+    boolean poll(LogRecord out) {
+        long position = dequeuePosition;
+        int index = (int) (position & mask);
+
+        if (sequences.get(index) - (position + 1) < 0) {
+            return false;
+        }
+
+        records[index].moveTo(out);
+        sequences.lazySet(index, position + mask + 1);
+        dequeuePosition = position + 1;
+        return true;
+    }
+
+    /**
+     * Must only be called by the consumer.
+     */
+    boolean isEmpty() {
+        long position = dequeuePosition;
+        int index = (int) (position & mask);
+
+        return sequences.get(index) - (position + 1) < 0;
+    }
+
+    static final class LogRecord {
+        int priority;
+        String tag;
+        String message;
+        Throwable throwable;
+        long timeMs;
+
+        void set(int priority, String tag, String message, Throwable throwable, long timeMs) {
+            this.priority = priority;
+            this.tag = tag;
+            this.message = message;
+            this.throwable = throwable;
+            this.timeMs = timeMs;
+        }
+
+        void moveTo(LogRecord other) {
+            other.set(priority, tag, message, throwable, timeMs);
+            set(0, null, null, null, 0L);
+        }
+    }
+}
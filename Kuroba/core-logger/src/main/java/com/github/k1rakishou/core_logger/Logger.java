@@ -18,113 +18,195 @@ package com.github.k1rakishou.core_logger;
 
 import android.util.Log;
 
-import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.DateTimeFormatterBuilder;
 import org.joda.time.format.ISODateTimeFormat;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log calls only check the log level and put the record into a lock-free ring buffer, everything
+ * else (time formatting, tag concatenation, writing into logcat and into the log file) is done by
+ * a single background thread. Use the {@link MessageSupplier} overloads on hot paths so that the
+ * message is not even built when the level is disabled.
+ */
 public class Logger {
-    private static String tagPrefix;
-    private static boolean isCurrentBuildDev;
+    private static volatile String tagPrefix = "";
+    private static volatile boolean isCurrentBuildDev;
+    private static volatile int minLogLevel = Log.VERBOSE;
     public static final String DI_TAG = "Dependency Injection";
 
-    private static final DateTimeFormatter LOG_TIME_FORMATTER = new DateTimeFormatterBuilder()
-            .append(ISODateTimeFormat.hourMinuteSecondMillis())
-            .toFormatter();
+    private static final int RING_BUFFER_CAPACITY = 8192;
+    private static final long MAX_LOG_FILE_SIZE = 1024 * 1024;
 
     public static void init(String prefix, boolean isDevBuild) {
         tagPrefix = prefix;
         isCurrentBuildDev = isDevBuild;
     }
 
-    private static String getTime() {
-        if (isCurrentBuildDev) {
-            return "";
-        }
+    /**
+     * Messages with lower priority (one of the {@link Log} priority constants) are dropped
+     * without being formatted.
+     */
+    public static void setMinLogLevel(int priority) {
+        minLogLevel = priority;
+    }
+
+    public static boolean isLoggable(int priority) {
+        return priority >= minLogLevel;
+    }
+
+    /**
+     * Additionally writes all the logs into a file inside of {@code logsDir} (rotated once it gets
+     * bigger than {@link #MAX_LOG_FILE_SIZE}) so that they can be attached to bug reports.
+     */
+    public static void enableFileSink(File logsDir) {
+        LogWriter.INSTANCE.setFileSink(new LogFileSink(logsDir, MAX_LOG_FILE_SIZE));
+    }
+
+    /**
+     * Returns up to {@code maxLines} of the most recent lines from the log file or null if the
+     * file sink is not enabled.
+     */
+    public static String readLogFile(int maxLines) throws IOException {
+        return LogWriter.INSTANCE.readFileSink(maxLines);
+    }
 
-        return "(" + LOG_TIME_FORMATTER.print(DateTime.now()) + ") ";
+    /**
+     * Synchronously writes everything that is still in the buffer. Call it before the process is
+     * about to die (e.g. in the uncaught exception handler).
+     */
+    public static void flush() {
+        LogWriter.INSTANCE.drain();
     }
 
     //region VERBOSE
     public static void v(String tag, String message) {
-        if (canLog()) {
-            Log.v(getTime() + tagPrefix + tag, message);
+        if (isLoggable(Log.VERBOSE)) {
+            enqueue(Log.VERBOSE, tag, message, null);
         }
     }
 
     public static void v(String tag, String message, Throwable throwable) {
-        if (canLog()) {
-            Log.v(getTime() + tagPrefix + tag, message, throwable);
+        if (isLoggable(Log.VERBOSE)) {
+            enqueue(Log.VERBOSE, tag, message, throwable);
+        }
+    }
+
+    public static void v(String tag, MessageSupplier messageSupplier) {
+        if (isLoggable(Log.VERBOSE)) {
+            enqueue(Log.VERBOSE, tag, messageSupplier.get(), null);
         }
     }
     //endregion VERBOSE
 
     //region DEBUG
     public static void d(String tag, String message) {
-        if (canLog()) {
-            Log.d(getTime() + tagPrefix + tag, message);
+        if (isLoggable(Log.DEBUG)) {
+            enqueue(Log.DEBUG, tag, message, null);
         }
     }
 
     public static void d(String tag, String message, Throwable throwable) {
-        if (canLog()) {
-            Log.d(getTime() + tagPrefix + tag, message, throwable);
+        if (isLoggable(Log.DEBUG)) {
+            enqueue(Log.DEBUG, tag, message, throwable);
+        }
+    }
+
+    public static void d(String tag, MessageSupplier messageSupplier) {
+        if (isLoggable(Log.DEBUG)) {
+            enqueue(Log.DEBUG, tag, messageSupplier.get(), null);
         }
     }
     //endregion DEBUG
 
     //region INFO
     public static void i(String tag, String message) {
-        Log.i(getTime() + tagPrefix + tag, message);
+        if (isLoggable(Log.INFO)) {
+            enqueue(Log.INFO, tag, message, null);
+        }
     }
 
     public static void i(String tag, String message, Throwable throwable) {
-        Log.i(getTime() + tagPrefix + tag, message, throwable);
+        if (isLoggable(Log.INFO)) {
+            enqueue(Log.INFO, tag, message, throwable);
+        }
+    }
+
+    public static void i(String tag, MessageSupplier messageSupplier) {
+        if (isLoggable(Log.INFO)) {
+            enqueue(Log.INFO, tag, messageSupplier.get(), null);
+        }
     }
 
     //endregion INFO
 
     //region WARN
     public static void w(String tag, String message) {
-        Log.w(getTime() + tagPrefix + tag, message);
+        if (isLoggable(Log.WARN)) {
+            enqueue(Log.WARN, tag, message, null);
+        }
     }
 
     public static void w(String tag, String message, Throwable throwable) {
-        Log.w(getTime() + tagPrefix + tag, message, throwable);
+        if (isLoggable(Log.WARN)) {
+            enqueue(Log.WARN, tag, message, throwable);
+        }
+    }
+
+    public static void w(String tag, MessageSupplier messageSupplier) {
+        if (isLoggable(Log.WARN)) {
+            enqueue(Log.WARN, tag, messageSupplier.get(), null);
+        }
     }
 
     //endregion WARN
 
     //region ERROR
     public static void e(String tag, String message) {
-        Log.e(getTime() + tagPrefix + tag, message);
+        if (isLoggable(Log.ERROR)) {
+            enqueue(Log.ERROR, tag, message, null);
+        }
     }
 
     public static void e(String tag, String message, Throwable throwable) {
-        Log.e(getTime() + tagPrefix + tag, message, throwable);
+        if (isLoggable(Log.ERROR)) {
+            enqueue(Log.ERROR, tag, message, throwable);
+        }
+    }
+
+    public static void e(String tag, MessageSupplier messageSupplier) {
+        if (isLoggable(Log.ERROR)) {
+            enqueue(Log.ERROR, tag, messageSupplier.get(), null);
+        }
     }
     //endregion ERROR
 
     //region WTF
     public static void wtf(String tag, String message) {
-        Log.wtf(getTime() + tagPrefix + tag, message);
+        enqueue(Log.ASSERT, tag, message, null);
     }
 
     public static void wtf(String tag, String message, Throwable throwable) {
-        Log.wtf(getTime() + tagPrefix + tag, message, throwable);
+        enqueue(Log.ASSERT, tag, message, throwable);
     }
     //endregion WTF
 
     //region TEST
     public static void test(String message) {
-        if (canLog()) {
-            Log.i(getTime() + tagPrefix + "test", message);
+        if (isLoggable(Log.INFO)) {
+            enqueue(Log.INFO, "test", message, null);
         }
     }
 
     public static void test(String message, Throwable throwable) {
-        if (canLog()) {
-            Log.i(getTime() + tagPrefix + "test", message, throwable);
+        if (isLoggable(Log.INFO)) {
+            enqueue(Log.INFO, "test", message, throwable);
         }
     }
     //endregion TEST
@@ -138,7 +220,204 @@ public class Logger {
         Logger.d(tag, message);
     }
 
-    private static boolean canLog() {
-        return true;
+    private static void enqueue(int priority, String tag, String message, Throwable throwable) {
+        LogWriter.INSTANCE.enqueue(priority, tag, message, throwable);
+    }
+
+    public interface MessageSupplier {
+        String get();
+    }
+
+    /**
+     * Lazily initialized so that nothing is allocated and no thread is started until something is
+     * actually logged.
+     */
+    private static final class LogWriter implements Runnable {
+        static final LogWriter INSTANCE = new LogWriter();
+
+        private static final long MAX_IDLE_TIME_NS = 1_000_000_000L;
+        private static final String TAG = "Logger";
+
+        private static final DateTimeFormatter LOG_TIME_FORMATTER = new DateTimeFormatterBuilder()
+                .append(ISODateTimeFormat.hourMinuteSecondMillis())
+                .toFormatter();
+        private static final DateTimeFormatter LOG_FILE_TIME_FORMATTER = DateTimeFormat.forPattern("MM-dd HH:mm:ss.SSS");
+
+        private final LogRingBuffer ringBuffer = new LogRingBuffer(RING_BUFFER_CAPACITY);
+        private final AtomicLong droppedRecords = new AtomicLong(0);
+        private final AtomicBoolean sleeping = new AtomicBoolean(false);
+        private final Thread thread;
+
+        // Everything below is guarded by drainLock
+        private final Object drainLock = new Object();
+        private final LogRingBuffer.LogRecord record = new LogRingBuffer.LogRecord();
+        private final StringBuilder lineBuilder = new StringBuilder(256);
+        private LogFileSink fileSink;
+
+        private LogWriter() {
+            thread = new Thread(this, "KurobaLogWriter");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void enqueue(int priority, String tag, String message, Throwable throwable) {
+            long timeMs = System.currentTimeMillis();
+
+            if (!ringBuffer.offer(priority, tag, message, throwable, timeMs)) {
+                // Errors are too important to be dropped, make room for them on the caller thread
+                if (priority < Log.ERROR) {
+                    droppedRecords.incrementAndGet();
+                } else {
+                    drain();
+
+                    if (!ringBuffer.offer(priority, tag, message, throwable, timeMs)) {
+                        droppedRecords.incrementAndGet();
+                    }
+                }
+            }
+
+            if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        void setFileSink(LogFileSink newFileSink) {
+            synchronized (drainLock) {
+                if (fileSink != null) {
+                    fileSink.close();
+                }
+
+                fileSink = newFileSink;
+            }
+        }
+
+        String readFileSink(int maxLines) throws IOException {
+            drain();
+
+            synchronized (drainLock) {
+                if (fileSink == null) {
+                    return null;
+                }
+
+                return fileSink.readLastLines(maxLines);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                drain();
+
+                sleeping.set(true);
+
+                try {
+                    // Re-check after setting the flag so that we don't miss a wake up
+                    if (isEmpty()) {
+                        LockSupport.parkNanos(this, MAX_IDLE_TIME_NS);
+                    }
+                } finally {
+                    sleeping.set(false);
+                }
+            }
+        }
+
+        void drain() {
+            synchronized (drainLock) {
+                boolean written = false;
+
+                while (ringBuffer.poll(record)) {
+                    write(record.priority, record.tag, record.message, record.throwable, record.timeMs);
+                    record.set(0, null, null, null, 0L);
+                    written = true;
+                }
+
+                long dropped = droppedRecords.getAndSet(0);
+                if (dropped > 0) {
+                    String message = dropped + " log records were dropped because the log buffer was full";
+                    write(Log.WARN, TAG, message, null, System.currentTimeMillis());
+                    written = true;
+                }
+
+                if (written && fileSink != null) {
+                    try {
+                        fileSink.flush();
+                    } catch (IOException error) {
+                        onFileSinkError(error);
+                    }
+                }
+            }
+        }
+
+        private boolean isEmpty() {
+            synchronized (drainLock) {
+                return ringBuffer.isEmpty();
+            }
+        }
+
+        private void write(int priority, String tag, String message, Throwable throwable, long timeMs) {
+            String fullMessage = message;
+            if (throwable != null) {
+                fullMessage = message + '\n' + Log.getStackTraceString(throwable);
+            }
+
+            lineBuilder.setLength(0);
+            if (!isCurrentBuildDev) {
+                lineBuilder.append('(');
+                LOG_TIME_FORMATTER.printTo(lineBuilder, timeMs);
+                lineBuilder.append(") ");
+            }
+            lineBuilder.append(tagPrefix).append(tag);
+
+            try {
+                Log.println(priority, lineBuilder.toString(), fullMessage);
+            } catch (RuntimeException ignored) {
+                // Not running on Android (unit tests)
+            }
+
+            if (fileSink == null) {
+                return;
+            }
+
+            lineBuilder.setLength(0);
+            LOG_FILE_TIME_FORMATTER.printTo(lineBuilder, timeMs);
+            lineBuilder
+                    .append(' ')
+                    .append(priorityToChar(priority))
+                    .append('/')
+                    .append(tagPrefix)
+                    .append(tag)
+                    .append(": ")
+                    .append(fullMessage);
+
+            try {
+                fileSink.write(lineBuilder.toString());
+            } catch (IOException error) {
+                onFileSinkError(error);
+            }
+        }
+
+        private void onFileSinkError(IOException error) {
+            fileSink.close();
+            fileSink = null;
+
+            write(Log.ERROR, TAG, "Failed to write into the log file, file logging is disabled", error, System.currentTimeMillis());
+        }
+
+        private static char priorityToChar(int priority) {
+            switch (priority) {
+                case Log.VERBOSE:
+                    return 'V';
+                case Log.DEBUG:
+                    return 'D';
+                case Log.INFO:
+                    return 'I';
+                case Log.WARN:
+                    return 'W';
+                case Log.ERROR:
+                    return 'E';
+                default:
+                    return 'A';
+            }
+        }
     }
 }
@@ -0,0 +1,146 @@
+package com.github.k1rakishou.core_logger
+
+import android.util.Log
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
+
+class LoggerTest {
+
+  @After
+  fun tearDown() {
+    Logger.setMinLogLevel(Log.VERBOSE)
+  }
+
+  @Test
+  fun `test disabled log calls do not invoke message supplier`() {
+    Logger.setMinLogLevel(Log.WARN)
+    var invoked = false
+
+    Logger.d(TAG) {
+      invoked = true
+      "message"
+    }
+
+    assertFalse(invoked)
+    assertFalse(Logger.isLoggable(Log.DEBUG))
+    assertTrue(Logger.isLoggable(Log.ERROR))
+  }
+
+  @Test
+  fun `test disabled log calls neither allocate nor build messages`() {
+    Logger.setMinLogLevel(Log.ASSERT)
+
+    val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+    val threadId = Thread.currentThread().id
+    var messageSupplierCalls = 0
+    val messageSupplier = Logger.MessageSupplier {
+      ++messageSupplierCalls
+      "message"
+    }
+
+    // Warm up so that the measured loop runs JIT-compiled code
+    runDisabledLogCalls(WARMUP_ITERATIONS, messageSupplier)
+
+    val allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId)
+    runDisabledLogCalls(ITERATIONS, messageSupplier)
+    val allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore
+
+    assertEquals(0, messageSupplierCalls)
+    // Only the measurement itself may allocate something
+    assertTrue("allocated=$allocated", allocated < 1024)
+  }
+
+  @Test
+  fun `test ring buffer rejects records when full and returns them in order`() {
+    val ringBuffer = LogRingBuffer(4)
+
+    for (i in 0 until 4) {
+      assertTrue(ringBuffer.offer(Log.DEBUG, TAG, "message $i", null, i.toLong()))
+    }
+
+    assertFalse(ringBuffer.offer(Log.DEBUG, TAG, "message 4", null, 4L))
+
+    val record = LogRingBuffer.LogRecord()
+    for (i in 0 until 4) {
+      assertTrue(ringBuffer.poll(record))
+      assertEquals("message $i", record.message)
+      assertEquals(i.toLong(), record.timeMs)
+    }
+
+    assertFalse(ringBuffer.poll(record))
+    assertTrue(ringBuffer.isEmpty)
+
+    // Slots are reusable after they were consumed
+    assertTrue(ringBuffer.offer(Log.DEBUG, TAG, "message 5", null, 5L))
+    assertTrue(ringBuffer.poll(record))
+    assertEquals("message 5", record.message)
+  }
+
+  @Test
+  fun `test ring buffer delivers every record of concurrent producers exactly once`() {
+    val ringBuffer = LogRingBuffer(64)
+    val producersCount = 4
+    val recordsPerProducer = 10_000
+    val startLatch = CountDownLatch(1)
+
+    val producers = (0 until producersCount).map { producer ->
+      thread {
+        startLatch.await()
+
+        for (i in 0 until recordsPerProducer) {
+          val message = "$producer:$i"
+
+          while (!ringBuffer.offer(Log.DEBUG, TAG, message, null, 0L)) {
+            Thread.yield()
+          }
+        }
+      }
+    }
+
+    startLatch.countDown()
+
+    val received = HashSet<String>()
+    val lastReceivedByProducer = IntArray(producersCount) { -1 }
+    val record = LogRingBuffer.LogRecord()
+
+    while (received.size < producersCount * recordsPerProducer) {
+      if (!ringBuffer.poll(record)) {
+        Thread.yield()
+        continue
+      }
+
+      val message = record.message
+      assertTrue("duplicate $message", received.add(message))
+
+      // Records of the same producer must keep their order
+      val (producer, index) = message.split(':').map { it.toInt() }
+      assertTrue(index > lastReceivedByProducer[producer])
+      lastReceivedByProducer[producer] = index
+    }
+
+    producers.forEach { producer -> producer.join() }
+    assertTrue(ringBuffer.isEmpty)
+  }
+
+  private fun runDisabledLogCalls(iterations: Int, messageSupplier: Logger.MessageSupplier) {
+    for (i in 0 until iterations) {
+      Logger.v(TAG, "message")
+      Logger.d(TAG, "message")
+      Logger.d(TAG, messageSupplier)
+      Logger.i(TAG, messageSupplier)
+    }
+  }
+
+  companion object {
+    private const val TAG = "LoggerTest"
+    private const val WARMUP_ITERATIONS = 200_000
+    private const val ITERATIONS = 1_000_000
+  }
+
+}
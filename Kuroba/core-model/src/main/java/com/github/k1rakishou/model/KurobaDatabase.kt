@@ -5,6 +5,7 @@ import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
 import androidx.room.TypeConverters
+import androidx.sqlite.db.SupportSQLiteDatabase
 import com.github.k1rakishou.common.DoNotStrip
 import com.github.k1rakishou.model.converter.BitSetTypeConverter
 import com.github.k1rakishou.model.converter.ChanPostImageTypeTypeConverter
@@ -25,6 +26,7 @@ import com.github.k1rakishou.model.dao.ChanPostHideDao
 import com.github.k1rakishou.model.dao.ChanPostHttpIconDao
 import com.github.k1rakishou.model.dao.ChanPostImageDao
 import com.github.k1rakishou.model.dao.ChanPostReplyDao
+import com.github.k1rakishou.model.dao.ChanPostSearchDao
 import com.github.k1rakishou.model.dao.ChanSavedReplyDao
 import com.github.k1rakishou.model.dao.ChanSiteDao
 import com.github.k1rakishou.model.dao.ChanTextSpanDao
@@ -59,6 +61,7 @@ import com.github.k1rakishou.model.entity.chan.post.ChanPostHttpIconEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostIdEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostImageEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostReplyEntity
+import com.github.k1rakishou.model.entity.chan.post.ChanPostSearchEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanSavedReplyEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanTextSpanEntity
 import com.github.k1rakishou.model.entity.chan.site.ChanSiteEntity
@@ -105,6 +108,9 @@ import com.github.k1rakishou.model.migrations.Migration_v38_to_v39
 import com.github.k1rakishou.model.migrations.Migration_v39_to_v40
 import com.github.k1rakishou.model.migrations.Migration_v3_to_v4
 import com.github.k1rakishou.model.migrations.Migration_v40_to_v41
+import com.github.k1rakishou.model.migrations.Migration_v41_to_v42
+import com.github.k1rakishou.model.migrations.Migration_v42_to_v43
+import com.github.k1rakishou.model.migrations.Migration_v43_to_v44
 import com.github.k1rakishou.model.migrations.Migration_v4_to_v5
 import com.github.k1rakishou.model.migrations.Migration_v5_to_v6
 import com.github.k1rakishou.model.migrations.Migration_v6_to_v7
@@ -129,6 +135,7 @@ import java.util.concurrent.atomic.AtomicInteger
     ChanPostHttpIconEntity::class,
     ChanTextSpanEntity::class,
     ChanPostReplyEntity::class,
+    ChanPostSearchEntity::class,
     ChanSavedReplyEntity::class,
     ChanPostHideEntity::class,
     ChanThreadViewableInfoEntity::class,
@@ -152,7 +159,11 @@ import java.util.concurrent.atomic.AtomicInteger
     ChanThreadsWithPosts::class,
     OldChanPostThread::class
   ],
-  version = 41,
+  // The schemas of versions 42-44 were exported without running kapt. Their identityHash was
+  // computed by reimplementing Room's algorithm and it does not reproduce the hashes of the older,
+  // kapt generated, schemas, so it is only an approximation. A kapt build overwrites these files
+  // with the real ones, commit them before using these schemas in migration tests.
+  version = 44,
   exportSchema = true
 )
 @TypeConverters(
@@ -180,6 +191,7 @@ abstract class KurobaDatabase : RoomDatabase() {
   abstract fun chanPostHttpIconDao(): ChanPostHttpIconDao
   abstract fun chanTextSpanDao(): ChanTextSpanDao
   abstract fun chanPostReplyDao(): ChanPostReplyDao
+  abstract fun chanPostSearchDao(): ChanPostSearchDao
   abstract fun navHistoryDao(): NavHistoryDao
   abstract fun threadBookmarkDao(): ThreadBookmarkDao
   abstract fun threadBookmarkReplyDao(): ThreadBookmarkReplyDao
@@ -236,6 +248,16 @@ abstract class KurobaDatabase : RoomDatabase() {
       }
     })
 
+    /**
+     * Creates the things Room can't describe with entities. Databases that are migrated from older
+     * versions get them in the migrations.
+     * */
+    val DATABASE_CALLBACK = object : RoomDatabase.Callback() {
+      override fun onCreate(db: SupportSQLiteDatabase) {
+        db.execSQL(ChanPostSearchEntity.DELETE_TRIGGER_SQL)
+      }
+    }
+
     fun buildDatabase(application: Application): KurobaDatabase {
       return Room.databaseBuilder(
         application.applicationContext,
@@ -244,6 +266,7 @@ abstract class KurobaDatabase : RoomDatabase() {
       )
         .setQueryExecutor(CUSTOM_QUERY_EXECUTOR)
         .setTransactionExecutor(CUSTOM_TRANSACTION_EXECUTOR)
+        .addCallback(DATABASE_CALLBACK)
         .addMigrations(
           Migration_v1_to_v2(),
           Migration_v2_to_v3(),
@@ -285,6 +308,9 @@ abstract class KurobaDatabase : RoomDatabase() {
           Migration_v38_to_v39(),
           Migration_v39_to_v40(),
           Migration_v40_to_v41(),
+          Migration_v41_to_v42(),
+          Migration_v42_to_v43(),
+          Migration_v43_to_v44(),
         )
         .fallbackToDestructiveMigrationOnDowngrade()
         .build()
@@ -2,6 +2,7 @@ package com.github.k1rakishou.model
 
 import android.app.Application
 import com.github.k1rakishou.common.AppConstants
+import com.github.k1rakishou.common.dns.DnsCache
 import com.github.k1rakishou.common.dns.DnsOverHttpsSelectorFactory
 import com.github.k1rakishou.common.dns.NormalDnsSelectorFactory
 import com.github.k1rakishou.model.di.DaggerModelComponent
@@ -23,6 +24,8 @@ object ModelModuleInjector {
     isDevFlavor: Boolean,
     isLowRamDevice: Boolean,
     okHttpUseDnsOverHttps: Boolean,
+    okHttpRaceDnsResolvers: Boolean,
+    dnsCache: DnsCache,
     appConstants: AppConstants
   ): ModelComponent {
     val dependencies = ModelComponent.Dependencies(
@@ -32,8 +35,10 @@ object ModelModuleInjector {
       isDevFlavor = isDevFlavor,
       isLowRamDevice = isLowRamDevice,
       okHttpUseDnsOverHttps = okHttpUseDnsOverHttps,
+      okHttpRaceDnsResolvers = okHttpRaceDnsResolvers,
       normalDnsSelectorFactory = normalDnsSelectorFactory,
       dnsOverHttpsSelectorFactory = dnsOverHttpsSelectorFactory,
+      dnsCache = dnsCache,
       okHttpProtocols = protocols,
       appConstants = appConstants
     )
@@ -6,6 +6,7 @@ import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
 import androidx.room.RewriteQueriesToDropUnusedColumns
+import androidx.room.Update
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.entity.chan.board.ChanBoardIdEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostEntity
@@ -75,12 +76,47 @@ abstract class ChanPostDao {
       .flatMap { ownerThreadIdChunk -> selectManyOriginalPostsByThreadIdListGrouped(ownerThreadIdChunk) }
   }
 
-  @Insert(onConflict = OnConflictStrategy.REPLACE)
-  abstract suspend fun insertOrReplaceManyIds(chanPostIdEntityList: List<ChanPostIdEntity>): List<Long>
+  /**
+   * Do not use REPLACE here! In SQLite REPLACE is delete-then-insert which will trigger
+   * ON DELETE CASCADE on every table that references posts and will rewrite all of the post's child
+   * rows. Returns -1 for posts that already exist, use [selectManyIdsByThreadIdAndPostNos] to get
+   * their ids.
+   * */
+  @Insert(onConflict = OnConflictStrategy.IGNORE)
+  abstract suspend fun insertOrIgnoreManyIds(chanPostIdEntityList: List<ChanPostIdEntity>): List<Long>
 
   @Insert(onConflict = OnConflictStrategy.REPLACE)
   abstract suspend fun insertOrReplaceManyPosts(chanPostEntityList: List<ChanPostEntity>)
 
+  @Update(onConflict = OnConflictStrategy.ABORT)
+  abstract suspend fun updateManyPosts(chanPostEntityList: List<ChanPostEntity>)
+
+  @Query("""
+        SELECT *
+        FROM ${ChanPostIdEntity.TABLE_NAME}
+        WHERE
+            ${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME} = :ownerThreadId
+        AND
+            ${ChanPostIdEntity.POST_NO_COLUMN_NAME} IN (:postNos)
+    """)
+  abstract suspend fun selectManyIdsByThreadIdAndPostNos(
+    ownerThreadId: Long,
+    postNos: Collection<Long>
+  ): List<ChanPostIdEntity>
+
+  @Query("""
+        SELECT
+            ${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME},
+            ${ChanPostEntity.POST_HASH_COLUMN_NAME},
+            ${ChanPostEntity.TEXT_SPANS_HASH_COLUMN_NAME},
+            ${ChanPostEntity.IMAGES_HASH_COLUMN_NAME},
+            ${ChanPostEntity.ICONS_HASH_COLUMN_NAME},
+            ${ChanPostEntity.REPLIES_HASH_COLUMN_NAME}
+        FROM ${ChanPostEntity.TABLE_NAME}
+        WHERE ${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME} IN (:chanPostIds)
+    """)
+  abstract suspend fun selectContentHashes(chanPostIds: Collection<Long>): List<PostContentHashesDatabaseObject>
+
   @Query("SELECT COUNT(*) FROM ${ChanPostIdEntity.TABLE_NAME}")
   abstract suspend fun totalPostsCount(): Int
 
@@ -220,6 +256,21 @@ abstract class ChanPostDao {
   @Query("SELECT * FROM ${ChanPostEntity.TABLE_NAME}")
   abstract suspend fun testGetAllChanPosts(): List<ChanPostEntity>
 
+  data class PostContentHashesDatabaseObject(
+    @ColumnInfo(name = ChanPostEntity.CHAN_POST_ID_COLUMN_NAME)
+    val chanPostId: Long,
+    @ColumnInfo(name = ChanPostEntity.POST_HASH_COLUMN_NAME)
+    val postHash: Long,
+    @ColumnInfo(name = ChanPostEntity.TEXT_SPANS_HASH_COLUMN_NAME)
+    val textSpansHash: Long,
+    @ColumnInfo(name = ChanPostEntity.IMAGES_HASH_COLUMN_NAME)
+    val imagesHash: Long,
+    @ColumnInfo(name = ChanPostEntity.ICONS_HASH_COLUMN_NAME)
+    val iconsHash: Long,
+    @ColumnInfo(name = ChanPostEntity.REPLIES_HASH_COLUMN_NAME)
+    val repliesHash: Long
+  )
+
   data class PostDescriptorDatabaseObject(
     @ColumnInfo(name = ChanPostIdEntity.POST_ID_COLUMN_NAME)
     val postDatabaseId: Long,
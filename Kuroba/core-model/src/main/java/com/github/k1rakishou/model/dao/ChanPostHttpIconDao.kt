@@ -5,6 +5,7 @@ import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
 import com.github.k1rakishou.model.entity.chan.post.ChanPostHttpIconEntity
+import com.github.k1rakishou.model.entity.chan.post.ChanPostIdEntity
 import okhttp3.HttpUrl
 
 @Dao
@@ -27,6 +28,25 @@ abstract class ChanPostHttpIconDao {
     """)
   abstract suspend fun selectByOwnerPostIdList(ownerPostIdList: List<Long>): List<ChanPostHttpIconEntity>
 
+  @Query("""
+        SELECT icons.*
+        FROM ${ChanPostHttpIconEntity.TABLE_NAME} icons
+        INNER JOIN ${ChanPostIdEntity.TABLE_NAME} post_ids
+            ON post_ids.${ChanPostIdEntity.POST_ID_COLUMN_NAME} = icons.${ChanPostHttpIconEntity.OWNER_POST_ID_COLUMN_NAME}
+        WHERE post_ids.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME} = :ownerThreadId
+        ORDER BY
+            icons.${ChanPostHttpIconEntity.OWNER_POST_ID_COLUMN_NAME} ASC,
+            icons.rowid ASC
+    """)
+  abstract suspend fun selectAllInThreadOrdered(ownerThreadId: Long): List<ChanPostHttpIconEntity>
+
+  @Query("""
+        DELETE
+        FROM ${ChanPostHttpIconEntity.TABLE_NAME}
+        WHERE ${ChanPostHttpIconEntity.OWNER_POST_ID_COLUMN_NAME} IN (:ownerPostIdList)
+    """)
+  abstract suspend fun deleteByOwnerPostIdList(ownerPostIdList: Collection<Long>)
+
   @Query("SELECT * FROM ${ChanPostHttpIconEntity.TABLE_NAME}")
   abstract suspend fun testGetAll(): List<ChanPostHttpIconEntity>
 }
\ No newline at end of file
@@ -45,6 +45,18 @@ abstract class ChanPostImageDao {
     """)
   abstract suspend fun selectByOwnerPostIdList(ownerPostIdList: List<Long>): List<ChanPostImageEntity>
 
+  @Query("""
+        SELECT images.*
+        FROM ${ChanPostImageEntity.TABLE_NAME} images
+        INNER JOIN ${ChanPostIdEntity.TABLE_NAME} post_ids
+            ON post_ids.${ChanPostIdEntity.POST_ID_COLUMN_NAME} = images.${ChanPostImageEntity.OWNER_POST_ID_COLUMN_NAME}
+        WHERE post_ids.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME} = :ownerThreadId
+        ORDER BY
+            images.${ChanPostImageEntity.OWNER_POST_ID_COLUMN_NAME} ASC,
+            images.${ChanPostImageEntity.POST_IMAGE_ID_COLUMN_NAME} ASC
+    """)
+  abstract suspend fun selectAllInThreadOrdered(ownerThreadId: Long): List<ChanPostImageEntity>
+
   @RewriteQueriesToDropUnusedColumns
   @Query("""
     SELECT *
@@ -76,6 +88,13 @@ abstract class ChanPostImageDao {
   """)
   abstract suspend fun countAllByThreadId(threadId: Long): Int
 
+  @Query("""
+        DELETE
+        FROM ${ChanPostImageEntity.TABLE_NAME}
+        WHERE ${ChanPostImageEntity.OWNER_POST_ID_COLUMN_NAME} IN (:ownerPostIdList)
+    """)
+  abstract suspend fun deleteByOwnerPostIdList(ownerPostIdList: Collection<Long>)
+
   @Delete
   abstract suspend fun delete(chanPostImageEntity: ChanPostImageEntity)
 
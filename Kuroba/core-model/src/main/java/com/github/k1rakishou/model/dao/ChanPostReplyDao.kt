@@ -4,6 +4,7 @@ import androidx.room.Dao
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import com.github.k1rakishou.model.entity.chan.post.ChanPostIdEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostReplyEntity
 
 @Dao
@@ -25,6 +26,37 @@ abstract class ChanPostReplyDao {
     replyType: ChanPostReplyEntity.ReplyType
   ): List<ChanPostReplyEntity>
 
+  @Query("""
+        SELECT replies.*
+        FROM ${ChanPostReplyEntity.TABLE_NAME} replies
+        INNER JOIN ${ChanPostIdEntity.TABLE_NAME} post_ids
+            ON post_ids.${ChanPostIdEntity.POST_ID_COLUMN_NAME} = replies.${ChanPostReplyEntity.OWNER_POST_ID_COLUMN_NAME}
+        WHERE 
+            post_ids.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME} = :ownerThreadId
+        AND
+            replies.${ChanPostReplyEntity.REPLY_TYPE_COLUMN_NAME} = :replyType
+        ORDER BY 
+            replies.${ChanPostReplyEntity.OWNER_POST_ID_COLUMN_NAME} ASC,
+            replies.${ChanPostReplyEntity.POST_REPLY_ID_COLUMN_NAME} ASC
+    """)
+  abstract suspend fun selectAllInThreadOrdered(
+    ownerThreadId: Long,
+    replyType: ChanPostReplyEntity.ReplyType
+  ): List<ChanPostReplyEntity>
+
+  @Query("""
+        DELETE
+        FROM ${ChanPostReplyEntity.TABLE_NAME}
+        WHERE 
+            ${ChanPostReplyEntity.OWNER_POST_ID_COLUMN_NAME} IN (:ownerPostIdList)
+        AND
+            ${ChanPostReplyEntity.REPLY_TYPE_COLUMN_NAME} = :replyType
+    """)
+  abstract suspend fun deleteByOwnerPostIdList(
+    ownerPostIdList: Collection<Long>,
+    replyType: ChanPostReplyEntity.ReplyType
+  )
+
   @Query("SELECT * FROM ${ChanPostReplyEntity.TABLE_NAME}")
   abstract suspend fun testGetAll(): List<ChanPostReplyEntity>
 }
\ No newline at end of file
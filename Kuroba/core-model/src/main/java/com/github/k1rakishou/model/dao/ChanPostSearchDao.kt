@@ -0,0 +1,201 @@
+package com.github.k1rakishou.model.dao
+
+import androidx.room.ColumnInfo
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import com.github.k1rakishou.model.entity.chan.board.ChanBoardIdEntity
+import com.github.k1rakishou.model.entity.chan.post.ChanPostIdEntity
+import com.github.k1rakishou.model.entity.chan.post.ChanPostSearchEntity
+import com.github.k1rakishou.model.entity.chan.thread.ChanThreadEntity
+
+@Dao
+abstract class ChanPostSearchDao {
+
+  @Insert(onConflict = OnConflictStrategy.REPLACE)
+  abstract suspend fun insertOrReplaceMany(chanPostSearchEntities: List<ChanPostSearchEntity>)
+
+  @Query("""
+    SELECT
+        cpid.${ChanPostIdEntity.POST_NO_COLUMN_NAME} AS ${POST_NO},
+        cpid.${ChanPostIdEntity.POST_SUB_NO_COLUMN_NAME} AS ${POST_SUB_NO}
+    FROM ${ChanPostSearchEntity.TABLE_NAME}
+    INNER JOIN ${ChanPostIdEntity.TABLE_NAME} cpid
+        ON cpid.${ChanPostIdEntity.POST_ID_COLUMN_NAME} = ${ChanPostSearchEntity.TABLE_NAME}.${ChanPostSearchEntity.ROW_ID_COLUMN_NAME}
+    INNER JOIN ${ChanThreadEntity.TABLE_NAME} cte
+        ON cte.${ChanThreadEntity.THREAD_ID_COLUMN_NAME} = cpid.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME}
+    INNER JOIN ${ChanBoardIdEntity.TABLE_NAME} cbie
+        ON cbie.${ChanBoardIdEntity.BOARD_ID_COLUMN_NAME} = cte.${ChanThreadEntity.OWNER_BOARD_ID_COLUMN_NAME}
+    WHERE
+        ${ChanPostSearchEntity.TABLE_NAME} MATCH :ftsQuery
+    AND
+        cbie.${ChanBoardIdEntity.OWNER_SITE_NAME_COLUMN_NAME} = :siteName
+    AND
+        cbie.${ChanBoardIdEntity.BOARD_CODE_COLUMN_NAME} = :boardCode
+    AND
+        cte.${ChanThreadEntity.THREAD_NO_COLUMN_NAME} = :threadNo
+  """)
+  abstract suspend fun searchInThread(
+    siteName: String,
+    boardCode: String,
+    threadNo: Long,
+    ftsQuery: String
+  ): List<PostNoDatabaseObject>
+
+  @Query("""
+    SELECT cte.${ChanThreadEntity.THREAD_NO_COLUMN_NAME}
+    FROM ${ChanPostSearchEntity.TABLE_NAME}
+    INNER JOIN ${ChanPostIdEntity.TABLE_NAME} cpid
+        ON cpid.${ChanPostIdEntity.POST_ID_COLUMN_NAME} = ${ChanPostSearchEntity.TABLE_NAME}.${ChanPostSearchEntity.ROW_ID_COLUMN_NAME}
+    INNER JOIN ${ChanThreadEntity.TABLE_NAME} cte
+        ON cte.${ChanThreadEntity.THREAD_ID_COLUMN_NAME} = cpid.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME}
+    INNER JOIN ${ChanBoardIdEntity.TABLE_NAME} cbie
+        ON cbie.${ChanBoardIdEntity.BOARD_ID_COLUMN_NAME} = cte.${ChanThreadEntity.OWNER_BOARD_ID_COLUMN_NAME}
+    WHERE
+        ${ChanPostSearchEntity.TABLE_NAME} MATCH :ftsQuery
+    AND
+        cbie.${ChanBoardIdEntity.OWNER_SITE_NAME_COLUMN_NAME} = :siteName
+    AND
+        cbie.${ChanBoardIdEntity.BOARD_CODE_COLUMN_NAME} = :boardCode
+    AND
+        cpid.${ChanPostIdEntity.POST_NO_COLUMN_NAME} = cte.${ChanThreadEntity.THREAD_NO_COLUMN_NAME}
+    AND
+        cpid.${ChanPostIdEntity.POST_SUB_NO_COLUMN_NAME} = 0
+  """)
+  abstract suspend fun searchInCatalog(
+    siteName: String,
+    boardCode: String,
+    ftsQuery: String
+  ): List<Long>
+
+  @Query("""
+    SELECT
+        cbie.${ChanBoardIdEntity.OWNER_SITE_NAME_COLUMN_NAME} AS ${SITE_NAME},
+        cbie.${ChanBoardIdEntity.BOARD_CODE_COLUMN_NAME} AS ${BOARD_CODE},
+        cte.${ChanThreadEntity.THREAD_NO_COLUMN_NAME} AS ${THREAD_NO},
+        cpid.${ChanPostIdEntity.POST_NO_COLUMN_NAME} AS ${POST_NO},
+        cpid.${ChanPostIdEntity.POST_SUB_NO_COLUMN_NAME} AS ${POST_SUB_NO},
+        matchinfo(${ChanPostSearchEntity.TABLE_NAME}, '${MATCH_INFO_FORMAT}') AS ${MATCH_INFO},
+        ${ChanPostSearchEntity.TABLE_NAME}.${ChanPostSearchEntity.COMMENT_COLUMN_NAME} AS ${COMMENT},
+        ${ChanPostSearchEntity.TABLE_NAME}.${ChanPostSearchEntity.SUBJECT_COLUMN_NAME} AS ${SUBJECT},
+        ${ChanPostSearchEntity.TABLE_NAME}.${ChanPostSearchEntity.NAME_COLUMN_NAME} AS ${NAME},
+        ${ChanPostSearchEntity.TABLE_NAME}.${ChanPostSearchEntity.FILES_COLUMN_NAME} AS ${FILES}
+    FROM ${ChanPostSearchEntity.TABLE_NAME}
+    INNER JOIN ${ChanPostIdEntity.TABLE_NAME} cpid
+        ON cpid.${ChanPostIdEntity.POST_ID_COLUMN_NAME} = ${ChanPostSearchEntity.TABLE_NAME}.${ChanPostSearchEntity.ROW_ID_COLUMN_NAME}
+    INNER JOIN ${ChanThreadEntity.TABLE_NAME} cte
+        ON cte.${ChanThreadEntity.THREAD_ID_COLUMN_NAME} = cpid.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME}
+    INNER JOIN ${ChanBoardIdEntity.TABLE_NAME} cbie
+        ON cbie.${ChanBoardIdEntity.BOARD_ID_COLUMN_NAME} = cte.${ChanThreadEntity.OWNER_BOARD_ID_COLUMN_NAME}
+    WHERE
+        ${ChanPostSearchEntity.TABLE_NAME} MATCH :ftsQuery
+    LIMIT :limit
+  """)
+  abstract suspend fun searchEverywhere(
+    ftsQuery: String,
+    limit: Int
+  ): List<ChanPostSearchMatchDatabaseObject>
+
+  /**
+   * Post numbers of all the persisted posts of a thread (e.g. the posts that are indexed).
+   * */
+  @Query("""
+    SELECT
+        cpid.${ChanPostIdEntity.POST_NO_COLUMN_NAME} AS ${POST_NO},
+        cpid.${ChanPostIdEntity.POST_SUB_NO_COLUMN_NAME} AS ${POST_SUB_NO}
+    FROM ${ChanPostIdEntity.TABLE_NAME} cpid
+    INNER JOIN ${ChanThreadEntity.TABLE_NAME} cte
+        ON cte.${ChanThreadEntity.THREAD_ID_COLUMN_NAME} = cpid.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME}
+    INNER JOIN ${ChanBoardIdEntity.TABLE_NAME} cbie
+        ON cbie.${ChanBoardIdEntity.BOARD_ID_COLUMN_NAME} = cte.${ChanThreadEntity.OWNER_BOARD_ID_COLUMN_NAME}
+    WHERE
+        cbie.${ChanBoardIdEntity.OWNER_SITE_NAME_COLUMN_NAME} = :siteName
+    AND
+        cbie.${ChanBoardIdEntity.BOARD_CODE_COLUMN_NAME} = :boardCode
+    AND
+        cte.${ChanThreadEntity.THREAD_NO_COLUMN_NAME} = :threadNo
+  """)
+  abstract suspend fun selectIndexedThreadPostNos(
+    siteName: String,
+    boardCode: String,
+    threadNo: Long
+  ): List<PostNoDatabaseObject>
+
+  /**
+   * Thread numbers of all the persisted original posts of a board (e.g. the catalog threads that
+   * are indexed).
+   * */
+  @Query("""
+    SELECT cte.${ChanThreadEntity.THREAD_NO_COLUMN_NAME}
+    FROM ${ChanThreadEntity.TABLE_NAME} cte
+    INNER JOIN ${ChanBoardIdEntity.TABLE_NAME} cbie
+        ON cbie.${ChanBoardIdEntity.BOARD_ID_COLUMN_NAME} = cte.${ChanThreadEntity.OWNER_BOARD_ID_COLUMN_NAME}
+    INNER JOIN ${ChanPostIdEntity.TABLE_NAME} cpid
+        ON cpid.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME} = cte.${ChanThreadEntity.THREAD_ID_COLUMN_NAME}
+        AND cpid.${ChanPostIdEntity.POST_NO_COLUMN_NAME} = cte.${ChanThreadEntity.THREAD_NO_COLUMN_NAME}
+        AND cpid.${ChanPostIdEntity.POST_SUB_NO_COLUMN_NAME} = 0
+    WHERE
+        cbie.${ChanBoardIdEntity.OWNER_SITE_NAME_COLUMN_NAME} = :siteName
+    AND
+        cbie.${ChanBoardIdEntity.BOARD_CODE_COLUMN_NAME} = :boardCode
+  """)
+  abstract suspend fun selectIndexedCatalogThreadNos(
+    siteName: String,
+    boardCode: String
+  ): List<Long>
+
+  @Query("DELETE FROM ${ChanPostSearchEntity.TABLE_NAME}")
+  abstract suspend fun deleteAll(): Int
+
+  @Query("SELECT COUNT(*) FROM ${ChanPostSearchEntity.TABLE_NAME}")
+  abstract suspend fun count(): Int
+
+  data class ChanPostSearchMatchDatabaseObject(
+    @ColumnInfo(name = SITE_NAME)
+    val siteName: String,
+    @ColumnInfo(name = BOARD_CODE)
+    val boardCode: String,
+    @ColumnInfo(name = THREAD_NO)
+    val threadNo: Long,
+    @ColumnInfo(name = POST_NO)
+    val postNo: Long,
+    @ColumnInfo(name = POST_SUB_NO)
+    val postSubNo: Long,
+    @ColumnInfo(name = MATCH_INFO, typeAffinity = ColumnInfo.BLOB)
+    val matchInfo: ByteArray,
+    @ColumnInfo(name = COMMENT)
+    val comment: String,
+    @ColumnInfo(name = SUBJECT)
+    val subject: String,
+    @ColumnInfo(name = NAME)
+    val name: String,
+    @ColumnInfo(name = FILES)
+    val files: String
+  )
+
+  data class PostNoDatabaseObject(
+    @ColumnInfo(name = POST_NO)
+    val postNo: Long,
+    @ColumnInfo(name = POST_SUB_NO)
+    val postSubNo: Long
+  )
+
+  companion object {
+    // p - number of phrases in the query, c - number of columns, n - number of rows in the table,
+    // x - for every phrase and column: hits in this row, hits in all rows, rows with at least one
+    // hit.
+    const val MATCH_INFO_FORMAT = "pcnx"
+
+    private const val SITE_NAME = "site_name"
+    private const val BOARD_CODE = "board_code"
+    private const val THREAD_NO = "thread_no"
+    private const val POST_NO = "post_no"
+    private const val POST_SUB_NO = "post_sub_no"
+    private const val MATCH_INFO = "match_info"
+    private const val COMMENT = "search_comment"
+    private const val SUBJECT = "search_subject"
+    private const val NAME = "search_name"
+    private const val FILES = "search_files"
+  }
+}
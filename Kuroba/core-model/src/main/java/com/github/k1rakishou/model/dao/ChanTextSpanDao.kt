@@ -4,6 +4,7 @@ import androidx.room.Dao
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import com.github.k1rakishou.model.entity.chan.post.ChanPostIdEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanTextSpanEntity
 
 @Dao
@@ -21,6 +22,50 @@ abstract class ChanTextSpanDao {
     ownerPostIdList: List<Long>
   ): List<ChanTextSpanEntity>
 
+  @Query("""
+        SELECT text_spans.*
+        FROM ${ChanTextSpanEntity.TABLE_NAME} text_spans
+        INNER JOIN ${ChanPostIdEntity.TABLE_NAME} post_ids
+            ON post_ids.${ChanPostIdEntity.POST_ID_COLUMN_NAME} = text_spans.${ChanTextSpanEntity.OWNER_POST_ID_COLUMN_NAME}
+        WHERE post_ids.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME} = :ownerThreadId
+        ORDER BY text_spans.${ChanTextSpanEntity.OWNER_POST_ID_COLUMN_NAME} ASC
+    """)
+  abstract suspend fun selectAllInThreadOrdered(ownerThreadId: Long): List<ChanTextSpanEntity>
+
+  @Query("""
+        DELETE
+        FROM ${ChanTextSpanEntity.TABLE_NAME}
+        WHERE ${ChanTextSpanEntity.OWNER_POST_ID_COLUMN_NAME} IN (:ownerPostIdList)
+    """)
+  abstract suspend fun deleteByOwnerPostIdList(ownerPostIdList: Collection<Long>)
+
+  /**
+   * Selects text spans which [ChanTextSpanEntity.spanInfoBytes] do not start with [firstByteHex]
+   * (spans that were serialized with the legacy format).
+   * */
+  @Query("""
+        SELECT *
+        FROM ${ChanTextSpanEntity.TABLE_NAME}
+        WHERE
+          ${ChanTextSpanEntity.TEXT_SPAN_ID_COLUMN_NAME} > :afterTextSpanId
+        AND
+          hex(substr(${ChanTextSpanEntity.SPAN_INFO_BYTES_COLUMN_NAME}, 1, 1)) != :firstByteHex
+        ORDER BY ${ChanTextSpanEntity.TEXT_SPAN_ID_COLUMN_NAME} ASC
+        LIMIT :count
+    """)
+  abstract suspend fun selectManyNotStartingWith(
+    afterTextSpanId: Long,
+    firstByteHex: String,
+    count: Int
+  ): List<ChanTextSpanEntity>
+
+  @Query("""
+        UPDATE ${ChanTextSpanEntity.TABLE_NAME}
+        SET ${ChanTextSpanEntity.SPAN_INFO_BYTES_COLUMN_NAME} = :spanInfoBytes
+        WHERE ${ChanTextSpanEntity.TEXT_SPAN_ID_COLUMN_NAME} = :textSpanId
+    """)
+  abstract suspend fun updateSpanInfoBytes(textSpanId: Long, spanInfoBytes: ByteArray)
+
   @Query("SELECT * FROM ${ChanTextSpanEntity.TABLE_NAME}")
   abstract suspend fun testGetAll(): List<ChanTextSpanEntity>
 }
\ No newline at end of file
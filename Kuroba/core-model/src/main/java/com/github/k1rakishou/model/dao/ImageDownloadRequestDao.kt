@@ -42,6 +42,13 @@ abstract class ImageDownloadRequestDao {
     downloadStatuses: Collection<Int>
   ): List<ImageDownloadRequestEntity>
 
+  @Query("""
+    SELECT *
+    FROM ${ImageDownloadRequestEntity.TABLE_NAME}
+    WHERE ${ImageDownloadRequestEntity.STATUS_COLUMN_NAME} IN (:downloadStatuses)
+  """)
+  abstract suspend fun selectAllWithStatus(downloadStatuses: Collection<Int>): List<ImageDownloadRequestEntity>
+
   @Update(onConflict = OnConflictStrategy.IGNORE)
   abstract suspend fun updateMany(imageDownloadRequestEntities: List<ImageDownloadRequestEntity>)
 
@@ -6,7 +6,47 @@ import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 data class BoardPages(
   val boardDescriptor: BoardDescriptor,
   val boardPages: List<BoardPage>
-)
+) {
+  // threadNo -> index of the page in boardPages. BoardPages are replaced with a new instance every
+  // time the pages are updated so the index only needs to be built once.
+  private val pageIndexByThreadNo by lazy(LazyThreadSafetyMode.PUBLICATION) {
+    val index = HashMap<Long, Int>(boardPages.sumOf { boardPage -> boardPage.threads.size })
+
+    boardPages.forEachIndexed { pageIndex, boardPage ->
+      boardPage.threads.keys.forEach { threadDescriptor ->
+        if (!index.containsKey(threadDescriptor.threadNo)) {
+          index[threadDescriptor.threadNo] = pageIndex
+        }
+      }
+    }
+
+    return@lazy index
+  }
+
+  /**
+   * Returns the index in [boardPages] of the page the thread is currently on or -1 if the thread
+   * is not on any of the pages.
+   * */
+  fun findPageIndex(threadDescriptor: ChanDescriptor.ThreadDescriptor): Int {
+    if (threadDescriptor.boardDescriptor != boardDescriptor) {
+      return -1
+    }
+
+    return findPageIndex(threadDescriptor.threadNo)
+  }
+
+  fun findPageIndex(threadNo: Long): Int {
+    return pageIndexByThreadNo[threadNo] ?: -1
+  }
+
+  fun findPage(threadDescriptor: ChanDescriptor.ThreadDescriptor): BoardPage? {
+    return boardPages.getOrNull(findPageIndex(threadDescriptor))
+  }
+
+  fun findPage(threadNo: Long): BoardPage? {
+    return boardPages.getOrNull(findPageIndex(threadNo))
+  }
+}
 
 data class BoardPage(
   val currentPage: Int,
@@ -13,7 +13,12 @@ data class ImageDownloadRequest(
   val status: Status = Status.Queued,
   val duplicateFileUri: Uri? = null,
   val duplicatesResolution: ImageSaverV2Options.DuplicatesResolution = ImageSaverV2Options.DuplicatesResolution.AskWhatToDo,
-  val createdOn: DateTime = DateTime.now()
+  val createdOn: DateTime = DateTime.now(),
+  /**
+   * [ImageSaverV2Options] (as json) the request was created with. Used to resume queued requests
+   * after the process was killed. Null for the requests created before it was persisted.
+   * */
+  val imageSaverOptionsJson: String? = null
 ) {
 
   enum class Status(val rawValue: Int) {
@@ -0,0 +1,29 @@
+package com.github.k1rakishou.model.data.post
+
+/**
+ * Content hashes of a post and of every group of its child rows (text spans, images, icons and
+ * replies). They are persisted alongside the post so that re-persisting a post that hasn't changed
+ * (or a group of its child rows that hasn't changed) can be skipped entirely.
+ * [UNKNOWN_HASH] means the hash was never calculated (e.g. rows created by an older database
+ * version) and will always be treated as changed.
+ * */
+data class ChanPostContentHashes(
+  val postHash: Long,
+  val textSpansHash: Long,
+  val imagesHash: Long,
+  val iconsHash: Long,
+  val repliesHash: Long
+) {
+
+  fun isTheSame(other: ChanPostContentHashes): Boolean {
+    if (this.postHash == UNKNOWN_HASH) {
+      return false
+    }
+
+    return this == other
+  }
+
+  companion object {
+    const val UNKNOWN_HASH = 0L
+  }
+}
@@ -0,0 +1,40 @@
+package com.github.k1rakishou.model.data.post
+
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+
+/**
+ * Result of a local (full-text index) post search. [indexedPosts] contains all the posts of the
+ * searched thread/catalog that are present in the index, posts that are not there (not persisted
+ * yet) need to be searched with ChanPostSearchUtils.matchesQuery.
+ * */
+class ChanPostSearchResult(
+  val matches: Set<PostDescriptor>,
+  val indexedPosts: Set<PostDescriptor>
+)
+
+/**
+ * A post found when searching through all the cached threads. The higher the [rank] the better.
+ * */
+class ChanPostSearchMatch(
+  val postDescriptor: PostDescriptor,
+  val rank: Float,
+  val highlights: List<Highlight>
+) {
+
+  /**
+   * [start] (inclusive) and [end] (exclusive) are char offsets into the [field]'s text.
+   * */
+  data class Highlight(
+    val field: Field,
+    val start: Int,
+    val end: Int
+  )
+
+  enum class Field {
+    Comment,
+    Subject,
+    Name,
+    Files
+  }
+
+}
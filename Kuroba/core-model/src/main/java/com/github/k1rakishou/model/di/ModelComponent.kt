@@ -2,6 +2,7 @@ package com.github.k1rakishou.model.di
 
 import android.app.Application
 import com.github.k1rakishou.common.AppConstants
+import com.github.k1rakishou.common.dns.DnsCache
 import com.github.k1rakishou.common.dns.DnsOverHttpsSelectorFactory
 import com.github.k1rakishou.common.dns.NormalDnsSelectorFactory
 import com.github.k1rakishou.model.repository.BoardRepository
@@ -11,6 +12,7 @@ import com.github.k1rakishou.model.repository.ChanFilterRepository
 import com.github.k1rakishou.model.repository.ChanFilterWatchRepository
 import com.github.k1rakishou.model.repository.ChanPostHideRepository
 import com.github.k1rakishou.model.repository.ChanPostImageRepository
+import com.github.k1rakishou.model.repository.ChanPostSearchRepository
 import com.github.k1rakishou.model.repository.ChanPostRepository
 import com.github.k1rakishou.model.repository.ChanSavedReplyRepository
 import com.github.k1rakishou.model.repository.ChanThreadViewableInfoRepository
@@ -56,6 +58,7 @@ interface ModelComponent {
   fun getChanCatalogSnapshotRepository(): ChanCatalogSnapshotRepository
   fun getChanFilterWatchRepository(): ChanFilterWatchRepository
   fun getChanPostImageRepository(): ChanPostImageRepository
+  fun getChanPostSearchRepository(): ChanPostSearchRepository
   fun getChanThreadsCache(): ChanThreadsCache
   fun getImageDownloadRequestRepository(): ImageDownloadRequestRepository
   fun getThreadDownloadRepository(): ThreadDownloadRepository
@@ -76,8 +79,10 @@ interface ModelComponent {
     val isDevFlavor: Boolean,
     val isLowRamDevice: Boolean,
     val okHttpUseDnsOverHttps: Boolean,
+    val okHttpRaceDnsResolvers: Boolean,
     val normalDnsSelectorFactory: NormalDnsSelectorFactory,
     val dnsOverHttpsSelectorFactory: DnsOverHttpsSelectorFactory,
+    val dnsCache: DnsCache,
     val okHttpProtocols: NetworkModule.OkHttpProtocolList,
     val appConstants: AppConstants
   )
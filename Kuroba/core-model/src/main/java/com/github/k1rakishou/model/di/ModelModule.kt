@@ -14,6 +14,7 @@ import com.github.k1rakishou.model.repository.ChanFilterRepository
 import com.github.k1rakishou.model.repository.ChanFilterWatchRepository
 import com.github.k1rakishou.model.repository.ChanPostHideRepository
 import com.github.k1rakishou.model.repository.ChanPostImageRepository
+import com.github.k1rakishou.model.repository.ChanPostSearchRepository
 import com.github.k1rakishou.model.repository.ChanPostRepository
 import com.github.k1rakishou.model.repository.ChanSavedReplyRepository
 import com.github.k1rakishou.model.repository.ChanThreadViewableInfoRepository
@@ -21,6 +22,7 @@ import com.github.k1rakishou.model.repository.CompositeCatalogRepository
 import com.github.k1rakishou.model.repository.DatabaseMetaRepository
 import com.github.k1rakishou.model.repository.HistoryNavigationRepository
 import com.github.k1rakishou.model.repository.ImageDownloadRequestRepository
+import com.github.k1rakishou.model.repository.LegacyTextSpansMigration
 import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository
 import com.github.k1rakishou.model.repository.SeenPostRepository
 import com.github.k1rakishou.model.repository.SiteRepository
@@ -37,6 +39,7 @@ import com.github.k1rakishou.model.source.local.ChanFilterLocalSource
 import com.github.k1rakishou.model.source.local.ChanFilterWatchLocalSource
 import com.github.k1rakishou.model.source.local.ChanPostHideLocalSource
 import com.github.k1rakishou.model.source.local.ChanPostImageLocalSource
+import com.github.k1rakishou.model.source.local.ChanPostSearchLocalSource
 import com.github.k1rakishou.model.source.local.ChanPostLocalSource
 import com.github.k1rakishou.model.source.local.ChanSavedReplyLocalSource
 import com.github.k1rakishou.model.source.local.ChanThreadViewableInfoLocalSource
@@ -56,6 +59,7 @@ import com.squareup.moshi.Moshi
 import dagger.Module
 import dagger.Provides
 import okhttp3.OkHttpClient
+import java.io.File
 import javax.inject.Singleton
 
 @Module
@@ -326,6 +330,14 @@ class ModelModule {
     )
   }
 
+  @Singleton
+  @Provides
+  fun provideChanPostSearchLocalSource(
+    database: KurobaDatabase
+  ): ChanPostSearchLocalSource {
+    return ChanPostSearchLocalSource(database)
+  }
+
   @Singleton
   @Provides
   fun provideImageDownloadRequestLocalSource(
@@ -413,7 +425,8 @@ class ModelModule {
       dependencies.appConstants,
       chanPostLocalSource,
       chanThreadsCache,
-      chanDescriptorCache
+      chanDescriptorCache,
+      File(dependencies.application.filesDir, LegacyTextSpansMigration.COMPLETED_FLAG_FILE_NAME)
     )
   }
 
@@ -601,6 +614,21 @@ class ModelModule {
     )
   }
 
+  @Singleton
+  @Provides
+  fun provideChanPostSearchRepository(
+    database: KurobaDatabase,
+    dependencies: ModelComponent.Dependencies,
+    localSource: ChanPostSearchLocalSource
+  ): ChanPostSearchRepository {
+    return ChanPostSearchRepository(
+      database,
+      dependencies.isDevFlavor,
+      dependencies.coroutineScope,
+      localSource
+    )
+  }
+
   @Singleton
   @Provides
   fun provideImageDownloadRequestRepository(
@@ -24,8 +24,10 @@ class NetworkModule {
     val compositeDnsSelector = CompositeDnsSelector(
       okHttpClient,
       dependencies.okHttpUseDnsOverHttps,
+      dependencies.okHttpRaceDnsResolvers,
       dependencies.normalDnsSelectorFactory,
-      dependencies.dnsOverHttpsSelectorFactory
+      dependencies.dnsOverHttpsSelectorFactory,
+      dependencies.dnsCache
     )
 
     return okHttpClient.newBuilder()
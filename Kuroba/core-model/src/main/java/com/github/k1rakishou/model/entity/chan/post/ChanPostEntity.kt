@@ -38,7 +38,17 @@ data class ChanPostEntity(
   @ColumnInfo(name = IS_SAVED_REPLY_COLUMN_NAME)
   val isSavedReply: Boolean = false,
   @ColumnInfo(name = IS_SAGE_COLUMN_NAME)
-  val isSage: Boolean = false
+  val isSage: Boolean = false,
+  @ColumnInfo(name = POST_HASH_COLUMN_NAME, defaultValue = "0")
+  val postHash: Long = 0L,
+  @ColumnInfo(name = TEXT_SPANS_HASH_COLUMN_NAME, defaultValue = "0")
+  val textSpansHash: Long = 0L,
+  @ColumnInfo(name = IMAGES_HASH_COLUMN_NAME, defaultValue = "0")
+  val imagesHash: Long = 0L,
+  @ColumnInfo(name = ICONS_HASH_COLUMN_NAME, defaultValue = "0")
+  val iconsHash: Long = 0L,
+  @ColumnInfo(name = REPLIES_HASH_COLUMN_NAME, defaultValue = "0")
+  val repliesHash: Long = 0L
 ) {
   companion object {
     const val TABLE_NAME = "chan_post"
@@ -53,5 +63,10 @@ data class ChanPostEntity(
     const val IS_OP_COLUMN_NAME = "is_op"
     const val IS_SAVED_REPLY_COLUMN_NAME = "is_saved_reply"
     const val IS_SAGE_COLUMN_NAME = "is_sage"
+    const val POST_HASH_COLUMN_NAME = "post_hash"
+    const val TEXT_SPANS_HASH_COLUMN_NAME = "text_spans_hash"
+    const val IMAGES_HASH_COLUMN_NAME = "images_hash"
+    const val ICONS_HASH_COLUMN_NAME = "icons_hash"
+    const val REPLIES_HASH_COLUMN_NAME = "replies_hash"
   }
 }
\ No newline at end of file
@@ -0,0 +1,50 @@
+package com.github.k1rakishou.model.entity.chan.post
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Fts4
+import androidx.room.FtsOptions
+import androidx.room.PrimaryKey
+
+/**
+ * Full-text index over persisted posts. The rowid is the post's database id
+ * ([ChanPostIdEntity.postId]). FTS tables can't have foreign keys so rows of deleted posts are
+ * removed by [DELETE_TRIGGER_SQL] which is created by the migration and when the database is
+ * created.
+ * */
+@Fts4(tokenizer = FtsOptions.TOKENIZER_UNICODE61)
+@Entity(tableName = ChanPostSearchEntity.TABLE_NAME)
+data class ChanPostSearchEntity(
+  @PrimaryKey
+  @ColumnInfo(name = ROW_ID_COLUMN_NAME)
+  val ownerPostId: Long,
+  @ColumnInfo(name = COMMENT_COLUMN_NAME)
+  val comment: String,
+  @ColumnInfo(name = SUBJECT_COLUMN_NAME)
+  val subject: String,
+  @ColumnInfo(name = NAME_COLUMN_NAME)
+  val name: String,
+  @ColumnInfo(name = FILES_COLUMN_NAME)
+  val files: String
+) {
+
+  companion object {
+    const val TABLE_NAME = "chan_post_search"
+
+    const val ROW_ID_COLUMN_NAME = "rowid"
+    const val COMMENT_COLUMN_NAME = "comment"
+    const val SUBJECT_COLUMN_NAME = "subject"
+    const val NAME_COLUMN_NAME = "name"
+    const val FILES_COLUMN_NAME = "files"
+
+
+    const val DELETE_TRIGGER_NAME = "chan_post_search_delete_trigger"
+    const val DELETE_TRIGGER_SQL = """
+      CREATE TRIGGER IF NOT EXISTS ${DELETE_TRIGGER_NAME}
+      AFTER DELETE ON ${ChanPostEntity.TABLE_NAME}
+      BEGIN
+        DELETE FROM ${TABLE_NAME} WHERE ${ROW_ID_COLUMN_NAME} = OLD.${ChanPostEntity.CHAN_POST_ID_COLUMN_NAME};
+      END
+    """
+  }
+}
@@ -9,6 +9,7 @@ import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.post.ChanOriginalPost
 import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostContentHashes
 import com.github.k1rakishou.model.data.post.PostComment
 import com.github.k1rakishou.model.entity.chan.post.ChanPostEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostIdEntity
@@ -20,7 +21,8 @@ object ChanPostEntityMapper {
 
   fun toEntity(
     chanPostId: Long,
-    chanPost: ChanPost
+    chanPost: ChanPost,
+    contentHashes: ChanPostContentHashes
   ): ChanPostEntity {
     return ChanPostEntity(
       chanPostId = chanPostId,
@@ -32,7 +34,12 @@ object ChanPostEntityMapper {
       moderatorCapcode = chanPost.moderatorCapcode,
       isOp = chanPost is ChanOriginalPost,
       isSavedReply = chanPost.isSavedReply,
-      isSage = chanPost.isSage
+      isSage = chanPost.isSage,
+      postHash = contentHashes.postHash,
+      textSpansHash = contentHashes.textSpansHash,
+      imagesHash = contentHashes.imagesHash,
+      iconsHash = contentHashes.iconsHash,
+      repliesHash = contentHashes.repliesHash
     )
   }
 
@@ -1,11 +1,10 @@
 package com.github.k1rakishou.model.mapper
 
 import com.github.k1rakishou.common.errorMessageOrClassName
-import com.github.k1rakishou.common.marshall
-import com.github.k1rakishou.common.unmarshall
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.core_spannable.ParcelableSpannableString
 import com.github.k1rakishou.core_spannable.ParcelableSpans
+import com.github.k1rakishou.core_spannable.parcelable_spannable_string.ParcelableSpannableStringMapper
 import com.github.k1rakishou.model.entity.chan.post.ChanTextSpanEntity
 
 object TextSpanMapper {
@@ -26,7 +25,7 @@ object TextSpanMapper {
       ownerPostId = ownerPostId,
       parsedText = parcelableSpannableString.text,
       unparsedText = originalUnparsedComment,
-      spanInfoBytes = parcelableSpannableString.parcelableSpans.marshall(),
+      spanInfoBytes = ParcelableSpannableStringMapper.serializeSpans(parcelableSpannableString.parcelableSpans),
       textType = chanTextType
     )
   }
@@ -54,7 +53,7 @@ object TextSpanMapper {
 
     val textSpanEntity = filteredTextSpanEntityList.first()
 
-    val parcelableSpans = textSpanEntity.spanInfoBytes.unmarshall(ParcelableSpans.CREATOR)
+    val parcelableSpans = ParcelableSpannableStringMapper.deserializeSpans(textSpanEntity.spanInfoBytes)
       .peekError { error -> Logger.e(TAG, "fromEntity() error: ${error.errorMessageOrClassName()}") }
       .valueOrNull()
       ?: ParcelableSpans()
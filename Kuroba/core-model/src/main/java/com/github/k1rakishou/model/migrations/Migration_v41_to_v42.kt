@@ -0,0 +1,18 @@
+package com.github.k1rakishou.model.migrations
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+class Migration_v41_to_v42 : Migration(41, 42) {
+
+  override fun migrate(database: SupportSQLiteDatabase) {
+    database.doWithoutForeignKeys {
+      database.execSQL("ALTER TABLE chan_post ADD COLUMN post_hash INTEGER NOT NULL DEFAULT 0")
+      database.execSQL("ALTER TABLE chan_post ADD COLUMN text_spans_hash INTEGER NOT NULL DEFAULT 0")
+      database.execSQL("ALTER TABLE chan_post ADD COLUMN images_hash INTEGER NOT NULL DEFAULT 0")
+      database.execSQL("ALTER TABLE chan_post ADD COLUMN icons_hash INTEGER NOT NULL DEFAULT 0")
+      database.execSQL("ALTER TABLE chan_post ADD COLUMN replies_hash INTEGER NOT NULL DEFAULT 0")
+    }
+  }
+
+}
@@ -0,0 +1,41 @@
+package com.github.k1rakishou.model.migrations
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+class Migration_v42_to_v43 : Migration(42, 43) {
+
+  override fun migrate(database: SupportSQLiteDatabase) {
+    database.doWithoutForeignKeys {
+      database.execSQL(
+        "CREATE VIRTUAL TABLE IF NOT EXISTS `chan_post_search` USING FTS4(`comment` TEXT NOT NULL, " +
+          "`subject` TEXT NOT NULL, `name` TEXT NOT NULL, `files` TEXT NOT NULL, tokenize=unicode61)"
+      )
+
+      // Index already cached posts. text_type: 0 - comment, 1 - subject.
+      database.execSQL("""
+        INSERT INTO chan_post_search (rowid, comment, subject, name, files)
+        SELECT
+            cp.chan_post_id,
+            IFNULL((SELECT cts.parsed_text FROM chan_text_span cts WHERE cts.owner_post_id = cp.chan_post_id AND cts.text_type = 0 LIMIT 1), ''),
+            IFNULL((SELECT cts.parsed_text FROM chan_text_span cts WHERE cts.owner_post_id = cp.chan_post_id AND cts.text_type = 1 LIMIT 1), ''),
+            IFNULL(cp.name, ''),
+            IFNULL((
+                SELECT group_concat(IFNULL(cpi.filename, '') || ' ' || cpi.server_filename || ' ' || IFNULL(cpi.extension, ''), ' ')
+                FROM chan_post_image cpi
+                WHERE cpi.owner_post_id = cp.chan_post_id
+            ), '')
+        FROM chan_post cp
+      """.trimIndent())
+
+      database.execSQL("""
+        CREATE TRIGGER IF NOT EXISTS chan_post_search_delete_trigger
+        AFTER DELETE ON chan_post
+        BEGIN
+          DELETE FROM chan_post_search WHERE rowid = OLD.chan_post_id;
+        END
+      """.trimIndent())
+    }
+  }
+
+}
@@ -0,0 +1,14 @@
+package com.github.k1rakishou.model.migrations
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+class Migration_v43_to_v44 : Migration(43, 44) {
+
+  override fun migrate(database: SupportSQLiteDatabase) {
+    database.doWithoutForeignKeys {
+      database.execSQL("ALTER TABLE image_download_request_entity ADD COLUMN image_saver_options_json TEXT")
+    }
+  }
+
+}
@@ -29,6 +29,7 @@ import com.github.k1rakishou.model.util.ensureBackgroundThread
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
+import java.io.File
 import kotlin.math.max
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTime
@@ -41,7 +42,8 @@ class ChanPostRepository(
   private val appConstants: AppConstants,
   private val localSource: ChanPostLocalSource,
   private val chanThreadsCache: ChanThreadsCache,
-  private val chanDescriptorCache: ChanDescriptorCache
+  private val chanDescriptorCache: ChanDescriptorCache,
+  private val legacyTextSpansMigratedFlagFile: File
 ) : AbstractRepository(database) {
   private val TAG = "ChanPostRepository"
   private val suspendableInitializer = SuspendableInitializer<Unit>("ChanPostRepository")
@@ -67,6 +69,8 @@ class ChanPostRepository(
       }
 
       suspendableInitializer.initWithValue(Unit)
+
+      migrateLegacyTextSpans()
     }
   }
 
@@ -686,6 +690,23 @@ class ChanPostRepository(
     }
   }
 
+  private suspend fun migrateLegacyTextSpans() {
+    // Every batch is processed in a separate transaction so that we don't block other database
+    // operations for too long
+    val legacyTextSpansMigration = LegacyTextSpansMigration(legacyTextSpansMigratedFlagFile) { afterTextSpanId ->
+      applicationScope.dbCall {
+        return@dbCall tryWithTransaction {
+          return@tryWithTransaction localSource.migrateLegacyTextSpansBatch(
+            afterTextSpanId = afterTextSpanId,
+            batchSize = LEGACY_TEXT_SPANS_MIGRATION_BATCH_SIZE
+          )
+        }
+      }
+    }
+
+    legacyTextSpansMigration.run()
+  }
+
   @OptIn(ExperimentalTime::class)
   suspend fun deleteOldPostsIfNeeded(forced: Boolean = false): ModularResult<ChanPostLocalSource.DeleteResult> {
     return applicationScope.dbCall {
@@ -813,4 +834,7 @@ class ChanPostRepository(
     return false
   }
 
-}
\ No newline at end of file
+  companion object {
+    private const val LEGACY_TEXT_SPANS_MIGRATION_BATCH_SIZE = 512
+  }
+}
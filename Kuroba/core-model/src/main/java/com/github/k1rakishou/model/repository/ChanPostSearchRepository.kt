@@ -0,0 +1,77 @@
+package com.github.k1rakishou.model.repository
+
+import com.github.k1rakishou.common.ModularResult
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.post.ChanPostSearchMatch
+import com.github.k1rakishou.model.data.post.ChanPostSearchResult
+import com.github.k1rakishou.model.source.local.ChanPostSearchLocalSource
+import com.github.k1rakishou.model.util.ChanPostSearchUtils
+import kotlinx.coroutines.CoroutineScope
+
+/**
+ * Full-text search over the posts that are persisted in the database. All the search methods
+ * return null when the query has nothing to search for (e.g. it consists only of punctuation),
+ * in this case the caller should fall back to the regular search.
+ * */
+class ChanPostSearchRepository(
+  database: KurobaDatabase,
+  private val isDevFlavor: Boolean,
+  private val applicationScope: CoroutineScope,
+  private val chanPostSearchLocalSource: ChanPostSearchLocalSource
+) : AbstractRepository(database) {
+  private val TAG = "ChanPostSearchRepository"
+
+  suspend fun searchThread(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    query: String
+  ): ModularResult<ChanPostSearchResult?> {
+    val ftsQuery = ChanPostSearchUtils.toFtsQuery(query)
+      ?: return ModularResult.value(null)
+
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction chanPostSearchLocalSource.searchThread(threadDescriptor, ftsQuery)
+      }
+    }
+  }
+
+  suspend fun searchCatalog(
+    catalogDescriptor: ChanDescriptor.ICatalogDescriptor,
+    query: String
+  ): ModularResult<ChanPostSearchResult?> {
+    val ftsQuery = ChanPostSearchUtils.toFtsQuery(query)
+      ?: return ModularResult.value(null)
+
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction chanPostSearchLocalSource.searchCatalog(catalogDescriptor, ftsQuery)
+      }
+    }
+  }
+
+  /**
+   * Searches through every persisted post no matter which thread it belongs to. Matches are sorted
+   * by rank (best matches first), the highlights are found with the same rule the posts are
+   * matched with.
+   * */
+  suspend fun searchAllCachedThreads(
+    query: String,
+    limit: Int = DEFAULT_SEARCH_ALL_LIMIT
+  ): ModularResult<List<ChanPostSearchMatch>?> {
+    val queryTokens = ChanPostSearchUtils.queryTokens(query)
+    val ftsQuery = ChanPostSearchUtils.toFtsQuery(query)
+      ?: return ModularResult.value(null)
+
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction chanPostSearchLocalSource.searchAllCachedThreads(ftsQuery, queryTokens, limit)
+      }
+    }
+  }
+
+  companion object {
+    const val DEFAULT_SEARCH_ALL_LIMIT = 500
+  }
+
+}
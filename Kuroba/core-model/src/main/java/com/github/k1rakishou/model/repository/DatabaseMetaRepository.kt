@@ -6,7 +6,7 @@ import com.github.k1rakishou.model.source.local.DatabaseMetaLocalSource
 import kotlinx.coroutines.CoroutineScope
 
 class DatabaseMetaRepository(
-  database: KurobaDatabase,
+  private val database: KurobaDatabase,
   private val applicationScope: CoroutineScope,
   private val localSource: DatabaseMetaLocalSource
 ) : AbstractRepository(database) {
@@ -18,4 +18,14 @@ class DatabaseMetaRepository(
     }
   }
 
+  /**
+   * Closes the database (which also checkpoints it and removes its WAL) so that its files can be
+   * replaced. Only used right before the app is restarted.
+   * */
+  suspend fun close() {
+    applicationScope.dbCall {
+      database.close()
+    }
+  }
+
 }
\ No newline at end of file
@@ -57,6 +57,16 @@ class ImageDownloadRequestRepository(
     }
   }
 
+  suspend fun selectAllWithStatus(
+    downloadStatuses: Collection<ImageDownloadRequest.Status>
+  ): ModularResult<List<ImageDownloadRequest>> {
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction imageDownloadRequestLocalSource.selectAllWithStatus(downloadStatuses)
+      }
+    }
+  }
+
   suspend fun completeMany(imageDownloadRequests: List<ImageDownloadRequest>): ModularResult<Unit> {
     if (imageDownloadRequests.isEmpty()) {
       return ModularResult.value(Unit)
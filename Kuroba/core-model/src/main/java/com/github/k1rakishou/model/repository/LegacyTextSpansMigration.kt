@@ -0,0 +1,59 @@
+package com.github.k1rakishou.model.repository
+
+import com.github.k1rakishou.common.ModularResult
+import com.github.k1rakishou.core_logger.Logger
+import java.io.File
+import java.io.IOException
+
+/**
+ * Converts text spans persisted with the legacy (Parcel) format into the current binary format in
+ * batches. New text spans are always written in the current format, so once one full run finds no
+ * legacy text spans left its completion is recorded in [completedFlagFile] and the following app
+ * starts don't scan the text spans table again. Legacy text spans that appear after that (e.g. an
+ * old database was restored) are still readable, they are just not converted.
+ * */
+class LegacyTextSpansMigration(
+  private val completedFlagFile: File,
+  // Migrates a batch of legacy text spans after the given text span id and returns the id of the
+  // last processed text span or null when there are no more legacy text spans
+  private val migrateBatch: suspend (Long) -> ModularResult<Long?>
+) {
+
+  suspend fun run() {
+    if (completedFlagFile.exists()) {
+      return
+    }
+
+    var lastTextSpanId = 0L
+    var batches = 0
+
+    while (true) {
+      val result = migrateBatch(lastTextSpanId)
+      if (result is ModularResult.Error) {
+        // Not marked as completed so the next app start will try again
+        Logger.e(TAG, "run() error", result.error)
+        return
+      }
+
+      lastTextSpanId = result.valueOrNull()
+        ?: break
+
+      ++batches
+    }
+
+    Logger.d(TAG, "run() done, batches=$batches")
+
+    try {
+      completedFlagFile.parentFile?.mkdirs()
+      completedFlagFile.createNewFile()
+    } catch (error: IOException) {
+      Logger.e(TAG, "Failed to create '${completedFlagFile.absolutePath}'", error)
+    }
+  }
+
+  companion object {
+    private const val TAG = "LegacyTextSpansMigration"
+    const val COMPLETED_FLAG_FILE_NAME = "legacy_text_spans_migrated"
+  }
+
+}
@@ -1,6 +1,11 @@
 package com.github.k1rakishou.model.repository
 
+import com.github.k1rakishou.common.BadStatusResponseException
 import com.github.k1rakishou.common.ModularResult
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.common.mutableListWithCap
+import com.github.k1rakishou.common.mutableMapWithCap
+import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.data.media.GenericVideoId
 import com.github.k1rakishou.model.data.video_service.MediaServiceLinkExtraContent
@@ -10,8 +15,24 @@ import com.github.k1rakishou.model.source.local.MediaServiceLinkExtraContentLoca
 import com.github.k1rakishou.model.source.remote.MediaServiceLinkExtraContentRemoteSource
 import com.github.k1rakishou.model.util.ensureBackgroundThread
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
 
+/**
+ * Only the database accesses are executed on the db dispatcher. Network fetches are executed
+ * concurrently (at most [MAX_CONCURRENT_NETWORK_FETCHES] at a time), concurrent requests for the
+ * same [MediaServiceKey] share one fetch and dead links (the service responded with 404) are
+ * remembered for [NEGATIVE_RESULT_TTL_MS] so that they are not re-fetched every time a post is
+ * bound. Other errors (timeouts, 5xx, rate limiting) are not remembered, the link is fetched again
+ * the next time.
+ * */
 class MediaServiceLinkExtraContentRepository(
   database: KurobaDatabase,
   private val applicationScope: CoroutineScope,
@@ -22,62 +43,107 @@ class MediaServiceLinkExtraContentRepository(
   private val TAG = "MediaServiceLinkExtraContentRepository"
   private val alreadyExecuted = AtomicBoolean(false)
 
+  private val networkFetchSemaphore = Semaphore(MAX_CONCURRENT_NETWORK_FETCHES)
+  private val activeFetches = ConcurrentHashMap<MediaServiceKey, Deferred<ModularResult<MediaServiceLinkExtraContent>>>()
+  // MediaServiceKey -> time (in millis) when the negative result expires
+  private val negativeResults = ConcurrentHashMap<MediaServiceKey, Long>()
+
   suspend fun getLinkExtraContent(
     mediaServiceType: MediaServiceType,
     requestUrl: String,
     videoId: GenericVideoId
   ): ModularResult<MediaServiceLinkExtraContent> {
+    val request = LinkExtraContentRequest(mediaServiceType, requestUrl, videoId)
+
+    return getLinkExtraContentBatch(listOf(request))[request.mediaServiceKey]
+      ?: ModularResult.error(IllegalStateException("No result for ${request.mediaServiceKey}"))
+  }
+
+  /**
+   * Resolves all [requests] (usually all the media links of one post) at once: the local source
+   * is queried for all of them in one transaction (one query per link) and the rest is fetched from
+   * the network concurrently.
+   * */
+  suspend fun getLinkExtraContentBatch(
+    requests: Collection<LinkExtraContentRequest>
+  ): Map<MediaServiceKey, ModularResult<MediaServiceLinkExtraContent>> {
     ensureBackgroundThread()
-    val mediaServiceKey = MediaServiceKey(videoId, mediaServiceType)
 
-    return applicationScope.dbCall {
-      return@dbCall repoGenericGetAction(
-        fileUrl = requestUrl,
-        cleanupFunc = { mediaServiceLinkExtraContentRepositoryCleanup().ignore() },
-        getFromCacheFunc = { cache.get(mediaServiceKey) },
-        getFromLocalSourceFunc = {
-          tryWithTransaction {
-            mediaServiceLinkExtraContentLocalSource.selectByMediaServiceKey(
-              videoId,
-              mediaServiceKey
-            )
-          }
-        },
-        getFromRemoteSourceFunc = {
-          mediaServiceLinkExtraContentRemoteSource.fetchFromNetwork(
-            requestUrl,
-            videoId,
-            mediaServiceType
-          ).mapValue {
-            return@mapValue MediaServiceLinkExtraContent(
-              videoId,
-              mediaServiceType,
-              it.videoTitle,
-              it.videoDuration
-            )
-          }
-        },
-        storeIntoCacheFunc = { mediaServiceLinkExtraContent ->
-          cache.store(mediaServiceKey, mediaServiceLinkExtraContent)
-        },
-        storeIntoLocalSourceFunc = { mediaServiceLinkExtraContent ->
-          if (mediaServiceLinkExtraContent.isValid()) {
-            tryWithTransaction {
-              mediaServiceLinkExtraContentLocalSource.insert(mediaServiceLinkExtraContent)
-            }
-          } else {
-            ModularResult.value(Unit)
-          }
-        },
-        tag = TAG
+    if (requests.isEmpty()) {
+      return emptyMap()
+    }
+
+    mediaServiceLinkExtraContentRepositoryCleanup().ignore()
+
+    val results = mutableMapWithCap<MediaServiceKey, ModularResult<MediaServiceLinkExtraContent>>(requests.size)
+    val notCachedRequests = mutableListWithCap<LinkExtraContentRequest>(requests.size)
+
+    for (request in requests) {
+      val mediaServiceKey = request.mediaServiceKey
+      if (results.containsKey(mediaServiceKey)) {
+        continue
+      }
+
+      val fromCache = getFromCacheOrNegativeResults(request)
+      if (fromCache != null) {
+        results[mediaServiceKey] = ModularResult.value(fromCache)
+        continue
+      }
+
+      if (notCachedRequests.none { notCachedRequest -> notCachedRequest.mediaServiceKey == mediaServiceKey }) {
+        notCachedRequests += request
+      }
+    }
+
+    if (notCachedRequests.isEmpty()) {
+      return results
+    }
+
+    val fromLocalSourceResult = applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction notCachedRequests.mapNotNull { request ->
+          mediaServiceLinkExtraContentLocalSource.selectByMediaServiceKey(
+            request.videoId,
+            request.mediaServiceKey
+          )
+        }
+      }
+    }
+
+    val fromLocalSource = fromLocalSourceResult.safeUnwrap { error ->
+      Logger.e(TAG, "Error while trying to get MediaServiceLinkExtraContent from " +
+        "local source: error = ${error.errorMessageOrClassName()}")
+
+      notCachedRequests.forEach { request -> results[request.mediaServiceKey] = ModularResult.error(error) }
+      return results
+    }
+
+    fromLocalSource.forEach { mediaServiceLinkExtraContent ->
+      val mediaServiceKey = MediaServiceKey(
+        mediaServiceLinkExtraContent.videoId,
+        mediaServiceLinkExtraContent.mediaServiceType
       )
+
+      cache.store(mediaServiceKey, mediaServiceLinkExtraContent)
+      results[mediaServiceKey] = ModularResult.value(mediaServiceLinkExtraContent)
     }
+
+    val fetches = notCachedRequests
+      .filter { request -> !results.containsKey(request.mediaServiceKey) }
+      .map { request -> request.mediaServiceKey to getOrStartFetch(request) }
+
+    fetches.forEach { (mediaServiceKey, fetch) -> results[mediaServiceKey] = fetch.await() }
+    return results
   }
 
   suspend fun isCached(videoId: GenericVideoId, mediaServiceType: MediaServiceType): ModularResult<Boolean> {
     ensureBackgroundThread()
     val mediaServiceKey = MediaServiceKey(videoId, mediaServiceType)
 
+    if (isNegativeResultCached(mediaServiceKey)) {
+      return ModularResult.value(true)
+    }
+
     return applicationScope.dbCall {
       return@dbCall tryWithTransaction {
         val hasInCache = cache.contains(mediaServiceKey)
@@ -96,6 +162,8 @@ class MediaServiceLinkExtraContentRepository(
   }
 
   suspend fun deleteAll(): ModularResult<Int> {
+    negativeResults.clear()
+
     return applicationScope.dbCall {
       return@dbCall tryWithTransaction {
         return@tryWithTransaction mediaServiceLinkExtraContentLocalSource.deleteAll()
@@ -111,7 +179,117 @@ class MediaServiceLinkExtraContentRepository(
     }
   }
 
+  private fun getOrStartFetch(request: LinkExtraContentRequest): Deferred<ModularResult<MediaServiceLinkExtraContent>> {
+    val mediaServiceKey = request.mediaServiceKey
+
+    val activeFetch = activeFetches[mediaServiceKey]
+    if (activeFetch != null) {
+      return activeFetch
+    }
+
+    // The fetch is not bound to the caller because other callers may be waiting for its result
+    val newFetch = applicationScope.async(Dispatchers.IO, start = CoroutineStart.LAZY) {
+      fetchAndStore(request)
+    }
+
+    val prevFetch = activeFetches.putIfAbsent(mediaServiceKey, newFetch)
+    if (prevFetch != null) {
+      newFetch.cancel()
+      return prevFetch
+    }
+
+    newFetch.invokeOnCompletion { activeFetches.remove(mediaServiceKey, newFetch) }
+    newFetch.start()
+
+    return newFetch
+  }
+
+  private suspend fun fetchAndStore(request: LinkExtraContentRequest): ModularResult<MediaServiceLinkExtraContent> {
+    val mediaServiceKey = request.mediaServiceKey
+
+    // Somebody else might have fetched it while we were checking the local source
+    val fromCache = getFromCacheOrNegativeResults(request)
+    if (fromCache != null) {
+      return ModularResult.value(fromCache)
+    }
+
+    val remoteSourceResult = networkFetchSemaphore.withPermit {
+      mediaServiceLinkExtraContentRemoteSource.fetchFromNetwork(
+        request.requestUrl,
+        request.videoId,
+        request.mediaServiceType
+      )
+    }
+
+    val mediaServiceLinkExtraInfo = remoteSourceResult.safeUnwrap { error ->
+      if (error is BadStatusResponseException && error.isNotFoundError()) {
+        negativeResults[mediaServiceKey] = System.currentTimeMillis() + NEGATIVE_RESULT_TTL_MS
+        return ModularResult.value(MediaServiceLinkExtraContent(request.videoId, request.mediaServiceType, null, null))
+      }
+
+      Logger.e(TAG, "Error while trying to fetch MediaServiceLinkExtraContent from " +
+        "remote source (fileUrl=${request.requestUrl}): error = ${error.errorMessageOrClassName()}")
+      return ModularResult.error(error)
+    }
+
+    val mediaServiceLinkExtraContent = MediaServiceLinkExtraContent(
+      request.videoId,
+      request.mediaServiceType,
+      mediaServiceLinkExtraInfo.videoTitle,
+      mediaServiceLinkExtraInfo.videoDuration
+    )
+
+    if (!mediaServiceLinkExtraContent.isValid()) {
+      // Nothing to store, the page didn't have what the parser was looking for
+      return ModularResult.value(mediaServiceLinkExtraContent)
+    }
+
+    val storeResult = applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        mediaServiceLinkExtraContentLocalSource.insert(mediaServiceLinkExtraContent)
+      }
+    }
+
+    if (storeResult is ModularResult.Error) {
+      Logger.e(TAG, "Error while trying to store MediaServiceLinkExtraContent in the " +
+        "local source (fileUrl=${request.requestUrl}): error = ${storeResult.error.errorMessageOrClassName()}")
+      return ModularResult.error(storeResult.error)
+    }
+
+    cache.store(mediaServiceKey, mediaServiceLinkExtraContent)
+    return ModularResult.value(mediaServiceLinkExtraContent)
+  }
+
+  private suspend fun getFromCacheOrNegativeResults(request: LinkExtraContentRequest): MediaServiceLinkExtraContent? {
+    val fromCache = cache.get(request.mediaServiceKey)
+    if (fromCache != null) {
+      return fromCache
+    }
+
+    if (isNegativeResultCached(request.mediaServiceKey)) {
+      return MediaServiceLinkExtraContent(request.videoId, request.mediaServiceType, null, null)
+    }
+
+    return null
+  }
+
+  private fun isNegativeResultCached(mediaServiceKey: MediaServiceKey): Boolean {
+    val expiresAt = negativeResults[mediaServiceKey]
+      ?: return false
+
+    if (expiresAt < System.currentTimeMillis()) {
+      negativeResults.remove(mediaServiceKey, expiresAt)
+      return false
+    }
+
+    return true
+  }
+
   private suspend fun mediaServiceLinkExtraContentRepositoryCleanup(): ModularResult<Int> {
+    if (alreadyExecuted.get()) {
+      return ModularResult.value(0)
+    }
+
     return applicationScope.dbCall {
       return@dbCall tryWithTransaction {
         if (!alreadyExecuted.compareAndSet(false, true)) {
@@ -130,4 +308,17 @@ class MediaServiceLinkExtraContentRepository(
     val mediaServiceType: MediaServiceType
   )
 
-}
\ No newline at end of file
+  class LinkExtraContentRequest(
+    val mediaServiceType: MediaServiceType,
+    val requestUrl: String,
+    val videoId: GenericVideoId
+  ) {
+    val mediaServiceKey = MediaServiceKey(videoId, mediaServiceType)
+  }
+
+  companion object {
+    private const val MAX_CONCURRENT_NETWORK_FETCHES = 8
+    private val NEGATIVE_RESULT_TTL_MS = TimeUnit.HOURS.toMillis(1)
+  }
+
+}
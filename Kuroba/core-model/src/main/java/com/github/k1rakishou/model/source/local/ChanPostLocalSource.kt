@@ -1,15 +1,19 @@
 package com.github.k1rakishou.model.source.local
 
-import com.github.k1rakishou.common.flatMapIndexed
+import com.github.k1rakishou.common.errorMessageOrClassName
+import com.github.k1rakishou.common.mutableListWithCap
 import com.github.k1rakishou.common.mutableMapWithCap
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.core_spannable.parcelable_spannable_string.ParcelableSpannableStringMapper
+import com.github.k1rakishou.core_spannable.parcelable_spannable_string.v2.SpanInfoBinaryCodec
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.post.ChanOriginalPost
 import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostContentHashes
+import com.github.k1rakishou.model.entity.chan.post.ChanPostEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostFull
 import com.github.k1rakishou.model.entity.chan.post.ChanPostHttpIconEntity
 import com.github.k1rakishou.model.entity.chan.post.ChanPostIdEntity
@@ -24,6 +28,8 @@ import com.github.k1rakishou.model.mapper.ChanPostHttpIconMapper
 import com.github.k1rakishou.model.mapper.ChanPostImageMapper
 import com.github.k1rakishou.model.mapper.ChanThreadMapper
 import com.github.k1rakishou.model.mapper.TextSpanMapper
+import com.github.k1rakishou.model.util.ChanPostSearchUtils
+import com.github.k1rakishou.model.util.ChanPostUtils
 import java.util.concurrent.TimeUnit
 
 class ChanPostLocalSource(
@@ -37,6 +43,7 @@ class ChanPostLocalSource(
   private val chanPostHttpIconDao = database.chanPostHttpIconDao()
   private val chanTextSpanDao = database.chanTextSpanDao()
   private val chanPostReplyDao = database.chanPostReplyDao()
+  private val chanPostSearchDao = database.chanPostSearchDao()
 
   suspend fun insertEmptyThread(threadDescriptor: ChanDescriptor.ThreadDescriptor): Long? {
     ensureInTransaction()
@@ -164,55 +171,129 @@ class ChanPostLocalSource(
     insertPostsInternal(chanPostIdEntities, chanPostList)
   }
 
+  /**
+   * Upserts posts without triggering ON DELETE CASCADE on post's child rows. Every post has a set
+   * of content hashes (see [ChanPostContentHashes]) persisted alongside it, so posts that haven't
+   * changed since the last time they were persisted are skipped entirely and for posts that have
+   * changed we only rewrite groups of child rows (text spans, images, icons, replies) that have
+   * changed.
+   *
+   * We can't use the "INSERT ... ON CONFLICT DO UPDATE" syntax since it requires SQLite 3.24 which
+   * is only available starting with Android 11 so we emulate it with "INSERT OR IGNORE" + "UPDATE".
+   * */
   private suspend fun insertPostsInternal(
     chanPostIdEntities: List<ChanPostIdEntity>,
     chanPostList: List<ChanPost>
   ) {
-    chanPostDao.insertOrReplaceManyIds(chanPostIdEntities).forEachIndexed { index, postDatabaseId ->
-      chanPostIdEntities[index].postId = postDatabaseId
+    if (chanPostIdEntities.isEmpty()) {
+      return
     }
 
-    chanPostDao.insertOrReplaceManyPosts(
-      chanPostIdEntities.mapIndexed { index, chanPostIdEntity ->
-        ChanPostEntityMapper.toEntity(chanPostIdEntity.postId, chanPostList[index])
+    val alreadyExistingPostIds = insertOrSelectPostIds(chanPostIdEntities)
+
+    val oldContentHashesMap = alreadyExistingPostIds
+      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
+      .flatMap { chunk -> chanPostDao.selectContentHashes(chunk) }
+      .associateBy(
+        keySelector = { postContentHashes -> postContentHashes.chanPostId },
+        valueTransform = { postContentHashes ->
+          ChanPostContentHashes(
+            postHash = postContentHashes.postHash,
+            textSpansHash = postContentHashes.textSpansHash,
+            imagesHash = postContentHashes.imagesHash,
+            iconsHash = postContentHashes.iconsHash,
+            repliesHash = postContentHashes.repliesHash
+          )
+        }
+      )
+
+    val newPosts = mutableListWithCap<PostToPersist>(chanPostList.size)
+    val changedPosts = mutableListWithCap<PostToPersist>(chanPostList.size)
+
+    chanPostIdEntities.forEachIndexed { index, chanPostIdEntity ->
+      val chanPost = chanPostList[index]
+      val newContentHashes = ChanPostUtils.getPostContentHashes(chanPost)
+      val oldContentHashes = oldContentHashesMap[chanPostIdEntity.postId]
+
+      val postToPersist = PostToPersist(
+        postDatabaseId = chanPostIdEntity.postId,
+        chanPost = chanPost,
+        newContentHashes = newContentHashes,
+        oldContentHashes = oldContentHashes
+      )
+
+      when {
+        oldContentHashes == null -> newPosts += postToPersist
+        !oldContentHashes.isTheSame(newContentHashes) -> changedPosts += postToPersist
+        // Post hasn't changed, skip it and all of its child rows
+        else -> Unit
       }
-    )
+    }
 
-    insertPostSpannables(chanPostIdEntities, chanPostList)
+    if (newPosts.isEmpty() && changedPosts.isEmpty()) {
+      return
+    }
 
-    chanPostImageDao.insertMany(
-      chanPostIdEntities.flatMapIndexed { index, chanPostIdEntity ->
-        val chanPost = chanPostList[index]
+    if (newPosts.isNotEmpty()) {
+      chanPostDao.insertOrReplaceManyPosts(
+        newPosts.map { postToPersist -> postToPersist.toChanPostEntity() }
+      )
+    }
+
+    if (changedPosts.isNotEmpty()) {
+      chanPostDao.updateManyPosts(
+        changedPosts.map { postToPersist -> postToPersist.toChanPostEntity() }
+      )
+    }
+
+    val postsToPersist = newPosts + changedPosts
+
+    val textSpansToPersist = postsToPersist
+      .filter { postToPersist -> postToPersist.childRowsChanged { hashes -> hashes.textSpansHash } }
+    deleteStaleChildRows(textSpansToPersist) { chunk -> chanTextSpanDao.deleteByOwnerPostIdList(chunk) }
+    insertPostSpannables(textSpansToPersist)
+
+    val imagesToPersist = postsToPersist
+      .filter { postToPersist -> postToPersist.childRowsChanged { hashes -> hashes.imagesHash } }
+    deleteStaleChildRows(imagesToPersist) { chunk -> chanPostImageDao.deleteByOwnerPostIdList(chunk) }
 
-        return@flatMapIndexed chanPost.postImages.mapNotNull { postImage ->
+    chanPostImageDao.insertMany(
+      imagesToPersist.flatMap { postToPersist ->
+        return@flatMap postToPersist.chanPost.postImages.mapNotNull { postImage ->
           if (postImage.isInlined) {
             // Skip inlined images
             return@mapNotNull null
           }
 
-          return@mapNotNull ChanPostImageMapper.toEntity(chanPostIdEntity.postId, postImage)
+          return@mapNotNull ChanPostImageMapper.toEntity(postToPersist.postDatabaseId, postImage)
         }
       }
     )
 
-    chanPostHttpIconDao.insertMany(
-      chanPostIdEntities.flatMapIndexed { index, chanPostIdEntity ->
-        val chanPost = chanPostList[index]
+    val iconsToPersist = postsToPersist
+      .filter { postToPersist -> postToPersist.childRowsChanged { hashes -> hashes.iconsHash } }
+    deleteStaleChildRows(iconsToPersist) { chunk -> chanPostHttpIconDao.deleteByOwnerPostIdList(chunk) }
 
-        return@flatMapIndexed chanPost.postIcons.map { postIcon ->
-          ChanPostHttpIconMapper.toEntity(chanPostIdEntity.postId, postIcon)
+    chanPostHttpIconDao.insertMany(
+      iconsToPersist.flatMap { postToPersist ->
+        return@flatMap postToPersist.chanPost.postIcons.map { postIcon ->
+          ChanPostHttpIconMapper.toEntity(postToPersist.postDatabaseId, postIcon)
         }
       }
     )
 
-    chanPostReplyDao.insertManyOrIgnore(
-      chanPostIdEntities.flatMapIndexed { index, chanPostIdEntity ->
-        val chanPost = chanPostList[index]
+    val repliesToPersist = postsToPersist
+      .filter { postToPersist -> postToPersist.childRowsChanged { hashes -> hashes.repliesHash } }
+    deleteStaleChildRows(repliesToPersist) { chunk ->
+      chanPostReplyDao.deleteByOwnerPostIdList(chunk, ChanPostReplyEntity.ReplyType.ReplyTo)
+    }
 
-        return@flatMapIndexed chanPost.repliesTo.map { replyTo ->
+    chanPostReplyDao.insertManyOrIgnore(
+      repliesToPersist.flatMap { postToPersist ->
+        return@flatMap postToPersist.chanPost.repliesTo.map { replyTo ->
           ChanPostReplyEntity(
             postReplyId = 0L,
-            ownerPostId = chanPostIdEntity.postId,
+            ownerPostId = postToPersist.postDatabaseId,
             replyNo = replyTo.postNo,
             replySubNo = replyTo.postSubNo,
             replyType = ChanPostReplyEntity.ReplyType.ReplyTo
@@ -220,23 +301,97 @@ class ChanPostLocalSource(
         }.toList()
       }
     )
+
+    val searchEntitiesToPersist = postsToPersist
+      .filter { postToPersist ->
+        postToPersist.childRowsChanged { hashes -> hashes.postHash }
+          || postToPersist.childRowsChanged { hashes -> hashes.textSpansHash }
+          || postToPersist.childRowsChanged { hashes -> hashes.imagesHash }
+      }
+      .map { postToPersist ->
+        ChanPostSearchUtils.toSearchEntity(postToPersist.postDatabaseId, postToPersist.chanPost)
+      }
+
+    if (searchEntitiesToPersist.isNotEmpty()) {
+      chanPostSearchDao.insertOrReplaceMany(searchEntitiesToPersist)
+    }
   }
 
-  private suspend fun insertPostSpannables(
-    chanPostEntityIdList: List<ChanPostIdEntity>,
-    chanPostList: List<ChanPost>
+  /**
+   * Inserts new post ids and fills in the database ids of the posts that already exist (without
+   * replacing them). Returns the database ids of posts that already existed.
+   * */
+  private suspend fun insertOrSelectPostIds(chanPostIdEntities: List<ChanPostIdEntity>): List<Long> {
+    val alreadyExistingPosts = mutableListOf<ChanPostIdEntity>()
+
+    chanPostDao.insertOrIgnoreManyIds(chanPostIdEntities).forEachIndexed { index, postDatabaseId ->
+      if (postDatabaseId >= 0L) {
+        chanPostIdEntities[index].postId = postDatabaseId
+      } else {
+        alreadyExistingPosts += chanPostIdEntities[index]
+      }
+    }
+
+    if (alreadyExistingPosts.isEmpty()) {
+      return emptyList()
+    }
+
+    alreadyExistingPosts
+      .groupBy { chanPostIdEntity -> chanPostIdEntity.ownerThreadId }
+      .forEach { (ownerThreadId, chanPostIdEntityList) ->
+        val postNos = chanPostIdEntityList
+          .map { chanPostIdEntity -> chanPostIdEntity.postNo }
+          .toSet()
+
+        val postDatabaseIdMap = postNos
+          .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
+          .flatMap { chunk -> chanPostDao.selectManyIdsByThreadIdAndPostNos(ownerThreadId, chunk) }
+          .associateBy(
+            keySelector = { chanPostIdEntity -> PostNoKey(chanPostIdEntity.postNo, chanPostIdEntity.postSubNo) },
+            valueTransform = { chanPostIdEntity -> chanPostIdEntity.postId }
+          )
+
+        chanPostIdEntityList.forEach { chanPostIdEntity ->
+          val postDatabaseId = postDatabaseIdMap[PostNoKey(chanPostIdEntity.postNo, chanPostIdEntity.postSubNo)]
+
+          checkNotNull(postDatabaseId) {
+            "insertOrSelectPostIds() Failed to find already existing post. chanPostIdEntity=$chanPostIdEntity"
+          }
+
+          chanPostIdEntity.postId = postDatabaseId
+        }
+      }
+
+    return alreadyExistingPosts.map { chanPostIdEntity -> chanPostIdEntity.postId }
+  }
+
+  private suspend fun deleteStaleChildRows(
+    postsToPersist: List<PostToPersist>,
+    deleteFunc: suspend (List<Long>) -> Unit
   ) {
+    postsToPersist
+      .filter { postToPersist -> postToPersist.oldContentHashes != null }
+      .map { postToPersist -> postToPersist.postDatabaseId }
+      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
+      .forEach { chunk -> deleteFunc(chunk) }
+  }
+
+  private suspend fun insertPostSpannables(postsToPersist: List<PostToPersist>) {
     ensureInTransaction()
 
-    val postCommentWithSpansJsonList = chanPostEntityIdList.mapIndexedNotNull { index, chanPostEntityId ->
-      val chanPost = chanPostList[index]
+    if (postsToPersist.isEmpty()) {
+      return
+    }
+
+    val postCommentWithSpansJsonList = postsToPersist.mapNotNull { postToPersist ->
+      val chanPost = postToPersist.chanPost
 
       val parcelableSpannableString = ParcelableSpannableStringMapper
         .toParcelableSpannableString(chanPost.postComment.originalComment())
-        ?: return@mapIndexedNotNull null
+        ?: return@mapNotNull null
 
-      return@mapIndexedNotNull TextSpanMapper.toEntity(
-        ownerPostId = chanPostEntityId.postId,
+      return@mapNotNull TextSpanMapper.toEntity(
+        ownerPostId = postToPersist.postDatabaseId,
         parcelableSpannableString = parcelableSpannableString,
         originalUnparsedComment = chanPost.postComment.originalUnparsedComment,
         chanTextType = ChanTextSpanEntity.TextType.PostComment
@@ -247,15 +402,15 @@ class ChanPostLocalSource(
       chanTextSpanDao.insertMany(postCommentWithSpansJsonList)
     }
 
-    val subjectWithSpansJsonList = chanPostEntityIdList.mapIndexedNotNull { index, chanPostEntityId ->
-      val chanPost = chanPostList[index]
+    val subjectWithSpansJsonList = postsToPersist.mapNotNull { postToPersist ->
+      val chanPost = postToPersist.chanPost
 
       val parcelableSpannableString = ParcelableSpannableStringMapper
         .toParcelableSpannableString(chanPost.subject)
-        ?: return@mapIndexedNotNull null
+        ?: return@mapNotNull null
 
-      return@mapIndexedNotNull TextSpanMapper.toEntity(
-        ownerPostId = chanPostEntityId.postId,
+      return@mapNotNull TextSpanMapper.toEntity(
+        ownerPostId = postToPersist.postDatabaseId,
         parcelableSpannableString = parcelableSpannableString,
         originalUnparsedComment = null,
         chanTextType = ChanTextSpanEntity.TextType.Subject
@@ -266,15 +421,15 @@ class ChanPostLocalSource(
       chanTextSpanDao.insertMany(subjectWithSpansJsonList)
     }
 
-    val tripcodeWithSpansJsonList = chanPostEntityIdList.mapIndexedNotNull { index, chanPostEntityId ->
-      val chanPost = chanPostList[index]
+    val tripcodeWithSpansJsonList = postsToPersist.mapNotNull { postToPersist ->
+      val chanPost = postToPersist.chanPost
 
       val parcelableSpannableString = ParcelableSpannableStringMapper
         .toParcelableSpannableString(chanPost.tripcode)
-        ?: return@mapIndexedNotNull null
+        ?: return@mapNotNull null
 
-      return@mapIndexedNotNull TextSpanMapper.toEntity(
-        ownerPostId = chanPostEntityId.postId,
+      return@mapNotNull TextSpanMapper.toEntity(
+        ownerPostId = postToPersist.postDatabaseId,
         parcelableSpannableString = parcelableSpannableString,
         originalUnparsedComment = null,
         chanTextType = ChanTextSpanEntity.TextType.Tripcode
@@ -286,6 +441,42 @@ class ChanPostLocalSource(
     }
   }
 
+  /**
+   * Re-serializes a batch of text spans that are still stored in the legacy (Parcel) format with
+   * the current span format. Returns the id of the last processed text span or null when there are
+   * no more legacy text spans after [afterTextSpanId].
+   * */
+  suspend fun migrateLegacyTextSpansBatch(afterTextSpanId: Long, batchSize: Int): Long? {
+    ensureInTransaction()
+
+    val legacyTextSpans = chanTextSpanDao.selectManyNotStartingWith(
+      afterTextSpanId = afterTextSpanId,
+      firstByteHex = SpanInfoBinaryCodec.MAGIC_HEX,
+      count = batchSize
+    )
+
+    if (legacyTextSpans.isEmpty()) {
+      return null
+    }
+
+    for (legacyTextSpan in legacyTextSpans) {
+      val parcelableSpans = ParcelableSpannableStringMapper.deserializeSpans(legacyTextSpan.spanInfoBytes)
+        .peekError { error ->
+          Logger.e(TAG, "migrateLegacyTextSpansBatch() failed to deserialize " +
+            "textSpanId=${legacyTextSpan.textSpanId}: ${error.errorMessageOrClassName()}")
+        }
+        .valueOrNull()
+        ?: continue
+
+      chanTextSpanDao.updateSpanInfoBytes(
+        textSpanId = legacyTextSpan.textSpanId,
+        spanInfoBytes = ParcelableSpannableStringMapper.serializeSpans(parcelableSpans)
+      )
+    }
+
+    return legacyTextSpans.last().textSpanId
+  }
+
   suspend fun updateThreadState(threadDatabaseId: Long, deleted: Boolean?, archived: Boolean?, closed: Boolean?) {
     ensureInTransaction()
 
@@ -477,15 +668,27 @@ class ChanPostLocalSource(
       return emptyList()
     }
 
-    val postIdList = chanPostFullList.map { it.chanPostIdEntity.postId }
+    val textSpansGroupedByPostId: Map<Long, List<ChanTextSpanEntity>>
+    val postAdditionalData: PostAdditionalData
 
-    // Load posts' comments/subjects/tripcodes and other Spannables
-    val textSpansGroupedByPostId = postIdList
-      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
-      .flatMap { chunk -> chanTextSpanDao.selectManyByOwnerPostIdList(chunk) }
-      .groupBy { chanTextSpanEntity -> chanTextSpanEntity.ownerPostId }
+    if (postDatabaseIds.isEmpty()) {
+      // The whole thread is requested so we can load everything with a couple of thread-scoped
+      // queries instead of splitting post ids into IN operator batches.
+      textSpansGroupedByPostId = chanTextSpanDao.selectAllInThreadOrdered(chanThreadEntity.threadId)
+        .groupSortedByOwnerPostId { chanTextSpanEntity -> chanTextSpanEntity.ownerPostId }
 
-    val postAdditionalData = getPostsAdditionalData(postIdList)
+      postAdditionalData = getThreadPostsAdditionalData(chanThreadEntity.threadId)
+    } else {
+      val postIdList = chanPostFullList.map { it.chanPostIdEntity.postId }
+
+      // Load posts' comments/subjects/tripcodes and other Spannables
+      textSpansGroupedByPostId = postIdList
+        .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
+        .flatMap { chunk -> chanTextSpanDao.selectManyByOwnerPostIdList(chunk) }
+        .groupBy { chanTextSpanEntity -> chanTextSpanEntity.ownerPostId }
+
+      postAdditionalData = getPostsAdditionalData(postIdList)
+    }
 
     return chanPostFullList
       .mapNotNull { chanPostFull ->
@@ -503,6 +706,55 @@ class ChanPostLocalSource(
       }
   }
 
+  private suspend fun getThreadPostsAdditionalData(threadDatabaseId: Long): PostAdditionalData {
+    ensureInTransaction()
+
+    val postImageByPostIdMap = chanPostImageDao.selectAllInThreadOrdered(threadDatabaseId)
+      .groupSortedByOwnerPostId { chanPostImageEntity -> chanPostImageEntity.ownerPostId }
+
+    val postIconsByPostIdMap = chanPostHttpIconDao.selectAllInThreadOrdered(threadDatabaseId)
+      .groupSortedByOwnerPostId { chanPostHttpIconEntity -> chanPostHttpIconEntity.ownerPostId }
+
+    val postReplyToByPostIdMap = chanPostReplyDao.selectAllInThreadOrdered(
+      threadDatabaseId,
+      ChanPostReplyEntity.ReplyType.ReplyTo
+    ).groupSortedByOwnerPostId { chanPostReplyEntity -> chanPostReplyEntity.ownerPostId }
+
+    return PostAdditionalData(
+      postImageByPostIdMap = postImageByPostIdMap,
+      postIconsByPostIdMap = postIconsByPostIdMap,
+      postReplyToByPostIdMap = postReplyToByPostIdMap
+    )
+  }
+
+  /**
+   * Same as groupBy but for lists already sorted by owner post id. Groups are views over the
+   * original list so nothing gets copied.
+   * */
+  private inline fun <T> List<T>.groupSortedByOwnerPostId(ownerPostIdSelector: (T) -> Long): Map<Long, List<T>> {
+    if (isEmpty()) {
+      return emptyMap()
+    }
+
+    val resultMap = mutableMapWithCap<Long, List<T>>(size)
+    var groupStart = 0
+    var groupOwnerPostId = ownerPostIdSelector(this[0])
+
+    for (index in 1 until size) {
+      val ownerPostId = ownerPostIdSelector(this[index])
+      if (ownerPostId == groupOwnerPostId) {
+        continue
+      }
+
+      resultMap[groupOwnerPostId] = subList(groupStart, index)
+      groupStart = index
+      groupOwnerPostId = ownerPostId
+    }
+
+    resultMap[groupOwnerPostId] = subList(groupStart, size)
+    return resultMap
+  }
+
   private suspend fun getPostsAdditionalData(postIdList: List<Long>): PostAdditionalData {
     ensureInTransaction()
 
@@ -632,6 +884,7 @@ class ChanPostLocalSource(
   suspend fun deleteAll(): Int {
     ensureInTransaction()
 
+    chanPostSearchDao.deleteAll()
     return chanPostDao.deleteAll()
   }
 
@@ -870,6 +1123,33 @@ class ChanPostLocalSource(
     return DeleteResult(deletedTotal, skippedTotal)
   }
 
+  private class PostToPersist(
+    val postDatabaseId: Long,
+    val chanPost: ChanPost,
+    val newContentHashes: ChanPostContentHashes,
+    val oldContentHashes: ChanPostContentHashes?
+  ) {
+
+    fun toChanPostEntity(): ChanPostEntity {
+      return ChanPostEntityMapper.toEntity(postDatabaseId, chanPost, newContentHashes)
+    }
+
+    inline fun childRowsChanged(selector: (ChanPostContentHashes) -> Long): Boolean {
+      if (oldContentHashes == null) {
+        return true
+      }
+
+      val oldHash = selector(oldContentHashes)
+      if (oldHash == ChanPostContentHashes.UNKNOWN_HASH) {
+        return true
+      }
+
+      return oldHash != selector(newContentHashes)
+    }
+  }
+
+  private data class PostNoKey(val postNo: Long, val postSubNo: Long)
+
   class PostAdditionalData(
     val postImageByPostIdMap: Map<Long, List<ChanPostImageEntity>>,
     val postIconsByPostIdMap: Map<Long, List<ChanPostHttpIconEntity>>,
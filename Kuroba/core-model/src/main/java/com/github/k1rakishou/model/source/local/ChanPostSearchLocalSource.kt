@@ -0,0 +1,119 @@
+package com.github.k1rakishou.model.source.local
+
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.dao.ChanPostSearchDao
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanPostSearchMatch
+import com.github.k1rakishou.model.data.post.ChanPostSearchResult
+import com.github.k1rakishou.model.util.ChanPostSearchUtils
+
+class ChanPostSearchLocalSource(
+  database: KurobaDatabase
+) : AbstractLocalSource(database) {
+  private val TAG = "ChanPostSearchLocalSource"
+  private val chanPostSearchDao = database.chanPostSearchDao()
+
+  suspend fun searchThread(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    ftsQuery: String
+  ): ChanPostSearchResult {
+    ensureInTransaction()
+
+    val siteName = threadDescriptor.siteName()
+    val boardCode = threadDescriptor.boardCode()
+
+    val matches = chanPostSearchDao.searchInThread(siteName, boardCode, threadDescriptor.threadNo, ftsQuery)
+      .mapTo(hashSetOf()) { postNoDatabaseObject ->
+        PostDescriptor.create(
+          siteName = siteName,
+          boardCode = boardCode,
+          threadNo = threadDescriptor.threadNo,
+          postNo = postNoDatabaseObject.postNo,
+          postSubNo = postNoDatabaseObject.postSubNo
+        )
+      }
+
+    val indexedPosts = chanPostSearchDao.selectIndexedThreadPostNos(siteName, boardCode, threadDescriptor.threadNo)
+      .mapTo(hashSetOf()) { postNoDatabaseObject ->
+        PostDescriptor.create(
+          siteName = siteName,
+          boardCode = boardCode,
+          threadNo = threadDescriptor.threadNo,
+          postNo = postNoDatabaseObject.postNo,
+          postSubNo = postNoDatabaseObject.postSubNo
+        )
+      }
+
+    return ChanPostSearchResult(
+      matches = matches,
+      indexedPosts = indexedPosts
+    )
+  }
+
+  suspend fun searchCatalog(
+    catalogDescriptor: ChanDescriptor.ICatalogDescriptor,
+    ftsQuery: String
+  ): ChanPostSearchResult {
+    ensureInTransaction()
+
+    val catalogDescriptors = when (catalogDescriptor) {
+      is ChanDescriptor.CatalogDescriptor -> listOf(catalogDescriptor)
+      is ChanDescriptor.CompositeCatalogDescriptor -> catalogDescriptor.catalogDescriptors
+    }
+
+    val matches = hashSetOf<PostDescriptor>()
+    val indexedPosts = hashSetOf<PostDescriptor>()
+
+    catalogDescriptors.forEach { descriptor ->
+      val siteName = descriptor.siteName()
+      val boardCode = descriptor.boardCode()
+
+      chanPostSearchDao.searchInCatalog(siteName, boardCode, ftsQuery)
+        .mapTo(matches) { threadNo -> PostDescriptor.create(siteName, boardCode, threadNo) }
+
+      chanPostSearchDao.selectIndexedCatalogThreadNos(siteName, boardCode)
+        .mapTo(indexedPosts) { threadNo -> PostDescriptor.create(siteName, boardCode, threadNo) }
+    }
+
+    return ChanPostSearchResult(
+      matches = matches,
+      indexedPosts = indexedPosts
+    )
+  }
+
+  suspend fun searchAllCachedThreads(
+    ftsQuery: String,
+    queryTokens: List<String>,
+    limit: Int
+  ): List<ChanPostSearchMatch> {
+    ensureInTransaction()
+
+    return chanPostSearchDao.searchEverywhere(ftsQuery, limit)
+      .map { matchDatabaseObject ->
+        val postDescriptor = PostDescriptor.create(
+          siteName = matchDatabaseObject.siteName,
+          boardCode = matchDatabaseObject.boardCode,
+          threadNo = matchDatabaseObject.threadNo,
+          postNo = matchDatabaseObject.postNo,
+          postSubNo = matchDatabaseObject.postSubNo
+        )
+
+        val highlights = ChanPostSearchUtils.findHighlights(
+          queryTokens = queryTokens,
+          comment = matchDatabaseObject.comment,
+          subject = matchDatabaseObject.subject,
+          name = matchDatabaseObject.name,
+          files = matchDatabaseObject.files
+        )
+
+        return@map ChanPostSearchMatch(
+          postDescriptor = postDescriptor,
+          rank = ChanPostSearchUtils.rank(matchDatabaseObject.matchInfo),
+          highlights = highlights
+        )
+      }
+      .sortedByDescending { chanPostSearchMatch -> chanPostSearchMatch.rank }
+  }
+
+}
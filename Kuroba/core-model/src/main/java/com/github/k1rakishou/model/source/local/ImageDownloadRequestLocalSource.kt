@@ -48,7 +48,8 @@ class ImageDownloadRequestLocalSource(
         status = imageDownloadRequest.status.rawValue,
         duplicateFileUri = imageDownloadRequest.duplicateFileUri,
         duplicatesResolution = imageDownloadRequest.duplicatesResolution.rawValue,
-        createdOn = DateTime.now()
+        createdOn = DateTime.now(),
+        imageSaverOptionsJson = imageDownloadRequest.imageSaverOptionsJson
       )
     }
 
@@ -67,7 +68,8 @@ class ImageDownloadRequestLocalSource(
         status = status,
         duplicateFileUri = newRequest.duplicateFileUri,
         duplicatesResolution = resolution,
-        createdOn = newRequest.createdOn
+        createdOn = newRequest.createdOn,
+        imageSaverOptionsJson = newRequest.imageSaverOptionsJson
       )
     }
   }
@@ -90,7 +92,8 @@ class ImageDownloadRequestLocalSource(
           status = status,
           duplicateFileUri = imageDownloadRequestEntity.duplicateFileUri,
           duplicatesResolution = resolution,
-          createdOn = imageDownloadRequestEntity.createdOn
+          createdOn = imageDownloadRequestEntity.createdOn,
+          imageSaverOptionsJson = imageDownloadRequestEntity.imageSaverOptionsJson
         )
       }
   }
@@ -118,7 +121,36 @@ class ImageDownloadRequestLocalSource(
           status = status,
           duplicateFileUri = imageDownloadRequestEntity.duplicateFileUri,
           duplicatesResolution = resolution,
-          createdOn = imageDownloadRequestEntity.createdOn
+          createdOn = imageDownloadRequestEntity.createdOn,
+          imageSaverOptionsJson = imageDownloadRequestEntity.imageSaverOptionsJson
+        )
+      }
+  }
+
+  suspend fun selectAllWithStatus(
+    downloadStatuses: Collection<ImageDownloadRequest.Status>
+  ): List<ImageDownloadRequest> {
+    ensureInTransaction()
+
+    val rawDownloadStatuses = downloadStatuses.map { downloadStatus -> downloadStatus.rawValue }
+
+    return imageDownloadRequestDao.selectAllWithStatus(rawDownloadStatuses)
+      .mapNotNull { imageDownloadRequestEntity ->
+        val status = ImageDownloadRequest.Status.fromRawValue(imageDownloadRequestEntity.status)
+          ?: return@mapNotNull null
+        val resolution =
+          ImageSaverV2Options.DuplicatesResolution.fromRawValue(imageDownloadRequestEntity.duplicatesResolution)
+
+        return@mapNotNull ImageDownloadRequest(
+          uniqueId = imageDownloadRequestEntity.uniqueId,
+          imageFullUrl = imageDownloadRequestEntity.imageFullUrl,
+          postDescriptorString = imageDownloadRequestEntity.postDescriptorString,
+          newFileName = imageDownloadRequestEntity.newFileName,
+          status = status,
+          duplicateFileUri = imageDownloadRequestEntity.duplicateFileUri,
+          duplicatesResolution = resolution,
+          createdOn = imageDownloadRequestEntity.createdOn,
+          imageSaverOptionsJson = imageDownloadRequestEntity.imageSaverOptionsJson
         )
       }
   }
@@ -143,7 +175,8 @@ class ImageDownloadRequestLocalSource(
         status = imageDownloadRequest.status.rawValue,
         duplicateFileUri = imageDownloadRequest.duplicateFileUri,
         duplicatesResolution = imageDownloadRequest.duplicatesResolution.rawValue,
-        createdOn = DateTime.now()
+        createdOn = DateTime.now(),
+        imageSaverOptionsJson = imageDownloadRequest.imageSaverOptionsJson
       )
     }
 
@@ -168,6 +201,7 @@ class ImageDownloadRequestLocalSource(
           duplicateFileUri = imageDownloadRequest.duplicateFileUri,
           duplicatesResolution = imageDownloadRequest.duplicatesResolution.rawValue,
           createdOn = imageDownloadRequest.createdOn,
+          imageSaverOptionsJson = imageDownloadRequest.imageSaverOptionsJson
         )
       }
       .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
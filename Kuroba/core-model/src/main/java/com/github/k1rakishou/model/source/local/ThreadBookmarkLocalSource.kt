@@ -61,13 +61,44 @@ class ThreadBookmarkLocalSource(
 
     val toInsertOrUpdateInDatabase = retainUpdatedBookmarks(bookmarks, cachedBookmarks)
     if (toInsertOrUpdateInDatabase.isNotEmpty()) {
-      insertOrUpdateBookmarks(toInsertOrUpdateInDatabase)
+      insertOrUpdateBookmarks(toInsertOrUpdateInDatabase, cachedBookmarks)
     }
 
     Logger.d(TAG, "persist() inserted/updated ${toInsertOrUpdateInDatabase.size} bookmarks, " +
       "deleted ${toDelete.size} bookmarks")
   }
 
+  /**
+   * Unlike [persist] only looks at the bookmarks that were changed (or deleted) since the last
+   * flush so the cost doesn't depend on the total amount of bookmarks.
+   * */
+  suspend fun persistChanged(
+    changedBookmarks: List<ThreadBookmark>,
+    deletedBookmarks: Collection<ChanDescriptor.ThreadDescriptor>
+  ) {
+    ensureInTransaction()
+    Logger.d(TAG, "persistChanged(changed=${changedBookmarks.size}, deleted=${deletedBookmarks.size})")
+
+    if (deletedBookmarks.isNotEmpty()) {
+      deleteBookmarks(deletedBookmarks.toList())
+    }
+
+    if (changedBookmarks.isEmpty()) {
+      return
+    }
+
+    val threadDescriptors = changedBookmarks.map { bookmark -> bookmark.threadDescriptor }
+    val cachedBookmarks = threadBookmarkCache.getMany(threadDescriptors)
+
+    val toInsertOrUpdateInDatabase = retainUpdatedBookmarks(changedBookmarks, cachedBookmarks)
+    if (toInsertOrUpdateInDatabase.isNotEmpty()) {
+      insertOrUpdateBookmarks(toInsertOrUpdateInDatabase, cachedBookmarks)
+    }
+
+    Logger.d(TAG, "persistChanged() inserted/updated ${toInsertOrUpdateInDatabase.size} bookmarks, " +
+      "deleted ${deletedBookmarks.size} bookmarks")
+  }
+
   suspend fun deleteAll() {
     ensureInTransaction()
 
@@ -89,7 +120,10 @@ class ThreadBookmarkLocalSource(
     chanDescriptorCache.deleteManyBookmarkIds(toDelete)
   }
 
-  private suspend fun insertOrUpdateBookmarks(toInsertOrUpdateInDatabase: List<ThreadBookmark>) {
+  private suspend fun insertOrUpdateBookmarks(
+    toInsertOrUpdateInDatabase: List<ThreadBookmark>,
+    cachedBookmarks: Map<ChanDescriptor.ThreadDescriptor, ThreadBookmark>
+  ) {
     val toInsertOrUpdateThreadDescriptors = toInsertOrUpdateInDatabase.map { threadBookmark ->
       return@map threadBookmark.threadDescriptor
     }
@@ -125,15 +159,25 @@ class ThreadBookmarkLocalSource(
       val threadBookmarkId = toInsertOrUpdateThreadBookmarkEntities[index].threadBookmarkId
       check(threadBookmarkId > 0L) { "Bad threadBookmarkId: $threadBookmarkId" }
 
-      return@flatMapIndexed threadBookmark.threadBookmarkReplies.values.map { threadBookmarkReply ->
-        ThreadBookmarkReplyMapper.toThreadBookmarkReplyEntity(
+      val cachedThreadBookmarkReplies = cachedBookmarks[threadBookmark.threadDescriptor]?.threadBookmarkReplies
+
+      // Only write the replies that were added or changed since the last time this bookmark was
+      // persisted.
+      return@flatMapIndexed threadBookmark.threadBookmarkReplies.values.mapNotNull { threadBookmarkReply ->
+        if (cachedThreadBookmarkReplies?.get(threadBookmarkReply.postDescriptor) == threadBookmarkReply) {
+          return@mapNotNull null
+        }
+
+        return@mapNotNull ThreadBookmarkReplyMapper.toThreadBookmarkReplyEntity(
           threadBookmarkId,
           threadBookmarkReply
         )
       }
     }
 
-    threadBookmarkReplyDao.insertOrUpdateMany(toInsertOrUpdateBookmarkReplyEntities)
+    if (toInsertOrUpdateBookmarkReplyEntities.isNotEmpty()) {
+      threadBookmarkReplyDao.insertOrUpdateMany(toInsertOrUpdateBookmarkReplyEntities)
+    }
 
     threadBookmarkCache.storeMany(
       toInsertOrUpdateInDatabase.associateBy { threadBookmark ->
@@ -1,5 +1,6 @@
 package com.github.k1rakishou.model.source.remote
 
+import com.github.k1rakishou.common.BadStatusResponseException
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.ModularResult.Companion.Try
 import com.github.k1rakishou.common.suspendCall
@@ -38,7 +39,11 @@ open class MediaServiceLinkExtraContentRemoteSource(
 
       val response = okHttpClient.suspendCall(httpRequest)
       if (!response.isSuccessful) {
-        return@Try MediaServiceLinkExtraInfo.empty()
+        response.close()
+
+        // The caller needs to know whether the link is dead (404) or the service is just
+        // unavailable right now
+        throw BadStatusResponseException(response.code)
       }
 
       return@Try extractMediaServiceLinkExtraInfo(
@@ -0,0 +1,243 @@
+package com.github.k1rakishou.model.util
+
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostSearchMatch
+import com.github.k1rakishou.model.entity.chan.post.ChanPostSearchEntity
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.text.Normalizer
+import kotlin.math.ln
+
+/**
+ * Both the full-text index and the posts that are not indexed yet are searched with the same rule:
+ * every word of the query must match a prefix of some word of the post's comment, subject, name or
+ * file names. Words are sequences of letters and digits, everything else is a separator. Matching
+ * ignores case and diacritics of latin letters the same way the unicode61 tokenizer does.
+ * */
+object ChanPostSearchUtils {
+  private const val MAX_QUERY_TOKENS = 16
+  private const val MAX_HIGHLIGHTS = 64
+  private val NON_SPACING_MARK = Character.NON_SPACING_MARK.toInt()
+
+  // How much a hit in every column (comment, subject, name, files) of the index is worth
+  private val COLUMN_WEIGHTS = floatArrayOf(1f, 2f, 0.5f, 0.5f)
+
+  /**
+   * Splits a user query into the words to search for. Returns an empty list when the query
+   * contains nothing to search for.
+   * */
+  @JvmStatic
+  fun queryTokens(query: String): List<String> {
+    return tokenize(query).take(MAX_QUERY_TOKENS)
+  }
+
+  /**
+   * Converts a user query into an FTS query where every word of the query must match a prefix of
+   * some word of a post. Everything that is not a letter or a digit is treated as a separator so
+   * that the user can't accidentally (or not) use the FTS query syntax. Returns null when the
+   * query contains nothing to search for.
+   * */
+  @JvmStatic
+  fun toFtsQuery(query: String): String? {
+    val tokens = queryTokens(query)
+    if (tokens.isEmpty()) {
+      return null
+    }
+
+    return tokens.joinToString(separator = " ") { token -> "\"${token}\"*" }
+  }
+
+  /**
+   * Matches a post that is not in the full-text index with the same rule the index uses.
+   * [queryTokens] must come from [queryTokens].
+   * */
+  @JvmStatic
+  fun matchesQuery(chanPost: ChanPost, queryTokens: List<String>): Boolean {
+    if (queryTokens.isEmpty()) {
+      return false
+    }
+
+    val searchEntity = toSearchEntity(0L, chanPost)
+    val postTokens = listOf(searchEntity.comment, searchEntity.subject, searchEntity.name, searchEntity.files)
+      .flatMap { text -> tokenize(text) }
+      .map { token -> fold(token) }
+
+    return queryTokens.all { queryToken ->
+      val foldedQueryToken = fold(queryToken)
+      postTokens.any { postToken -> postToken.startsWith(foldedQueryToken) }
+    }
+  }
+
+  /**
+   * Finds the words of a post that [queryTokens] (see [queryTokens]) match with the same rule that
+   * is used to match the posts themselves, so every highlight is a whole word of the post.
+   * */
+  @JvmStatic
+  fun findHighlights(
+    queryTokens: List<String>,
+    comment: String,
+    subject: String,
+    name: String,
+    files: String
+  ): List<ChanPostSearchMatch.Highlight> {
+    if (queryTokens.isEmpty()) {
+      return emptyList()
+    }
+
+    val foldedQueryTokens = queryTokens.map { queryToken -> fold(queryToken) }
+    val highlights = mutableListOf<ChanPostSearchMatch.Highlight>()
+
+    val fields = listOf(
+      ChanPostSearchMatch.Field.Comment to comment,
+      ChanPostSearchMatch.Field.Subject to subject,
+      ChanPostSearchMatch.Field.Name to name,
+      ChanPostSearchMatch.Field.Files to files
+    )
+
+    for ((field, text) in fields) {
+      forEachToken(text) { start, end ->
+        if (highlights.size >= MAX_HIGHLIGHTS) {
+          return@forEachToken
+        }
+
+        val postToken = fold(text.substring(start, end))
+        if (foldedQueryTokens.any { foldedQueryToken -> postToken.startsWith(foldedQueryToken) }) {
+          highlights += ChanPostSearchMatch.Highlight(field, start, end)
+        }
+      }
+    }
+
+    return highlights
+  }
+
+  /**
+   * Calculates a BM25-like rank (without document length normalization) out of the FTS4
+   * matchinfo() blob with the "pcnx" format. The higher the better.
+   * */
+  @JvmStatic
+  fun rank(matchInfo: ByteArray): Float {
+    if (matchInfo.size < 3 * Int.SIZE_BYTES) {
+      return 0f
+    }
+
+    // matchinfo() returns an array of 32-bit unsigned integers in the machine byte order
+    val ints = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer()
+    val phrasesCount = ints.get(0)
+    val columnsCount = ints.get(1)
+    val totalRows = ints.get(2).toFloat()
+
+    var rank = 0f
+
+    for (phrase in 0 until phrasesCount) {
+      for (column in 0 until columnsCount) {
+        val base = 3 + 3 * (phrase * columnsCount + column)
+        if (base + 2 >= ints.limit()) {
+          return rank
+        }
+
+        val hitsInThisRow = ints.get(base).toFloat()
+        if (hitsInThisRow <= 0f) {
+          continue
+        }
+
+        val rowsWithHits = ints.get(base + 2).toFloat()
+        val idf = ln(1f + (totalRows - rowsWithHits + 0.5f) / (rowsWithHits + 0.5f))
+        val tf = hitsInThisRow / (hitsInThisRow + 1.2f)
+        val weight = COLUMN_WEIGHTS.getOrElse(column) { 1f }
+
+        rank += weight * tf * idf
+      }
+    }
+
+    return rank
+  }
+
+  @JvmStatic
+  fun toSearchEntity(postDatabaseId: Long, chanPost: ChanPost): ChanPostSearchEntity {
+    val files = buildString {
+      chanPost.iteratePostImages { postImage ->
+        if (postImage.isInlined) {
+          return@iteratePostImages
+        }
+
+        postImage.filename?.let { filename -> append(filename).append(' ') }
+        postImage.serverFilename.let { serverFilename -> append(serverFilename).append(' ') }
+        postImage.extension?.let { extension -> append(extension).append(' ') }
+      }
+    }
+
+    return ChanPostSearchEntity(
+      ownerPostId = postDatabaseId,
+      comment = chanPost.postComment.originalComment().toString(),
+      subject = chanPost.subject?.toString() ?: "",
+      name = chanPost.name ?: "",
+      files = files.trimEnd()
+    )
+  }
+
+  private fun tokenize(text: String): List<String> {
+    val tokens = mutableListOf<String>()
+    forEachToken(text) { start, end -> tokens += text.substring(start, end) }
+
+    return tokens
+  }
+
+  /**
+   * Calls [func] with the [start] (inclusive) and [end] (exclusive) char offsets of every word of
+   * [text].
+   * */
+  private inline fun forEachToken(text: String, func: (start: Int, end: Int) -> Unit) {
+    var tokenStart = -1
+
+    for (index in text.indices) {
+      if (text[index].isLetterOrDigit()) {
+        if (tokenStart < 0) {
+          tokenStart = index
+        }
+
+        continue
+      }
+
+      if (tokenStart >= 0) {
+        func(tokenStart, index)
+        tokenStart = -1
+      }
+    }
+
+    if (tokenStart >= 0) {
+      func(tokenStart, text.length)
+    }
+  }
+
+  private fun fold(token: String): String {
+    val lowercased = token.lowercase()
+    if (lowercased.all { ch -> ch.code < 0x80 }) {
+      return lowercased
+    }
+
+    val decomposed = Normalizer.normalize(lowercased, Normalizer.Form.NFD)
+    val result = StringBuilder(lowercased.length)
+    var index = 0
+
+    while (index < decomposed.length) {
+      val ch = decomposed[index]
+      result.append(ch)
+      ++index
+
+      var marksEnd = index
+      while (marksEnd < decomposed.length && Character.getType(decomposed[marksEnd]) == NON_SPACING_MARK) {
+        ++marksEnd
+      }
+
+      // unicode61 only removes diacritics from latin letters
+      if (Character.UnicodeScript.of(ch.code) != Character.UnicodeScript.LATIN) {
+        result.append(decomposed, index, marksEnd)
+      }
+
+      index = marksEnd
+    }
+
+    return Normalizer.normalize(result, Normalizer.Form.NFC)
+  }
+
+}
@@ -12,6 +12,7 @@ import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.post.ChanOriginalPost
 import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.data.post.ChanPostBuilder
+import com.github.k1rakishou.model.data.post.ChanPostContentHashes
 import com.github.k1rakishou.model.data.post.ChanPostImage
 import java.text.DateFormat
 import java.text.SimpleDateFormat
@@ -274,6 +275,95 @@ object ChanPostUtils {
     return MurmurHashUtils.murmurhash3_x64_128(inputString)
   }
 
+  @JvmStatic
+  fun getPostContentHashes(chanPost: ChanPost): ChanPostContentHashes {
+    val postHash = buildString {
+      append(chanPost.isDeleted)
+      append(chanPost.timestamp)
+      chanPost.name?.let { name -> append(name) }
+      chanPost.posterId?.let { posterId -> append(posterId) }
+      append(chanPost.posterIdColor)
+      chanPost.moderatorCapcode?.let { moderatorCapcode -> append(moderatorCapcode) }
+      append(chanPost is ChanOriginalPost)
+      append(chanPost.isSavedReply)
+      append(chanPost.isSage)
+    }
+
+    // The comment hash (with spans) is already calculated by PostComment so we reuse it here
+    val commentHash = chanPost.postComment.originalCommentHash
+    val textSpansHash = buildString {
+      append(commentHash.val1)
+      append(commentHash.val2)
+      chanPost.postComment.originalUnparsedComment?.let { unparsedComment -> append(unparsedComment) }
+      append('\u0000')
+      chanPost.subject?.let { subject -> append(subject) }
+      append('\u0000')
+      chanPost.tripcode?.let { tripcode -> append(tripcode) }
+    }
+
+    val imagesHash = buildString {
+      chanPost.iteratePostImages { postImage ->
+        if (postImage.isInlined) {
+          // Inlined images are not persisted
+          return@iteratePostImages
+        }
+
+        append(postImage.serverFilename)
+        append(postImage.actualThumbnailUrl)
+        append(postImage.spoilerThumbnailUrl)
+        append(postImage.imageUrl)
+        append(postImage.filename)
+        append(postImage.extension)
+        append(postImage.imageWidth)
+        append(postImage.imageHeight)
+        append(postImage.spoiler)
+        append(postImage.size)
+        append(postImage.fileHash)
+        append(postImage.type)
+        append('\u0000')
+      }
+    }
+
+    val iconsHash = buildString {
+      chanPost.postIcons.forEach { postIcon ->
+        append(postIcon.iconUrl)
+        append(postIcon.iconName)
+        append('\u0000')
+      }
+    }
+
+    val repliesHash = buildString {
+      chanPost.repliesTo
+        .sortedWith(compareBy<PostDescriptor>({ replyTo -> replyTo.postNo }, { replyTo -> replyTo.postSubNo }))
+        .forEach { replyTo ->
+          append(replyTo.postNo)
+          append(',')
+          append(replyTo.postSubNo)
+          append(';')
+        }
+    }
+
+    return ChanPostContentHashes(
+      postHash = toPersistableHash(postHash),
+      textSpansHash = toPersistableHash(textSpansHash),
+      imagesHash = toPersistableHash(imagesHash),
+      iconsHash = toPersistableHash(iconsHash),
+      repliesHash = toPersistableHash(repliesHash)
+    )
+  }
+
+  private fun toPersistableHash(input: String): Long {
+    val hash = MurmurHashUtils.murmurhash3_x64_128(input)
+    val folded = hash.val1 xor hash.val2
+
+    if (folded == ChanPostContentHashes.UNKNOWN_HASH) {
+      // Zero is reserved for "unknown hash"
+      return 1L
+    }
+
+    return folded
+  }
+
   @JvmStatic
   fun findPostWithReplies(postDescriptor: PostDescriptor, posts: Collection<ChanPost>): HashSet<ChanPost> {
     val postsSet = HashSet<ChanPost>()
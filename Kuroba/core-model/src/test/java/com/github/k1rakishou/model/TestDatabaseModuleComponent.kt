@@ -3,7 +3,12 @@ package com.github.k1rakishou.model
 import android.app.Application
 import androidx.room.Room
 import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.source.cache.ChanDescriptorCache
+import com.github.k1rakishou.model.source.cache.ThreadBookmarkCache
+import com.github.k1rakishou.model.source.local.ChanPostLocalSource
+import com.github.k1rakishou.model.source.local.ChanPostSearchLocalSource
 import com.github.k1rakishou.model.source.local.MediaServiceLinkExtraContentLocalSource
+import com.github.k1rakishou.model.source.local.ThreadBookmarkLocalSource
 import com.github.k1rakishou.model.source.remote.MediaServiceLinkExtraContentRemoteSource
 import com.google.gson.Gson
 import okhttp3.OkHttpClient
@@ -18,6 +23,8 @@ class TestDatabaseModuleComponent(
   private var onDiskDatabase: KurobaDatabase? = null
   private var okHttpClient: OkHttpClient? = null
   private var gson: Gson? = null
+  private var chanDescriptorCache: ChanDescriptorCache? = null
+  private var threadBookmarkCache: ThreadBookmarkCache? = null
 
   fun provideLogger() = logger
 
@@ -50,6 +57,7 @@ class TestDatabaseModuleComponent(
       application.applicationContext,
       KurobaDatabase::class.java
     )
+      .addCallback(KurobaDatabase.DATABASE_CALLBACK)
       .build()
 
     return inMemoryDatabase!!
@@ -65,15 +73,57 @@ class TestDatabaseModuleComponent(
       KurobaDatabase::class.java,
       "kuroba-test.db"
     )
+      .addCallback(KurobaDatabase.DATABASE_CALLBACK)
       .build()
 
     return onDiskDatabase!!
   }
 
+  /**
+   * Cache
+   * */
+
+  fun provideChanDescriptorCache(): ChanDescriptorCache {
+    if (chanDescriptorCache == null) {
+      chanDescriptorCache = ChanDescriptorCache(provideInMemoryKurobaDatabase())
+    }
+
+    return chanDescriptorCache!!
+  }
+
+  fun provideThreadBookmarkCache(): ThreadBookmarkCache {
+    if (threadBookmarkCache == null) {
+      threadBookmarkCache = ThreadBookmarkCache()
+    }
+
+    return threadBookmarkCache!!
+  }
+
   /**
    * Local source
    * */
 
+  fun provideChanPostLocalSource(): ChanPostLocalSource {
+    return ChanPostLocalSource(
+      provideInMemoryKurobaDatabase()
+    )
+  }
+
+  fun provideChanPostSearchLocalSource(): ChanPostSearchLocalSource {
+    return ChanPostSearchLocalSource(
+      provideInMemoryKurobaDatabase()
+    )
+  }
+
+  fun provideThreadBookmarkLocalSource(): ThreadBookmarkLocalSource {
+    return ThreadBookmarkLocalSource(
+      provideInMemoryKurobaDatabase(),
+      true,
+      provideChanDescriptorCache(),
+      provideThreadBookmarkCache()
+    )
+  }
+
   fun provideMediaServiceLinkExtraContentLocalSource(): MediaServiceLinkExtraContentLocalSource {
     return MediaServiceLinkExtraContentLocalSource(
       provideInMemoryKurobaDatabase()
@@ -0,0 +1,76 @@
+package com.github.k1rakishou.model.data.board.pages
+
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+class BoardPagesTest {
+  private val boardDescriptor = BoardDescriptor.create("test", "g")
+
+  @Test
+  fun `test every thread of a 150 thread catalog is found on the same page as with a page scan`() {
+    val boardPages = createBoardPages(threadsCount = 150, threadsPerPage = 15)
+    assertEquals(10, boardPages.boardPages.size)
+
+    for (threadNo in 1L..150L) {
+      val threadDescriptor = ChanDescriptor.ThreadDescriptor.create(boardDescriptor, threadNo)
+
+      val expectedPageIndex = boardPages.boardPages
+        .indexOfFirst { boardPage -> boardPage.threads[threadDescriptor] != null }
+
+      assertEquals(expectedPageIndex, boardPages.findPageIndex(threadDescriptor))
+      assertEquals(((threadNo - 1) / 15).toInt(), boardPages.findPageIndex(threadNo))
+      assertSame(boardPages.boardPages[expectedPageIndex], boardPages.findPage(threadDescriptor))
+    }
+  }
+
+  @Test
+  fun `test unknown threads and threads of other boards are not found`() {
+    val boardPages = createBoardPages(threadsCount = 150, threadsPerPage = 15)
+
+    val unknownThread = ChanDescriptor.ThreadDescriptor.create(boardDescriptor, 151L)
+    assertEquals(-1, boardPages.findPageIndex(unknownThread))
+    assertNull(boardPages.findPage(unknownThread))
+
+    val otherBoardThread = ChanDescriptor.ThreadDescriptor.create(BoardDescriptor.create("test", "a"), 1L)
+    assertEquals(-1, boardPages.findPageIndex(otherBoardThread))
+    assertNull(boardPages.findPage(otherBoardThread))
+  }
+
+  @Test
+  fun `test thread that is on multiple pages is found on the first one`() {
+    val threadDescriptor = ChanDescriptor.ThreadDescriptor.create(boardDescriptor, 1L)
+
+    val boardPages = BoardPages(
+      boardDescriptor = boardDescriptor,
+      boardPages = listOf(
+        BoardPage(1, 2, linkedMapOf(threadDescriptor to 1L)),
+        BoardPage(2, 2, linkedMapOf(threadDescriptor to 2L))
+      )
+    )
+
+    assertEquals(0, boardPages.findPageIndex(threadDescriptor))
+  }
+
+  private fun createBoardPages(threadsCount: Int, threadsPerPage: Int): BoardPages {
+    val totalPages = (threadsCount + threadsPerPage - 1) / threadsPerPage
+
+    val pages = (0 until totalPages).map { pageIndex ->
+      val threads = LinkedHashMap<ChanDescriptor.ThreadDescriptor, Long>()
+      val firstThreadNo = pageIndex * threadsPerPage + 1L
+      val lastThreadNo = Math.min(firstThreadNo + threadsPerPage - 1, threadsCount.toLong())
+
+      for (threadNo in firstThreadNo..lastThreadNo) {
+        threads[ChanDescriptor.ThreadDescriptor.create(boardDescriptor, threadNo)] = threadNo
+      }
+
+      return@map BoardPage(currentPage = pageIndex + 1, totalPages = totalPages, threads = threads)
+    }
+
+    return BoardPages(boardDescriptor, pages)
+  }
+
+}
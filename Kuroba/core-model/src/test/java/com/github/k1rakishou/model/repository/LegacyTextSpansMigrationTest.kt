@@ -0,0 +1,78 @@
+package com.github.k1rakishou.model.repository
+
+import com.github.k1rakishou.common.ModularResult
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.File
+import java.io.IOException
+
+@RunWith(RobolectricTestRunner::class)
+class LegacyTextSpansMigrationTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  @Test
+  fun `test completed migration does not scan again`() = runBlocking {
+    val flagFile = flagFile()
+    val legacyTextSpanIds = mutableListOf(10L, 20L, 30L)
+    val calls = mutableListOf<Long>()
+
+    val migrateBatch: suspend (Long) -> ModularResult<Long?> = { afterTextSpanId ->
+      calls += afterTextSpanId
+      ModularResult.value(legacyTextSpanIds.firstOrNull { textSpanId -> textSpanId > afterTextSpanId })
+    }
+
+    LegacyTextSpansMigration(flagFile, migrateBatch).run()
+
+    // One batch per legacy text span and one that finds nothing
+    assertEquals(listOf(0L, 10L, 20L, 30L), calls)
+    assertTrue(flagFile.exists())
+
+    calls.clear()
+    LegacyTextSpansMigration(flagFile, migrateBatch).run()
+
+    assertTrue(calls.isEmpty())
+  }
+
+  @Test
+  fun `test failed migration is retried during the next run`() = runBlocking {
+    val flagFile = flagFile()
+    var fail = true
+    var calls = 0
+
+    val migrateBatch: suspend (Long) -> ModularResult<Long?> = { afterTextSpanId ->
+      ++calls
+
+      when {
+        fail -> ModularResult.error(IOException("disk I/O error"))
+        afterTextSpanId == 0L -> ModularResult.value(1L)
+        else -> ModularResult.value(null)
+      }
+    }
+
+    LegacyTextSpansMigration(flagFile, migrateBatch).run()
+
+    assertEquals(1, calls)
+    assertFalse(flagFile.exists())
+
+    fail = false
+    calls = 0
+    LegacyTextSpansMigration(flagFile, migrateBatch).run()
+
+    assertEquals(2, calls)
+    assertTrue(flagFile.exists())
+  }
+
+  private fun flagFile(): File {
+    return File(temporaryFolder.root, LegacyTextSpansMigration.COMPLETED_FLAG_FILE_NAME)
+  }
+
+}
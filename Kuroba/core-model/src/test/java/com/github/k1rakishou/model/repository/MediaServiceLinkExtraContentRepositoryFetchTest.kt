@@ -0,0 +1,223 @@
+package com.github.k1rakishou.model.repository
+
+import com.github.k1rakishou.common.ModularResult
+import com.github.k1rakishou.model.TestDatabaseModuleComponent
+import com.github.k1rakishou.model.data.media.GenericVideoId
+import com.github.k1rakishou.model.data.video_service.MediaServiceType
+import com.github.k1rakishou.model.source.cache.GenericSuspendableCacheSource
+import com.github.k1rakishou.model.source.remote.withServer
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.coroutineScope
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.RecordedRequest
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+@RunWith(RobolectricTestRunner::class)
+class MediaServiceLinkExtraContentRepositoryFetchTest {
+  private val coroutineScope = CoroutineScope(SupervisorJob())
+
+  lateinit var okHttpClient: OkHttpClient
+  lateinit var repository: MediaServiceLinkExtraContentRepository
+
+  @Before
+  fun setUp() {
+    val testDatabaseModuleComponent = TestDatabaseModuleComponent()
+    okHttpClient = testDatabaseModuleComponent.provideOkHttpClient()
+
+    repository = MediaServiceLinkExtraContentRepository(
+      testDatabaseModuleComponent.provideInMemoryKurobaDatabase(),
+      coroutineScope,
+      GenericSuspendableCacheSource(),
+      testDatabaseModuleComponent.provideMediaServiceLinkExtraContentLocalSource(),
+      testDatabaseModuleComponent.provideMediaServiceLinkExtraContentRemoteSource()
+    )
+  }
+
+  @After
+  fun tearDown() {
+    okHttpClient.dispatcher.cancelAll()
+    coroutineScope.cancel()
+  }
+
+  @Test
+  fun `test concurrent lookups of the same ids fetch every id once and run in parallel`() {
+    withServer { server ->
+      val dispatcher = CountingDispatcher()
+      server.dispatcher = dispatcher
+      server.start()
+
+      val videoIds = (1..5).map { index -> "video$index" }
+
+      // Every id is requested by three different posts at the same time
+      val results = coroutineScope {
+        (0 until 3)
+          .flatMap { videoIds }
+          .map { videoId ->
+            async(Dispatchers.Default) {
+              repository.getLinkExtraContent(
+                MediaServiceType.Streamable,
+                server.url("/$videoId").toString(),
+                GenericVideoId(videoId)
+              ).unwrap()
+            }
+          }
+          .awaitAll()
+      }
+
+      results.forEach { mediaServiceLinkExtraContent ->
+        assertTrue(mediaServiceLinkExtraContent.isValid())
+        assertEquals("title_${mediaServiceLinkExtraContent.videoId.id}", mediaServiceLinkExtraContent.videoTitle)
+      }
+
+      videoIds.forEach { videoId -> assertEquals(1, dispatcher.requestsCount("/$videoId")) }
+      assertTrue("maxConcurrentRequests=${dispatcher.maxConcurrentRequests.get()}", dispatcher.maxConcurrentRequests.get() > 1)
+
+      // Everything is cached now
+      repository.getLinkExtraContent(
+        MediaServiceType.Streamable,
+        server.url("/${videoIds.first()}").toString(),
+        GenericVideoId(videoIds.first())
+      ).unwrap()
+
+      assertEquals(1, dispatcher.requestsCount("/${videoIds.first()}"))
+    }
+  }
+
+  @Test
+  fun `test batch lookup resolves every id of a post`() {
+    withServer { server ->
+      val dispatcher = CountingDispatcher()
+      server.dispatcher = dispatcher
+      server.start()
+
+      val requests = listOf("a", "b", "c", "a").map { videoId ->
+        MediaServiceLinkExtraContentRepository.LinkExtraContentRequest(
+          MediaServiceType.Streamable,
+          server.url("/$videoId").toString(),
+          GenericVideoId(videoId)
+        )
+      }
+
+      val results = repository.getLinkExtraContentBatch(requests)
+
+      assertEquals(3, results.size)
+      assertTrue(results.values.all { result -> result.unwrap().isValid() })
+      listOf("a", "b", "c").forEach { videoId -> assertEquals(1, dispatcher.requestsCount("/$videoId")) }
+    }
+  }
+
+  @Test
+  fun `test dead links are not re-fetched while the negative result is cached`() {
+    withServer { server ->
+      val dispatcher = CountingDispatcher()
+      server.dispatcher = dispatcher
+      server.start()
+
+      val videoId = GenericVideoId(DEAD_VIDEO_ID)
+      val requestUrl = server.url("/$DEAD_VIDEO_ID").toString()
+
+      repeat(5) {
+        val mediaServiceLinkExtraContent = repository.getLinkExtraContent(
+          MediaServiceType.Streamable,
+          requestUrl,
+          videoId
+        ).unwrap()
+
+        assertFalse(mediaServiceLinkExtraContent.isValid())
+      }
+
+      assertEquals(1, dispatcher.requestsCount("/$DEAD_VIDEO_ID"))
+      assertTrue(repository.isCached(videoId, MediaServiceType.Streamable).unwrap())
+      assertEquals(0, repository.count().unwrap())
+    }
+  }
+
+  @Test
+  fun `test temporarily unavailable links are not remembered as dead`() {
+    withServer { server ->
+      val dispatcher = CountingDispatcher()
+      server.dispatcher = dispatcher
+      server.start()
+
+      val videoId = GenericVideoId(UNAVAILABLE_VIDEO_ID)
+      val requestUrl = server.url("/$UNAVAILABLE_VIDEO_ID").toString()
+
+      repeat(2) {
+        val result = repository.getLinkExtraContent(
+          MediaServiceType.Streamable,
+          requestUrl,
+          videoId
+        )
+
+        assertTrue(result is ModularResult.Error)
+      }
+
+      assertEquals(2, dispatcher.requestsCount("/$UNAVAILABLE_VIDEO_ID"))
+      assertFalse(repository.isCached(videoId, MediaServiceType.Streamable).unwrap())
+    }
+  }
+
+  private class CountingDispatcher : Dispatcher() {
+    private val requests = ConcurrentHashMap<String, AtomicInteger>()
+    private val concurrentRequests = AtomicInteger(0)
+    val maxConcurrentRequests = AtomicInteger(0)
+
+    fun requestsCount(path: String): Int = requests[path]?.get() ?: 0
+
+    override fun dispatch(request: RecordedRequest): MockResponse {
+      val path = request.path!!
+      requests.computeIfAbsent(path) { AtomicInteger(0) }.incrementAndGet()
+
+      val concurrent = concurrentRequests.incrementAndGet()
+      maxConcurrentRequests.accumulateAndGet(concurrent) { prev, new -> Math.max(prev, new) }
+
+      try {
+        Thread.sleep(RESPONSE_DELAY_MS)
+      } finally {
+        concurrentRequests.decrementAndGet()
+      }
+
+      if (path == "/$DEAD_VIDEO_ID") {
+        return MockResponse().setResponseCode(404)
+      }
+
+      if (path == "/$UNAVAILABLE_VIDEO_ID") {
+        return MockResponse().setResponseCode(503)
+      }
+
+      val videoId = path.removePrefix("/")
+
+      return MockResponse()
+        .setResponseCode(200)
+        .setBody(
+          """
+          <html><body><div class="container" id="player">
+          <script data-id="player-instream" data-title="title_$videoId" data-duration="12.5"></script>
+          </div></body></html>
+          """.trimIndent()
+        )
+    }
+  }
+
+  companion object {
+    private const val DEAD_VIDEO_ID = "dead"
+    private const val UNAVAILABLE_VIDEO_ID = "unavailable"
+    private const val RESPONSE_DELAY_MS = 200L
+  }
+}
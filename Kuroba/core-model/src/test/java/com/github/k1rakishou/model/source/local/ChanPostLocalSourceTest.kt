@@ -0,0 +1,321 @@
+package com.github.k1rakishou.model.source.local
+
+import android.graphics.Typeface
+import android.text.Spanned
+import android.text.style.StyleSpan
+import androidx.room.withTransaction
+import com.github.k1rakishou.common.marshall
+import com.github.k1rakishou.core_spannable.ParcelableSpan
+import com.github.k1rakishou.core_spannable.ParcelableSpanInfo
+import com.github.k1rakishou.core_spannable.ParcelableSpanType
+import com.github.k1rakishou.core_spannable.ParcelableSpans
+import com.github.k1rakishou.core_spannable.parcelable_spannable_string.ParcelableSpannableStringMapper
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.TestDatabaseModuleComponent
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.PostComment
+import com.github.k1rakishou.model.entity.chan.site.ChanSiteIdEntity
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.shadows.ShadowLog
+
+@RunWith(RobolectricTestRunner::class)
+class ChanPostLocalSourceTest {
+  lateinit var database: KurobaDatabase
+  lateinit var localSource: ChanPostLocalSource
+
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test-site", "g", 1L)
+
+  @Before
+  fun setUp() {
+    ShadowLog.stream = System.out
+    val testDatabaseModuleComponent = TestDatabaseModuleComponent()
+
+    database = testDatabaseModuleComponent.provideInMemoryKurobaDatabase()
+    localSource = testDatabaseModuleComponent.provideChanPostLocalSource()
+
+    runBlocking(Dispatchers.Default) {
+      database.chanSiteDao().insertDefaultSiteIdsOrIgnore(listOf(ChanSiteIdEntity(threadDescriptor.siteName())))
+    }
+
+    installWriteCounterTriggers()
+  }
+
+  @Test
+  fun `test re-persisting the same thread does not write anything`() {
+    runBlocking(Dispatchers.Default) {
+      val posts = createThread(postsCount = 500, changedPostNos = emptySet())
+
+      database.withTransaction { localSource.insertPosts(posts) }
+      resetWriteCounter()
+
+      database.withTransaction { localSource.insertPosts(createThread(postsCount = 500, changedPostNos = emptySet())) }
+      assertEquals(0, writtenRowsCount())
+
+      val restoredPosts = database.withTransaction { localSource.getThreadPosts(threadDescriptor) }
+      assertEquals(500, restoredPosts.size)
+    }
+  }
+
+  @Test
+  fun `test changed post is updated in place without touching unchanged child rows`() {
+    runBlocking(Dispatchers.Default) {
+      database.withTransaction { localSource.insertPosts(createThread(postsCount = 10, changedPostNos = emptySet())) }
+      val postIdsBefore = database.chanPostDao().testGetAllChanPostIds().map { it.postId }.toSet()
+      resetWriteCounter()
+
+      database.withTransaction { localSource.insertPosts(createThread(postsCount = 10, changedPostNos = setOf(5L))) }
+
+      // 1 updated chan_post row + 1 deleted and 1 inserted comment text span. Post ids, replies
+      // of the changed post and all rows of other posts must stay untouched.
+      assertEquals(3, writtenRowsCount())
+
+      val postIdsAfter = database.chanPostDao().testGetAllChanPostIds().map { it.postId }.toSet()
+      assertEquals(postIdsBefore, postIdsAfter)
+
+      val changedPost = database.withTransaction { localSource.getThreadPosts(threadDescriptor) }
+        .first { chanPost -> chanPost.postNo() == 5L }
+
+      assertEquals(commentText(5L, changed = true), changedPost.postComment.originalComment().toString())
+      assertEquals(1, changedPost.repliesTo.size)
+    }
+  }
+
+  @Test
+  fun `test re-persisting a thread where one percent of posts changed only writes the changed rows`() {
+    runBlocking(Dispatchers.Default) {
+      val postsCount = 5000
+      val changedPostNos = (1L..postsCount.toLong()).filter { postNo -> postNo % 100 == 0L }.toSet()
+
+      database.withTransaction { localSource.insertPosts(createThread(postsCount, emptySet())) }
+      resetWriteCounter()
+
+      database.withTransaction { localSource.insertPosts(createThread(postsCount, changedPostNos)) }
+
+      val writtenRows = writtenRowsCount()
+      assertTrue("writtenRows=$writtenRows", writtenRows <= changedPostNos.size * 3)
+    }
+  }
+
+  @Test
+  fun `test thread-scoped queries load the same posts as post id batches`() {
+    runBlocking(Dispatchers.Default) {
+      for (postsCount in listOf(100, 1000, 10000)) {
+        val testThreadDescriptor = ChanDescriptor.ThreadDescriptor.create("test-site", "test${postsCount}", 1L)
+        database.withTransaction { localSource.insertPosts(createThread(postsCount, emptySet(), testThreadDescriptor)) }
+
+        val threadDatabaseId = threadDatabaseId(testThreadDescriptor)
+        val postDatabaseIds = database.chanPostDao().testGetAllChanPostIds()
+          .filter { chanPostIdEntity -> chanPostIdEntity.ownerThreadId == threadDatabaseId }
+          .filter { chanPostIdEntity -> chanPostIdEntity.postNo != testThreadDescriptor.threadNo }
+          .map { chanPostIdEntity -> chanPostIdEntity.postId }
+
+        val threadScopedPosts = database.withTransaction { localSource.getThreadPosts(testThreadDescriptor) }
+        val batchedPosts = database.withTransaction { localSource.getThreadPosts(testThreadDescriptor, postDatabaseIds) }
+
+        assertEquals(postsCount, threadScopedPosts.size)
+        assertEquals(batchedPosts.map { it.postNo() }, threadScopedPosts.map { it.postNo() })
+        assertEquals(batchedPosts.map { it.repliesTo }, threadScopedPosts.map { it.repliesTo })
+        assertEquals(
+          batchedPosts.map { it.postComment.originalComment().toString() },
+          threadScopedPosts.map { it.postComment.originalComment().toString() }
+        )
+      }
+    }
+  }
+
+  @Test
+  fun `test legacy text spans are readable and migrated to the current format`() {
+    runBlocking(Dispatchers.Default) {
+      database.withTransaction { localSource.insertPosts(createThread(postsCount = 20, changedPostNos = emptySet())) }
+
+      // Older app versions persisted the spans marshalled through Parcel
+      val legacySpans = ParcelableSpans(
+        1,
+        listOf(
+          ParcelableSpanInfo(
+            spanStart = 0,
+            spanEnd = 7,
+            flags = Spanned.SPAN_EXCLUSIVE_EXCLUSIVE,
+            parcelableTypeRaw = ParcelableSpanType.StyleSpanType.value,
+            parcelableSpan = ParcelableSpan.Style(Typeface.BOLD)
+          )
+        )
+      )
+      val legacyBytes = legacySpans.marshall()
+
+      val textSpans = database.chanTextSpanDao().testGetAll()
+      database.withTransaction {
+        textSpans.forEach { textSpan -> database.chanTextSpanDao().updateSpanInfoBytes(textSpan.textSpanId, legacyBytes) }
+      }
+
+      assertTrue(ParcelableSpannableStringMapper.isLegacySerializedSpans(legacyBytes))
+      assertSameSpans(legacySpans, ParcelableSpannableStringMapper.deserializeSpans(legacyBytes).unwrap())
+
+      // Not migrated yet, the spans are decoded with the Parcel fallback
+      database.withTransaction { localSource.getThreadPosts(threadDescriptor) }.forEach { post ->
+        assertEquals(1, boldSpansCount(post))
+      }
+
+      resetWriteCounter()
+
+      var lastTextSpanId = 0L
+      var batches = 0
+
+      while (true) {
+        lastTextSpanId = database.withTransaction {
+          localSource.migrateLegacyTextSpansBatch(afterTextSpanId = lastTextSpanId, batchSize = 7)
+        } ?: break
+
+        ++batches
+      }
+
+      assertEquals((textSpans.size + 6) / 7, batches)
+      assertEquals(textSpans.size, writtenRowsCount())
+
+      database.chanTextSpanDao().testGetAll().forEach { textSpan ->
+        assertFalse(ParcelableSpannableStringMapper.isLegacySerializedSpans(textSpan.spanInfoBytes))
+        assertSameSpans(legacySpans, ParcelableSpannableStringMapper.deserializeSpans(textSpan.spanInfoBytes).unwrap())
+      }
+
+      database.withTransaction { localSource.getThreadPosts(threadDescriptor) }.forEach { post ->
+        assertEquals(1, boldSpansCount(post))
+      }
+
+      // Nothing is left to migrate
+      assertNull(database.withTransaction { localSource.migrateLegacyTextSpansBatch(afterTextSpanId = 0L, batchSize = 7) })
+    }
+  }
+
+  private fun assertSameSpans(expected: ParcelableSpans, actual: ParcelableSpans) {
+    fun ParcelableSpans.describe() = spanInfoList.map { spanInfo ->
+      listOf(spanInfo.spanStart, spanInfo.spanEnd, spanInfo.flags, spanInfo.parcelableTypeRaw, spanInfo.parcelableSpan)
+    }
+
+    assertEquals(expected.describe(), actual.describe())
+  }
+
+  private fun boldSpansCount(post: ChanPost): Int {
+    val comment = post.postComment.originalComment() as? Spanned
+      ?: return 0
+
+    return comment.getSpans(0, comment.length, StyleSpan::class.java)
+      .count { styleSpan -> styleSpan.style == Typeface.BOLD }
+  }
+
+  private suspend fun threadDatabaseId(threadDescriptor: ChanDescriptor.ThreadDescriptor): Long {
+    return database.withTransaction { localSource.getThreadIdByPostDescriptor(PostDescriptor.create(threadDescriptor, 1L))!! }
+  }
+
+  private fun createThread(
+    postsCount: Int,
+    changedPostNos: Set<Long>,
+    threadDescriptor: ChanDescriptor.ThreadDescriptor = this.threadDescriptor
+  ): List<ChanPost> {
+    return (1L..postsCount.toLong()).map { postNo ->
+      val postDescriptor = PostDescriptor.create(threadDescriptor, postNo)
+      val changed = postNo in changedPostNos
+      val repliesTo = if (postNo > 1) setOf(PostDescriptor.create(threadDescriptor, postNo - 1)) else emptySet()
+      val postComment = PostComment(commentText(postNo, changed), null, emptyList())
+
+      if (postNo == threadDescriptor.threadNo) {
+        return@map ChanOriginalPost(
+          chanPostId = 0L,
+          postDescriptor = postDescriptor,
+          postImages = emptyList(),
+          postIcons = emptyList(),
+          repliesTo = repliesTo,
+          timestamp = postNo,
+          postComment = postComment,
+          subject = "Test thread",
+          isSavedReply = false,
+          lastModified = 0L,
+          sticky = false,
+          closed = false,
+          archived = false,
+          endless = false,
+          isSage = false,
+          deleted = false,
+          posterIdColor = 0
+        )
+      }
+
+      return@map ChanPost(
+        chanPostId = 0L,
+        postDescriptor = postDescriptor,
+        _postImages = mutableListOf(),
+        postIcons = emptyList(),
+        repliesTo = repliesTo,
+        timestamp = postNo,
+        postComment = postComment,
+        subject = null,
+        tripcode = null,
+        isSavedReply = false,
+        isSage = false,
+        deleted = false,
+        posterIdColor = 0
+      )
+    }
+  }
+
+  private fun commentText(postNo: Long, changed: Boolean): String {
+    if (changed) {
+      return "Edited comment of post ${postNo}"
+    }
+
+    return "Comment of post ${postNo}"
+  }
+
+  /**
+   * Counts every row inserted, updated or deleted (including cascade deletes) in all post tables.
+   * */
+  private fun installWriteCounterTriggers() {
+    val db = database.openHelper.writableDatabase
+    db.execSQL("CREATE TEMP TABLE write_counter (cnt INTEGER NOT NULL)")
+    db.execSQL("INSERT INTO write_counter (cnt) VALUES (0)")
+
+    val tables = listOf(
+      "chan_post_id",
+      "chan_post",
+      "chan_text_span",
+      "chan_post_image",
+      "chan_post_http_icon",
+      "chan_post_reply"
+    )
+
+    tables.forEach { table ->
+      listOf("INSERT", "UPDATE", "DELETE").forEach { operation ->
+        db.execSQL("""
+          CREATE TEMP TRIGGER IF NOT EXISTS ${table}_${operation.lowercase()}_counter 
+          AFTER $operation ON $table
+          BEGIN
+            UPDATE write_counter SET cnt = cnt + 1;
+          END
+        """)
+      }
+    }
+  }
+
+  private fun resetWriteCounter() {
+    database.openHelper.writableDatabase.execSQL("UPDATE write_counter SET cnt = 0")
+  }
+
+  private fun writtenRowsCount(): Int {
+    database.openHelper.writableDatabase.query("SELECT cnt FROM write_counter").use { cursor ->
+      cursor.moveToFirst()
+      return cursor.getInt(0)
+    }
+  }
+
+}
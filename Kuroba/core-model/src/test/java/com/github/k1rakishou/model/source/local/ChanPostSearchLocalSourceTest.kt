@@ -0,0 +1,329 @@
+package com.github.k1rakishou.model.source.local
+
+import androidx.room.withTransaction
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.TestDatabaseModuleComponent
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostSearchMatch
+import com.github.k1rakishou.model.data.post.PostComment
+import com.github.k1rakishou.model.entity.chan.site.ChanSiteIdEntity
+import com.github.k1rakishou.model.util.ChanPostSearchUtils
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.shadows.ShadowLog
+
+@RunWith(RobolectricTestRunner::class)
+class ChanPostSearchLocalSourceTest {
+  lateinit var database: KurobaDatabase
+  lateinit var chanPostLocalSource: ChanPostLocalSource
+  lateinit var localSource: ChanPostSearchLocalSource
+
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test-site", "g", 1L)
+  private val otherThreadDescriptor = ChanDescriptor.ThreadDescriptor.create("test-site", "a", 100L)
+
+  @Before
+  fun setUp() {
+    ShadowLog.stream = System.out
+    val testDatabaseModuleComponent = TestDatabaseModuleComponent()
+
+    database = testDatabaseModuleComponent.provideInMemoryKurobaDatabase()
+    chanPostLocalSource = testDatabaseModuleComponent.provideChanPostLocalSource()
+    localSource = testDatabaseModuleComponent.provideChanPostSearchLocalSource()
+
+    runBlocking(Dispatchers.Default) {
+      database.chanSiteDao().insertDefaultSiteIdsOrIgnore(listOf(ChanSiteIdEntity(threadDescriptor.siteName())))
+    }
+  }
+
+  @Test
+  fun `test fts query is built out of words of the user query`() {
+    assertEquals("\"hello\"* \"world\"*", ChanPostSearchUtils.toFtsQuery("hello world"))
+    assertEquals("\"hello\"* \"world\"*", ChanPostSearchUtils.toFtsQuery("  hello, \"world\" "))
+    assertEquals("\"NEAR\"* \"x\"*", ChanPostSearchUtils.toFtsQuery("NEAR/x*"))
+    assertEquals("\"привет\"*", ChanPostSearchUtils.toFtsQuery("привет!"))
+    assertNull(ChanPostSearchUtils.toFtsQuery(">>>"))
+    assertNull(ChanPostSearchUtils.toFtsQuery(""))
+  }
+
+  @Test
+  fun `test search in thread returns matched and indexed posts`() {
+    runBlocking(Dispatchers.Default) {
+      val posts = createThread(
+        threadDescriptor = threadDescriptor,
+        comments = listOf(
+          "Original post about kotlin coroutines",
+          "Unrelated post",
+          "I like kotlin",
+          "kotlin kotlin kotlin everywhere",
+          "Привет, kotlin"
+        )
+      )
+
+      database.withTransaction { chanPostLocalSource.insertPosts(posts) }
+
+      val result = database.withTransaction { localSource.searchThread(threadDescriptor, ftsQuery("kotlin")) }
+
+      assertEquals(setOf(1L, 3L, 4L, 5L), result.matches.map { postDescriptor -> postDescriptor.postNo }.toSet())
+      assertEquals(posts.map { chanPost -> chanPost.postDescriptor }.toSet(), result.indexedPosts)
+
+      val subjectResult = database.withTransaction { localSource.searchThread(threadDescriptor, ftsQuery("subj")) }
+      assertEquals(setOf(PostDescriptor.create(threadDescriptor, 1L)), subjectResult.matches)
+    }
+  }
+
+  @Test
+  fun `test index and not persisted posts are matched with the same rule`() {
+    runBlocking(Dispatchers.Default) {
+      val posts = createThread(
+        threadDescriptor = threadDescriptor,
+        comments = listOf(
+          "Original post",
+          "I like Kotlin",
+          "Café au lait",
+          "nothing here"
+        )
+      )
+
+      database.withTransaction { chanPostLocalSource.insertPosts(posts) }
+
+      listOf("kot", "KOTLIN", "otlin", "cafe", "CAFÉ", "lik kot", "like java", "here nothing").forEach { query ->
+        val indexed = database.withTransaction { localSource.searchThread(threadDescriptor, ftsQuery(query)) }.matches
+        val queryTokens = ChanPostSearchUtils.queryTokens(query)
+        val notPersisted = posts
+          .filter { chanPost -> ChanPostSearchUtils.matchesQuery(chanPost, queryTokens) }
+          .map { chanPost -> chanPost.postDescriptor }
+          .toSet()
+
+        assertEquals(query, indexed, notPersisted)
+      }
+
+      assertTrue(ChanPostSearchUtils.matchesQuery(posts[1], ChanPostSearchUtils.queryTokens("kot")))
+      assertFalse(ChanPostSearchUtils.matchesQuery(posts[1], ChanPostSearchUtils.queryTokens("otlin")))
+      assertTrue(ChanPostSearchUtils.matchesQuery(posts[2], ChanPostSearchUtils.queryTokens("cafe")))
+    }
+  }
+
+  @Test
+  fun `test changed post is re-indexed`() {
+    runBlocking(Dispatchers.Default) {
+      val comments = mutableListOf("Original post", "first version")
+      database.withTransaction { chanPostLocalSource.insertPosts(createThread(threadDescriptor, comments)) }
+
+      comments[1] = "second version"
+      database.withTransaction { chanPostLocalSource.insertPosts(createThread(threadDescriptor, comments)) }
+
+      val oldResult = database.withTransaction { localSource.searchThread(threadDescriptor, ftsQuery("first")) }
+      assertTrue(oldResult.matches.isEmpty())
+
+      val newResult = database.withTransaction { localSource.searchThread(threadDescriptor, ftsQuery("second")) }
+      assertEquals(setOf(PostDescriptor.create(threadDescriptor, 2L)), newResult.matches)
+    }
+  }
+
+  @Test
+  fun `test catalog search`() {
+    runBlocking(Dispatchers.Default) {
+      database.withTransaction {
+        chanPostLocalSource.insertPosts(createThread(threadDescriptor, listOf("catalog thread", "reply with catalog")))
+        chanPostLocalSource.insertPosts(createThread(otherThreadDescriptor, listOf("another catalog thread")))
+      }
+
+      val catalogResult = database.withTransaction {
+        localSource.searchCatalog(threadDescriptor.catalogDescriptor(), ftsQuery("catalog"))
+      }
+
+      val originalPostDescriptor = PostDescriptor.create(
+        threadDescriptor.siteName(),
+        threadDescriptor.boardCode(),
+        threadDescriptor.threadNo
+      )
+
+      assertEquals(setOf(originalPostDescriptor), catalogResult.matches)
+      assertEquals(setOf(originalPostDescriptor), catalogResult.indexedPosts)
+    }
+  }
+
+  @Test
+  fun `test all cached threads search returns ranked matches with highlights`() {
+    runBlocking(Dispatchers.Default) {
+      database.withTransaction {
+        chanPostLocalSource.insertPosts(
+          createThread(threadDescriptor, listOf("Original post", "I like kotlin", "kotlin kotlin kotlin", "Привет, kotlin"))
+        )
+        chanPostLocalSource.insertPosts(createThread(otherThreadDescriptor, listOf("Kotlin in another thread", "java")))
+      }
+
+      val matches = database.withTransaction {
+        localSource.searchAllCachedThreads(ftsQuery("kot"), ChanPostSearchUtils.queryTokens("kot"), 100)
+      }
+
+      assertEquals(
+        setOf(
+          PostDescriptor.create(threadDescriptor, 2L),
+          PostDescriptor.create(threadDescriptor, 3L),
+          PostDescriptor.create(threadDescriptor, 4L),
+          PostDescriptor.create(otherThreadDescriptor, 100L)
+        ),
+        matches.map { match -> match.postDescriptor }.toSet()
+      )
+
+      // More hits, better rank
+      assertEquals(PostDescriptor.create(threadDescriptor, 3L), matches.first().postDescriptor)
+      assertEquals(matches.sortedByDescending { match -> match.rank }, matches)
+
+      fun highlightsOf(postDescriptor: PostDescriptor): List<ChanPostSearchMatch.Highlight> {
+        return matches.first { match -> match.postDescriptor == postDescriptor }.highlights
+      }
+
+      assertEquals(
+        listOf(ChanPostSearchMatch.Highlight(ChanPostSearchMatch.Field.Comment, 7, 13)),
+        highlightsOf(PostDescriptor.create(threadDescriptor, 2L))
+      )
+      assertEquals(3, highlightsOf(PostDescriptor.create(threadDescriptor, 3L)).size)
+      // Char offsets, not bytes
+      assertEquals(
+        listOf(ChanPostSearchMatch.Highlight(ChanPostSearchMatch.Field.Comment, 8, 14)),
+        highlightsOf(PostDescriptor.create(threadDescriptor, 4L))
+      )
+
+      val limited = database.withTransaction {
+        localSource.searchAllCachedThreads(ftsQuery("kot"), ChanPostSearchUtils.queryTokens("kot"), 2)
+      }
+      assertEquals(2, limited.size)
+    }
+  }
+
+  @Test
+  fun `test highlights use the same rule as matching`() {
+    val queryTokens = ChanPostSearchUtils.queryTokens("CAFE lik")
+
+    val highlights = ChanPostSearchUtils.findHighlights(
+      queryTokens = queryTokens,
+      comment = "I like the café, unlike tea",
+      subject = "Café subject",
+      name = "",
+      files = "cafeteria.jpg"
+    )
+
+    assertEquals(
+      listOf(
+        ChanPostSearchMatch.Highlight(ChanPostSearchMatch.Field.Comment, 2, 6),
+        ChanPostSearchMatch.Highlight(ChanPostSearchMatch.Field.Comment, 11, 15),
+        ChanPostSearchMatch.Highlight(ChanPostSearchMatch.Field.Subject, 0, 4),
+        ChanPostSearchMatch.Highlight(ChanPostSearchMatch.Field.Files, 0, 9)
+      ),
+      highlights
+    )
+
+    assertTrue(ChanPostSearchUtils.findHighlights(emptyList(), "text", "", "", "").isEmpty())
+  }
+
+  @Test
+  fun `test deleted posts are removed from the index`() {
+    runBlocking(Dispatchers.Default) {
+      database.withTransaction {
+        chanPostLocalSource.insertPosts(createThread(threadDescriptor, listOf("thread", "reply one", "reply two")))
+      }
+
+      assertEquals(3, database.chanPostSearchDao().count())
+
+      database.withTransaction { chanPostLocalSource.deletePost(PostDescriptor.create(threadDescriptor, 2L)) }
+      assertEquals(2, database.chanPostSearchDao().count())
+
+      database.withTransaction { chanPostLocalSource.deleteThread(threadDescriptor) }
+      assertEquals(1, database.chanPostSearchDao().count())
+
+      database.withTransaction { chanPostLocalSource.deleteAll() }
+      assertEquals(0, database.chanPostSearchDao().count())
+    }
+  }
+
+  @Test
+  fun `test search in a thread with 5000 posts matches the not persisted posts rule`() {
+    runBlocking(Dispatchers.Default) {
+      val postsCount = 5000
+      val words = listOf("alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel")
+      val comments = (1..postsCount).map { index ->
+        (0 until 20).joinToString(separator = " ") { wordIndex -> words[(index * 7 + wordIndex * 3) % words.size] + (index % 50) }
+      }
+
+      val posts = createThread(threadDescriptor, comments)
+      database.withTransaction { chanPostLocalSource.insertPosts(posts) }
+
+      val result = database.withTransaction { localSource.searchThread(threadDescriptor, ftsQuery("golf4")) }
+
+      val queryTokens = ChanPostSearchUtils.queryTokens("golf4")
+      val expectedMatches = posts
+        .filter { chanPost -> ChanPostSearchUtils.matchesQuery(chanPost, queryTokens) }
+        .map { chanPost -> chanPost.postDescriptor }
+        .toSet()
+
+      assertTrue(expectedMatches.isNotEmpty())
+      assertEquals(expectedMatches, result.matches)
+      assertEquals(postsCount, result.indexedPosts.size)
+    }
+  }
+
+  private fun ftsQuery(query: String): String = ChanPostSearchUtils.toFtsQuery(query)!!
+
+  private fun createThread(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    comments: List<String>
+  ): List<ChanPost> {
+    return comments.mapIndexed { index, comment ->
+      val postNo = threadDescriptor.threadNo + index
+      val postDescriptor = PostDescriptor.create(threadDescriptor, postNo)
+      val postComment = PostComment(comment, null, emptyList())
+
+      if (postNo == threadDescriptor.threadNo) {
+        return@mapIndexed ChanOriginalPost(
+          chanPostId = 0L,
+          postDescriptor = postDescriptor,
+          postImages = emptyList(),
+          postIcons = emptyList(),
+          repliesTo = emptySet(),
+          timestamp = postNo,
+          postComment = postComment,
+          subject = "Test subject",
+          isSavedReply = false,
+          lastModified = 0L,
+          sticky = false,
+          closed = false,
+          archived = false,
+          endless = false,
+          isSage = false,
+          deleted = false,
+          posterIdColor = 0
+        )
+      }
+
+      return@mapIndexed ChanPost(
+        chanPostId = 0L,
+        postDescriptor = postDescriptor,
+        _postImages = mutableListOf(),
+        postIcons = emptyList(),
+        repliesTo = emptySet(),
+        timestamp = postNo,
+        postComment = postComment,
+        subject = null,
+        tripcode = null,
+        isSavedReply = false,
+        isSage = false,
+        deleted = false,
+        posterIdColor = 0
+      )
+    }
+  }
+
+}
@@ -0,0 +1,214 @@
+package com.github.k1rakishou.model.source.local
+
+import androidx.room.withTransaction
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.TestDatabaseModuleComponent
+import com.github.k1rakishou.model.data.bookmark.ThreadBookmark
+import com.github.k1rakishou.model.data.bookmark.ThreadBookmarkReply
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.entity.chan.site.ChanSiteIdEntity
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runBlocking
+import org.joda.time.DateTime
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.shadows.ShadowLog
+
+@RunWith(RobolectricTestRunner::class)
+class ThreadBookmarkLocalSourceTest {
+  lateinit var database: KurobaDatabase
+  lateinit var localSource: ThreadBookmarkLocalSource
+
+  @Before
+  fun setUp() {
+    ShadowLog.stream = System.out
+    val testDatabaseModuleComponent = TestDatabaseModuleComponent()
+
+    database = testDatabaseModuleComponent.provideInMemoryKurobaDatabase()
+    localSource = testDatabaseModuleComponent.provideThreadBookmarkLocalSource()
+
+    runBlocking(Dispatchers.Default) {
+      database.chanSiteDao().insertDefaultSiteIdsOrIgnore(listOf(ChanSiteIdEntity(SITE_NAME)))
+    }
+
+    installWriteCounterTriggers()
+  }
+
+  @Test
+  fun `test persisting only changed bookmarks`() {
+    runBlocking(Dispatchers.Default) {
+      val bookmarks = createBookmarks(10)
+      database.withTransaction { localSource.persistChanged(bookmarks.map { it.deepCopy() }, emptyList()) }
+
+      val changed = bookmarks[3]
+      changed.threadRepliesCount += 1
+      changed.threadBookmarkReplies[replyDescriptor(changed.threadDescriptor, 1000)] =
+        createReply(changed.threadDescriptor, 1000)
+
+      val deleted = bookmarks[5].threadDescriptor
+
+      database.withTransaction { localSource.persistChanged(listOf(changed.deepCopy()), listOf(deleted)) }
+
+      val restoredBookmarks = database.withTransaction { localSource.selectAll() }
+        .associateBy { threadBookmark -> threadBookmark.threadDescriptor }
+
+      assertEquals(9, restoredBookmarks.size)
+      assertEquals(null, restoredBookmarks[deleted])
+      assertEquals(changed.threadRepliesCount, restoredBookmarks[changed.threadDescriptor]!!.threadRepliesCount)
+      assertEquals(REPLIES_PER_BOOKMARK + 1, restoredBookmarks[changed.threadDescriptor]!!.threadBookmarkReplies.size)
+    }
+  }
+
+  @Test
+  fun `test persisting one changed bookmark writes one row`() {
+    runBlocking(Dispatchers.Default) {
+      val bookmarks = createBookmarks(10)
+      database.withTransaction { localSource.persistChanged(bookmarks.map { it.deepCopy() }, emptyList()) }
+
+      val changed = bookmarks[3]
+      changed.threadRepliesCount += 1
+
+      resetWriteCounter()
+      database.withTransaction { localSource.persistChanged(listOf(changed.deepCopy()), emptyList()) }
+
+      // Only the thread_bookmark row of the changed bookmark, its replies didn't change
+      assertEquals(1, writtenRowsCount())
+
+      resetWriteCounter()
+      database.withTransaction { localSource.persistChanged(bookmarks.map { it.deepCopy() }, emptyList()) }
+
+      // Nothing changed since the previous persist
+      assertEquals(0, writtenRowsCount())
+
+      val restoredBookmarks = database.withTransaction { localSource.selectAll() }
+        .associateBy { threadBookmark -> threadBookmark.threadDescriptor }
+
+      assertEquals(changed.threadRepliesCount, restoredBookmarks[changed.threadDescriptor]!!.threadRepliesCount)
+    }
+  }
+
+  @Test
+  fun `test 1000 bookmarks with 3 changed bookmarks per tick`() {
+    runBlocking(Dispatchers.Default) {
+      val bookmarksCount = 1000
+      val ticks = 50
+      val bookmarks = createBookmarks(bookmarksCount)
+
+      database.withTransaction { localSource.persistChanged(bookmarks.map { it.deepCopy() }, emptyList()) }
+
+      repeat(ticks) { tick ->
+        val changedBookmarks = (0 until 3).map { index ->
+          val threadBookmark = bookmarks[(tick * 3 + index) % bookmarksCount]
+          val replyPostNo = 10_000L + tick
+
+          threadBookmark.threadRepliesCount += 1
+          threadBookmark.threadBookmarkReplies[replyDescriptor(threadBookmark.threadDescriptor, replyPostNo)] =
+            createReply(threadBookmark.threadDescriptor, replyPostNo)
+
+          return@map threadBookmark
+        }
+
+        // Full and dirty-only persists are interleaved, both must end up in the same state
+        if (tick % 2 == 0) {
+          val allBookmarks = bookmarks.map { it.deepCopy() }
+          database.withTransaction { localSource.persist(allBookmarks) }
+        } else {
+          val onlyChanged = changedBookmarks.map { it.deepCopy() }
+          database.withTransaction { localSource.persistChanged(onlyChanged, emptyList()) }
+        }
+      }
+
+      val restoredBookmarks = database.withTransaction { localSource.selectAll() }
+      assertEquals(bookmarksCount, restoredBookmarks.size)
+      assertEquals(
+        bookmarks.sumOf { it.threadBookmarkReplies.size },
+        restoredBookmarks.sumOf { it.threadBookmarkReplies.size }
+      )
+    }
+  }
+
+  private suspend fun createBookmarks(count: Int): List<ThreadBookmark> {
+    val boardId = database.chanBoardDao().insertBoardId(SITE_NAME, BOARD_CODE).boardId
+
+    return (1L..count.toLong()).map { threadNo ->
+      val threadDescriptor = ChanDescriptor.ThreadDescriptor.create(SITE_NAME, BOARD_CODE, threadNo)
+      database.chanThreadDao().insertDefaultOrIgnore(boardId, threadNo)
+
+      val threadBookmark = ThreadBookmark.create(threadDescriptor, DateTime.now())
+      threadBookmark.title = "Thread ${threadNo}"
+
+      for (replyPostNo in 1L..REPLIES_PER_BOOKMARK.toLong()) {
+        threadBookmark.threadBookmarkReplies[replyDescriptor(threadDescriptor, replyPostNo)] =
+          createReply(threadDescriptor, replyPostNo)
+      }
+
+      return@map threadBookmark
+    }
+  }
+
+  private fun replyDescriptor(threadDescriptor: ChanDescriptor.ThreadDescriptor, postNo: Long): PostDescriptor {
+    return PostDescriptor.create(threadDescriptor, threadDescriptor.threadNo * 100_000 + postNo)
+  }
+
+  private fun createReply(threadDescriptor: ChanDescriptor.ThreadDescriptor, postNo: Long): ThreadBookmarkReply {
+    return ThreadBookmarkReply(
+      postDescriptor = replyDescriptor(threadDescriptor, postNo),
+      repliesTo = PostDescriptor.create(threadDescriptor, threadDescriptor.threadNo),
+      alreadyNotified = false,
+      alreadySeen = false,
+      alreadyRead = false,
+      time = DateTime(postNo * 1000L),
+      commentRaw = "Reply ${postNo}"
+    )
+  }
+
+  /**
+   * Counts every row inserted, updated or deleted (including cascade deletes) in all bookmark tables.
+   * */
+  private fun installWriteCounterTriggers() {
+    val db = database.openHelper.writableDatabase
+    db.execSQL("CREATE TEMP TABLE write_counter (cnt INTEGER NOT NULL)")
+    db.execSQL("INSERT INTO write_counter (cnt) VALUES (0)")
+
+    val tables = listOf(
+      "thread_bookmark",
+      "thread_bookmark_reply",
+      "thread_bookmark_group",
+      "thread_bookmark_group_entry"
+    )
+
+    tables.forEach { table ->
+      listOf("INSERT", "UPDATE", "DELETE").forEach { operation ->
+        db.execSQL("""
+          CREATE TEMP TRIGGER IF NOT EXISTS ${table}_${operation.lowercase()}_counter 
+          AFTER $operation ON $table
+          BEGIN
+            UPDATE write_counter SET cnt = cnt + 1;
+          END
+        """)
+      }
+    }
+  }
+
+  private fun resetWriteCounter() {
+    database.openHelper.writableDatabase.execSQL("UPDATE write_counter SET cnt = 0")
+  }
+
+  private fun writtenRowsCount(): Int {
+    database.openHelper.writableDatabase.query("SELECT cnt FROM write_counter").use { cursor ->
+      cursor.moveToFirst()
+      return cursor.getInt(0)
+    }
+  }
+
+  companion object {
+    private const val SITE_NAME = "test-site"
+    private const val BOARD_CODE = "g"
+    private const val REPLIES_PER_BOOKMARK = 20
+  }
+
+}
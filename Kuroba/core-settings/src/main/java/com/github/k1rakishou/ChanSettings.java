@@ -259,6 +259,7 @@ public class ChanSettings {
     //region THREAD DOWNLOADER
     public static IntegerSetting threadDownloaderUpdateInterval;
     public static BooleanSetting threadDownloaderDownloadMediaOnMeteredNetwork;
+    public static IntegerSetting threadDownloaderMaxBytesPerSecond;
     //endregion
 
     //region APPEARANCE
@@ -381,6 +382,7 @@ public class ChanSettings {
     public static BooleanSetting okHttpAllowHttp2;
     public static BooleanSetting okHttpAllowIpv6;
     public static BooleanSetting okHttpUseDnsOverHttps;
+    public static BooleanSetting okHttpRaceDnsResolvers;
     public static BooleanSetting cloudflareForcePreload;
     public static BooleanSetting prefetchMedia;
     public static BooleanSetting showPrefetchLoadingIndicator;
@@ -398,6 +400,7 @@ public class ChanSettings {
     public static BooleanSetting verboseLogs;
     public static BooleanSetting checkUpdateApkVersionCode;
     public static BooleanSetting showMpvInternalLogs;
+    public static BooleanSetting writeLogsToFile;
 
     public static BooleanSetting funThingsAreFun;
     public static BooleanSetting force4chanBirthdayMode;
@@ -471,6 +474,8 @@ public class ChanSettings {
             // region THREAD DOWNLOADER
             threadDownloaderUpdateInterval = new IntegerSetting(provider, "preference_thread_downloader_update_interval", (int) HOURS.toMillis(1));
             threadDownloaderDownloadMediaOnMeteredNetwork = new BooleanSetting(provider, "preference_thread_downloader_download_media_on_metered_network", false);
+            // 0 means no limit
+            threadDownloaderMaxBytesPerSecond = new IntegerSetting(provider, "preference_thread_downloader_max_bytes_per_second", 0);
             //endregion
 
             //region APPEARANCE
@@ -625,6 +630,7 @@ public class ChanSettings {
             okHttpAllowHttp2 = new BooleanSetting(provider, "ok_http_allow_http_2", true);
             okHttpAllowIpv6 = new BooleanSetting(provider, "ok_http_allow_ipv6", false);
             okHttpUseDnsOverHttps = new BooleanSetting(provider, "ok_http_use_dns_over_https", false);
+            okHttpRaceDnsResolvers = new BooleanSetting(provider, "ok_http_race_dns_resolvers", false);
             prefetchMedia = new BooleanSetting(provider, "preference_auto_load_thread", false);
             showPrefetchLoadingIndicator = new BooleanSetting(provider, "show_prefetch_loading_indicator", false);
             cloudflareForcePreload = new BooleanSetting(provider, "cloudflare_force_preload", false);
@@ -652,6 +658,7 @@ public class ChanSettings {
             );
             checkUpdateApkVersionCode = new BooleanSetting(provider, "check_update_apk_version_code", true);
             showMpvInternalLogs = new BooleanSetting(provider, "show_mpv_internal_logs", chanSettingsInfo.isDevBuild());
+            writeLogsToFile = new BooleanSetting(provider, "write_logs_to_file", chanSettingsInfo.isDevOrBetaBuild());
 
             funThingsAreFun = new BooleanSetting(provider, "fun_things_are_fun", true);
             force4chanBirthdayMode = new BooleanSetting(provider, "force_4chan_birthday_mode", false);
@@ -0,0 +1,100 @@
+/*
+ * KurobaEx - *chan browser https://github.com/K1rakishou/Kuroba-Experimental/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.k1rakishou.json;
+
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * {@link JsonSettingsProvider.Callback} that stores the settings in a file. The settings are
+ * written into a temporary file which then replaces the settings file with an atomic rename so
+ * that the settings file always contains either the old or the new settings, never a partially
+ * written one.
+ */
+public class AtomicJsonSettingsFile implements JsonSettingsProvider.Callback {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private final File file;
+    private final File tempFile;
+    private final Gson gson;
+
+    public AtomicJsonSettingsFile(File file, Gson gson) {
+        this.file = file;
+        this.tempFile = new File(file.getAbsolutePath() + TEMP_FILE_SUFFIX);
+        this.gson = gson;
+    }
+
+    /**
+     * Reads the settings from the file. A leftover temporary file means that the process was
+     * killed in the middle of a write and the settings file still contains the previous settings,
+     * so the temporary file is just deleted.
+     */
+    public JsonSettings load() throws IOException {
+        if (tempFile.exists() && !tempFile.delete()) {
+            throw new IOException("Failed to delete " + tempFile.getAbsolutePath());
+        }
+
+        if (!file.exists()) {
+            return new JsonSettings(new HashMap<>());
+        }
+
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8)) {
+            JsonSettings jsonSettings = gson.fromJson(reader, JsonSettings.class);
+            if (jsonSettings == null || jsonSettings.settings == null) {
+                return new JsonSettings(new HashMap<>());
+            }
+
+            return jsonSettings;
+        }
+    }
+
+    @Override
+    public void save(JsonSettings snapshot) throws IOException {
+        File parentDir = file.getParentFile();
+        if (parentDir != null && !parentDir.exists() && !parentDir.mkdirs()) {
+            throw new IOException("Failed to create directory " + parentDir.getAbsolutePath());
+        }
+
+        try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+            Writer writer = new OutputStreamWriter(outputStream, UTF_8);
+            gson.toJson(snapshot, writer);
+            writer.flush();
+
+            // Make sure the data is on the disk before the rename becomes visible
+            outputStream.getFD().sync();
+        } catch (Throwable error) {
+            tempFile.delete();
+            throw error;
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to rename " + tempFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+        }
+    }
+}
@@ -17,37 +17,75 @@
 package com.github.k1rakishou.json;
 
 import com.github.k1rakishou.SettingProvider;
+import com.github.k1rakishou.core_logger.Logger;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Setting changes only mark the settings as dirty. A snapshot of the settings is handed to the
+ * {@link Callback} on a single background writer thread once no changes were made for
+ * {@code debounceMs}, so changing a bunch of settings at once results in one write. Use
+ * {@link #edit(BatchEdit)} to change multiple settings atomically and {@link #flush()} to persist
+ * pending changes right away (e.g. when the process is about to be killed).
+ */
 public class JsonSettingsProvider implements SettingProvider {
+    private static final String TAG = "JsonSettingsProvider";
+    public static final long DEFAULT_DEBOUNCE_MS = 300L;
+
     public final JsonSettings jsonSettings;
-    private Callback callback;
+    private final Callback callback;
+    private final long debounceMs;
+    private final ScheduledExecutorService writerExecutor;
+
+    // Guards jsonSettings, dirty and pendingWrite
+    private final Object lock = new Object();
+    // Makes sure only one snapshot is being written at a time (the writer thread or flush())
+    private final Object writeLock = new Object();
+
+    private boolean dirty = false;
+    private ScheduledFuture<?> pendingWrite = null;
 
     public JsonSettingsProvider(JsonSettings jsonSettings, Callback callback) {
+        this(jsonSettings, callback, DEFAULT_DEBOUNCE_MS);
+    }
+
+    public JsonSettingsProvider(JsonSettings jsonSettings, Callback callback, long debounceMs) {
         this.jsonSettings = jsonSettings;
         this.callback = callback;
+        this.debounceMs = debounceMs;
+        this.writerExecutor = WriterExecutorHolder.INSTANCE;
     }
 
     //region Integer
     @Override
     public int getInt(String key, int def) {
-        JsonSetting setting = jsonSettings.settings.get(key);
-        if (setting != null) {
-            return ((IntegerJsonSetting) setting).value;
-        } else {
-            return def;
+        synchronized (lock) {
+            JsonSetting setting = jsonSettings.settings.get(key);
+            if (setting != null) {
+                return ((IntegerJsonSetting) setting).value;
+            } else {
+                return def;
+            }
         }
     }
 
     @Override
     public void putInt(String key, int value) {
-        JsonSetting jsonSetting = jsonSettings.settings.get(key);
-        if (jsonSetting == null) {
-            IntegerJsonSetting v = new IntegerJsonSetting(value);
-            jsonSettings.settings.put(key, v);
-        } else {
-            ((IntegerJsonSetting) jsonSetting).value = value;
+        synchronized (lock) {
+            JsonSetting jsonSetting = jsonSettings.settings.get(key);
+            if (jsonSetting == null) {
+                IntegerJsonSetting v = new IntegerJsonSetting(value);
+                jsonSettings.settings.put(key, v);
+            } else {
+                ((IntegerJsonSetting) jsonSetting).value = value;
+            }
+            markDirty();
         }
-        callback.save();
     }
 
     @Override
@@ -59,24 +97,28 @@ public class JsonSettingsProvider implements SettingProvider {
     //region Long
     @Override
     public long getLong(String key, long def) {
-        JsonSetting setting = jsonSettings.settings.get(key);
-        if (setting != null) {
-            return ((LongJsonSetting) setting).value;
-        } else {
-            return def;
+        synchronized (lock) {
+            JsonSetting setting = jsonSettings.settings.get(key);
+            if (setting != null) {
+                return ((LongJsonSetting) setting).value;
+            } else {
+                return def;
+            }
         }
     }
 
     @Override
     public void putLong(String key, long value) {
-        JsonSetting jsonSetting = jsonSettings.settings.get(key);
-        if (jsonSetting == null) {
-            LongJsonSetting v = new LongJsonSetting(value);
-            jsonSettings.settings.put(key, v);
-        } else {
-            ((LongJsonSetting) jsonSetting).value = value;
+        synchronized (lock) {
+            JsonSetting jsonSetting = jsonSettings.settings.get(key);
+            if (jsonSetting == null) {
+                LongJsonSetting v = new LongJsonSetting(value);
+                jsonSettings.settings.put(key, v);
+            } else {
+                ((LongJsonSetting) jsonSetting).value = value;
+            }
+            markDirty();
         }
-        callback.save();
     }
 
     @Override
@@ -88,24 +130,28 @@ public class JsonSettingsProvider implements SettingProvider {
     //region Boolean
     @Override
     public boolean getBoolean(String key, boolean def) {
-        JsonSetting setting = jsonSettings.settings.get(key);
-        if (setting != null) {
-            return ((BooleanJsonSetting) setting).value;
-        } else {
-            return def;
+        synchronized (lock) {
+            JsonSetting setting = jsonSettings.settings.get(key);
+            if (setting != null) {
+                return ((BooleanJsonSetting) setting).value;
+            } else {
+                return def;
+            }
         }
     }
 
     @Override
     public void putBoolean(String key, boolean value) {
-        JsonSetting jsonSetting = jsonSettings.settings.get(key);
-        if (jsonSetting == null) {
-            BooleanJsonSetting v = new BooleanJsonSetting(value);
-            jsonSettings.settings.put(key, v);
-        } else {
-            ((BooleanJsonSetting) jsonSetting).value = value;
+        synchronized (lock) {
+            JsonSetting jsonSetting = jsonSettings.settings.get(key);
+            if (jsonSetting == null) {
+                BooleanJsonSetting v = new BooleanJsonSetting(value);
+                jsonSettings.settings.put(key, v);
+            } else {
+                ((BooleanJsonSetting) jsonSetting).value = value;
+            }
+            markDirty();
         }
-        callback.save();
     }
 
     @Override
@@ -117,24 +163,28 @@ public class JsonSettingsProvider implements SettingProvider {
     //region String
     @Override
     public String getString(String key, String def) {
-        JsonSetting setting = jsonSettings.settings.get(key);
-        if (setting != null) {
-            return ((StringJsonSetting) setting).value;
-        } else {
-            return def;
+        synchronized (lock) {
+            JsonSetting setting = jsonSettings.settings.get(key);
+            if (setting != null) {
+                return ((StringJsonSetting) setting).value;
+            } else {
+                return def;
+            }
         }
     }
 
     @Override
     public void putString(String key, String value) {
-        JsonSetting jsonSetting = jsonSettings.settings.get(key);
-        if (jsonSetting == null) {
-            StringJsonSetting v = new StringJsonSetting(value);
-            jsonSettings.settings.put(key, v);
-        } else {
-            ((StringJsonSetting) jsonSetting).value = value;
+        synchronized (lock) {
+            JsonSetting jsonSetting = jsonSettings.settings.get(key);
+            if (jsonSetting == null) {
+                StringJsonSetting v = new StringJsonSetting(value);
+                jsonSettings.settings.put(key, v);
+            } else {
+                ((StringJsonSetting) jsonSetting).value = value;
+            }
+            markDirty();
         }
-        callback.save();
     }
 
     @Override
@@ -148,7 +198,128 @@ public class JsonSettingsProvider implements SettingProvider {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Applies all the changes made inside of {@code batchEdit} atomically, i.e. a snapshot will
+     * either contain all of them or none.
+     */
+    public void edit(BatchEdit batchEdit) {
+        synchronized (lock) {
+            batchEdit.edit(this);
+        }
+    }
+
+    public boolean isDirty() {
+        synchronized (lock) {
+            return dirty;
+        }
+    }
+
+    /**
+     * Synchronously writes pending changes (if there are any) on the current thread.
+     */
+    public void flush() {
+        synchronized (lock) {
+            if (pendingWrite != null) {
+                pendingWrite.cancel(false);
+                pendingWrite = null;
+            }
+        }
+
+        writeIfDirty();
+    }
+
+    // Must be called with the lock held
+    private void markDirty() {
+        dirty = true;
+
+        if (pendingWrite != null) {
+            pendingWrite.cancel(false);
+        }
+
+        pendingWrite = writerExecutor.schedule(this::writeIfDirty, debounceMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void writeIfDirty() {
+        synchronized (writeLock) {
+            JsonSettings snapshot;
+
+            synchronized (lock) {
+                if (!dirty) {
+                    return;
+                }
+
+                snapshot = takeSnapshot();
+                dirty = false;
+                pendingWrite = null;
+            }
+
+            try {
+                callback.save(snapshot);
+            } catch (Throwable error) {
+                Logger.e(TAG, "Failed to save settings", error);
+
+                // Keep the changes so that they are written with the next change or flush()
+                synchronized (lock) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    // Must be called with the lock held
+    private JsonSettings takeSnapshot() {
+        Map<String, JsonSetting> settingsCopy = new HashMap<>(jsonSettings.settings.size());
+
+        for (Map.Entry<String, JsonSetting> entry : jsonSettings.settings.entrySet()) {
+            settingsCopy.put(entry.getKey(), copySetting(entry.getValue()));
+        }
+
+        return new JsonSettings(settingsCopy);
+    }
+
+    private static JsonSetting copySetting(JsonSetting setting) {
+        JsonSetting copy;
+
+        if (setting instanceof IntegerJsonSetting) {
+            copy = new IntegerJsonSetting(((IntegerJsonSetting) setting).value);
+        } else if (setting instanceof LongJsonSetting) {
+            copy = new LongJsonSetting(((LongJsonSetting) setting).value);
+        } else if (setting instanceof BooleanJsonSetting) {
+            copy = new BooleanJsonSetting(((BooleanJsonSetting) setting).value);
+        } else if (setting instanceof StringJsonSetting) {
+            copy = new StringJsonSetting(((StringJsonSetting) setting).value);
+        } else {
+            throw new IllegalStateException("Unknown setting type: " + setting.getClass().getSimpleName());
+        }
+
+        copy.setKey(setting.getKey());
+        return copy;
+    }
+
     public interface Callback {
-        void save();
+        /**
+         * Called on the writer thread (or the thread that called {@link #flush()}) with a copy of
+         * the settings that is not modified concurrently.
+         */
+        void save(JsonSettings snapshot) throws Exception;
+    }
+
+    public interface BatchEdit {
+        void edit(JsonSettingsProvider provider);
+    }
+
+    private static final class WriterExecutorHolder {
+        static final ScheduledExecutorService INSTANCE = createWriterExecutor();
+
+        private static ScheduledExecutorService createWriterExecutor() {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "JsonSettingsWriter");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
     }
 }
@@ -0,0 +1,167 @@
+package com.github.k1rakishou.json
+
+import com.google.gson.Gson
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class JsonSettingsProviderTest {
+  private val gson = Gson().newBuilder()
+    .registerTypeAdapterFactory(
+      RuntimeTypeAdapterFactory.of(JsonSetting::class.java, "type")
+        .registerSubtype(StringJsonSetting::class.java, "string")
+        .registerSubtype(IntegerJsonSetting::class.java, "integer")
+        .registerSubtype(LongJsonSetting::class.java, "long")
+        .registerSubtype(BooleanJsonSetting::class.java, "boolean")
+    )
+    .create()
+
+  private lateinit var dir: File
+  private lateinit var settingsFile: File
+
+  @Before
+  fun setUp() {
+    dir = Files.createTempDirectory("json_settings").toFile()
+    settingsFile = File(dir, "settings.json")
+  }
+
+  @After
+  fun tearDown() {
+    dir.deleteRecursively()
+  }
+
+  @Test
+  fun `test many changes in a row are coalesced into one write`() {
+    val savesCount = AtomicInteger(0)
+    val savedLatch = CountDownLatch(1)
+    var lastSnapshot: JsonSettings? = null
+
+    val provider = JsonSettingsProvider(
+      JsonSettings(HashMap()),
+      { snapshot ->
+        lastSnapshot = snapshot
+        savesCount.incrementAndGet()
+        savedLatch.countDown()
+      },
+      DEBOUNCE_MS
+    )
+
+    for (i in 0 until 100) {
+      provider.putInt("int", i)
+      provider.putString("string_$i", "value_$i")
+    }
+
+    assertTrue(savedLatch.await(5, TimeUnit.SECONDS))
+    // Give the writer a chance to perform another (unexpected) write
+    Thread.sleep(DEBOUNCE_MS * 4)
+
+    assertEquals(1, savesCount.get())
+    assertFalse(provider.isDirty)
+
+    val snapshot = lastSnapshot!!
+    assertEquals(101, snapshot.settings.size)
+    assertEquals(99, (snapshot.settings["int"] as IntegerJsonSetting).value)
+    assertEquals("value_99", (snapshot.settings["string_99"] as StringJsonSetting).value)
+  }
+
+  @Test
+  fun `test flush writes pending changes immediately and only once`() {
+    val savesCount = AtomicInteger(0)
+    val provider = JsonSettingsProvider(
+      JsonSettings(HashMap()),
+      { savesCount.incrementAndGet() },
+      TimeUnit.MINUTES.toMillis(1)
+    )
+
+    provider.flush()
+    assertEquals(0, savesCount.get())
+
+    provider.edit { editor ->
+      editor.putBoolean("bool", true)
+      editor.putLong("long", Long.MAX_VALUE)
+    }
+
+    assertTrue(provider.isDirty)
+    provider.flush()
+    provider.flush()
+
+    assertEquals(1, savesCount.get())
+    assertFalse(provider.isDirty)
+  }
+
+  @Test
+  fun `test snapshot is not affected by changes made after it was taken`() {
+    val file = AtomicJsonSettingsFile(settingsFile, gson)
+    val provider = JsonSettingsProvider(file.load(), file, TimeUnit.MINUTES.toMillis(1))
+
+    provider.edit { editor ->
+      editor.putInt("int", 1)
+      editor.putString("string", "1")
+    }
+    provider.flush()
+
+    provider.putInt("int", 2)
+
+    val loaded = JsonSettingsProvider(file.load(), file)
+    assertEquals(1, loaded.getInt("int", -1))
+    assertEquals("1", loaded.getString("string", null))
+  }
+
+  @Test
+  fun `test interrupted write does not corrupt the settings file`() {
+    val file = AtomicJsonSettingsFile(settingsFile, gson)
+    val provider = JsonSettingsProvider(file.load(), file, TimeUnit.MINUTES.toMillis(1))
+
+    provider.putInt("int", 1)
+    provider.flush()
+
+    // The process was killed in the middle of writing the temp file
+    val tempFile = File(dir, "settings.json.tmp")
+    tempFile.writeText("{\"settings\":{\"int\":{\"type\":\"integ")
+
+    val afterCrash = JsonSettingsProvider(file.load(), file)
+    assertEquals(1, afterCrash.getInt("int", -1))
+    assertFalse(tempFile.exists())
+  }
+
+  @Test
+  fun `test failed write keeps the old file and the changes are written with the next flush`() {
+    val file = AtomicJsonSettingsFile(settingsFile, gson)
+    val provider = JsonSettingsProvider(file.load(), file, TimeUnit.MINUTES.toMillis(1))
+
+    provider.putInt("int", 1)
+    provider.flush()
+
+    // Make the temp file impossible to create
+    val tempFile = File(dir, "settings.json.tmp")
+    assertTrue(tempFile.mkdir())
+
+    provider.putInt("int", 2)
+    provider.flush()
+
+    assertTrue(provider.isDirty)
+    assertEquals(1, JsonSettingsProvider(readWithoutCleanup(), file).getInt("int", -1))
+
+    assertTrue(tempFile.delete())
+    provider.flush()
+
+    assertFalse(provider.isDirty)
+    assertEquals(2, JsonSettingsProvider(file.load(), file).getInt("int", -1))
+  }
+
+  private fun readWithoutCleanup(): JsonSettings {
+    return gson.fromJson(settingsFile.readText(), JsonSettings::class.java)
+  }
+
+  companion object {
+    private const val DEBOUNCE_MS = 50L
+  }
+}
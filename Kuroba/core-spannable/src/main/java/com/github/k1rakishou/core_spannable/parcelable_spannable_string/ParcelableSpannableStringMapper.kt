@@ -1,18 +1,25 @@
 package com.github.k1rakishou.core_spannable.parcelable_spannable_string
 
 import android.util.Log
+import com.github.k1rakishou.common.ModularResult
+import com.github.k1rakishou.common.ModularResult.Companion.Try
+import com.github.k1rakishou.common.unmarshall
 import com.github.k1rakishou.core_spannable.ParcelableSpannableString
+import com.github.k1rakishou.core_spannable.ParcelableSpans
 import com.github.k1rakishou.core_spannable.parcelable_spannable_string.v1.ParcelableSpannableStringMapperV1
+import com.github.k1rakishou.core_spannable.parcelable_spannable_string.v2.ParcelableSpannableStringMapperV2
+import com.github.k1rakishou.core_spannable.parcelable_spannable_string.v2.SpanInfoBinaryCodec
 import java.util.concurrent.ConcurrentHashMap
 
 object ParcelableSpannableStringMapper {
   private const val TAG = "ParcelableStringMapper"
-  const val CURRENT_MAPPER_VERSION = 1
+  const val CURRENT_MAPPER_VERSION = 2
 
   private val mappers = ConcurrentHashMap<Int, ParcelableStringMapper>()
 
   init {
     mappers[ParcelableSpannableStringMapperV1.version] = ParcelableSpannableStringMapperV1
+    mappers[ParcelableSpannableStringMapperV2.version] = ParcelableSpannableStringMapperV2
     // Add new mappers here if ParcelableSpannableString internal structure ever changes
   }
 
@@ -74,5 +81,31 @@ object ParcelableSpannableStringMapper {
     }
   }
 
+  /**
+   * Serializes spans into the compact binary format (see [SpanInfoBinaryCodec]) that is used to
+   * persist them in the database.
+   * */
+  @JvmStatic
+  fun serializeSpans(parcelableSpans: ParcelableSpans): ByteArray {
+    return SpanInfoBinaryCodec.encode(parcelableSpans)
+  }
+
+  /**
+   * Deserializes spans persisted either with [serializeSpans] or with the legacy format (spans
+   * marshalled through Parcel).
+   * */
+  @JvmStatic
+  fun deserializeSpans(bytes: ByteArray): ModularResult<ParcelableSpans> {
+    if (SpanInfoBinaryCodec.isEncodedWithThisCodec(bytes)) {
+      return Try { SpanInfoBinaryCodec.decode(bytes) }
+    }
+
+    return bytes.unmarshall(ParcelableSpans.CREATOR)
+  }
+
+  @JvmStatic
+  fun isLegacySerializedSpans(bytes: ByteArray): Boolean {
+    return !SpanInfoBinaryCodec.isEncodedWithThisCodec(bytes)
+  }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,40 @@
+package com.github.k1rakishou.core_spannable.parcelable_spannable_string.v2
+
+import com.github.k1rakishou.core_spannable.ParcelableSpannableString
+import com.github.k1rakishou.core_spannable.ParcelableSpans
+import com.github.k1rakishou.core_spannable.parcelable_spannable_string.ParcelableStringMapper
+import com.github.k1rakishou.core_spannable.parcelable_spannable_string.v1.ParcelableSpannableStringMapperV1
+
+/**
+ * Spans are extracted/applied exactly the same way as in [ParcelableSpannableStringMapperV1], the
+ * difference is in how they are persisted: V2 spans are serialized with [SpanInfoBinaryCodec] instead
+ * of being marshalled through Android's Parcel.
+ * */
+internal object ParcelableSpannableStringMapperV2 : ParcelableStringMapper {
+  private const val MAPPER_VERSION = 2
+
+  override val version: Int
+    get() = MAPPER_VERSION
+
+  override fun toParcelableSpannableString(
+    charSequence: CharSequence?
+  ): ParcelableSpannableString? {
+    val parcelableSpannableString = ParcelableSpannableStringMapperV1.toParcelableSpannableString(charSequence)
+      ?: return null
+
+    return ParcelableSpannableString(
+      parcelableSpans = ParcelableSpans(
+        version = MAPPER_VERSION,
+        spanInfoList = parcelableSpannableString.parcelableSpans.spanInfoList
+      ),
+      text = parcelableSpannableString.text
+    )
+  }
+
+  override fun fromParcelableSpannableString(
+    parcelableSpannableString: ParcelableSpannableString?
+  ): CharSequence {
+    return ParcelableSpannableStringMapperV1.fromParcelableSpannableString(parcelableSpannableString)
+  }
+
+}
@@ -0,0 +1,417 @@
+package com.github.k1rakishou.core_spannable.parcelable_spannable_string.v2
+
+import com.github.k1rakishou.core_spannable.ParcelableSpan
+import com.github.k1rakishou.core_spannable.ParcelableSpanInfo
+import com.github.k1rakishou.core_spannable.ParcelableSpans
+import com.github.k1rakishou.core_spannable.PostLinkableValue
+import com.github.k1rakishou.core_themes.ChanThemeColorId
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Compact, portable binary encoding of [ParcelableSpans] (used instead of Android's Parcel starting
+ * with ParcelableSpannableStringMapper version 2). Does not depend on any Android classes so it can
+ * be tested on the JVM.
+ *
+ * Layout:
+ * [MAGIC: 1 byte][FORMAT_VERSION: varint][ParcelableSpans.version: varint]
+ * [strings count: varint] ([utf-8 bytes length: varint][utf-8 bytes])*
+ * [spans count: varint] ([span tag: 1 byte][(optional) raw span type: zigzag varint]
+ *   [span start delta from the previous span start: zigzag varint][span length: zigzag varint]
+ *   [span flags: varint][span payload])*
+ *
+ * All strings (PostLinkable keys, links, board codes etc.) are stored once in the string table and
+ * are referenced by their index.
+ * */
+object SpanInfoBinaryCodec {
+  const val MAGIC: Byte = 0xB5.toByte()
+  // hex(MAGIC), used to find rows encoded with the legacy (Parcel) format directly in SQL
+  const val MAGIC_HEX = "B5"
+  private const val FORMAT_VERSION = 1
+
+  // When set, the raw span type is written explicitly after the tag because it doesn't match the
+  // tag's canonical span type (tag - 1).
+  private const val EXPLICIT_TYPE_FLAG = 0x80
+  private const val TAG_MASK = 0x7F
+
+  private const val TAG_NO_PAYLOAD = 0
+  private const val TAG_FOREGROUND_COLOR = 1
+  private const val TAG_BACKGROUND_COLOR = 2
+  private const val TAG_STRIKETHROUGH = 3
+  private const val TAG_STYLE = 4
+  private const val TAG_TYPEFACE = 5
+  private const val TAG_ABSOLUTE_SIZE = 6
+  private const val TAG_POST_LINKABLE = 7
+  private const val TAG_BACKGROUND_COLOR_ID = 8
+  private const val TAG_FOREGROUND_COLOR_ID = 9
+
+  private const val LINKABLE_ARCHIVE = 0
+  private const val LINKABLE_BOARD = 1
+  private const val LINKABLE_LINK = 2
+  private const val LINKABLE_QUOTE = 3
+  private const val LINKABLE_DEAD = 4
+  private const val LINKABLE_SEARCH = 5
+  private const val LINKABLE_SPOILER = 6
+  private const val LINKABLE_THREAD_OR_POST = 7
+
+  @JvmStatic
+  fun isEncodedWithThisCodec(bytes: ByteArray): Boolean {
+    return bytes.isNotEmpty() && bytes[0] == MAGIC
+  }
+
+  @JvmStatic
+  fun encode(parcelableSpans: ParcelableSpans): ByteArray {
+    val stringTable = StringTable()
+    val spansWriter = ByteWriter(parcelableSpans.spanInfoList.size * 8)
+
+    spansWriter.writeVarInt(parcelableSpans.spanInfoList.size)
+    var prevSpanStart = 0
+
+    for (spanInfo in parcelableSpans.spanInfoList) {
+      val tag = tagOf(spanInfo.parcelableSpan)
+
+      if (spanInfo.parcelableTypeRaw == tag - 1) {
+        spansWriter.writeByte(tag)
+      } else {
+        spansWriter.writeByte(tag or EXPLICIT_TYPE_FLAG)
+        spansWriter.writeVarInt(zigZag(spanInfo.parcelableTypeRaw))
+      }
+
+      spansWriter.writeVarInt(zigZag(spanInfo.spanStart - prevSpanStart))
+      spansWriter.writeVarInt(zigZag(spanInfo.spanEnd - spanInfo.spanStart))
+      spansWriter.writeVarInt(spanInfo.flags)
+      prevSpanStart = spanInfo.spanStart
+
+      writePayload(spanInfo.parcelableSpan, spansWriter, stringTable)
+    }
+
+    val resultWriter = ByteWriter(spansWriter.size + stringTable.estimatedSize() + 8)
+    resultWriter.writeByte(MAGIC.toInt())
+    resultWriter.writeVarInt(FORMAT_VERSION)
+    resultWriter.writeVarInt(parcelableSpans.version)
+
+    resultWriter.writeVarInt(stringTable.strings.size)
+    for (stringBytes in stringTable.strings) {
+      resultWriter.writeVarInt(stringBytes.size)
+      resultWriter.writeBytes(stringBytes, stringBytes.size)
+    }
+
+    resultWriter.writeBytes(spansWriter.buffer, spansWriter.size)
+    return resultWriter.toByteArray()
+  }
+
+  @JvmStatic
+  fun decode(bytes: ByteArray): ParcelableSpans {
+    return decode(ByteBuffer.wrap(bytes))
+  }
+
+  /**
+   * Decodes spans directly from the [byteBuffer] (strings are decoded straight from the backing
+   * array when there is one).
+   * */
+  @JvmStatic
+  fun decode(byteBuffer: ByteBuffer): ParcelableSpans {
+    val buffer = byteBuffer.order(ByteOrder.LITTLE_ENDIAN)
+
+    val magic = buffer.get()
+    require(magic == MAGIC) { "Bad magic: $magic" }
+
+    val formatVersion = readVarInt(buffer)
+    require(formatVersion == FORMAT_VERSION) { "Unsupported format version: $formatVersion" }
+
+    val spansVersion = readVarInt(buffer)
+
+    val stringsCount = readVarInt(buffer)
+    val strings = Array(stringsCount) { readString(buffer) }
+
+    val spansCount = readVarInt(buffer)
+    val spanInfoList = ArrayList<ParcelableSpanInfo>(spansCount)
+    var prevSpanStart = 0
+
+    for (index in 0 until spansCount) {
+      val rawTag = buffer.get().toInt() and 0xFF
+      val tag = rawTag and TAG_MASK
+
+      val parcelableTypeRaw = if (rawTag and EXPLICIT_TYPE_FLAG != 0) {
+        unZigZag(readVarInt(buffer))
+      } else {
+        tag - 1
+      }
+
+      val spanStart = prevSpanStart + unZigZag(readVarInt(buffer))
+      val spanEnd = spanStart + unZigZag(readVarInt(buffer))
+      val flags = readVarInt(buffer)
+      prevSpanStart = spanStart
+
+      spanInfoList += ParcelableSpanInfo(
+        spanStart = spanStart,
+        spanEnd = spanEnd,
+        flags = flags,
+        parcelableTypeRaw = parcelableTypeRaw,
+        parcelableSpan = readPayload(tag, buffer, strings)
+      )
+    }
+
+    return ParcelableSpans(spansVersion, spanInfoList)
+  }
+
+  private fun tagOf(parcelableSpan: ParcelableSpan?): Int {
+    return when (parcelableSpan) {
+      null -> TAG_NO_PAYLOAD
+      is ParcelableSpan.ForegroundColor -> TAG_FOREGROUND_COLOR
+      is ParcelableSpan.BackgroundColor -> TAG_BACKGROUND_COLOR
+      ParcelableSpan.Strikethrough -> TAG_STRIKETHROUGH
+      is ParcelableSpan.Style -> TAG_STYLE
+      is ParcelableSpan.Typeface -> TAG_TYPEFACE
+      is ParcelableSpan.AbsoluteSize -> TAG_ABSOLUTE_SIZE
+      is ParcelableSpan.PostLinkable -> TAG_POST_LINKABLE
+      is ParcelableSpan.BackgroundColorId -> TAG_BACKGROUND_COLOR_ID
+      is ParcelableSpan.ForegroundColorId -> TAG_FOREGROUND_COLOR_ID
+    }
+  }
+
+  private fun writePayload(parcelableSpan: ParcelableSpan?, writer: ByteWriter, stringTable: StringTable) {
+    when (parcelableSpan) {
+      null,
+      ParcelableSpan.Strikethrough -> {
+        // no payload
+      }
+      is ParcelableSpan.ForegroundColor -> writer.writeInt32(parcelableSpan.color)
+      is ParcelableSpan.BackgroundColor -> writer.writeInt32(parcelableSpan.color)
+      is ParcelableSpan.Style -> writer.writeVarInt(parcelableSpan.style)
+      is ParcelableSpan.Typeface -> writer.writeVarInt(stringTable.indexOf(parcelableSpan.family))
+      is ParcelableSpan.AbsoluteSize -> writer.writeVarInt(parcelableSpan.size)
+      is ParcelableSpan.BackgroundColorId -> writer.writeVarInt(parcelableSpan.colorId.id)
+      is ParcelableSpan.ForegroundColorId -> writer.writeVarInt(parcelableSpan.colorId.id)
+      is ParcelableSpan.PostLinkable -> {
+        writer.writeVarInt(stringTable.indexOf(parcelableSpan.key))
+        writer.writeVarInt(zigZag(parcelableSpan.postLinkableTypeRaw))
+        writePostLinkableValue(parcelableSpan.postLinkableValue, writer, stringTable)
+      }
+    }
+  }
+
+  private fun writePostLinkableValue(
+    postLinkableValue: PostLinkableValue,
+    writer: ByteWriter,
+    stringTable: StringTable
+  ) {
+    when (postLinkableValue) {
+      is PostLinkableValue.Archive -> {
+        writer.writeByte(LINKABLE_ARCHIVE)
+        writer.writeVarInt(stringTable.indexOf(postLinkableValue.archiveDomain))
+        writer.writeVarInt(stringTable.indexOf(postLinkableValue.boardCode))
+        writer.writeVarLong(zigZag(postLinkableValue.threadNo))
+        writer.writeVarLong(zigZag(postLinkableValue.postNo))
+        writer.writeVarLong(zigZag(postLinkableValue.postSubNo))
+      }
+      is PostLinkableValue.Board -> {
+        writer.writeByte(LINKABLE_BOARD)
+        writer.writeVarInt(stringTable.indexOf(postLinkableValue.boardCode))
+      }
+      is PostLinkableValue.Link -> {
+        writer.writeByte(LINKABLE_LINK)
+        writer.writeVarInt(stringTable.indexOf(postLinkableValue.link))
+      }
+      is PostLinkableValue.Quote -> {
+        writer.writeByte(LINKABLE_QUOTE)
+        writer.writeVarLong(zigZag(postLinkableValue.postNo))
+        writer.writeVarLong(zigZag(postLinkableValue.postSubNo))
+      }
+      is PostLinkableValue.Dead -> {
+        writer.writeByte(LINKABLE_DEAD)
+        writer.writeVarLong(zigZag(postLinkableValue.postNo))
+        writer.writeVarLong(zigZag(postLinkableValue.postSubNo))
+      }
+      is PostLinkableValue.Search -> {
+        writer.writeByte(LINKABLE_SEARCH)
+        writer.writeVarInt(stringTable.indexOf(postLinkableValue.boardCode))
+        writer.writeVarInt(stringTable.indexOf(postLinkableValue.searchQuery))
+      }
+      PostLinkableValue.Spoiler -> {
+        writer.writeByte(LINKABLE_SPOILER)
+      }
+      is PostLinkableValue.ThreadOrPost -> {
+        writer.writeByte(LINKABLE_THREAD_OR_POST)
+        writer.writeVarInt(stringTable.indexOf(postLinkableValue.boardCode))
+        writer.writeVarLong(zigZag(postLinkableValue.threadNo))
+        writer.writeVarLong(zigZag(postLinkableValue.postNo))
+        writer.writeVarLong(zigZag(postLinkableValue.postSubNo))
+      }
+    }
+  }
+
+  private fun readPayload(tag: Int, buffer: ByteBuffer, strings: Array<String>): ParcelableSpan? {
+    return when (tag) {
+      TAG_NO_PAYLOAD -> null
+      TAG_FOREGROUND_COLOR -> ParcelableSpan.ForegroundColor(buffer.int)
+      TAG_BACKGROUND_COLOR -> ParcelableSpan.BackgroundColor(buffer.int)
+      TAG_STRIKETHROUGH -> ParcelableSpan.Strikethrough
+      TAG_STYLE -> ParcelableSpan.Style(readVarInt(buffer))
+      TAG_TYPEFACE -> ParcelableSpan.Typeface(strings[readVarInt(buffer)])
+      TAG_ABSOLUTE_SIZE -> ParcelableSpan.AbsoluteSize(readVarInt(buffer))
+      TAG_BACKGROUND_COLOR_ID -> ParcelableSpan.BackgroundColorId(ChanThemeColorId.byId(readVarInt(buffer)))
+      TAG_FOREGROUND_COLOR_ID -> ParcelableSpan.ForegroundColorId(ChanThemeColorId.byId(readVarInt(buffer)))
+      TAG_POST_LINKABLE -> {
+        val key = strings[readVarInt(buffer)]
+        val postLinkableTypeRaw = unZigZag(readVarInt(buffer))
+
+        ParcelableSpan.PostLinkable(
+          key = key,
+          postLinkableTypeRaw = postLinkableTypeRaw,
+          postLinkableValue = readPostLinkableValue(buffer, strings)
+        )
+      }
+      else -> throw IllegalStateException("Unknown span tag: $tag")
+    }
+  }
+
+  private fun readPostLinkableValue(buffer: ByteBuffer, strings: Array<String>): PostLinkableValue {
+    return when (val linkableTag = buffer.get().toInt()) {
+      LINKABLE_ARCHIVE -> PostLinkableValue.Archive(
+        archiveDomain = strings[readVarInt(buffer)],
+        boardCode = strings[readVarInt(buffer)],
+        threadNo = unZigZag(readVarLong(buffer)),
+        postNo = unZigZag(readVarLong(buffer)),
+        postSubNo = unZigZag(readVarLong(buffer))
+      )
+      LINKABLE_BOARD -> PostLinkableValue.Board(boardCode = strings[readVarInt(buffer)])
+      LINKABLE_LINK -> PostLinkableValue.Link(link = strings[readVarInt(buffer)])
+      LINKABLE_QUOTE -> PostLinkableValue.Quote(
+        postNo = unZigZag(readVarLong(buffer)),
+        postSubNo = unZigZag(readVarLong(buffer))
+      )
+      LINKABLE_DEAD -> PostLinkableValue.Dead(
+        postNo = unZigZag(readVarLong(buffer)),
+        postSubNo = unZigZag(readVarLong(buffer))
+      )
+      LINKABLE_SEARCH -> PostLinkableValue.Search(
+        boardCode = strings[readVarInt(buffer)],
+        searchQuery = strings[readVarInt(buffer)]
+      )
+      LINKABLE_SPOILER -> PostLinkableValue.Spoiler
+      LINKABLE_THREAD_OR_POST -> PostLinkableValue.ThreadOrPost(
+        boardCode = strings[readVarInt(buffer)],
+        threadNo = unZigZag(readVarLong(buffer)),
+        postNo = unZigZag(readVarLong(buffer)),
+        postSubNo = unZigZag(readVarLong(buffer))
+      )
+      else -> throw IllegalStateException("Unknown post linkable tag: $linkableTag")
+    }
+  }
+
+  private fun readString(buffer: ByteBuffer): String {
+    val length = readVarInt(buffer)
+    require(length <= buffer.remaining()) { "Bad string length: $length, remaining: ${buffer.remaining()}" }
+
+    if (buffer.hasArray()) {
+      val string = String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, Charsets.UTF_8)
+      buffer.position(buffer.position() + length)
+      return string
+    }
+
+    val bytes = ByteArray(length)
+    buffer.get(bytes)
+    return String(bytes, Charsets.UTF_8)
+  }
+
+  private fun readVarInt(buffer: ByteBuffer): Int {
+    return readVarLong(buffer).toInt()
+  }
+
+  private fun readVarLong(buffer: ByteBuffer): Long {
+    var result = 0L
+    var shift = 0
+
+    while (shift < 64) {
+      val byte = buffer.get().toInt()
+      result = result or ((byte and 0x7F).toLong() shl shift)
+
+      if (byte and 0x80 == 0) {
+        return result
+      }
+
+      shift += 7
+    }
+
+    throw IllegalStateException("Malformed varint")
+  }
+
+  private fun zigZag(value: Int): Int = (value shl 1) xor (value shr 31)
+  private fun unZigZag(value: Int): Int = (value ushr 1) xor -(value and 1)
+  private fun zigZag(value: Long): Long = (value shl 1) xor (value shr 63)
+  private fun unZigZag(value: Long): Long = (value ushr 1) xor -(value and 1L)
+
+  private class StringTable {
+    private val indexes = HashMap<String, Int>()
+    val strings = ArrayList<ByteArray>()
+
+    fun indexOf(string: String): Int {
+      val prevIndex = indexes[string]
+      if (prevIndex != null) {
+        return prevIndex
+      }
+
+      val newIndex = strings.size
+      strings += string.toByteArray(Charsets.UTF_8)
+      indexes[string] = newIndex
+
+      return newIndex
+    }
+
+    fun estimatedSize(): Int = strings.sumOf { bytes -> bytes.size + 2 }
+  }
+
+  private class ByteWriter(initialCapacity: Int) {
+    var buffer = ByteArray(initialCapacity.coerceAtLeast(16))
+      private set
+    var size = 0
+      private set
+
+    fun writeByte(value: Int) {
+      ensureCapacity(1)
+      buffer[size++] = value.toByte()
+    }
+
+    fun writeInt32(value: Int) {
+      ensureCapacity(4)
+      buffer[size++] = value.toByte()
+      buffer[size++] = (value ushr 8).toByte()
+      buffer[size++] = (value ushr 16).toByte()
+      buffer[size++] = (value ushr 24).toByte()
+    }
+
+    fun writeVarInt(value: Int) {
+      writeVarLong(value.toLong() and 0xFFFFFFFFL)
+    }
+
+    fun writeVarLong(value: Long) {
+      ensureCapacity(10)
+      var remaining = value
+
+      while (remaining and 0x7FL.inv() != 0L) {
+        buffer[size++] = ((remaining and 0x7F) or 0x80).toByte()
+        remaining = remaining ushr 7
+      }
+
+      buffer[size++] = remaining.toByte()
+    }
+
+    fun writeBytes(bytes: ByteArray, length: Int) {
+      ensureCapacity(length)
+      System.arraycopy(bytes, 0, buffer, size, length)
+      size += length
+    }
+
+    fun toByteArray(): ByteArray = buffer.copyOf(size)
+
+    private fun ensureCapacity(extra: Int) {
+      if (size + extra <= buffer.size) {
+        return
+      }
+
+      buffer = buffer.copyOf(maxOf(buffer.size * 2, size + extra))
+    }
+  }
+
+}
@@ -0,0 +1,245 @@
+package com.github.k1rakishou.core_spannable.parcelable_spannable_string.v2
+
+import com.github.k1rakishou.core_spannable.ParcelableSpan
+import com.github.k1rakishou.core_spannable.ParcelableSpanInfo
+import com.github.k1rakishou.core_spannable.ParcelableSpanType
+import com.github.k1rakishou.core_spannable.ParcelableSpans
+import com.github.k1rakishou.core_spannable.PostLinkableType
+import com.github.k1rakishou.core_spannable.PostLinkableValue
+import com.github.k1rakishou.core_themes.ChanThemeColorId
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+import kotlin.random.Random
+
+class SpanInfoBinaryCodecTest {
+
+  @Test
+  fun `test empty spans round trip`() {
+    val parcelableSpans = ParcelableSpans(2, emptyList())
+    val bytes = SpanInfoBinaryCodec.encode(parcelableSpans)
+
+    assertTrue(SpanInfoBinaryCodec.isEncodedWithThisCodec(bytes))
+    assertSameSpans(parcelableSpans, SpanInfoBinaryCodec.decode(bytes))
+  }
+
+  @Test
+  fun `test legacy parcel bytes are not detected as encoded with this codec`() {
+    // Parcel starts with the little-endian ParcelableSpans.version int (1)
+    assertFalse(SpanInfoBinaryCodec.isEncodedWithThisCodec(byteArrayOf(1, 0, 0, 0, 0, 0, 0, 0)))
+    assertFalse(SpanInfoBinaryCodec.isEncodedWithThisCodec(byteArrayOf()))
+  }
+
+  @Test
+  fun `test every span type round trip`() {
+    val spanInfoList = listOf(
+      spanInfo(0, 10, ParcelableSpanType.ForegroundColorSpanType, ParcelableSpan.ForegroundColor(0xFF789922.toInt())),
+      spanInfo(1, 2, ParcelableSpanType.BackgroundColorSpanType, ParcelableSpan.BackgroundColor(0)),
+      spanInfo(3, 5, ParcelableSpanType.StrikethroughSpanType, ParcelableSpan.Strikethrough),
+      spanInfo(3, 5, ParcelableSpanType.StyleSpanType, ParcelableSpan.Style(3)),
+      spanInfo(7, 9, ParcelableSpanType.TypefaceSpanType, ParcelableSpan.Typeface("monospace")),
+      spanInfo(2, 4, ParcelableSpanType.AbsoluteSizeSpanHashed, ParcelableSpan.AbsoluteSize(14)),
+      spanInfo(0, 1, ParcelableSpanType.BackgroundColorIdSpan, ParcelableSpan.BackgroundColorId(ChanThemeColorId.BackColorSecondary)),
+      spanInfo(0, 1, ParcelableSpanType.ForegroundColorIdSpan, ParcelableSpan.ForegroundColorId(ChanThemeColorId.PostQuoteColor)),
+      spanInfo(0, 1, ParcelableSpanType.Unknown, null),
+      // Mismatching raw type must survive the round trip as well
+      spanInfo(0, 1, ParcelableSpanType.StyleSpanType, ParcelableSpan.Strikethrough),
+    ) + allPostLinkableValues().map { postLinkableValue ->
+      spanInfo(
+        start = 100,
+        end = 120,
+        type = ParcelableSpanType.PostLinkable,
+        parcelableSpan = ParcelableSpan.PostLinkable(">>123456789", PostLinkableType.Quote.value, postLinkableValue)
+      )
+    }
+
+    val parcelableSpans = ParcelableSpans(2, spanInfoList)
+    assertSameSpans(parcelableSpans, SpanInfoBinaryCodec.decode(SpanInfoBinaryCodec.encode(parcelableSpans)))
+  }
+
+  @Test
+  fun `test random spans round trip`() {
+    val random = Random(0x5EED)
+
+    repeat(2000) {
+      val parcelableSpans = randomParcelableSpans(random)
+      val bytes = SpanInfoBinaryCodec.encode(parcelableSpans)
+
+      assertSameSpans(parcelableSpans, SpanInfoBinaryCodec.decode(bytes))
+      // Decoding from a slice of a bigger buffer must work the same way
+      assertSameSpans(parcelableSpans, SpanInfoBinaryCodec.decode(sliceOf(bytes)))
+    }
+  }
+
+  @Test
+  fun `test large comments corpus round trip`() {
+    val random = Random(42)
+    val corpus = (0 until 50_000).map { postNo -> commentSpans(random, postNo.toLong()) }
+
+    corpus.forEach { parcelableSpans ->
+      assertSameSpans(parcelableSpans, SpanInfoBinaryCodec.decode(SpanInfoBinaryCodec.encode(parcelableSpans)))
+    }
+  }
+
+  private fun assertSameSpans(expected: ParcelableSpans, actual: ParcelableSpans) {
+    assertEquals(expected.version, actual.version)
+    assertEquals(expected.spanInfoList, actual.spanInfoList)
+  }
+
+  private fun sliceOf(bytes: ByteArray): ByteBuffer {
+    val padded = ByteArray(bytes.size + 16)
+    System.arraycopy(bytes, 0, padded, 8, bytes.size)
+
+    return ByteBuffer.wrap(padded, 8, bytes.size).slice()
+  }
+
+  private fun spanInfo(
+    start: Int,
+    end: Int,
+    type: ParcelableSpanType,
+    parcelableSpan: ParcelableSpan?,
+    flags: Int = SPAN_EXCLUSIVE_EXCLUSIVE
+  ): ParcelableSpanInfo {
+    return ParcelableSpanInfo(start, end, flags, type.value, parcelableSpan)
+  }
+
+  private fun allPostLinkableValues(): List<PostLinkableValue> {
+    return listOf(
+      PostLinkableValue.Archive("archived.moe", "g", 1L, 2L, 0L),
+      PostLinkableValue.Board("g"),
+      PostLinkableValue.Link("https://example.com/path?query=ünïcödé"),
+      PostLinkableValue.Quote(Long.MAX_VALUE, 1L),
+      PostLinkableValue.Dead(-1L, Long.MIN_VALUE),
+      PostLinkableValue.Search("a", "search query"),
+      PostLinkableValue.Spoiler,
+      PostLinkableValue.ThreadOrPost("vg", 12345L, 67890L, 0L)
+    )
+  }
+
+  private fun randomParcelableSpans(random: Random): ParcelableSpans {
+    val spanInfoList = (0 until random.nextInt(0, 40)).map {
+      val start = random.nextInt(-10, 5000)
+      val end = start + random.nextInt(-5, 300)
+      val flags = random.nextInt()
+
+      val parcelableSpan = when (random.nextInt(0, 10)) {
+        0 -> null
+        1 -> ParcelableSpan.ForegroundColor(random.nextInt())
+        2 -> ParcelableSpan.BackgroundColor(random.nextInt())
+        3 -> ParcelableSpan.Strikethrough
+        4 -> ParcelableSpan.Style(random.nextInt(0, 4))
+        5 -> ParcelableSpan.Typeface(randomString(random))
+        6 -> ParcelableSpan.AbsoluteSize(random.nextInt(0, 100))
+        7 -> ParcelableSpan.BackgroundColorId(ChanThemeColorId.values().random(random))
+        8 -> ParcelableSpan.ForegroundColorId(ChanThemeColorId.values().random(random))
+        else -> ParcelableSpan.PostLinkable(
+          key = randomString(random),
+          postLinkableTypeRaw = random.nextInt(-1, 8),
+          postLinkableValue = randomPostLinkableValue(random)
+        )
+      }
+
+      ParcelableSpanInfo(start, end, flags, random.nextInt(-2, 10), parcelableSpan)
+    }
+
+    return ParcelableSpans(random.nextInt(1, 3), spanInfoList)
+  }
+
+  private fun randomPostLinkableValue(random: Random): PostLinkableValue {
+    return when (random.nextInt(0, 8)) {
+      0 -> PostLinkableValue.Archive(randomString(random), randomString(random), random.nextLong(), random.nextLong(), random.nextLong())
+      1 -> PostLinkableValue.Board(randomString(random))
+      2 -> PostLinkableValue.Link(randomString(random))
+      3 -> PostLinkableValue.Quote(random.nextLong(), random.nextLong())
+      4 -> PostLinkableValue.Dead(random.nextLong(), random.nextLong())
+      5 -> PostLinkableValue.Search(randomString(random), randomString(random))
+      6 -> PostLinkableValue.Spoiler
+      else -> PostLinkableValue.ThreadOrPost(randomString(random), random.nextLong(), random.nextLong(), random.nextLong())
+    }
+  }
+
+  private fun randomString(random: Random): String {
+    val length = random.nextInt(0, 32)
+
+    return buildString(length) {
+      repeat(length) { append(random.nextInt(0x20, 0x5000).toChar()) }
+    }
+  }
+
+  /**
+   * Approximates spans of a typical imageboard comment: a couple of quotes (each one with a color
+   * span), some greentext lines, an occasional link and spoiler.
+   * */
+  private fun commentSpans(random: Random, postNo: Long): ParcelableSpans {
+    val spanInfoList = mutableListOf<ParcelableSpanInfo>()
+    var position = 0
+
+    repeat(random.nextInt(0, 4)) {
+      val quotePostNo = postNo - random.nextLong(1, 300)
+      val key = ">>$quotePostNo"
+      val end = position + key.length
+
+      spanInfoList += spanInfo(
+        start = position,
+        end = end,
+        type = ParcelableSpanType.PostLinkable,
+        parcelableSpan = ParcelableSpan.PostLinkable(key, PostLinkableType.Quote.value, PostLinkableValue.Quote(quotePostNo))
+      )
+      spanInfoList += spanInfo(
+        start = position,
+        end = end,
+        type = ParcelableSpanType.ForegroundColorIdSpan,
+        parcelableSpan = ParcelableSpan.ForegroundColorId(ChanThemeColorId.PostQuoteColor)
+      )
+
+      position = end + random.nextInt(1, 120)
+    }
+
+    repeat(random.nextInt(0, 3)) {
+      val end = position + random.nextInt(5, 80)
+
+      spanInfoList += spanInfo(
+        start = position,
+        end = end,
+        type = ParcelableSpanType.ForegroundColorIdSpan,
+        parcelableSpan = ParcelableSpan.ForegroundColorId(ChanThemeColorId.PostInlineQuoteColor)
+      )
+
+      position = end + 1
+    }
+
+    if (random.nextInt(0, 10) == 0) {
+      val link = "https://example.com/watch?v=${random.nextInt()}"
+
+      spanInfoList += spanInfo(
+        start = position,
+        end = position + link.length,
+        type = ParcelableSpanType.PostLinkable,
+        parcelableSpan = ParcelableSpan.PostLinkable(link, PostLinkableType.Link.value, PostLinkableValue.Link(link))
+      )
+
+      position += link.length + 1
+    }
+
+    if (random.nextInt(0, 20) == 0) {
+      val end = position + random.nextInt(5, 50)
+
+      spanInfoList += spanInfo(
+        start = position,
+        end = end,
+        type = ParcelableSpanType.PostLinkable,
+        parcelableSpan = ParcelableSpan.PostLinkable("spoiler", PostLinkableType.Spoiler.value, PostLinkableValue.Spoiler)
+      )
+    }
+
+    return ParcelableSpans(2, spanInfoList)
+  }
+
+  companion object {
+    // Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+    private const val SPAN_EXCLUSIVE_EXCLUSIVE = 33
+  }
+
+}